@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2006-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.alfresco.jlan.netbios;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * NetBIOS Name Benchmark Class
+ *
+ * <p>Measures encoding and decoding NetBIOS names, as done for name server requests and session
+ * requests.
+ *
+ * @author gkspencer
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NetBIOSNameBenchmark {
+
+	// Server name
+
+	private static final String ServerName	= "JLANSERVER";
+
+	// NetBIOS name, and the encoded name and session name
+
+	private NetBIOSName m_nbName;
+
+	private byte[] m_encodedName;
+	private String m_sessionName;
+
+	/**
+	 * Build the encoded names to decode
+	 */
+	@Setup
+	public void setup() {
+		m_nbName = new NetBIOSName( ServerName, NetBIOSName.FileServer, false);
+		m_encodedName = m_nbName.encodeName();
+		m_sessionName = NetBIOSSession.ConvertName( ServerName);
+	}
+
+	/**
+	 * Encode a NetBIOS name in name server format
+	 *
+	 * @return byte[]
+	 */
+	@Benchmark
+	public byte[] encodeName() {
+		return m_nbName.encodeName();
+	}
+
+	/**
+	 * Decode a NetBIOS name in name server format
+	 *
+	 * @return NetBIOSName
+	 */
+	@Benchmark
+	public NetBIOSName decodeName() {
+		return NetBIOSName.decodeNetBIOSName( m_encodedName, 0);
+	}
+
+	/**
+	 * Convert a host name to a session name
+	 *
+	 * @return String
+	 */
+	@Benchmark
+	public String convertSessionName() {
+		return NetBIOSSession.ConvertName( ServerName);
+	}
+
+	/**
+	 * Convert a session name to a host name
+	 *
+	 * @return String
+	 */
+	@Benchmark
+	public String decodeSessionName() {
+		return NetBIOSSession.DecodeName( m_sessionName);
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2006-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.alfresco.jlan.oncrpc;
+
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.jlan.oncrpc.nfs.NFS;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * RPC Packet Benchmark Class
+ *
+ * <p>Measures building and decoding an ONC/RPC request with Unix authentication, using an NFS
+ * lookup style request body.
+ *
+ * @author gkspencer
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RpcPacketBenchmark {
+
+	// Packet used to build requests, and a prebuilt request to decode
+
+	private RpcPacket m_encodePkt;
+	private RpcPacket m_decodePkt;
+
+	// Unix credentials and file handle
+
+	private byte[] m_cred;
+	private byte[] m_handle;
+
+	/**
+	 * Build the credentials and the request to decode
+	 */
+	@Setup
+	public void setup() {
+
+		// Build the Unix credentials, stamp, machine name, uid, gid and an empty group list
+
+		RpcPacket credPkt = new RpcPacket( 256);
+		credPkt.packInt( 0x12345678);
+		credPkt.packString( "benchmark-client");
+		credPkt.packInt( 1000);
+		credPkt.packInt( 100);
+		credPkt.packInt( 0);
+
+		m_cred = new byte[credPkt.getPosition() - credPkt.getOffset()];
+		System.arraycopy( credPkt.getBuffer(), credPkt.getOffset(), m_cred, 0, m_cred.length);
+
+		// Create the file handle
+
+		m_handle = new byte[32];
+		for ( int i = 0; i < m_handle.length; i++)
+			m_handle[i] = (byte) i;
+
+		// Create the packets
+
+		m_encodePkt = new RpcPacket( 1024);
+		m_decodePkt = new RpcPacket( 1024);
+		buildRequest( m_decodePkt);
+	}
+
+	/**
+	 * Build an RPC request
+	 *
+	 * @return int
+	 */
+	@Benchmark
+	public int encode() {
+		buildRequest( m_encodePkt);
+		return m_encodePkt.getLength();
+	}
+
+	/**
+	 * Decode an RPC request
+	 *
+	 * @return int
+	 */
+	@Benchmark
+	public int decode() {
+		int hash = m_decodePkt.getXID();
+
+		hash += m_decodePkt.getProgramId();
+		hash += m_decodePkt.getProgramVersion();
+		hash += m_decodePkt.getProcedureId();
+		hash += m_decodePkt.getCredentialsType();
+
+		// Unpack the file handle and name
+
+		m_decodePkt.positionAtParameters();
+		m_decodePkt.unpackByteArrayWithLength( m_handle);
+
+		return hash + m_decodePkt.unpackString().length();
+	}
+
+	/**
+	 * Build a lookup request in the specified packet
+	 *
+	 * @param pkt RpcPacket
+	 */
+	private final void buildRequest(RpcPacket pkt) {
+		pkt.buildRequestHeader( NFS.ProgramId, NFS.VersionId, NFS.ProcLookup, AuthType.Unix, m_cred, AuthType.Null, null);
+		pkt.packByteArrayWithLength( m_handle);
+		pkt.packString( "Quarterly Report.docx");
+		pkt.setLength();
+	}
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2006-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.alfresco.jlan.server.filesys.cache;
+
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.jlan.server.config.InvalidConfigurationException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.extensions.config.element.GenericConfigElement;
+
+/**
+ * File State Cache Benchmark Class
+ *
+ * <p>Measures file state lookups against the standalone and concurrent file state cache implementations,
+ * for paths that are in the cache and paths that are not.
+ *
+ * @author gkspencer
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class FileStateCacheBenchmark {
+
+	// Number of file states loaded into the cache
+
+	private static final int StateCount	= 10000;
+
+	// File state cache implementation
+
+	@Param({ "standalone", "concurrent" })
+	public String cacheType;
+
+	// File state cache, and the cached and uncached paths
+
+	private FileStateCache m_cache;
+
+	private String[] m_hitPaths;
+	private String[] m_missPaths;
+
+	/**
+	 * Create and load the file state cache
+	 *
+	 * @exception InvalidConfigurationException
+	 */
+	@Setup
+	public void setup()
+		throws InvalidConfigurationException {
+
+		// Create the file state cache
+
+		if ( cacheType.equals( "concurrent"))
+			m_cache = new ConcurrentFileStateCache();
+		else
+			m_cache = new StandaloneFileStateCache();
+
+		m_cache.initializeCache( new GenericConfigElement( "stateCache"), null);
+
+		// Build the path lists and load the cached paths
+
+		m_hitPaths = new String[StateCount];
+		m_missPaths = new String[StateCount];
+
+		for ( int i = 0; i < StateCount; i++) {
+			m_hitPaths[i] = "\\Projects\\Folder" + ( i / 100) + "\\Document" + i + ".docx";
+			m_missPaths[i] = "\\Projects\\Folder" + ( i / 100) + "\\Missing" + i + ".docx";
+
+			m_cache.findFileState( m_hitPaths[i], true);
+		}
+	}
+
+	/**
+	 * Find file states that are in the cache
+	 *
+	 * @return int
+	 */
+	@Benchmark
+	public int findCached() {
+		int found = 0;
+
+		for ( int i = 0; i < StateCount; i += 97) {
+			if ( m_cache.findFileState( m_hitPaths[i]) != null)
+				found++;
+		}
+
+		return found;
+	}
+
+	/**
+	 * Find file states that are not in the cache
+	 *
+	 * @return int
+	 */
+	@Benchmark
+	public int findUncached() {
+		int found = 0;
+
+		for ( int i = 0; i < StateCount; i += 97) {
+			if ( m_cache.findFileState( m_missPaths[i]) != null)
+				found++;
+		}
+
+		return found;
+	}
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2006-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.alfresco.jlan.server.memory;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Byte Buffer Pool Benchmark Class
+ *
+ * <p>Measures allocating and releasing pooled buffers with several threads sharing the pool, as the
+ * protocol handlers do when receiving requests.
+ *
+ * @author gkspencer
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class ByteBufferPoolBenchmark {
+
+	// Pool buffer sizes, initial and maximum allocations
+
+	private static final int[] BufferSizes	= { 256, 4096, 16384, 65536 };
+	private static final int[] InitAlloc	= { 64, 64, 16, 16 };
+	private static final int[] MaxAlloc		= { 256, 256, 64, 64 };
+
+	// Requested buffer size
+
+	@Param({ "128", "4096", "65536" })
+	public int requestSize;
+
+	// Shared buffer pool
+
+	private ByteBufferPool m_pool;
+
+	/**
+	 * Create the buffer pool
+	 */
+	@Setup
+	public void setup() {
+		m_pool = new ByteBufferPool( BufferSizes, InitAlloc, MaxAlloc);
+	}
+
+	/**
+	 * Allocate a buffer from the pool and release it
+	 *
+	 * @return int
+	 */
+	@Benchmark
+	public int allocateRelease() {
+
+		// Allocate a buffer, the pool returns null if there are no free buffers
+
+		byte[] buf = m_pool.allocateBuffer( requestSize);
+		if ( buf == null)
+			return 0;
+
+		// Release the buffer back to the pool
+
+		int len = buf.length;
+		m_pool.releaseBuffer( buf);
+
+		return len;
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2006-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.alfresco.jlan.smb.server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.jlan.server.core.NoPooledMemoryException;
+import org.alfresco.jlan.server.memory.ByteBufferPool;
+import org.alfresco.jlan.server.thread.ThreadRequestPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * CIFS Packet Pool Benchmark Class
+ *
+ * <p>Measures leasing and releasing CIFS packets with several threads sharing the pool, including the
+ * leased packet tracking used to detect packets that are not returned.
+ *
+ * @author gkspencer
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class CIFSPacketPoolBenchmark {
+
+	// Pool buffer sizes, initial and maximum allocations
+
+	private static final int[] BufferSizes	= { 256, 4096, 16384, 66000 };
+	private static final int[] InitAlloc	= { 64, 64, 16, 16 };
+	private static final int[] MaxAlloc		= { 256, 256, 64, 64 };
+
+	// Requested packet size
+
+	@Param({ "128", "4096", "65536" })
+	public int requestSize;
+
+	// Thread pool used by the packet lease checker, and the packet pool
+
+	private ThreadRequestPool m_threadPool;
+	private CIFSPacketPool m_packetPool;
+
+	/**
+	 * Create the packet pool
+	 */
+	@Setup
+	public void setup() {
+		m_threadPool = new ThreadRequestPool( "BenchmarkThreadPool", ThreadRequestPool.MinimumWorkerThreads);
+		m_packetPool = new CIFSPacketPool( new ByteBufferPool( BufferSizes, InitAlloc, MaxAlloc), m_threadPool);
+	}
+
+	/**
+	 * Shutdown the thread pool
+	 */
+	@TearDown
+	public void tearDown() {
+		m_threadPool.shutdownThreadPool();
+	}
+
+	/**
+	 * Allocate a packet from the pool and release it
+	 *
+	 * @return int
+	 * @exception NoPooledMemoryException
+	 */
+	@Benchmark
+	public int allocateRelease()
+		throws NoPooledMemoryException {
+
+		SMBSrvPacket pkt = m_packetPool.allocatePacket( requestSize);
+		int len = pkt.getBuffer().length;
+		m_packetPool.releasePacket( pkt);
+
+		return len;
+	}
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2006-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.alfresco.jlan.smb.server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.jlan.server.filesys.FileAttribute;
+import org.alfresco.jlan.server.filesys.FileInfo;
+import org.alfresco.jlan.server.filesys.UnsupportedInfoLevelException;
+import org.alfresco.jlan.util.DataBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Find Information Packer Benchmark Class
+ *
+ * <p>Measures packing a page of folder search results using the information levels requested by Windows
+ * clients.
+ *
+ * @author gkspencer
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FindInfoPackerBenchmark {
+
+	// Number of files packed per search response
+
+	private static final int FilesPerPage = 64;
+
+	// Information level
+
+	@Param({ "257", "258", "260", "262" })	// Directory, FullDirectory, DirectoryBoth, DirectoryBothId
+	public int infoLevel;
+
+	// File information to pack, and the response buffer
+
+	private FileInfo[] m_files;
+	private DataBuffer m_buf;
+
+	/**
+	 * Create the file information and buffer
+	 */
+	@Setup
+	public void setup() {
+		long timeNow = System.currentTimeMillis();
+
+		m_files = new FileInfo[FilesPerPage];
+
+		for ( int i = 0; i < FilesPerPage; i++) {
+			FileInfo finfo = new FileInfo( "Document " + i + " - Quarterly Report.docx", 1024L * i, FileAttribute.Archive);
+
+			finfo.setFileId( i + 1);
+			finfo.setAllocationSize( 4096L * ( i + 1));
+			finfo.setCreationDateTime( timeNow);
+			finfo.setModifyDateTime( timeNow);
+			finfo.setAccessDateTime( timeNow);
+			finfo.setChangeDateTime( timeNow);
+			finfo.setShortName( "DOCUME~" + i + ".DOC");
+
+			m_files[i] = finfo;
+		}
+
+		m_buf = new DataBuffer( 65536);
+	}
+
+	/**
+	 * Pack a page of search results
+	 *
+	 * @return int
+	 * @exception UnsupportedInfoLevelException
+	 */
+	@Benchmark
+	public int packPage()
+		throws UnsupportedInfoLevelException {
+
+		DataBuffer buf = m_buf;
+		buf.setPosition( 0);
+
+		int len = 0;
+
+		for ( FileInfo finfo : m_files) {
+			len += FindInfoPacker.packInfo( finfo, buf, infoLevel, true);
+			buf.longwordAlign();
+		}
+
+		return len;
+	}
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2006-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.alfresco.jlan.smb.server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.jlan.smb.PacketType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * SMB Server Packet Benchmark Class
+ *
+ * <p>Measures building and parsing an SMB request with a header, parameter words and a Unicode path, as done
+ * for each request by the SMB protocol handlers.
+ *
+ * @author gkspencer
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SMBSrvPacketBenchmark {
+
+	// Request path
+
+	private static final String Path = "\\Projects\\2010\\Reports\\Quarterly Report (Final).docx";
+
+	// Packet used to build requests, and a packet containing a built request
+
+	private SMBSrvPacket m_buildPkt;
+	private SMBSrvPacket m_parsePkt;
+
+	/**
+	 * Allocate the packets
+	 */
+	@Setup
+	public void setup() {
+		m_buildPkt = new SMBSrvPacket( 4096);
+		m_parsePkt = new SMBSrvPacket( 4096);
+
+		buildRequest( m_parsePkt);
+	}
+
+	/**
+	 * Build an SMB request
+	 *
+	 * @return int
+	 */
+	@Benchmark
+	public int encode() {
+		return buildRequest( m_buildPkt);
+	}
+
+	/**
+	 * Parse an SMB request
+	 *
+	 * @param bh Blackhole
+	 */
+	@Benchmark
+	public void decode(Blackhole bh) {
+		SMBSrvPacket pkt = m_parsePkt;
+
+		bh.consume( pkt.getCommand());
+		bh.consume( pkt.getTreeId());
+		bh.consume( pkt.getUserId());
+		bh.consume( pkt.getMultiplexId());
+
+		int cnt = pkt.getParameterCount();
+		for ( int i = 0; i < cnt; i++)
+			bh.consume( pkt.getParameter( i));
+
+		pkt.resetBytePointerAlign();
+		bh.consume( pkt.unpackString( true));
+	}
+
+	/**
+	 * Build a request in the specified packet
+	 *
+	 * @param pkt SMBSrvPacket
+	 * @return int
+	 */
+	private final int buildRequest(SMBSrvPacket pkt) {
+		pkt.setCommand( PacketType.OpenAndX);
+		pkt.setFlags( SMBSrvPacket.FLG_CASELESS);
+		pkt.setFlags2( SMBSrvPacket.FLG2_UNICODE + SMBSrvPacket.FLG2_LONGERRORCODE);
+		pkt.setTreeId( 1);
+		pkt.setUserId( 100);
+		pkt.setProcessId( 1234);
+		pkt.setMultiplexId( 42);
+
+		pkt.setParameterCount( 15);
+		for ( int i = 0; i < 15; i++)
+			pkt.setParameter( i, i * 3);
+
+		pkt.resetBytePointerAlign();
+		pkt.packString( Path, true);
+		pkt.setByteCount();
+
+		return pkt.getLength();
+	}
+}
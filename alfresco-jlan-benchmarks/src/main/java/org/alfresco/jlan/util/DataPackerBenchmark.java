@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2006-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.alfresco.jlan.util;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Data Packer Benchmark Class
+ *
+ * <p>Measures the little endian integer and Unicode/ASCII string packing and unpacking used by the SMB
+ * protocol handlers.
+ *
+ * @author gkspencer
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DataPackerBenchmark {
+
+	// Test file name, typical of a path component in an SMB request
+
+	private static final String FileName = "Quarterly Report 2010 (Final).docx";
+
+	// Packing buffer, and buffers with the packed Unicode and ASCII strings
+
+	private byte[] m_buf;
+	private byte[] m_uniBuf;
+	private byte[] m_asciiBuf;
+
+	/**
+	 * Allocate the buffers
+	 */
+	@Setup
+	public void setup() {
+		m_buf = new byte[1024];
+
+		m_uniBuf = new byte[256];
+		DataPacker.putUnicodeString( FileName, m_uniBuf, 0, true);
+
+		m_asciiBuf = new byte[256];
+		DataPacker.putString( FileName, m_asciiBuf, 0, true);
+	}
+
+	/**
+	 * Pack and unpack a set of Intel format short/int/long values, as used by SMB headers
+	 *
+	 * @return long
+	 */
+	@Benchmark
+	public long intelValues() {
+		DataPacker.putIntelShort( 0x1234, m_buf, 0);
+		DataPacker.putIntelInt( 0x12345678, m_buf, 2);
+		DataPacker.putIntelLong( 0x123456789ABCDEFL, m_buf, 6);
+
+		return DataPacker.getIntelShort( m_buf, 0) + DataPacker.getIntelInt( m_buf, 2) + DataPacker.getIntelLong( m_buf, 6);
+	}
+
+	/**
+	 * Pack and unpack a set of network byte order int/long values, as used by RPC requests
+	 *
+	 * @return long
+	 */
+	@Benchmark
+	public long networkValues() {
+		DataPacker.putInt( 0x12345678, m_buf, 0);
+		DataPacker.putLong( 0x123456789ABCDEFL, m_buf, 4);
+
+		return DataPacker.getInt( m_buf, 0) + DataPacker.getLong( m_buf, 4);
+	}
+
+	/**
+	 * Pack a Unicode string
+	 *
+	 * @return int
+	 */
+	@Benchmark
+	public int packUnicodeString() {
+		return DataPacker.putUnicodeString( FileName, m_buf, 0, true);
+	}
+
+	/**
+	 * Unpack a Unicode string
+	 *
+	 * @return String
+	 */
+	@Benchmark
+	public String unpackUnicodeString() {
+		return DataPacker.getUnicodeString( m_uniBuf, 0, 128);
+	}
+
+	/**
+	 * Pack an ASCII string
+	 *
+	 * @return int
+	 */
+	@Benchmark
+	public int packAsciiString() {
+		return DataPacker.putString( FileName, m_buf, 0, true);
+	}
+
+	/**
+	 * Unpack an ASCII string
+	 *
+	 * @param bh Blackhole
+	 */
+	@Benchmark
+	public void unpackAsciiString(Blackhole bh) {
+		bh.consume( DataPacker.getString( m_asciiBuf, 0, 256));
+	}
+}
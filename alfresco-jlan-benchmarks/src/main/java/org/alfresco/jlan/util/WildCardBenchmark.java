@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2006-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.alfresco.jlan.util;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Wildcard Benchmark Class
+ *
+ * <p>Measures matching a folder listing against the wildcard patterns used by folder searches.
+ *
+ * @author gkspencer
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WildCardBenchmark {
+
+	// Search pattern, covers the all, name, extension and complex wildcard types
+
+	@Param({ "*.*", "*.docx", "Report.*", "Rep?rt*20??.d*" })
+	public String pattern;
+
+	// Case sensitive matching
+
+	@Param({ "true", "false" })
+	public boolean caseSensitive;
+
+	// Folder listing file names
+
+	private String[] m_names;
+
+	// Wildcard being tested
+
+	private WildCard m_wildCard;
+
+	/**
+	 * Create the wildcard and file names
+	 */
+	@Setup
+	public void setup() {
+		m_wildCard = new WildCard( pattern, caseSensitive);
+
+		m_names = new String[] { "Report 2010.docx", "report 2011.DOCX", "Budget.xlsx", "desktop.ini", "Thumbs.db",
+				"~$Report 2010.docx", "Reprt-2012.doc", "notes.txt", "Report.pdf", "archive.tar.gz" };
+	}
+
+	/**
+	 * Match the folder listing against the pattern
+	 *
+	 * @return int
+	 */
+	@Benchmark
+	public int matchListing() {
+		int matches = 0;
+
+		for ( String name : m_names) {
+			if ( m_wildCard.matchesPattern( name))
+				matches++;
+		}
+
+		return matches;
+	}
+}
@@ -65,6 +65,7 @@ import org.alfresco.jlan.server.filesys.DiskSharedDevice;
 import org.alfresco.jlan.server.filesys.FilesystemsConfigSection;
 import org.alfresco.jlan.server.filesys.SrvDiskInfo;
 import org.alfresco.jlan.server.filesys.VolumeInfo;
+import org.alfresco.jlan.server.filesys.cache.ConcurrentFileStateCache;
 import org.alfresco.jlan.server.filesys.cache.FileStateCache;
 import org.alfresco.jlan.server.filesys.cache.StandaloneFileStateCache;
 import org.alfresco.jlan.server.thread.ThreadRequestPool;
@@ -368,9 +369,21 @@ public class CifsOnlyXMLServerConfiguration extends ServerConfiguration {
 			else if ( maxSizeStr != null)
 				throw new InvalidConfigurationException("Thread pool maximum size not specified");
 
+			// Get the request queue type
+
+			String queueTypeStr = elem.getAttribute("type");
+			int queueType = ThreadRequestPool.QueueShared;
+
+			if ( queueTypeStr != null && queueTypeStr.length() > 0) {
+				queueType = ThreadRequestPool.getQueueTypeForName( queueTypeStr);
+
+				if ( queueType == -1)
+					throw new InvalidConfigurationException("Invalid thread pool type, " + queueTypeStr);
+			}
+
 			// Configure the thread pool
 
-			coreConfig.setThreadPool( initSize, maxSize);
+			coreConfig.setThreadPool( initSize, maxSize, queueType);
 		}
 		else {
 
@@ -861,6 +874,12 @@ public class CifsOnlyXMLServerConfiguration extends ServerConfiguration {
 
 					diaSel.AddDialect(Dialect.NT);
 				}
+				else if ( dia.equalsIgnoreCase("SMB2")) {
+
+					// Enable the SMB2 protocol, requires an authenticator that supports extended security
+
+					cifsConfig.setSMB2Enabled( true);
+				}
 				else
 					throw new InvalidConfigurationException("Invalid SMB dialect, " + dia);
 			}
@@ -2216,6 +2235,12 @@ public class CifsOnlyXMLServerConfiguration extends ServerConfiguration {
 
 				stateCache = new StandaloneFileStateCache();
 			}
+			else if ( attr.equalsIgnoreCase( "concurrent")) {
+
+				// Create a concurrent file state cache
+
+				stateCache = new ConcurrentFileStateCache();
+			}
 			else if ( attr.equalsIgnoreCase( "cluster")) {
 
 				// Create a clustered file state cache, need to load the class to avoid a reference to it
@@ -31,9 +31,13 @@ import org.alfresco.jlan.ftp.FTPConfigSection;
 import org.alfresco.jlan.ftp.FTPPath;
 import org.alfresco.jlan.ftp.FTPSiteInterface;
 import org.alfresco.jlan.ftp.InvalidPathException;
+import org.alfresco.jlan.oncrpc.nfs.DirectorySnapshotCache;
 import org.alfresco.jlan.oncrpc.nfs.NFSConfigSection;
+import org.alfresco.jlan.oncrpc.nfs.UnstableWriteBuffer;
 import org.alfresco.jlan.server.config.InvalidConfigurationException;
 import org.alfresco.jlan.server.filesys.cache.hazelcast.ClusterConfigSection;
+import org.alfresco.jlan.server.thread.ThreadRequestPool;
+import org.alfresco.jlan.util.MemorySize;
 import org.springframework.extensions.config.ConfigElement;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -640,6 +644,27 @@ public class XMLServerConfiguration extends CifsOnlyXMLServerConfiguration {
 			ftpConfig.setRequireSecureSession( true);
 		}
 
+		// Check if the NIO based control session handler should be disabled
+
+		if ( findChildNode("disableNIO", ftp.getChildNodes()) != null)
+			ftpConfig.setDisableNIOCode( true);
+
+		// Check for the data transfer thread pool size, used by the NIO control session handler
+
+		elem = findChildNode("transferThreads", ftp.getChildNodes());
+		if ( elem != null) {
+			try {
+				ftpConfig.setTransferThreads(Integer.parseInt(getText(elem)));
+				if ( ftpConfig.getTransferThreads() < ThreadRequestPool.MinimumWorkerThreads ||
+						ftpConfig.getTransferThreads() > ThreadRequestPool.MaximumWorkerThreads)
+					throw new InvalidConfigurationException("FTP transfer threads out of valid range, " +
+							ThreadRequestPool.MinimumWorkerThreads + " - " + ThreadRequestPool.MaximumWorkerThreads);
+			}
+			catch (NumberFormatException ex) {
+				throw new InvalidConfigurationException("Invalid FTP transfer threads value");
+			}
+		}
+
 		// Check that all the required FTPS parameters have been set
 		// MNT-7301 FTPS server requires unnecessarly to have a trustStore while a keyStore should be sufficient
 		if ( ftpConfig.getKeyStorePath() != null) {
@@ -744,6 +769,23 @@ public class XMLServerConfiguration extends CifsOnlyXMLServerConfiguration {
 			}
 		}
 
+		// Check for the maximum number of requests in progress per TCP session
+
+		elem = findChildNode("maxRequestsPerSession", nfs.getChildNodes());
+
+		if ( elem != null) {
+
+			try {
+
+				// Set the per session request limit, range checked by the configuration section
+
+				nfsConfig.setNFSMaximumSessionRequests(Integer.parseInt(getText(elem)));
+			}
+			catch (NumberFormatException ex) {
+				throw new InvalidConfigurationException("Invalid NFS maximum requests per session setting, " + getText(elem));
+			}
+		}
+
 		// Check for a port mapper server port
 
 		if ( findChildNode("disablePortMapperRegistration", nfs.getChildNodes()) != null) {
@@ -948,10 +990,140 @@ public class XMLServerConfiguration extends CifsOnlyXMLServerConfiguration {
 			}
 		}
 
+		// Check if the open file attribute cache timer has been specified
+
+		elem = findChildNode("attributeCache", nfs.getChildNodes());
+
+		if ( elem != null) {
+			try {
+
+				// Range check the attribute cache timer, zero disables attribute caching
+
+				long attrTimer = Integer.parseInt(getText(elem));
+
+				if ( attrTimer < 0 || attrTimer > 60)
+					throw new InvalidConfigurationException("Invalid NFS attribute cache timer value, " + attrTimer);
+
+				// Convert the timer to milliseconds
+
+				nfsConfig.setNFSFileCacheAttributeTimer(attrTimer * 1000L);
+			}
+			catch (NumberFormatException ex) {
+				throw new InvalidConfigurationException("Invalid NFS attribute cache timer value, " + ex.toString());
+			}
+		}
+
+		// Check if the directory snapshot cache should be enabled
+
+		elem = findChildNode("directoryCache", nfs.getChildNodes());
+
+		if ( elem != null) {
+
+			// Check if the memory limit has been specified
+
+			long memLimit = DirectorySnapshotCache.DefaultMemoryLimit;
+			String memStr = elem.getAttribute("memory");
+
+			if ( memStr != null && memStr.length() > 0) {
+				try {
+					memLimit = MemorySize.getByteValue(memStr);
+				}
+				catch (NumberFormatException ex) {
+					throw new InvalidConfigurationException("Invalid NFS directory cache memory limit, " + memStr);
+				}
+			}
+
+			// Check if the snapshot timeout has been specified, in seconds
+
+			String tmoStr = elem.getAttribute("timeout");
+
+			if ( tmoStr != null && tmoStr.length() > 0) {
+				try {
+					nfsConfig.setNFSDirectoryCacheTimeout(Long.parseLong(tmoStr) * 1000L);
+				}
+				catch (NumberFormatException ex) {
+					throw new InvalidConfigurationException("Invalid NFS directory cache timeout, " + tmoStr);
+				}
+			}
+
+			// Enable the directory snapshot cache
+
+			nfsConfig.setNFSDirectoryCacheMemory(memLimit);
+		}
+
 		// Check if NFS file cache debug output is enabled
 
 		if ( findChildNode("fileCacheDebug", nfs.getChildNodes()) != null)
 			nfsConfig.setNFSFileCacheDebug(true);
+
+		// Check if unstable writes should be buffered until committed
+
+		elem = findChildNode("unstableWrites", nfs.getChildNodes());
+
+		if ( elem != null) {
+
+			// Check if the per file buffer size has been specified
+
+			int bufSize = UnstableWriteBuffer.DefaultBufferSize;
+			String sizeStr = elem.getAttribute("bufferSize");
+
+			if ( sizeStr != null && sizeStr.length() > 0) {
+				try {
+					bufSize = MemorySize.getByteValueInt(sizeStr);
+				}
+				catch (NumberFormatException ex) {
+					throw new InvalidConfigurationException("Invalid NFS unstable write buffer size, " + sizeStr);
+				}
+			}
+
+			// Check if the server wide memory limit has been specified
+
+			String memStr = elem.getAttribute("memory");
+
+			if ( memStr != null && memStr.length() > 0) {
+				try {
+					nfsConfig.setNFSUnstableWriteLimit(MemorySize.getByteValue(memStr));
+				}
+				catch (NumberFormatException ex) {
+					throw new InvalidConfigurationException("Invalid NFS unstable write memory limit, " + memStr);
+				}
+			}
+
+			// Enable unstable write buffering
+
+			nfsConfig.setNFSUnstableWriteBufferSize(bufSize);
+		}
+
+		// Check if the NIO based TCP session handlers should be disabled
+
+		if ( findChildNode("disableNIO", nfs.getChildNodes()) != null)
+			nfsConfig.setDisableNIOCode(true);
+
+		// Check if the file id to path mappings should be kept in a persistent index
+
+		elem = findChildNode("fileIdIndex", nfs.getChildNodes());
+
+		if ( elem != null) {
+
+			// Get the index directory, create it if it does not exist
+
+			String indexDir = elem.getAttribute("dir");
+			if ( indexDir == null || indexDir.length() == 0)
+				throw new InvalidConfigurationException("NFS file id index directory not specified");
+
+			File dir = new File(indexDir);
+			if ( dir.exists() == false && dir.mkdirs() == false)
+				throw new InvalidConfigurationException("Failed to create NFS file id index directory, " + indexDir);
+			else if ( dir.isDirectory() == false)
+				throw new InvalidConfigurationException("NFS file id index path is not a directory, " + indexDir);
+
+			nfsConfig.setFileIdIndexDirectory(indexDir);
+		}
+
+		// Check if NFSv4.1 support should be enabled
+
+		if ( findChildNode("enableNFSv4", nfs.getChildNodes()) != null)
+			nfsConfig.setNFSv4Enabled(true);
 	}
 
 	/**
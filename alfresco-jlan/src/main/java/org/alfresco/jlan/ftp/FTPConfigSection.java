@@ -45,6 +45,10 @@ public class FTPConfigSection extends ConfigSection {
   public static final String DefaultKeyStoreType	= "JKS";
   public static final String DefaultTrustStoreType	= "JKS";
 
+  // Default number of data transfer threads used by the NIO session handler
+
+  public static final int DefaultTransferThreads	= 25;
+
   //  Bind address and FTP server port. A port of -1 indicates do not start FTP server.
 
   private InetAddress m_ftpBindAddress;
@@ -101,6 +105,14 @@ public class FTPConfigSection extends ConfigSection {
 
   private boolean m_requireSecureSess;
 
+  //  Disable the NIO based control session handler, use a thread per session
+
+  private boolean m_disableNIO;
+
+  //  Number of threads in the NIO session handler data transfer thread pool
+
+  private int m_transferThreads = DefaultTransferThreads;
+
   /**
    * Class constructor
    *
@@ -329,6 +341,24 @@ public class FTPConfigSection extends ConfigSection {
 	  return m_requireSecureSess;
   }
 
+  /**
+   * Determine if the NIO based control session handler is disabled
+   *
+   * @return boolean
+   */
+  public final boolean hasDisableNIOCode() {
+    return m_disableNIO;
+  }
+
+  /**
+   * Return the number of data transfer threads used by the NIO session handler
+   *
+   * @return int
+   */
+  public final int getTransferThreads() {
+    return m_transferThreads;
+  }
+
   /**
    * Set the FTP character set
    *
@@ -777,6 +807,46 @@ public class FTPConfigSection extends ConfigSection {
 	  return sts;
   }
 
+  /**
+   * Set the disable NIO code flag
+   *
+   * @param disableNIO boolean
+   * @return int
+   * @exception InvalidConfigurationException
+   */
+  public final int setDisableNIOCode(boolean disableNIO)
+    throws InvalidConfigurationException {
+
+    //  Inform listeners, validate the configuration change
+
+    int sts = fireConfigurationChange(ConfigId.FTPDisableNIO, Boolean.valueOf(disableNIO));
+    m_disableNIO = disableNIO;
+
+    //  Return the change status
+
+    return sts;
+  }
+
+  /**
+   * Set the number of data transfer threads used by the NIO session handler
+   *
+   * @param threads int
+   * @return int
+   * @exception InvalidConfigurationException
+   */
+  public final int setTransferThreads(int threads)
+    throws InvalidConfigurationException {
+
+    //  Inform listeners, validate the configuration change
+
+    int sts = fireConfigurationChange(ConfigId.FTPTransferThreads, Integer.valueOf(threads));
+    m_transferThreads = threads;
+
+    //  Return the change status
+
+    return sts;
+  }
+
   /**
    * Close the configuration section
    */
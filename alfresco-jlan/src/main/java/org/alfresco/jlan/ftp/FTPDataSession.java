@@ -21,9 +21,12 @@ package org.alfresco.jlan.ftp;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 
 /**
  * FTP Data Session Class
@@ -88,7 +91,7 @@ public class FTPDataSession implements Runnable {
 
 		//	Create a server socket to listen for the incoming connection
 
-		m_passiveSock = new ServerSocket(0, 1, null);
+		m_passiveSock = openPassiveSocket(0, null);
 	}
 
 	/**
@@ -112,7 +115,7 @@ public class FTPDataSession implements Runnable {
 		//	Create a server socket to listen for the incoming connection on the specified network adapter
 
 		m_localPort = localPort;
-		m_passiveSock = new ServerSocket(localPort, 1, bindAddr);
+		m_passiveSock = openPassiveSocket(localPort, bindAddr);
 	}
 
 	/**
@@ -134,7 +137,7 @@ public class FTPDataSession implements Runnable {
 
 		//	Create a server socket to listen for the incoming connection on the specified network adapter
 
-		m_passiveSock = new ServerSocket(0, 1, bindAddr);
+		m_passiveSock = openPassiveSocket(0, bindAddr);
 	}
 
 	/**
@@ -291,14 +294,32 @@ public class FTPDataSession implements Runnable {
 		if ( m_passiveSock != null)
 			m_activeSock = m_passiveSock.accept();
 		else {
-		  if ( m_localPort != 0) {
 
-		    //	Use the specified local port
+			//	Create a channel based socket, so file data can be transferred directly to/from the socket
 
-				m_activeSock = new Socket(m_clientAddr, m_clientPort, null, m_localPort);
-		  }
-		  else
-				m_activeSock = new Socket(m_clientAddr, m_clientPort);
+			SocketChannel sockChan = SocketChannel.open();
+			m_activeSock = sockChan.socket();
+
+			try {
+
+				//	Use the specified local port
+
+				if ( m_localPort != 0)
+					m_activeSock.bind(new InetSocketAddress((InetAddress) null, m_localPort));
+
+				//	Connect to the client
+
+				m_activeSock.connect(new InetSocketAddress(m_clientAddr, m_clientPort));
+			}
+			catch (IOException ex) {
+
+				//	Close the socket channel, and rethrow the exception
+
+				sockChan.close();
+				m_activeSock = null;
+
+				throw ex;
+			}
 		}
 
 		//	Set the socket to close immediately
@@ -310,6 +331,37 @@ public class FTPDataSession implements Runnable {
 		return m_activeSock;
 	}
 
+	/**
+	 * Open a channel based listening socket for a passive connection, the accepted socket will also
+	 * have a channel so file data can be transferred directly to/from the socket
+	 *
+	 * @param localPort int
+	 * @param bindAddr InetAddress
+	 * @return ServerSocket
+	 * @exception IOException
+	 */
+	private final ServerSocket openPassiveSocket(int localPort, InetAddress bindAddr)
+		throws IOException {
+
+		//	Create the server socket channel and bind the socket
+
+		ServerSocketChannel srvChan = ServerSocketChannel.open();
+		ServerSocket srvSock = srvChan.socket();
+
+		try {
+			srvSock.bind(new InetSocketAddress(bindAddr, localPort), 1);
+		}
+		catch (IOException ex) {
+
+			//	Close the channel, and rethrow the exception
+
+			srvChan.close();
+			throw ex;
+		}
+
+		return srvSock;
+	}
+
 	/**
 	 * Close the data connection
 	 */
@@ -20,12 +20,14 @@
 package org.alfresco.jlan.ftp;
 
 import java.io.IOException;
+import java.net.BindException;
 import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.util.BitSet;
 import java.util.Enumeration;
 
 import org.alfresco.jlan.debug.Debug;
@@ -38,6 +40,7 @@ import org.alfresco.jlan.server.config.InvalidConfigurationException;
 import org.alfresco.jlan.server.config.ServerConfiguration;
 import org.alfresco.jlan.server.core.SharedDeviceList;
 import org.alfresco.jlan.server.filesys.NetworkFileServer;
+import org.alfresco.jlan.server.memory.ByteBufferPool;
 import org.alfresco.jlan.util.UTF8Normalizer;
 
 
@@ -62,6 +65,11 @@ public class FTPServer extends NetworkFileServer implements Runnable, Configurat
 
 	protected static final int SERVER_PORT		= 21;
 
+	//	File data transfer buffer size, and initial number of transfer buffers to allocate
+
+	protected static final int TransferBufferSize	= 65536;
+	protected static final int TransferBufferInit	= 4;
+
 	//  Thread group
 
 	protected static final ThreadGroup FTPThreadGroup = new ThreadGroup( "FTPSessions");
@@ -83,6 +91,10 @@ public class FTPServer extends NetworkFileServer implements Runnable, Configurat
 	private FTPDataSessionTable m_dataSessions;
 	private int m_dataPortId;
 
+	//	Data ports in use when a data port range is configured, bit index is relative to the low data port
+
+	private BitSet m_dataPortsInUse;
+
 	//	List of available shares
 
 	private SharedDeviceList m_shares;
@@ -99,6 +111,14 @@ public class FTPServer extends NetworkFileServer implements Runnable, Configurat
 
 	private Thread m_srvThread;
 
+	//	File data transfer buffer pool, separate from the global memory pool used by the SMB server
+
+	private ByteBufferPool m_transferBufPool;
+
+	//	NIO based control session handler, if the thread per session handler is not being used
+
+	private NIOFTPSessionHandler m_nioHandler;
+
 	// SITE command interface
 
 	private FTPSiteInterface m_siteInterface;
@@ -160,6 +180,11 @@ public class FTPServer extends NetworkFileServer implements Runnable, Configurat
 	  		// Set the FTP SITE interface
 
 	  		setSiteInterface( getFTPConfiguration().getFTPSiteInterface());
+
+	  		//	Create the file data transfer buffer pool, allow one buffer per data transfer thread
+
+	  		int maxBufs = Math.max( getFTPConfiguration().getTransferThreads(), TransferBufferInit);
+	  		m_transferBufPool = new ByteBufferPool( new int[] { TransferBufferSize }, new int[] { TransferBufferInit }, new int[] { maxBufs });
 		}
 		else
 			setEnabled( false);
@@ -238,21 +263,13 @@ public class FTPServer extends NetworkFileServer implements Runnable, Configurat
 	    return dataSess;
 	  }
 
-	  //	Check if all available ports in the valid range are in use
+	  //	Reserve a port for the new data session
 
-	  int dataPortLow  = getFTPConfiguration().getFTPDataPortLow();
-	  int dataPortHigh = getFTPConfiguration().getFTPDataPortHigh();
-
-	  if ( m_dataSessions.numberOfSessions() == ( dataPortHigh - dataPortLow))
-	    throw new IOException("No free data session ports");
-
-	  //	Allocate a port for the new data session
-
-	  int dataPort = getNextFreeDataSessionPort();
+	  int dataPort = reserveDataPort();
 	  if ( dataPort == -1)
-	    throw new IOException("Failed to allocate data port");
+	    throw new IOException("No free data session ports");
 
-	  //	Make sure we can bind to the allocated local port
+	  //	Create the data session, the local port is bound when the connection is made
 
       dataSess = new FTPDataSession(sess, dataPort, remAddr, remPort);
 
@@ -296,23 +313,39 @@ public class FTPServer extends NetworkFileServer implements Runnable, Configurat
 	    return dataSess;
 	  }
 
-	  //	Check if all available ports in the valid range are in use
+	  //	Reserve a port for the new data session, skip ports that are in use by other applications
 
-	  int dataPortLow  = getFTPConfiguration().getFTPDataPortLow();
-	  int dataPortHigh = getFTPConfiguration().getFTPDataPortHigh();
+	  int rangeSize = getFTPConfiguration().getFTPDataPortHigh() - getFTPConfiguration().getFTPDataPortLow() + 1;
+	  int dataPort = -1;
 
-	  if ( m_dataSessions.numberOfSessions() == ( dataPortHigh - dataPortLow))
-	    throw new IOException("No free data session ports");
+	  for ( int i = 0; i < rangeSize && dataSess == null; i++) {
 
-	  //	Allocate a port for the new data session
+	    //	Reserve the next free data port
 
-	  int dataPort = getNextFreeDataSessionPort();
-	  if ( dataPort == -1)
-	    throw new IOException("Failed to allocate data port");
+	    dataPort = reserveDataPort();
+	    if ( dataPort == -1)
+	      throw new IOException("No free data session ports");
 
-	  //	Make sure we can bind to the allocated local port
+	    //	Make sure we can bind to the allocated local port
 
-	  dataSess = new FTPDataSession(sess, dataPort, localAddr);
+	    try {
+	      dataSess = new FTPDataSession(sess, dataPort, localAddr);
+	    }
+	    catch ( BindException ex) {
+
+	      //	Release the port, and try the next port in the range
+
+	      releaseDataPort(dataPort);
+
+	      //	DEBUG
+
+	      if ( Debug.EnableInfo && sess.hasDebug(FTPSrvSession.DBG_DATAPORT))
+	        Debug.println("[FTP] Data port " + dataPort + " in use, " + ex.getMessage());
+	    }
+	  }
+
+	  if ( dataSess == null)
+	    throw new IOException("Failed to allocate data port");
 
 	  //	Add the data session to the allocated session table
 
@@ -347,6 +380,7 @@ public class FTPServer extends NetworkFileServer implements Runnable, Configurat
 	  //	Remove the data session from the allocated session table
 
 	  m_dataSessions.removeSession(dataSess);
+	  releaseDataPort(dataSess.getAllocatedPort());
 
 	  //	DEBUG
 
@@ -355,47 +389,58 @@ public class FTPServer extends NetworkFileServer implements Runnable, Configurat
 	}
 
 	/**
-	 * Allocate the next free data session port
+	 * Reserve the next free data session port, ports are allocated in turn from the configured range. Returns
+	 * -1 if all ports in the range are in use.
 	 *
 	 * @return int
 	 */
-	private final int getNextFreeDataSessionPort() {
+	private final int reserveDataPort() {
 
-	  int initPort = m_dataPortId;
-	  int dataPort = -1;
+	  int dataLow  = getFTPConfiguration().getFTPDataPortLow();
 	  int dataHigh = getFTPConfiguration().getFTPDataPortHigh();
 
 	  synchronized ( m_dataSessions) {
 
-	    //	Check if the upper range has been reached
-
-	    if ( m_dataPortId > dataHigh) {
-	      m_dataPortId = getFTPConfiguration().getFTPDataPortLow();
-	      initPort = dataHigh;
-	    }
+	    //	Allocate the in use port map
 
-	    //	Get the next data session id
+	    if ( m_dataPortsInUse == null)
+	      m_dataPortsInUse = new BitSet( dataHigh - dataLow + 1);
 
-	    dataPort = m_dataPortId++;
+	    //	Find the next free port, wrap around to the start of the range if required
 
-	    while ( m_dataSessions.findSession(dataPort) != null) {
+	    if ( m_dataPortId < dataLow || m_dataPortId > dataHigh)
+	      m_dataPortId = dataLow;
 
-	      //	Check if we have checked the full range of ports
+	    int idx = m_dataPortsInUse.nextClearBit( m_dataPortId - dataLow);
 
-	      if ( m_dataPortId == initPort)
+	    if ( idx > dataHigh - dataLow) {
+	      idx = m_dataPortsInUse.nextClearBit( 0);
+	      if ( idx > dataHigh - dataLow)
 	        return -1;
+	    }
 
-	      //	Check if the port number has reached the upper limit, if so then wrap around
+	    //	Mark the port as in use
 
-	      if ( m_dataPortId > dataHigh)
-	        m_dataPortId = getFTPConfiguration().getFTPDataPortLow();
-	      dataPort = m_dataPortId++;
-	    }
+	    m_dataPortsInUse.set( idx);
+	    m_dataPortId = dataLow + idx + 1;
+
+	    return dataLow + idx;
 	  }
+	}
+
+	/**
+	 * Release a reserved data session port
+	 *
+	 * @param dataPort int
+	 */
+	private final void releaseDataPort(int dataPort) {
 
-	  //	Return the allocated data port
+	  int dataLow = getFTPConfiguration().getFTPDataPortLow();
 
-	  return dataPort <= dataHigh ? dataPort : -1;
+	  synchronized ( m_dataSessions) {
+	    if ( m_dataPortsInUse != null && dataPort >= dataLow)
+	      m_dataPortsInUse.clear( dataPort - dataLow);
+	  }
 	}
 
   /**
@@ -487,6 +532,15 @@ public class FTPServer extends NetworkFileServer implements Runnable, Configurat
     return m_configSection;
   }
 
+  /**
+   * Return the file data transfer buffer pool, or null if the server is not configured
+   *
+   * @return ByteBufferPool
+   */
+  protected final ByteBufferPool getTransferBufferPool() {
+    return m_transferBufPool;
+  }
+
 	/**
 	 * Return the FTP server port
 	 *
@@ -526,6 +580,33 @@ public class FTPServer extends NetworkFileServer implements Runnable, Configurat
 		fireSessionLoggedOnEvent(sess);
 	}
 
+	/**
+	 * Initialize a new session and add it to the active session list
+	 *
+	 * @param srvSess FTPSrvSession
+	 */
+	protected final void initializeSession(FTPSrvSession srvSess) {
+
+	    //  Set the session id
+
+	    srvSess.setSessionId(getNextSessionId());
+	    srvSess.setUniqueId("FTP" + srvSess.getSessionId());
+	    srvSess.setDebugPrefix("[FTP" + srvSess.getSessionId() + "] ");
+
+		//	Initialize the root path for the new session, if configured
+
+		if ( hasRootPath())
+			srvSess.setRootPath(getRootPath());
+
+		//	Add the session to the active session list
+
+		addSession(srvSess);
+
+		//	Inform listeners that a new session has been created
+
+		fireSessionOpenEvent(srvSess);
+	}
+
   /**
    * Start the SMB server.
    */
@@ -542,23 +623,36 @@ public class FTPServer extends NetworkFileServer implements Runnable, Configurat
 
     try {
 
-			//	Create the server socket to listen for incoming FTP session requests
+			//	Check if the NIO based control session handler should be used
 
-			if ( hasBindAddress())
-				m_srvSock = new ServerSocket(getPort(), LISTEN_BACKLOG, getBindAddress());
-			else {
+			if ( getFTPConfiguration().hasDisableNIOCode() == false) {
+
+				//	Create the NIO session handler, this binds the listening socket
 
-			    // See http://download.oracle.com/javase/1.5.0/docs/guide/net/ipv6_guide/index.html
-			    // and Inet6AddressImpl#anyLocalAddress() for details
-			    // We are binding to any local address here.
-			    m_srvSock = new ServerSocket(getPort(), LISTEN_BACKLOG);
+				m_nioHandler = new NIOFTPSessionHandler(this, hasBindAddress() ? getBindAddress() : null, getPort());
+				m_nioHandler.setDebug(hasDebug());
+				m_nioHandler.initializeSessionHandler(this);
 			}
+			else {
 
-			//	DEBUG
+				//	Create the server socket to listen for incoming FTP session requests
 
-			if ( Debug.EnableInfo && hasDebug()) {
-				InetAddress localSocketAddress = ((InetSocketAddress)m_srvSock.getLocalSocketAddress()).getAddress();
-				Debug.println("[FTP] Listening on " + localSocketAddress);
+				if ( hasBindAddress())
+					m_srvSock = new ServerSocket(getPort(), LISTEN_BACKLOG, getBindAddress());
+				else {
+
+				    // See http://download.oracle.com/javase/1.5.0/docs/guide/net/ipv6_guide/index.html
+				    // and Inet6AddressImpl#anyLocalAddress() for details
+				    // We are binding to any local address here.
+				    m_srvSock = new ServerSocket(getPort(), LISTEN_BACKLOG);
+				}
+
+				//	DEBUG
+
+				if ( Debug.EnableInfo && hasDebug()) {
+					InetAddress localSocketAddress = ((InetSocketAddress)m_srvSock.getLocalSocketAddress()).getAddress();
+					Debug.println("[FTP] Listening on " + localSocketAddress);
+				}
 			}
 
 			//	Check if the FTP server is using a limited data port range
@@ -576,9 +670,14 @@ public class FTPServer extends NetworkFileServer implements Runnable, Configurat
 			setActive(true);
 			fireServerEvent(ServerListener.ServerActive);
 
+      //  Run the NIO session handler in the main server thread, until the server is shutdown
+
+      if ( m_nioHandler != null)
+        m_nioHandler.run();
+
       //  Wait for incoming connection requests
 
-      while ( hasShutdown() == false) {
+      while ( m_nioHandler == null && hasShutdown() == false) {
 
 		    //  Wait for a connection
 
@@ -593,25 +692,10 @@ public class FTPServer extends NetworkFileServer implements Runnable, Configurat
 		    if (Debug.EnableInfo && hasDebug())
 		      Debug.println("[FTP] FTP session request received from " + sessSock.getInetAddress().getHostAddress());
 
-		    //  Create a server session for the new request, and set the session id.
+		    //  Create a server session for the new request, and add to the active session list
 
 		    FTPSrvSession srvSess = new FTPSrvSession(sessSock, this);
-		    srvSess.setSessionId(getNextSessionId());
-		    srvSess.setUniqueId("FTP" + srvSess.getSessionId());
-		    srvSess.setDebugPrefix("[FTP" + srvSess.getSessionId() + "] ");
-
-			//	Initialize the root path for the new session, if configured
-
-			if ( hasRootPath())
-				srvSess.setRootPath(getRootPath());
-
-			//	Add the session to the active session list
-
-			addSession(srvSess);
-
-			//	Inform listeners that a new session has been created
-
-			fireSessionOpenEvent(srvSess);
+		    initializeSession(srvSess);
 
 		    //  Start the new session in a seperate thread
 
@@ -712,6 +796,11 @@ public class FTPServer extends NetworkFileServer implements Runnable, Configurat
 		catch (IOException ex) {
 		}
 
+		//	Close the NIO session handler, this wakes up the main FTP server thread
+
+		if ( m_nioHandler != null)
+			m_nioHandler.closeSessionHandler(this);
+
 		//	Wait for the main server thread to close
 
 		if ( m_srvThread != null) {
@@ -33,6 +33,10 @@ import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
@@ -65,6 +69,7 @@ import org.alfresco.jlan.server.auth.acl.AccessControlManager;
 import org.alfresco.jlan.server.core.ShareType;
 import org.alfresco.jlan.server.core.SharedDevice;
 import org.alfresco.jlan.server.core.SharedDeviceList;
+import org.alfresco.jlan.server.memory.ByteBufferPool;
 import org.alfresco.jlan.server.filesys.AccessDeniedException;
 import org.alfresco.jlan.server.filesys.AccessMode;
 import org.alfresco.jlan.server.filesys.DiskDeviceContext;
@@ -81,6 +86,8 @@ import org.alfresco.jlan.server.filesys.NetworkFile;
 import org.alfresco.jlan.server.filesys.NotifyChange;
 import org.alfresco.jlan.server.filesys.SearchContext;
 import org.alfresco.jlan.server.filesys.TreeConnection;
+import org.alfresco.jlan.server.filesys.ZeroCopyReadInterface;
+import org.alfresco.jlan.server.filesys.ZeroCopyWriteInterface;
 import org.alfresco.jlan.server.filesys.TreeConnectionHash;
 import org.alfresco.jlan.util.UTF8Normalizer;
 import org.alfresco.jlan.util.WildCard;
@@ -134,6 +141,15 @@ public class FTPSrvSession extends SrvSession implements Runnable {
 
 	private static final int DEFAULT_BUFFERSIZE = 64000;
 
+	// Maximum amount of data transferred directly between a file channel and the data connection before
+	// checking if the transfer has been aborted
+
+	private static final long ZeroCopyTransferSize	= 1024L * 1024L;
+
+	// Maximum time to wait for the control connection to become writeable, used by the NIO session handler
+
+	private static final long ControlWriteTimeout	= 60000L;
+
 	// Carriage return/line feed combination required for response messages
 
 	protected final static String CRLF = "\r\n";
@@ -187,6 +203,10 @@ public class FTPSrvSession extends SrvSession implements Runnable {
 	protected static final int DefCommandBufSize	= 1024;
 	protected static final int MaxCommandBufSize	= 0xFFFF;	// 64K
 
+	// Maximum number of pipelined commands to queue, the control connection is not read whilst the queue is full
+
+	protected static final int MaxQueuedCommands	= 64;
+
 	// Session socket
 
 	private Socket m_sock;
@@ -198,6 +218,34 @@ public class FTPSrvSession extends SrvSession implements Runnable {
 
 	private OutputStreamWriter m_out;
 
+	// Socket channel and session handler, when the session is serviced by the NIO session handler, and the
+	// output stream used to write to the channel
+
+	private SocketChannel m_sockChannel;
+	private NIOFTPSessionHandler m_nioHandler;
+	private OutputStream m_chanOut;
+
+	// Client information for a session serviced by the NIO session handler, the client information is per
+	// thread so it is saved between requests as each request may run on a different worker thread
+
+	private ClientInfo m_nioClientInfo;
+
+	// Buffer for a partially received command, and flag to indicate a command that is too large is being
+	// discarded, used by the NIO session handler
+
+	private byte[] m_rxbuf;
+	private int m_rxlen;
+	private boolean m_rxDiscard;
+
+	// SSL/TLS network data and decrypted data buffers, used by the NIO session handler, and the SSL engine
+	// that is waiting for the client to close the secure session after a CCC command
+
+	private ByteBuffer m_sslNetIn;
+	private ByteBuffer m_sslNetOut;
+	private ByteBuffer m_sslAppIn;
+
+	private SSLEngine m_sslClosing;
+
 	// List of pending FTP commands
 
 	private List<FTPRequest> m_ftpCmdList;
@@ -296,6 +344,34 @@ public class FTPSrvSession extends SrvSession implements Runnable {
 		m_normalizer = srv.getUTF8Normalizer();
 	}
 
+	/**
+	 * Class constructor
+	 *
+	 * <p>Create a session that is serviced by the NIO session handler, the socket channel is in non-blocking mode.
+	 *
+	 * @param sockChannel SocketChannel
+	 * @param srv FTPServer
+	 * @param handler NIOFTPSessionHandler
+	 */
+	public FTPSrvSession(SocketChannel sockChannel, FTPServer srv, NIOFTPSessionHandler handler) {
+		this(sockChannel.socket(), srv);
+
+		// Save the socket channel and session handler
+
+		m_sockChannel = sockChannel;
+		m_nioHandler  = handler;
+	}
+
+	/**
+	 * Return the control connection socket channel, or null if the session is not serviced by the NIO
+	 * session handler
+	 *
+	 * @return SocketChannel
+	 */
+	protected final SocketChannel getSocketChannel() {
+		return m_sockChannel;
+	}
+
 	/**
 	 * Close the FTP session, and associated data socket if active
 	 */
@@ -338,6 +414,11 @@ public class FTPSrvSession extends SrvSession implements Runnable {
 			m_sock = null;
 		}
 
+		// Wakeup the NIO session handler so the closed socket channel is deregistered
+
+		if ( m_nioHandler != null)
+			m_nioHandler.wakeupSelector();
+
 		// Close the input/output streams
 
 		if ( m_in != null) {
@@ -873,8 +954,8 @@ public class FTPSrvSession extends SrvSession implements Runnable {
                 // Output the encrypted response
 
                 m_sslOut.flip();
-                m_sock.getOutputStream().write( m_sslOut.array(), 0, m_sslOut.remaining());
-                m_sock.getOutputStream().flush();
+                getControlOutputStream().write( m_sslOut.array(), 0, m_sslOut.remaining());
+                getControlOutputStream().flush();
             }
         }
 	}
@@ -2093,42 +2174,95 @@ public class FTPSrvSession extends SrvSession implements Runnable {
 				return;
 			}
 
-			// Allocate the buffer for the file data
+			// Inform listeners that the file has been opened
 
-			byte[] buf = new byte[DEFAULT_BUFFERSIZE];
-			long filePos = m_restartPos;
+			getFTPServer().fireOpenFileEvent(this, netFile);
+
+			// Check if the file data can be sent directly from the file channel to the data connection, data
+			// connections are not encrypted so only the socket needs to have a channel
 
-			int len = -1;
+			long filePos = m_restartPos;
 			boolean abort = false;
 
-			while (filePos < netFile.getFileSize() && abort == false) {
+			FileChannel fileChan = null;
 
-				// Read another block of data from the file
+			if ( dataSock.getChannel() != null && disk instanceof ZeroCopyReadInterface)
+				fileChan = ((ZeroCopyReadInterface) disk).getReadChannel(this, tree, netFile);
 
-				len = disk.readFile(this, tree, netFile, buf, 0, buf.length, filePos);
+			if ( fileChan != null) {
 
 				// DEBUG
 
 				if ( Debug.EnableInfo && hasDebug(DBG_FILEIO))
-					debugPrintln(" Write len=" + len + " bytes");
+					debugPrintln(" Zero copy transfer, size=" + fileChan.size() + ", pos=" + filePos);
+
+				// Transfer the file data to the client
 
-				// Write the current data block to the client, update the file position
+				SocketChannel sockChan = dataSock.getChannel();
+				long fileLen = fileChan.size();
 
-				if ( len > 0) {
+				while (filePos < fileLen && abort == false) {
 
-					// Write the data to the client
+					// Transfer another block of data, stop if the file has been truncated
 
-					os.write(buf, 0, len);
+					long cnt = fileChan.transferTo(filePos, Math.min(fileLen - filePos, ZeroCopyTransferSize), sockChan);
+					if ( cnt <= 0)
+						break;
 
 					// Update the file position
 
-					filePos += len;
+					filePos += cnt;
 
 					// Check if the transfer has been aborted
 
 					abort = checkForAbort();
 				}
 			}
+			else {
+
+				// Allocate the buffer for the file data
+
+				byte[] buf = allocateTransferBuffer();
+
+				try {
+					int len = -1;
+
+					while (filePos < netFile.getFileSize() && abort == false) {
+
+						// Read another block of data from the file
+
+						len = disk.readFile(this, tree, netFile, buf, 0, buf.length, filePos);
+
+						// DEBUG
+
+						if ( Debug.EnableInfo && hasDebug(DBG_FILEIO))
+							debugPrintln(" Write len=" + len + " bytes");
+
+						// Write the current data block to the client, update the file position
+
+						if ( len > 0) {
+
+							// Write the data to the client
+
+							os.write(buf, 0, len);
+
+							// Update the file position
+
+							filePos += len;
+
+							// Check if the transfer has been aborted
+
+							abort = checkForAbort();
+						}
+					}
+				}
+				finally {
+
+					// Release the buffer
+
+					releaseTransferBuffer(buf);
+				}
+			}
 
 			// Close the output stream to the client
 
@@ -2150,6 +2284,7 @@ public class FTPSrvSession extends SrvSession implements Runnable {
 			// Close the network file
 
 			disk.closeFile(this, tree, netFile);
+			getFTPServer().fireCloseFileEvent(this, netFile);
 			netFile = null;
 
 			// DEBUG
@@ -2203,8 +2338,10 @@ public class FTPSrvSession extends SrvSession implements Runnable {
 
 			// Close the network file
 
-			if ( netFile != null && disk != null && tree != null)
+			if ( netFile != null && disk != null && tree != null) {
 				disk.closeFile(this, tree, netFile);
+				getFTPServer().fireCloseFileEvent(this, netFile);
+			}
 
 			// Close the output stream to the client
 
@@ -2318,6 +2455,10 @@ public class FTPSrvSession extends SrvSession implements Runnable {
 	                netFile = disk.createFile(this, tree, params);
 	            }
 
+	            // Inform listeners that the file has been opened
+
+	            getFTPServer().fireOpenFileEvent(this, netFile);
+
 	            // Notify change listeners that a new file has been created
 	            DiskDeviceContext diskCtx = (DiskDeviceContext) tree.getContext();
 
@@ -2362,40 +2503,65 @@ public class FTPSrvSession extends SrvSession implements Runnable {
 	                debugPrintln("Storing ftp=" + ftpPath.getFTPPath() + ", share=" + ftpPath.getShareName() + ", path="
 	                        + ftpPath.getSharePath() + (append ? " (Append)" : ""));
 
-	            // Allocate the buffer for the file data
+	            // Check if the file data can be received directly from the data connection into the file channel
 
-	            byte[] buf = new byte[DEFAULT_BUFFERSIZE];
-	            long filePos = 0;
-	            int len = is.read(buf, 0, buf.length);
 	            boolean abort = false;
+	            FileChannel fileChan = null;
+
+	            if ( dataSock.getChannel() != null && disk instanceof ZeroCopyWriteInterface)
+	                fileChan = ((ZeroCopyWriteInterface) disk).getWriteChannel(this, tree, netFile);
+
+	            if ( fileChan != null) {
+
+	                // Receive the file data, appended data starts at the current end of file
+
+	                abort = receiveFileData(dataSock.getChannel(), fileChan, append ? fileChan.size() : 0L, netFile);
+	            }
+	            else {
+
+	                // Allocate the buffer for the file data
 
-	            // If the data is to be appended then set the starting file position to the end of the
-	            // file
+	                byte[] buf = allocateTransferBuffer();
 
-	            if ( append == true)
-	                filePos = netFile.getFileSize();
+	                try {
+	                    long filePos = 0;
+	                    int len = is.read(buf, 0, buf.length);
 
-	            // Read/write loop
+	                    // If the data is to be appended then set the starting file position to the end of the
+	                    // file
 
-	            while (len > 0 && abort == false) {
+	                    if ( append == true)
+	                        filePos = netFile.getFileSize();
 
-	                // DEBUG
+	                    // Read/write loop
 
-	                if ( Debug.EnableInfo && hasDebug(DBG_FILEIO))
-	                    debugPrintln(" Receive len=" + len + " bytes");
+	                    while (len > 0 && abort == false) {
 
-	                // Write the current data block to the file, update the file position
+	                        // DEBUG
 
-	                disk.writeFile(this, tree, netFile, buf, 0, len, filePos);
-	                filePos += len;
+	                        if ( Debug.EnableInfo && hasDebug(DBG_FILEIO))
+	                            debugPrintln(" Receive len=" + len + " bytes");
 
-	                // Read another block of data from the client
+	                        // Write the current data block to the file, update the file position
 
-	                len = is.read(buf, 0, buf.length);
+	                        disk.writeFile(this, tree, netFile, buf, 0, len, filePos);
+	                        filePos += len;
 
-	                // Check if the file transfer has been aborted
+	                        // Read another block of data from the client
 
-	                abort = checkForAbort();
+	                        len = is.read(buf, 0, buf.length);
+
+	                        // Check if the file transfer has been aborted
+
+	                        abort = checkForAbort();
+	                    }
+	                }
+	                finally {
+
+	                    // Release the buffer
+
+	                    releaseTransferBuffer(buf);
+	                }
 	            }
 
 	            // Close the input stream from the client
@@ -2406,6 +2572,7 @@ public class FTPSrvSession extends SrvSession implements Runnable {
 	            // Close the network file
 
 	            disk.closeFile(this, tree, netFile);
+	            getFTPServer().fireCloseFileEvent(this, netFile);
 	            netFile = null;
 
 	            // Indicate that the file has been received, or the transfer was aborted
@@ -2540,8 +2707,10 @@ public class FTPSrvSession extends SrvSession implements Runnable {
 
 			// Close the network file
 
-			if ( netFile != null && disk != null && tree != null)
+			if ( netFile != null && disk != null && tree != null) {
 				disk.closeFile(this, tree, netFile);
+				getFTPServer().fireCloseFileEvent(this, netFile);
+			}
 
 			// Close the input stream to the client
 
@@ -3963,7 +4132,16 @@ public class FTPSrvSession extends SrvSession implements Runnable {
     	// Close the SSL engine
 
         m_sslEngine.closeOutbound();
-    	getSSLCommand( m_inbuf, 0);
+
+        if ( m_sockChannel != null) {
+
+        	// Send the close notification, the engine is kept until the client closes its side of the secure session
+
+        	wrapSSLHandshake( m_sslEngine);
+        	m_sslClosing = m_sslEngine;
+        }
+        else
+        	getSSLCommand( m_inbuf, 0);
 
         // Release resources used by the secure connection
 
@@ -4392,261 +4570,1207 @@ public class FTPSrvSession extends SrvSession implements Runnable {
 	}
 
 	/**
-	 * Check if an abort command has been sent by the client
+	 * Process an FTP command
 	 *
-	 * @return boolean
+	 * @param ftpReq FTPRequest
+	 * @exception IOException
 	 */
-	private final boolean checkForAbort() {
+	protected final void processCommand(FTPRequest ftpReq)
+		throws IOException {
 
-		try {
+		// Debug
 
-			// Check if there is any pending data on the command socket
+		long startTime = 0L;
 
-			if ( m_in.available() > 0) {
+		if ( Debug.EnableInfo && hasDebug(DBG_TIMING))
+			startTime = System.currentTimeMillis();
 
-				// Read the next request
+		if ( Debug.EnableInfo && hasDebug(DBG_RXDATA))
+			debugPrintln("Rx cmd=" + ftpReq);
 
-				FTPRequest ftpReq = getNextCommand(false);
-				if ( ftpReq != null) {
+		// Parse the received command, and validate
 
-					// Check for an abort command
+		switch (ftpReq.isCommand()) {
 
-					if ( ftpReq.isCommand() == FTPCommand.Abor) {
+			// User command
 
-						// DEBUG
+			case FTPCommand.User:
+				procUser(ftpReq);
+				break;
 
-						if ( Debug.EnableDbg && hasDebug(DBG_FILEIO))
-							debugPrintln("Transfer aborted by client");
+			// Password command
 
-						// Indicate an abort has been received
+			case FTPCommand.Pass:
+				procPassword(ftpReq);
+				break;
 
-						return true;
-					}
-					else {
+			// Quit command
 
-						// Queue the request for processing later
+			case FTPCommand.Quit:
+				procQuit(ftpReq);
+				break;
 
-						m_ftpCmdList.add(ftpReq);
-					}
-				}
-			}
-		}
-		catch (IOException ex) {
+			// Type command
 
-			// DEBUG
+			case FTPCommand.Type:
+				procType(ftpReq);
+				break;
 
-			if ( Debug.EnableError && hasDebug(DBG_ERROR))
-				debugPrintln("Error during check for abort, " + ex.toString());
-		}
+			// Port command
 
-		// No command, or not an abort command
+			case FTPCommand.Port:
+				procPort(ftpReq);
+				break;
 
-		return false;
-	}
+			// Passive command
 
-	/**
-	 * Read the next FTP command from the command socket, or get a command from the list of queued
-	 * requests
-	 *
-	 * @param checkQueue boolean
-	 * @return FTPRequest
-	 * @exception SocketException
-	 * @exception IOException
-	 */
-	private final FTPRequest getNextCommand(boolean checkQueue)
-		throws SocketException, IOException {
+			case FTPCommand.Pasv:
+				procPassive(ftpReq);
+				break;
 
-		// Check if there are any queued requests
+			// Restart position command
 
-		FTPRequest nextReq = null;
+			case FTPCommand.Rest:
+				procRestart(ftpReq);
+				break;
 
-		if ( checkQueue == true && m_ftpCmdList.size() > 0) {
+			// Return file command
 
-			// Get the next queued request
+			case FTPCommand.Retr:
+				procReturnFile(ftpReq);
 
-			nextReq = m_ftpCmdList.remove(0);
-		}
-		else {
+				// Reset the restart position
 
-		    // Loop until a valid request is received, or the connection is closed
+				m_restartPos = 0;
+				break;
 
-		    while ( nextReq == null) {
+			// Store file command
 
-    			// Wait for an incoming request
+			case FTPCommand.Stor:
+				procStoreFile(ftpReq, false);
+				break;
 
-    			int rdlen = m_in.read(m_inbuf);
+			// Append file command
 
-    			// Check if there is no more data, the other side has dropped the connection
+			case FTPCommand.Appe:
+				procStoreFile(ftpReq, true);
+				break;
 
-    			if ( rdlen == -1) {
-    				closeSession();
-    				return null;
-    			}
-    			else if ( rdlen == m_inbuf.length) {
+			// Print working directory command
 
-    				// Looks like there is more data to be read for the current command, we need to extend the buffer
-    				//
-    				// Check if the command buffer has already been extended to the maximum size
+			case FTPCommand.Pwd:
+			case FTPCommand.XPwd:
+				procPrintWorkDir(ftpReq);
+				break;
 
-    				if ( m_inbuf.length < MaxCommandBufSize) {
+			// Change working directory command
 
-    					// Extend the command buffer
+			case FTPCommand.Cwd:
+			case FTPCommand.XCwd:
+				procChangeWorkDir(ftpReq);
+				break;
 
-    					int curLen = m_inbuf.length;
-    					int availLen = m_in.available();
-    					int newLen = Math.max( m_inbuf.length * 2, curLen + availLen + 50);
+			// Change to previous directory command
 
-    					if ( newLen > MaxCommandBufSize)
-    						newLen = MaxCommandBufSize;
+			case FTPCommand.Cdup:
+			case FTPCommand.XCup:
+				procCdup(ftpReq);
+				break;
 
-    					// Check if the new buffer size is large enough for the current command
+			// Full directory listing command
 
-    					if ( newLen > (curLen + availLen)) {
+			case FTPCommand.List:
+				procList(ftpReq);
+				break;
 
-    						// Allocate a new buffer and copy the existing data over to it
+			// Short directory listing command
 
-    						byte[] newbuf = new byte[newLen];
-    						System.arraycopy( m_inbuf, 0, newbuf, 0, m_inbuf.length);
+			case FTPCommand.Nlst:
+				procNList(ftpReq);
+				break;
 
-    						// Move the new command buffer into place
+			// Delete file command
 
-    						m_inbuf = newbuf;
+			case FTPCommand.Dele:
+				procDeleteFile(ftpReq);
+				break;
 
-        					// DEBUG
+			// Rename file from command
 
-        					if ( Debug.EnableInfo && hasDebug(DBG_RXDATA))
-        						debugPrintln("Extended command buffer to " + m_inbuf.length + " bytes");
+			case FTPCommand.Rnfr:
+				procRenameFrom(ftpReq);
+				break;
 
-    						// Read the remaining data
+			// Rename file to comand
 
-    						int rdlen2 = m_in.read( m_inbuf, curLen, m_inbuf.length - curLen);
-    						if ( rdlen2 == -1) {
-    		    				closeSession();
-    		    				return null;
-    		    			}
-    						else {
+			case FTPCommand.Rnto:
+				procRenameTo(ftpReq);
+				break;
 
-    							// Calculate the total read length
+			// Create new directory command
 
-    							rdlen = rdlen + rdlen2;
+			case FTPCommand.Mkd:
+			case FTPCommand.XMkd:
+				procCreateDirectory(ftpReq);
+				break;
 
-    							// DEBUG
+			// Delete directory command
 
-            					if ( Debug.EnableInfo && hasDebug(DBG_RXDATA))
-            						debugPrintln("Secondary read " + rdlen2 + " bytes, total bytes read " + rdlen);
-    						}
-    					}
-    				}
-    				else {
+			case FTPCommand.Rmd:
+			case FTPCommand.XRmd:
+				procRemoveDirectory(ftpReq);
+				break;
 
-    					// Command is too large, clear any pending data on the command socket and ignore it
+			// Return file size command
 
-    					clearCommandSocket();
+			case FTPCommand.Size:
+				procFileSize(ftpReq);
+				break;
 
-    					// DEBUG
+			// Return the modification date/time
 
-    					if ( Debug.EnableInfo && hasDebug(DBG_RXDATA))
-    						debugPrintln("Received command too large, ignored");
+			case FTPCommand.Mdtm:
+				procGetModifyDateTime(ftpReq);
+				break;
 
-    					return null;
-    				}
+			// Set modify date/time command
 
-    			}
+			case FTPCommand.Mfmt:
+				procModifyDateTime(ftpReq);
+				break;
 
-    			// If there is an SSL engine associated with this session then decrypt the received data
+			// System status command
 
-    			if ( m_sslEngine != null)
-    			    rdlen = getSSLCommand( m_inbuf, rdlen);
+			case FTPCommand.Syst:
+				procSystemStatus(ftpReq);
+				break;
 
-    			// Trim the trailing <CR><LF>
+			// Server status command
 
-    			if ( rdlen > 0) {
-    				while (rdlen > 0 && m_inbuf[rdlen - 1] == '\r' || m_inbuf[rdlen - 1] == '\n')
-    					rdlen--;
+			case FTPCommand.Stat:
+				procServerStatus(ftpReq);
+				break;
 
-        			// Get the command string, create the new request
+			// Help command
 
-        			String cmd = null;
+			case FTPCommand.Help:
+				procHelp(ftpReq);
+				break;
 
-        			if ( isUTF8Enabled()) {
-        				cmd = m_normalizer.normalize(new String(m_inbuf, 0, rdlen, "UTF8"));
-        			}
-        			else
-        				cmd = new String(m_inbuf, 0, rdlen);
+			// No-op command
 
-        			nextReq = new FTPRequest(cmd);
-    			}
-		    }
-		}
+			case FTPCommand.Noop:
+				procNoop(ftpReq);
+				break;
 
-		// Return the request
+			// Abort command
 
-		return nextReq;
-	}
+			case FTPCommand.Abor:
+				procAbort(ftpReq);
+				break;
 
-	/**
-	 * Clear the command socket of pending data
-	 *
-	 * @exception IOException
-	 */
-	protected void clearCommandSocket()
-		throws IOException {
+			// Server features command
 
-		// Loop until all data has been cleared from the command socket or the socket is closed
+			case FTPCommand.Feat:
+				procFeatures(ftpReq);
+				break;
 
-		int rdlen = 0;
+			// Options command
 
-		while ( m_in.available() > 0 && rdlen >= 0) {
+			case FTPCommand.Opts:
+				procOptions(ftpReq);
+				break;
 
-			// Read a block of data from the command socket
+			// Machine listing, single folder
 
-			rdlen = m_in.read( m_inbuf);
-			if ( rdlen == -1)
-				closeSession();
-		}
-	}
+			case FTPCommand.MLst:
+				procMachineListing(ftpReq);
+				break;
 
-	/**
-	 * Get the next command data on an SSL/TLS encrypted connection
-	 *
-	 * @param buf byte[]
-	 * @param len int
-	 * @return int
-	 * @exception SocketException
-	 * @exception IOException
-	 */
-	protected final int getSSLCommand( byte[] buf, int len)
-	    throws SocketException, IOException {
+			// Machine listing, folder contents
 
+			case FTPCommand.MLsd:
+				procMachineListingContents(ftpReq);
+				break;
 
-	    m_sslIn.limit( m_sslIn.capacity());
-	    m_sslIn.position( len);
-	    m_sslIn.flip();
+			// Site specific commands
 
-	    m_sslOut.clear();
+			case FTPCommand.Site:
+				procSite(ftpReq);
+				break;
 
-        // Get the SSL engine status
+			// Structure command (obsolete)
 
-        SSLEngineResult sslRes = m_sslEngine.unwrap( m_sslIn, m_sslOut);
-        while(m_sslIn.position() < len)
-        {
-            sslRes = m_sslEngine.unwrap( m_sslIn, m_sslOut);
-        }
+			case FTPCommand.Stru:
+				procStructure(ftpReq);
+				break;
 
-        // DEBUG
+			// Mode command (obsolete)
 
-		if ( Debug.EnableDbg && hasDebug(DBG_SSL))
-			debugPrintln("SSL unwrap() len=" + len + ", returned " + sslRes.bytesProduced() + " bytes, res=" + sslRes);
+			case FTPCommand.Mode:
+				procMode(ftpReq);
+				break;
 
-        int unwrapLen = sslRes.bytesProduced();
-        boolean loopDone = false;
-        Runnable task = null;
+			// Allocate command (obsolete)
 
-        while ( loopDone == false && m_sslEngine.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING &&
-        		sslRes.getStatus() != SSLEngineResult.Status.CLOSED) {
+			case FTPCommand.Allo:
+				procAllocate(ftpReq);
+				break;
 
-            switch ( m_sslEngine.getHandshakeStatus()) {
-                case NEED_TASK:
+			// Extended Port command
+
+			case FTPCommand.EPrt:
+				procExtendedPort(ftpReq);
+				break;
+
+			// Extended Passive command
+
+			case FTPCommand.EPsv:
+				procExtendedPassive(ftpReq);
+				break;
+
+			// SSL/TLS authentication
+
+			case FTPCommand.Auth:
+				procAuth(ftpReq);
+				break;
+
+			// Protected buffer size
+
+			case FTPCommand.Pbsz:
+			    procProtectedBufferSize( ftpReq);
+			    break;
+
+			// Data channel protection level
+
+			case FTPCommand.Prot:
+			    procDataChannelProtection( ftpReq);
+			    break;
+
+			// Clear command channel
+
+			case FTPCommand.Ccc:
+				procClearCommandChannel( ftpReq);
+				break;
+
+			// Unknown/unimplemented command
+
+			default:
+				if ( ftpReq.isCommand() != FTPCommand.InvalidCmd)
+					sendFTPResponse(502, "Command " + FTPCommand.getCommandName(ftpReq.isCommand()) + " not implemented");
+				else
+					sendFTPResponse(502, "Command not implemented");
+				break;
+		}
+
+		// Debug
+
+		if ( Debug.EnableInfo && hasDebug(DBG_TIMING)) {
+			long duration = System.currentTimeMillis() - startTime;
+			if ( duration > 20)
+				debugPrintln("Processed cmd " + FTPCommand.getCommandName(ftpReq.isCommand()) + " in " + duration + "ms");
+		}
+	}
+
+	/**
+	 * Start a session that is serviced by the NIO session handler, called by a worker thread. Returns false
+	 * if the session has been closed.
+	 *
+	 * @return boolean
+	 */
+	protected final boolean startControlSession() {
+
+		try {
+
+			// Debug
+
+			if ( Debug.EnableInfo && hasDebug(DBG_STATE))
+				debugPrintln("FTP session started (NIO)");
+
+			// Create the output stream, and the command buffers
+
+			m_chanOut = new ChannelOutputStream();
+			m_out = new OutputStreamWriter(m_chanOut);
+
+			m_inbuf = new byte[DefCommandBufSize];
+			m_rxbuf = new byte[DefCommandBufSize];
+
+			// Return the initial response
+
+			sendFTPResponse(220, "FTP server ready");
+		}
+		catch (Exception ex) {
+
+			// Output the exception details, and close the session
+
+			if ( isShutdown() == false)
+				debugPrintln(ex);
+
+			closeSession();
+		}
+
+		// Clear the client information from the worker thread
+
+		setClientInformation( null);
+
+		// Check if the session is still active
+
+		return m_sock != null;
+	}
+
+	/**
+	 * Process received data for a session serviced by the NIO session handler, called by a worker thread when
+	 * the control connection has data available. Reads the available data and processes any complete
+	 * commands. Data transfer commands are passed to the transfer thread pool, unless already running on a
+	 * transfer thread. Returns false if the session has been closed or passed to the transfer thread pool.
+	 *
+	 * @param transferThread boolean
+	 * @return boolean
+	 */
+	protected final boolean processControlData( boolean transferThread) {
+
+		// Set the client information for the current worker thread
+
+		setClientInformation( m_nioClientInfo);
+		boolean queueTransfer = false;
+
+		try {
+
+			// Read the available data, check if the client has closed the connection
+
+			if ( readControlData() == false) {
+
+				// DEBUG
+
+				if ( Debug.EnableWarn && hasDebug(DBG_STATE))
+					debugPrintln("Socket closed by remote client");
+
+				closeSession();
+			}
+
+			// Process the received commands
+
+			while ( m_sock != null && m_ftpCmdList.size() > 0) {
+
+				// Pass data transfer commands to the transfer thread pool
+
+				if ( transferThread == false && isDataTransferCommand( m_ftpCmdList.get(0).isCommand())) {
+					queueTransfer = true;
+					break;
+				}
+
+				// Process the command
+
+				processCommand( m_ftpCmdList.remove(0));
+
+				// Commit/rollback a transaction that the filesystem driver may have stored in the
+				// session
+
+				endTransaction();
+			}
+		}
+		catch (SocketException ex) {
+
+			// DEBUG
+
+			if ( Debug.EnableWarn && hasDebug(DBG_STATE))
+				debugPrintln("Socket closed by remote client");
+
+			closeSession();
+		}
+		catch (Exception ex) {
+
+			// Output the exception details, and close the session
+
+			if ( isShutdown() == false)
+				debugPrintln(ex);
+
+			closeSession();
+		}
+
+		// Save the client information, and clear it from the worker thread
+
+		m_nioClientInfo = getClientInformation();
+		setClientInformation( null);
+
+		// Queue the session to the transfer thread pool, after the client information has been saved
+
+		if ( queueTransfer && m_sock != null) {
+			m_nioHandler.queueTransferRequest( this);
+			return false;
+		}
+
+		// Check if the session is still active
+
+		return m_sock != null;
+	}
+
+	/**
+	 * Check if a command uses the data connection
+	 *
+	 * @param cmd int
+	 * @return boolean
+	 */
+	private static final boolean isDataTransferCommand( int cmd) {
+
+		switch ( cmd) {
+			case FTPCommand.Retr:
+			case FTPCommand.Stor:
+			case FTPCommand.Stou:
+			case FTPCommand.Appe:
+			case FTPCommand.List:
+			case FTPCommand.Nlst:
+			case FTPCommand.MLsd:
+				return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Read the available data from the control connection without blocking, and queue any complete commands.
+	 * Returns false if the client has closed the connection.
+	 *
+	 * @return boolean
+	 * @exception IOException
+	 */
+	private final boolean readControlData()
+		throws IOException {
+
+		// Read until there is no more data available, or the command queue is full. Any remaining data is
+		// left on the socket until the queued commands have been processed.
+
+		while ( m_sockChannel != null && m_ftpCmdList.size() < MaxQueuedCommands) {
+
+			// Check if the received data is encrypted
+
+			SSLEngine sslEngine = m_sslEngine != null ? m_sslEngine : m_sslClosing;
+
+			if ( sslEngine != null) {
+
+				// Allocate the SSL/TLS buffers, or extend the network buffer if full
+
+				if ( m_sslNetIn == null) {
+					SSLSession sslSess = sslEngine.getSession();
+
+					m_sslNetIn  = ByteBuffer.allocate( sslSess.getPacketBufferSize());
+					m_sslNetOut = ByteBuffer.allocate( sslSess.getPacketBufferSize());
+					m_sslAppIn  = ByteBuffer.allocate( sslSess.getApplicationBufferSize() + 50);
+				}
+				else if ( m_sslNetIn.hasRemaining() == false) {
+					ByteBuffer newBuf = ByteBuffer.allocate( m_sslNetIn.capacity() * 2);
+					m_sslNetIn.flip();
+					newBuf.put( m_sslNetIn);
+					m_sslNetIn = newBuf;
+				}
+
+				// Read the encrypted data
+
+				int rdlen = m_sockChannel.read( m_sslNetIn);
+
+				if ( rdlen == -1)
+					return false;
+				else if ( rdlen == 0)
+					break;
+
+				// Decrypt the received data, and run the handshake
+
+				if ( processSSLData( sslEngine) == false)
+					return false;
+			}
+			else {
+
+				// Read the plaintext command data
+
+				ByteBuffer rdBuf = ByteBuffer.wrap( m_inbuf);
+				int rdlen = m_sockChannel.read( rdBuf);
+
+				if ( rdlen == -1)
+					return false;
+				else if ( rdlen == 0)
+					break;
+
+				// DEBUG
+
+				if ( Debug.EnableInfo && hasDebug(DBG_RXDATA))
+					debugPrintln("Received " + rdlen + " bytes");
+
+				// Add the data to the current command
+
+				addCommandData( m_inbuf, 0, rdlen);
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Decrypt the received SSL/TLS data, and continue the handshake if required. Returns false if the client
+	 * has closed the secure session.
+	 *
+	 * @param sslEngine SSLEngine
+	 * @return boolean
+	 * @exception IOException
+	 */
+	private final boolean processSSLData( SSLEngine sslEngine)
+		throws IOException {
+
+		// Switch the network buffer to read mode
+
+		m_sslNetIn.flip();
+
+		try {
+
+			while ( true) {
+
+				// Decrypt the available data
+
+				m_sslAppIn.clear();
+				SSLEngineResult sslRes = sslEngine.unwrap( m_sslNetIn, m_sslAppIn);
+
+				// DEBUG
+
+				if ( Debug.EnableDbg && hasDebug(DBG_SSL))
+					debugPrintln("SSL unwrap() returned " + sslRes.bytesProduced() + " bytes, res=" + sslRes);
+
+				// Add any decrypted data to the current command
+
+				if ( sslRes.bytesProduced() > 0)
+					addCommandData( m_sslAppIn.array(), 0, sslRes.bytesProduced());
+
+				// Run any handshake tasks in the current thread, and send handshake data to the client
+
+				HandshakeStatus hsSts = runSSLTasks( sslEngine);
+
+				if ( hsSts == HandshakeStatus.NEED_WRAP) {
+					wrapSSLHandshake( sslEngine);
+					hsSts = sslEngine.getHandshakeStatus();
+				}
+
+				// Check if the client has closed the secure session
+
+				if ( sslRes.getStatus() == SSLEngineResult.Status.CLOSED || sslEngine.isInboundDone()) {
+
+					// Check if the secure session was closed by a CCC command, any remaining data is plaintext
+
+					if ( sslEngine == m_sslClosing) {
+
+						// DEBUG
+
+						if ( Debug.EnableDbg && hasDebug(DBG_SSL))
+							debugPrintln("SSL session closed, remaining=" + m_sslNetIn.remaining());
+
+						if ( m_sslNetIn.hasRemaining())
+							addCommandData( m_sslNetIn.array(), m_sslNetIn.position(), m_sslNetIn.remaining());
+
+						m_sslClosing = null;
+						m_sslNetIn   = null;
+						m_sslNetOut  = null;
+						m_sslAppIn   = null;
+
+						return true;
+					}
+
+					// Client has closed the secure session
+
+					return false;
+				}
+
+				// Check if the decrypted data buffer needs to be extended
+
+				if ( sslRes.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+					m_sslAppIn = ByteBuffer.allocate( Math.max( m_sslAppIn.capacity() * 2, sslEngine.getSession().getApplicationBufferSize()));
+					continue;
+				}
+
+				// Stop when more data is needed, or there is no more data to decrypt
+
+				if ( sslRes.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW || m_sslNetIn.hasRemaining() == false)
+					break;
+
+				if ( sslRes.bytesConsumed() == 0 && sslRes.bytesProduced() == 0 && hsSts != HandshakeStatus.NEED_UNWRAP)
+					break;
+			}
+		}
+		finally {
+
+			// Switch the network buffer back to write mode, keep any partial record
+
+			if ( m_sslNetIn != null)
+				m_sslNetIn.compact();
+		}
+
+		return true;
+	}
+
+	/**
+	 * Run the delegated SSL engine tasks in the current thread, and return the handshake status
+	 *
+	 * @param sslEngine SSLEngine
+	 * @return HandshakeStatus
+	 */
+	private final HandshakeStatus runSSLTasks( SSLEngine sslEngine) {
+
+		Runnable task = null;
+
+		while ( sslEngine.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+			while (( task = sslEngine.getDelegatedTask()) != null)
+				task.run();
+		}
+
+		return sslEngine.getHandshakeStatus();
+	}
+
+	/**
+	 * Generate the SSL/TLS handshake data whilst the engine needs to wrap, and send it to the client
+	 *
+	 * @param sslEngine SSLEngine
+	 * @exception IOException
+	 */
+	private final void wrapSSLHandshake( SSLEngine sslEngine)
+		throws IOException {
+
+		// Allocate the network output buffer, if not already allocated
+
+		if ( m_sslNetOut == null)
+			m_sslNetOut = ByteBuffer.allocate( sslEngine.getSession().getPacketBufferSize());
+
+		ByteBuffer emptyBuf = ByteBuffer.allocate( 0);
+
+		while ( sslEngine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP) {
+
+			// Generate the handshake data
+
+			m_sslNetOut.clear();
+			SSLEngineResult sslRes = sslEngine.wrap( emptyBuf, m_sslNetOut);
+
+			// DEBUG
+
+			if ( Debug.EnableDbg && hasDebug(DBG_SSL))
+				debugPrintln("SSL wrap() returned " + sslRes.bytesProduced() + " bytes, res=" + sslRes);
+
+			// Send the handshake data to the client
+
+			m_sslNetOut.flip();
+
+			if ( m_sslNetOut.hasRemaining()) {
+				getControlOutputStream().write( m_sslNetOut.array(), 0, m_sslNetOut.remaining());
+				getControlOutputStream().flush();
+			}
+
+			// Check if the output buffer needs to be extended, or the engine has been closed
+
+			if ( sslRes.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW)
+				m_sslNetOut = ByteBuffer.allocate( m_sslNetOut.capacity() * 2);
+			else if ( sslRes.getStatus() == SSLEngineResult.Status.CLOSED)
+				break;
+
+			// Run any handshake tasks
+
+			runSSLTasks( sslEngine);
+		}
+	}
+
+	/**
+	 * Add received data to the current command, complete commands are queued for processing. Commands that
+	 * are larger than the maximum command buffer size are discarded.
+	 *
+	 * @param buf byte[]
+	 * @param off int
+	 * @param len int
+	 * @exception IOException
+	 */
+	private final void addCommandData( byte[] buf, int off, int len)
+		throws IOException {
+
+		int endPos = off + len;
+
+		while ( off < endPos) {
+
+			// Find the end of the current command
+
+			int pos = off;
+			while ( pos < endPos && buf[pos] != '\n')
+				pos++;
+
+			// Add the data to the command buffer, unless the command is being discarded
+
+			int cpylen = pos - off;
+
+			if ( m_rxDiscard == false) {
+
+				// Check if the command buffer needs to be extended
+
+				if ( m_rxlen + cpylen > m_rxbuf.length) {
+
+					if ( m_rxlen + cpylen > MaxCommandBufSize) {
+
+						// Command is too large, discard it
+
+						m_rxDiscard = true;
+						m_rxlen = 0;
+
+						// DEBUG
+
+						if ( Debug.EnableInfo && hasDebug(DBG_RXDATA))
+							debugPrintln("Received command too large, ignored");
+					}
+					else {
+
+						// Extend the command buffer
+
+						byte[] newbuf = new byte[ Math.min( Math.max( m_rxbuf.length * 2, m_rxlen + cpylen), MaxCommandBufSize)];
+						System.arraycopy( m_rxbuf, 0, newbuf, 0, m_rxlen);
+						m_rxbuf = newbuf;
+
+						// DEBUG
+
+						if ( Debug.EnableInfo && hasDebug(DBG_RXDATA))
+							debugPrintln("Extended command buffer to " + m_rxbuf.length + " bytes");
+					}
+				}
+
+				if ( m_rxDiscard == false) {
+					System.arraycopy( buf, off, m_rxbuf, m_rxlen, cpylen);
+					m_rxlen += cpylen;
+				}
+			}
+
+			// Check if the command is complete
+
+			if ( pos < endPos) {
+
+				// Queue the command, unless it has been discarded
+
+				if ( m_rxDiscard == false) {
+
+					// Trim the trailing <CR>
+
+					int cmdlen = m_rxlen;
+					while ( cmdlen > 0 && ( m_rxbuf[cmdlen - 1] == '\r' || m_rxbuf[cmdlen - 1] == '\n'))
+						cmdlen--;
+
+					// Get the command string, create the new request
+
+					if ( cmdlen > 0) {
+						String cmd = null;
+
+						if ( isUTF8Enabled())
+							cmd = m_normalizer.normalize(new String(m_rxbuf, 0, cmdlen, "UTF8"));
+						else
+							cmd = new String(m_rxbuf, 0, cmdlen);
+
+						m_ftpCmdList.add( new FTPRequest(cmd));
+					}
+				}
+
+				// Reset the command buffer
+
+				m_rxlen = 0;
+				m_rxDiscard = false;
+
+				pos++;
+			}
+
+			off = pos;
+		}
+	}
+
+	/**
+	 * Check if an abort command has been received by a session that is serviced by the NIO session handler,
+	 * other commands are queued for processing when the current command completes
+	 *
+	 * @return boolean
+	 */
+	private final boolean checkForQueuedAbort() {
+
+		try {
+
+			// Read any data that is available on the control connection
+
+			if ( readControlData() == false) {
+
+				// Client has closed the control connection, abort the transfer. The session is closed once the
+				// transfer has been cleaned up.
+
+				return true;
+			}
+
+			// Check for an abort command
+
+			for ( int i = 0; i < m_ftpCmdList.size(); i++) {
+
+				if ( m_ftpCmdList.get(i).isCommand() == FTPCommand.Abor) {
+
+					// Remove the abort command from the queue
+
+					m_ftpCmdList.remove(i);
+
+					// DEBUG
+
+					if ( Debug.EnableDbg && hasDebug(DBG_FILEIO))
+						debugPrintln("Transfer aborted by client");
+
+					// Indicate an abort has been received
+
+					return true;
+				}
+			}
+		}
+		catch (IOException ex) {
+
+			// DEBUG
+
+			if ( Debug.EnableError && hasDebug(DBG_ERROR))
+				debugPrintln("Error during check for abort, " + ex.toString());
+		}
+
+		// No abort command
+
+		return false;
+	}
+
+	/**
+	 * Return the output stream for the control connection
+	 *
+	 * @return OutputStream
+	 * @exception IOException
+	 */
+	private final OutputStream getControlOutputStream()
+		throws IOException {
+		return m_chanOut != null ? m_chanOut : m_sock.getOutputStream();
+	}
+
+	/**
+	 * Channel Output Stream Class
+	 *
+	 * <p>Writes data to the non-blocking control connection socket channel, waits for the channel to
+	 * become writeable if the socket buffer is full.
+	 */
+	private class ChannelOutputStream extends OutputStream {
+
+		/**
+		 * Write a byte to the channel
+		 *
+		 * @param b int
+		 * @exception IOException
+		 */
+		public void write(int b)
+			throws IOException {
+			write( new byte[] { (byte) b }, 0, 1);
+		}
+
+		/**
+		 * Write data to the channel
+		 *
+		 * @param buf byte[]
+		 * @param off int
+		 * @param len int
+		 * @exception IOException
+		 */
+		public void write(byte[] buf, int off, int len)
+			throws IOException {
+
+			// Check if the session has been closed
+
+			SocketChannel sockChannel = m_sockChannel;
+			if ( m_sock == null || sockChannel == null)
+				throw new SocketException("Control connection closed");
+
+			// Write the data, wait for the channel to become writeable if required
+
+			ByteBuffer wrBuf = ByteBuffer.wrap( buf, off, len);
+			Selector selector = null;
+
+			try {
+				while ( wrBuf.hasRemaining()) {
+
+					if ( sockChannel.write( wrBuf) == 0) {
+
+						// Wait for the socket to become writeable
+
+						if ( selector == null) {
+							selector = Selector.open();
+							sockChannel.register( selector, SelectionKey.OP_WRITE);
+						}
+
+						if ( selector.select( ControlWriteTimeout) == 0)
+							throw new SocketTimeoutException("Control connection write timed out");
+						selector.selectedKeys().clear();
+					}
+				}
+			}
+			finally {
+
+				// Close the temporary selector
+
+				if ( selector != null)
+					selector.close();
+			}
+		}
+	}
+
+	/**
+	 * Check if an abort command has been sent by the client
+	 *
+	 * @return boolean
+	 */
+	private final boolean checkForAbort() {
+
+		// Check if the session is serviced by the NIO session handler
+
+		if ( m_sockChannel != null)
+			return checkForQueuedAbort();
+
+		try {
+
+			// Check if there is any pending data on the command socket
+
+			if ( m_in.available() > 0) {
+
+				// Read the next request
+
+				FTPRequest ftpReq = getNextCommand(false);
+				if ( ftpReq != null) {
+
+					// Check for an abort command
+
+					if ( ftpReq.isCommand() == FTPCommand.Abor) {
+
+						// DEBUG
+
+						if ( Debug.EnableDbg && hasDebug(DBG_FILEIO))
+							debugPrintln("Transfer aborted by client");
+
+						// Indicate an abort has been received
+
+						return true;
+					}
+					else {
+
+						// Queue the request for processing later
+
+						m_ftpCmdList.add(ftpReq);
+					}
+				}
+			}
+		}
+		catch (IOException ex) {
+
+			// DEBUG
+
+			if ( Debug.EnableError && hasDebug(DBG_ERROR))
+				debugPrintln("Error during check for abort, " + ex.toString());
+		}
+
+		// No command, or not an abort command
+
+		return false;
+	}
+
+	/**
+	 * Read the next FTP command from the command socket, or get a command from the list of queued
+	 * requests
+	 *
+	 * @param checkQueue boolean
+	 * @return FTPRequest
+	 * @exception SocketException
+	 * @exception IOException
+	 */
+	private final FTPRequest getNextCommand(boolean checkQueue)
+		throws SocketException, IOException {
+
+		// Check if there are any queued requests
+
+		FTPRequest nextReq = null;
+
+		if ( checkQueue == true && m_ftpCmdList.size() > 0) {
+
+			// Get the next queued request
+
+			nextReq = m_ftpCmdList.remove(0);
+		}
+		else {
+
+		    // Loop until a valid request is received, or the connection is closed
+
+		    while ( nextReq == null) {
+
+    			// Wait for an incoming request
+
+    			int rdlen = m_in.read(m_inbuf);
+
+    			// Check if there is no more data, the other side has dropped the connection
+
+    			if ( rdlen == -1) {
+    				closeSession();
+    				return null;
+    			}
+    			else if ( rdlen == m_inbuf.length) {
+
+    				// Looks like there is more data to be read for the current command, we need to extend the buffer
+    				//
+    				// Check if the command buffer has already been extended to the maximum size
+
+    				if ( m_inbuf.length < MaxCommandBufSize) {
+
+    					// Extend the command buffer
+
+    					int curLen = m_inbuf.length;
+    					int availLen = m_in.available();
+    					int newLen = Math.max( m_inbuf.length * 2, curLen + availLen + 50);
+
+    					if ( newLen > MaxCommandBufSize)
+    						newLen = MaxCommandBufSize;
+
+    					// Check if the new buffer size is large enough for the current command
+
+    					if ( newLen > (curLen + availLen)) {
+
+    						// Allocate a new buffer and copy the existing data over to it
+
+    						byte[] newbuf = new byte[newLen];
+    						System.arraycopy( m_inbuf, 0, newbuf, 0, m_inbuf.length);
+
+    						// Move the new command buffer into place
+
+    						m_inbuf = newbuf;
+
+        					// DEBUG
+
+        					if ( Debug.EnableInfo && hasDebug(DBG_RXDATA))
+        						debugPrintln("Extended command buffer to " + m_inbuf.length + " bytes");
+
+    						// Read the remaining data
+
+    						int rdlen2 = m_in.read( m_inbuf, curLen, m_inbuf.length - curLen);
+    						if ( rdlen2 == -1) {
+    		    				closeSession();
+    		    				return null;
+    		    			}
+    						else {
+
+    							// Calculate the total read length
+
+    							rdlen = rdlen + rdlen2;
+
+    							// DEBUG
+
+            					if ( Debug.EnableInfo && hasDebug(DBG_RXDATA))
+            						debugPrintln("Secondary read " + rdlen2 + " bytes, total bytes read " + rdlen);
+    						}
+    					}
+    				}
+    				else {
+
+    					// Command is too large, clear any pending data on the command socket and ignore it
+
+    					clearCommandSocket();
+
+    					// DEBUG
+
+    					if ( Debug.EnableInfo && hasDebug(DBG_RXDATA))
+    						debugPrintln("Received command too large, ignored");
+
+    					return null;
+    				}
+
+    			}
+
+    			// If there is an SSL engine associated with this session then decrypt the received data
+
+    			if ( m_sslEngine != null)
+    			    rdlen = getSSLCommand( m_inbuf, rdlen);
+
+    			// Trim the trailing <CR><LF>
+
+    			if ( rdlen > 0) {
+    				while (rdlen > 0 && m_inbuf[rdlen - 1] == '\r' || m_inbuf[rdlen - 1] == '\n')
+    					rdlen--;
+
+        			// Get the command string, create the new request
+
+        			String cmd = null;
+
+        			if ( isUTF8Enabled()) {
+        				cmd = m_normalizer.normalize(new String(m_inbuf, 0, rdlen, "UTF8"));
+        			}
+        			else
+        				cmd = new String(m_inbuf, 0, rdlen);
+
+        			nextReq = new FTPRequest(cmd);
+    			}
+		    }
+		}
+
+		// Return the request
+
+		return nextReq;
+	}
+
+	/**
+	 * Clear the command socket of pending data
+	 *
+	 * @exception IOException
+	 */
+	protected void clearCommandSocket()
+		throws IOException {
+
+		// Loop until all data has been cleared from the command socket or the socket is closed
+
+		int rdlen = 0;
+
+		while ( m_in.available() > 0 && rdlen >= 0) {
+
+			// Read a block of data from the command socket
+
+			rdlen = m_in.read( m_inbuf);
+			if ( rdlen == -1)
+				closeSession();
+		}
+	}
+
+	/**
+	 * Get the next command data on an SSL/TLS encrypted connection
+	 *
+	 * @param buf byte[]
+	 * @param len int
+	 * @return int
+	 * @exception SocketException
+	 * @exception IOException
+	 */
+	protected final int getSSLCommand( byte[] buf, int len)
+	    throws SocketException, IOException {
+
+
+	    m_sslIn.limit( m_sslIn.capacity());
+	    m_sslIn.position( len);
+	    m_sslIn.flip();
+
+	    m_sslOut.clear();
+
+        // Get the SSL engine status
+
+        SSLEngineResult sslRes = m_sslEngine.unwrap( m_sslIn, m_sslOut);
+        while(m_sslIn.position() < len)
+        {
+            sslRes = m_sslEngine.unwrap( m_sslIn, m_sslOut);
+        }
+
+        // DEBUG
+
+		if ( Debug.EnableDbg && hasDebug(DBG_SSL))
+			debugPrintln("SSL unwrap() len=" + len + ", returned " + sslRes.bytesProduced() + " bytes, res=" + sslRes);
+
+        int unwrapLen = sslRes.bytesProduced();
+        boolean loopDone = false;
+        Runnable task = null;
+
+        while ( loopDone == false && m_sslEngine.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING &&
+        		sslRes.getStatus() != SSLEngineResult.Status.CLOSED) {
+
+            switch ( m_sslEngine.getHandshakeStatus()) {
+                case NEED_TASK:
 
                 	// DEBUG
 
@@ -4860,6 +5984,146 @@ public class FTPSrvSession extends SrvSession implements Runnable {
         m_sslIn = ByteBuffer.wrap( m_inbuf);
 	}
 
+	/**
+	 * Receive file data from the data connection directly into a file channel, until the client closes the
+	 * data connection. Returns true if the transfer was aborted.
+	 *
+	 * @param sockChan SocketChannel
+	 * @param fileChan FileChannel
+	 * @param filePos long
+	 * @param netFile NetworkFile
+	 * @return boolean
+	 * @exception IOException
+	 */
+	private final boolean receiveFileData(SocketChannel sockChan, FileChannel fileChan, long filePos, NetworkFile netFile)
+		throws IOException {
+
+		// DEBUG
+
+		if ( Debug.EnableInfo && hasDebug(DBG_FILEIO))
+			debugPrintln(" Zero copy receive, pos=" + filePos);
+
+		// Use a selector to wait for data so the session timeout applies to the data connection
+
+		int tmo = getFTPServer().getFTPConfiguration().getFTPSrvSessionTimeout();
+		Selector selector = Selector.open();
+		boolean abort = false;
+
+		try {
+
+			// Register the data connection for reads
+
+			sockChan.configureBlocking(false);
+			sockChan.register(selector, SelectionKey.OP_READ);
+
+			ByteBuffer probeBuf = ByteBuffer.allocate(1);
+			long waitStart = System.currentTimeMillis();
+
+			while (abort == false) {
+
+				// Wait for data from the client, the select may return early due to a wakeup so the timeout is
+				// checked using the time since data was last received
+
+				long waitTime = 0L;
+
+				if ( tmo > 0) {
+					waitTime = tmo - ( System.currentTimeMillis() - waitStart);
+					if ( waitTime <= 0)
+						throw new SocketTimeoutException("Data connection timed out");
+				}
+
+				if ( selector.select(waitTime) == 0)
+					continue;
+				selector.selectedKeys().clear();
+
+				// Transfer the available data to the file
+
+				long cnt = fileChan.transferFrom(sockChan, filePos, ZeroCopyTransferSize);
+
+				if ( cnt == 0) {
+
+					// transferFrom does not report end of stream, read from the socket to check if the client
+					// has closed the connection
+
+					probeBuf.clear();
+					int rxLen = sockChan.read(probeBuf);
+
+					if ( rxLen == -1)
+						break;
+					else if ( rxLen == 0)
+						continue;
+
+					// Write the received byte to the file
+
+					probeBuf.flip();
+					cnt = fileChan.write(probeBuf, filePos);
+				}
+
+				waitStart = System.currentTimeMillis();
+
+				// Update the file position and write count
+
+				filePos += cnt;
+				netFile.incrementWriteCount();
+
+				// Check if the file transfer has been aborted
+
+				abort = checkForAbort();
+			}
+		}
+		finally {
+
+			// Close the selector, this also deregisters the data connection
+
+			selector.close();
+		}
+
+		// DEBUG
+
+		if ( Debug.EnableInfo && hasDebug(DBG_FILEIO))
+			debugPrintln(" Zero copy receive complete, pos=" + filePos);
+
+		return abort;
+	}
+
+	/**
+	 * Allocate a buffer for file data transfers, from the FTP server transfer buffer pool if available
+	 *
+	 * @return byte[]
+	 */
+	private final byte[] allocateTransferBuffer() {
+
+		// Use a buffer from the FTP transfer buffer pool, the pool is not shared with the SMB server
+
+		ByteBufferPool bufPool = getFTPServer().getTransferBufferPool();
+
+		if ( bufPool != null) {
+			byte[] buf = bufPool.allocateBuffer( bufPool.getLargestSize());
+			if ( buf != null)
+				return buf;
+		}
+
+		// Allocate a buffer, the buffer pool is not available or there are no buffers available
+
+		return new byte[DEFAULT_BUFFERSIZE];
+	}
+
+	/**
+	 * Release a file data transfer buffer
+	 *
+	 * @param buf byte[]
+	 */
+	private final void releaseTransferBuffer(byte[] buf) {
+
+		// Only buffers allocated from the transfer buffer pool are released, pool buffers are a different size to
+		// the default size
+
+		ByteBufferPool bufPool = getFTPServer().getTransferBufferPool();
+
+		if ( bufPool != null && buf.length != DEFAULT_BUFFERSIZE)
+			bufPool.releaseBuffer( buf);
+	}
+
 	/**
 	 * Check if the session is in SSL/TLS mode
 	 *
@@ -5027,11 +6291,6 @@ public class FTPSrvSession extends SrvSession implements Runnable {
 
 			sendFTPResponse(220, "FTP server ready");
 
-			// Start/end times if timing debug is enabled
-
-			long startTime = 0L;
-			long endTime = 0L;
-
 			// The server session loops until the NetBIOS hangup state is set.
 
 			FTPRequest ftpReq = null;
@@ -5044,297 +6303,9 @@ public class FTPSrvSession extends SrvSession implements Runnable {
 				if ( ftpReq == null)
 					continue;
 
-				// Debug
-
-				if ( Debug.EnableInfo && hasDebug(DBG_TIMING))
-					startTime = System.currentTimeMillis();
-
-				if ( Debug.EnableInfo && hasDebug(DBG_RXDATA))
-					debugPrintln("Rx cmd=" + ftpReq);
-
-				// Parse the received command, and validate
-
-				switch (ftpReq.isCommand()) {
-
-					// User command
-
-					case FTPCommand.User:
-						procUser(ftpReq);
-						break;
-
-					// Password command
-
-					case FTPCommand.Pass:
-						procPassword(ftpReq);
-						break;
-
-					// Quit command
-
-					case FTPCommand.Quit:
-						procQuit(ftpReq);
-						break;
-
-					// Type command
-
-					case FTPCommand.Type:
-						procType(ftpReq);
-						break;
-
-					// Port command
-
-					case FTPCommand.Port:
-						procPort(ftpReq);
-						break;
-
-					// Passive command
-
-					case FTPCommand.Pasv:
-						procPassive(ftpReq);
-						break;
-
-					// Restart position command
-
-					case FTPCommand.Rest:
-						procRestart(ftpReq);
-						break;
-
-					// Return file command
-
-					case FTPCommand.Retr:
-						procReturnFile(ftpReq);
-
-						// Reset the restart position
-
-						m_restartPos = 0;
-						break;
-
-					// Store file command
-
-					case FTPCommand.Stor:
-						procStoreFile(ftpReq, false);
-						break;
-
-					// Append file command
-
-					case FTPCommand.Appe:
-						procStoreFile(ftpReq, true);
-						break;
-
-					// Print working directory command
-
-					case FTPCommand.Pwd:
-					case FTPCommand.XPwd:
-						procPrintWorkDir(ftpReq);
-						break;
-
-					// Change working directory command
-
-					case FTPCommand.Cwd:
-					case FTPCommand.XCwd:
-						procChangeWorkDir(ftpReq);
-						break;
-
-					// Change to previous directory command
-
-					case FTPCommand.Cdup:
-					case FTPCommand.XCup:
-						procCdup(ftpReq);
-						break;
-
-					// Full directory listing command
-
-					case FTPCommand.List:
-						procList(ftpReq);
-						break;
-
-					// Short directory listing command
-
-					case FTPCommand.Nlst:
-						procNList(ftpReq);
-						break;
-
-					// Delete file command
-
-					case FTPCommand.Dele:
-						procDeleteFile(ftpReq);
-						break;
-
-					// Rename file from command
-
-					case FTPCommand.Rnfr:
-						procRenameFrom(ftpReq);
-						break;
-
-					// Rename file to comand
-
-					case FTPCommand.Rnto:
-						procRenameTo(ftpReq);
-						break;
-
-					// Create new directory command
-
-					case FTPCommand.Mkd:
-					case FTPCommand.XMkd:
-						procCreateDirectory(ftpReq);
-						break;
-
-					// Delete directory command
-
-					case FTPCommand.Rmd:
-					case FTPCommand.XRmd:
-						procRemoveDirectory(ftpReq);
-						break;
-
-					// Return file size command
-
-					case FTPCommand.Size:
-						procFileSize(ftpReq);
-						break;
-
-					// Return the modification date/time
-
-					case FTPCommand.Mdtm:
-						procGetModifyDateTime(ftpReq);
-						break;
-
-					// Set modify date/time command
+				// Process the command
 
-					case FTPCommand.Mfmt:
-						procModifyDateTime(ftpReq);
-						break;
-
-					// System status command
-
-					case FTPCommand.Syst:
-						procSystemStatus(ftpReq);
-						break;
-
-					// Server status command
-
-					case FTPCommand.Stat:
-						procServerStatus(ftpReq);
-						break;
-
-					// Help command
-
-					case FTPCommand.Help:
-						procHelp(ftpReq);
-						break;
-
-					// No-op command
-
-					case FTPCommand.Noop:
-						procNoop(ftpReq);
-						break;
-
-					// Abort command
-
-					case FTPCommand.Abor:
-						procAbort(ftpReq);
-						break;
-
-					// Server features command
-
-					case FTPCommand.Feat:
-						procFeatures(ftpReq);
-						break;
-
-					// Options command
-
-					case FTPCommand.Opts:
-						procOptions(ftpReq);
-						break;
-
-					// Machine listing, single folder
-
-					case FTPCommand.MLst:
-						procMachineListing(ftpReq);
-						break;
-
-					// Machine listing, folder contents
-
-					case FTPCommand.MLsd:
-						procMachineListingContents(ftpReq);
-						break;
-
-					// Site specific commands
-
-					case FTPCommand.Site:
-						procSite(ftpReq);
-						break;
-
-					// Structure command (obsolete)
-
-					case FTPCommand.Stru:
-						procStructure(ftpReq);
-						break;
-
-					// Mode command (obsolete)
-
-					case FTPCommand.Mode:
-						procMode(ftpReq);
-						break;
-
-					// Allocate command (obsolete)
-
-					case FTPCommand.Allo:
-						procAllocate(ftpReq);
-						break;
-
-					// Extended Port command
-
-					case FTPCommand.EPrt:
-						procExtendedPort(ftpReq);
-						break;
-
-					// Extended Passive command
-
-					case FTPCommand.EPsv:
-						procExtendedPassive(ftpReq);
-						break;
-
-					// SSL/TLS authentication
-
-					case FTPCommand.Auth:
-						procAuth(ftpReq);
-						break;
-
-					// Protected buffer size
-
-					case FTPCommand.Pbsz:
-					    procProtectedBufferSize( ftpReq);
-					    break;
-
-					// Data channel protection level
-
-					case FTPCommand.Prot:
-					    procDataChannelProtection( ftpReq);
-					    break;
-
-					// Clear command channel
-
-					case FTPCommand.Ccc:
-						procClearCommandChannel( ftpReq);
-						break;
-
-					// Unknown/unimplemented command
-
-					default:
-						if ( ftpReq.isCommand() != FTPCommand.InvalidCmd)
-							sendFTPResponse(502, "Command " + FTPCommand.getCommandName(ftpReq.isCommand()) + " not implemented");
-						else
-							sendFTPResponse(502, "Command not implemented");
-						break;
-				}
-
-				// Debug
-
-				if ( Debug.EnableInfo && hasDebug(DBG_TIMING)) {
-					endTime = System.currentTimeMillis();
-					long duration = endTime - startTime;
-					if ( duration > 20)
-						debugPrintln("Processed cmd " + FTPCommand.getCommandName(ftpReq.isCommand()) + " in " + duration + "ms");
-				}
+				processCommand(ftpReq);
 
 				// Commit/rollback a transaction that the filesystem driver may have stored in the
 				// session
@@ -0,0 +1,450 @@
+/*
+ * Copyright (C) 2006-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.alfresco.jlan.ftp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Vector;
+
+import org.alfresco.jlan.debug.Debug;
+import org.alfresco.jlan.server.NetworkServer;
+import org.alfresco.jlan.server.SessionHandlerBase;
+import org.alfresco.jlan.server.config.CoreServerConfigSection;
+import org.alfresco.jlan.server.thread.ThreadRequest;
+import org.alfresco.jlan.server.thread.ThreadRequestPool;
+
+/**
+ * NIO FTP Session Handler Class
+ *
+ * <p>Accepts FTP control sessions and waits for command data on all idle sessions using a single selector
+ * thread. When a session has data available the session is passed to a worker thread that reads and processes
+ * the available commands, so an idle FTP session does not use a thread.
+ *
+ * <p>Data transfer commands, that may run for a long time, are processed using a separate transfer thread pool
+ * so that transfers do not hold the worker threads used to process commands for other sessions.
+ *
+ * @author gkspencer
+ */
+public class NIOFTPSessionHandler extends SessionHandlerBase implements Runnable {
+
+	// Selector timeout
+
+	private static final long SelectTimeout		= 30000L;
+
+	// FTP server
+
+	private FTPServer m_ftpServer;
+
+	// Request handler thread pool, and flag to indicate the thread pool was created by this handler
+
+	private ThreadRequestPool m_threadPool;
+	private boolean m_ownThreadPool;
+
+	// Data transfer thread pool
+
+	private ThreadRequestPool m_transferPool;
+
+	// Server socket channel and selector
+
+	private ServerSocketChannel m_srvSockChannel;
+	private Selector m_selector;
+
+	// List of sessions that are ready to receive more command data
+
+	private Vector<FTPSrvSession> m_interestList;
+
+	/**
+	 * Session Start Request Class
+	 *
+	 * <p>Sends the initial response to a new session, then waits for command data.
+	 */
+	private class StartSessionRequest implements ThreadRequest {
+
+		// Session to start
+
+		private FTPSrvSession m_sess;
+
+		/**
+		 * Class constructor
+		 *
+		 * @param sess FTPSrvSession
+		 */
+		public StartSessionRequest(FTPSrvSession sess) {
+			m_sess = sess;
+		}
+
+		/**
+		 * Run the request
+		 */
+		public void runRequest() {
+			if ( m_sess.startControlSession())
+				requestReceive(m_sess);
+		}
+	}
+
+	/**
+	 * Command Data Request Class
+	 *
+	 * <p>Reads and processes the available command data for a session, then waits for more command data.
+	 */
+	private class CommandDataRequest implements ThreadRequest {
+
+		// Session that has command data available
+
+		private FTPSrvSession m_sess;
+
+		/**
+		 * Class constructor
+		 *
+		 * @param sess FTPSrvSession
+		 */
+		public CommandDataRequest(FTPSrvSession sess) {
+			m_sess = sess;
+		}
+
+		/**
+		 * Run the request
+		 */
+		public void runRequest() {
+			if ( m_sess.processControlData( false))
+				requestReceive(m_sess);
+		}
+	}
+
+	/**
+	 * Data Transfer Request Class
+	 *
+	 * <p>Processes the queued commands for a session, starting with a data transfer command, then waits for
+	 * more command data.
+	 */
+	private class TransferRequest implements ThreadRequest {
+
+		// Session that has a data transfer command queued
+
+		private FTPSrvSession m_sess;
+
+		/**
+		 * Class constructor
+		 *
+		 * @param sess FTPSrvSession
+		 */
+		public TransferRequest(FTPSrvSession sess) {
+			m_sess = sess;
+		}
+
+		/**
+		 * Run the request
+		 */
+		public void runRequest() {
+			if ( m_sess.processControlData( true))
+				requestReceive(m_sess);
+		}
+	}
+
+	/**
+	 * Class constructor
+	 *
+	 * @param server FTPServer
+	 * @param addr InetAddress
+	 * @param port int
+	 */
+	public NIOFTPSessionHandler(FTPServer server, InetAddress addr, int port) {
+		super("FTP", "FTP", server, addr, port);
+
+		m_ftpServer = server;
+		m_interestList = new Vector<FTPSrvSession>();
+	}
+
+	/**
+	 * Initialize the session handler
+	 *
+	 * @param server NetworkServer
+	 * @throws IOException
+	 */
+	public void initializeSessionHandler(NetworkServer server)
+		throws IOException {
+
+		// Use the core server thread pool, if available, else create a thread pool for the session handler
+
+		CoreServerConfigSection coreConfig = (CoreServerConfigSection) server.getConfiguration().getConfigSection(CoreServerConfigSection.SectionName);
+
+		if ( coreConfig != null && coreConfig.getThreadPool() != null)
+			m_threadPool = coreConfig.getThreadPool();
+		else {
+			m_threadPool = new ThreadRequestPool("FTPWorker");
+			m_ownThreadPool = true;
+		}
+
+		// Create the data transfer thread pool
+
+		FTPConfigSection ftpConfig = (FTPConfigSection) server.getConfiguration().getConfigSection(FTPConfigSection.SectionName);
+		int transferThreads = ftpConfig != null ? ftpConfig.getTransferThreads() : FTPConfigSection.DefaultTransferThreads;
+
+		m_transferPool = new ThreadRequestPool("FTPTransfer", transferThreads);
+
+		// Create the server socket channel and bind to the required address/port
+
+		m_srvSockChannel = ServerSocketChannel.open();
+
+		InetSocketAddress sockAddr = null;
+
+		if ( hasBindAddress())
+			sockAddr = new InetSocketAddress(getBindAddress(), getPort());
+		else
+			sockAddr = new InetSocketAddress(getPort());
+
+		m_srvSockChannel.socket().bind(sockAddr, getListenBacklog());
+
+		// Create the selector and register the server socket channel for incoming connections
+
+		m_selector = Selector.open();
+
+		m_srvSockChannel.configureBlocking(false);
+		m_srvSockChannel.register(m_selector, SelectionKey.OP_ACCEPT);
+
+		// DEBUG
+
+		if ( Debug.EnableInfo && hasDebug()) {
+			Debug.print("[" + getProtocolName() + "] Binding " + getHandlerName() + " NIO session handler to address : ");
+			if ( hasBindAddress())
+				Debug.println(getBindAddress().getHostAddress());
+			else
+				Debug.println("ALL");
+		}
+	}
+
+	/**
+	 * Close the session handler
+	 *
+	 * @param server NetworkServer
+	 */
+	public void closeSessionHandler(NetworkServer server) {
+
+		// Request the selector thread to shutdown
+
+		setShutdown(true);
+
+		try {
+
+			// Wakeup the selector thread, and close the server socket channel
+
+			if ( m_selector != null)
+				m_selector.wakeup();
+
+			if ( m_srvSockChannel != null)
+				m_srvSockChannel.close();
+		}
+		catch (IOException ex) {
+		}
+
+		// Shutdown the thread pool, if created by this handler
+
+		if ( m_ownThreadPool && m_threadPool != null)
+			m_threadPool.shutdownThreadPool();
+
+		// Shutdown the data transfer thread pool
+
+		if ( m_transferPool != null)
+			m_transferPool.shutdownThreadPool();
+	}
+
+	/**
+	 * Selector thread, accepts new sessions and waits for command data on idle sessions
+	 */
+	public void run() {
+
+		// Clear the shutdown flag
+
+		clearShutdown();
+
+		// Loop until shutdown
+
+		while ( hasShutdown() == false) {
+
+			try {
+
+				// Re-enable receives for sessions that have finished processing their commands
+
+				updateInterestOps();
+
+				// Wait for socket events
+
+				if ( m_selector.select(SelectTimeout) == 0)
+					continue;
+
+				// Process the socket events
+
+				Iterator<SelectionKey> keys = m_selector.selectedKeys().iterator();
+
+				while ( keys.hasNext()) {
+
+					// Get the current selection key
+
+					SelectionKey selKey = keys.next();
+					keys.remove();
+
+					if ( selKey.isValid() == false)
+						continue;
+
+					try {
+
+						// Check for a new session request, or command data for an existing session
+
+						if ( selKey.isAcceptable())
+							acceptConnections();
+						else if ( selKey.isReadable()) {
+
+							// Disable receives whilst the session is being processed by a worker thread
+
+							selKey.interestOps(0);
+							m_threadPool.queueRequest(new CommandDataRequest((FTPSrvSession) selKey.attachment()));
+						}
+					}
+					catch (CancelledKeyException ex) {
+					}
+				}
+			}
+			catch (ClosedSelectorException ex) {
+				break;
+			}
+			catch (IOException ex) {
+
+				// Only dump errors if not shutting down
+
+				if ( hasShutdown() == false)
+					Debug.println(ex);
+			}
+		}
+
+		// Close the selector
+
+		try {
+			m_selector.close();
+		}
+		catch (IOException ex) {
+		}
+
+		// DEBUG
+
+		if ( Debug.EnableInfo && hasDebug())
+			Debug.println("[" + getProtocolName() + "] NIO session handler closed");
+	}
+
+	/**
+	 * Accept pending session requests
+	 *
+	 * @throws IOException
+	 */
+	protected final void acceptConnections()
+		throws IOException {
+
+		// Accept all pending connections
+
+		SocketChannel sockChannel = null;
+
+		while (( sockChannel = m_srvSockChannel.accept()) != null) {
+
+			// Set the socket for non-blocking mode and no delay
+
+			sockChannel.configureBlocking(false);
+			sockChannel.socket().setTcpNoDelay(true);
+
+			// DEBUG
+
+			if ( Debug.EnableInfo && hasDebug())
+				Debug.println("[FTP] FTP session request received from " + sockChannel.socket().getInetAddress().getHostAddress());
+
+			// Create a server session for the new request, and add to the active session list
+
+			FTPSrvSession srvSess = new FTPSrvSession(sockChannel, m_ftpServer, this);
+			m_ftpServer.initializeSession(srvSess);
+
+			// Register the session socket with the selector, receives are enabled once the session has started
+
+			sockChannel.register(m_selector, 0, srvSess);
+
+			// Send the initial response using a worker thread
+
+			m_threadPool.queueRequest(new StartSessionRequest(srvSess));
+		}
+	}
+
+	/**
+	 * Request that receives are enabled for a session by the selector thread, called by worker threads when
+	 * a session has finished processing its commands
+	 *
+	 * @param sess FTPSrvSession
+	 */
+	protected final void requestReceive(FTPSrvSession sess) {
+
+		// Queue the session for the selector thread, and wakeup the selector
+
+		m_interestList.add(sess);
+		m_selector.wakeup();
+	}
+
+	/**
+	 * Queue a session to the data transfer thread pool, called by a worker thread when the next command for
+	 * the session is a data transfer command
+	 *
+	 * @param sess FTPSrvSession
+	 */
+	protected final void queueTransferRequest(FTPSrvSession sess) {
+		m_transferPool.queueRequest(new TransferRequest(sess));
+	}
+
+	/**
+	 * Wakeup the selector thread, so that the keys for closed sessions are deregistered
+	 */
+	protected final void wakeupSelector() {
+		if ( m_selector != null)
+			m_selector.wakeup();
+	}
+
+	/**
+	 * Enable receives for the sessions queued by the worker threads
+	 */
+	private final void updateInterestOps() {
+
+		// Process the queued sessions
+
+		while ( m_interestList.isEmpty() == false) {
+
+			FTPSrvSession sess = m_interestList.remove(0);
+			SelectionKey selKey = sess.getSocketChannel() != null ? sess.getSocketChannel().keyFor(m_selector) : null;
+
+			if ( selKey != null && selKey.isValid()) {
+				try {
+					selKey.interestOps(SelectionKey.OP_READ);
+				}
+				catch (CancelledKeyException ex) {
+				}
+			}
+		}
+	}
+}
@@ -29,7 +29,15 @@ import java.net.Socket;
  *
  * @author gkspencer
  */
-public class MultiThreadedTcpRpcPacketHandler extends TcpRpcPacketHandler implements RpcPacketHandler {
+public class MultiThreadedTcpRpcPacketHandler extends TcpRpcPacketHandler implements RpcPacketHandler, RpcRequestCompletionHandler {
+
+  //  Number of requests queued to the thread pool or being processed for this session
+
+  private int m_inProgress;
+
+  //  Session closed flag
+
+  private boolean m_closed;
 
   /**
    * Class constructor to create a TCP RPC handler for a server.
@@ -90,6 +98,22 @@ public class MultiThreadedTcpRpcPacketHandler extends TcpRpcPacketHandler implem
   protected void processRpc(RpcPacket rpc)
   	throws IOException {
 
+    //  Wait until the session is below the limit of requests in progress, the session reader thread does not
+    //  receive any more requests until then
+
+    synchronized ( this) {
+
+      while ( m_closed == false && m_inProgress >= getSessionHandler().getMaximumRequestsPerSession()) {
+        try {
+          wait();
+        }
+        catch ( InterruptedException ex) {
+        }
+      }
+
+      m_inProgress++;
+    }
+
     //	Link the RPC request to this handler
 
     rpc.setPacketHandler(this);
@@ -112,4 +136,34 @@ public class MultiThreadedTcpRpcPacketHandler extends TcpRpcPacketHandler implem
 
     sendRpc(rpc);
   }
+
+  /**
+   * RPC request processing has completed
+   *
+   * @param rpc RpcPacket
+   */
+  public synchronized void rpcRequestCompleted(RpcPacket rpc) {
+
+    //  Update the count of requests in progress, wakeup the session reader thread if it is waiting
+
+    m_inProgress--;
+    notifyAll();
+  }
+
+  /**
+   * Close the session
+   */
+  public void closePacketHandler() {
+
+    //  Release the session reader thread if it is waiting for requests to complete
+
+    synchronized ( this) {
+      m_closed = true;
+      notifyAll();
+    }
+
+    //  Close the session
+
+    super.closePacketHandler();
+  }
 }
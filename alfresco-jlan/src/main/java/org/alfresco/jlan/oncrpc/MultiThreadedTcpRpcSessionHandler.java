@@ -42,6 +42,12 @@ public class MultiThreadedTcpRpcSessionHandler extends TcpRpcSessionHandler {
   public static final int DefaultPacketPoolSize		= 50;
   public static final int DefaultSmallPacketSize	= 512;
 
+  //  Default/minimum/maximum number of requests in progress per session
+
+  public static final int DefaultMaxRequestsPerSession	= 64;
+  public static final int MinimumMaxRequestsPerSession	= 1;
+  public static final int MaximumMaxRequestsPerSession	= 1024;
+
   //	RPC packet pool
 
   private RpcPacketPool m_packetPool;
@@ -50,6 +56,10 @@ public class MultiThreadedTcpRpcSessionHandler extends TcpRpcSessionHandler {
 
   private RpcRequestThreadPool m_threadPool;
 
+  //  Maximum number of requests in progress per session
+
+  private int m_maxSessRequests = DefaultMaxRequestsPerSession;
+
   /**
    * Class constructor
    *
@@ -89,6 +99,15 @@ public class MultiThreadedTcpRpcSessionHandler extends TcpRpcSessionHandler {
     super.initializeSessionHandler(server);
   }
 
+  /**
+   * Return the maximum number of requests that a session can have in progress
+   *
+   * @return int
+   */
+  public final int getMaximumRequestsPerSession() {
+    return m_maxSessRequests;
+  }
+
   /**
    * Allocate an RPC packet from the packet pool
    *
@@ -214,4 +233,14 @@ public class MultiThreadedTcpRpcSessionHandler extends TcpRpcSessionHandler {
     if ( m_threadPool == null)
       m_threadPool = threadPool;
   }
+
+  /**
+   * Set the maximum number of requests that a session can have in progress
+   *
+   * @param maxReq int
+   */
+  public final void setMaximumRequestsPerSession(int maxReq) {
+    if ( maxReq >= MinimumMaxRequestsPerSession && maxReq <= MaximumMaxRequestsPerSession)
+      m_maxSessRequests = maxReq;
+  }
 }
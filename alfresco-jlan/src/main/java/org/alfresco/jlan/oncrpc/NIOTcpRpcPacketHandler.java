@@ -0,0 +1,447 @@
+/*
+ * Copyright (C) 2006-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.alfresco.jlan.oncrpc;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * NIO TCP RPC Packet Handler Class
+ *
+ * <p>Reassembles the record marking fragments of RPC requests received on a non-blocking socket channel into
+ * pooled RPC packets, and sends the RPC responses generated by the worker threads. Responses are sent in the
+ * order that the requests complete, receives are suspended whilst the session has the maximum number of
+ * requests in progress.
+ *
+ * @author gkspencer
+ */
+public class NIOTcpRpcPacketHandler implements RpcPacketHandler, RpcRequestCompletionHandler {
+
+	// Maximum amount of queued response data before receives are suspended for the session
+
+	public static final int MaxWriteBacklog	= 1024 * 1024;
+
+	// Session handler that owns this session
+
+	private NIOTcpRpcSessionHandler m_handler;
+
+	// Session id
+
+	private int m_sessId;
+
+	// Socket channel, and selection key for the channel
+
+	private SocketChannel m_channel;
+	private SelectionKey m_selKey;
+
+	// Client address/port
+
+	private InetAddress m_clientAddr;
+	private int m_clientPort;
+
+	// Maximum RPC size accepted
+
+	private int m_maxRpcSize;
+
+	// Fragment header buffer
+
+	private ByteBuffer m_fragBuf;
+
+	// Packet for the RPC request currently being received, buffer wrapping the packet buffer, length of
+	// request data received, remaining length of the current fragment and last fragment flag
+
+	private RpcPacket m_rxPkt;
+	private ByteBuffer m_rxBuf;
+	private int m_rxLen;
+	private int m_fragLen;
+	private boolean m_lastFrag;
+
+	// Queued response data, and count of queued bytes
+
+	private LinkedList<ByteBuffer> m_txQueue;
+	private int m_txQueued;
+
+	// Number of requests queued to the thread pool or being processed for this session
+
+	private AtomicInteger m_inProgress = new AtomicInteger();
+
+	// Session closed flag
+
+	private volatile boolean m_closed;
+
+	/**
+	 * Class constructor
+	 *
+	 * @param handler NIOTcpRpcSessionHandler
+	 * @param sessId int
+	 * @param channel SocketChannel
+	 * @param maxRpcSize int
+	 */
+	public NIOTcpRpcPacketHandler(NIOTcpRpcSessionHandler handler, int sessId, SocketChannel channel, int maxRpcSize) {
+
+		// Set the owning session handler, session id and socket channel
+
+		m_handler = handler;
+		m_sessId = sessId;
+		m_channel = channel;
+
+		m_clientAddr = channel.socket().getInetAddress();
+		m_clientPort = channel.socket().getPort();
+
+		// Set the maximum RPC size accepted
+
+		m_maxRpcSize = maxRpcSize;
+
+		// Allocate the fragment header buffer and response queue
+
+		m_fragBuf = ByteBuffer.allocate(RpcPacket.FragHeaderLen);
+		m_txQueue = new LinkedList<ByteBuffer>();
+	}
+
+	/**
+	 * Return the session id
+	 *
+	 * @return int
+	 */
+	public final int getSessionId() {
+		return m_sessId;
+	}
+
+	/**
+	 * Return the maximum RPC size accepted
+	 *
+	 * @return int
+	 */
+	public final int getMaximumRpcSize() {
+		return m_maxRpcSize;
+	}
+
+	/**
+	 * Return the selection key for the socket channel
+	 *
+	 * @return SelectionKey
+	 */
+	protected final SelectionKey getSelectionKey() {
+		return m_selKey;
+	}
+
+	/**
+	 * Set the selection key for the socket channel
+	 *
+	 * @param selKey SelectionKey
+	 */
+	protected final void setSelectionKey(SelectionKey selKey) {
+		m_selKey = selKey;
+	}
+
+	/**
+	 * Check if there is response data queued to be written
+	 *
+	 * @return boolean
+	 */
+	public final boolean hasQueuedData() {
+		synchronized ( m_txQueue) {
+			return m_txQueue.isEmpty() == false;
+		}
+	}
+
+	/**
+	 * Check if the queued response data has reached the limit at which receives are suspended
+	 *
+	 * @return boolean
+	 */
+	public final boolean hasWriteBacklog() {
+		synchronized ( m_txQueue) {
+			return m_txQueued >= MaxWriteBacklog;
+		}
+	}
+
+	/**
+	 * Check if the session has the maximum number of requests in progress
+	 *
+	 * @return boolean
+	 */
+	public final boolean hasRequestBacklog() {
+		return m_inProgress.get() >= m_handler.getMaximumRequestsPerSession();
+	}
+
+	/**
+	 * Read the available data from the socket channel, complete RPC requests are queued to the thread pool
+	 * for processing. Called by the selector thread.
+	 *
+	 * @return boolean false if the client has closed the session
+	 * @exception IOException
+	 */
+	protected final boolean readRequests()
+		throws IOException {
+
+		// Read data until the socket has no more data available, or the session has the maximum number of requests
+		// in progress
+
+		while ( m_closed == false) {
+
+			if ( hasRequestBacklog())
+				return true;
+
+			// Check if a fragment header is required
+
+			if ( m_fragLen == 0 && ( m_rxPkt == null || m_lastFrag == false)) {
+
+				// Read the fragment header
+
+				if ( m_channel.read(m_fragBuf) == -1)
+					return false;
+
+				if ( m_fragBuf.hasRemaining())
+					return true;
+
+				// Get the fragment length and last fragment flag
+
+				int fragHdr = m_fragBuf.getInt(0);
+				m_fragBuf.clear();
+
+				m_lastFrag = ( fragHdr & Rpc.LastFragment) != 0;
+				m_fragLen = fragHdr & Rpc.LengthMask;
+
+				// Allocate a packet for a new request, the response is built in the request packet so always
+				// allocate a maximum size packet
+
+				if ( m_rxPkt == null) {
+
+					if ( m_fragLen > getMaximumRpcSize())
+						throw new IOException("Receive RPC buffer overflow, fragment len = " + m_fragLen);
+
+					m_rxPkt = m_handler.allocateRpcPacket(getMaximumRpcSize());
+					m_rxBuf = ByteBuffer.wrap(m_rxPkt.getBuffer());
+					m_rxLen = 0;
+				}
+
+				// Check if the packet is large enough to receive the fragment
+
+				if ( m_fragLen > ( m_rxPkt.getBuffer().length - RpcPacket.FragHeaderLen - m_rxLen))
+					throw new IOException("Receive RPC buffer overflow, fragment len = " + m_fragLen);
+			}
+
+			// Read the fragment data
+
+			if ( m_fragLen > 0) {
+
+				int pos = RpcPacket.FragHeaderLen + m_rxLen;
+				m_rxBuf.limit(pos + m_fragLen);
+				m_rxBuf.position(pos);
+
+				int rxLen = m_channel.read(m_rxBuf);
+
+				if ( rxLen == -1)
+					return false;
+				else if ( rxLen == 0)
+					return true;
+
+				// Update the received length and remaining fragment length
+
+				m_rxLen += rxLen;
+				m_fragLen -= rxLen;
+			}
+
+			// Check if the request is complete
+
+			if ( m_fragLen == 0 && m_lastFrag)
+				processRequest();
+		}
+
+		// Session has been closed
+
+		return false;
+	}
+
+	/**
+	 * Process a complete RPC request
+	 *
+	 * @exception IOException
+	 */
+	private final void processRequest()
+		throws IOException {
+
+		// Take the completed request and reset the receive state
+
+		RpcPacket rpc = m_rxPkt;
+
+		rpc.setBuffer(RpcPacket.FragHeaderLen, m_rxLen + RpcPacket.FragHeaderLen);
+		rpc.setClientDetails(m_clientAddr, m_clientPort, Rpc.TCP);
+
+		m_rxPkt = null;
+		m_rxBuf = null;
+		m_rxLen = 0;
+		m_lastFrag = false;
+
+		// Validate the RPC header
+
+		if ( rpc.getRpcVersion() != Rpc.RpcVersion) {
+
+			// Build/send an error response
+
+			rpc.buildRpcMismatchResponse();
+			sendRpcResponse(rpc);
+
+			// Release the packet
+
+			if ( rpc.isAllocatedFromPool())
+				rpc.getOwnerPacketPool().releasePacket(rpc);
+		}
+		else {
+
+			// Link the RPC request to this handler and queue the request to the thread pool for processing
+
+			m_inProgress.incrementAndGet();
+
+			rpc.setPacketHandler(this);
+			m_handler.queueRpcRequest(rpc);
+		}
+	}
+
+	/**
+	 * Send an RPC response, called by the worker threads. The response is written directly to the socket if
+	 * there is no queued data and the socket can accept it, any remaining data is copied and queued to be
+	 * written by the selector thread, as the response packet is released when this method returns.
+	 *
+	 * @param rpc RpcPacket
+	 * @exception IOException
+	 */
+	public void sendRpcResponse(RpcPacket rpc)
+		throws IOException {
+
+		// Check if the session has been closed
+
+		if ( m_closed)
+			return;
+
+		// Write the RPC response, this includes the fragment header
+
+		ByteBuffer txBuf = ByteBuffer.wrap(rpc.getBuffer(), 0, rpc.getTxLength());
+		boolean wakeup = false;
+
+		synchronized ( m_txQueue) {
+
+			// Write directly to the socket if there is no queued data
+
+			if ( m_txQueue.isEmpty())
+				m_channel.write(txBuf);
+
+			// Queue any remaining data to be written when the socket is writeable
+
+			if ( txBuf.hasRemaining()) {
+
+				ByteBuffer queueBuf = ByteBuffer.allocate(txBuf.remaining());
+				queueBuf.put(txBuf);
+				queueBuf.flip();
+
+				wakeup = m_txQueue.isEmpty();
+
+				m_txQueue.add(queueBuf);
+				m_txQueued += queueBuf.remaining();
+
+				if ( m_txQueued >= MaxWriteBacklog)
+					wakeup = true;
+			}
+		}
+
+		// Request the selector thread to monitor the socket for write events
+
+		if ( wakeup)
+			m_handler.requestInterestUpdate(this);
+	}
+
+	/**
+	 * RPC request processing has completed, called by the worker threads
+	 *
+	 * @param rpc RpcPacket
+	 */
+	public void rpcRequestCompleted(RpcPacket rpc) {
+
+		// Update the count of requests in progress, if the session was at the limit then request the selector
+		// thread to resume receives for the session
+
+		if ( m_inProgress.getAndDecrement() >= m_handler.getMaximumRequestsPerSession() && m_closed == false)
+			m_handler.requestInterestUpdate(this);
+	}
+
+	/**
+	 * Write queued response data, called by the selector thread when the socket is writeable
+	 *
+	 * @exception IOException
+	 */
+	protected final void writeQueuedData()
+		throws IOException {
+
+		synchronized ( m_txQueue) {
+
+			// Write queued buffers until the socket cannot accept any more data
+
+			while ( m_txQueue.isEmpty() == false) {
+
+				ByteBuffer txBuf = m_txQueue.getFirst();
+				m_txQueued -= m_channel.write(txBuf);
+
+				if ( txBuf.hasRemaining())
+					break;
+
+				m_txQueue.removeFirst();
+			}
+		}
+	}
+
+	/**
+	 * Close the session
+	 */
+	protected final void closeHandler() {
+
+		// Mark the session as closed
+
+		m_closed = true;
+
+		// Close the socket channel, this also cancels the selection key
+
+		try {
+			m_channel.close();
+		}
+		catch (IOException ex) {
+		}
+
+		// Release the partially received request packet
+
+		RpcPacket rxPkt = m_rxPkt;
+		m_rxPkt = null;
+
+		if ( rxPkt != null && rxPkt.isAllocatedFromPool())
+			rxPkt.getOwnerPacketPool().releasePacket(rxPkt);
+
+		// Discard queued response data
+
+		synchronized ( m_txQueue) {
+			m_txQueue.clear();
+			m_txQueued = 0;
+		}
+	}
+}
@@ -0,0 +1,581 @@
+/*
+ * Copyright (C) 2006-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.alfresco.jlan.oncrpc;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.Vector;
+
+import org.alfresco.jlan.debug.Debug;
+import org.alfresco.jlan.server.NetworkServer;
+import org.alfresco.jlan.server.SessionHandlerBase;
+
+/**
+ * NIO TCP RPC Session Handler Class
+ *
+ * <p>Accepts TCP RPC sessions and receives the RPC requests for all sessions using a single selector thread.
+ * Complete RPC requests are passed to a pool of worker threads for processing, responses are written directly
+ * to the socket channel if possible, or queued and written by the selector thread when the channel is writeable.
+ *
+ * @author gkspencer
+ */
+public class NIOTcpRpcSessionHandler extends SessionHandlerBase implements Runnable {
+
+	// Constants
+	//
+	// Default packet pool size
+
+	public static final int DefaultPacketPoolSize	= 50;
+	public static final int DefaultSmallPacketSize	= 512;
+
+	// Selector timeout
+
+	private static final long SelectTimeout			= 30000L;
+
+	// RPC server implementation that handles the RPC processing
+
+	private RpcProcessor m_rpcProcessor;
+
+	// Maximum request size allowed
+
+	private int m_maxRpcSize;
+
+	// RPC packet pool
+
+	private RpcPacketPool m_packetPool;
+
+	// Request handler thread pool, and flag to indicate the thread pool was created by this handler
+
+	private RpcRequestThreadPool m_threadPool;
+	private boolean m_ownThreadPool;
+
+	// Maximum number of requests in progress per session
+
+	private int m_maxSessRequests = MultiThreadedTcpRpcSessionHandler.DefaultMaxRequestsPerSession;
+
+	// Server socket channel and selector
+
+	private ServerSocketChannel m_srvSockChannel;
+	private Selector m_selector;
+
+	// List of active sessions
+
+	private Hashtable<Integer, NIOTcpRpcPacketHandler> m_sessions;
+
+	// List of sessions that require their selector interest to be updated
+
+	private Vector<NIOTcpRpcPacketHandler> m_interestList;
+
+	/**
+	 * Class constructor
+	 *
+	 * @param name String
+	 * @param protocol String
+	 * @param rpcServer RpcProcessor
+	 * @param server NetworkServer
+	 * @param addr InetAddress
+	 * @param port int
+	 * @param maxSize int
+	 */
+	public NIOTcpRpcSessionHandler(String name, String protocol, RpcProcessor rpcServer, NetworkServer server,
+			InetAddress addr, int port, int maxSize) {
+		super(name, protocol, server, addr, port);
+
+		// Set the RPC server implementation that will handle the actual requests
+
+		m_rpcProcessor = rpcServer;
+
+		// Set the maximum RPC request size allowed
+
+		m_maxRpcSize = maxSize;
+
+		// Create the active session and interest update lists
+
+		m_sessions = new Hashtable<Integer, NIOTcpRpcPacketHandler>();
+		m_interestList = new Vector<NIOTcpRpcPacketHandler>();
+	}
+
+	/**
+	 * Return the maximum RPC size allowed
+	 *
+	 * @return int
+	 */
+	protected final int getMaximumRpcSize() {
+		return m_maxRpcSize;
+	}
+
+	/**
+	 * Return the RPC server used to process the requests
+	 *
+	 * @return RpcProcessor
+	 */
+	protected final RpcProcessor getRpcProcessor() {
+		return m_rpcProcessor;
+	}
+
+	/**
+	 * Return the maximum number of requests that a session can have in progress
+	 *
+	 * @return int
+	 */
+	public final int getMaximumRequestsPerSession() {
+		return m_maxSessRequests;
+	}
+
+	/**
+	 * Return the count of active sessions
+	 *
+	 * @return int
+	 */
+	public final int numberOfSessions() {
+		return m_sessions.size();
+	}
+
+	/**
+	 * Initialize the session handler
+	 *
+	 * @param server NetworkServer
+	 * @throws IOException
+	 */
+	public void initializeSessionHandler(NetworkServer server)
+		throws IOException {
+
+		// If the packet pool has not been created, create a default packet pool
+
+		if ( m_packetPool == null)
+			m_packetPool = new RpcPacketPool(DefaultSmallPacketSize, DefaultPacketPoolSize, getMaximumRpcSize(), DefaultPacketPoolSize);
+
+		// Create the RPC request handling thread pool, if not already created
+
+		if ( m_threadPool == null) {
+			m_threadPool = new RpcRequestThreadPool(getHandlerName(), getRpcProcessor());
+			m_ownThreadPool = true;
+		}
+
+		// Create the server socket channel and bind to the required address/port
+
+		m_srvSockChannel = ServerSocketChannel.open();
+
+		InetSocketAddress sockAddr = null;
+
+		if ( hasBindAddress())
+			sockAddr = new InetSocketAddress(getBindAddress(), getPort());
+		else
+			sockAddr = new InetSocketAddress(getPort());
+
+		m_srvSockChannel.socket().bind(sockAddr, getListenBacklog());
+
+		// Set the allocated port
+
+		if ( getPort() == 0)
+			setPort(m_srvSockChannel.socket().getLocalPort());
+
+		// Create the selector and register the server socket channel for incoming connections
+
+		m_selector = Selector.open();
+
+		m_srvSockChannel.configureBlocking(false);
+		m_srvSockChannel.register(m_selector, SelectionKey.OP_ACCEPT);
+
+		// DEBUG
+
+		if ( Debug.EnableInfo && hasDebug()) {
+			Debug.print("[" + getProtocolName() + "] Binding " + getHandlerName() + " NIO session handler to address : ");
+			if ( hasBindAddress())
+				Debug.println(getBindAddress().getHostAddress());
+			else
+				Debug.println("ALL");
+		}
+	}
+
+	/**
+	 * Close the session handler, close all active sessions.
+	 *
+	 * @param server NetworkServer
+	 */
+	public void closeSessionHandler(NetworkServer server) {
+
+		// Request the selector thread to shutdown
+
+		setShutdown(true);
+
+		try {
+
+			// Wakeup the selector thread, and close the server socket channel
+
+			if ( m_selector != null)
+				m_selector.wakeup();
+
+			if ( m_srvSockChannel != null)
+				m_srvSockChannel.close();
+		}
+		catch (IOException ex) {
+		}
+
+		// Close all active sessions
+
+		if ( m_sessions.size() > 0) {
+
+			// Enumerate the sessions
+
+			Enumeration<NIOTcpRpcPacketHandler> enm = m_sessions.elements();
+
+			while ( enm.hasMoreElements()) {
+
+				// Get the current packet handler and close the session
+
+				NIOTcpRpcPacketHandler handler = enm.nextElement();
+				handler.closeHandler();
+			}
+
+			// Clear the session list
+
+			m_sessions.clear();
+		}
+
+		// Shutdown the thread pool, if created by this handler
+
+		if ( m_ownThreadPool && m_threadPool != null)
+			m_threadPool.shutdownThreadPool();
+	}
+
+	/**
+	 * Selector thread, accepts new sessions and receives RPC requests for all active sessions
+	 */
+	public void run() {
+
+		// Clear the shutdown flag
+
+		clearShutdown();
+
+		// Loop until shutdown
+
+		while ( hasShutdown() == false) {
+
+			try {
+
+				// Update the selector interest for sessions that have queued responses, or that have drained their queue
+
+				updateInterestOps();
+
+				// Wait for socket events
+
+				if ( m_selector.select(SelectTimeout) == 0)
+					continue;
+
+				// Process the socket events
+
+				Iterator<SelectionKey> keys = m_selector.selectedKeys().iterator();
+
+				while ( keys.hasNext()) {
+
+					// Get the current selection key
+
+					SelectionKey selKey = keys.next();
+					keys.remove();
+
+					if ( selKey.isValid() == false)
+						continue;
+
+					try {
+
+						// Check for a new session request, or socket events for an existing session
+
+						if ( selKey.isAcceptable())
+							acceptConnections();
+						else {
+
+							// Get the session associated with the socket channel
+
+							NIOTcpRpcPacketHandler pktHandler = (NIOTcpRpcPacketHandler) selKey.attachment();
+
+							try {
+
+								// Write any queued responses
+
+								if ( selKey.isWritable())
+									pktHandler.writeQueuedData();
+
+								// Receive RPC requests, returns false if the client has closed the session
+
+								if ( selKey.isValid() && selKey.isReadable() && pktHandler.readRequests() == false)
+									closeSession(pktHandler.getSessionId());
+								else
+									setInterestOps(selKey, pktHandler);
+							}
+							catch (IOException ex) {
+
+								// DEBUG
+
+								if ( Debug.EnableInfo && hasDebug())
+									Debug.println("[" + getProtocolName() + "] Session " + pktHandler.getSessionId() + " error, " + ex.getMessage());
+
+								// Close the session
+
+								closeSession(pktHandler.getSessionId());
+							}
+						}
+					}
+					catch (CancelledKeyException ex) {
+					}
+				}
+			}
+			catch (ClosedSelectorException ex) {
+				break;
+			}
+			catch (IOException ex) {
+
+				// Only dump errors if not shutting down
+
+				if ( hasShutdown() == false)
+					Debug.println(ex);
+			}
+		}
+
+		// Close the selector
+
+		try {
+			m_selector.close();
+		}
+		catch (IOException ex) {
+		}
+
+		// DEBUG
+
+		if ( Debug.EnableInfo && hasDebug())
+			Debug.println("[" + getProtocolName() + "] NIO session handler closed");
+	}
+
+	/**
+	 * Accept pending session requests
+	 *
+	 * @throws IOException
+	 */
+	protected final void acceptConnections()
+		throws IOException {
+
+		// Accept all pending connections
+
+		SocketChannel sockChannel = null;
+
+		while (( sockChannel = m_srvSockChannel.accept()) != null) {
+
+			// Set the socket for non-blocking mode and no delay
+
+			sockChannel.configureBlocking(false);
+			sockChannel.socket().setTcpNoDelay(true);
+
+			// Create a packet handler for the new session and add to the active session list
+
+			int sessId = getNextSessionId();
+			NIOTcpRpcPacketHandler pktHandler = new NIOTcpRpcPacketHandler(this, sessId, sockChannel, getMaximumRpcSize());
+
+			m_sessions.put(Integer.valueOf(sessId), pktHandler);
+
+			// Register the session socket with the selector for incoming requests
+
+			pktHandler.setSelectionKey(sockChannel.register(m_selector, SelectionKey.OP_READ, pktHandler));
+
+			// DEBUG
+
+			if ( Debug.EnableInfo && hasDebug())
+				Debug.println("[" + getProtocolName() + "] Created new session id = " + sessId + ", from = "
+						+ sockChannel.socket().getInetAddress().getHostAddress() + ":" + sockChannel.socket().getPort());
+		}
+	}
+
+	/**
+	 * Close a session and remove it from the active session list
+	 *
+	 * @param sessId int
+	 */
+	protected final void closeSession(int sessId) {
+
+		// Remove the specified session from the active session table
+
+		NIOTcpRpcPacketHandler pktHandler = m_sessions.remove(Integer.valueOf(sessId));
+		if ( pktHandler != null) {
+
+			// Close the session
+
+			pktHandler.closeHandler();
+
+			// DEBUG
+
+			if ( Debug.EnableInfo && hasDebug())
+				Debug.println("[" + getProtocolName() + "] Closed session id = " + sessId);
+		}
+	}
+
+	/**
+	 * Allocate an RPC packet from the packet pool
+	 *
+	 * @param size int
+	 * @return RpcPacket
+	 */
+	protected final RpcPacket allocateRpcPacket(int size) {
+		return m_packetPool.allocatePacket(size);
+	}
+
+	/**
+	 * Queue an RPC request to the thread pool for processing
+	 *
+	 * @param rpc RpcPacket
+	 */
+	protected final void queueRpcRequest(RpcPacket rpc) {
+		m_threadPool.queueRpcRequest(rpc);
+	}
+
+	/**
+	 * Request that the selector interest for a session is updated by the selector thread, called by worker threads
+	 * that have queued response data
+	 *
+	 * @param pktHandler NIOTcpRpcPacketHandler
+	 */
+	protected final void requestInterestUpdate(NIOTcpRpcPacketHandler pktHandler) {
+
+		// Queue the session for the selector thread, and wakeup the selector
+
+		m_interestList.add(pktHandler);
+		m_selector.wakeup();
+	}
+
+	/**
+	 * Update the selector interest for sessions queued by the worker threads
+	 */
+	private final void updateInterestOps() {
+
+		// Process the queued sessions
+
+		while ( m_interestList.isEmpty() == false) {
+
+			NIOTcpRpcPacketHandler pktHandler = m_interestList.remove(0);
+			SelectionKey selKey = pktHandler.getSelectionKey();
+
+			if ( selKey != null && selKey.isValid()) {
+				try {
+					setInterestOps(selKey, pktHandler);
+				}
+				catch (CancelledKeyException ex) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Set the selector interest for a session. Receives are suspended whilst the session has a backlog of
+	 * response data to be written, so that a client that does not read its responses cannot use an unlimited
+	 * amount of memory, and whilst the session has the maximum number of requests in progress.
+	 *
+	 * @param selKey SelectionKey
+	 * @param pktHandler NIOTcpRpcPacketHandler
+	 */
+	private final void setInterestOps(SelectionKey selKey, NIOTcpRpcPacketHandler pktHandler) {
+
+		int ops = 0;
+
+		if ( pktHandler.hasQueuedData())
+			ops = SelectionKey.OP_WRITE;
+
+		if ( pktHandler.hasWriteBacklog() == false && pktHandler.hasRequestBacklog() == false)
+			ops += SelectionKey.OP_READ;
+
+		if ( selKey.interestOps() != ops)
+			selKey.interestOps(ops);
+	}
+
+	/**
+	 * Set the packet pool size
+	 *
+	 * @param smallSize int
+	 * @param smallPool int
+	 * @param largeSize int
+	 * @param largePool int
+	 */
+	public final void setPacketPool(int smallSize, int smallPool, int largeSize, int largePool) {
+
+		// Create the packet pool, if not already initialized
+
+		if ( m_packetPool == null)
+			m_packetPool = new RpcPacketPool(smallSize, smallPool, largeSize, largePool);
+	}
+
+	/**
+	 * Set the packet pool
+	 *
+	 * @param pktPool RpcPacketPool
+	 */
+	public final void setPacketPool(RpcPacketPool pktPool) {
+
+		// Set the packet pool, if not already initialized
+
+		if ( m_packetPool == null)
+			m_packetPool = pktPool;
+	}
+
+	/**
+	 * Set the thread pool size
+	 *
+	 * @param numThreads int
+	 */
+	public final void setThreadPool(int numThreads) {
+
+		// Create the thread pool, if not already initialized
+
+		if ( m_threadPool == null) {
+			m_threadPool = new RpcRequestThreadPool(getHandlerName(), numThreads, getRpcProcessor());
+			m_ownThreadPool = true;
+		}
+	}
+
+	/**
+	 * Set the thread pool
+	 *
+	 * @param threadPool RpcRequestThreadPool
+	 */
+	public final void setThreadPool(RpcRequestThreadPool threadPool) {
+
+		// Set the thread pool, if not already initialized
+
+		if ( m_threadPool == null)
+			m_threadPool = threadPool;
+	}
+
+	/**
+	 * Set the maximum number of requests that a session can have in progress
+	 *
+	 * @param maxReq int
+	 */
+	public final void setMaximumRequestsPerSession(int maxReq) {
+		if ( maxReq >= MultiThreadedTcpRpcSessionHandler.MinimumMaxRequestsPerSession
+				&& maxReq <= MultiThreadedTcpRpcSessionHandler.MaximumMaxRequestsPerSession)
+			m_maxSessRequests = maxReq;
+	}
+}
@@ -546,6 +546,19 @@ public class RpcPacket {
     alignPosition();
   }
 
+  /**
+   * Pack part of a byte array, without a length
+   *
+   * @param buf byte[]
+   * @param off int
+   * @param len int
+   */
+  public final void packByteArray(byte[] buf, int off, int len) {
+    System.arraycopy(buf, off, m_buffer, m_pos, len);
+    m_pos += len;
+    alignPosition();
+  }
+
   /**
    * Pack an integer array
    *
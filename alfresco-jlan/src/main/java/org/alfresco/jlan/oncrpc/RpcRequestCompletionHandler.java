@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2006-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.alfresco.jlan.oncrpc;
+
+/**
+ * RPC Request Completion Handler Interface
+ *
+ * <p>Optional interface implemented by an RPC packet handler that needs to know when the thread pool has
+ * finished processing a request, used to limit the number of requests a session has in progress.
+ *
+ * @author gkspencer
+ */
+public interface RpcRequestCompletionHandler {
+
+  /**
+   * RPC request processing has completed, any response has been sent
+   *
+   * @param rpc RpcPacket
+   */
+  public void rpcRequestCompleted(RpcPacket rpc);
+}
@@ -19,6 +19,7 @@
 
 package org.alfresco.jlan.oncrpc;
 
+import java.util.HashMap;
 import java.util.LinkedList;
 
 /**
@@ -26,19 +27,29 @@ import java.util.LinkedList;
  *
  * <p>Provides a request queue for a thread pool of worker threads.
  *
+ * <p>Requests are queued per client, TCP requests are grouped by session and UDP requests by client address,
+ * and requests are removed from the client queues in turn so that a client with a large number of queued
+ * requests cannot delay the requests of other clients.
+ *
  * @author gkspencer
  */
 public class RpcRequestQueue {
 
-	//	List of RPC requests
+	//	Per client request queues, and list of client queues that have requests in the order they will be serviced
+
+	private HashMap<Object, LinkedList<RpcPacket>> m_clientQueues;
+	private LinkedList<LinkedList<RpcPacket>> m_readyList;
+
+	//	Count of queued requests
 
-	private LinkedList<RpcPacket> m_queue;
+	private int m_count;
 
 	/**
 	 * Class constructor
 	 */
 	public RpcRequestQueue() {
-		m_queue = new LinkedList<RpcPacket>();
+		m_clientQueues = new HashMap<Object, LinkedList<RpcPacket>>();
+		m_readyList = new LinkedList<LinkedList<RpcPacket>>();
 	}
 
 	/**
@@ -47,7 +58,7 @@ public class RpcRequestQueue {
 	 * @return int
 	 */
 	public final synchronized int numberOfRequests() {
-		return m_queue.size();
+		return m_count;
 	}
 
 	/**
@@ -57,9 +68,22 @@ public class RpcRequestQueue {
 	 */
 	public final synchronized void addRequest(RpcPacket req) {
 
-		//	Add the request to the queue
+		//	Find the queue for the client, create a new queue and add it to the end of the ready list
+		//	if the client has no queued requests
+
+		Object clientKey = getClientKey(req);
+		LinkedList<RpcPacket> clientQueue = m_clientQueues.get(clientKey);
+
+		if ( clientQueue == null) {
+			clientQueue = new LinkedList<RpcPacket>();
+			m_clientQueues.put(clientKey, clientQueue);
+			m_readyList.add(clientQueue);
+		}
 
-		m_queue.add(req);
+		//	Add the request to the client queue
+
+		clientQueue.add(req);
+		m_count++;
 
 		//	Notify workers that there is a request to process
 
@@ -79,9 +103,25 @@ public class RpcRequestQueue {
 
 		waitWhileEmpty();
 
-		//	Get the request from the head of the queue
+		//	Get the request from the head of the next client queue
+
+		LinkedList<RpcPacket> clientQueue = m_readyList.removeFirst();
+		RpcPacket req = clientQueue.removeFirst();
+		m_count--;
+
+		//	Move the client queue to the end of the ready list if it has more requests, else remove the queue
+
+		if ( clientQueue.isEmpty())
+			m_clientQueues.remove(getClientKey(req));
+		else
+			m_readyList.add(clientQueue);
 
-		return m_queue.removeFirst();
+		//	Wakeup any threads waiting for the queue to empty
+
+		if ( m_count == 0)
+			notifyAll();
+
+		return req;
 	}
 
 	/**
@@ -94,7 +134,7 @@ public class RpcRequestQueue {
 
 		//	Wait until some work arrives on the queue
 
-		while ( m_queue.size() == 0)
+		while ( m_count == 0)
 			wait();
 	}
 
@@ -108,7 +148,20 @@ public class RpcRequestQueue {
 
 		//	Wait until the request queue is empty
 
-		while ( m_queue.size() != 0)
+		while ( m_count != 0)
 			wait();
 	}
+
+	/**
+	 * Return the key used to group requests by client, TCP requests are grouped by the session packet handler
+	 * and UDP requests by the client address
+	 *
+	 * @param req RpcPacket
+	 * @return Object
+	 */
+	private final Object getClientKey(RpcPacket req) {
+		if ( req.getClientProtocol() == Rpc.TCP && req.getPacketHandler() != null)
+			return req.getPacketHandler();
+		return req.getClientAddress();
+	}
 }
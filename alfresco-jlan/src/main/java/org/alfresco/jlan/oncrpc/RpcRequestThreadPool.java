@@ -113,6 +113,11 @@ public class RpcRequestThreadPool {
 
 			while ( mi_shutdown == false) {
 
+				//	Clear the request/response from the previous request
+
+				rpc = null;
+				response = null;
+
 				try {
 
 					//	Wait for an RPC request to be queued
@@ -131,6 +136,10 @@ public class RpcRequestThreadPool {
 
 				if ( rpc != null) {
 
+					//	Get the packet handler for the request, the request packet is released when processing completes
+
+					RpcPacketHandler pktHandler = rpc.getPacketHandler();
+
 					try {
 
 						//	Process the request
@@ -150,6 +159,11 @@ public class RpcRequestThreadPool {
 					}
 					finally {
 
+					  //	Inform the packet handler that the request has completed
+
+					  if ( pktHandler instanceof RpcRequestCompletionHandler)
+					    ((RpcRequestCompletionHandler) pktHandler).rpcRequestCompleted(rpc);
+
 					  //	Release the RPC packet(s) back to the packet pool
 
 					  if ( rpc.getClientProtocol() == Rpc.TCP && rpc.isAllocatedFromPool())
@@ -30,12 +30,15 @@ import org.alfresco.jlan.oncrpc.RpcAuthenticator;
 import org.alfresco.jlan.oncrpc.RpcNetworkServer;
 import org.alfresco.jlan.oncrpc.RpcPacket;
 import org.alfresco.jlan.oncrpc.RpcProcessor;
+import org.alfresco.jlan.oncrpc.NIOTcpRpcSessionHandler;
+import org.alfresco.jlan.oncrpc.RpcRequestThreadPool;
 import org.alfresco.jlan.oncrpc.TcpRpcSessionHandler;
 import org.alfresco.jlan.oncrpc.UdpRpcDatagramHandler;
 import org.alfresco.jlan.oncrpc.nfs.NFSConfigSection;
 import org.alfresco.jlan.oncrpc.nfs.NFSHandle;
 import org.alfresco.jlan.oncrpc.nfs.NFSSrvSession;
 import org.alfresco.jlan.server.ServerListener;
+import org.alfresco.jlan.server.SessionHandlerBase;
 import org.alfresco.jlan.server.Version;
 import org.alfresco.jlan.server.auth.acl.AccessControl;
 import org.alfresco.jlan.server.auth.acl.AccessControlManager;
@@ -86,7 +89,7 @@ public class MountServer extends RpcNetworkServer implements RpcProcessor {
 
 	//	Incoming session handler for TCP requests
 
-	private TcpRpcSessionHandler m_tcpHandler;
+	private SessionHandlerBase m_tcpHandler;
 
 	//	Tree connection hash
 
@@ -181,12 +184,23 @@ public class MountServer extends RpcNetworkServer implements RpcProcessor {
 
 	    //	Create the TCP handler for accepting incoming requests
 
-	    m_tcpHandler = new TcpRpcSessionHandler("Mountd", "Mnt", this, this, null, getPort(), MaxRequestSize);
+	    if ( getNFSConfiguration().hasDisableNIOCode() == false) {
+
+	      //	Use the NIO session handler with a small worker thread pool
+
+	      NIOTcpRpcSessionHandler nioHandler = new NIOTcpRpcSessionHandler("Mountd", "Mnt", this, this, null, getPort(), MaxRequestSize);
+	      nioHandler.setThreadPool(RpcRequestThreadPool.MinimumWorkerThreads);
+
+	      m_tcpHandler = nioHandler;
+	    }
+	    else
+	      m_tcpHandler = new TcpRpcSessionHandler("Mountd", "Mnt", this, this, null, getPort(), MaxRequestSize);
+
 	    m_tcpHandler.initializeSessionHandler(this);
 
 	    //	Start the UDP request listener is a seperate thread
 
-	    Thread tcpThread = new Thread(m_tcpHandler);
+	    Thread tcpThread = new Thread((Runnable) m_tcpHandler);
 	    tcpThread.setName("Mountd_TCP");
 	    tcpThread.start();
 
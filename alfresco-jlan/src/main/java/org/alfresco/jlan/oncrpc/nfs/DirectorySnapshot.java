@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2006-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.alfresco.jlan.oncrpc.nfs;
+
+/**
+ * Directory Snapshot Class
+ *
+ * <p>Contains the entries of a directory listing taken in a single pass over a search, with the packed NFS v3
+ * attributes and handle for each entry, so that READDIR/READDIRPLUS requests can resume at any entry using
+ * the entry index from the cookie. Snapshots are shared between sessions with the same client identity via the
+ * directory snapshot cache, as the filesystem driver may filter a listing by user, and are reference counted
+ * whilst in use by a request.
+ *
+ * @author gkspencer
+ */
+public class DirectorySnapshot {
+
+	//	Initial entry array size
+
+	private static final int InitialEntries	= 64;
+
+	//	Estimated memory used per entry in addition to the packed data and file name characters
+
+	private static final int EntryOverhead	= 48;
+
+	//	Share id, directory path, client identity and cookie verifier (directory modify date/time) the snapshot
+	//	was taken at
+
+	private int m_shareId;
+	private String m_path;
+	private String m_owner;
+	private long m_verifier;
+
+	//	Time the snapshot was created
+
+	private long m_createTime;
+
+	//	Entry file names, file ids and packed attributes/handles
+
+	private String[] m_names;
+	private int[] m_fileIds;
+	private byte[] m_data;
+
+	//	Length of the packed data for each entry, and number of entries
+
+	private int m_dataLen;
+	private int m_count;
+
+	//	Estimated memory used by the snapshot
+
+	private long m_memSize;
+
+	//	Reference count, and stale flag indicating the directory has changed since the snapshot was taken
+
+	private int m_refCount;
+	private boolean m_stale;
+
+	/**
+	 * Class constructor
+	 *
+	 * @param shareId int
+	 * @param path String
+	 * @param owner String
+	 * @param verifier long
+	 * @param dataLen int
+	 */
+	public DirectorySnapshot(int shareId, String path, String owner, long verifier, int dataLen) {
+		m_shareId = shareId;
+		m_path = path;
+		m_owner = owner;
+		m_verifier = verifier;
+		m_dataLen = dataLen;
+
+		m_createTime = System.currentTimeMillis();
+
+		m_names = new String[InitialEntries];
+		m_fileIds = new int[InitialEntries];
+		m_data = new byte[InitialEntries * dataLen];
+	}
+
+	/**
+	 * Return the share id
+	 *
+	 * @return int
+	 */
+	public final int getShareId() {
+		return m_shareId;
+	}
+
+	/**
+	 * Return the directory path
+	 *
+	 * @return String
+	 */
+	public final String getPath() {
+		return m_path;
+	}
+
+	/**
+	 * Return the client identity the snapshot was taken for
+	 *
+	 * @return String
+	 */
+	public final String getOwner() {
+		return m_owner;
+	}
+
+	/**
+	 * Return the cookie verifier
+	 *
+	 * @return long
+	 */
+	public final long getVerifier() {
+		return m_verifier;
+	}
+
+	/**
+	 * Return the snapshot creation time
+	 *
+	 * @return long
+	 */
+	public final long getCreationTime() {
+		return m_createTime;
+	}
+
+	/**
+	 * Return the number of entries
+	 *
+	 * @return int
+	 */
+	public final int numberOfEntries() {
+		return m_count;
+	}
+
+	/**
+	 * Return the file name for the specified entry
+	 *
+	 * @param idx int
+	 * @return String
+	 */
+	public final String getFileNameAt(int idx) {
+		return m_names[idx];
+	}
+
+	/**
+	 * Return the file id for the specified entry
+	 *
+	 * @param idx int
+	 * @return int
+	 */
+	public final int getFileIdAt(int idx) {
+		return m_fileIds[idx];
+	}
+
+	/**
+	 * Return the packed data buffer
+	 *
+	 * @return byte[]
+	 */
+	public final byte[] getDataBuffer() {
+		return m_data;
+	}
+
+	/**
+	 * Return the offset to the packed data for the specified entry
+	 *
+	 * @param idx int
+	 * @return int
+	 */
+	public final int getDataOffset(int idx) {
+		return idx * m_dataLen;
+	}
+
+	/**
+	 * Return the length of the packed data for each entry
+	 *
+	 * @return int
+	 */
+	public final int getDataLength() {
+		return m_dataLen;
+	}
+
+	/**
+	 * Return the estimated memory used by the snapshot
+	 *
+	 * @return long
+	 */
+	public final long getMemorySize() {
+		return m_memSize;
+	}
+
+	/**
+	 * Check if the snapshot is stale, the directory has changed since it was taken
+	 *
+	 * @return boolean
+	 */
+	public final boolean isStale() {
+		return m_stale;
+	}
+
+	/**
+	 * Check if the snapshot is in use by a request
+	 *
+	 * @return boolean
+	 */
+	public final boolean isInUse() {
+		return m_refCount > 0;
+	}
+
+	/**
+	 * Add an entry to the snapshot
+	 *
+	 * @param name String
+	 * @param fileId int
+	 * @param data byte[]
+	 */
+	public final void addEntry(String name, int fileId, byte[] data) {
+
+		//	Extend the entry arrays, if full
+
+		if ( m_count == m_names.length) {
+
+			int newLen = m_names.length * 2;
+
+			String[] newNames = new String[newLen];
+			System.arraycopy(m_names, 0, newNames, 0, m_count);
+			m_names = newNames;
+
+			int[] newIds = new int[newLen];
+			System.arraycopy(m_fileIds, 0, newIds, 0, m_count);
+			m_fileIds = newIds;
+
+			byte[] newData = new byte[newLen * m_dataLen];
+			System.arraycopy(m_data, 0, newData, 0, m_count * m_dataLen);
+			m_data = newData;
+		}
+
+		//	Add the entry
+
+		m_names[m_count] = name;
+		m_fileIds[m_count] = fileId;
+		System.arraycopy(data, 0, m_data, m_count * m_dataLen, m_dataLen);
+
+		m_count++;
+
+		//	Update the estimated memory size
+
+		m_memSize += m_dataLen + EntryOverhead + name.length() * 2;
+	}
+
+	/**
+	 * Release unused space in the entry arrays once the snapshot is complete
+	 */
+	public final void trimToSize() {
+
+		if ( m_count < m_names.length) {
+
+			String[] newNames = new String[m_count];
+			System.arraycopy(m_names, 0, newNames, 0, m_count);
+			m_names = newNames;
+
+			int[] newIds = new int[m_count];
+			System.arraycopy(m_fileIds, 0, newIds, 0, m_count);
+			m_fileIds = newIds;
+
+			byte[] newData = new byte[m_count * m_dataLen];
+			System.arraycopy(m_data, 0, newData, 0, m_count * m_dataLen);
+			m_data = newData;
+		}
+	}
+
+	/**
+	 * Increment the reference count
+	 */
+	protected final void incrementReferenceCount() {
+		m_refCount++;
+	}
+
+	/**
+	 * Decrement the reference count
+	 */
+	protected final void decrementReferenceCount() {
+		if ( m_refCount > 0)
+			m_refCount--;
+	}
+
+	/**
+	 * Mark the snapshot as stale
+	 */
+	protected final void setStale() {
+		m_stale = true;
+	}
+
+	/**
+	 * Return the directory snapshot as a string
+	 *
+	 * @return String
+	 */
+	public String toString() {
+		StringBuilder str = new StringBuilder();
+
+		str.append("[");
+		str.append(getShareId());
+		str.append(":");
+		str.append(getPath());
+		str.append(",owner=");
+		str.append(getOwner());
+		str.append(",entries=");
+		str.append(numberOfEntries());
+		str.append(",mem=");
+		str.append(getMemorySize());
+		str.append(",refs=");
+		str.append(m_refCount);
+		if ( isStale())
+			str.append(",Stale");
+		str.append("]");
+
+		return str.toString();
+	}
+}
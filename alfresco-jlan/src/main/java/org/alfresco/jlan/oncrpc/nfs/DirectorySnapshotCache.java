@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2006-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.alfresco.jlan.oncrpc.nfs;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.alfresco.jlan.debug.Debug;
+
+/**
+ * Directory Snapshot Cache Class
+ *
+ * <p>Server wide cache of directory snapshots used by READDIR/READDIRPLUS. A snapshot is used to start a new
+ * listing of a directory for a short time after it is created, and to resume a listing for as long as it remains
+ * in the cache. The cache is limited by the estimated memory used by the snapshots, the least recently used
+ * snapshots that are not in use by a request are evicted when the limit is exceeded.
+ *
+ * <p>Snapshots are keyed by the client identity as well as the directory path, as the filesystem driver may
+ * filter a listing by user. The snapshots of a directory are also indexed by the upper case path so that a
+ * change to the directory made using a path with different case, such as by an SMB or FTP client, marks all
+ * of the snapshots of the directory as stale.
+ *
+ * @author gkspencer
+ */
+public class DirectorySnapshotCache {
+
+	//	Default/minimum/maximum memory limit
+
+	public static final long DefaultMemoryLimit	= 32L * 1024L * 1024L;
+	public static final long MinimumMemoryLimit	= 1024L * 1024L;
+	public static final long MaximumMemoryLimit	= 1024L * 1024L * 1024L;
+
+	//	Default/maximum time a snapshot can be used to start a new listing, in milliseconds
+
+	public static final long DefaultSnapshotTimeout	= 10000L;
+	public static final long MaximumSnapshotTimeout	= 300000L;
+
+	//	Snapshots, in least recently used order
+
+	private LinkedHashMap<String, DirectorySnapshot> m_snapshots;
+
+	//	Snapshots of each directory, by share id and upper case path
+
+	private HashMap<String, List<DirectorySnapshot>> m_dirIndex;
+
+	//	Memory limit and estimated memory used by the cached snapshots
+
+	private long m_memLimit;
+	private long m_memUsed;
+
+	//	Time a snapshot can be used to start a new listing
+
+	private long m_snapTimeout;
+
+	//	Debug enable flag
+
+	private boolean m_debug;
+
+	/**
+	 * Class constructor
+	 *
+	 * @param memLimit long
+	 * @param snapTmo long
+	 */
+	public DirectorySnapshotCache(long memLimit, long snapTmo) {
+		m_snapshots = new LinkedHashMap<String, DirectorySnapshot>(64, 0.75f, true);
+		m_dirIndex = new HashMap<String, List<DirectorySnapshot>>(64);
+
+		m_memLimit = memLimit;
+		m_snapTimeout = snapTmo;
+	}
+
+	/**
+	 * Return the memory limit
+	 *
+	 * @return long
+	 */
+	public final long getMemoryLimit() {
+		return m_memLimit;
+	}
+
+	/**
+	 * Return the estimated memory used by the cached snapshots
+	 *
+	 * @return long
+	 */
+	public final synchronized long getMemoryUsed() {
+		return m_memUsed;
+	}
+
+	/**
+	 * Return the number of cached snapshots
+	 *
+	 * @return int
+	 */
+	public final synchronized int numberOfSnapshots() {
+		return m_snapshots.size();
+	}
+
+	/**
+	 * Check if debug output is enabled
+	 *
+	 * @return boolean
+	 */
+	public final boolean hasDebug() {
+		return m_debug;
+	}
+
+	/**
+	 * Enable/disable debug output
+	 *
+	 * @param dbg boolean
+	 */
+	public final void setDebug(boolean dbg) {
+		m_debug = dbg;
+	}
+
+	/**
+	 * Find a snapshot of a directory for the specified cookie verifier, and increment the reference count. The
+	 * snapshot must be released using releaseSnapshot() when the request has finished using it.
+	 *
+	 * @param shareId int
+	 * @param path String
+	 * @param owner String
+	 * @param verifier long
+	 * @param newListing boolean
+	 * @return DirectorySnapshot
+	 */
+	public final synchronized DirectorySnapshot findSnapshot(int shareId, String path, String owner, long verifier,
+			boolean newListing) {
+
+		//	Find the snapshot
+
+		DirectorySnapshot snapshot = m_snapshots.get(makeKey(shareId, path, owner));
+		if ( snapshot == null || snapshot.getVerifier() != verifier)
+			return null;
+
+		//	A new listing can only use a recent snapshot of the directory
+
+		if ( newListing && ( snapshot.isStale() ||
+				( System.currentTimeMillis() - snapshot.getCreationTime()) > m_snapTimeout))
+			return null;
+
+		//	Mark the snapshot as in use
+
+		snapshot.incrementReferenceCount();
+		return snapshot;
+	}
+
+	/**
+	 * Add a snapshot to the cache, replacing any existing snapshot of the directory, and increment the reference
+	 * count. The snapshot must be released using releaseSnapshot() when the request has finished using it.
+	 *
+	 * @param snapshot DirectorySnapshot
+	 */
+	public final synchronized void addSnapshot(DirectorySnapshot snapshot) {
+
+		//	Mark the snapshot as in use
+
+		snapshot.incrementReferenceCount();
+
+		//	Add the snapshot to the cache, remove any existing snapshot
+
+		DirectorySnapshot oldSnapshot = m_snapshots.put(makeKey(snapshot.getShareId(), snapshot.getPath(), snapshot.getOwner()), snapshot);
+		if ( oldSnapshot != null) {
+			m_memUsed -= oldSnapshot.getMemorySize();
+			removeFromIndex(oldSnapshot);
+		}
+
+		m_memUsed += snapshot.getMemorySize();
+
+		//	Add the snapshot to the directory index
+
+		String dirKey = makeDirectoryKey(snapshot.getShareId(), snapshot.getPath());
+		List<DirectorySnapshot> dirSnapshots = m_dirIndex.get(dirKey);
+
+		if ( dirSnapshots == null) {
+			dirSnapshots = new ArrayList<DirectorySnapshot>(2);
+			m_dirIndex.put(dirKey, dirSnapshots);
+		}
+
+		dirSnapshots.add(snapshot);
+
+		//	DEBUG
+
+		if ( Debug.EnableInfo && hasDebug())
+			Debug.println("[NFS] Added directory snapshot " + snapshot + ", cache=" + m_snapshots.size() + "/" + m_memUsed);
+
+		//	Evict snapshots if the cache is over the memory limit
+
+		checkMemoryLimit();
+	}
+
+	/**
+	 * Release a snapshot that was returned by findSnapshot() or added using addSnapshot()
+	 *
+	 * @param snapshot DirectorySnapshot
+	 */
+	public final synchronized void releaseSnapshot(DirectorySnapshot snapshot) {
+
+		//	Decrement the reference count, evict snapshots if the cache is over the memory limit
+
+		snapshot.decrementReferenceCount();
+
+		if ( m_memUsed > m_memLimit)
+			checkMemoryLimit();
+	}
+
+	/**
+	 * Mark the snapshots of a directory as stale, the directory has been changed. The snapshots can still be used
+	 * to resume an existing listing.
+	 *
+	 * @param shareId int
+	 * @param path String
+	 */
+	public final synchronized void invalidateSnapshot(int shareId, String path) {
+
+		//	Find the snapshots of the directory, for all clients, mark as stale
+
+		List<DirectorySnapshot> dirSnapshots = m_dirIndex.get(makeDirectoryKey(shareId, path));
+
+		if ( dirSnapshots != null) {
+			for ( DirectorySnapshot snapshot : dirSnapshots)
+				snapshot.setStale();
+		}
+	}
+
+	/**
+	 * Remove all snapshots from the cache
+	 */
+	public final synchronized void removeAllSnapshots() {
+		m_snapshots.clear();
+		m_dirIndex.clear();
+		m_memUsed = 0L;
+	}
+
+	/**
+	 * Evict the least recently used snapshots that are not in use until the cache is within the memory limit
+	 */
+	private final void checkMemoryLimit() {
+
+		Iterator<DirectorySnapshot> iter = m_snapshots.values().iterator();
+
+		while ( m_memUsed > m_memLimit && iter.hasNext()) {
+
+			//	Evict the snapshot if it is not in use
+
+			DirectorySnapshot snapshot = iter.next();
+
+			if ( snapshot.isInUse() == false) {
+				iter.remove();
+				m_memUsed -= snapshot.getMemorySize();
+
+				removeFromIndex(snapshot);
+
+				//	DEBUG
+
+				if ( Debug.EnableInfo && hasDebug())
+					Debug.println("[NFS] Evicted directory snapshot " + snapshot);
+			}
+		}
+	}
+
+	/**
+	 * Remove a snapshot from the directory index
+	 *
+	 * @param snapshot DirectorySnapshot
+	 */
+	private final void removeFromIndex(DirectorySnapshot snapshot) {
+		String dirKey = makeDirectoryKey(snapshot.getShareId(), snapshot.getPath());
+		List<DirectorySnapshot> dirSnapshots = m_dirIndex.get(dirKey);
+
+		if ( dirSnapshots != null) {
+			dirSnapshots.remove(snapshot);
+			if ( dirSnapshots.isEmpty())
+				m_dirIndex.remove(dirKey);
+		}
+	}
+
+	/**
+	 * Build the cache key for a directory snapshot taken for a client
+	 *
+	 * @param shareId int
+	 * @param path String
+	 * @param owner String
+	 * @return String
+	 */
+	private final String makeKey(int shareId, String path, String owner) {
+		StringBuilder str = new StringBuilder(path.length() + owner.length() + 12);
+		str.append(shareId);
+		str.append(":");
+		str.append(owner);
+		str.append(":");
+		str.append(path);
+		return str.toString();
+	}
+
+	/**
+	 * Build the directory index key for a directory
+	 *
+	 * @param shareId int
+	 * @param path String
+	 * @return String
+	 */
+	private final String makeDirectoryKey(int shareId, String path) {
+		StringBuilder str = new StringBuilder(path.length() + 12);
+		str.append(shareId);
+		str.append(":");
+		str.append(path.toUpperCase());
+		return str.toString();
+	}
+}
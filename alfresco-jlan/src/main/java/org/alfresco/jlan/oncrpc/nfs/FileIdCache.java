@@ -19,12 +19,19 @@
 
 package org.alfresco.jlan.oncrpc.nfs;
 
+import java.io.IOException;
 import java.util.Hashtable;
+import java.util.Map;
+
+import org.alfresco.jlan.server.filesys.FileName;
+
+import org.alfresco.jlan.debug.Debug;
 
 /**
  * File Id Cache Class
  *
- * <p>Converts a file/directory id to a share relative path.
+ * <p>Converts a file/directory id to a share relative path. The paths may be held in memory, or in a persistent
+ * file id index so that handles issued before a server restart can still be converted to a path.
  *
  * @author gkspencer
  */
@@ -32,7 +39,11 @@ public class FileIdCache {
 
 	//	File id to path cache
 
-	private Hashtable<Integer, String> m_idCache;
+	private volatile Hashtable<Integer, String> m_idCache;
+
+	//	Persistent file id index, if enabled
+
+	private volatile FileIdIndex m_index;
 
 	/**
 	 * Default constructor
@@ -41,6 +52,36 @@ public class FileIdCache {
 		m_idCache = new Hashtable<Integer, String>();
 	}
 
+	/**
+	 * Class constructor
+	 *
+	 * @param index FileIdIndex
+	 */
+	public FileIdCache(FileIdIndex index) {
+		m_index = index;
+
+		if ( index == null)
+			m_idCache = new Hashtable<Integer, String>();
+	}
+
+	/**
+	 * Determine if the cache uses a persistent file id index
+	 *
+	 * @return boolean
+	 */
+	public final boolean hasPersistentIndex() {
+		return m_index != null;
+	}
+
+	/**
+	 * Return the persistent file id index, or null if the paths are held in memory
+	 *
+	 * @return FileIdIndex
+	 */
+	public final FileIdIndex getPersistentIndex() {
+		return m_index;
+	}
+
 	/**
 	 * Add an entry to the cache
 	 *
@@ -48,6 +89,18 @@ public class FileIdCache {
 	 * @param path String
 	 */
 	public final void addPath(int fid, String path) {
+		FileIdIndex index = m_index;
+
+		if ( index != null) {
+			try {
+				index.addPath(fid, path);
+				return;
+			}
+			catch (IOException ex) {
+				indexFailed(index, ex);
+			}
+		}
+
 		m_idCache.put(new Integer(fid), path);
 	}
 
@@ -58,6 +111,10 @@ public class FileIdCache {
 	 * @return String
 	 */
 	public final String findPath(int fid) {
+		FileIdIndex index = m_index;
+
+		if ( index != null)
+			return index.findPath(fid);
 		return m_idCache.get(new Integer(fid));
 	}
 
@@ -67,6 +124,88 @@ public class FileIdCache {
 	 * @param fid int
 	 */
 	public final void deletePath(int fid) {
+		FileIdIndex index = m_index;
+
+		if ( index != null) {
+			try {
+				index.deletePath(fid);
+				return;
+			}
+			catch (IOException ex) {
+				indexFailed(index, ex);
+			}
+		}
+
 		m_idCache.remove(new Integer(fid));
 	}
+
+	/**
+	 * Update the paths of the file ids below a renamed directory
+	 *
+	 * @param oldPath String
+	 * @param newPath String
+	 */
+	public final void renamePaths(String oldPath, String newPath) {
+		FileIdIndex index = m_index;
+
+		if ( index != null) {
+			try {
+				index.renamePaths(oldPath, newPath);
+				return;
+			}
+			catch (IOException ex) {
+				indexFailed(index, ex);
+			}
+		}
+
+		//	Update the in-memory paths
+
+		String oldPrefix = oldPath.endsWith(FileName.DOS_SEPERATOR_STR) ? oldPath : oldPath + FileName.DOS_SEPERATOR_STR;
+		String newPrefix = newPath.endsWith(FileName.DOS_SEPERATOR_STR) ? newPath : newPath + FileName.DOS_SEPERATOR_STR;
+
+		Hashtable<Integer, String> idCache = m_idCache;
+
+		synchronized ( idCache) {
+			for ( Map.Entry<Integer, String> entry : idCache.entrySet()) {
+				String path = entry.getValue();
+				if ( path.startsWith(oldPrefix))
+					entry.setValue(newPrefix + path.substring(oldPrefix.length()));
+			}
+		}
+	}
+
+	/**
+	 * Close the persistent file id index, if enabled
+	 */
+	public final synchronized void closeIndex() {
+		if ( m_index != null) {
+			m_index.closeIndex();
+
+			m_idCache = new Hashtable<Integer, String>();
+			m_index = null;
+		}
+	}
+
+	/**
+	 * The persistent file id index has failed, switch to holding the paths in memory
+	 *
+	 * @param index FileIdIndex
+	 * @param ex IOException
+	 */
+	private final synchronized void indexFailed(FileIdIndex index, IOException ex) {
+
+		//	Check if the index has already been switched off
+
+		if ( m_index != index)
+			return;
+
+		//	DEBUG
+
+		Debug.println("[NFS] File id index failed, " + index.getFile().getName() + ", " + ex.getMessage());
+
+		index.closeIndex();
+
+		m_idCache = new Hashtable<Integer, String>();
+		m_index = null;
+	}
 }
@@ -0,0 +1,761 @@
+/*
+ * Copyright (C) 2006-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.alfresco.jlan.oncrpc.nfs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.alfresco.jlan.server.filesys.FileName;
+
+/**
+ * File Id Index Class
+ *
+ * <p>Persistent file id to path index for a shared filesystem. Paths are written to an append only log file
+ * that is memory mapped, a primitive int to log offset hash table is used to find the current path for a file
+ * id. The log is replayed to rebuild the hash table when the index is opened, so handles issued before a server
+ * restart can still be converted to a path.
+ *
+ * <p>Changes to a path, and deleted file ids, are appended to the log. The log is rewritten with only the
+ * current entries when the space used by old entries grows larger than the space used by the current entries.
+ *
+ * <p>The index is only useful if the filesystem driver returns the same file id for a path across server
+ * restarts.
+ *
+ * @author gkspencer
+ */
+public class FileIdIndex {
+
+	//	Index file extension
+
+	public static final String FileExtension	= ".fidx";
+
+	//	Log header, signature and version
+
+	private static final int Signature			= 0x4A464958;	// 'JFIX'
+	private static final int Version			= 1;
+	private static final int HeaderLength		= 8;
+
+	//	Log record header, record length, file id and check value. A record with no path data deletes the
+	//	file id.
+
+	private static final int RecordHeaderLength	= 12;
+
+	//	Initial size and minimum growth of the mapped log
+
+	private static final int InitialLogSize		= 256 * 1024;
+	private static final int MaxLogSize			= Integer.MAX_VALUE - 8;
+
+	//	Minimum log size before the log will be compacted
+
+	private static final int MinCompactSize		= 1024 * 1024;
+
+	//	Hash table empty and deleted slot markers, valid log offsets are always after the log header
+
+	private static final int SlotEmpty			= 0;
+	private static final int SlotDeleted		= -1;
+
+	//	Initial hash table size, must be a power of 2
+
+	private static final int InitialTableSize	= 1024;
+
+	//	Index file, channel and mapped log
+
+	private File m_file;
+	private RandomAccessFile m_raf;
+	private FileChannel m_channel;
+	private MappedByteBuffer m_log;
+
+	//	End of the log, and the number of bytes used by current entries
+
+	private int m_logEnd;
+	private int m_liveBytes;
+
+	//	File id to log offset hash table, open addressing with linear probing
+
+	private int[] m_keys;
+	private int[] m_offsets;
+
+	private int m_count;
+	private int m_used;
+
+	/**
+	 * Class constructor
+	 *
+	 * @param file File
+	 * @exception IOException
+	 */
+	public FileIdIndex(File file)
+		throws IOException {
+
+		m_file = file;
+
+		//	Open the index, replay the log to build the hash table
+
+		openLog();
+
+		//	Compact the log if it contains mostly old entries
+
+		if ( needsCompaction())
+			compact();
+	}
+
+	/**
+	 * Return the index file
+	 *
+	 * @return File
+	 */
+	public final File getFile() {
+		return m_file;
+	}
+
+	/**
+	 * Return the number of file ids in the index
+	 *
+	 * @return int
+	 */
+	public final synchronized int numberOfEntries() {
+		return m_count;
+	}
+
+	/**
+	 * Return the current log length
+	 *
+	 * @return int
+	 */
+	public final synchronized int getLogLength() {
+		return m_logEnd;
+	}
+
+	/**
+	 * Add, or update, the path for a file id
+	 *
+	 * @param fid int
+	 * @param path String
+	 * @exception IOException
+	 */
+	public final synchronized void addPath(int fid, String path)
+		throws IOException {
+
+		checkOpen();
+
+		//	Check if the file id is already mapped to the same path, lookups and directory searches add the same
+		//	paths repeatedly
+
+		byte[] pathBytes = encodePath(path);
+		int slot = findSlot(fid);
+
+		if ( slot != -1 && isSamePath(m_offsets[slot], pathBytes))
+			return;
+
+		//	Append the new path to the log, and update the hash table
+
+		int offset = appendRecord(fid, pathBytes);
+
+		if ( slot != -1) {
+			m_liveBytes -= recordLength(m_offsets[slot]);
+			m_offsets[slot] = offset;
+		}
+		else
+			insert(fid, offset);
+
+		m_liveBytes += RecordHeaderLength + pathBytes.length;
+
+		//	Check if the log should be compacted
+
+		if ( needsCompaction())
+			compact();
+	}
+
+	/**
+	 * Return the path for a file id, or null if the file id is not in the index
+	 *
+	 * @param fid int
+	 * @return String
+	 */
+	public final synchronized String findPath(int fid) {
+
+		//	Check if the index is open
+
+		if ( m_log == null)
+			return null;
+
+		//	Find the file id, and decode the path from the log
+
+		int slot = findSlot(fid);
+		if ( slot == -1)
+			return null;
+
+		return decodePath(m_offsets[slot]);
+	}
+
+	/**
+	 * Delete the path for a file id
+	 *
+	 * @param fid int
+	 * @exception IOException
+	 */
+	public final synchronized void deletePath(int fid)
+		throws IOException {
+
+		checkOpen();
+
+		//	Find the file id
+
+		int slot = findSlot(fid);
+		if ( slot == -1)
+			return;
+
+		//	Append a delete record to the log, and remove the file id from the hash table
+
+		appendRecord(fid, null);
+
+		m_liveBytes -= recordLength(m_offsets[slot]);
+		m_offsets[slot] = SlotDeleted;
+		m_count--;
+
+		//	Check if the log should be compacted
+
+		if ( needsCompaction())
+			compact();
+	}
+
+	/**
+	 * Update the paths of the file ids below a renamed directory
+	 *
+	 * @param oldPath String
+	 * @param newPath String
+	 * @return int
+	 * @exception IOException
+	 */
+	public final synchronized int renamePaths(String oldPath, String newPath)
+		throws IOException {
+
+		checkOpen();
+
+		//	Find the file ids with a path below the old directory path. The paths are updated after the scan as
+		//	adding paths may rebuild the hash table, or compact the log.
+
+		String oldPrefix = oldPath.endsWith(FileName.DOS_SEPERATOR_STR) ? oldPath : oldPath + FileName.DOS_SEPERATOR_STR;
+		String newPrefix = newPath.endsWith(FileName.DOS_SEPERATOR_STR) ? newPath : newPath + FileName.DOS_SEPERATOR_STR;
+
+		byte[] prefixBytes = encodePath(oldPrefix);
+
+		List<Integer> fids = new ArrayList<Integer>();
+		List<String> paths = new ArrayList<String>();
+
+		for ( int i = 0; i < m_offsets.length; i++) {
+			int offset = m_offsets[i];
+
+			if ( offset > 0 && hasPathPrefix(offset, prefixBytes)) {
+				String path = decodePath(offset);
+
+				fids.add(Integer.valueOf(m_keys[i]));
+				paths.add(newPrefix + path.substring(oldPrefix.length()));
+			}
+		}
+
+		//	Update the paths
+
+		for ( int i = 0; i < fids.size(); i++)
+			addPath(fids.get(i).intValue(), paths.get(i));
+
+		return fids.size();
+	}
+
+	/**
+	 * Write the mapped log to disk, and close the index
+	 */
+	public final synchronized void closeIndex() {
+
+		//	Write the mapped log to disk
+
+		if ( m_log != null) {
+			m_log.force();
+			m_log = null;
+		}
+
+		//	Close the index file
+
+		closeFile();
+
+		m_keys = null;
+		m_offsets = null;
+	}
+
+	/**
+	 * Open the log file, and replay the log records to build the hash table
+	 *
+	 * @exception IOException
+	 */
+	private final void openLog()
+		throws IOException {
+
+		//	Open the log file, and map the log
+
+		m_raf = new RandomAccessFile(m_file, "rw");
+		m_channel = m_raf.getChannel();
+
+		try {
+			boolean newLog = m_raf.length() < HeaderLength;
+			long logSize = Math.max(m_raf.length(), InitialLogSize);
+
+			m_log = m_channel.map(FileChannel.MapMode.READ_WRITE, 0, logSize);
+
+			//	Initialize a new log, or check the header of an existing log
+
+			if ( newLog) {
+				m_log.putInt(0, Signature);
+				m_log.putInt(4, Version);
+			}
+			else if ( m_log.getInt(0) != Signature || m_log.getInt(4) != Version)
+				throw new IOException("Invalid file id index " + m_file.getAbsolutePath());
+
+			//	Replay the log records
+
+			m_keys = new int[InitialTableSize];
+			m_offsets = new int[InitialTableSize];
+			m_count = 0;
+			m_used = 0;
+			m_liveBytes = 0;
+
+			int pos = HeaderLength;
+			int limit = m_log.capacity();
+
+			while ( pos + RecordHeaderLength <= limit) {
+
+				//	A zero length marks the end of the log, a partially written record at the end of the log
+				//	is ignored
+
+				int recLen = m_log.getInt(pos);
+				if ( recLen < RecordHeaderLength || pos + recLen > limit || m_log.getInt(pos + 8) != checkRecord(pos, recLen))
+					break;
+
+				int fid = m_log.getInt(pos + 4);
+				int slot = findSlot(fid);
+
+				if ( slot != -1) {
+					m_liveBytes -= recordLength(m_offsets[slot]);
+
+					if ( recLen == RecordHeaderLength) {
+						m_offsets[slot] = SlotDeleted;
+						m_count--;
+					}
+					else
+						m_offsets[slot] = pos;
+				}
+				else if ( recLen > RecordHeaderLength)
+					insert(fid, pos);
+
+				if ( recLen > RecordHeaderLength)
+					m_liveBytes += recLen;
+
+				pos += recLen;
+			}
+
+			m_logEnd = pos;
+
+			//	Clear any partially written record at the end of the log
+
+			if ( m_logEnd + 4 <= limit)
+				m_log.putInt(m_logEnd, 0);
+		}
+		catch (IOException ex) {
+
+			//	Close the index file
+
+			m_log = null;
+			closeFile();
+
+			throw ex;
+		}
+	}
+
+	/**
+	 * Close the index file
+	 */
+	private final void closeFile() {
+		try {
+			if ( m_raf != null)
+				m_raf.close();
+		}
+		catch (IOException ex) {
+		}
+
+		m_raf = null;
+		m_channel = null;
+	}
+
+	/**
+	 * Check that the index is open
+	 *
+	 * @exception IOException
+	 */
+	private final void checkOpen()
+		throws IOException {
+		if ( m_log == null)
+			throw new IOException("File id index closed, " + m_file.getName());
+	}
+
+	/**
+	 * Append a record to the log, a null path appends a delete record. Returns the log offset of the record.
+	 *
+	 * @param fid int
+	 * @param pathBytes byte[]
+	 * @return int
+	 * @exception IOException
+	 */
+	private final int appendRecord(int fid, byte[] pathBytes)
+		throws IOException {
+
+		int recLen = RecordHeaderLength + (pathBytes != null ? pathBytes.length : 0);
+
+		//	Grow the mapped log if required, leave space for the end of log marker
+
+		if ( m_logEnd + recLen + 4 > m_log.capacity())
+			growLog(m_logEnd + recLen + 4);
+
+		//	Write the record, the length is written last so a partially written record is not replayed
+
+		int offset = m_logEnd;
+
+		m_log.putInt(offset + 4, fid);
+
+		if ( pathBytes != null) {
+			m_log.position(offset + RecordHeaderLength);
+			m_log.put(pathBytes);
+		}
+
+		m_log.putInt(offset + 8, checkRecord(offset, recLen));
+
+		m_log.putInt(offset + recLen, 0);
+		m_log.putInt(offset, recLen);
+
+		m_logEnd += recLen;
+		return offset;
+	}
+
+	/**
+	 * Grow the mapped log
+	 *
+	 * @param minSize int
+	 * @exception IOException
+	 */
+	private final void growLog(int minSize)
+		throws IOException {
+
+		if ( minSize > MaxLogSize || minSize < 0)
+			throw new IOException("File id index full, " + m_file.getName());
+
+		//	Double the log size, remap the log file
+
+		long newSize = Math.min(Math.max((long) m_log.capacity() * 2L, minSize), MaxLogSize);
+
+		m_log.force();
+		m_log = m_channel.map(FileChannel.MapMode.READ_WRITE, 0, newSize);
+	}
+
+	/**
+	 * Check if the log should be compacted, when more than half of the log is old entries
+	 *
+	 * @return boolean
+	 */
+	private final boolean needsCompaction() {
+		return m_logEnd > MinCompactSize && (m_logEnd - HeaderLength) > m_liveBytes * 2;
+	}
+
+	/**
+	 * Rewrite the log with only the current entries. The new log is written to a temporary file which replaces
+	 * the current log file, if the log file cannot be replaced the current log is kept.
+	 *
+	 * @exception IOException
+	 */
+	private final void compact()
+		throws IOException {
+
+		//	Write the current entries to a new log file
+
+		File tmpFile = new File(m_file.getPath() + ".tmp");
+		int newLen = HeaderLength + m_liveBytes;
+
+		RandomAccessFile tmpRaf = new RandomAccessFile(tmpFile, "rw");
+
+		try {
+			tmpRaf.setLength(0);
+
+			FileChannel tmpChannel = tmpRaf.getChannel();
+			ByteBuffer buf = ByteBuffer.allocate(newLen + 4);
+
+			buf.putInt(Signature);
+			buf.putInt(Version);
+
+			for ( int i = 0; i < m_offsets.length; i++) {
+				int offset = m_offsets[i];
+
+				if ( offset > 0) {
+					int recLen = m_log.getInt(offset);
+
+					ByteBuffer rec = m_log.duplicate();
+					rec.position(offset);
+					rec.limit(offset + recLen);
+
+					buf.put(rec);
+				}
+			}
+
+			buf.putInt(0);
+			buf.flip();
+
+			while ( buf.hasRemaining())
+				tmpChannel.write(buf);
+
+			tmpChannel.force(true);
+		}
+		finally {
+			tmpRaf.close();
+		}
+
+		//	Replace the log file, and reopen the index
+
+		m_log.force();
+		m_log = null;
+
+		closeFile();
+
+		if ( tmpFile.renameTo(m_file) == false) {
+			if ( m_file.delete() == false || tmpFile.renameTo(m_file) == false)
+				tmpFile.delete();
+		}
+
+		openLog();
+	}
+
+	/**
+	 * Find the hash table slot for a file id, or -1 if the file id is not in the table
+	 *
+	 * @param fid int
+	 * @return int
+	 */
+	private final int findSlot(int fid) {
+		int mask = m_keys.length - 1;
+		int idx = hashFileId(fid) & mask;
+
+		while ( m_offsets[idx] != SlotEmpty) {
+			if ( m_offsets[idx] != SlotDeleted && m_keys[idx] == fid)
+				return idx;
+			idx = (idx + 1) & mask;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Insert a file id that is not in the hash table
+	 *
+	 * @param fid int
+	 * @param offset int
+	 */
+	private final void insert(int fid, int offset) {
+
+		//	Grow the table when more than half of the slots have been used, deleted slots are reclaimed
+		//	when the table is rebuilt
+
+		if (( m_used + 1) * 2 > m_keys.length)
+			rehash(m_count * 4 > m_keys.length ? m_keys.length * 2 : m_keys.length);
+
+		int mask = m_keys.length - 1;
+		int idx = hashFileId(fid) & mask;
+
+		while ( m_offsets[idx] > 0)
+			idx = (idx + 1) & mask;
+
+		if ( m_offsets[idx] == SlotEmpty)
+			m_used++;
+
+		m_keys[idx] = fid;
+		m_offsets[idx] = offset;
+		m_count++;
+	}
+
+	/**
+	 * Rebuild the hash table
+	 *
+	 * @param newSize int
+	 */
+	private final void rehash(int newSize) {
+		int[] oldKeys = m_keys;
+		int[] oldOffsets = m_offsets;
+
+		m_keys = new int[newSize];
+		m_offsets = new int[newSize];
+		m_count = 0;
+		m_used = 0;
+
+		for ( int i = 0; i < oldKeys.length; i++) {
+			if ( oldOffsets[i] > 0)
+				insert(oldKeys[i], oldOffsets[i]);
+		}
+	}
+
+	/**
+	 * Hash a file id, file ids are often path hash codes or sequential values so spread the bits
+	 *
+	 * @param fid int
+	 * @return int
+	 */
+	private static final int hashFileId(int fid) {
+		int h = fid * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Calculate the check value for a log record, used to detect a partially written record at the end of
+	 * the log
+	 *
+	 * @param offset int
+	 * @param recLen int
+	 * @return int
+	 */
+	private final int checkRecord(int offset, int recLen) {
+		int check = 0x811C9DC5 ^ recLen;
+		check = (check * 0x01000193) ^ m_log.getInt(offset + 4);
+
+		int endPos = offset + recLen;
+
+		for ( int pos = offset + RecordHeaderLength; pos < endPos; pos++)
+			check = (check * 0x01000193) ^ m_log.get(pos);
+
+		return check;
+	}
+
+	/**
+	 * Return the length of the log record at the specified offset
+	 *
+	 * @param offset int
+	 * @return int
+	 */
+	private final int recordLength(int offset) {
+		return m_log.getInt(offset);
+	}
+
+	/**
+	 * Check if the log record at the specified offset has the same path
+	 *
+	 * @param offset int
+	 * @param pathBytes byte[]
+	 * @return boolean
+	 */
+	private final boolean isSamePath(int offset, byte[] pathBytes) {
+		if ( m_log.getInt(offset) - RecordHeaderLength != pathBytes.length)
+			return false;
+
+		int pos = offset + RecordHeaderLength;
+
+		for ( int i = 0; i < pathBytes.length; i++) {
+			if ( m_log.get(pos + i) != pathBytes[i])
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Check if the path in the log record at the specified offset starts with the specified prefix
+	 *
+	 * @param offset int
+	 * @param prefixBytes byte[]
+	 * @return boolean
+	 */
+	private final boolean hasPathPrefix(int offset, byte[] prefixBytes) {
+		if ( m_log.getInt(offset) - RecordHeaderLength < prefixBytes.length)
+			return false;
+
+		int pos = offset + RecordHeaderLength;
+
+		for ( int i = 0; i < prefixBytes.length; i++) {
+			if ( m_log.get(pos + i) != prefixBytes[i])
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Decode the path from the log record at the specified offset
+	 *
+	 * @param offset int
+	 * @return String
+	 */
+	private final String decodePath(int offset) {
+		byte[] pathBytes = new byte[m_log.getInt(offset) - RecordHeaderLength];
+
+		m_log.position(offset + RecordHeaderLength);
+		m_log.get(pathBytes);
+
+		try {
+			return new String(pathBytes, "UTF-8");
+		}
+		catch (UnsupportedEncodingException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * Encode a path as UTF-8
+	 *
+	 * @param path String
+	 * @return byte[]
+	 */
+	private static final byte[] encodePath(String path) {
+		try {
+			return path.getBytes("UTF-8");
+		}
+		catch (UnsupportedEncodingException ex) {
+			return path.getBytes();
+		}
+	}
+
+	/**
+	 * Return the index details as a string
+	 *
+	 * @return String
+	 */
+	public String toString() {
+		StringBuilder str = new StringBuilder();
+
+		str.append("[FileIdIndex ");
+		str.append(m_file.getName());
+		str.append(",entries=");
+		str.append(m_count);
+		str.append(",log=");
+		str.append(m_logEnd);
+		str.append("/live=");
+		str.append(m_liveBytes);
+		str.append("]");
+
+		return str.toString();
+	}
+}
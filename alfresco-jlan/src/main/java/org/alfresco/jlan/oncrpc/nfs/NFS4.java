@@ -0,0 +1,422 @@
+/*
+ * Copyright (C) 2006-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.alfresco.jlan.oncrpc.nfs;
+
+/**
+ * NFS Version 4.1 Server Constants Class
+ *
+ * <p>Contains the operation codes, status codes and attribute numbers used by the NFSv4.1 COMPOUND
+ * procedure, plus static methods to convert operation and status codes to strings.
+ *
+ * @author gkspencer
+ */
+public final class NFS4 {
+
+  //	Program, version and minor version id
+
+  public static final int ProgramId			= NFS.ProgramId;
+  public static final int VersionId			= 4;
+  public static final int MinorVersion		= 1;
+
+  //	RPC procedure ids
+
+  public static final int ProcNull			= 0;
+  public static final int ProcCompound		= 1;
+
+  //	COMPOUND operation codes
+
+  public static final int OpAccess				= 3;
+  public static final int OpClose				= 4;
+  public static final int OpCommit				= 5;
+  public static final int OpCreate				= 6;
+  public static final int OpDelegPurge			= 7;
+  public static final int OpDelegReturn			= 8;
+  public static final int OpGetAttr				= 9;
+  public static final int OpGetFH				= 10;
+  public static final int OpLink				= 11;
+  public static final int OpLock				= 12;
+  public static final int OpLockT				= 13;
+  public static final int OpLockU				= 14;
+  public static final int OpLookup				= 15;
+  public static final int OpLookupP				= 16;
+  public static final int OpNVerify				= 17;
+  public static final int OpOpen				= 18;
+  public static final int OpOpenAttr			= 19;
+  public static final int OpOpenConfirm			= 20;
+  public static final int OpOpenDowngrade		= 21;
+  public static final int OpPutFH				= 22;
+  public static final int OpPutPubFH			= 23;
+  public static final int OpPutRootFH			= 24;
+  public static final int OpRead				= 25;
+  public static final int OpReadDir				= 26;
+  public static final int OpReadLink			= 27;
+  public static final int OpRemove				= 28;
+  public static final int OpRename				= 29;
+  public static final int OpRenew				= 30;
+  public static final int OpRestoreFH			= 31;
+  public static final int OpSaveFH				= 32;
+  public static final int OpSecInfo				= 33;
+  public static final int OpSetAttr				= 34;
+  public static final int OpSetClientId			= 35;
+  public static final int OpSetClientIdConfirm	= 36;
+  public static final int OpVerify				= 37;
+  public static final int OpWrite				= 38;
+  public static final int OpReleaseLockOwner	= 39;
+  public static final int OpBackChannelCtl		= 40;
+  public static final int OpBindConnToSession	= 41;
+  public static final int OpExchangeId			= 42;
+  public static final int OpCreateSession		= 43;
+  public static final int OpDestroySession		= 44;
+  public static final int OpFreeStateId			= 45;
+  public static final int OpGetDirDelegation	= 46;
+  public static final int OpGetDeviceInfo		= 47;
+  public static final int OpGetDeviceList		= 48;
+  public static final int OpLayoutCommit		= 49;
+  public static final int OpLayoutGet			= 50;
+  public static final int OpLayoutReturn		= 51;
+  public static final int OpSecInfoNoName		= 52;
+  public static final int OpSequence			= 53;
+  public static final int OpSetSSV				= 54;
+  public static final int OpTestStateId			= 55;
+  public static final int OpWantDelegation		= 56;
+  public static final int OpDestroyClientId		= 57;
+  public static final int OpReclaimComplete		= 58;
+  public static final int OpMax					= 58;
+  public static final int OpIllegal				= 10044;
+
+  //	NFSv4 status codes, the low values are the same as the NFS v3 status codes
+
+  public static final int StsSuccess			= NFS.StsSuccess;
+  public static final int StsPerm				= NFS.StsPerm;
+  public static final int StsNoEnt				= NFS.StsNoEnt;
+  public static final int StsIO					= NFS.StsIO;
+  public static final int StsAccess				= NFS.StsAccess;
+  public static final int StsExist				= NFS.StsExist;
+  public static final int StsNotDir				= NFS.StsNotDir;
+  public static final int StsIsDir				= NFS.StsIsDir;
+  public static final int StsInVal				= NFS.StsInVal;
+  public static final int StsNoSpc				= NFS.StsNoSpc;
+  public static final int StsROFS				= NFS.StsROFS;
+  public static final int StsNameTooLong		= NFS.StsNameTooLong;
+  public static final int StsNotEmpty			= NFS.StsNotEmpty;
+  public static final int StsStale				= NFS.StsStale;
+  public static final int StsBadHandle			= NFS.StsBadHandle;
+  public static final int StsBadCookie			= NFS.StsBadCookie;
+  public static final int StsNotSupp			= NFS.StsNotSupp;
+  public static final int StsTooSmall			= NFS.StsTooSmall;
+  public static final int StsServerFault		= NFS.StsServerFault;
+  public static final int StsBadType			= NFS.StsBadType;
+  public static final int StsDelay				= 10008;
+  public static final int StsDenied				= 10010;
+  public static final int StsExpired			= 10011;
+  public static final int StsShareDenied		= 10015;
+  public static final int StsWrongSec			= 10016;
+  public static final int StsClidInUse			= 10017;
+  public static final int StsResource			= 10018;
+  public static final int StsNoFileHandle		= 10020;
+  public static final int StsMinorVersMismatch	= 10021;
+  public static final int StsStaleClientId		= 10022;
+  public static final int StsStaleStateId		= 10023;
+  public static final int StsOldStateId			= 10024;
+  public static final int StsBadStateId			= 10025;
+  public static final int StsBadSeqId			= 10026;
+  public static final int StsSymLink			= 10029;
+  public static final int StsRestoreFH			= 10030;
+  public static final int StsAttrNotSupp		= 10032;
+  public static final int StsNoGrace			= 10033;
+  public static final int StsBadXDR				= 10036;
+  public static final int StsLocksHeld			= 10037;
+  public static final int StsOpenMode			= 10038;
+  public static final int StsBadOwner			= 10039;
+  public static final int StsBadChar			= 10040;
+  public static final int StsBadName			= 10041;
+  public static final int StsOpIllegal			= 10044;
+  public static final int StsBadSession			= 10052;
+  public static final int StsBadSlot			= 10053;
+  public static final int StsCompleteAlready	= 10054;
+  public static final int StsSeqMisordered		= 10063;
+  public static final int StsSequencePos		= 10064;
+  public static final int StsReqTooBig			= 10065;
+  public static final int StsRepTooBig			= 10066;
+  public static final int StsRepTooBigToCache	= 10067;
+  public static final int StsRetryUncachedRep	= 10068;
+  public static final int StsTooManyOps			= 10070;
+  public static final int StsOpNotInSession		= 10071;
+  public static final int StsClientIdBusy		= 10074;
+  public static final int StsNotOnlyOp			= 10081;
+
+  //	Data structure limits
+
+  public static final int SessionIdSize			= 16;
+  public static final int VerifierSize			= 8;
+  public static final int StateIdOtherSize		= 12;
+  public static final int MaxFileHandleSize		= 128;
+
+  //	File types
+
+  public static final int FileTypeReg			= 1;
+  public static final int FileTypeDir			= 2;
+  public static final int FileTypeBlk			= 3;
+  public static final int FileTypeChr			= 4;
+  public static final int FileTypeLnk			= 5;
+  public static final int FileTypeSock			= 6;
+  public static final int FileTypeFifo			= 7;
+  public static final int FileTypeAttrDir		= 8;
+  public static final int FileTypeNamedAttr		= 9;
+
+  //	File attribute numbers
+
+  public static final int AttrSupportedAttrs	= 0;
+  public static final int AttrType				= 1;
+  public static final int AttrFHExpireType		= 2;
+  public static final int AttrChange			= 3;
+  public static final int AttrSize				= 4;
+  public static final int AttrLinkSupport		= 5;
+  public static final int AttrSymLinkSupport	= 6;
+  public static final int AttrNamedAttr			= 7;
+  public static final int AttrFsId				= 8;
+  public static final int AttrUniqueHandles		= 9;
+  public static final int AttrLeaseTime			= 10;
+  public static final int AttrRdAttrError		= 11;
+  public static final int AttrCanSetTime		= 15;
+  public static final int AttrCaseInsensitive	= 16;
+  public static final int AttrCasePreserving	= 17;
+  public static final int AttrChownRestricted	= 18;
+  public static final int AttrFileHandle		= 19;
+  public static final int AttrFileId			= 20;
+  public static final int AttrHomogeneous		= 26;
+  public static final int AttrMaxFileSize		= 27;
+  public static final int AttrMaxLink			= 28;
+  public static final int AttrMaxName			= 29;
+  public static final int AttrMaxRead			= 30;
+  public static final int AttrMaxWrite			= 31;
+  public static final int AttrMode				= 33;
+  public static final int AttrNoTrunc			= 34;
+  public static final int AttrNumLinks			= 35;
+  public static final int AttrOwner				= 36;
+  public static final int AttrOwnerGroup		= 37;
+  public static final int AttrRawDev			= 41;
+  public static final int AttrSpaceUsed			= 45;
+  public static final int AttrTimeAccess		= 47;
+  public static final int AttrTimeAccessSet		= 48;
+  public static final int AttrTimeCreate		= 50;
+  public static final int AttrTimeDelta			= 51;
+  public static final int AttrTimeMetadata		= 52;
+  public static final int AttrTimeModify		= 53;
+  public static final int AttrTimeModifySet		= 54;
+  public static final int AttrMountedOnFileId	= 55;
+  public static final int AttrSuppAttrExclCreat	= 75;
+
+  //	File handle expiry types
+
+  public static final int FHPersistent			= 0x00000000;
+
+  //	Access mask, same bits as NFS v3
+
+  public static final int AccessRead			= NFS.AccessRead;
+  public static final int AccessLookup			= NFS.AccessLookup;
+  public static final int AccessModify			= NFS.AccessModify;
+  public static final int AccessExtend			= NFS.AccessExtend;
+  public static final int AccessDelete			= NFS.AccessDelete;
+  public static final int AccessExecute			= NFS.AccessExecute;
+  public static final int AccessAll				= NFS.AccessAll;
+
+  //	Set time values
+
+  public static final int SetToServerTime		= 0;
+  public static final int SetToClientTime		= 1;
+
+  //	Write request stable values
+
+  public static final int WriteUnstable			= 0;
+  public static final int WriteDataSync			= 1;
+  public static final int WriteFileSync			= 2;
+
+  //	Open share access and deny values, and the delegation want flags in the share access value
+
+  public static final int ShareAccessRead		= 0x0001;
+  public static final int ShareAccessWrite		= 0x0002;
+  public static final int ShareAccessBoth		= 0x0003;
+  public static final int ShareAccessMask		= 0x00FF;
+
+  public static final int ShareDenyNone			= 0x0000;
+  public static final int ShareDenyBoth			= 0x0003;
+
+  //	Open types, create modes and claim types
+
+  public static final int OpenNoCreate			= 0;
+  public static final int OpenCreate			= 1;
+
+  public static final int CreateUnchecked		= 0;
+  public static final int CreateGuarded			= 1;
+  public static final int CreateExclusive		= 2;
+  public static final int CreateExclusive41		= 3;
+
+  public static final int ClaimNull				= 0;
+  public static final int ClaimPrevious			= 1;
+  public static final int ClaimDelegateCur		= 2;
+  public static final int ClaimDelegatePrev		= 3;
+  public static final int ClaimFH				= 4;
+  public static final int ClaimDelegCurFH		= 5;
+  public static final int ClaimDelegPrevFH		= 6;
+
+  //	Open result flags and delegation types
+
+  public static final int OpenResultLockTypePosix	= 0x0004;
+
+  public static final int OpenDelegateNone		= 0;
+
+  //	EXCHANGE_ID flags and state protection types
+
+  public static final int ExchgIdFlagSuppMovedRefer	= 0x00000001;
+  public static final int ExchgIdFlagSuppMovedMigr	= 0x00000002;
+  public static final int ExchgIdFlagUseNonPNFS		= 0x00010000;
+  public static final int ExchgIdFlagConfirmedR		= 0x80000000;
+
+  public static final int StateProtectNone		= 0;
+
+  //	CREATE_SESSION flags
+
+  public static final int CreateSessionPersist	= 0x00000001;
+  public static final int CreateSessionBackChan	= 0x00000002;
+
+  //	Security flavours, returned by SECINFO
+
+  public static final int AuthNull				= 0;
+  public static final int AuthUnix				= 1;
+
+  //	COMPOUND operation names
+
+  private static final String[] _opNames = { null, null, null, "Access", "Close", "Commit", "Create", "DelegPurge",
+                                             "DelegReturn", "GetAttr", "GetFH", "Link", "Lock", "LockT", "LockU",
+                                             "Lookup", "LookupP", "NVerify", "Open", "OpenAttr", "OpenConfirm",
+                                             "OpenDowngrade", "PutFH", "PutPubFH", "PutRootFH", "Read", "ReadDir",
+                                             "ReadLink", "Remove", "Rename", "Renew", "RestoreFH", "SaveFH", "SecInfo",
+                                             "SetAttr", "SetClientId", "SetClientIdConfirm", "Verify", "Write",
+                                             "ReleaseLockOwner", "BackChannelCtl", "BindConnToSession", "ExchangeId",
+                                             "CreateSession", "DestroySession", "FreeStateId", "GetDirDelegation",
+                                             "GetDeviceInfo", "GetDeviceList", "LayoutCommit", "LayoutGet",
+                                             "LayoutReturn", "SecInfoNoName", "Sequence", "SetSSV", "TestStateId",
+                                             "WantDelegation", "DestroyClientId", "ReclaimComplete" };
+
+  /**
+   * Return a COMPOUND operation code as a name
+   *
+   * @param op int
+   * @return String
+   */
+  public final static String getOperationName(int op) {
+    if ( op < OpAccess || op > OpMax)
+      return "Illegal(" + op + ")";
+    return _opNames[op];
+  }
+
+	/**
+	 * Return an error status string for the specified status code
+	 *
+	 * @param sts int
+	 * @return String
+	 */
+	public static final String getStatusString(int sts) {
+		String str = null;
+
+		switch ( sts) {
+			case StsDelay:
+				str = "Delay";
+				break;
+			case StsNoFileHandle:
+				str = "No current file handle";
+				break;
+			case StsMinorVersMismatch:
+				str = "Minor version not supported";
+				break;
+			case StsStaleClientId:
+				str = "Stale client id";
+				break;
+			case StsBadStateId:
+				str = "Bad state id";
+				break;
+			case StsOldStateId:
+				str = "Old state id";
+				break;
+			case StsSymLink:
+				str = "Symbolic link";
+				break;
+			case StsRestoreFH:
+				str = "No saved file handle";
+				break;
+			case StsAttrNotSupp:
+				str = "Attribute not supported";
+				break;
+			case StsBadXDR:
+				str = "Bad XDR";
+				break;
+			case StsLocksHeld:
+				str = "Locks held";
+				break;
+			case StsOpenMode:
+				str = "Open mode does not allow operation";
+				break;
+			case StsBadName:
+				str = "Bad name";
+				break;
+			case StsOpIllegal:
+				str = "Illegal operation";
+				break;
+			case StsBadSession:
+				str = "Bad session";
+				break;
+			case StsBadSlot:
+				str = "Bad slot";
+				break;
+			case StsSeqMisordered:
+				str = "Sequence misordered";
+				break;
+			case StsSequencePos:
+				str = "Sequence not first operation";
+				break;
+			case StsRepTooBig:
+				str = "Reply too big";
+				break;
+			case StsRetryUncachedRep:
+				str = "Retry of uncached reply";
+				break;
+			case StsTooManyOps:
+				str = "Too many operations";
+				break;
+			case StsOpNotInSession:
+				str = "Operation not in session";
+				break;
+			case StsClientIdBusy:
+				str = "Client id busy";
+				break;
+			case StsNotOnlyOp:
+				str = "Not only operation";
+				break;
+			default:
+				str = NFS.getStatusString(sts);
+				if ( str == null)
+					str = "Status " + sts;
+				break;
+		}
+
+		return str;
+	}
+}
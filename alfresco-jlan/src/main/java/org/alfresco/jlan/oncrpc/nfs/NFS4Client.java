@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2006-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.alfresco.jlan.oncrpc.nfs;
+
+import java.util.Arrays;
+import java.util.Vector;
+
+/**
+ * NFSv4.1 Client Class
+ *
+ * <p>Contains the details of a client that has registered with the server using EXCHANGE_ID, the client
+ * owner and verifier, the CREATE_SESSION sequence id and the list of sessions created by the client.
+ *
+ * @author gkspencer
+ */
+public class NFS4Client {
+
+	//	Client id allocated by the server, and the client owner id and verifier
+
+	private long m_clientId;
+	private byte[] m_ownerId;
+	private long m_verifier;
+
+	//	Client record has been confirmed by a CREATE_SESSION request
+
+	private boolean m_confirmed;
+
+	//	Sequence id expected by the next CREATE_SESSION request, and the session created by the last request
+	//	so that a retransmitted CREATE_SESSION can be answered
+
+	private int m_createSeqId = 1;
+	private NFS4Session m_lastSession;
+
+	//	Active sessions
+
+	private Vector<NFS4Session> m_sessions = new Vector<NFS4Session>();
+
+	//	Time the client lease was last renewed
+
+	private long m_renewTime;
+
+	/**
+	 * Class constructor
+	 *
+	 * @param clientId long
+	 * @param ownerId byte[]
+	 * @param verifier long
+	 */
+	public NFS4Client(long clientId, byte[] ownerId, long verifier) {
+		m_clientId = clientId;
+		m_ownerId = ownerId;
+		m_verifier = verifier;
+
+		m_renewTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * Return the client id
+	 *
+	 * @return long
+	 */
+	public final long getClientId() {
+		return m_clientId;
+	}
+
+	/**
+	 * Return the client owner id
+	 *
+	 * @return byte[]
+	 */
+	public final byte[] getOwnerId() {
+		return m_ownerId;
+	}
+
+	/**
+	 * Return the client verifier
+	 *
+	 * @return long
+	 */
+	public final long getVerifier() {
+		return m_verifier;
+	}
+
+	/**
+	 * Check if the client record has been confirmed
+	 *
+	 * @return boolean
+	 */
+	public final boolean isConfirmed() {
+		return m_confirmed;
+	}
+
+	/**
+	 * Return the sequence id expected by the next CREATE_SESSION request
+	 *
+	 * @return int
+	 */
+	public final int getCreateSequenceId() {
+		return m_createSeqId;
+	}
+
+	/**
+	 * Return the session created by the last CREATE_SESSION request
+	 *
+	 * @return NFS4Session
+	 */
+	public final NFS4Session getLastSession() {
+		return m_lastSession;
+	}
+
+	/**
+	 * Return the time the client lease was last renewed
+	 *
+	 * @return long
+	 */
+	public final long getRenewTime() {
+		return m_renewTime;
+	}
+
+	/**
+	 * Check if the client owner id matches
+	 *
+	 * @param ownerId byte[]
+	 * @return boolean
+	 */
+	public final boolean isOwner(byte[] ownerId) {
+		return Arrays.equals(m_ownerId, ownerId);
+	}
+
+	/**
+	 * Return the number of active sessions
+	 *
+	 * @return int
+	 */
+	public final int numberOfSessions() {
+		return m_sessions.size();
+	}
+
+	/**
+	 * Return the active sessions
+	 *
+	 * @return Vector<NFS4Session>
+	 */
+	public final Vector<NFS4Session> getSessions() {
+		return m_sessions;
+	}
+
+	/**
+	 * Add a session created by a CREATE_SESSION request, the client record is confirmed
+	 *
+	 * @param sess NFS4Session
+	 */
+	public final void addSession(NFS4Session sess) {
+		m_sessions.add(sess);
+
+		m_lastSession = sess;
+		m_createSeqId++;
+		m_confirmed = true;
+	}
+
+	/**
+	 * Remove a session
+	 *
+	 * @param sess NFS4Session
+	 */
+	public final void removeSession(NFS4Session sess) {
+		m_sessions.remove(sess);
+	}
+
+	/**
+	 * Renew the client lease
+	 */
+	public final void renewLease() {
+		m_renewTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * Return the client details as a string
+	 *
+	 * @return String
+	 */
+	public String toString() {
+		StringBuilder str = new StringBuilder();
+
+		str.append("[Client id=0x");
+		str.append(Long.toHexString(m_clientId));
+		str.append(",verf=0x");
+		str.append(Long.toHexString(m_verifier));
+		str.append(m_confirmed ? ",Confirmed" : ",Unconfirmed");
+		str.append(",sessions=");
+		str.append(m_sessions.size());
+		str.append("]");
+
+		return str.toString();
+	}
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2006-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.alfresco.jlan.oncrpc.nfs;
+
+import org.alfresco.jlan.oncrpc.RpcPacket;
+
+/**
+ * NFSv4.1 Open State Class
+ *
+ * <p>Contains the details of a file opened by an NFSv4.1 OPEN request, identified by the 'other' part of the
+ * state id returned to the client. The state id 'other' field contains the low 32 bits of the client id followed
+ * by the server allocated state index.
+ *
+ * @author gkspencer
+ */
+public class NFS4OpenState {
+
+	//	State index, unique within the server, and the current state id sequence number
+
+	private long m_stateIdx;
+	private int m_seqId = 1;
+
+	//	Owning client
+
+	private NFS4Client m_client;
+
+	//	Handle of the open file
+
+	private byte[] m_handle;
+
+	//	Share access and deny modes
+
+	private int m_shareAccess;
+	private int m_shareDeny;
+
+	/**
+	 * Class constructor
+	 *
+	 * @param stateIdx long
+	 * @param client NFS4Client
+	 * @param handle byte[]
+	 * @param shareAccess int
+	 * @param shareDeny int
+	 */
+	public NFS4OpenState(long stateIdx, NFS4Client client, byte[] handle, int shareAccess, int shareDeny) {
+		m_stateIdx = stateIdx;
+		m_client = client;
+		m_handle = handle;
+		m_shareAccess = shareAccess;
+		m_shareDeny = shareDeny;
+	}
+
+	/**
+	 * Return the state index
+	 *
+	 * @return long
+	 */
+	public final long getStateIndex() {
+		return m_stateIdx;
+	}
+
+	/**
+	 * Return the current state id sequence number
+	 *
+	 * @return int
+	 */
+	public final int getSequenceId() {
+		return m_seqId;
+	}
+
+	/**
+	 * Return the owning client
+	 *
+	 * @return NFS4Client
+	 */
+	public final NFS4Client getClient() {
+		return m_client;
+	}
+
+	/**
+	 * Return the handle of the open file
+	 *
+	 * @return byte[]
+	 */
+	public final byte[] getHandle() {
+		return m_handle;
+	}
+
+	/**
+	 * Return the share access mode
+	 *
+	 * @return int
+	 */
+	public final int getShareAccess() {
+		return m_shareAccess;
+	}
+
+	/**
+	 * Return the share deny mode
+	 *
+	 * @return int
+	 */
+	public final int getShareDeny() {
+		return m_shareDeny;
+	}
+
+	/**
+	 * Check if the open state allows writes
+	 *
+	 * @return boolean
+	 */
+	public final boolean hasWriteAccess() {
+		return (m_shareAccess & NFS4.ShareAccessWrite) != 0;
+	}
+
+	/**
+	 * Update the share access and deny modes, for an upgrade or downgrade, and bump the sequence id
+	 *
+	 * @param shareAccess int
+	 * @param shareDeny int
+	 */
+	public final synchronized void updateShareModes(int shareAccess, int shareDeny) {
+		m_shareAccess = shareAccess;
+		m_shareDeny = shareDeny;
+
+		m_seqId++;
+	}
+
+	/**
+	 * Pack the state id
+	 *
+	 * @param rpc RpcPacket
+	 */
+	public final synchronized void packStateId(RpcPacket rpc) {
+		rpc.packInt(m_seqId);
+		rpc.packInt((int) (m_client.getClientId() & 0xFFFFFFFFL));
+		rpc.packLong(m_stateIdx);
+	}
+
+	/**
+	 * Return the open state as a string
+	 *
+	 * @return String
+	 */
+	public String toString() {
+		StringBuilder str = new StringBuilder();
+
+		str.append("[Open state=");
+		str.append(m_stateIdx);
+		str.append("/");
+		str.append(m_seqId);
+		str.append(",handle=");
+		str.append(NFSHandle.asString(m_handle));
+		str.append(",access=");
+		str.append(m_shareAccess);
+		str.append(",deny=");
+		str.append(m_shareDeny);
+		str.append("]");
+
+		return str.toString();
+	}
+}
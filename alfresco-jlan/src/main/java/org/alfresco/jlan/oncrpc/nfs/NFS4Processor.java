@@ -0,0 +1,3182 @@
+/*
+ * Copyright (C) 2006-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.alfresco.jlan.oncrpc.nfs;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import org.alfresco.jlan.debug.Debug;
+import org.alfresco.jlan.oncrpc.Rpc;
+import org.alfresco.jlan.oncrpc.RpcPacket;
+import org.alfresco.jlan.oncrpc.RpcPacketPool;
+import org.alfresco.jlan.server.filesys.AccessDeniedException;
+import org.alfresco.jlan.server.filesys.AccessMode;
+import org.alfresco.jlan.server.filesys.DirectoryNotEmptyException;
+import org.alfresco.jlan.server.filesys.DiskDeviceContext;
+import org.alfresco.jlan.server.filesys.DiskFullException;
+import org.alfresco.jlan.server.filesys.DiskInterface;
+import org.alfresco.jlan.server.filesys.FileAction;
+import org.alfresco.jlan.server.filesys.FileAttribute;
+import org.alfresco.jlan.server.filesys.FileExistsException;
+import org.alfresco.jlan.server.filesys.FileInfo;
+import org.alfresco.jlan.server.filesys.FileOpenParams;
+import org.alfresco.jlan.server.filesys.FileStatus;
+import org.alfresco.jlan.server.filesys.FileType;
+import org.alfresco.jlan.server.filesys.NetworkFile;
+import org.alfresco.jlan.server.filesys.NotifyChange;
+import org.alfresco.jlan.server.filesys.SearchContext;
+import org.alfresco.jlan.server.filesys.TreeConnection;
+import org.alfresco.jlan.util.DataPacker;
+
+/**
+ * NFSv4.1 COMPOUND Processor Class
+ *
+ * <p>Processes NFS version 4 requests for the NFS server. Each COMPOUND request is executed within a session
+ * created by the client using EXCHANGE_ID and CREATE_SESSION, the session slot table provides the reply cache
+ * that gives exactly-once semantics for retransmitted requests.
+ *
+ * <p>The shared filesystems are presented as directories below a pseudo filesystem root. File handles, paths,
+ * open files and unstable write buffering use the same code as the NFS v3 procedures, so NFS v3 and NFSv4.1
+ * clients see the same state. Delegations are not granted as there is no callback channel, and byte range
+ * locking, hard/symbolic links and named attributes are not supported.
+ *
+ * @author gkspencer
+ */
+public class NFS4Processor {
+
+	//	Client lease time, in seconds
+
+	public static final int LeaseTime			= 90;
+
+	//	Session limits
+
+	public static final int MaxSessionSlots		= 32;
+	public static final int MaxOperations		= 64;
+	public static final int MaxCachedResponse	= 8192;
+
+	//	Maximum read/write sizes, leaves space in the RPC buffer for the other COMPOUND operations
+
+	public static final int MaxReadSize			= 32768;
+	public static final int MaxWriteSize		= 32768;
+
+	//	Space to leave in the reply buffer for the results of later operations, and the minimum space required
+	//	to process an operation
+
+	private static final int ReplyReserve		= 1024;
+
+	//	Maximum file name and owner/tag lengths
+
+	private static final int MaxNameLength		= 255;
+	private static final int MaxOpaqueLength	= 1024;
+
+	//	Pseudo root file id
+
+	private static final long PseudoRootFileId	= 1L;
+
+	//	Supported and settable attributes
+
+	private static final int[] SupportedAttrs = buildBitmap( new int[] { NFS4.AttrSupportedAttrs, NFS4.AttrType,
+			NFS4.AttrFHExpireType, NFS4.AttrChange, NFS4.AttrSize, NFS4.AttrLinkSupport, NFS4.AttrSymLinkSupport,
+			NFS4.AttrNamedAttr, NFS4.AttrFsId, NFS4.AttrUniqueHandles, NFS4.AttrLeaseTime, NFS4.AttrRdAttrError,
+			NFS4.AttrCanSetTime, NFS4.AttrCaseInsensitive, NFS4.AttrCasePreserving, NFS4.AttrChownRestricted,
+			NFS4.AttrFileHandle, NFS4.AttrFileId, NFS4.AttrHomogeneous, NFS4.AttrMaxFileSize, NFS4.AttrMaxLink,
+			NFS4.AttrMaxName, NFS4.AttrMaxRead, NFS4.AttrMaxWrite, NFS4.AttrMode, NFS4.AttrNoTrunc, NFS4.AttrNumLinks,
+			NFS4.AttrOwner, NFS4.AttrOwnerGroup, NFS4.AttrRawDev, NFS4.AttrSpaceUsed, NFS4.AttrTimeAccess,
+			NFS4.AttrTimeAccessSet, NFS4.AttrTimeCreate, NFS4.AttrTimeDelta, NFS4.AttrTimeMetadata, NFS4.AttrTimeModify,
+			NFS4.AttrTimeModifySet, NFS4.AttrMountedOnFileId, NFS4.AttrSuppAttrExclCreat });
+
+	private static final int[] SettableAttrs = buildBitmap( new int[] { NFS4.AttrSize, NFS4.AttrMode, NFS4.AttrOwner,
+			NFS4.AttrOwnerGroup, NFS4.AttrTimeAccessSet, NFS4.AttrTimeModifySet });
+
+	//	Special state ids, anonymous and read bypass
+
+	private static final byte[] StateIdAnonymous	= new byte[NFS4.StateIdOtherSize];
+	private static final byte[] StateIdBypass		= new byte[NFS4.StateIdOtherSize];
+
+	static {
+		Arrays.fill(StateIdBypass, (byte) 0xFF);
+	}
+
+	//	Associated NFS server
+
+	private NFSServer m_server;
+
+	//	Server boot time, used to generate client ids, and the server owner/scope
+
+	private long m_bootTime;
+	private byte[] m_serverOwner;
+
+	//	Client id, session and state index generators
+
+	private int m_clientIdx;
+	private long m_sessionIdx;
+	private long m_stateIdx;
+
+	//	Registered clients, active sessions and open states
+
+	private HashMap<Long, NFS4Client> m_clients = new HashMap<Long, NFS4Client>();
+	private HashMap<String, NFS4Session> m_sessions = new HashMap<String, NFS4Session>();
+	private HashMap<Long, NFS4OpenState> m_openStates = new HashMap<Long, NFS4OpenState>();
+
+	/**
+	 * Compound Request State Class
+	 *
+	 * <p>Holds the current and saved file handles and the session details whilst a COMPOUND request is processed.
+	 */
+	private static class CompoundState {
+
+		//	Server session, request and response packets
+
+		NFSSrvSession m_sess;
+		RpcPacket m_req;
+		RpcPacket m_resp;
+
+		//	End of the request data
+
+		int m_reqEnd;
+
+		//	Start of the COMPOUND results in the response, the results are cached in the session slot
+
+		int m_replyPos;
+
+		//	Current and saved file handles
+
+		byte[] m_curFH;
+		byte[] m_savedFH;
+
+		//	Session and slot the request is using, and the cached reply if the request is a retransmission
+
+		NFS4Session m_session;
+		int m_slot = -1;
+		byte[] m_replay;
+
+		/**
+		 * Class constructor
+		 *
+		 * @param sess NFSSrvSession
+		 * @param req RpcPacket
+		 * @param resp RpcPacket
+		 */
+		CompoundState(NFSSrvSession sess, RpcPacket req, RpcPacket resp) {
+			m_sess = sess;
+			m_req = req;
+			m_resp = resp;
+
+			m_reqEnd = req.getOffset() + req.getLength();
+		}
+	}
+
+	/**
+	 * Class constructor
+	 *
+	 * @param server NFSServer
+	 */
+	public NFS4Processor(NFSServer server) {
+		m_server = server;
+
+		m_bootTime = System.currentTimeMillis();
+
+		String srvName = server.getConfiguration().getServerName();
+		m_serverOwner = (srvName != null ? srvName : "JLAN").getBytes();
+	}
+
+	/**
+	 * Process an NFS version 4 request
+	 *
+	 * @param sess NFSSrvSession
+	 * @param rpc RpcPacket
+	 * @return RpcPacket
+	 */
+	public RpcPacket processRpc(NFSSrvSession sess, RpcPacket rpc) {
+
+		//	Null request
+
+		if ( rpc.getProcedureId() == NFS4.ProcNull) {
+			rpc.buildResponseHeader();
+			return rpc;
+		}
+		else if ( rpc.getProcedureId() != NFS4.ProcCompound) {
+			rpc.buildAcceptErrorResponse(Rpc.StsProcUnavail);
+			return rpc;
+		}
+
+		//	Allocate a seperate response packet, the COMPOUND arguments are read whilst the results are being
+		//	packed so the reply cannot overwrite the request
+
+		RpcPacket resp = allocateResponsePacket(rpc);
+
+		//	Process the COMPOUND request
+
+		CompoundState state = new CompoundState(sess, rpc, resp);
+		rpc.positionAtParameters();
+
+		try {
+			processCompound(state);
+		}
+		finally {
+
+			//	Release the session slot, and cache the reply
+
+			if ( state.m_slot != -1)
+				state.m_session.releaseSlot(state.m_slot, resp.getBuffer(), state.m_replyPos, resp.getPosition() - state.m_replyPos);
+		}
+
+		//	Return the response
+
+		return resp;
+	}
+
+	/**
+	 * Allocate a response packet for a request, and copy the RPC header from the request
+	 *
+	 * @param rpc RpcPacket
+	 * @return RpcPacket
+	 */
+	private final RpcPacket allocateResponsePacket(RpcPacket rpc) {
+
+		//	Allocate the response from the packet pool, if there is a free packet, to avoid blocking whilst holding
+		//	the request packet
+
+		RpcPacket resp = null;
+
+		if ( rpc.isAllocatedFromPool() && rpc.getClientProtocol() == Rpc.TCP) {
+			RpcPacketPool pool = rpc.getOwnerPacketPool();
+			if ( pool.availableLargePackets() > 0)
+				resp = pool.allocatePacket(NFSServer.MaxRequestSize);
+		}
+
+		if ( resp == null)
+			resp = new RpcPacket(NFSServer.MaxRequestSize);
+
+		//	Copy the RPC header, the response header is built from the request details
+
+		int hdrLen = rpc.getProcedureParameterOffset() - rpc.getOffset();
+		System.arraycopy(rpc.getBuffer(), rpc.getOffset(), resp.getBuffer(), resp.getOffset(), hdrLen);
+		resp.setLength(hdrLen);
+
+		resp.setClientDetails(rpc.getClientAddress(), rpc.getClientPort(), rpc.getClientProtocol());
+		resp.setPacketHandler(rpc.getPacketHandler());
+
+		return resp;
+	}
+
+	/**
+	 * Process a COMPOUND request
+	 *
+	 * @param st CompoundState
+	 */
+	private final void processCompound(CompoundState st) {
+
+		RpcPacket rpc = st.m_req;
+		RpcPacket resp = st.m_resp;
+
+		//	Build the response header, the COMPOUND status is filled in when the operations have been processed
+
+		resp.buildResponseHeader();
+		int replyPos = resp.getPosition();
+		st.m_replyPos = replyPos;
+
+		//	Unpack the tag and minor version, and echo the tag in the response
+
+		int sts = NFS4.StsSuccess;
+		int tagLen = rpc.unpackInt();
+
+		if ( tagLen < 0 || tagLen > MaxOpaqueLength) {
+			tagLen = 0;
+			sts = NFS4.StsBadXDR;
+		}
+
+		byte[] tag = new byte[tagLen];
+		rpc.unpackByteArray(tag);
+
+		int minorVer = rpc.unpackInt();
+		int numOps = rpc.unpackInt();
+
+		resp.packInt(NFS4.StsSuccess);
+		resp.packByteArrayWithLength(tag);
+
+		int countPos = resp.getPosition();
+		resp.packInt(0);
+
+		//	Check the minor version
+
+		if ( sts == NFS4.StsSuccess && minorVer != NFS4.MinorVersion)
+			sts = NFS4.StsMinorVersMismatch;
+
+		//	DEBUG
+
+		if ( Debug.EnableInfo && m_server.hasDebugFlag(NFSServer.DBG_INFO))
+			st.m_sess.debugPrintln("[NFS4] Compound request from " + rpc.getClientDetails() + ", ops=" + numOps + ", minor=" + minorVer);
+
+		//	Process the operations, stop at the first operation that fails
+
+		int opCnt = 0;
+
+		while ( sts == NFS4.StsSuccess && opCnt < numOps) {
+
+			//	Check for the end of the request
+
+			if ( rpc.getPosition() + 4 > st.m_reqEnd) {
+				sts = NFS4.StsBadXDR;
+				break;
+			}
+
+			int op = rpc.unpackInt();
+
+			//	Check the operation is valid in the current position, requests must start with a SEQUENCE
+			//	unless the operation is used to create/destroy the client or session
+
+			if ( opCnt == 0) {
+				if ( op != NFS4.OpSequence) {
+					if ( isSessionlessOperation(op) == false)
+						sts = NFS4.StsOpNotInSession;
+					else if ( numOps > 1)
+						sts = NFS4.StsNotOnlyOp;
+				}
+			}
+			else if ( op == NFS4.OpSequence)
+				sts = NFS4.StsSequencePos;
+			else if ( st.m_session != null && opCnt >= st.m_session.getMaximumOperations())
+				sts = NFS4.StsTooManyOps;
+
+			//	Pack the operation code and status, the status is updated when the operation completes
+
+			resp.packInt(( op >= NFS4.OpAccess && op <= NFS4.OpMax) ? op : NFS4.OpIllegal);
+			int stsPos = resp.getPosition();
+			resp.packInt(NFS4.StsSuccess);
+
+			opCnt++;
+
+			//	Check there is space in the reply for the operation results
+
+			if ( sts == NFS4.StsSuccess && resp.getAvailableLength() < ReplyReserve)
+				sts = NFS4.StsRepTooBig;
+
+			//	Process the operation
+
+			if ( sts == NFS4.StsSuccess) {
+				try {
+					sts = processOperation(st, op);
+				}
+				catch (Exception ex) {
+					sts = mapException(st, op, ex);
+				}
+			}
+
+			//	Check if the request is a retransmission, return the cached reply
+
+			if ( st.m_replay != null) {
+
+				//	DEBUG
+
+				if ( Debug.EnableInfo && m_server.hasDebugFlag(NFSServer.DBG_INFO))
+					st.m_sess.debugPrintln("[NFS4] Replay cached reply, len=" + st.m_replay.length);
+
+				resp.setPosition(replyPos);
+				resp.packByteArray(st.m_replay);
+				resp.setLength();
+				return;
+			}
+
+			//	If the operation failed then discard any partial results, set the operation status
+
+			if ( sts != NFS4.StsSuccess) {
+				resp.setPosition(stsPos + 4);
+
+				if ( op == NFS4.OpSetAttr)
+					resp.packInt(0);
+
+				//	DEBUG
+
+				if ( Debug.EnableInfo && m_server.hasDebugFlag(NFSServer.DBG_ERROR))
+					st.m_sess.debugPrintln("[NFS4] " + NFS4.getOperationName(op) + " error=" + NFS4.getStatusString(sts));
+			}
+
+			DataPacker.putInt(sts, resp.getBuffer(), stsPos);
+		}
+
+		//	Set the COMPOUND status and the count of results
+
+		DataPacker.putInt(sts, resp.getBuffer(), replyPos);
+		DataPacker.putInt(opCnt, resp.getBuffer(), countPos);
+
+		resp.setLength();
+	}
+
+	/**
+	 * Check if an operation can be sent without a SEQUENCE operation
+	 *
+	 * @param op int
+	 * @return boolean
+	 */
+	private final boolean isSessionlessOperation(int op) {
+		switch ( op) {
+			case NFS4.OpExchangeId:
+			case NFS4.OpCreateSession:
+			case NFS4.OpDestroySession:
+			case NFS4.OpDestroyClientId:
+			case NFS4.OpBindConnToSession:
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Process a single COMPOUND operation, returns the operation status. The operation results are packed
+	 * into the response after the status.
+	 *
+	 * @param st CompoundState
+	 * @param op int
+	 * @return int
+	 * @exception Exception
+	 */
+	private final int processOperation(CompoundState st, int op)
+		throws Exception {
+
+		int sts = NFS4.StsSuccess;
+
+		switch ( op) {
+
+			//	Session and client operations
+
+			case NFS4.OpSequence:
+				sts = opSequence(st);
+				break;
+			case NFS4.OpExchangeId:
+				sts = opExchangeId(st);
+				break;
+			case NFS4.OpCreateSession:
+				sts = opCreateSession(st);
+				break;
+			case NFS4.OpDestroySession:
+				sts = opDestroySession(st);
+				break;
+			case NFS4.OpDestroyClientId:
+				sts = opDestroyClientId(st);
+				break;
+			case NFS4.OpReclaimComplete:
+				st.m_req.unpackInt();
+				break;
+
+			//	File handle operations
+
+			case NFS4.OpPutRootFH:
+			case NFS4.OpPutPubFH:
+				st.m_curFH = new byte[NFS.FileHandleSize];
+				NFSHandle.packPseudoRootHandle(st.m_curFH);
+				break;
+			case NFS4.OpPutFH:
+				sts = opPutFH(st);
+				break;
+			case NFS4.OpGetFH:
+				if ( st.m_curFH == null)
+					return NFS4.StsNoFileHandle;
+				st.m_resp.packByteArrayWithLength(st.m_curFH);
+				break;
+			case NFS4.OpSaveFH:
+				if ( st.m_curFH == null)
+					return NFS4.StsNoFileHandle;
+				st.m_savedFH = st.m_curFH;
+				break;
+			case NFS4.OpRestoreFH:
+				if ( st.m_savedFH == null)
+					return NFS4.StsRestoreFH;
+				st.m_curFH = st.m_savedFH;
+				break;
+			case NFS4.OpLookup:
+				sts = opLookup(st);
+				break;
+			case NFS4.OpLookupP:
+				sts = opLookupP(st);
+				break;
+			case NFS4.OpSecInfo:
+			case NFS4.OpSecInfoNoName:
+				sts = opSecInfo(st, op);
+				break;
+
+			//	Attribute and directory operations
+
+			case NFS4.OpGetAttr:
+				sts = opGetAttr(st);
+				break;
+			case NFS4.OpSetAttr:
+				sts = opSetAttr(st);
+				break;
+			case NFS4.OpAccess:
+				sts = opAccess(st);
+				break;
+			case NFS4.OpReadDir:
+				sts = opReadDir(st);
+				break;
+			case NFS4.OpCreate:
+				sts = opCreate(st);
+				break;
+			case NFS4.OpRemove:
+				sts = opRemove(st);
+				break;
+			case NFS4.OpRename:
+				sts = opRename(st);
+				break;
+
+			//	Open file operations
+
+			case NFS4.OpOpen:
+				sts = opOpen(st);
+				break;
+			case NFS4.OpClose:
+				sts = opClose(st);
+				break;
+			case NFS4.OpOpenDowngrade:
+				sts = opOpenDowngrade(st);
+				break;
+			case NFS4.OpRead:
+				sts = opRead(st);
+				break;
+			case NFS4.OpWrite:
+				sts = opWrite(st);
+				break;
+			case NFS4.OpCommit:
+				sts = opCommit(st);
+				break;
+			case NFS4.OpTestStateId:
+				sts = opTestStateId(st);
+				break;
+			case NFS4.OpFreeStateId:
+			case NFS4.OpDelegReturn:
+				sts = opFreeStateId(st, op);
+				break;
+
+			//	Operations not supported in NFSv4.1, or illegal operation codes
+
+			case NFS4.OpOpenConfirm:
+			case NFS4.OpRenew:
+			case NFS4.OpSetClientId:
+			case NFS4.OpSetClientIdConfirm:
+			case NFS4.OpReleaseLockOwner:
+				sts = NFS4.StsNotSupp;
+				break;
+
+			default:
+				if ( op < NFS4.OpAccess || op > NFS4.OpMax)
+					sts = NFS4.StsOpIllegal;
+				else
+					sts = NFS4.StsNotSupp;
+				break;
+		}
+
+		//	Check if the request arguments were overrun
+
+		if ( sts == NFS4.StsSuccess && st.m_req.getPosition() > st.m_reqEnd)
+			sts = NFS4.StsBadXDR;
+
+		return sts;
+	}
+
+	/**
+	 * Map an exception from an operation to an NFSv4 status
+	 *
+	 * @param st CompoundState
+	 * @param op int
+	 * @param ex Exception
+	 * @return int
+	 */
+	private final int mapException(CompoundState st, int op, Exception ex) {
+
+		if ( ex instanceof BadHandleException)
+			return NFS4.StsBadHandle;
+		else if ( ex instanceof StaleHandleException)
+			return NFS4.StsStale;
+		else if ( ex instanceof AccessDeniedException)
+			return NFS4.StsAccess;
+		else if ( ex instanceof FileNotFoundException)
+			return NFS4.StsNoEnt;
+		else if ( ex instanceof FileExistsException)
+			return NFS4.StsExist;
+		else if ( ex instanceof DirectoryNotEmptyException)
+			return NFS4.StsNotEmpty;
+		else if ( ex instanceof DiskFullException)
+			return NFS4.StsNoSpc;
+		else if ( ex instanceof ArrayIndexOutOfBoundsException)
+			return NFS4.StsBadXDR;
+
+		//	DEBUG
+
+		if ( Debug.EnableError && m_server.hasDebugFlag(NFSServer.DBG_ERROR)) {
+			st.m_sess.debugPrintln("[NFS4] " + NFS4.getOperationName(op) + " Exception: " + ex.toString());
+			st.m_sess.debugPrintln(ex);
+		}
+
+		if ( ex instanceof IOException)
+			return NFS4.StsIO;
+		return NFS4.StsServerFault;
+	}
+
+	/**
+	 * Process a SEQUENCE operation
+	 *
+	 * @param st CompoundState
+	 * @return int
+	 */
+	private final int opSequence(CompoundState st) {
+
+		RpcPacket rpc = st.m_req;
+
+		byte[] sessId = new byte[NFS4.SessionIdSize];
+		rpc.unpackByteArray(sessId);
+
+		int seqId = rpc.unpackInt();
+		int slot = rpc.unpackInt();
+		rpc.unpackInt();		//	highest slot id in use by the client
+		rpc.unpackInt();		//	cache this, all replies that fit are cached
+
+		//	Find the session
+
+		NFS4Session session = findSession(sessId);
+		if ( session == null)
+			return NFS4.StsBadSession;
+
+		if ( st.m_req.getLength() > session.getMaximumRequestSize())
+			return NFS4.StsReqTooBig;
+
+		//	Check the slot, and the sequence id
+
+		int slotSts = session.checkSlot(slot, seqId);
+
+		if ( slotSts == NFS4Session.SlotReplay) {
+
+			//	Return the cached reply for the retransmitted request
+
+			st.m_replay = session.getCachedReply(slot);
+			return st.m_replay != null ? NFS4.StsSuccess : NFS4.StsRetryUncachedRep;
+		}
+		else if ( slotSts != NFS4Session.SlotNewRequest)
+			return slotSts;
+
+		//	Save the session and slot, the slot is released when the request completes
+
+		st.m_session = session;
+		st.m_slot = slot;
+
+		//	Renew the client lease
+
+		session.getClient().renewLease();
+
+		//	Pack the results
+
+		RpcPacket resp = st.m_resp;
+
+		resp.packByteArray(sessId);
+		resp.packInt(seqId);
+		resp.packInt(slot);
+		resp.packInt(session.getHighestSlotId());
+		resp.packInt(session.getHighestSlotId());
+		resp.packInt(0);		//	status flags
+
+		return NFS4.StsSuccess;
+	}
+
+	/**
+	 * Process an EXCHANGE_ID operation
+	 *
+	 * @param st CompoundState
+	 * @return int
+	 */
+	private final int opExchangeId(CompoundState st) {
+
+		RpcPacket rpc = st.m_req;
+
+		//	Unpack the client owner
+
+		long verifier = rpc.unpackLong();
+		int ownerLen = rpc.unpackInt();
+
+		if ( ownerLen <= 0 || ownerLen > MaxOpaqueLength)
+			return NFS4.StsInVal;
+
+		byte[] ownerId = new byte[ownerLen];
+		rpc.unpackByteArray(ownerId);
+
+		rpc.unpackInt();		//	flags
+
+		//	Only the no state protection option is supported, the client implementation id is not used
+
+		if ( rpc.unpackInt() != NFS4.StateProtectNone)
+			return NFS4.StsNotSupp;
+
+		NFS4Client client = null;
+
+		synchronized ( m_clients) {
+
+			//	Remove any clients with an expired lease
+
+			expireClients();
+
+			//	Find an existing client record for the owner
+
+			client = findClientForOwner(ownerId);
+
+			//	If the verifier has changed the client has restarted, discard the old client record and state
+
+			if ( client != null && client.getVerifier() != verifier) {
+				removeClient(client);
+				client = null;
+			}
+
+			//	Create a new client record
+
+			if ( client == null) {
+				long clientId = ((m_bootTime / 1000L) << 32) + (++m_clientIdx & 0xFFFFFFFFL);
+				client = new NFS4Client(clientId, ownerId, verifier);
+
+				m_clients.put(Long.valueOf(clientId), client);
+			}
+			else
+				client.renewLease();
+		}
+
+		//	DEBUG
+
+		if ( Debug.EnableInfo && m_server.hasDebugFlag(NFSServer.DBG_SESSION))
+			st.m_sess.debugPrintln("[NFS4] ExchangeId client=" + client);
+
+		//	Pack the results
+
+		RpcPacket resp = st.m_resp;
+
+		resp.packLong(client.getClientId());
+		resp.packInt(client.getCreateSequenceId());
+		resp.packInt(NFS4.ExchgIdFlagUseNonPNFS + (client.isConfirmed() ? NFS4.ExchgIdFlagConfirmedR : 0));
+		resp.packInt(NFS4.StateProtectNone);
+
+		resp.packLong(0L);						//	server owner minor id
+		resp.packByteArrayWithLength(m_serverOwner);
+		resp.packByteArrayWithLength(m_serverOwner);	//	server scope
+		resp.packInt(0);						//	no server implementation id
+
+		return NFS4.StsSuccess;
+	}
+
+	/**
+	 * Process a CREATE_SESSION operation
+	 *
+	 * @param st CompoundState
+	 * @return int
+	 */
+	private final int opCreateSession(CompoundState st) {
+
+		RpcPacket rpc = st.m_req;
+
+		long clientId = rpc.unpackLong();
+		int seqId = rpc.unpackInt();
+		rpc.unpackInt();		//	flags, persistent reply cache and back channel are not supported
+
+		//	Unpack the fore and back channel attributes, the callback program and security parameters are not used
+		//	as the back channel is not supported
+
+		int[] foreAttrs = unpackChannelAttributes(rpc);
+		int[] backAttrs = unpackChannelAttributes(rpc);
+
+		if ( foreAttrs == null || backAttrs == null)
+			return NFS4.StsBadXDR;
+
+		NFS4Session session = null;
+
+		synchronized ( m_clients) {
+
+			//	Find the client
+
+			NFS4Client client = m_clients.get(Long.valueOf(clientId));
+			if ( client == null)
+				return NFS4.StsStaleClientId;
+
+			//	Check for a retransmitted request, return the session created by the original request
+
+			if ( seqId == client.getCreateSequenceId() - 1 && client.getLastSession() != null)
+				session = client.getLastSession();
+			else if ( seqId != client.getCreateSequenceId())
+				return NFS4.StsSeqMisordered;
+			else {
+
+				//	Negotiate the fore channel limits, and create the session
+
+				int maxReqSize = Math.min(foreAttrs[1], NFSServer.MaxRequestSize);
+				int maxRespSize = Math.min(foreAttrs[2], NFSServer.MaxRequestSize);
+				int maxRespCached = Math.min(foreAttrs[3], MaxCachedResponse);
+				int maxOps = Math.min(foreAttrs[4], MaxOperations);
+				int maxReqs = Math.max(1, Math.min(foreAttrs[5], MaxSessionSlots));
+
+				if ( maxReqSize < ReplyReserve || maxRespSize < ReplyReserve || maxOps < 2)
+					return NFS4.StsTooSmall;
+
+				session = new NFS4Session(client, ++m_sessionIdx, maxReqSize, maxRespSize, maxRespCached, maxOps, maxReqs);
+
+				client.addSession(session);
+				m_sessions.put(session.getSessionKey(), session);
+			}
+		}
+
+		//	DEBUG
+
+		if ( Debug.EnableInfo && m_server.hasDebugFlag(NFSServer.DBG_SESSION))
+			st.m_sess.debugPrintln("[NFS4] CreateSession " + session);
+
+		//	Pack the results
+
+		RpcPacket resp = st.m_resp;
+
+		resp.packByteArray(session.getSessionId());
+		resp.packInt(seqId);
+		resp.packInt(0);		//	flags
+
+		resp.packInt(0);		//	header padding
+		resp.packInt(session.getMaximumRequestSize());
+		resp.packInt(session.getMaximumResponseSize());
+		resp.packInt(session.getMaximumResponseCached());
+		resp.packInt(session.getMaximumOperations());
+		resp.packInt(session.numberOfSlots());
+		resp.packInt(0);		//	no RDMA
+
+		for ( int i = 0; i < 6; i++)
+			resp.packInt(backAttrs[i]);
+		resp.packInt(0);
+
+		return NFS4.StsSuccess;
+	}
+
+	/**
+	 * Unpack channel attributes, returns null if the attributes are not valid
+	 *
+	 * @param rpc RpcPacket
+	 * @return int[]
+	 */
+	private final int[] unpackChannelAttributes(RpcPacket rpc) {
+
+		//	Header padding, maximum request/response sizes, maximum cached response, maximum operations
+		//	and maximum requests
+
+		int[] attrs = new int[6];
+		rpc.unpackIntArray(attrs);
+
+		//	Skip the RDMA values
+
+		int rdmaCnt = rpc.unpackInt();
+		if ( rdmaCnt < 0 || rdmaCnt > 1)
+			return null;
+
+		rpc.skipBytes(rdmaCnt * 4);
+		return attrs;
+	}
+
+	/**
+	 * Process a DESTROY_SESSION operation
+	 *
+	 * @param st CompoundState
+	 * @return int
+	 */
+	private final int opDestroySession(CompoundState st) {
+
+		byte[] sessId = new byte[NFS4.SessionIdSize];
+		st.m_req.unpackByteArray(sessId);
+
+		synchronized ( m_clients) {
+
+			//	Find the session
+
+			NFS4Session session = m_sessions.remove(NFS4Session.asKey(sessId));
+			if ( session == null)
+				return NFS4.StsBadSession;
+
+			session.getClient().removeSession(session);
+
+			//	DEBUG
+
+			if ( Debug.EnableInfo && m_server.hasDebugFlag(NFSServer.DBG_SESSION))
+				st.m_sess.debugPrintln("[NFS4] DestroySession " + session);
+		}
+
+		return NFS4.StsSuccess;
+	}
+
+	/**
+	 * Process a DESTROY_CLIENTID operation
+	 *
+	 * @param st CompoundState
+	 * @return int
+	 */
+	private final int opDestroyClientId(CompoundState st) {
+
+		long clientId = st.m_req.unpackLong();
+
+		synchronized ( m_clients) {
+
+			//	Find the client, the client must not have any sessions
+
+			NFS4Client client = m_clients.get(Long.valueOf(clientId));
+			if ( client == null)
+				return NFS4.StsStaleClientId;
+
+			if ( client.numberOfSessions() > 0)
+				return NFS4.StsClientIdBusy;
+
+			removeClient(client);
+
+			//	DEBUG
+
+			if ( Debug.EnableInfo && m_server.hasDebugFlag(NFSServer.DBG_SESSION))
+				st.m_sess.debugPrintln("[NFS4] DestroyClientId client=" + client);
+		}
+
+		return NFS4.StsSuccess;
+	}
+
+	/**
+	 * Process a PUTFH operation
+	 *
+	 * @param st CompoundState
+	 * @return int
+	 */
+	private final int opPutFH(CompoundState st) {
+
+		RpcPacket rpc = st.m_req;
+
+		//	Check the handle length, all handles generated by the server are the same length
+
+		int hlen = rpc.unpackInt();
+
+		if ( hlen < 0 || hlen > NFS4.MaxFileHandleSize)
+			return NFS4.StsBadXDR;
+		else if ( hlen != NFS.FileHandleSize) {
+			rpc.skipBytes(hlen);
+			return NFS4.StsBadHandle;
+		}
+
+		byte[] handle = new byte[NFS.FileHandleSize];
+		rpc.unpackByteArray(handle);
+
+		if ( NFSHandle.isPseudoRootHandle(handle) == false && NFSHandle.isValid(handle) == false)
+			return NFS4.StsBadHandle;
+
+		st.m_curFH = handle;
+		return NFS4.StsSuccess;
+	}
+
+	/**
+	 * Process a LOOKUP operation
+	 *
+	 * @param st CompoundState
+	 * @return int
+	 * @exception Exception
+	 */
+	private final int opLookup(CompoundState st)
+		throws Exception {
+
+		String name = st.m_req.unpackUTF8String();
+
+		if ( st.m_curFH == null)
+			return NFS4.StsNoFileHandle;
+
+		int sts = checkName(name);
+		if ( sts != NFS4.StsSuccess)
+			return sts;
+
+		//	DEBUG
+
+		if ( Debug.EnableInfo && m_server.hasDebugFlag(NFSServer.DBG_SEARCH))
+			st.m_sess.debugPrintln("[NFS4] Lookup handle=" + NFSHandle.asString(st.m_curFH) + ", name=" + name);
+
+		//	Lookup a share in the pseudo root
+
+		if ( NFSHandle.isPseudoRootHandle(st.m_curFH)) {
+
+			//	Find the share, and check the session has access to the share
+
+			ShareDetails details = findShare(st, name);
+			if ( details == null)
+				return NFS4.StsNoEnt;
+
+			byte[] handle = new byte[NFS.FileHandleSize];
+			NFSHandle.packShareHandle(details.getName(), handle);
+
+			st.m_curFH = handle;
+			return NFS4.StsSuccess;
+		}
+
+		//	Lookup a file/directory in a share
+
+		if ( NFSHandle.isFileHandle(st.m_curFH))
+			return NFS4.StsNotDir;
+
+		int shareId = m_server.getShareIdFromHandle(st.m_curFH);
+		TreeConnection conn = m_server.getTreeConnection(st.m_sess, shareId);
+
+		if ( conn.hasReadAccess() == false)
+			throw new AccessDeniedException();
+
+		String path = m_server.getPathForHandle(st.m_sess, st.m_curFH, conn);
+		String lookupPath = m_server.generatePath(path, name);
+
+		DiskInterface disk = (DiskInterface) conn.getSharedDevice().getInterface();
+
+		if ( disk.fileExists(st.m_sess, conn, lookupPath) == FileStatus.NotExist)
+			return NFS4.StsNoEnt;
+
+		FileInfo finfo = disk.getFileInformation(st.m_sess, conn, lookupPath);
+		if ( finfo == null)
+			return NFS4.StsNoEnt;
+
+		//	Build the handle for the file/directory, and add the path to the file id cache
+
+		st.m_curFH = buildHandle(shareId, st.m_curFH, finfo, lookupPath);
+		return NFS4.StsSuccess;
+	}
+
+	/**
+	 * Process a LOOKUPP operation
+	 *
+	 * @param st CompoundState
+	 * @return int
+	 * @exception Exception
+	 */
+	private final int opLookupP(CompoundState st)
+		throws Exception {
+
+		if ( st.m_curFH == null)
+			return NFS4.StsNoFileHandle;
+
+		//	The pseudo root has no parent, the parent of a share is the pseudo root
+
+		if ( NFSHandle.isPseudoRootHandle(st.m_curFH))
+			return NFS4.StsNoEnt;
+		else if ( NFSHandle.isFileHandle(st.m_curFH))
+			return NFS4.StsNotDir;
+
+		int shareId = m_server.getShareIdFromHandle(st.m_curFH);
+		TreeConnection conn = m_server.getTreeConnection(st.m_sess, shareId);
+
+		String path = NFSHandle.isShareHandle(st.m_curFH) ? "\\" : m_server.getPathForHandle(st.m_sess, st.m_curFH, conn);
+
+		byte[] handle = new byte[NFS.FileHandleSize];
+
+		if ( path.equals("\\")) {
+			NFSHandle.packPseudoRootHandle(handle);
+		}
+		else {
+
+			//	Get the parent directory path
+
+			String parentPath = m_server.generatePath(path, "..");
+
+			if ( parentPath.equals("\\")) {
+				NFSHandle.packShareHandle(m_server.getShareDetails().findDetails(shareId).getName(), handle);
+			}
+			else {
+
+				//	Get the parent directory details, and add the path to the file id cache
+
+				DiskInterface disk = (DiskInterface) conn.getSharedDevice().getInterface();
+				FileInfo finfo = disk.getFileInformation(st.m_sess, conn, parentPath);
+
+				if ( finfo == null)
+					return NFS4.StsNoEnt;
+
+				handle = buildHandle(shareId, st.m_curFH, finfo, parentPath);
+			}
+		}
+
+		st.m_curFH = handle;
+		return NFS4.StsSuccess;
+	}
+
+	/**
+	 * Process a SECINFO or SECINFO_NO_NAME operation
+	 *
+	 * @param st CompoundState
+	 * @param op int
+	 * @return int
+	 */
+	private final int opSecInfo(CompoundState st, int op) {
+
+		//	Unpack the name, or the name style
+
+		if ( op == NFS4.OpSecInfo)
+			st.m_req.unpackUTF8String();
+		else
+			st.m_req.unpackInt();
+
+		if ( st.m_curFH == null)
+			return NFS4.StsNoFileHandle;
+
+		//	Return the supported security flavours, the same flavours are used for all shares
+
+		RpcPacket resp = st.m_resp;
+
+		resp.packInt(2);
+		resp.packInt(NFS4.AuthUnix);
+		resp.packInt(NFS4.AuthNull);
+
+		//	The current file handle is consumed by the operation
+
+		st.m_curFH = null;
+		return NFS4.StsSuccess;
+	}
+
+	/**
+	 * Process a GETATTR operation
+	 *
+	 * @param st CompoundState
+	 * @return int
+	 * @exception Exception
+	 */
+	private final int opGetAttr(CompoundState st)
+		throws Exception {
+
+		int[] attrReq = unpackBitmap(st.m_req);
+		if ( attrReq == null)
+			return NFS4.StsBadXDR;
+
+		if ( st.m_curFH == null)
+			return NFS4.StsNoFileHandle;
+
+		//	Get the file information, and pack the requested attributes
+
+		if ( NFSHandle.isPseudoRootHandle(st.m_curFH)) {
+			packAttributes(st, attrReq, st.m_curFH, getPseudoRootInformation(), 0);
+		}
+		else {
+			int shareId = m_server.getShareIdFromHandle(st.m_curFH);
+			TreeConnection conn = m_server.getTreeConnection(st.m_sess, shareId);
+
+			//	Write any unstable writes buffered by other sessions to the file
+
+			if ( NFSHandle.isFileHandle(st.m_curFH))
+				m_server.flushOtherUnstableWrites(st.m_sess, conn, m_server.getFileIdForHandle(st.m_curFH));
+
+			FileInfo finfo = getFileInformation(st, conn, st.m_curFH);
+			packAttributes(st, attrReq, st.m_curFH, finfo, shareId);
+		}
+
+		return NFS4.StsSuccess;
+	}
+
+	/**
+	 * Process a SETATTR operation
+	 *
+	 * @param st CompoundState
+	 * @return int
+	 * @exception Exception
+	 */
+	private final int opSetAttr(CompoundState st)
+		throws Exception {
+
+		RpcPacket rpc = st.m_req;
+
+		//	Unpack the state id, and the attributes to set
+
+		int stateSeqId = rpc.unpackInt();
+		byte[] stateOther = new byte[NFS4.StateIdOtherSize];
+		rpc.unpackByteArray(stateOther);
+
+		FileInfo setInfo = new FileInfo();
+		int[] attrSet = new int[SettableAttrs.length];
+
+		int sts = unpackSetAttributes(rpc, setInfo, attrSet);
+		if ( sts != NFS4.StsSuccess)
+			return sts;
+
+		if ( st.m_curFH == null)
+			return NFS4.StsNoFileHandle;
+		else if ( NFSHandle.isPseudoRootHandle(st.m_curFH))
+			return NFS4.StsROFS;
+
+		//	Check the state id if the file size is being changed
+
+		if ( setInfo.hasSetFlag(FileInfo.SetFileSize)) {
+			sts = checkStateId(st, stateSeqId, stateOther, true);
+			if ( sts != NFS4.StsSuccess)
+				return sts;
+		}
+
+		//	Set the attributes
+
+		int shareId = m_server.getShareIdFromHandle(st.m_curFH);
+		TreeConnection conn = m_server.getTreeConnection(st.m_sess, shareId);
+
+		if ( conn.hasWriteAccess() == false)
+			throw new AccessDeniedException();
+
+		String path = m_server.getPathForHandle(st.m_sess, st.m_curFH, conn);
+		setAttributes(st, conn, st.m_curFH, path, setInfo);
+
+		//	Pack the attributes that were set
+
+		packBitmap(st.m_resp, attrSet);
+		return NFS4.StsSuccess;
+	}
+
+	/**
+	 * Process an ACCESS operation
+	 *
+	 * @param st CompoundState
+	 * @return int
+	 * @exception Exception
+	 */
+	private final int opAccess(CompoundState st)
+		throws Exception {
+
+		int access = st.m_req.unpackInt();
+
+		if ( st.m_curFH == null)
+			return NFS4.StsNoFileHandle;
+
+		//	The pseudo root is read-only
+
+		int mask = NFS4.AccessRead + NFS4.AccessLookup + NFS4.AccessExecute;
+
+		if ( NFSHandle.isPseudoRootHandle(st.m_curFH) == false) {
+
+			//	Check the access that the session has to the filesystem, and that the file/directory exists
+
+			int shareId = m_server.getShareIdFromHandle(st.m_curFH);
+			TreeConnection conn = m_server.getTreeConnection(st.m_sess, shareId);
+
+			getFileInformation(st, conn, st.m_curFH);
+
+			if ( conn.hasWriteAccess())
+				mask = NFS4.AccessAll;
+			else if ( conn.hasReadAccess() == false)
+				mask = 0;
+		}
+
+		//	Pack the supported and granted access
+
+		st.m_resp.packInt(access & NFS4.AccessAll);
+		st.m_resp.packInt(access & mask);
+
+		return NFS4.StsSuccess;
+	}
+
+	/**
+	 * Process a READDIR operation
+	 *
+	 * @param st CompoundState
+	 * @return int
+	 * @exception Exception
+	 */
+	private final int opReadDir(CompoundState st)
+		throws Exception {
+
+		RpcPacket rpc = st.m_req;
+		RpcPacket resp = st.m_resp;
+
+		long cookie = rpc.unpackLong();
+		rpc.unpackLong();		//	cookie verifier, directory changes are not checked
+		rpc.unpackInt();		//	maximum directory information
+		int maxCount = rpc.unpackInt();
+
+		int[] attrReq = unpackBitmap(rpc);
+		if ( attrReq == null)
+			return NFS4.StsBadXDR;
+
+		if ( st.m_curFH == null)
+			return NFS4.StsNoFileHandle;
+		else if ( NFSHandle.isFileHandle(st.m_curFH))
+			return NFS4.StsNotDir;
+
+		//	Cookie values 1 and 2 are reserved, entries use the entry index plus three
+
+		if ( cookie == 1L || cookie == 2L)
+			return NFS4.StsBadCookie;
+
+		int startIdx = cookie == 0L ? 0 : (int) (cookie - 2L);
+
+		//	Limit the reply to the space available, leave space for the results of later operations
+
+		int limit = Math.min(maxCount, resp.getAvailableLength() - ReplyReserve);
+		if ( limit < 128)
+			return NFS4.StsTooSmall;
+
+		int startPos = resp.getPosition();
+		resp.packLong(0L);		//	cookie verifier
+
+		//	DEBUG
+
+		if ( Debug.EnableInfo && m_server.hasDebugFlag(NFSServer.DBG_SEARCH))
+			st.m_sess.debugPrintln("[NFS4] ReadDir handle=" + NFSHandle.asString(st.m_curFH) + ", cookie=" + cookie + ", maxCount=" + maxCount);
+
+		int entryCnt = 0;
+		boolean eof = true;
+
+		if ( NFSHandle.isPseudoRootHandle(st.m_curFH)) {
+
+			//	List the shares that the session has access to, in name order so that the cookies are stable
+
+			String[] shareNames = getShareNames(st);
+
+			for ( int idx = startIdx; idx < shareNames.length && eof == true; idx++) {
+
+				//	Get the share root details
+
+				ShareDetails details = findShare(st, shareNames[idx]);
+				if ( details == null)
+					continue;
+
+				byte[] handle = new byte[NFS.FileHandleSize];
+				NFSHandle.packShareHandle(details.getName(), handle);
+
+				int shareId = details.getName().hashCode();
+				TreeConnection conn = m_server.getTreeConnection(st.m_sess, shareId);
+
+				FileInfo finfo = getFileInformation(st, conn, handle);
+				finfo.setFileName(details.getName());
+
+				//	Pack the entry, stop if the reply is full
+
+				if ( packDirectoryEntry(st, idx + 3L, finfo, handle, shareId, attrReq, startPos + limit))
+					entryCnt++;
+				else
+					eof = false;
+			}
+		}
+		else {
+
+			//	Search the directory
+
+			int shareId = m_server.getShareIdFromHandle(st.m_curFH);
+			TreeConnection conn = m_server.getTreeConnection(st.m_sess, shareId);
+
+			if ( conn.hasReadAccess() == false)
+				throw new AccessDeniedException();
+
+			String path = m_server.getPathForHandle(st.m_sess, st.m_curFH, conn);
+			DiskInterface disk = (DiskInterface) conn.getSharedDevice().getInterface();
+
+			SearchContext search = disk.startSearch(st.m_sess, conn, m_server.generatePath(path, "*.*"), FileAttribute.Directory + FileAttribute.Normal);
+
+			try {
+
+				//	Skip to the resume position, then pack entries until the reply is full
+
+				FileInfo finfo = new FileInfo();
+				int idx = 0;
+
+				while ( eof == true && search.nextFileInfo(finfo)) {
+
+					//	Skip the '.' and '..' entries
+
+					String fname = finfo.getFileName();
+
+					if ( fname.equals(".") == false && fname.equals("..") == false) {
+
+						if ( idx >= startIdx) {
+
+							//	Build the handle for the entry, adds the path to the file id cache
+
+							byte[] handle = buildHandle(shareId, st.m_curFH, finfo, m_server.generatePath(path, fname));
+
+							if ( packDirectoryEntry(st, idx + 3L, finfo, handle, shareId, attrReq, startPos + limit))
+								entryCnt++;
+							else
+								eof = false;
+						}
+
+						idx++;
+					}
+
+					//	Reset the file information for the next entry
+
+					finfo = new FileInfo();
+				}
+			}
+			finally {
+
+				//	Close the search
+
+				search.closeSearch();
+			}
+		}
+
+		//	Check if any entries were returned
+
+		if ( entryCnt == 0 && eof == false)
+			return NFS4.StsTooSmall;
+
+		//	Terminate the entry list, and pack the end of file flag
+
+		resp.packInt(Rpc.False);
+		resp.packInt(eof ? Rpc.True : Rpc.False);
+
+		return NFS4.StsSuccess;
+	}
+
+	/**
+	 * Pack a directory entry, returns false if the entry does not fit in the reply
+	 *
+	 * @param st CompoundState
+	 * @param cookie long
+	 * @param finfo FileInfo
+	 * @param handle byte[]
+	 * @param shareId int
+	 * @param attrReq int[]
+	 * @param endPos int
+	 * @return boolean
+	 */
+	private final boolean packDirectoryEntry(CompoundState st, long cookie, FileInfo finfo, byte[] handle, int shareId,
+			int[] attrReq, int endPos) {
+
+		RpcPacket resp = st.m_resp;
+		int entryPos = resp.getPosition();
+
+		//	Check there is room for the fixed part of the entry, and the name
+
+		if ( entryPos + 32 + finfo.getFileName().length() * 3 + 512 > resp.getBuffer().length)
+			return false;
+
+		resp.packInt(Rpc.True);
+		resp.packLong(cookie);
+		resp.packUTF8String(finfo.getFileName());
+
+		packAttributes(st, attrReq, handle, finfo, shareId);
+
+		//	Check if the entry fits, leave space for the end of list and end of file flags
+
+		if ( resp.getPosition() + 8 > endPos) {
+			resp.setPosition(entryPos);
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Process a CREATE operation, only directories can be created
+	 *
+	 * @param st CompoundState
+	 * @return int
+	 * @exception Exception
+	 */
+	private final int opCreate(CompoundState st)
+		throws Exception {
+
+		RpcPacket rpc = st.m_req;
+
+		//	Only directories are supported
+
+		int objType = rpc.unpackInt();
+		if ( objType != NFS4.FileTypeDir)
+			return NFS4.StsBadType;
+
+		String name = rpc.unpackUTF8String();
+
+		FileInfo setInfo = new FileInfo();
+		int[] attrSet = new int[SettableAttrs.length];
+
+		int sts = unpackSetAttributes(rpc, setInfo, attrSet);
+		if ( sts != NFS4.StsSuccess)
+			return sts;
+
+		//	Check the current handle is a directory
+
+		if ( st.m_curFH == null)
+			return NFS4.StsNoFileHandle;
+		else if ( NFSHandle.isPseudoRootHandle(st.m_curFH))
+			return NFS4.StsROFS;
+		else if ( NFSHandle.isFileHandle(st.m_curFH))
+			return NFS4.StsNotDir;
+
+		sts = checkName(name);
+		if ( sts != NFS4.StsSuccess)
+			return sts;
+
+		int shareId = m_server.getShareIdFromHandle(st.m_curFH);
+		TreeConnection conn = m_server.getTreeConnection(st.m_sess, shareId);
+
+		if ( conn.hasWriteAccess() == false)
+			throw new AccessDeniedException();
+
+		String path = m_server.getPathForHandle(st.m_sess, st.m_curFH, conn);
+		String dirPath = m_server.generatePath(path, name);
+
+		DiskInterface disk = (DiskInterface) conn.getSharedDevice().getInterface();
+
+		if ( disk.fileExists(st.m_sess, conn, dirPath) != FileStatus.NotExist)
+			return NFS4.StsExist;
+
+		long preChange = getChangeValue(disk.getFileInformation(st.m_sess, conn, path));
+
+		//	Create the directory
+
+		FileOpenParams params = new FileOpenParams(dirPath, FileAction.CreateNotExist, AccessMode.ReadWrite, FileAttribute.NTDirectory,
+				setInfo.hasSetFlag(FileInfo.SetGid) ? setInfo.getGid() : -1, setInfo.hasSetFlag(FileInfo.SetUid) ? setInfo.getUid() : -1,
+				setInfo.hasSetFlag(FileInfo.SetMode) ? setInfo.getMode() : -1, 0);
+
+		disk.createDirectory(st.m_sess, conn, params);
+
+		//	The directory has changed, mark any snapshot of the directory as stale
+
+		m_server.invalidateDirectorySnapshot(shareId, path);
+
+		//	Get the new directory details, make the new directory the current handle
+
+		FileInfo finfo = disk.getFileInformation(st.m_sess, conn, dirPath);
+		if ( finfo == null)
+			return NFS4.StsNoEnt;
+
+		long postChange = getChangeValue(disk.getFileInformation(st.m_sess, conn, path));
+		st.m_curFH = buildHandle(shareId, st.m_curFH, finfo, dirPath);
+
+		//	Notify change listeners that a new directory has been created
+
+		DiskDeviceContext diskCtx = (DiskDeviceContext) conn.getContext();
+		if ( diskCtx.hasChangeHandler())
+			diskCtx.getChangeHandler().notifyFileChanged(NotifyChange.ActionAdded, dirPath);
+
+		//	Pack the change information, and the attributes set when the directory was created
+
+		packChangeInfo(st.m_resp, preChange, postChange);
+		attrSet[0] &= ~(1 << NFS4.AttrSize);
+		attrSet[1] &= ~((1 << (NFS4.AttrTimeAccessSet - 32)) + (1 << (NFS4.AttrTimeModifySet - 32)));
+		packBitmap(st.m_resp, attrSet);
+
+		return NFS4.StsSuccess;
+	}
+
+	/**
+	 * Process a REMOVE operation
+	 *
+	 * @param st CompoundState
+	 * @return int
+	 * @exception Exception
+	 */
+	private final int opRemove(CompoundState st)
+		throws Exception {
+
+		String name = st.m_req.unpackUTF8String();
+
+		//	Check the current handle is a directory
+
+		if ( st.m_curFH == null)
+			return NFS4.StsNoFileHandle;
+		else if ( NFSHandle.isPseudoRootHandle(st.m_curFH))
+			return NFS4.StsROFS;
+		else if ( NFSHandle.isFileHandle(st.m_curFH))
+			return NFS4.StsNotDir;
+
+		int sts = checkName(name);
+		if ( sts != NFS4.StsSuccess)
+			return sts;
+
+		int shareId = m_server.getShareIdFromHandle(st.m_curFH);
+		ShareDetails details = m_server.getShareDetails().findDetails(shareId);
+		TreeConnection conn = m_server.getTreeConnection(st.m_sess, shareId);
+
+		if ( conn.hasWriteAccess() == false)
+			throw new AccessDeniedException();
+
+		String path = m_server.getPathForHandle(st.m_sess, st.m_curFH, conn);
+		String delPath = m_server.generatePath(path, name);
+
+		DiskInterface disk = (DiskInterface) conn.getSharedDevice().getInterface();
+
+		//	Check if the file/directory exists
+
+		int existSts = disk.fileExists(st.m_sess, conn, delPath);
+		if ( existSts == FileStatus.NotExist)
+			return NFS4.StsNoEnt;
+
+		long preChange = getChangeValue(disk.getFileInformation(st.m_sess, conn, path));
+		FileInfo finfo = disk.getFileInformation(st.m_sess, conn, delPath);
+
+		//	DEBUG
+
+		if ( Debug.EnableInfo && m_server.hasDebugFlag(NFSServer.DBG_FILE))
+			st.m_sess.debugPrintln("[NFS4] Remove path=" + delPath);
+
+		//	Delete the file or directory
+
+		if ( existSts == FileStatus.DirectoryExists)
+			disk.deleteDirectory(st.m_sess, conn, delPath);
+		else
+			disk.deleteFile(st.m_sess, conn, delPath);
+
+		//	The directory has changed, mark any snapshot of the directory as stale
+
+		m_server.invalidateDirectorySnapshot(shareId, path);
+
+		//	Remove the path from the caches
+
+		if ( finfo != null) {
+			details.getFileIdCache().deletePath(finfo.getFileId());
+
+			if ( existSts != FileStatus.DirectoryExists)
+				st.m_sess.getFileCache().removeFile(finfo.getFileId());
+		}
+
+		//	Notify change listeners that the file/directory has been removed
+
+		DiskDeviceContext diskCtx = (DiskDeviceContext) conn.getContext();
+		if ( diskCtx.hasChangeHandler())
+			diskCtx.getChangeHandler().notifyFileChanged(NotifyChange.ActionRemoved, delPath);
+
+		//	Pack the change information for the directory
+
+		packChangeInfo(st.m_resp, preChange, getChangeValue(disk.getFileInformation(st.m_sess, conn, path)));
+		return NFS4.StsSuccess;
+	}
+
+	/**
+	 * Process a RENAME operation, the saved handle is the source directory and the current handle is the
+	 * target directory
+	 *
+	 * @param st CompoundState
+	 * @return int
+	 * @exception Exception
+	 */
+	private final int opRename(CompoundState st)
+		throws Exception {
+
+		String oldName = st.m_req.unpackUTF8String();
+		String newName = st.m_req.unpackUTF8String();
+
+		//	Check the saved and current handles are directories on the same share
+
+		if ( st.m_curFH == null || st.m_savedFH == null)
+			return NFS4.StsNoFileHandle;
+		else if ( NFSHandle.isPseudoRootHandle(st.m_curFH) || NFSHandle.isPseudoRootHandle(st.m_savedFH))
+			return NFS4.StsROFS;
+		else if ( NFSHandle.isFileHandle(st.m_curFH) || NFSHandle.isFileHandle(st.m_savedFH))
+			return NFS4.StsNotDir;
+
+		int sts = checkName(oldName);
+		if ( sts == NFS4.StsSuccess)
+			sts = checkName(newName);
+		if ( sts != NFS4.StsSuccess)
+			return sts;
+
+		int shareId = m_server.getShareIdFromHandle(st.m_savedFH);
+		if ( shareId != m_server.getShareIdFromHandle(st.m_curFH))
+			return NFS.StsXDev;
+
+		ShareDetails details = m_server.getShareDetails().findDetails(shareId);
+		TreeConnection conn = m_server.getTreeConnection(st.m_sess, shareId);
+
+		if ( conn.hasWriteAccess() == false)
+			throw new AccessDeniedException();
+
+		String fromPath = m_server.getPathForHandle(st.m_sess, st.m_savedFH, conn);
+		String toPath = m_server.getPathForHandle(st.m_sess, st.m_curFH, conn);
+
+		String oldPath = m_server.generatePath(fromPath, oldName);
+		String newPath = m_server.generatePath(toPath, newName);
+
+		DiskInterface disk = (DiskInterface) conn.getSharedDevice().getInterface();
+
+		//	Check if the source exists
+
+		if ( disk.fileExists(st.m_sess, conn, oldPath) == FileStatus.NotExist)
+			return NFS4.StsNoEnt;
+
+		long preFromChange = getChangeValue(disk.getFileInformation(st.m_sess, conn, fromPath));
+		long preToChange = getChangeValue(disk.getFileInformation(st.m_sess, conn, toPath));
+
+		//	DEBUG
+
+		if ( Debug.EnableInfo && m_server.hasDebugFlag(NFSServer.DBG_FILE))
+			st.m_sess.debugPrintln("[NFS4] Rename from=" + oldPath + ", to=" + newPath);
+
+		//	Write any buffered unstable writes, from any session, and close the file if it is open
+
+		FileInfo finfo = disk.getFileInformation(st.m_sess, conn, oldPath);
+
+		if ( finfo != null && finfo.isDirectory() == false) {
+
+			m_server.flushUnstableWrites(st.m_sess, conn, finfo.getFileId(), 0L, 0L);
+
+			NetworkFileCache fileCache = st.m_sess.getFileCache();
+			NetworkFile netFile = fileCache.findFile(finfo.getFileId(), st.m_sess);
+
+			if ( netFile != null) {
+				disk.closeFile(st.m_sess, conn, netFile);
+
+				fileCache.removeFile(netFile.getFileId());
+			}
+		}
+
+		//	Delete an existing target file
+
+		if ( disk.fileExists(st.m_sess, conn, newPath) == FileStatus.FileExists)
+			disk.deleteFile(st.m_sess, conn, newPath);
+
+		//	Rename the file/directory
+
+		disk.renameFile(st.m_sess, conn, oldPath, newPath);
+
+		//	The directories have changed, mark any snapshots of the directories as stale
+
+		m_server.invalidateDirectorySnapshot(shareId, fromPath);
+		m_server.invalidateDirectorySnapshot(shareId, toPath);
+
+		//	Map the original file id to the new path, clients will continue to use the original handle
+
+		if ( finfo != null && finfo.getFileId() != -1) {
+			details.getFileIdCache().deletePath(finfo.getFileId());
+			details.getFileIdCache().addPath(finfo.getFileId(), newPath);
+		}
+
+		//	Notify change listeners of the rename
+
+		DiskDeviceContext diskCtx = (DiskDeviceContext) conn.getContext();
+		if ( diskCtx.hasChangeHandler())
+			diskCtx.getChangeHandler().notifyRename(oldPath, newPath);
+
+		//	Pack the change information for the source and target directories
+
+		packChangeInfo(st.m_resp, preFromChange, getChangeValue(disk.getFileInformation(st.m_sess, conn, fromPath)));
+		packChangeInfo(st.m_resp, preToChange, getChangeValue(disk.getFileInformation(st.m_sess, conn, toPath)));
+
+		return NFS4.StsSuccess;
+	}
+
+	/**
+	 * Process an OPEN operation
+	 *
+	 * @param st CompoundState
+	 * @return int
+	 * @exception Exception
+	 */
+	private final int opOpen(CompoundState st)
+		throws Exception {
+
+		RpcPacket rpc = st.m_req;
+
+		//	Unpack the share access/deny modes, the open owner is not used as the state is held per client
+
+		rpc.unpackInt();		//	sequence id, not used by NFSv4.1
+		int shareAccess = rpc.unpackInt() & NFS4.ShareAccessMask;
+		int shareDeny = rpc.unpackInt();
+
+		rpc.unpackLong();		//	client id
+		int ownerLen = rpc.unpackInt();
+		if ( ownerLen < 0 || ownerLen > MaxOpaqueLength)
+			return NFS4.StsBadXDR;
+		rpc.skipBytes(ownerLen);
+
+		//	Unpack the open type, and create mode/attributes
+
+		int openType = rpc.unpackInt();
+		int createMode = -1;
+
+		FileInfo setInfo = null;
+		int[] attrSet = new int[SettableAttrs.length];
+
+		if ( openType == NFS4.OpenCreate) {
+
+			createMode = rpc.unpackInt();
+			int sts = NFS4.StsSuccess;
+
+			switch ( createMode) {
+				case NFS4.CreateUnchecked:
+				case NFS4.CreateGuarded:
+					setInfo = new FileInfo();
+					sts = unpackSetAttributes(rpc, setInfo, attrSet);
+					break;
+				case NFS4.CreateExclusive:
+					rpc.skipBytes(NFS4.VerifierSize);
+					break;
+				case NFS4.CreateExclusive41:
+					rpc.skipBytes(NFS4.VerifierSize);
+					setInfo = new FileInfo();
+					sts = unpackSetAttributes(rpc, setInfo, attrSet);
+					break;
+				default:
+					sts = NFS4.StsInVal;
+					break;
+			}
+
+			if ( sts != NFS4.StsSuccess)
+				return sts;
+		}
+		else if ( openType != NFS4.OpenNoCreate)
+			return NFS4.StsInVal;
+
+		//	Unpack the claim, delegations are not granted so only open by name or handle is supported
+
+		int claim = rpc.unpackInt();
+		String name = null;
+
+		if ( claim == NFS4.ClaimNull)
+			name = rpc.unpackUTF8String();
+		else if ( claim == NFS4.ClaimPrevious)
+			return NFS4.StsNoGrace;
+		else if ( claim != NFS4.ClaimFH)
+			return NFS4.StsNotSupp;
+
+		//	Validate the request
+
+		if ( st.m_curFH == null)
+			return NFS4.StsNoFileHandle;
+		else if ( shareAccess == 0 || shareAccess > NFS4.ShareAccessBoth || shareDeny < 0 || shareDeny > NFS4.ShareDenyBoth)
+			return NFS4.StsInVal;
+		else if ( NFSHandle.isPseudoRootHandle(st.m_curFH))
+			return openType == NFS4.OpenCreate ? NFS4.StsROFS : NFS4.StsIsDir;
+
+		int shareId = m_server.getShareIdFromHandle(st.m_curFH);
+		TreeConnection conn = m_server.getTreeConnection(st.m_sess, shareId);
+		DiskInterface disk = (DiskInterface) conn.getSharedDevice().getInterface();
+
+		if ( conn.hasReadAccess() == false || (( shareAccess & NFS4.ShareAccessWrite) != 0 && conn.hasWriteAccess() == false))
+			throw new AccessDeniedException();
+
+		byte[] handle = null;
+		String filePath = null;
+		boolean created = false;
+
+		long preChange = 0L;
+		long postChange = 0L;
+
+		if ( claim == NFS4.ClaimFH) {
+
+			//	Open by handle, the handle must be a file
+
+			if ( NFSHandle.isFileHandle(st.m_curFH) == false)
+				return NFS4.StsIsDir;
+
+			handle = st.m_curFH;
+			filePath = m_server.getPathForHandle(st.m_sess, handle, conn);
+		}
+		else {
+
+			//	Open by name, the current handle is the directory
+
+			if ( NFSHandle.isFileHandle(st.m_curFH))
+				return NFS4.StsNotDir;
+
+			int sts = checkName(name);
+			if ( sts != NFS4.StsSuccess)
+				return sts;
+
+			String path = m_server.getPathForHandle(st.m_sess, st.m_curFH, conn);
+			filePath = m_server.generatePath(path, name);
+
+			int existSts = disk.fileExists(st.m_sess, conn, filePath);
+
+			if ( existSts == FileStatus.DirectoryExists)
+				return NFS4.StsIsDir;
+			else if ( existSts == FileStatus.FileExists) {
+
+				//	The file exists, check if it must be created
+
+				if ( openType == NFS4.OpenCreate && createMode != NFS4.CreateUnchecked)
+					return NFS4.StsExist;
+			}
+			else if ( openType == NFS4.OpenCreate) {
+
+				//	Create the file
+
+				if ( conn.hasWriteAccess() == false)
+					throw new AccessDeniedException();
+
+				preChange = getChangeValue(disk.getFileInformation(st.m_sess, conn, path));
+
+				int gid = -1;
+				int uid = -1;
+				int mode = -1;
+
+				if ( setInfo != null) {
+					if ( setInfo.hasSetFlag(FileInfo.SetGid))
+						gid = setInfo.getGid();
+					if ( setInfo.hasSetFlag(FileInfo.SetUid))
+						uid = setInfo.getUid();
+					if ( setInfo.hasSetFlag(FileInfo.SetMode))
+						mode = setInfo.getMode();
+				}
+
+				FileOpenParams params = new FileOpenParams(filePath, FileAction.CreateNotExist, AccessMode.ReadWrite, 0, gid, uid, mode, 0);
+				NetworkFile netFile = disk.createFile(st.m_sess, conn, params);
+
+				created = true;
+
+				//	The directory has changed, mark any snapshot of the directory as stale
+
+				m_server.invalidateDirectorySnapshot(shareId, path);
+
+				//	Add the new file to the open file cache
+
+				if ( netFile != null)
+					st.m_sess.getFileCache().addFile(netFile, conn, st.m_sess);
+
+				postChange = getChangeValue(disk.getFileInformation(st.m_sess, conn, path));
+
+				//	Notify change listeners that a new file has been created
+
+				DiskDeviceContext diskCtx = (DiskDeviceContext) conn.getContext();
+				if ( diskCtx.hasChangeHandler())
+					diskCtx.getChangeHandler().notifyFileChanged(NotifyChange.ActionAdded, filePath);
+			}
+			else
+				return NFS4.StsNoEnt;
+
+			//	Get the file details, and build the handle
+
+			FileInfo finfo = disk.getFileInformation(st.m_sess, conn, filePath);
+
+			if ( finfo == null)
+				return NFS4.StsNoEnt;
+			else if ( finfo.isFileType() == FileType.SymbolicLink)
+				return NFS4.StsSymLink;
+
+			handle = buildHandle(shareId, st.m_curFH, finfo, filePath);
+		}
+
+		//	Open the file via the open file cache
+
+		NetworkFile netFile = m_server.getNetworkFileForHandle(st.m_sess, handle, conn, ( shareAccess & NFS4.ShareAccessWrite) == 0);
+		if ( netFile == null)
+			throw new AccessDeniedException();
+
+		//	Set the file attributes, for an existing file only the size is set
+
+		if ( setInfo != null && setInfo.getSetFileInformationFlags() != 0) {
+			if ( created == false) {
+				setInfo.setFileInformationFlags(setInfo.getSetFileInformationFlags() & FileInfo.SetFileSize);
+				for ( int i = 0; i < attrSet.length; i++)
+					attrSet[i] = 0;
+				if ( setInfo.hasSetFlag(FileInfo.SetFileSize))
+					attrSet[0] = 1 << NFS4.AttrSize;
+			}
+
+			setAttributes(st, conn, handle, filePath, setInfo);
+		}
+
+		//	Allocate the open state
+
+		NFS4OpenState openState = null;
+
+		synchronized ( m_clients) {
+			openState = new NFS4OpenState(++m_stateIdx, getSessionClient(st), handle, shareAccess, shareDeny);
+			m_openStates.put(Long.valueOf(openState.getStateIndex()), openState);
+		}
+
+		//	DEBUG
+
+		if ( Debug.EnableInfo && m_server.hasDebugFlag(NFSServer.DBG_FILE))
+			st.m_sess.debugPrintln("[NFS4] Open path=" + filePath + ", created=" + created + ", state=" + openState);
+
+		//	The opened file is the current handle
+
+		st.m_curFH = handle;
+
+		//	Pack the results, delegations are never granted
+
+		RpcPacket resp = st.m_resp;
+
+		openState.packStateId(resp);
+		packChangeInfo(resp, preChange, postChange);
+		resp.packInt(NFS4.OpenResultLockTypePosix);
+		packBitmap(resp, attrSet);
+		resp.packInt(NFS4.OpenDelegateNone);
+
+		return NFS4.StsSuccess;
+	}
+
+	/**
+	 * Process a CLOSE operation. The file is left in the open file cache, it will be closed when it has
+	 * been idle for the file cache timeout, in the same way as files accessed using NFS v3.
+	 *
+	 * @param st CompoundState
+	 * @return int
+	 */
+	private final int opClose(CompoundState st) {
+
+		RpcPacket rpc = st.m_req;
+
+		rpc.unpackInt();		//	sequence id, not used by NFSv4.1
+		int stateSeqId = rpc.unpackInt();
+		byte[] stateOther = new byte[NFS4.StateIdOtherSize];
+		rpc.unpackByteArray(stateOther);
+
+		if ( st.m_curFH == null)
+			return NFS4.StsNoFileHandle;
+
+		//	Find, and remove, the open state
+
+		NFS4OpenState openState = null;
+
+		synchronized ( m_clients) {
+			int sts = checkOpenState(st, stateSeqId, stateOther);
+			if ( sts != NFS4.StsSuccess)
+				return sts;
+
+			openState = m_openStates.remove(Long.valueOf(DataPacker.getLong(stateOther, 4)));
+		}
+
+		//	DEBUG
+
+		if ( Debug.EnableInfo && m_server.hasDebugFlag(NFSServer.DBG_FILE))
+			st.m_sess.debugPrintln("[NFS4] Close state=" + openState);
+
+		//	Return the updated state id
+
+		openState.updateShareModes(openState.getShareAccess(), openState.getShareDeny());
+		openState.packStateId(st.m_resp);
+
+		return NFS4.StsSuccess;
+	}
+
+	/**
+	 * Process an OPEN_DOWNGRADE operation
+	 *
+	 * @param st CompoundState
+	 * @return int
+	 */
+	private final int opOpenDowngrade(CompoundState st) {
+
+		RpcPacket rpc = st.m_req;
+
+		int stateSeqId = rpc.unpackInt();
+		byte[] stateOther = new byte[NFS4.StateIdOtherSize];
+		rpc.unpackByteArray(stateOther);
+
+		rpc.unpackInt();		//	sequence id, not used by NFSv4.1
+		int shareAccess = rpc.unpackInt() & NFS4.ShareAccessMask;
+		int shareDeny = rpc.unpackInt();
+
+		if ( st.m_curFH == null)
+			return NFS4.StsNoFileHandle;
+
+		NFS4OpenState openState = null;
+
+		synchronized ( m_clients) {
+			int sts = checkOpenState(st, stateSeqId, stateOther);
+			if ( sts != NFS4.StsSuccess)
+				return sts;
+
+			openState = m_openStates.get(Long.valueOf(DataPacker.getLong(stateOther, 4)));
+		}
+
+		//	The new modes must be a subset of the current modes
+
+		if ( shareAccess == 0 || ( shareAccess & ~openState.getShareAccess()) != 0 || ( shareDeny & ~openState.getShareDeny()) != 0)
+			return NFS4.StsInVal;
+
+		openState.updateShareModes(shareAccess, shareDeny);
+		openState.packStateId(st.m_resp);
+
+		return NFS4.StsSuccess;
+	}
+
+	/**
+	 * Process a READ operation
+	 *
+	 * @param st CompoundState
+	 * @return int
+	 * @exception Exception
+	 */
+	private final int opRead(CompoundState st)
+		throws Exception {
+
+		RpcPacket rpc = st.m_req;
+
+		int stateSeqId = rpc.unpackInt();
+		byte[] stateOther = new byte[NFS4.StateIdOtherSize];
+		rpc.unpackByteArray(stateOther);
+
+		long offset = rpc.unpackLong();
+		int count = rpc.unpackInt();
+
+		//	Check the current handle is a file, and the state id
+
+		int sts = checkFileHandle(st);
+		if ( sts == NFS4.StsSuccess)
+			sts = checkStateId(st, stateSeqId, stateOther, false);
+		if ( sts != NFS4.StsSuccess)
+			return sts;
+
+		int shareId = m_server.getShareIdFromHandle(st.m_curFH);
+		TreeConnection conn = m_server.getTreeConnection(st.m_sess, shareId);
+
+		if ( conn.hasReadAccess() == false)
+			throw new AccessDeniedException();
+
+		//	Get the network file, it may be cached
+
+		NetworkFile netFile = m_server.getNetworkFileForHandle(st.m_sess, st.m_curFH, conn, true);
+		if ( netFile == null)
+			throw new AccessDeniedException();
+
+		DiskInterface disk = (DiskInterface) conn.getSharedDevice().getInterface();
+
+		//	Write any buffered unstable writes from the read position onwards to the file, from any session
+
+		m_server.flushUnstableWrites(st.m_sess, conn, netFile.getFileId(), offset, 0L);
+
+		//	Limit the read to the space available in the reply
+
+		RpcPacket resp = st.m_resp;
+
+		count = Math.max(0, Math.min(count, Math.min(MaxReadSize, resp.getAvailableLength() - ReplyReserve)));
+
+		//	Read the data directly into the reply, the end of file flag and length are filled in after the read
+
+		int eofPos = resp.getPosition();
+		int rdlen = 0;
+
+		synchronized ( netFile) {
+
+			//	Make sure the network file is open
+
+			if ( netFile.isClosed())
+				netFile.openFile(false);
+
+			if ( count > 0)
+				rdlen = disk.readFile(st.m_sess, conn, netFile, resp.getBuffer(), eofPos + 8, count, offset);
+		}
+
+		if ( rdlen < 0)
+			rdlen = 0;
+
+		boolean eof = offset + rdlen >= m_server.getOpenFileSize(conn, netFile);
+
+		resp.packInt(eof ? Rpc.True : Rpc.False);
+		resp.packInt(rdlen);
+
+		//	Zero the padding after the data
+
+		int padLen = ((rdlen + 3) & 0xFFFFFFFC) - rdlen;
+		resp.setPosition(eofPos + 8 + rdlen);
+		resp.packNulls(padLen);
+
+		//	DEBUG
+
+		if ( Debug.EnableInfo && m_server.hasDebugFlag(NFSServer.DBG_FILEIO))
+			st.m_sess.debugPrintln("[NFS4] Read fid=" + netFile.getFileId() + ", name=" + netFile.getName() + ", pos=" + offset + ", rdlen=" + rdlen);
+
+		return NFS4.StsSuccess;
+	}
+
+	/**
+	 * Process a WRITE operation
+	 *
+	 * @param st CompoundState
+	 * @return int
+	 * @exception Exception
+	 */
+	private final int opWrite(CompoundState st)
+		throws Exception {
+
+		RpcPacket rpc = st.m_req;
+
+		int stateSeqId = rpc.unpackInt();
+		byte[] stateOther = new byte[NFS4.StateIdOtherSize];
+		rpc.unpackByteArray(stateOther);
+
+		long offset = rpc.unpackLong();
+		int stable = rpc.unpackInt();
+		int count = rpc.unpackInt();
+
+		//	Check the data is within the request, and skip the data
+
+		int dataPos = rpc.getPosition();
+
+		if ( count < 0 || dataPos + count > st.m_reqEnd)
+			return NFS4.StsBadXDR;
+
+		rpc.setPosition(dataPos + ((count + 3) & 0xFFFFFFFC));
+
+		//	Check the current handle is a file, and the state id
+
+		int sts = checkFileHandle(st);
+		if ( sts == NFS4.StsSuccess)
+			sts = checkStateId(st, stateSeqId, stateOther, true);
+		if ( sts != NFS4.StsSuccess)
+			return sts;
+
+		int shareId = m_server.getShareIdFromHandle(st.m_curFH);
+		TreeConnection conn = m_server.getTreeConnection(st.m_sess, shareId);
+
+		if ( conn.hasWriteAccess() == false)
+			throw new AccessDeniedException();
+
+		//	Get the network file, it may be cached
+
+		NetworkFile netFile = m_server.getNetworkFileForHandle(st.m_sess, st.m_curFH, conn, false);
+		if ( netFile == null)
+			throw new AccessDeniedException();
+
+		String path = m_server.getPathForHandle(st.m_sess, st.m_curFH, conn);
+		DiskInterface disk = (DiskInterface) conn.getSharedDevice().getInterface();
+
+		//	Unstable writes are buffered until the client commits the data, if enabled. For other writes write any
+		//	buffered unstable writes first, from any session, to keep the writes in order.
+
+		UnstableWriteCache writeCache = m_server.getUnstableWriteCache();
+		boolean bufferWrite = stable == NFS4.WriteUnstable && writeCache != null;
+
+		if ( bufferWrite == false)
+			m_server.flushUnstableWrites(st.m_sess, conn, netFile.getFileId(), 0L, 0L);
+
+		FileInfo preInfo = m_server.getOpenFileInformation(st.m_sess, conn, disk, netFile, path);
+
+		int committed = NFS4.WriteFileSync;
+
+		synchronized ( netFile) {
+
+			//	Make sure the network file is open
+
+			if ( netFile.isClosed())
+				netFile.openFile(false);
+
+			//	Check if the write can be buffered
+
+			if ( bufferWrite) {
+
+				//	Buffer the write, flush the buffer to the file if it is full
+
+				UnstableWriteBuffer writeBuf = writeCache.addWrite(st.m_sess, conn, netFile, rpc.getBuffer(), dataPos, count, offset);
+				if ( writeBuf.getBufferedSize() >= writeBuf.getMaximumSize())
+					m_server.flushUnstableWrites(st.m_sess, conn, disk, netFile, writeBuf, 0L, 0L);
+
+				committed = NFS4.WriteUnstable;
+			}
+			else {
+
+				//	Write to the network file
+
+				disk.writeFile(st.m_sess, conn, netFile, rpc.getBuffer(), dataPos, count, offset);
+			}
+		}
+
+		//	Check if the server wide limit on buffered unstable writes has been exceeded
+
+		if ( bufferWrite)
+			m_server.checkUnstableWriteLimit(st.m_sess);
+
+		//	Update the cached attributes
+
+		if ( preInfo != null) {
+			FileInfo finfo = new FileInfo();
+			finfo.copyFrom(preInfo);
+
+			long timeNow = System.currentTimeMillis();
+			finfo.setModifyDateTime(timeNow);
+			finfo.setChangeDateTime(timeNow);
+			finfo.setFileSize(m_server.getOpenFileSize(conn, netFile));
+
+			st.m_sess.getFileCache().setFileAttributes(netFile.getFileId(), finfo);
+		}
+
+		//	DEBUG
+
+		if ( Debug.EnableInfo && m_server.hasDebugFlag(NFSServer.DBG_FILEIO))
+			st.m_sess.debugPrintln("[NFS4] Write fid=" + netFile.getFileId() + ", name=" + netFile.getName() + ", pos=" + offset + ", len=" + count +
+					", committed=" + committed);
+
+		//	Pack the results
+
+		RpcPacket resp = st.m_resp;
+
+		resp.packInt(count);
+		resp.packInt(committed);
+		resp.packLong(m_server.getWriteVerifier());
+
+		return NFS4.StsSuccess;
+	}
+
+	/**
+	 * Process a COMMIT operation
+	 *
+	 * @param st CompoundState
+	 * @return int
+	 * @exception Exception
+	 */
+	private final int opCommit(CompoundState st)
+		throws Exception {
+
+		long offset = st.m_req.unpackLong();
+		int count = st.m_req.unpackInt();
+
+		int sts = checkFileHandle(st);
+		if ( sts != NFS4.StsSuccess)
+			return sts;
+
+		int shareId = m_server.getShareIdFromHandle(st.m_curFH);
+		TreeConnection conn = m_server.getTreeConnection(st.m_sess, shareId);
+
+		//	Write any buffered data for the range to the file, from any session
+
+		m_server.flushUnstableWrites(st.m_sess, conn, m_server.getFileIdForHandle(st.m_curFH), offset, count & 0xFFFFFFFFL);
+
+		//	Pack the write verifier
+
+		st.m_resp.packLong(m_server.getWriteVerifier());
+		return NFS4.StsSuccess;
+	}
+
+	/**
+	 * Process a TEST_STATEID operation
+	 *
+	 * @param st CompoundState
+	 * @return int
+	 */
+	private final int opTestStateId(CompoundState st) {
+
+		RpcPacket rpc = st.m_req;
+
+		int cnt = rpc.unpackInt();
+		if ( cnt < 0 || cnt > MaxOperations)
+			return NFS4.StsBadXDR;
+
+		//	Check each state id
+
+		st.m_resp.packInt(cnt);
+		byte[] stateOther = new byte[NFS4.StateIdOtherSize];
+
+		synchronized ( m_clients) {
+			for ( int i = 0; i < cnt; i++) {
+				int stateSeqId = rpc.unpackInt();
+				rpc.unpackByteArray(stateOther);
+
+				st.m_resp.packInt(checkOpenState(st, stateSeqId, stateOther));
+			}
+		}
+
+		return NFS4.StsSuccess;
+	}
+
+	/**
+	 * Process a FREE_STATEID or DELEGRETURN operation. Open state ids are released using CLOSE, and delegations
+	 * are not granted.
+	 *
+	 * @param st CompoundState
+	 * @param op int
+	 * @return int
+	 */
+	private final int opFreeStateId(CompoundState st, int op) {
+
+		RpcPacket rpc = st.m_req;
+
+		int stateSeqId = rpc.unpackInt();
+		byte[] stateOther = new byte[NFS4.StateIdOtherSize];
+		rpc.unpackByteArray(stateOther);
+
+		if ( op == NFS4.OpDelegReturn && st.m_curFH == null)
+			return NFS4.StsNoFileHandle;
+
+		synchronized ( m_clients) {
+			if ( checkOpenState(st, stateSeqId, stateOther) == NFS4.StsSuccess)
+				return op == NFS4.OpFreeStateId ? NFS4.StsLocksHeld : NFS4.StsBadStateId;
+		}
+
+		return NFS4.StsBadStateId;
+	}
+
+	/**
+	 * Check that the current handle is a file handle
+	 *
+	 * @param st CompoundState
+	 * @return int
+	 */
+	private final int checkFileHandle(CompoundState st) {
+		if ( st.m_curFH == null)
+			return NFS4.StsNoFileHandle;
+		else if ( NFSHandle.isFileHandle(st.m_curFH) == false)
+			return NFS4.StsIsDir;
+		return NFS4.StsSuccess;
+	}
+
+	/**
+	 * Check a state id used for a read, write or set size request. The special anonymous and read bypass state
+	 * ids are allowed, otherwise the state id must be an open state for the current handle.
+	 *
+	 * @param st CompoundState
+	 * @param seqId int
+	 * @param other byte[]
+	 * @param write boolean
+	 * @return int
+	 */
+	private final int checkStateId(CompoundState st, int seqId, byte[] other, boolean write) {
+
+		//	Check for the special state ids
+
+		if ( Arrays.equals(other, StateIdAnonymous))
+			return NFS4.StsSuccess;
+		else if ( Arrays.equals(other, StateIdBypass))
+			return write ? NFS4.StsBadStateId : NFS4.StsSuccess;
+
+		synchronized ( m_clients) {
+
+			//	Check the open state
+
+			int sts = checkOpenState(st, seqId, other);
+			if ( sts != NFS4.StsSuccess)
+				return sts;
+
+			NFS4OpenState openState = m_openStates.get(Long.valueOf(DataPacker.getLong(other, 4)));
+
+			if ( Arrays.equals(openState.getHandle(), st.m_curFH) == false)
+				return NFS4.StsBadStateId;
+			else if ( write && openState.hasWriteAccess() == false)
+				return NFS4.StsOpenMode;
+		}
+
+		return NFS4.StsSuccess;
+	}
+
+	/**
+	 * Check an open state id belongs to the client, and the sequence id is current. Must be called with the
+	 * client table locked.
+	 *
+	 * @param st CompoundState
+	 * @param seqId int
+	 * @param other byte[]
+	 * @return int
+	 */
+	private final int checkOpenState(CompoundState st, int seqId, byte[] other) {
+
+		//	Find the open state
+
+		NFS4OpenState openState = m_openStates.get(Long.valueOf(DataPacker.getLong(other, 4)));
+		NFS4Client client = getSessionClient(st);
+
+		if ( openState == null || openState.getClient() != client ||
+				DataPacker.getInt(other, 0) != (int) (client.getClientId() & 0xFFFFFFFFL))
+			return NFS4.StsBadStateId;
+
+		//	A zero sequence id refers to the current state id
+
+		if ( seqId != 0 && seqId != openState.getSequenceId())
+			return seqId < openState.getSequenceId() ? NFS4.StsOldStateId : NFS4.StsBadStateId;
+
+		return NFS4.StsSuccess;
+	}
+
+	/**
+	 * Return the client for the session the request is using, or null
+	 *
+	 * @param st CompoundState
+	 * @return NFS4Client
+	 */
+	private final NFS4Client getSessionClient(CompoundState st) {
+		return st.m_session != null ? st.m_session.getClient() : null;
+	}
+
+	/**
+	 * Find a session
+	 *
+	 * @param sessId byte[]
+	 * @return NFS4Session
+	 */
+	private final NFS4Session findSession(byte[] sessId) {
+		synchronized ( m_clients) {
+			return m_sessions.get(NFS4Session.asKey(sessId));
+		}
+	}
+
+	/**
+	 * Find the client record for a client owner. Must be called with the client table locked.
+	 *
+	 * @param ownerId byte[]
+	 * @return NFS4Client
+	 */
+	private final NFS4Client findClientForOwner(byte[] ownerId) {
+		Iterator<NFS4Client> iter = m_clients.values().iterator();
+
+		while ( iter.hasNext()) {
+			NFS4Client client = iter.next();
+			if ( client.isOwner(ownerId))
+				return client;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Remove a client, and the sessions and open states owned by the client. Must be called with the client
+	 * table locked.
+	 *
+	 * @param client NFS4Client
+	 */
+	private final void removeClient(NFS4Client client) {
+
+		//	Remove the client, and the client sessions
+
+		m_clients.remove(Long.valueOf(client.getClientId()));
+
+		for ( NFS4Session session : client.getSessions())
+			m_sessions.remove(session.getSessionKey());
+		client.getSessions().clear();
+
+		//	Remove the open states
+
+		Iterator<NFS4OpenState> iter = m_openStates.values().iterator();
+
+		while ( iter.hasNext()) {
+			if ( iter.next().getClient() == client)
+				iter.remove();
+		}
+	}
+
+	/**
+	 * Remove clients that have not renewed their lease. Must be called with the client table locked.
+	 */
+	private final void expireClients() {
+
+		long expireTime = System.currentTimeMillis() - (LeaseTime * 2000L);
+
+		NFS4Client[] clients = m_clients.values().toArray(new NFS4Client[m_clients.size()]);
+
+		for ( NFS4Client client : clients) {
+			if ( client.getRenewTime() < expireTime) {
+
+				//	DEBUG
+
+				if ( Debug.EnableInfo && m_server.hasDebugFlag(NFSServer.DBG_SESSION))
+					Debug.println("[NFS4] Expired client " + client);
+
+				removeClient(client);
+			}
+		}
+	}
+
+	/**
+	 * Remove all clients, sessions and open states
+	 */
+	public final void removeAllClients() {
+		synchronized ( m_clients) {
+			m_clients.clear();
+			m_sessions.clear();
+			m_openStates.clear();
+		}
+	}
+
+	/**
+	 * Return the number of registered clients
+	 *
+	 * @return int
+	 */
+	public final int numberOfClients() {
+		synchronized ( m_clients) {
+			return m_clients.size();
+		}
+	}
+
+	/**
+	 * Find a share by name, checking that the session has access to the share
+	 *
+	 * @param st CompoundState
+	 * @param name String
+	 * @return ShareDetails
+	 */
+	private final ShareDetails findShare(CompoundState st, String name) {
+
+		//	Find the share details, check for new shares if not found
+
+		ShareDetails details = m_server.getShareDetails().findDetails(name);
+		if ( details == null && m_server.checkForNewShares() > 0)
+			details = m_server.getShareDetails().findDetails(name);
+
+		if ( details == null)
+			return null;
+
+		//	Check the session has access to the share
+
+		try {
+			m_server.getTreeConnection(st.m_sess, name.hashCode());
+		}
+		catch (BadHandleException ex) {
+			return null;
+		}
+
+		return details;
+	}
+
+	/**
+	 * Return the share names, sorted
+	 *
+	 * @param st CompoundState
+	 * @return String[]
+	 */
+	private final String[] getShareNames(CompoundState st) {
+
+		m_server.checkForNewShares();
+
+		ShareDetails[] shares = m_server.getShareDetails().getShareDetails().values().toArray(new ShareDetails[0]);
+		String[] names = new String[shares.length];
+
+		for ( int i = 0; i < shares.length; i++)
+			names[i] = shares[i].getName();
+
+		Arrays.sort(names);
+		return names;
+	}
+
+	/**
+	 * Build the handle for a file/directory, and add the path to the file id cache
+	 *
+	 * @param shareId int
+	 * @param dirHandle byte[]
+	 * @param finfo FileInfo
+	 * @param path String
+	 * @return byte[]
+	 * @exception BadHandleException
+	 */
+	private final byte[] buildHandle(int shareId, byte[] dirHandle, FileInfo finfo, String path)
+		throws BadHandleException {
+
+		byte[] handle = new byte[NFS.FileHandleSize];
+
+		if ( finfo.isDirectory())
+			NFSHandle.packDirectoryHandle(shareId, finfo.getFileId(), handle);
+		else
+			NFSHandle.packFileHandle(shareId, m_server.getFileIdForHandle(dirHandle), finfo.getFileId(), handle);
+
+		m_server.getShareDetails().findDetails(shareId).getFileIdCache().addPath(finfo.getFileId(), path);
+		return handle;
+	}
+
+	/**
+	 * Return the file information for a handle, use the current file size if the file is open
+	 *
+	 * @param st CompoundState
+	 * @param conn TreeConnection
+	 * @param handle byte[]
+	 * @return FileInfo
+	 * @exception Exception
+	 */
+	private final FileInfo getFileInformation(CompoundState st, TreeConnection conn, byte[] handle)
+		throws Exception {
+
+		String path = m_server.getPathForHandle(st.m_sess, handle, conn);
+		DiskInterface disk = (DiskInterface) conn.getSharedDevice().getInterface();
+
+		FileInfo finfo = disk.getFileInformation(st.m_sess, conn, path);
+
+		if ( finfo == null) {
+
+			//	The root directory of a share always exists, the filesystem may not return details
+
+			if ( path.equals("\\"))
+				return getPseudoRootInformation();
+			throw new FileNotFoundException(path);
+		}
+
+		//	Use the current size of an open file
+
+		NetworkFile netFile = m_server.getOpenNetworkFileForHandle(st.m_sess, handle, conn);
+		if ( netFile != null)
+			finfo.setFileSize(m_server.getOpenFileSize(conn, netFile));
+
+		return finfo;
+	}
+
+	/**
+	 * Return the file information for the pseudo root
+	 *
+	 * @return FileInfo
+	 */
+	private final FileInfo getPseudoRootInformation() {
+		FileInfo finfo = new FileInfo("", 0L, FileAttribute.Directory);
+
+		finfo.setFileType(FileType.Directory);
+		finfo.setMode(NFSServer.MODE_DIR_DEFAULT & ~NFSServer.MODE_STWRITE);
+		finfo.setModifyDateTime(m_bootTime);
+		finfo.setChangeDateTime(m_bootTime);
+
+		return finfo;
+	}
+
+	/**
+	 * Set file attributes, the file size is set using the open file
+	 *
+	 * @param st CompoundState
+	 * @param conn TreeConnection
+	 * @param handle byte[]
+	 * @param path String
+	 * @param setInfo FileInfo
+	 * @exception Exception
+	 */
+	private final void setAttributes(CompoundState st, TreeConnection conn, byte[] handle, String path, FileInfo setInfo)
+		throws Exception {
+
+		DiskInterface disk = (DiskInterface) conn.getSharedDevice().getInterface();
+
+		//	Write any buffered unstable writes to the file, from any session, before the attributes are changed
+
+		if ( NFSHandle.isFileHandle(handle))
+			m_server.flushUnstableWrites(st.m_sess, conn, m_server.getFileIdForHandle(handle), 0L, 0L);
+
+		//	Set the file times, mode and owner
+
+		int setFlags = setInfo.getSetFileInformationFlags();
+
+		if (( setFlags & ~FileInfo.SetFileSize) != 0) {
+			FileInfo finfo = new FileInfo();
+			finfo.copyFrom(setInfo);
+			finfo.setFileInformationFlags(setFlags & ~FileInfo.SetFileSize);
+
+			disk.setFileInformation(st.m_sess, conn, path, finfo);
+		}
+
+		//	Set the file size
+
+		if (( setFlags & FileInfo.SetFileSize) != 0) {
+
+			if ( NFSHandle.isFileHandle(handle) == false)
+				throw new AccessDeniedException();
+
+			//	Open the file, may be cached
+
+			NetworkFile netFile = m_server.getNetworkFileForHandle(st.m_sess, handle, conn, false);
+			if ( netFile == null)
+				throw new AccessDeniedException();
+
+			synchronized ( netFile) {
+
+				if ( netFile.isClosed())
+					netFile.openFile(false);
+
+				disk.truncateFile(st.m_sess, conn, netFile, setInfo.getSize());
+			}
+		}
+
+		//	Update the cached attributes, if the file is open
+
+		if ( NFSHandle.isFileHandle(handle)) {
+			FileInfo newInfo = disk.getFileInformation(st.m_sess, conn, path);
+
+			if ( newInfo != null) {
+				NetworkFile netFile = m_server.getOpenNetworkFileForHandle(st.m_sess, handle, conn);
+				if ( netFile != null)
+					newInfo.setFileSize(m_server.getOpenFileSize(conn, netFile));
+
+				st.m_sess.getFileCache().setFileAttributes(m_server.getFileIdForHandle(handle), newInfo);
+			}
+		}
+
+		//	DEBUG
+
+		if ( Debug.EnableInfo && m_server.hasDebugFlag(NFSServer.DBG_INFO))
+			st.m_sess.debugPrintln("[NFS4] SetAttr handle=" + NFSHandle.asString(handle) + ", flags=" + setInfo.getSetFileInformationFlagsString());
+	}
+
+	/**
+	 * Unpack a set of attributes to be set, the attributes are returned in the file information with the set
+	 * flags, and the bitmap of attributes is returned in the attribute set array.
+	 *
+	 * @param rpc RpcPacket
+	 * @param setInfo FileInfo
+	 * @param attrSet int[]
+	 * @return int
+	 */
+	private final int unpackSetAttributes(RpcPacket rpc, FileInfo setInfo, int[] attrSet) {
+
+		int[] attrs = unpackBitmap(rpc);
+		if ( attrs == null)
+			return NFS4.StsBadXDR;
+
+		int valLen = rpc.unpackInt();
+		int endPos = rpc.getPosition() + valLen;
+
+		//	Check that only the settable attributes have been specified
+
+		for ( int i = 0; i < attrs.length; i++) {
+			int settable = i < SettableAttrs.length ? SettableAttrs[i] : 0;
+
+			if (( attrs[i] & ~settable) != 0) {
+				rpc.setPosition(endPos);
+				return isBitmapSubset(attrs, SupportedAttrs) ? NFS4.StsInVal : NFS4.StsAttrNotSupp;
+			}
+
+			if ( i < attrSet.length)
+				attrSet[i] = attrs[i];
+		}
+
+		//	Unpack the attribute values, in attribute number order
+
+		int setFlags = 0;
+
+		try {
+
+			if ( isAttrSet(attrs, NFS4.AttrSize)) {
+				setInfo.setFileSize(rpc.unpackLong());
+				setFlags += FileInfo.SetFileSize;
+			}
+
+			if ( isAttrSet(attrs, NFS4.AttrMode)) {
+				setInfo.setMode(rpc.unpackInt() & 07777);
+				setFlags += FileInfo.SetMode;
+			}
+
+			if ( isAttrSet(attrs, NFS4.AttrOwner)) {
+				setInfo.setUid(Integer.parseInt(rpc.unpackUTF8String()));
+				setFlags += FileInfo.SetUid;
+			}
+
+			if ( isAttrSet(attrs, NFS4.AttrOwnerGroup)) {
+				setInfo.setGid(Integer.parseInt(rpc.unpackUTF8String()));
+				setFlags += FileInfo.SetGid;
+			}
+		}
+		catch (NumberFormatException ex) {
+			rpc.setPosition(endPos);
+			return NFS4.StsBadOwner;
+		}
+
+		if ( isAttrSet(attrs, NFS4.AttrTimeAccessSet)) {
+			setInfo.setAccessDateTime(unpackSetTime(rpc));
+			setFlags += FileInfo.SetAccessDate;
+		}
+
+		if ( isAttrSet(attrs, NFS4.AttrTimeModifySet)) {
+			setInfo.setModifyDateTime(unpackSetTime(rpc));
+			setFlags += FileInfo.SetModifyDate;
+		}
+
+		setInfo.setFileInformationFlags(setFlags);
+
+		//	Check the attribute values length
+
+		if ( rpc.getPosition() != endPos)
+			return NFS4.StsBadXDR;
+		return NFS4.StsSuccess;
+	}
+
+	/**
+	 * Unpack a set time value, either the server time or a client specified time
+	 *
+	 * @param rpc RpcPacket
+	 * @return long
+	 */
+	private final long unpackSetTime(RpcPacket rpc) {
+		if ( rpc.unpackInt() == NFS4.SetToClientTime) {
+			long secs = rpc.unpackLong();
+			int nsecs = rpc.unpackInt();
+
+			return (secs * 1000L) + (nsecs / 1000000);
+		}
+		return System.currentTimeMillis();
+	}
+
+	/**
+	 * Pack the requested file attributes
+	 *
+	 * @param st CompoundState
+	 * @param attrReq int[]
+	 * @param handle byte[]
+	 * @param finfo FileInfo
+	 * @param shareId int
+	 */
+	private final void packAttributes(CompoundState st, int[] attrReq, byte[] handle, FileInfo finfo, int shareId) {
+
+		RpcPacket resp = st.m_resp;
+
+		//	Build the bitmap of attributes being returned, the write only attributes cannot be returned
+
+		int[] attrs = new int[SupportedAttrs.length];
+
+		for ( int i = 0; i < attrs.length && i < attrReq.length; i++)
+			attrs[i] = attrReq[i] & SupportedAttrs[i];
+
+		attrs[1] &= ~((1 << (NFS4.AttrTimeAccessSet - 32)) + (1 << (NFS4.AttrTimeModifySet - 32)));
+
+		packBitmap(resp, attrs);
+
+		//	Pack the attribute values, the length is filled in after the values have been packed
+
+		int lenPos = resp.getPosition();
+		resp.packInt(0);
+
+		boolean pseudoRoot = NFSHandle.isPseudoRootHandle(handle);
+		long fileId = pseudoRoot ? PseudoRootFileId : finfo.getFileIdLong() + NFSServer.FILE_ID_OFFSET;
+
+		if ( isAttrSet(attrs, NFS4.AttrSupportedAttrs))
+			packBitmap(resp, SupportedAttrs);
+
+		if ( isAttrSet(attrs, NFS4.AttrType)) {
+			if ( finfo.isDirectory())
+				resp.packInt(NFS4.FileTypeDir);
+			else if ( finfo.isFileType() == FileType.SymbolicLink)
+				resp.packInt(NFS4.FileTypeLnk);
+			else
+				resp.packInt(NFS4.FileTypeReg);
+		}
+
+		if ( isAttrSet(attrs, NFS4.AttrFHExpireType))
+			resp.packInt(NFS4.FHPersistent);
+
+		if ( isAttrSet(attrs, NFS4.AttrChange))
+			resp.packLong(getChangeValue(finfo));
+
+		if ( isAttrSet(attrs, NFS4.AttrSize))
+			resp.packLong(finfo.isDirectory() ? 512L : finfo.getSize());
+
+		if ( isAttrSet(attrs, NFS4.AttrLinkSupport))
+			resp.packInt(Rpc.False);
+
+		if ( isAttrSet(attrs, NFS4.AttrSymLinkSupport))
+			resp.packInt(Rpc.False);
+
+		if ( isAttrSet(attrs, NFS4.AttrNamedAttr))
+			resp.packInt(Rpc.False);
+
+		if ( isAttrSet(attrs, NFS4.AttrFsId)) {
+			resp.packLong(pseudoRoot ? 0L : shareId & 0xFFFFFFFFL);
+			resp.packLong(pseudoRoot ? 0L : 1L);
+		}
+
+		if ( isAttrSet(attrs, NFS4.AttrUniqueHandles))
+			resp.packInt(Rpc.True);
+
+		if ( isAttrSet(attrs, NFS4.AttrLeaseTime))
+			resp.packInt(LeaseTime);
+
+		if ( isAttrSet(attrs, NFS4.AttrRdAttrError))
+			resp.packInt(NFS4.StsSuccess);
+
+		if ( isAttrSet(attrs, NFS4.AttrCanSetTime))
+			resp.packInt(Rpc.True);
+
+		if ( isAttrSet(attrs, NFS4.AttrCaseInsensitive))
+			resp.packInt(Rpc.True);
+
+		if ( isAttrSet(attrs, NFS4.AttrCasePreserving))
+			resp.packInt(Rpc.True);
+
+		if ( isAttrSet(attrs, NFS4.AttrChownRestricted))
+			resp.packInt(Rpc.True);
+
+		if ( isAttrSet(attrs, NFS4.AttrFileHandle))
+			resp.packByteArrayWithLength(handle);
+
+		if ( isAttrSet(attrs, NFS4.AttrFileId))
+			resp.packLong(fileId);
+
+		if ( isAttrSet(attrs, NFS4.AttrHomogeneous))
+			resp.packInt(Rpc.True);
+
+		if ( isAttrSet(attrs, NFS4.AttrMaxFileSize))
+			resp.packLong(NFSServer.MaxFileSize);
+
+		if ( isAttrSet(attrs, NFS4.AttrMaxLink))
+			resp.packInt(1);
+
+		if ( isAttrSet(attrs, NFS4.AttrMaxName))
+			resp.packInt(MaxNameLength);
+
+		if ( isAttrSet(attrs, NFS4.AttrMaxRead))
+			resp.packLong(MaxReadSize);
+
+		if ( isAttrSet(attrs, NFS4.AttrMaxWrite))
+			resp.packLong(MaxWriteSize);
+
+		if ( isAttrSet(attrs, NFS4.AttrMode)) {
+			if ( finfo.hasMode())
+				resp.packInt(finfo.getMode() & 07777);
+			else
+				resp.packInt(( finfo.isDirectory() ? NFSServer.MODE_DIR_DEFAULT : NFSServer.MODE_FILE_DEFAULT) & 07777);
+		}
+
+		if ( isAttrSet(attrs, NFS4.AttrNoTrunc))
+			resp.packInt(Rpc.True);
+
+		if ( isAttrSet(attrs, NFS4.AttrNumLinks))
+			resp.packInt(1);
+
+		if ( isAttrSet(attrs, NFS4.AttrOwner))
+			resp.packUTF8String(Integer.toString(finfo.hasUid() ? finfo.getUid() : 0));
+
+		if ( isAttrSet(attrs, NFS4.AttrOwnerGroup))
+			resp.packUTF8String(Integer.toString(finfo.hasGid() ? finfo.getGid() : 0));
+
+		if ( isAttrSet(attrs, NFS4.AttrRawDev)) {
+			resp.packInt(0);
+			resp.packInt(0);
+		}
+
+		if ( isAttrSet(attrs, NFS4.AttrSpaceUsed)) {
+			if ( finfo.isDirectory())
+				resp.packLong(1024L);
+			else
+				resp.packLong(finfo.getAllocationSize() != 0 ? finfo.getAllocationSize() : finfo.getSize());
+		}
+
+		if ( isAttrSet(attrs, NFS4.AttrTimeAccess))
+			packTime(resp, finfo.hasAccessDateTime() ? finfo.getAccessDateTime() : 0L);
+
+		if ( isAttrSet(attrs, NFS4.AttrTimeCreate))
+			packTime(resp, finfo.hasCreationDateTime() ? finfo.getCreationDateTime() : 0L);
+
+		if ( isAttrSet(attrs, NFS4.AttrTimeDelta)) {
+			resp.packLong(0L);
+			resp.packInt(1000000);
+		}
+
+		if ( isAttrSet(attrs, NFS4.AttrTimeMetadata))
+			packTime(resp, finfo.hasChangeDateTime() ? finfo.getChangeDateTime() : 0L);
+
+		if ( isAttrSet(attrs, NFS4.AttrTimeModify))
+			packTime(resp, finfo.hasModifyDateTime() ? finfo.getModifyDateTime() : 0L);
+
+		if ( isAttrSet(attrs, NFS4.AttrMountedOnFileId))
+			resp.packLong(fileId);
+
+		if ( isAttrSet(attrs, NFS4.AttrSuppAttrExclCreat))
+			packBitmap(resp, SettableAttrs);
+
+		//	Set the attribute values length
+
+		DataPacker.putInt(resp.getPosition() - (lenPos + 4), resp.getBuffer(), lenPos);
+	}
+
+	/**
+	 * Pack a time value
+	 *
+	 * @param resp RpcPacket
+	 * @param timeMs long
+	 */
+	private final void packTime(RpcPacket resp, long timeMs) {
+		resp.packLong(timeMs / 1000L);
+		resp.packInt((int) (timeMs % 1000L) * 1000000);
+	}
+
+	/**
+	 * Pack change information for a directory
+	 *
+	 * @param resp RpcPacket
+	 * @param before long
+	 * @param after long
+	 */
+	private final void packChangeInfo(RpcPacket resp, long before, long after) {
+		resp.packInt(Rpc.False);
+		resp.packLong(before);
+		resp.packLong(after);
+	}
+
+	/**
+	 * Return the change attribute value for a file/directory, based on the modify and change date/times
+	 *
+	 * @param finfo FileInfo
+	 * @return long
+	 */
+	private final long getChangeValue(FileInfo finfo) {
+		if ( finfo == null)
+			return 0L;
+
+		long change = finfo.hasModifyDateTime() ? finfo.getModifyDateTime() : 0L;
+		if ( finfo.hasChangeDateTime() && finfo.getChangeDateTime() > change)
+			change = finfo.getChangeDateTime();
+
+		return change;
+	}
+
+	/**
+	 * Check a file name component
+	 *
+	 * @param name String
+	 * @return int
+	 */
+	private final int checkName(String name) {
+		if ( name == null || name.length() == 0)
+			return NFS4.StsInVal;
+		else if ( name.length() > MaxNameLength)
+			return NFS4.StsNameTooLong;
+		else if ( name.equals(".") || name.equals("..") || name.indexOf('/') != -1 || name.indexOf('\\') != -1)
+			return NFS4.StsBadName;
+		return NFS4.StsSuccess;
+	}
+
+	/**
+	 * Unpack an attribute bitmap, returns null if the bitmap is not valid
+	 *
+	 * @param rpc RpcPacket
+	 * @return int[]
+	 */
+	private final int[] unpackBitmap(RpcPacket rpc) {
+		int cnt = rpc.unpackInt();
+		if ( cnt < 0 || cnt > 8)
+			return null;
+
+		int[] bitmap = new int[cnt];
+		rpc.unpackIntArray(bitmap);
+
+		return bitmap;
+	}
+
+	/**
+	 * Pack an attribute bitmap, trailing zero words are not packed
+	 *
+	 * @param resp RpcPacket
+	 * @param bitmap int[]
+	 */
+	private final void packBitmap(RpcPacket resp, int[] bitmap) {
+		int cnt = bitmap.length;
+		while ( cnt > 0 && bitmap[cnt - 1] == 0)
+			cnt--;
+
+		resp.packInt(cnt);
+		for ( int i = 0; i < cnt; i++)
+			resp.packInt(bitmap[i]);
+	}
+
+	/**
+	 * Check if an attribute is set in a bitmap
+	 *
+	 * @param bitmap int[]
+	 * @param attr int
+	 * @return boolean
+	 */
+	private static final boolean isAttrSet(int[] bitmap, int attr) {
+		int idx = attr / 32;
+		return idx < bitmap.length && ( bitmap[idx] & (1 << (attr % 32))) != 0;
+	}
+
+	/**
+	 * Check if all attributes in a bitmap are also set in another bitmap
+	 *
+	 * @param bitmap int[]
+	 * @param mask int[]
+	 * @return boolean
+	 */
+	private static final boolean isBitmapSubset(int[] bitmap, int[] mask) {
+		for ( int i = 0; i < bitmap.length; i++) {
+			int maskVal = i < mask.length ? mask[i] : 0;
+			if (( bitmap[i] & ~maskVal) != 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Build an attribute bitmap from a list of attribute numbers
+	 *
+	 * @param attrList int[]
+	 * @return int[]
+	 */
+	private static final int[] buildBitmap(int[] attrList) {
+		int[] bitmap = new int[3];
+
+		for ( int attr : attrList)
+			bitmap[attr / 32] |= 1 << (attr % 32);
+
+		return bitmap;
+	}
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2006-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.alfresco.jlan.oncrpc.nfs;
+
+import org.alfresco.jlan.util.DataPacker;
+
+/**
+ * NFSv4.1 Session Class
+ *
+ * <p>Contains the negotiated fore channel limits and the slot table for a session. Each slot holds the
+ * sequence id of the last request received on the slot and a copy of the reply, so that a retransmitted
+ * request is answered from the reply cache rather than being executed again.
+ *
+ * @author gkspencer
+ */
+public class NFS4Session {
+
+	//	Slot check results, in addition to the NFSv4 status codes
+
+	public static final int SlotNewRequest	= 0;
+	public static final int SlotReplay		= -1;
+
+	//	Session id, and the owning client
+
+	private byte[] m_sessId;
+	private NFS4Client m_client;
+
+	//	Negotiated fore channel limits
+
+	private int m_maxRequestSize;
+	private int m_maxResponseSize;
+	private int m_maxResponseCached;
+	private int m_maxOperations;
+
+	//	Slot table, the sequence id and cached reply for each slot, and the slot in use flags
+
+	private int[] m_slotSeqId;
+	private byte[][] m_slotReply;
+	private boolean[] m_slotInUse;
+
+	/**
+	 * Class constructor
+	 *
+	 * @param client NFS4Client
+	 * @param sessIdx long
+	 * @param maxReqSize int
+	 * @param maxRespSize int
+	 * @param maxRespCached int
+	 * @param maxOps int
+	 * @param maxReqs int
+	 */
+	public NFS4Session(NFS4Client client, long sessIdx, int maxReqSize, int maxRespSize, int maxRespCached, int maxOps, int maxReqs) {
+		m_client = client;
+
+		//	Build the session id from the client id and session index
+
+		m_sessId = new byte[NFS4.SessionIdSize];
+		DataPacker.putLong(client.getClientId(), m_sessId, 0);
+		DataPacker.putLong(sessIdx, m_sessId, 8);
+
+		m_maxRequestSize = maxReqSize;
+		m_maxResponseSize = maxRespSize;
+		m_maxResponseCached = maxRespCached;
+		m_maxOperations = maxOps;
+
+		//	Allocate the slot table
+
+		m_slotSeqId = new int[maxReqs];
+		m_slotReply = new byte[maxReqs][];
+		m_slotInUse = new boolean[maxReqs];
+	}
+
+	/**
+	 * Return the session id
+	 *
+	 * @return byte[]
+	 */
+	public final byte[] getSessionId() {
+		return m_sessId;
+	}
+
+	/**
+	 * Return the session id as a string, used as the session table key
+	 *
+	 * @return String
+	 */
+	public final String getSessionKey() {
+		return asKey(m_sessId);
+	}
+
+	/**
+	 * Return the owning client
+	 *
+	 * @return NFS4Client
+	 */
+	public final NFS4Client getClient() {
+		return m_client;
+	}
+
+	/**
+	 * Return the maximum request size
+	 *
+	 * @return int
+	 */
+	public final int getMaximumRequestSize() {
+		return m_maxRequestSize;
+	}
+
+	/**
+	 * Return the maximum response size
+	 *
+	 * @return int
+	 */
+	public final int getMaximumResponseSize() {
+		return m_maxResponseSize;
+	}
+
+	/**
+	 * Return the maximum cached response size
+	 *
+	 * @return int
+	 */
+	public final int getMaximumResponseCached() {
+		return m_maxResponseCached;
+	}
+
+	/**
+	 * Return the maximum operations per COMPOUND request
+	 *
+	 * @return int
+	 */
+	public final int getMaximumOperations() {
+		return m_maxOperations;
+	}
+
+	/**
+	 * Return the number of slots
+	 *
+	 * @return int
+	 */
+	public final int numberOfSlots() {
+		return m_slotSeqId.length;
+	}
+
+	/**
+	 * Check the sequence id of a request against the slot. Returns SlotNewRequest if the request should be
+	 * executed, in which case the slot is marked as in use, SlotReplay if the request is a retransmission of the
+	 * last request on the slot, or an NFSv4 error status.
+	 *
+	 * @param slot int
+	 * @param seqId int
+	 * @return int
+	 */
+	public final synchronized int checkSlot(int slot, int seqId) {
+
+		//	Check the slot is valid
+
+		if ( slot < 0 || slot >= m_slotSeqId.length)
+			return NFS4.StsBadSlot;
+
+		//	Check for a retransmission of the last request on the slot
+
+		if ( seqId == m_slotSeqId[slot]) {
+
+			//	The original request may still be in progress
+
+			if ( m_slotInUse[slot])
+				return NFS4.StsDelay;
+
+			//	Check if the reply was cached
+
+			if ( m_slotReply[slot] == null)
+				return NFS4.StsRetryUncachedRep;
+			return SlotReplay;
+		}
+
+		//	Check for the next request on the slot, sequence ids wrap
+
+		if ( seqId != m_slotSeqId[slot] + 1)
+			return NFS4.StsSeqMisordered;
+
+		//	A previous request on the slot may still be in progress
+
+		if ( m_slotInUse[slot])
+			return NFS4.StsDelay;
+
+		//	Start the new request
+
+		m_slotSeqId[slot] = seqId;
+		m_slotReply[slot] = null;
+		m_slotInUse[slot] = true;
+
+		return SlotNewRequest;
+	}
+
+	/**
+	 * Return the cached reply for a slot
+	 *
+	 * @param slot int
+	 * @return byte[]
+	 */
+	public final synchronized byte[] getCachedReply(int slot) {
+		return m_slotReply[slot];
+	}
+
+	/**
+	 * Release a slot when the request has completed, and cache the reply. The reply is not cached if it is
+	 * larger than the negotiated cached response size.
+	 *
+	 * @param slot int
+	 * @param buf byte[]
+	 * @param off int
+	 * @param len int
+	 */
+	public final synchronized void releaseSlot(int slot, byte[] buf, int off, int len) {
+
+		//	Cache the reply
+
+		if ( buf != null && len <= m_maxResponseCached) {
+			byte[] reply = new byte[len];
+			System.arraycopy(buf, off, reply, 0, len);
+
+			m_slotReply[slot] = reply;
+		}
+		else
+			m_slotReply[slot] = null;
+
+		//	Release the slot
+
+		m_slotInUse[slot] = false;
+	}
+
+	/**
+	 * Return the highest slot id
+	 *
+	 * @return int
+	 */
+	public final int getHighestSlotId() {
+		return m_slotSeqId.length - 1;
+	}
+
+	/**
+	 * Convert a session id to a session table key
+	 *
+	 * @param sessId byte[]
+	 * @return String
+	 */
+	public static final String asKey(byte[] sessId) {
+		StringBuilder str = new StringBuilder(NFS4.SessionIdSize * 2);
+
+		for ( int i = 0; i < sessId.length; i++) {
+			str.append(Character.forDigit((sessId[i] >> 4) & 0x0F, 16));
+			str.append(Character.forDigit(sessId[i] & 0x0F, 16));
+		}
+
+		return str.toString();
+	}
+
+	/**
+	 * Return the session details as a string
+	 *
+	 * @return String
+	 */
+	public String toString() {
+		StringBuilder str = new StringBuilder();
+
+		str.append("[Session ");
+		str.append(getSessionKey());
+		str.append(",slots=");
+		str.append(m_slotSeqId.length);
+		str.append(",maxReq=");
+		str.append(m_maxRequestSize);
+		str.append(",maxResp=");
+		str.append(m_maxResponseSize);
+		str.append("/");
+		str.append(m_maxResponseCached);
+		str.append(",maxOps=");
+		str.append(m_maxOperations);
+		str.append("]");
+
+		return str.toString();
+	}
+}
@@ -20,6 +20,7 @@
 package org.alfresco.jlan.oncrpc.nfs;
 
 import org.springframework.extensions.config.ConfigElement;
+import org.alfresco.jlan.oncrpc.MultiThreadedTcpRpcSessionHandler;
 import org.alfresco.jlan.oncrpc.RpcAuthenticator;
 import org.alfresco.jlan.oncrpc.portmap.PortMapper;
 import org.alfresco.jlan.server.config.ConfigId;
@@ -74,6 +75,10 @@ public class NFSConfigSection extends ConfigSection {
   private int m_nfsThreadPoolSize;
   private int m_nfsPacketPoolSize;
 
+  //  Maximum number of requests in progress per TCP session, zero to use the default
+
+  private int m_nfsMaxSessRequests;
+
   //  RPC authenticator implementation
 
   private RpcAuthenticator m_rpcAuthenticator;
@@ -83,9 +88,34 @@ public class NFSConfigSection extends ConfigSection {
 
   private long m_nfsFileCacheIOTimer;
   private long m_nfsFileCacheCloseTimer;
+  private long m_nfsFileCacheAttrTimer = -1L;
 
   private boolean m_nfsFileCacheDebug;
 
+  //  Unstable write buffer size, per file, zero if unstable writes are written synchronously, and the server
+  //  wide limit on the amount of buffered data
+
+  private int m_nfsUnstableWriteBufSize;
+  private long m_nfsUnstableWriteLimit = UnstableWriteCache.DefaultMemoryLimit;
+
+  //  Directory snapshot cache memory limit, zero if the cache is disabled, and time a snapshot can be used
+  //  to start a new directory listing
+
+  private long m_nfsDirCacheMemory;
+  private long m_nfsDirCacheTimeout = DirectorySnapshotCache.DefaultSnapshotTimeout;
+
+  //  Disable the NIO based TCP RPC session handlers, use a thread per session
+
+  private boolean m_disableNIO;
+
+  //  Enable NFSv4.1 support
+
+  private boolean m_enableNFSv4;
+
+  //  Directory for the persistent file id to path indexes, or null to hold the paths in memory
+
+  private String m_fileIdIndexDir;
+
   /**
    * Class constructor
    *
@@ -185,6 +215,15 @@ public class NFSConfigSection extends ConfigSection {
     return m_nfsPacketPoolSize;
   }
 
+  /**
+   * Return the maximum number of requests in progress per TCP session, zero indicates the default limit
+   *
+   * @return int
+   */
+  public final int getNFSMaximumSessionRequests() {
+    return m_nfsMaxSessRequests;
+  }
+
   /**
    * Get the authenticator object that is used to provide RPC authentication (for the portmapper, mount server and
    * NFS server)
@@ -222,6 +261,16 @@ public class NFSConfigSection extends ConfigSection {
     return m_nfsFileCacheCloseTimer;
   }
 
+  /**
+   * Return the NFS file cache attribute timer, in milliseconds, zero indicates attributes are not cached and
+   * -1 indicates the default timer is used
+   *
+   * @return long
+   */
+  public final long getNFSFileCacheAttributeTimer() {
+    return m_nfsFileCacheAttrTimer;
+  }
+
   /**
    * Check if NFS file cache debug output is enabled
    *
@@ -231,6 +280,69 @@ public class NFSConfigSection extends ConfigSection {
     return m_nfsFileCacheDebug;
   }
 
+  /**
+   * Return the unstable write buffer size, per file, zero indicates unstable writes are not buffered
+   *
+   * @return int
+   */
+  public final int getNFSUnstableWriteBufferSize() {
+    return m_nfsUnstableWriteBufSize;
+  }
+
+  /**
+   * Return the server wide limit on the amount of buffered unstable write data
+   *
+   * @return long
+   */
+  public final long getNFSUnstableWriteLimit() {
+    return m_nfsUnstableWriteLimit;
+  }
+
+  /**
+   * Return the directory snapshot cache memory limit, zero indicates the cache is disabled
+   *
+   * @return long
+   */
+  public final long getNFSDirectoryCacheMemory() {
+    return m_nfsDirCacheMemory;
+  }
+
+  /**
+   * Return the time a directory snapshot can be used to start a new listing, in milliseconds
+   *
+   * @return long
+   */
+  public final long getNFSDirectoryCacheTimeout() {
+    return m_nfsDirCacheTimeout;
+  }
+
+  /**
+   * Determine if the NIO based TCP RPC session handlers are disabled
+   *
+   * @return boolean
+   */
+  public final boolean hasDisableNIOCode() {
+    return m_disableNIO;
+  }
+
+  /**
+   * Determine if NFSv4.1 support is enabled
+   *
+   * @return boolean
+   */
+  public final boolean hasNFSv4Enabled() {
+    return m_enableNFSv4;
+  }
+
+  /**
+   * Return the persistent file id index directory, or null if not enabled
+   *
+   * @return String
+   */
+  public final String getFileIdIndexDirectory() {
+    return m_fileIdIndexDir;
+  }
+
   /**
    * Set the NFS port mapper enable flag
    *
@@ -398,6 +510,32 @@ public class NFSConfigSection extends ConfigSection {
     return sts;
   }
 
+  /**
+   * Set the maximum number of requests in progress per TCP session, zero to use the default limit
+   *
+   * @param maxReq int
+   * @return int
+   * @exception InvalidConfigurationException
+   */
+  public final int setNFSMaximumSessionRequests(int maxReq)
+    throws InvalidConfigurationException {
+
+    //  Range check the request limit
+
+    if ( maxReq != 0 && ( maxReq < MultiThreadedTcpRpcSessionHandler.MinimumMaxRequestsPerSession ||
+        maxReq > MultiThreadedTcpRpcSessionHandler.MaximumMaxRequestsPerSession))
+      throw new InvalidConfigurationException("Invalid NFS maximum requests per session, " + maxReq);
+
+    //  Inform listeners, validate the configuration change
+
+    int sts = fireConfigurationChange(ConfigId.NFSMaxSessionRequests, Integer.valueOf(maxReq));
+    m_nfsMaxSessRequests = maxReq;
+
+    //  Return the change status
+
+    return sts;
+  }
+
   /**
    * Enable/disable port mapper debug output
    *
@@ -571,6 +709,26 @@ public class NFSConfigSection extends ConfigSection {
     return sts;
   }
 
+  /**
+   * Set the NFS file cache attribute timer, in milliseconds, zero disables attribute caching
+   *
+   * @param attrTimer long
+   * @return int
+   * @exception InvalidConfigurationException
+   */
+  public final int setNFSFileCacheAttributeTimer(long attrTimer)
+    throws InvalidConfigurationException {
+
+    //  Inform listeners, validate the configuration change
+
+    int sts = fireConfigurationChange(ConfigId.NFSFileCacheAttributeTimer, Long.valueOf(attrTimer));
+    m_nfsFileCacheAttrTimer = attrTimer;
+
+    //  Return the change status
+
+    return sts;
+  }
+
   /**
    * Set the NFS file cache debug enable flag
    *
@@ -597,4 +755,164 @@ public class NFSConfigSection extends ConfigSection {
 
     return sts;
   }
+
+  /**
+   * Set the unstable write buffer size, per file, zero disables buffering of unstable writes
+   *
+   * @param bufSize int
+   * @return int
+   * @exception InvalidConfigurationException
+   */
+  public final int setNFSUnstableWriteBufferSize(int bufSize)
+    throws InvalidConfigurationException {
+
+    //  Range check the buffer size
+
+    if ( bufSize != 0 && ( bufSize < UnstableWriteBuffer.MinimumBufferSize || bufSize > UnstableWriteBuffer.MaximumBufferSize))
+      throw new InvalidConfigurationException("Invalid unstable write buffer size, " + bufSize);
+
+    //  Inform listeners, validate the configuration change
+
+    int sts = fireConfigurationChange(ConfigId.NFSUnstableWriteBuffer, Integer.valueOf(bufSize));
+    m_nfsUnstableWriteBufSize = bufSize;
+
+    //  Return the change status
+
+    return sts;
+  }
+
+  /**
+   * Set the server wide limit on the amount of buffered unstable write data
+   *
+   * @param memLimit long
+   * @return int
+   * @exception InvalidConfigurationException
+   */
+  public final int setNFSUnstableWriteLimit(long memLimit)
+    throws InvalidConfigurationException {
+
+    //  Range check the memory limit
+
+    if ( memLimit < UnstableWriteCache.MinimumMemoryLimit || memLimit > UnstableWriteCache.MaximumMemoryLimit)
+      throw new InvalidConfigurationException("Invalid unstable write memory limit, " + memLimit);
+
+    //  Inform listeners, validate the configuration change
+
+    int sts = fireConfigurationChange(ConfigId.NFSUnstableWriteLimit, Long.valueOf(memLimit));
+    m_nfsUnstableWriteLimit = memLimit;
+
+    //  Return the change status
+
+    return sts;
+  }
+
+  /**
+   * Set the disable NIO code flag
+   *
+   * @param disableNIO boolean
+   * @return int
+   * @exception InvalidConfigurationException
+   */
+  public final int setDisableNIOCode(boolean disableNIO)
+    throws InvalidConfigurationException {
+
+    //  Inform listeners, validate the configuration change
+
+    int sts = fireConfigurationChange(ConfigId.NFSDisableNIO, Boolean.valueOf(disableNIO));
+    m_disableNIO = disableNIO;
+
+    //  Return the change status
+
+    return sts;
+  }
+
+  /**
+   * Set the NFSv4.1 enable flag
+   *
+   * @param enaV4 boolean
+   * @return int
+   * @exception InvalidConfigurationException
+   */
+  public final int setNFSv4Enabled(boolean enaV4)
+    throws InvalidConfigurationException {
+
+    //  Inform listeners, validate the configuration change
+
+    int sts = fireConfigurationChange(ConfigId.NFSEnableV4, Boolean.valueOf(enaV4));
+    m_enableNFSv4 = enaV4;
+
+    //  Return the change status
+
+    return sts;
+  }
+
+  /**
+   * Set the persistent file id index directory, null holds the file id to path mappings in memory
+   *
+   * @param indexDir String
+   * @return int
+   * @exception InvalidConfigurationException
+   */
+  public final int setFileIdIndexDirectory(String indexDir)
+    throws InvalidConfigurationException {
+
+    //  Inform listeners, validate the configuration change
+
+    int sts = fireConfigurationChange(ConfigId.NFSFileIdIndexDir, indexDir);
+    m_fileIdIndexDir = indexDir;
+
+    //  Return the change status
+
+    return sts;
+  }
+
+  /**
+   * Set the directory snapshot cache memory limit, zero disables the cache
+   *
+   * @param memLimit long
+   * @return int
+   * @exception InvalidConfigurationException
+   */
+  public final int setNFSDirectoryCacheMemory(long memLimit)
+    throws InvalidConfigurationException {
+
+    //  Range check the memory limit
+
+    if ( memLimit != 0L && ( memLimit < DirectorySnapshotCache.MinimumMemoryLimit || memLimit > DirectorySnapshotCache.MaximumMemoryLimit))
+      throw new InvalidConfigurationException("Invalid directory cache memory limit, " + memLimit);
+
+    //  Inform listeners, validate the configuration change
+
+    int sts = fireConfigurationChange(ConfigId.NFSDirectoryCacheMemory, Long.valueOf(memLimit));
+    m_nfsDirCacheMemory = memLimit;
+
+    //  Return the change status
+
+    return sts;
+  }
+
+  /**
+   * Set the time a directory snapshot can be used to start a new listing, in milliseconds
+   *
+   * @param snapTmo long
+   * @return int
+   * @exception InvalidConfigurationException
+   */
+  public final int setNFSDirectoryCacheTimeout(long snapTmo)
+    throws InvalidConfigurationException {
+
+    //  Range check the timeout
+
+    if ( snapTmo < 0L || snapTmo > DirectorySnapshotCache.MaximumSnapshotTimeout)
+      throw new InvalidConfigurationException("Invalid directory cache timeout, " + snapTmo);
+
+    //  Inform listeners, validate the configuration change
+
+    int sts = fireConfigurationChange(ConfigId.NFSDirectoryCacheTimeout, Long.valueOf(snapTmo));
+    m_nfsDirCacheTimeout = snapTmo;
+
+    //  Return the change status
+
+    return sts;
+  }
 }
@@ -43,6 +43,7 @@ public class NFSHandle {
 	public static final byte TYPE_SHARE		= 1;
 	public static final byte TYPE_DIR			= 2;
 	public static final byte TYPE_FILE		= 3;
+	public static final byte TYPE_PSEUDOROOT	= 4;	//	NFSv4 pseudo filesystem root, not valid for NFS v3
 
 	//  Offsets to fields within the handle
 
@@ -108,6 +109,34 @@ public class NFSHandle {
 		return false;
 	}
 
+	/**
+	 * Check if the handle is the NFSv4 pseudo filesystem root handle
+	 *
+	 * @param handle byte[]
+	 * @return boolean
+	 */
+	public static final boolean isPseudoRootHandle(byte[] handle) {
+		if ( handle[0] == VERSION && handle[1] == TYPE_PSEUDOROOT)
+			return true;
+		return false;
+	}
+
+	/**
+	 * Pack the NFSv4 pseudo filesystem root handle
+	 *
+	 * @param handle byte[]
+	 */
+	public static final void packPseudoRootHandle(byte[] handle) {
+
+		//	Pack the pseudo root handle, there are no other fields
+
+		handle[0] = VERSION;
+		handle[1] = TYPE_PSEUDOROOT;
+
+		for ( int pos = 2; pos < handle.length; pos++)
+			handle[pos] = 0;
+	}
+
 	/**
 	 * Pack a share handle
 	 *
@@ -371,6 +400,12 @@ public class NFSHandle {
 				str.append(",file=0x");
 				str.append(Integer.toHexString(DataPacker.getInt(handle, 10)));
 				break;
+
+			//	NFSv4 pseudo root handle
+
+			case TYPE_PSEUDOROOT:
+				str.append("PseudoRoot");
+				break;
 		}
 
 		//	Return the handle string
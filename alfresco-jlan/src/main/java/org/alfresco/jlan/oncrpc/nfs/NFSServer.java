@@ -19,14 +19,18 @@
 
 package org.alfresco.jlan.oncrpc.nfs;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.Vector;
 
 import org.alfresco.jlan.debug.Debug;
 import org.alfresco.jlan.oncrpc.AuthType;
 import org.alfresco.jlan.oncrpc.MultiThreadedTcpRpcSessionHandler;
 import org.alfresco.jlan.oncrpc.MultiThreadedUdpRpcDatagramHandler;
+import org.alfresco.jlan.oncrpc.NIOTcpRpcSessionHandler;
 import org.alfresco.jlan.oncrpc.PortMapping;
 import org.alfresco.jlan.oncrpc.Rpc;
 import org.alfresco.jlan.oncrpc.RpcAuthenticationException;
@@ -37,8 +41,11 @@ import org.alfresco.jlan.oncrpc.RpcPacketPool;
 import org.alfresco.jlan.oncrpc.RpcProcessor;
 import org.alfresco.jlan.oncrpc.RpcRequestThreadPool;
 import org.alfresco.jlan.server.ServerListener;
+import org.alfresco.jlan.server.NetworkServer;
+import org.alfresco.jlan.server.SessionHandlerBase;
 import org.alfresco.jlan.server.SrvSession;
 import org.alfresco.jlan.server.Version;
+import org.alfresco.jlan.server.auth.ClientInfo;
 import org.alfresco.jlan.server.auth.acl.AccessControl;
 import org.alfresco.jlan.server.auth.acl.AccessControlManager;
 import org.alfresco.jlan.server.config.ServerConfiguration;
@@ -57,17 +64,21 @@ import org.alfresco.jlan.server.filesys.FileAttribute;
 import org.alfresco.jlan.server.filesys.FileExistsException;
 import org.alfresco.jlan.server.filesys.FileIdInterface;
 import org.alfresco.jlan.server.filesys.FileInfo;
+import org.alfresco.jlan.server.filesys.FileListener;
 import org.alfresco.jlan.server.filesys.FileName;
 import org.alfresco.jlan.server.filesys.FileOpenParams;
 import org.alfresco.jlan.server.filesys.FileStatus;
 import org.alfresco.jlan.server.filesys.FileType;
 import org.alfresco.jlan.server.filesys.NetworkFile;
+import org.alfresco.jlan.server.filesys.NetworkFileServer;
 import org.alfresco.jlan.server.filesys.NotifyChange;
 import org.alfresco.jlan.server.filesys.SearchContext;
 import org.alfresco.jlan.server.filesys.SrvDiskInfo;
 import org.alfresco.jlan.server.filesys.SymbolicLinkInterface;
 import org.alfresco.jlan.server.filesys.TreeConnection;
 import org.alfresco.jlan.server.filesys.TreeConnectionHash;
+import org.alfresco.jlan.smb.server.notify.NotifyChangeHandler;
+import org.alfresco.jlan.smb.server.notify.NotifyChangeListener;
 import org.alfresco.jlan.util.HexDump;
 
 /**
@@ -130,6 +141,20 @@ public class NFSServer extends RpcNetworkServer implements RpcProcessor {
   public static final long COOKIE_DOT_DIRECTORY 	= 0x00FFFFFFL;
   public static final long COOKIE_DOTDOT_DIRECTORY 	= 0x00FFFFFEL;
 
+  //	Search id reserved for cookies that index into a directory snapshot, the resume id is the position in the
+  //	listing, including the '.' and '..' entries
+
+  public static final int COOKIE_SNAPSHOT_ID		= 0xFF;
+  public static final long COOKIE_SNAPSHOT		= ((long) COOKIE_SNAPSHOT_ID) << COOKIE_SEARCHID_SHIFT;
+
+  //	Maximum number of entries in a directory snapshot
+
+  public static final int SNAPSHOT_MAX_ENTRIES	= (int) COOKIE_RESUMEID_MASK - 2;
+
+  //	Length of the packed attributes and handle for each directory snapshot entry
+
+  public static final int SNAPSHOT_ENTRY_LENGTH	= 4 + 84 + 4 + 4 + NFS.FileHandleSize;
+
   //	ReadDir and ReadDirPlus reply header and per file fixed structure lengths.
   //
   //	Add file name length rounded to 4 byte boundary to the per file structure
@@ -174,7 +199,7 @@ public class NFSServer extends RpcNetworkServer implements RpcProcessor {
 
   //	Incoming session handler for TCP requests
 
-  private MultiThreadedTcpRpcSessionHandler m_tcpHandler;
+  private SessionHandlerBase m_tcpHandler;
 
   //	Share details hash
 
@@ -205,13 +230,34 @@ public class NFSServer extends RpcNetworkServer implements RpcProcessor {
 
   private RpcPacketPool m_packetPool;
 
+  //	Directory snapshot cache, shared by all sessions, null if not enabled
+
+  private DirectorySnapshotCache m_dirCache;
+
+  //	Unstable write buffers, shared by all sessions, null if unstable writes are not buffered
+
+  private UnstableWriteCache m_writeCache;
+
+  //	File listener used to flush unstable writes when a file is opened by another protocol
+
+  private UnstableWriteFileListener m_writeListener;
+
+  //  Change listeners used to mark directory snapshots as stale when files are changed by other protocols
+
+  private Vector<SnapshotChangeListener> m_changeListeners;
+
   //	RPC authenticator, from the main server configuration
 
   private RpcAuthenticator m_rpcAuthenticator;
 
-  //	Write verifier, generated from the server start time
+  //	Write verifier, generated from the server start time. Changed if buffered unstable writes could not
+  //  be written to the filesystem, so that clients resend uncommitted data.
+
+  private volatile long m_writeVerifier;
+
+  //  NFSv4.1 COMPOUND request processor, if NFSv4 is enabled
 
-  private long m_writeVerifier;
+  private NFS4Processor m_nfs4;
 
   /**
    * Class constructor
@@ -298,6 +344,32 @@ public class NFSServer extends RpcNetworkServer implements RpcProcessor {
       m_shareDetails = new ShareDetailsHash();
       m_connections = new TreeConnectionHash();
 
+      //	Create the directory snapshot cache, if enabled
+
+      if ( getNFSConfiguration().getNFSDirectoryCacheMemory() > 0L) {
+        m_dirCache = new DirectorySnapshotCache(getNFSConfiguration().getNFSDirectoryCacheMemory(),
+            getNFSConfiguration().getNFSDirectoryCacheTimeout());
+        m_dirCache.setDebug(hasDebugFlag(DBG_SEARCH));
+
+        m_changeListeners = new Vector<SnapshotChangeListener>();
+      }
+
+      //	Create the unstable write cache, if enabled, and flush buffered writes when a file is opened by the
+      //	other file servers
+
+      if ( getNFSConfiguration().getNFSUnstableWriteBufferSize() > 0) {
+        m_writeCache = new UnstableWriteCache(getNFSConfiguration().getNFSUnstableWriteBufferSize(),
+            getNFSConfiguration().getNFSUnstableWriteLimit());
+
+        m_writeListener = new UnstableWriteFileListener();
+
+        for ( int i = 0; i < getConfiguration().numberOfServers(); i++) {
+          NetworkServer server = getConfiguration().getServer(i);
+          if ( server instanceof NetworkFileServer)
+            ((NetworkFileServer) server).addFileListener(m_writeListener);
+        }
+      }
+
       checkForNewShares();
 
       //	Get the thread pool and packet pool sizes
@@ -320,6 +392,11 @@ public class NFSServer extends RpcNetworkServer implements RpcProcessor {
 
       m_packetPool = new RpcPacketPool(MaxRequestSize, packetPoolSize);
 
+      //  Create the NFSv4.1 request processor, if enabled
+
+      if ( getNFSConfiguration().hasNFSv4Enabled())
+        m_nfs4 = new NFS4Processor(this);
+
       //	Create the UDP handler for accepting incoming requests
 
       m_udpHandler = new MultiThreadedUdpRpcDatagramHandler("Nfsd", "Nfs", this, this, null, getPort(), MaxRequestSize);
@@ -339,28 +416,50 @@ public class NFSServer extends RpcNetworkServer implements RpcProcessor {
 
       //	Create the TCP handler for accepting incoming requests
 
-      m_tcpHandler = new MultiThreadedTcpRpcSessionHandler("Nfsd", "Nfs", this, this, null, getPort(), MaxRequestSize);
+      if ( getNFSConfiguration().hasDisableNIOCode() == false) {
 
-      //	Use the shared thread pool and packet pool
+        //  Use the NIO session handler, all sessions are serviced by a single selector thread
+
+        NIOTcpRpcSessionHandler nioHandler = new NIOTcpRpcSessionHandler("Nfsd", "Nfs", this, this, null, getPort(), MaxRequestSize);
+
+        //  Use the shared thread pool and packet pool
+
+        nioHandler.setThreadPool(m_threadPool);
+        nioHandler.setPacketPool(m_packetPool);
 
-      m_tcpHandler.setThreadPool(m_threadPool);
-      m_tcpHandler.setPacketPool(m_packetPool);
+        if ( getNFSConfiguration().getNFSMaximumSessionRequests() > 0)
+          nioHandler.setMaximumRequestsPerSession(getNFSConfiguration().getNFSMaximumSessionRequests());
+
+        m_tcpHandler = nioHandler;
+      }
+      else {
+
+        //  Use the thread per session handler
+
+        MultiThreadedTcpRpcSessionHandler mtHandler = new MultiThreadedTcpRpcSessionHandler("Nfsd", "Nfs", this, this, null, getPort(), MaxRequestSize);
+
+        //  Use the shared thread pool and packet pool
+
+        mtHandler.setThreadPool(m_threadPool);
+        mtHandler.setPacketPool(m_packetPool);
+
+        if ( getNFSConfiguration().getNFSMaximumSessionRequests() > 0)
+          mtHandler.setMaximumRequestsPerSession(getNFSConfiguration().getNFSMaximumSessionRequests());
+
+        m_tcpHandler = mtHandler;
+      }
 
       m_tcpHandler.initializeSessionHandler(this);
 
-      //	Start the UDP request listener is a seperate thread
+      //	Start the TCP request listener is a seperate thread
 
-      Thread tcpThread = new Thread(m_tcpHandler);
+      Thread tcpThread = new Thread((Runnable) m_tcpHandler);
       tcpThread.setName("NFS_TCP");
       tcpThread.start();
 
       //	Register the NFS server with the portmapper
 
-      PortMapping[] mappings = new PortMapping[2];
-      mappings[0] = new PortMapping(NFS.ProgramId, NFS.VersionId, Rpc.UDP, m_udpHandler.getPort());
-      mappings[1] = new PortMapping(NFS.ProgramId, NFS.VersionId, Rpc.TCP, m_tcpHandler.getPort());
-
-      registerRPCServer(mappings);
+      registerRPCServer(getPortMappings());
 
       // Indicate the NFS server is running
 
@@ -386,11 +485,7 @@ public class NFSServer extends RpcNetworkServer implements RpcProcessor {
     //  Unregister the NFS server with the portmapper
 
     try {
-      PortMapping[] mappings = new PortMapping[2];
-      mappings[0] = new PortMapping(NFS.ProgramId, NFS.VersionId, Rpc.UDP, m_udpHandler.getPort());
-      mappings[1] = new PortMapping(NFS.ProgramId, NFS.VersionId, Rpc.TCP, m_tcpHandler.getPort());
-
-      unregisterRPCServer(mappings);
+      unregisterRPCServer(getPortMappings());
     }
     catch ( IOException ex) {
 
@@ -416,6 +511,56 @@ public class NFSServer extends RpcNetworkServer implements RpcProcessor {
 
     m_threadPool.shutdownThreadPool();
 
+    //	Remove the directory snapshot change listeners, and release the directory snapshots
+
+    if ( m_changeListeners != null) {
+      for ( SnapshotChangeListener listener : m_changeListeners)
+        listener.getChangeHandler().removeChangeListener(listener);
+      m_changeListeners.clear();
+    }
+
+    if ( m_dirCache != null)
+      m_dirCache.removeAllSnapshots();
+
+    //	Remove the unstable write file listeners, write any buffered unstable writes and release the buffers
+
+    if ( m_writeCache != null) {
+      for ( int i = 0; i < getConfiguration().numberOfServers(); i++) {
+        NetworkServer server = getConfiguration().getServer(i);
+        if ( server instanceof NetworkFileServer)
+          ((NetworkFileServer) server).removeFileListener(m_writeListener);
+      }
+
+      for ( UnstableWriteBuffer writeBuf : m_writeCache.getDirtyBuffers()) {
+        try {
+          flushWriteBuffer(null, writeBuf, 0L, 0L);
+        }
+        catch (IOException ex) {
+
+          //	DEBUG
+
+          if ( Debug.EnableError && hasDebugFlag(DBG_ERROR))
+            Debug.println("[NFS] Error flushing unstable writes, " + ex.getMessage());
+        }
+      }
+
+      m_writeCache.removeAllBuffers();
+    }
+
+    //  Close the persistent file id indexes
+
+    if ( m_shareDetails != null) {
+      Enumeration<ShareDetails> enumDetails = m_shareDetails.getShareDetails().elements();
+
+      while ( enumDetails.hasMoreElements())
+        enumDetails.nextElement().getFileIdCache().closeIndex();
+    }
+
+    //  Release the NFSv4 client state
+
+    if ( m_nfs4 != null)
+      m_nfs4.removeAllClients();
+
     //	Fire a shutdown notification event
 
     fireServerEvent(ServerListener.ServerShutdown);
@@ -450,11 +595,11 @@ public class NFSServer extends RpcNetworkServer implements RpcProcessor {
       rpc.buildAcceptErrorResponse(Rpc.StsProgUnavail);
       return rpc;
     }
-    else if (version != NFS.VersionId) {
+    else if (version != NFS.VersionId && ( version != NFS4.VersionId || m_nfs4 == null)) {
 
       //	Request is not for this version of NFS
 
-      rpc.buildProgramMismatchResponse(NFS.VersionId, NFS.VersionId);
+      rpc.buildProgramMismatchResponse(NFS.VersionId, m_nfs4 != null ? NFS4.VersionId : NFS.VersionId);
       return rpc;
     }
 
@@ -477,6 +622,11 @@ public class NFSServer extends RpcNetworkServer implements RpcProcessor {
       return rpc;
     }
 
+    //  Pass NFSv4 requests to the COMPOUND processor
+
+    if ( version == NFS4.VersionId)
+      return m_nfs4.processRpc(nfsSess, rpc);
+
     //	Position the RPC buffer pointer at the start of the call parameters
 
     rpc.positionAtParameters();
@@ -718,22 +868,33 @@ public class NFSServer extends RpcNetworkServer implements RpcProcessor {
 
       DiskInterface disk = (DiskInterface) conn.getSharedDevice().getInterface();
 
+      //	Write any unstable writes buffered by other sessions to the file
+
+      if ( NFSHandle.isFileHandle(handle))
+        flushOtherUnstableWrites(sess, conn, getFileIdForHandle(handle));
+
       // Get the network file details, if the file is open
 
       NetworkFile netFile = getOpenNetworkFileForHandle(sess, handle, conn);
 
-      //	Get the file information for the specified path
+      //	Get the file information for the specified path, use the cached attributes if the file is open
+
+      FileInfo finfo = null;
+
+      if ( netFile != null)
+        finfo = getOpenFileInformation(sess, conn, disk, netFile, path);
+      else
+        finfo = disk.getFileInformation(sess, conn, path);
 
-      FileInfo finfo = disk.getFileInformation(sess, conn, path);
       if (finfo != null) {
 
         //  Blend in live file details, if the file is open
 
         if ( netFile != null) {
 
-            // Update file size from open file
+            // Update file size from open file, including any buffered writes
 
-            finfo.setFileSize( netFile.getFileSize());
+            finfo.setFileSize( getOpenFileSize(conn, netFile));
 
             //  DEBUG
 
@@ -846,6 +1007,11 @@ public class NFSServer extends RpcNetworkServer implements RpcProcessor {
 
 			DiskInterface disk = (DiskInterface) conn.getSharedDevice().getInterface();
 
+			//	Write any buffered unstable writes to the file, from any session, before the attributes are changed
+
+			if ( NFSHandle.isFileHandle(handle))
+				flushUnstableWrites(sess, conn, getFileIdForHandle(handle), 0L, 0L);
+
 			//	Get the current file information
 
 			FileInfo oldInfo = disk.getFileInformation(sess, conn, path);
@@ -1016,9 +1182,14 @@ public class NFSServer extends RpcNetworkServer implements RpcProcessor {
 
 			    NetworkFile netFile = getOpenNetworkFileForHandle(sess, handle, conn);
 			    if ( netFile != null)
-			        newInfo.setFileSize( netFile.getFileSize());
+			        newInfo.setFileSize( getOpenFileSize(conn, netFile));
 			}
 
+			//	Update the cached attributes, if the file is open
+
+			if ( NFSHandle.isFileHandle(handle))
+			    sess.getFileCache().setFileAttributes(getFileIdForHandle(handle), newInfo);
+
 			//	Pack the response
 
 			rpc.buildResponseHeader();
@@ -1579,10 +1750,14 @@ public class NFSServer extends RpcNetworkServer implements RpcProcessor {
 			rpc.buildResponseHeader();
 			rpc.packInt(NFS.StsSuccess);
 
-			//	Get file information for the path and pack into the reply
+			//	Write any buffered unstable writes from the read position onwards to the file, from any session
 
-			FileInfo finfo = disk.getFileInformation(sess, conn, netFile.getFullName());
-			finfo.setFileSize( netFile.getFileSize());
+			flushUnstableWrites(sess, conn, netFile.getFileId(), offset, 0L);
+
+			//	Get file information for the path and pack into the reply, use the cached attributes if available
+
+			FileInfo finfo = getOpenFileInformation(sess, conn, disk, netFile, netFile.getFullName());
+			finfo.setFileSize( getOpenFileSize(conn, netFile));
 
 			packPostOpAttr(sess, finfo, shareId, rpc);
 
@@ -1720,9 +1895,17 @@ public class NFSServer extends RpcNetworkServer implements RpcProcessor {
 
 			DiskInterface disk = (DiskInterface) conn.getSharedDevice().getInterface();
 
-			//	Check if threaded writes should be used
+			//	Unstable writes are buffered until the client commits the data, if enabled. For other writes
+			//	write any buffered unstable writes first, from any session, to keep the writes in order.
+
+			boolean bufferWrite = stable == NFS.WriteUnstable && m_writeCache != null;
+
+			if ( bufferWrite == false)
+				flushUnstableWrites(sess, conn, netFile.getFileId(), 0L, 0L);
 
-			FileInfo preInfo = null;
+			//	Get the pre-operation file details, use the cached attributes if available
+
+			FileInfo preInfo = getOpenFileInformation(sess, conn, disk, netFile, path);
 
 			synchronized (netFile) {
 
@@ -1731,22 +1914,53 @@ public class NFSServer extends RpcNetworkServer implements RpcProcessor {
 				if ( netFile.isClosed())
 					netFile.openFile(false);
 
-				//	Get the pre-operation file details
+				//	Set the pre-operation file size from the open file
+
+				if ( preInfo != null)
+					preInfo.setFileSize( getOpenFileSize(conn, netFile));
+
+				//	Check if the write can be buffered
+
+				if ( bufferWrite) {
 
-				preInfo = disk.getFileInformation(sess, conn, path);
+					//	Buffer the write, flush the buffer to the file if it is full
 
-				//	Write to the network file
+					UnstableWriteBuffer writeBuf = m_writeCache.addWrite(sess, conn, netFile, rpc.getBuffer(), rpc.getPosition(), count, offset);
+					if ( writeBuf.getBufferedSize() >= writeBuf.getMaximumSize())
+						flushUnstableWrites(sess, conn, disk, netFile, writeBuf, 0L, 0L);
+				}
+				else {
+
+					//	Write to the network file
 
-				disk.writeFile(sess, conn, netFile, rpc.getBuffer(), rpc.getPosition(), count, offset);
+					disk.writeFile(sess, conn, netFile, rpc.getBuffer(), rpc.getPosition(), count, offset);
+				}
 			}
 
-			//	Get file information for the path and pack the response
+			//	Check if the server wide limit on buffered unstable writes has been exceeded
 
-			FileInfo finfo = disk.getFileInformation(sess, conn, path);
+			if ( bufferWrite)
+				checkUnstableWriteLimit(sess);
+
+			//	Build the post-operation file details from the pre-operation details, and update the cached attributes
+
+			FileInfo finfo = null;
+
+			if ( preInfo != null) {
+				finfo = new FileInfo();
+				finfo.copyFrom( preInfo);
+
+				long timeNow = System.currentTimeMillis();
+				finfo.setModifyDateTime( timeNow);
+				finfo.setChangeDateTime( timeNow);
+			}
+			else
+				finfo = disk.getFileInformation(sess, conn, path);
 
-			// Set the current file size from the open file
+			// Set the current file size from the open file, including any buffered writes
 
-			finfo.setFileSize( netFile.getFileSize());
+			finfo.setFileSize( getOpenFileSize(conn, netFile));
+			sess.getFileCache().setFileAttributes(netFile.getFileId(), finfo);
 
 			// Pack the response
 
@@ -1910,6 +2124,10 @@ public class NFSServer extends RpcNetworkServer implements RpcProcessor {
         FileOpenParams params = new FileOpenParams(filePath, FileAction.CreateNotExist, AccessMode.ReadWrite, 0, gid, uid, mode, 0);
         NetworkFile netFile = disk.createFile(sess, conn, params);
 
+        //  The directory has changed, mark any snapshot of the directory as stale
+
+        invalidateDirectorySnapshot(shareId, path);
+
         //  DEBUG
 
         if (Debug.EnableInfo && hasDebugFlag(DBG_FILE))
@@ -2101,6 +2319,10 @@ public class NFSServer extends RpcNetworkServer implements RpcProcessor {
 
 				disk.createDirectory(sess, conn, params);
 
+				//	The directory has changed, mark any snapshot of the directory as stale
+
+				invalidateDirectorySnapshot(shareId, path);
+
 				//	Get file information for the new directory
 
 				FileInfo finfo = disk.getFileInformation(sess, conn, dirPath);
@@ -2369,6 +2591,10 @@ public class NFSServer extends RpcNetworkServer implements RpcProcessor {
 
         NetworkFile netFile = disk.createFile(sess, conn, params);
 
+        //  The directory has changed, mark any snapshot of the directory as stale
+
+        invalidateDirectorySnapshot(shareId, path);
+
         //  DEBUG
 
         if (Debug.EnableInfo && hasDebugFlag(DBG_FILE))
@@ -2554,6 +2780,10 @@ public class NFSServer extends RpcNetworkServer implements RpcProcessor {
 
 				disk.deleteFile(sess, conn, delPath);
 
+				//	The directory has changed, mark any snapshot of the directory as stale
+
+				invalidateDirectorySnapshot(shareId, path);
+
 				//	Remove the path from the cache
 
 				if (finfo != null) {
@@ -2715,6 +2945,10 @@ public class NFSServer extends RpcNetworkServer implements RpcProcessor {
 
 				disk.deleteDirectory(sess, conn, delPath);
 
+				//	The directory has changed, mark any snapshot of the directory as stale
+
+				invalidateDirectorySnapshot(shareId, path);
+
 				//	Remove the path from the cache
 
 				if (finfo != null)
@@ -2890,6 +3124,10 @@ public class NFSServer extends RpcNetworkServer implements RpcProcessor {
 
 				    byte[] fHandle = getHandleForFile(sess, fromHandle, conn, fromName);
 
+				    // Write any buffered unstable writes, from any session, before the file is renamed
+
+				    flushUnstableWrites(sess, conn, getFileIdForHandle(fHandle), 0L, 0L);
+
 				    // Get the open file
 
 				    NetworkFile netFile = getOpenNetworkFileForHandle(sess, fHandle, conn);
@@ -2902,18 +3140,12 @@ public class NFSServer extends RpcNetworkServer implements RpcProcessor {
 
 				        // Close the file
 
+				        NetworkFileCache fileCache = sess.getFileCache();
 				        disk.closeFile(sess, conn, netFile);
 
 				        // Remove the file from the open file cache
 
-				        NetworkFileCache fileCache = sess.getFileCache();
-
-				        synchronized (fileCache) {
-
-				            // Remove the file from the open file cache
-
-				            fileCache.removeFile( netFile.getFileId());
-				        }
+				        fileCache.removeFile( netFile.getFileId());
 				    }
 				}
 
@@ -2935,6 +3167,11 @@ public class NFSServer extends RpcNetworkServer implements RpcProcessor {
 
 				disk.renameFile(sess, conn, oldPath, newPath);
 
+				//	The directories have changed, mark any snapshots of the directories as stale
+
+				invalidateDirectorySnapshot(shareId, fromPath);
+				invalidateDirectorySnapshot(shareId, toPath);
+
 				//	Remove the original path from the cache
 
 				if ( finfo != null && finfo.getFileId() != -1) {
@@ -2948,6 +3185,11 @@ public class NFSServer extends RpcNetworkServer implements RpcProcessor {
 				  details.getFileIdCache().addPath(finfo.getFileId(), newPath);
 				}
 
+				//	Update the paths of any files/folders below a renamed folder
+
+				if ( finfo != null && finfo.isDirectory())
+				  details.getFileIdCache().renamePaths(oldPath, newPath);
+
 				//	Get the file id for the new file/directory
 
 				finfo = disk.getFileInformation(sess, conn, newPath);
@@ -3086,6 +3328,15 @@ public class NFSServer extends RpcNetworkServer implements RpcProcessor {
 			sess.debugPrintln("ReadDir request from " + rpc.getClientDetails() + " handle=" + NFSHandle.asString(handle) +
 			    				      ", count=" + maxCount);
 
+		//	Check if the listing should be returned from a directory snapshot, falls back to a search of the directory
+		//	if the directory is too large for the snapshot cache
+
+		if ( m_dirCache != null && ( cookie == 0L || isSnapshotCookie(cookie))) {
+			RpcPacket response = procReadDirSnapshot(sess, rpc, handle, cookie, cookieVerf, maxCount, maxCount, false);
+			if ( response != null)
+				return response;
+		}
+
 		//	Check if this is a share handle
 
 		int shareId = -1;
@@ -3419,6 +3670,15 @@ public class NFSServer extends RpcNetworkServer implements RpcProcessor {
 			sess.debugPrintln("ReadDir request from " + rpc.getClientDetails() + " handle=" + NFSHandle.asString(handle) +
  				 					      ", dir=" + maxDir + ", count=" + maxCount);
 
+		//	Check if the listing should be returned from a directory snapshot, falls back to a search of the directory
+		//	if the directory is too large for the snapshot cache
+
+		if ( m_dirCache != null && ( cookie == 0L || isSnapshotCookie(cookie))) {
+			RpcPacket response = procReadDirSnapshot(sess, rpc, handle, cookie, cookieVerf, maxDir, maxCount, true);
+			if ( response != null)
+				return response;
+		}
+
 		//	Check if this is a share handle
 
 		int shareId = -1;
@@ -3758,138 +4018,543 @@ public class NFSServer extends RpcNetworkServer implements RpcProcessor {
   }
 
   /**
-   * Process the filesystem status request
+   * Process a read directory or read directory plus request using a directory snapshot. Returns null if a new
+   * listing cannot be returned from a snapshot, so the caller should search the directory.
    *
    * @param sess NFSSrvSession
    * @param rpc RpcPacket
+   * @param handle byte[]
+   * @param cookie long
+   * @param cookieVerf long
+   * @param maxDir int
+   * @param maxCount int
+   * @param plus boolean
    * @return RpcPacket
    */
-  private final RpcPacket procFsStat(NFSSrvSession sess, RpcPacket rpc) {
+  private final RpcPacket procReadDirSnapshot(NFSSrvSession sess, RpcPacket rpc, byte[] handle, long cookie, long cookieVerf,
+      int maxDir, int maxCount, boolean plus) {
 
-    //	Get the handle from the request
-
-    byte[] handle = new byte[NFS.FileHandleSize];
-    rpc.unpackByteArrayWithLength(handle);
+		int shareId = -1;
+		String path = null;
 
-    //	DEBUG
+		int errorSts = NFS.StsSuccess;
+		DirectorySnapshot snapshot = null;
 
-    if (Debug.EnableInfo && hasDebugFlag(DBG_INFO))
-      sess.debugPrintln("FsInfo request from " + rpc.getClientDetails());
+		try {
 
-    //	Call the disk share driver to get the disk size information
+			//	Get the share id and path
 
-    int shareId = -1;
-    int errorSts = NFS.StsSuccess;
+			shareId = getShareIdFromHandle(handle);
+			ShareDetails details = m_shareDetails.findDetails(shareId);
+			TreeConnection conn  = getTreeConnection(sess, shareId);
 
-    try {
+			//	Check if the session has the required access to the shared filesystem
 
-      //	Get the share id
+			if ( conn.hasReadAccess() == false)
+				throw new AccessDeniedException();
 
-      shareId = getShareIdFromHandle(handle);
+			//	Get the disk interface from the disk driver
 
-      //	Get the required disk driver/tree connection
+			DiskInterface disk = (DiskInterface) conn.getSharedDevice().getInterface();
 
-      TreeConnection conn = getTreeConnection(sess, shareId);
+			//	Get the path from the handle, and the directory information
 
-      //	Check if the session has the required access to the shared filesystem
+			path = getPathForHandle(sess, handle, conn);
+			FileInfo dinfo = disk.getFileInformation(sess, conn, path);
 
-      if (conn.hasReadAccess() == false)
-        throw new AccessDeniedException();
+			long verifier = dinfo.getModifyDateTime();
 
-      //	Get the static disk information from the context, if available
+			//	Check if the cookie verifier is valid, check reverse byte order
 
-      DiskDeviceContext diskCtx = (DiskDeviceContext) conn.getContext();
-      SrvDiskInfo diskInfo = diskCtx.getDiskInformation();
+			if ( cookie != 0L && cookieVerf != 0L && cookieVerf != verifier && Long.reverseBytes( cookieVerf) != verifier) {
+				sess.debugPrintln("Bad cookie verifier, verf=0x" + Long.toHexString(cookieVerf) + ", modTime=0x" + Long.toHexString(verifier));
+				throw new BadCookieException();
+			}
 
-      //	If we did not get valid disk information from the device context check
-      // if the driver implements the
-      //	disk sizing interface
+			//	Find a snapshot of the directory, or take a new snapshot
 
-      if (diskInfo == null)
-        diskInfo = new SrvDiskInfo();
+			String owner = getSnapshotOwner(sess);
+			snapshot = m_dirCache.findSnapshot(shareId, path, owner, verifier, cookie == 0L);
 
-      //	Get the disk interface from the disk driver
+			if ( snapshot == null) {
 
-      DiskInterface disk = (DiskInterface) conn.getSharedDevice().getInterface();
+				//	Take a snapshot of the directory, if the directory is too large for a snapshot then a new listing
+				//	falls back to searching the directory
 
-      //	Check if the driver implements the dynamic sizing interface to get
-      // realtime disk size information
+				snapshot = buildDirectorySnapshot(sess, conn, disk, shareId, path, owner, dinfo);
 
-      if (disk instanceof DiskSizeInterface) {
+				if ( snapshot == null) {
+					if ( cookie == 0L)
+						return null;
+					throw new BadCookieException();
+				}
 
-        //	Get the dynamic disk sizing information
+				//	Add the snapshot to the cache
 
-        DiskSizeInterface sizeInterface = (DiskSizeInterface) disk;
-        sizeInterface.getDiskInformation(diskCtx, diskInfo);
-      }
+				m_dirCache.addSnapshot(snapshot);
+			}
 
-      //	Calculate the disk size information
+			//	Get the listing position to resume at from the cookie
 
-      //int unitSize = diskInfo.getBlockSize() * diskInfo.getBlocksPerAllocationUnit();
+			int listPos = 0;
 
-      //	Get the file details for the root directory
+			if ( cookie != 0L) {
+				listPos = (int) (cookie & COOKIE_RESUMEID_MASK);
+				if ( listPos > snapshot.numberOfEntries() + 2)
+					throw new BadCookieException();
+			}
 
-      String rootPath = getPathForHandle(sess, handle, conn);
-      FileInfo rootInfo = disk.getFileInformation(sess, conn, rootPath);
+			//	DEBUG
 
-      //	Pack the response
+			if (Debug.EnableInfo && hasDebugFlag(DBG_SEARCH))
+				sess.debugPrintln((plus ? "ReadDirPlus" : "ReadDir") + " snapshot=" + snapshot + ", cookie=" + cookie + ", pos=" + listPos);
 
-      rpc.buildResponseHeader();
-      rpc.packInt(NFS.StsSuccess);
+			//	Build the response header
 
-      packPostOpAttr(sess, rootInfo, shareId, rpc);
+			rpc.buildResponseHeader();
+			rpc.packInt(NFS.StsSuccess);
 
-      //	Calculate the total/free disk space in bytes
+			packPostOpAttr(sess, dinfo, shareId, rpc);
+			rpc.packLong(cookie == 0L ? verifier : cookieVerf);
 
-      long totalSize = diskInfo.getDiskSizeKb() * 1024L;
-      long freeSize = diskInfo.getDiskFreeSizeKb() * 1024L;
+			//	Add the '.' and '..' entries if at the start of the listing
 
-      //	Pack the total size, free size and space available to the user
+			int entCnt = 0;
 
-      rpc.packLong(totalSize);
-      rpc.packLong(freeSize);
-      rpc.packLong(freeSize);
+			if ( listPos == 0) {
 
-      //	Total/free file slots in the file system, assume one file per 1Kb of
-      // space
+				//	Add the search directory details, the '.' directory
 
-      long totalSlots = diskInfo.getDiskSizeKb();
-      long freeSlots = diskInfo.getDiskFreeSizeKb();
+				rpc.packInt(Rpc.True);
+				rpc.packLong(dinfo.getFileIdLong() + FILE_ID_OFFSET);
+				rpc.packString(".");
+				rpc.packLong(COOKIE_SNAPSHOT + 1);
 
-      //	Pack the total slots, free slots and user slots available
+				if ( plus) {
+					rpc.packInt(Rpc.True);
+					packAttributes3(rpc, dinfo, shareId);
+					packDirectoryHandle(shareId, dinfo.getFileId(), rpc);
+				}
 
-      rpc.packLong(totalSlots);
-      rpc.packLong(freeSlots);
-      rpc.packLong(freeSlots);
+				listPos++;
+				entCnt++;
+			}
 
-      //	Pack the number of seconds for which the file system in not expected to
-      // change
+			if ( listPos == 1) {
 
-      rpc.packInt(0);
-    } catch (SecurityException ex) {
-      errorSts = NFS.StsAccess;
-    } catch (AccessDeniedException ex) {
-      errorSts = NFS.StsAccess;
-    } catch (Exception ex) {
-      errorSts = NFS.StsServerFault;
-    }
+				//	Add the parent of the search directory, the '..' directory
 
-    //	Check for an error status
+				FileInfo parentInfo = disk.getFileInformation(sess, conn, generatePath(path, ".."));
 
-    if (errorSts != NFS.StsSuccess) {
+				rpc.packInt(Rpc.True);
+				rpc.packLong(parentInfo.getFileIdLong() + FILE_ID_OFFSET);
+				rpc.packString("..");
+				rpc.packLong(COOKIE_SNAPSHOT + 2);
 
-      //	Pack the error response
+				if ( plus) {
+					rpc.packInt(Rpc.True);
+					packAttributes3(rpc, parentInfo, shareId);
+					packDirectoryHandle(shareId, parentInfo.getFileId(), rpc);
+				}
 
-      rpc.buildErrorResponse(errorSts);
-      packPostOpAttr(sess, null, shareId, rpc);
+				listPos++;
+				entCnt++;
+			}
 
-      //	DEBUG
+			//	If the filesystem driver cannot convert file ids to relative paths we need to build a relative path for
+			//	every file and sub-directory returned
 
-      if (Debug.EnableInfo && hasDebugFlag(DBG_ERROR))
-        sess.debugPrintln("FsStat error=" + NFS.getStatusString(errorSts));
-    }
+			StringBuffer pathBuf = null;
+			int pathLen = 0;
+			FileIdCache fileCache = details.getFileIdCache();
 
-    //	Return the response
+			if ( details.hasFileIdSupport() == false) {
+				pathBuf = new StringBuffer(256);
+				pathBuf.append(path);
+				if ( path.endsWith("\\") == false)
+					pathBuf.append("\\");
+
+				pathLen = pathBuf.length();
+			}
+
+			//	Pack the file entries until the reply is full or the end of the listing is reached
+
+			byte[] entryData = snapshot.getDataBuffer();
+			int fixedLen = plus ? READDIRPLUS_ENTRY_LENGTH : READDIR_ENTRY_LENGTH;
+
+			while ( listPos - 2 < snapshot.numberOfEntries() && entCnt < maxDir) {
+
+				//	Check if the new file entry will fit into the reply buffer without exceeding the clients maximum
+				//	reply size
+
+				int idx = listPos - 2;
+				String fileName = snapshot.getFileNameAt(idx);
+
+				int entryLen = fixedLen + (( fileName.length() + 3) & 0xFFFFFFFC);
+
+				if ( entryLen > rpc.getAvailableLength() || ( rpc.getPosition() + entryLen > maxCount))
+					break;
+
+				//	Fill in the entry details
+
+				int fileId = snapshot.getFileIdAt(idx);
+
+				rpc.packInt(Rpc.True);
+				rpc.packLong(( fileId & 0xFFFFFFFFL) + FILE_ID_OFFSET);
+				rpc.packUTF8String(fileName);
+				rpc.packLong(COOKIE_SNAPSHOT + listPos + 1);
+
+				//	Copy the packed attributes and handle from the snapshot
+
+				if ( plus)
+					rpc.packByteArray(entryData, snapshot.getDataOffset(idx), snapshot.getDataLength());
+
+				//	Check if the relative path should be added to the file id cache
+
+				if ( pathBuf != null && fileCache.findPath(fileId) == null) {
+					pathBuf.setLength(pathLen);
+					pathBuf.append(fileName);
+
+					fileCache.addPath(fileId, pathBuf.toString());
+				}
+
+				listPos++;
+				entCnt++;
+			}
+
+			//	Indicate that there are no more file entries in this response, and if the end of the listing has been
+			//	reached
+
+			boolean eof = listPos - 2 >= snapshot.numberOfEntries();
+
+			rpc.packInt(Rpc.False);
+			rpc.packInt(eof ? Rpc.True : Rpc.False);
+
+			//	DEBUG
+
+			if (Debug.EnableInfo && hasDebugFlag(DBG_SEARCH))
+				sess.debugPrintln((plus ? "ReadDirPlus" : "ReadDir") + " return entries=" + entCnt + ", eof=" + eof);
+		}
+		catch (BadHandleException ex) {
+		  errorSts = NFS.StsBadHandle;
+		}
+		catch (BadCookieException ex) {
+		  errorSts = NFS.StsBadCookie;
+		}
+		catch (AccessDeniedException ex) {
+		  errorSts = NFS.StsAccess;
+		}
+		catch (Exception ex) {
+		  errorSts = NFS.StsServerFault;
+
+			//	DEBUG
+
+			if ( Debug.EnableError && hasDebugFlag(DBG_ERROR)) {
+				sess.debugPrintln("ReadDir snapshot Exception: " + ex.toString());
+				sess.debugPrintln(ex);
+			}
+		}
+		finally {
+
+			//	Release the snapshot
+
+			if ( snapshot != null)
+				m_dirCache.releaseSnapshot(snapshot);
+		}
+
+		//	Check for an error status
+
+		if ( errorSts != NFS.StsSuccess) {
+
+		  //	Pack the error response
+
+		  rpc.buildErrorResponse(errorSts);
+		  packPostOpAttr(sess, null, shareId, rpc);
+
+			//	DEBUG
+
+			if ( Debug.EnableInfo && hasDebugFlag(DBG_ERROR))
+				sess.debugPrintln("ReadDir error=" + NFS.getStatusString(errorSts));
+		}
+
+		//	Return the read directory response
+
+		rpc.setLength();
+		return rpc;
+  }
+
+  /**
+   * Take a snapshot of a directory, packing the attributes and handle for each entry in a single pass over a
+   * search of the directory. Returns null if the directory has too many entries or the snapshot would exceed
+   * the directory cache memory limit.
+   *
+   * @param sess NFSSrvSession
+   * @param conn TreeConnection
+   * @param disk DiskInterface
+   * @param shareId int
+   * @param path String
+   * @param owner String
+   * @param dinfo FileInfo
+   * @return DirectorySnapshot
+   * @exception FileNotFoundException
+   */
+  private final DirectorySnapshot buildDirectorySnapshot(NFSSrvSession sess, TreeConnection conn, DiskInterface disk, int shareId,
+      String path, String owner, FileInfo dinfo)
+  	throws FileNotFoundException {
+
+    //	Start a search of the directory
+
+    SearchContext search = disk.startSearch(sess, conn, generatePath(path, "*.*"), FileAttribute.Directory + FileAttribute.Normal);
+    DirectorySnapshot snapshot = new DirectorySnapshot(shareId, path, owner, dinfo.getModifyDateTime(), SNAPSHOT_ENTRY_LENGTH);
+
+    try {
+
+      //	Buffer used to pack the attributes and handle for each entry
+
+      byte[] entryBuf = new byte[SNAPSHOT_ENTRY_LENGTH];
+      RpcPacket entryPkt = new RpcPacket(entryBuf, 0, entryBuf.length);
+
+      FileInfo finfo = new FileInfo();
+
+      while ( search.nextFileInfo(finfo)) {
+
+        //	Check if the directory is too large for a snapshot
+
+        if ( snapshot.numberOfEntries() >= SNAPSHOT_MAX_ENTRIES || snapshot.getMemorySize() > m_dirCache.getMemoryLimit()) {
+
+          //	DEBUG
+
+          if (Debug.EnableInfo && hasDebugFlag(DBG_SEARCH))
+            sess.debugPrintln("Directory too large for snapshot, path=" + path);
+
+          return null;
+        }
+
+        //	Pack the attributes and handle
+
+        entryPkt.setPosition(0);
+        entryPkt.packInt(Rpc.True);
+        packAttributes3(entryPkt, finfo, shareId);
+
+        if ( finfo.isDirectory())
+          packDirectoryHandle(shareId, finfo.getFileId(), entryPkt);
+        else
+          packFileHandle(shareId, dinfo.getFileId(), finfo.getFileId(), entryPkt);
+
+        //	Add the entry to the snapshot
+
+        snapshot.addEntry(finfo.getFileName(), finfo.getFileId(), entryBuf);
+
+        // Reset the file type
+
+        finfo.setFileType( FileType.RegularFile);
+      }
+    }
+    finally {
+
+      //	Close the search
+
+      search.closeSearch();
+    }
+
+    //	Release unused space in the snapshot
+
+    snapshot.trimToSize();
+    return snapshot;
+  }
+
+  /**
+   * Check if a readdir cookie indexes into a directory snapshot
+   *
+   * @param cookie long
+   * @return boolean
+   */
+  private final boolean isSnapshotCookie(long cookie) {
+    return ( cookie & ~COOKIE_RESUMEID_MASK) == COOKIE_SNAPSHOT;
+  }
+
+  /**
+   * Return the client identity used to key directory snapshots, as the filesystem driver may filter a listing
+   * by user
+   *
+   * @param sess NFSSrvSession
+   * @return String
+   */
+  private final String getSnapshotOwner(NFSSrvSession sess) {
+
+    //  Build the identity from the user id, group ids and user name
+
+    ClientInfo cInfo = sess.getClientInformation();
+    if ( cInfo == null)
+      return "";
+
+    StringBuilder str = new StringBuilder(32);
+
+    str.append(cInfo.getUid());
+    str.append("/");
+    str.append(cInfo.getGid());
+
+    if ( cInfo.hasGroupsList()) {
+      int[] groups = cInfo.getGroupsList();
+
+      for ( int i = 0; i < groups.length; i++) {
+        str.append(",");
+        str.append(groups[i]);
+      }
+    }
+
+    if ( cInfo.getUserName() != null) {
+      str.append("/");
+      str.append(cInfo.getUserName());
+    }
+
+    return str.toString();
+  }
+
+  /**
+   * Mark the snapshot of a directory as stale, the directory has been changed
+   *
+   * @param shareId int
+   * @param path String
+   */
+  protected final void invalidateDirectorySnapshot(int shareId, String path) {
+    if ( m_dirCache != null && path != null)
+      m_dirCache.invalidateSnapshot(shareId, path);
+  }
+
+  /**
+   * Process the filesystem status request
+   *
+   * @param sess NFSSrvSession
+   * @param rpc RpcPacket
+   * @return RpcPacket
+   */
+  private final RpcPacket procFsStat(NFSSrvSession sess, RpcPacket rpc) {
+
+    //	Get the handle from the request
+
+    byte[] handle = new byte[NFS.FileHandleSize];
+    rpc.unpackByteArrayWithLength(handle);
+
+    //	DEBUG
+
+    if (Debug.EnableInfo && hasDebugFlag(DBG_INFO))
+      sess.debugPrintln("FsInfo request from " + rpc.getClientDetails());
+
+    //	Call the disk share driver to get the disk size information
+
+    int shareId = -1;
+    int errorSts = NFS.StsSuccess;
+
+    try {
+
+      //	Get the share id
+
+      shareId = getShareIdFromHandle(handle);
+
+      //	Get the required disk driver/tree connection
+
+      TreeConnection conn = getTreeConnection(sess, shareId);
+
+      //	Check if the session has the required access to the shared filesystem
+
+      if (conn.hasReadAccess() == false)
+        throw new AccessDeniedException();
+
+      //	Get the static disk information from the context, if available
+
+      DiskDeviceContext diskCtx = (DiskDeviceContext) conn.getContext();
+      SrvDiskInfo diskInfo = diskCtx.getDiskInformation();
+
+      //	If we did not get valid disk information from the device context check
+      // if the driver implements the
+      //	disk sizing interface
+
+      if (diskInfo == null)
+        diskInfo = new SrvDiskInfo();
+
+      //	Get the disk interface from the disk driver
+
+      DiskInterface disk = (DiskInterface) conn.getSharedDevice().getInterface();
+
+      //	Check if the driver implements the dynamic sizing interface to get
+      // realtime disk size information
+
+      if (disk instanceof DiskSizeInterface) {
+
+        //	Get the dynamic disk sizing information
+
+        DiskSizeInterface sizeInterface = (DiskSizeInterface) disk;
+        sizeInterface.getDiskInformation(diskCtx, diskInfo);
+      }
+
+      //	Calculate the disk size information
+
+      //int unitSize = diskInfo.getBlockSize() * diskInfo.getBlocksPerAllocationUnit();
+
+      //	Get the file details for the root directory
+
+      String rootPath = getPathForHandle(sess, handle, conn);
+      FileInfo rootInfo = disk.getFileInformation(sess, conn, rootPath);
+
+      //	Pack the response
+
+      rpc.buildResponseHeader();
+      rpc.packInt(NFS.StsSuccess);
+
+      packPostOpAttr(sess, rootInfo, shareId, rpc);
+
+      //	Calculate the total/free disk space in bytes
+
+      long totalSize = diskInfo.getDiskSizeKb() * 1024L;
+      long freeSize = diskInfo.getDiskFreeSizeKb() * 1024L;
+
+      //	Pack the total size, free size and space available to the user
+
+      rpc.packLong(totalSize);
+      rpc.packLong(freeSize);
+      rpc.packLong(freeSize);
+
+      //	Total/free file slots in the file system, assume one file per 1Kb of
+      // space
+
+      long totalSlots = diskInfo.getDiskSizeKb();
+      long freeSlots = diskInfo.getDiskFreeSizeKb();
+
+      //	Pack the total slots, free slots and user slots available
+
+      rpc.packLong(totalSlots);
+      rpc.packLong(freeSlots);
+      rpc.packLong(freeSlots);
+
+      //	Pack the number of seconds for which the file system in not expected to
+      // change
+
+      rpc.packInt(0);
+    } catch (SecurityException ex) {
+      errorSts = NFS.StsAccess;
+    } catch (AccessDeniedException ex) {
+      errorSts = NFS.StsAccess;
+    } catch (Exception ex) {
+      errorSts = NFS.StsServerFault;
+    }
+
+    //	Check for an error status
+
+    if (errorSts != NFS.StsSuccess) {
+
+      //	Pack the error response
+
+      rpc.buildErrorResponse(errorSts);
+      packPostOpAttr(sess, null, shareId, rpc);
+
+      //	DEBUG
+
+      if (Debug.EnableInfo && hasDebugFlag(DBG_ERROR))
+        sess.debugPrintln("FsStat error=" + NFS.getStatusString(errorSts));
+    }
+
+    //	Return the response
 
     rpc.setLength();
     return rpc;
@@ -4004,22 +4669,275 @@ public class NFSServer extends RpcNetworkServer implements RpcProcessor {
 
       //	DEBUG
 
-      if (Debug.EnableError && hasDebugFlag(DBG_ERROR)) {
-        sess.debugPrintln("FsInfo Exception: " + ex.toString());
+      if (Debug.EnableError && hasDebugFlag(DBG_ERROR)) {
+        sess.debugPrintln("FsInfo Exception: " + ex.toString());
+        sess.debugPrintln(ex);
+      }
+    }
+
+    //	Check for an error status
+
+    if (errorSts != NFS.StsSuccess) {
+      rpc.buildErrorResponse(errorSts);
+      packPostOpAttr(sess, null, shareId, rpc);
+
+      //	DEBUG
+
+      if (Debug.EnableInfo && hasDebugFlag(DBG_ERROR))
+        sess.debugPrintln("FsInfo error=" + NFS.getStatusString(errorSts));
+    }
+
+    //	Return the response
+
+    rpc.setLength();
+    return rpc;
+  }
+
+  /**
+   * Process the retrieve POSIX information request
+   *
+   * @param sess NFSSrvSession
+   * @param rpc RpcPacket
+   * @return RpcPacket
+   */
+  private final RpcPacket procPathConf(NFSSrvSession sess, RpcPacket rpc) {
+
+    //	Unpack the pathconf arguments
+
+    byte[] handle = new byte[NFS.FileHandleSize];
+    rpc.unpackByteArrayWithLength(handle);
+
+		//	DEBUG
+
+		if (Debug.EnableInfo && hasDebugFlag(DBG_SEARCH))
+			sess.debugPrintln("PathConf request from " + rpc.getClientDetails() + " handle=" + NFSHandle.asString(handle));
+
+		//	Call the disk share driver to get the file information for the path
+
+		int shareId = -1;
+		String path = null;
+		int errorSts = NFS.StsSuccess;
+
+		try {
+
+			//	Get the share id and path
+
+			shareId = getShareIdFromHandle(handle);
+			TreeConnection conn = getTreeConnection(sess, shareId);
+
+			//	Check if the session has the required access to the shared filesystem
+
+			if ( conn.hasReadAccess() == false)
+				throw new AccessDeniedException();
+
+			//	Get the path from the handle
+
+			path = getPathForHandle(sess, handle, conn);
+
+			//	Get the disk interface from the disk driver
+
+			DiskInterface disk = (DiskInterface) conn.getSharedDevice().getInterface();
+
+			//	Check if the file/directory exists
+
+			if (disk.fileExists(sess, conn, path) != FileStatus.NotExist) {
+
+				//	Get file information for the path
+
+				FileInfo finfo = disk.getFileInformation(sess, conn, path);
+
+				//	Build the response
+
+				rpc.buildResponseHeader();
+				rpc.packInt(NFS.StsSuccess);
+
+				packPostOpAttr(sess, finfo, shareId, rpc);
+
+				//	Pack the filesystem options
+
+				rpc.packInt(32767);
+				rpc.packInt(255);
+
+				rpc.packInt(Rpc.True);		//	truncate over size names
+				rpc.packInt(Rpc.True);		//	chown restricted
+				rpc.packInt(Rpc.True);		//	case insensitive
+				rpc.packInt(Rpc.True);		//	case preserving
+
+				//	DEBUG
+
+				if (Debug.EnableInfo && hasDebugFlag(DBG_SEARCH))
+					sess.debugPrintln("Pathconf path=" + path + ", finfo=" + (finfo != null ? finfo.toString() : "<null>"));
+			}
+			else {
+
+				//	File does not exist
+
+				errorSts = NFS.StsNoEnt;
+			}
+		}
+		catch (BadHandleException ex) {
+		  errorSts = NFS.StsBadHandle;
+		}
+		catch (StaleHandleException ex) {
+		  errorSts = NFS.StsStale;
+		}
+		catch (AccessDeniedException ex) {
+		  errorSts = NFS.StsAccess;
+		}
+		catch (Exception ex) {
+		  errorSts = NFS.StsServerFault;
+
+			//	DEBUG
+
+			if ( Debug.EnableError && hasDebugFlag(DBG_ERROR))
+				sess.debugPrintln("Pathconf Exception: " + ex.toString());
+		}
+
+		//	Check if an error is being returned
+
+		if ( errorSts != NFS.StsSuccess) {
+
+		  //	Pack the error response
+
+		  rpc.buildErrorResponse(errorSts);
+      packPostOpAttr(sess, null, shareId, rpc);
+
+			//	DEBUG
+
+			if ( Debug.EnableInfo && hasDebugFlag(DBG_ERROR))
+				sess.debugPrintln("Pathconf error=" + NFS.getStatusString(errorSts));
+		}
+
+		//	Return the path information response
+
+		rpc.setLength();
+		return rpc;
+  }
+
+  /**
+   * Commit request
+   *
+   * @param sess NFSSrvSession
+   * @param rpc RpcPacket
+   * @return RpcPacket
+   */
+  private final RpcPacket procCommit(NFSSrvSession sess, RpcPacket rpc) {
+
+    //	Unpack the commit parameters
+
+    byte[] handle = new byte[NFS.FileHandleSize];
+    rpc.unpackByteArrayWithLength(handle);
+
+    long offset = rpc.unpackLong();
+    int count   = rpc.unpackInt();
+
+    //	DEBUG
+
+    if (Debug.EnableInfo && hasDebugFlag(DBG_FILEIO))
+      sess.debugPrintln("Commit request from " + rpc.getClientDetails() + ", count=" + count + ", offset=" + offset);
+
+    //	Check if the handle is valid
+
+    if (NFSHandle.isValid(handle) == false) {
+      rpc.buildErrorResponse(NFS.StsBadHandle);
+      packWccData(rpc, null);
+      packWccData(rpc, null);
+      rpc.setLength();
+      return rpc;
+    }
+
+    //	Write any buffered unstable writes for the requested range to the file
+
+    int shareId = -1;
+    NetworkFile netFile = null;
+    int errorSts = NFS.StsSuccess;
+
+    try {
+
+      //	Get the share id and associated shared device
+
+      shareId = getShareIdFromHandle(handle);
+      TreeConnection conn = getTreeConnection(sess, shareId);
+
+      //	Get the path from the handle
+
+      String path = getPathForHandle(sess, handle, conn);
+
+      //	Get the disk interface from the disk driver
+
+      DiskInterface disk = (DiskInterface) conn.getSharedDevice().getInterface();
+
+      //	Get the pre-operation file details
+
+      FileInfo preInfo = disk.getFileInformation(sess, conn, path);
+
+      //	Get the network file, if the file is open then set the pre-operation file size including the buffered data
+
+      netFile = getOpenNetworkFileForHandle(sess, handle, conn);
+
+      if ( netFile != null && preInfo != null)
+        preInfo.setFileSize( getOpenFileSize(conn, netFile));
+
+      //	Write the buffered data for the range to the file, from any session
+
+      flushUnstableWrites(sess, conn, getFileIdForHandle(handle), offset, count);
+
+      //	Get the post-operation file details
+
+      FileInfo postInfo = disk.getFileInformation(sess, conn, path);
+      if ( postInfo != null && netFile != null)
+        postInfo.setFileSize( netFile.getFileSize());
+
+      //	Pack the response
+
+      rpc.buildResponseHeader();
+
+      rpc.packInt(NFS.StsSuccess);
+      packPreOpAttr(sess, preInfo, rpc);
+      packPostOpAttr(sess, postInfo, shareId, rpc);
+
+      //	Pack the write verifier, indicates if the server has been restarted, or buffered writes have been
+      //	lost, since the file write requests
+
+      rpc.packLong(m_writeVerifier);
+    }
+    catch (BadHandleException ex) {
+      errorSts = NFS.StsBadHandle;
+    }
+    catch (StaleHandleException ex) {
+      errorSts = NFS.StsStale;
+    }
+    catch (DiskFullException ex) {
+      errorSts = NFS.StsNoSpc;
+    }
+    catch (IOException ex) {
+      errorSts = NFS.StsIO;
+    }
+    catch (Exception ex) {
+      errorSts = NFS.StsServerFault;
+
+      //	DEBUG
+
+      if ( Debug.EnableError && hasDebugFlag(DBG_ERROR)) {
+        sess.debugPrintln("Commit Exception: netFile=" + netFile);
         sess.debugPrintln(ex);
       }
     }
 
-    //	Check for an error status
+    //	Check for a failure status
+
+    if ( errorSts != NFS.StsSuccess) {
+
+      //	Pack the error response
 
-    if (errorSts != NFS.StsSuccess) {
       rpc.buildErrorResponse(errorSts);
-      packPostOpAttr(sess, null, shareId, rpc);
+      packWccData(rpc, null); // before attributes
+      packWccData(rpc, null); // after attributes
 
       //	DEBUG
 
-      if (Debug.EnableInfo && hasDebugFlag(DBG_ERROR))
-        sess.debugPrintln("FsInfo error=" + NFS.getStatusString(errorSts));
+      if ( Debug.EnableInfo && hasDebugFlag(DBG_ERROR))
+        sess.debugPrintln("Commit error=" + NFS.getStatusString(errorSts));
     }
 
     //	Return the response
@@ -4029,156 +4947,280 @@ public class NFSServer extends RpcNetworkServer implements RpcProcessor {
   }
 
   /**
-   * Process the retrieve POSIX information request
+   * Write buffered unstable writes that overlap the specified range to the file, a zero count indicates all
+   * data from the offset to the end of the file. If the write fails the write verifier is changed so that
+   * clients resend any uncommitted data.
    *
    * @param sess NFSSrvSession
-   * @param rpc RpcPacket
-   * @return RpcPacket
+   * @param conn TreeConnection
+   * @param disk DiskInterface
+   * @param netFile NetworkFile
+   * @param writeBuf UnstableWriteBuffer
+   * @param offset long
+   * @param count long
+   * @exception IOException
    */
-  private final RpcPacket procPathConf(NFSSrvSession sess, RpcPacket rpc) {
+  protected final void flushUnstableWrites(NFSSrvSession sess, TreeConnection conn, DiskInterface disk, NetworkFile netFile,
+      UnstableWriteBuffer writeBuf, long offset, long count)
+    throws IOException {
 
-    //	Unpack the pathconf arguments
+    //	Check if there is any buffered data
 
-    byte[] handle = new byte[NFS.FileHandleSize];
-    rpc.unpackByteArrayWithLength(handle);
+    if ( writeBuf == null || writeBuf.hasDirtyData() == false)
+      return;
 
-		//	DEBUG
+    try {
 
-		if (Debug.EnableInfo && hasDebugFlag(DBG_SEARCH))
-			sess.debugPrintln("PathConf request from " + rpc.getClientDetails() + " handle=" + NFSHandle.asString(handle));
+      //	Write the buffered data to the file
 
-		//	Call the disk share driver to get the file information for the path
+      int wrlen = 0;
 
-		int shareId = -1;
-		String path = null;
-		int errorSts = NFS.StsSuccess;
+      synchronized (netFile) {
+        wrlen = writeBuf.flush(disk, sess, conn, netFile, offset, count);
+      }
 
-		try {
+      //	DEBUG
 
-			//	Get the share id and path
+      if (Debug.EnableInfo && hasDebugFlag(DBG_FILEIO))
+        sess.debugPrintln("Flushed unstable writes fid=" + netFile.getFileId() + ", name=" + netFile.getName() + ", wrlen=" + wrlen);
+    }
+    catch (IOException ex) {
 
-			shareId = getShareIdFromHandle(handle);
-			TreeConnection conn = getTreeConnection(sess, shareId);
+      //	Change the write verifier, the data from earlier unstable writes has been lost
 
-			//	Check if the session has the required access to the shared filesystem
+      changeWriteVerifier();
+      throw ex;
+    }
+  }
 
-			if ( conn.hasReadAccess() == false)
-				throw new AccessDeniedException();
+  /**
+   * Write buffered unstable writes for a file that overlap the specified range, a zero count indicates all
+   * data from the offset to the end of the file. The buffered data may have been written by any session, it is
+   * written using the network file of the last writer. The caller must not be synchronized on a network file.
+   *
+   * @param sess NFSSrvSession
+   * @param conn TreeConnection
+   * @param fileId int
+   * @param offset long
+   * @param count long
+   * @exception IOException
+   */
+  protected final void flushUnstableWrites(NFSSrvSession sess, TreeConnection conn, int fileId, long offset, long count)
+    throws IOException {
 
-			//	Get the path from the handle
+    //	Check if there is any buffered data
 
-			path = getPathForHandle(sess, handle, conn);
+    if ( m_writeCache == null)
+      return;
 
-			//	Get the disk interface from the disk driver
+    UnstableWriteBuffer writeBuf = m_writeCache.findWriteBuffer(conn, fileId);
 
-			DiskInterface disk = (DiskInterface) conn.getSharedDevice().getInterface();
+    if ( writeBuf != null && writeBuf.hasDirtyData())
+      flushWriteBuffer(sess, writeBuf, offset, count);
+  }
 
-			//	Check if the file/directory exists
+  /**
+   * Write buffered unstable writes for a file if the data was last written by another session. The file size
+   * returned to the writing session includes the buffered data, so a GETATTR from the writer does not need
+   * to flush the buffer.
+   *
+   * @param sess NFSSrvSession
+   * @param conn TreeConnection
+   * @param fileId int
+   * @exception IOException
+   */
+  protected final void flushOtherUnstableWrites(NFSSrvSession sess, TreeConnection conn, int fileId)
+    throws IOException {
 
-			if (disk.fileExists(sess, conn, path) != FileStatus.NotExist) {
+    //	Check if there is any buffered data from another session
 
-				//	Get file information for the path
+    if ( m_writeCache == null)
+      return;
 
-				FileInfo finfo = disk.getFileInformation(sess, conn, path);
+    UnstableWriteBuffer writeBuf = m_writeCache.findWriteBuffer(conn, fileId);
 
-				//	Build the response
+    if ( writeBuf != null && writeBuf.hasDirtyData() && writeBuf.getWriterSession() != sess)
+      flushWriteBuffer(sess, writeBuf, 0L, 0L);
+  }
 
-				rpc.buildResponseHeader();
-				rpc.packInt(NFS.StsSuccess);
+  /**
+   * Write buffered unstable writes that overlap the specified range using the network file of the last writer,
+   * in the user context of the writer. The write buffer is released if it is empty after the flush.
+   *
+   * <p>The session is null if the flush is not being done by an NFS request, the user context is not changed.
+   *
+   * @param sess NFSSrvSession
+   * @param writeBuf UnstableWriteBuffer
+   * @param offset long
+   * @param count long
+   * @exception IOException
+   */
+  protected final void flushWriteBuffer(NFSSrvSession sess, UnstableWriteBuffer writeBuf, long offset, long count)
+    throws IOException {
 
-				packPostOpAttr(sess, finfo, shareId, rpc);
+    //	Switch to the user context of the session that wrote the data
 
-				//	Pack the filesystem options
+    NFSSrvSession wrSess = (NFSSrvSession) writeBuf.getWriterSession();
+    boolean setUser = sess != null && wrSess != null && wrSess != sess;
 
-				rpc.packInt(32767);
-				rpc.packInt(255);
+    try {
 
-				rpc.packInt(Rpc.True);		//	truncate over size names
-				rpc.packInt(Rpc.True);		//	chown restricted
-				rpc.packInt(Rpc.True);		//	case insensitive
-				rpc.packInt(Rpc.True);		//	case preserving
+      if ( setUser)
+        getRpcAuthenticator().setCurrentUser( wrSess, wrSess.getClientInformation());
 
-				//	DEBUG
+      //	Write the buffered data to the file
 
-				if (Debug.EnableInfo && hasDebugFlag(DBG_SEARCH))
-					sess.debugPrintln("Pathconf path=" + path + ", finfo=" + (finfo != null ? finfo.toString() : "<null>"));
-			}
-			else {
+      int wrlen = writeBuf.flush(offset, count);
 
-				//	File does not exist
+      //	Release the write buffer if it is now empty
 
-				errorSts = NFS.StsNoEnt;
-			}
-		}
-		catch (BadHandleException ex) {
-		  errorSts = NFS.StsBadHandle;
-		}
-		catch (StaleHandleException ex) {
-		  errorSts = NFS.StsStale;
-		}
-		catch (AccessDeniedException ex) {
-		  errorSts = NFS.StsAccess;
-		}
-		catch (Exception ex) {
-		  errorSts = NFS.StsServerFault;
+      m_writeCache.releaseWriteBuffer(writeBuf);
 
-			//	DEBUG
+      //	DEBUG
 
-			if ( Debug.EnableError && hasDebugFlag(DBG_ERROR))
-				sess.debugPrintln("Pathconf Exception: " + ex.toString());
-		}
+      if (Debug.EnableInfo && hasDebugFlag(DBG_FILEIO) && wrlen > 0)
+        Debug.println("[NFS] Flushed unstable writes " + writeBuf + ", wrlen=" + wrlen);
+    }
+    catch (IOException ex) {
 
-		//	Check if an error is being returned
+      //	Change the write verifier, the data from earlier unstable writes has been lost
 
-		if ( errorSts != NFS.StsSuccess) {
+      changeWriteVerifier();
+      throw ex;
+    }
+    finally {
 
-		  //	Pack the error response
+      //	Restore the user context of the current request
 
-		  rpc.buildErrorResponse(errorSts);
-      packPostOpAttr(sess, null, shareId, rpc);
+      if ( setUser)
+        getRpcAuthenticator().setCurrentUser( sess, sess.getClientInformation());
+    }
+  }
 
-			//	DEBUG
+  /**
+   * Check if the server wide limit on buffered unstable writes has been exceeded, if so then flush write buffers
+   * until the total is back within the limit. The caller must not be synchronized on a network file.
+   *
+   * @param sess NFSSrvSession
+   */
+  protected final void checkUnstableWriteLimit(NFSSrvSession sess) {
 
-			if ( Debug.EnableInfo && hasDebugFlag(DBG_ERROR))
-				sess.debugPrintln("Pathconf error=" + NFS.getStatusString(errorSts));
-		}
+    //	Check if the limit has been exceeded
 
-		//	Return the path information response
+    if ( m_writeCache == null || m_writeCache.isOverLimit() == false)
+      return;
 
-		rpc.setLength();
-		return rpc;
+    //	Flush write buffers until the total is within the limit
+
+    Iterator<UnstableWriteBuffer> iter = m_writeCache.getDirtyBuffers().iterator();
+
+    while ( m_writeCache.isOverLimit() && iter.hasNext()) {
+      try {
+        flushWriteBuffer(sess, iter.next(), 0L, 0L);
+      }
+      catch (IOException ex) {
+
+        //	DEBUG
+
+        if ( Debug.EnableError && hasDebugFlag(DBG_ERROR))
+          Debug.println("[NFS] Error flushing unstable writes, " + ex.getMessage());
+      }
+    }
   }
 
   /**
-   * Commit request
+   * Return the file information for an open file, using the cached attributes if available. The file
+   * information is loaded from the filesystem, and cached, if there are no valid cached attributes.
    *
    * @param sess NFSSrvSession
-   * @param rpc RpcPacket
-   * @return RpcPacket
+   * @param conn TreeConnection
+   * @param disk DiskInterface
+   * @param netFile NetworkFile
+   * @param path String
+   * @return FileInfo
+   * @exception IOException
    */
-  private final RpcPacket procCommit(NFSSrvSession sess, RpcPacket rpc) {
+  protected final FileInfo getOpenFileInformation(NFSSrvSession sess, TreeConnection conn, DiskInterface disk, NetworkFile netFile,
+      String path)
+    throws IOException {
 
-    //	DEBUG
+    //	Check for cached attributes
 
-    if (Debug.EnableInfo && hasDebugFlag(DBG_FILEIO))
-      sess.debugPrintln("Commit request from " + rpc.getClientDetails());
+    NetworkFileCache fileCache = sess.getFileCache();
+    FileInfo finfo = fileCache.getFileAttributes(netFile.getFileId());
 
-    //	Pack the response
+    if ( finfo == null) {
 
-    rpc.buildResponseHeader();
+      //	Get the file information from the filesystem, and cache the attributes
 
-    rpc.packInt(NFS.StsSuccess);
-    packWccData(rpc, null);
-    packPostOpAttr(sess, null, 0, rpc);
+      finfo = disk.getFileInformation(sess, conn, path);
+      if ( finfo != null)
+        fileCache.setFileAttributes(netFile.getFileId(), finfo);
+    }
 
-    //	Pack the write verifier, indicates if the server has been restarted since the file write requests
+    //	Return the file information
 
-    rpc.packLong(m_writeVerifier);
+    return finfo;
+  }
 
-    //	Return the response
+  /**
+   * Return the size of an open file, including any buffered unstable writes
+   *
+   * @param conn TreeConnection
+   * @param netFile NetworkFile
+   * @return long
+   */
+  protected final long getOpenFileSize(TreeConnection conn, NetworkFile netFile) {
+    UnstableWriteBuffer writeBuf = m_writeCache != null ? m_writeCache.findWriteBuffer(conn, netFile.getFileId()) : null;
+    if ( writeBuf != null)
+      return writeBuf.getFileSize( netFile.getFileSize());
+    return netFile.getFileSize();
+  }
 
-    rpc.setLength();
-    return rpc;
+  /**
+   * Return the server wide unstable write cache, or null if unstable writes are not buffered
+   *
+   * @return UnstableWriteCache
+   */
+  protected final UnstableWriteCache getUnstableWriteCache() {
+    return m_writeCache;
+  }
+
+  /**
+   * Change the write verifier, clients will resend any data that has not been committed
+   */
+  protected final synchronized void changeWriteVerifier() {
+    m_writeVerifier = Math.max( System.currentTimeMillis(), m_writeVerifier + 1);
+
+    //	DEBUG
+
+    if ( Debug.EnableError && hasDebugFlag(DBG_ERROR))
+      Debug.println("[NFS] Write verifier changed, uncommitted writes will be resent");
+  }
+
+  /**
+   * Return the current write verifier
+   *
+   * @return long
+   */
+  protected final long getWriteVerifier() {
+    return m_writeVerifier;
+  }
+
+  /**
+   * Return the port mappings for the NFS server, NFSv4 is only registered for TCP
+   *
+   * @return PortMapping[]
+   */
+  private final PortMapping[] getPortMappings() {
+    PortMapping[] mappings = new PortMapping[m_nfs4 != null ? 3 : 2];
+    mappings[0] = new PortMapping(NFS.ProgramId, NFS.VersionId, Rpc.UDP, m_udpHandler.getPort());
+    mappings[1] = new PortMapping(NFS.ProgramId, NFS.VersionId, Rpc.TCP, m_tcpHandler.getPort());
+
+    if ( m_nfs4 != null)
+      mappings[2] = new PortMapping(NFS4.ProgramId, NFS4.VersionId, Rpc.TCP, m_tcpHandler.getPort());
+
+    return mappings;
   }
 
   /**
@@ -4816,12 +5858,12 @@ public class NFSServer extends RpcNetworkServer implements RpcProcessor {
 
     int fileId = getFileIdForHandle(handle);
 
-    //	Get the per session network file cache, use this to synchronize
+    //	Get the per session network file cache, use the per file id lock to synchronize opening the file
 
     NetworkFileCache fileCache = sess.getFileCache();
     NetworkFile file = null;
 
-    synchronized (fileCache) {
+    synchronized (fileCache.getFileLock(fileId)) {
 
       //  Check the file cache, file may already be open
 
@@ -4896,21 +5938,9 @@ public class NFSServer extends RpcNetworkServer implements RpcProcessor {
 
     int fileId = getFileIdForHandle(handle);
 
-    //  Get the per session network file cache, use this to synchronize
-
-    NetworkFileCache fileCache = sess.getFileCache();
-    NetworkFile file = null;
-
-    synchronized (fileCache) {
-
-      //    Check the file cache, file may already be open
-
-      file = fileCache.findFile(fileId, sess);
-    }
-
-    //  Return the network file
+    //  Check the per session network file cache, file may already be open
 
-    return file;
+    return sess.getFileCache().findFile(fileId, sess);
   }
 
   /**
@@ -5273,9 +6303,22 @@ public class NFSServer extends RpcNetworkServer implements RpcProcessor {
 
           // Add the new share details
 
-          m_shareDetails.addDetails(new ShareDetails(share.getName(), fileIdSupport));
+          m_shareDetails.addDetails(new ShareDetails(share.getName(), fileIdSupport, openFileIdIndex(share.getName())));
           m_connections.addConnection(new TreeConnection(share));
 
+          //  Mark directory snapshots as stale when files are changed by other protocols, if the filesystem
+          //  has a change notification handler
+
+          if ( m_changeListeners != null && share.getContext() instanceof DiskDeviceContext) {
+            DiskDeviceContext diskCtx = (DiskDeviceContext) share.getContext();
+
+            if ( diskCtx.hasChangeHandler()) {
+              SnapshotChangeListener listener = new SnapshotChangeListener(share.getName().hashCode(), diskCtx.getChangeHandler());
+              diskCtx.getChangeHandler().addChangeListener(listener);
+              m_changeListeners.add(listener);
+            }
+          }
+
           // Update the new share count
 
           newShares++;
@@ -5288,6 +6331,65 @@ public class NFSServer extends RpcNetworkServer implements RpcProcessor {
     return newShares;
   }
 
+  /**
+   * Open the persistent file id index for a share, if enabled. Returns null if the index is not enabled or
+   * cannot be opened.
+   *
+   * @param shareName String
+   * @return FileIdIndex
+   */
+  private final FileIdIndex openFileIdIndex(String shareName) {
+
+    //  Check if the persistent file id index is enabled
+
+    String indexDir = getNFSConfiguration().getFileIdIndexDirectory();
+    if ( indexDir == null)
+      return null;
+
+    //  Build the index file name from the share name. Characters that may not be valid in a file name are
+    //  escaped as '_' followed by the four digit hex character code, so each share has a unique file name.
+
+    StringBuilder fname = new StringBuilder(shareName.length() * 2 + FileIdIndex.FileExtension.length());
+
+    for ( int i = 0; i < shareName.length(); i++) {
+      char ch = shareName.charAt(i);
+
+      if (( ch >= 'a' && ch <= 'z') || ( ch >= 'A' && ch <= 'Z') || ( ch >= '0' && ch <= '9') || ch == '-')
+        fname.append(ch);
+      else {
+        String hex = Integer.toHexString(ch);
+
+        fname.append('_');
+        for ( int j = hex.length(); j < 4; j++)
+          fname.append('0');
+        fname.append(hex);
+      }
+    }
+    fname.append(FileIdIndex.FileExtension);
+
+    //  Open the index
+
+    try {
+      FileIdIndex idIndex = new FileIdIndex(new File(indexDir, fname.toString()));
+
+      //  DEBUG
+
+      if ( Debug.EnableInfo && hasDebugFlag(DBG_INFO))
+        Debug.println("[NFS] Opened file id index " + idIndex);
+
+      return idIndex;
+    }
+    catch (IOException ex) {
+
+      //  DEBUG
+
+      if ( Debug.EnableError && hasDebugFlag(DBG_ERROR))
+        Debug.println("[NFS] Failed to open file id index for share " + shareName + ", " + ex.getMessage());
+    }
+
+    return null;
+  }
+
   /**
    * Return the next session id
    *
@@ -5328,4 +6430,114 @@ public class NFSServer extends RpcNetworkServer implements RpcProcessor {
   protected final void fireSessionClosed(SrvSession sess) {
     fireSessionClosedEvent(sess);
   }
+
+  /**
+   * Snapshot Change Listener Class
+   *
+   * <p>Marks the directory snapshots of a share as stale when a file or folder is changed, including changes
+   * made by the SMB and FTP servers.
+   */
+  private class SnapshotChangeListener implements NotifyChangeListener {
+
+    //  Share id and the change notification handler the listener is registered with
+
+    private int m_shareId;
+    private NotifyChangeHandler m_changeHandler;
+
+    /**
+     * Class constructor
+     *
+     * @param shareId int
+     * @param changeHandler NotifyChangeHandler
+     */
+    public SnapshotChangeListener(int shareId, NotifyChangeHandler changeHandler) {
+      m_shareId = shareId;
+      m_changeHandler = changeHandler;
+    }
+
+    /**
+     * Return the change notification handler
+     *
+     * @return NotifyChangeHandler
+     */
+    public final NotifyChangeHandler getChangeHandler() {
+      return m_changeHandler;
+    }
+
+    /**
+     * File/directory changed
+     *
+     * @param filter int
+     * @param action int
+     * @param path String
+     * @param isdir boolean
+     */
+    public void pathChanged(int filter, int action, String path, boolean isdir) {
+
+      //  Access time changes do not change the snapshot attributes
+
+      if ( path == null || filter == NotifyChange.LastAccess)
+        return;
+
+      //  Mark the snapshots of the parent folder as stale, and the folder itself if a folder has changed
+
+      String dirPath = path;
+      if ( dirPath.startsWith(FileName.DOS_SEPERATOR_STR) == false)
+        dirPath = FileName.DOS_SEPERATOR_STR + dirPath;
+
+      int pos = dirPath.lastIndexOf(FileName.DOS_SEPERATOR);
+      invalidateDirectorySnapshot(m_shareId, pos > 0 ? dirPath.substring(0, pos) : FileName.DOS_SEPERATOR_STR);
+
+      if ( isdir)
+        invalidateDirectorySnapshot(m_shareId, dirPath);
+    }
+  }
+
+  /**
+   * Unstable Write File Listener Class
+   *
+   * <p>Writes any buffered unstable writes for a file when the file is opened by the SMB or FTP servers, so that
+   * other protocols see the data written by NFS clients.
+   */
+  private class UnstableWriteFileListener implements FileListener {
+
+    /**
+     * File has been closed
+     *
+     * @param sess SrvSession
+     * @param file NetworkFile
+     */
+    public void fileClosed(SrvSession sess, NetworkFile file) {
+    }
+
+    /**
+     * File has been opened
+     *
+     * @param sess SrvSession
+     * @param file NetworkFile
+     */
+    public void fileOpened(SrvSession sess, NetworkFile file) {
+
+      //  Ignore NFS sessions, and files without a path
+
+      if ( sess instanceof NFSSrvSession || file.getFullName() == null)
+        return;
+
+      //  Write any buffered data for the file, the buffers are matched by path as the share is not known.
+      //  The flush runs in the user context of the other server's session.
+
+      for ( UnstableWriteBuffer writeBuf : m_writeCache.findWriteBuffers(file.getFullName())) {
+        try {
+          flushWriteBuffer(null, writeBuf, 0L, 0L);
+        }
+        catch (IOException ex) {
+
+          //  DEBUG
+
+          if ( Debug.EnableError && hasDebugFlag(DBG_ERROR))
+            Debug.println("[NFS] Error flushing unstable writes for " + file.getFullName() + ", " + ex.getMessage());
+        }
+      }
+    }
+  }
 }
@@ -149,6 +149,9 @@ public class NFSSrvSession extends SrvSession {
       if ( config.getNFSFileCacheCloseTimer() > 0)
         m_fileCache.setCloseTimer( config.getNFSFileCacheCloseTimer());
 
+      if ( config.getNFSFileCacheAttributeTimer() >= 0)
+        m_fileCache.setAttributeTimer( config.getNFSFileCacheAttributeTimer());
+
       m_fileCache.setRpcAuthenticator( config.getRpcAuthenticator());
     }
 
@@ -317,7 +320,10 @@ public class NFSSrvSession extends SrvSession {
 		while (idx < m_search.length && m_search[idx] != null)
 			idx++;
 
-		//  Check if we found a free slot
+		//  Check if we found a free slot, the last search id is reserved for directory snapshot cookies
+
+		if ( idx == NFSServer.COOKIE_SNAPSHOT_ID)
+			return -1;
 
 		if (idx == m_search.length) {
 
@@ -20,16 +20,14 @@
 package org.alfresco.jlan.oncrpc.nfs;
 
 import java.io.IOException;
-import java.util.Enumeration;
-import java.util.Hashtable;
 
 import org.alfresco.jlan.debug.Debug;
 import org.alfresco.jlan.oncrpc.RpcAuthenticator;
 import org.alfresco.jlan.server.SrvSession;
 import org.alfresco.jlan.server.filesys.DiskInterface;
+import org.alfresco.jlan.server.filesys.FileInfo;
 import org.alfresco.jlan.server.filesys.FileStatus;
 import org.alfresco.jlan.server.filesys.NetworkFile;
-import org.alfresco.jlan.server.filesys.TransactionalFilesystemInterface;
 import org.alfresco.jlan.server.filesys.TreeConnection;
 
 /**
@@ -38,6 +36,12 @@ import org.alfresco.jlan.server.filesys.TreeConnection;
  * <p>
  * Caches the network files that are currently being accessed by the NFS server.
  *
+ * <p>
+ * The cache is split into a number of stripes, each stripe is a table keyed by the primitive file id with its
+ * own lock, so lookups from different request threads do not contend on a single lock. File expiry uses a timer
+ * wheel, a file lookup only updates the file timeout and the expiry thread checks the timeout when the wheel slot
+ * for the file is reached. Files are flushed and closed by the expiry thread without holding the cache locks.
+ *
  * @author gkspencer
  */
 public class NetworkFileCache {
@@ -47,9 +51,32 @@ public class NetworkFileCache {
 	public static final long DefaultFileTimeout = 5000L; // 5 seconds
 	public static final long ClosedFileTimeout = 30000L; // 30 seconds
 
-	// Network file cache, key is the file id
+	// Default cached file attributes timeout, similar to the minimum NFS client attribute cache timeout
+
+	public static final long DefaultAttributeTimeout = 3000L; // 3 seconds
+
+	// Number of cache stripes, and file open locks, must be a power of 2
+
+	private static final int StripeCount = 16;
+	private static final int FileLockCount = 64;
+
+	// Timer wheel tick interval and number of slots, must be a power of 2
+
+	private static final long WheelTick = 500L;
+	private static final int WheelSlots = 128;
 
-	private Hashtable<Integer, FileEntry> m_fileCache;
+	// Network file cache stripes, key is the file id
+
+	private FileTable[] m_stripes;
+
+	// Locks used to serialize opening a file
+
+	private Object[] m_fileLocks;
+
+	// Timer wheel slots, each slot is a list of file entries linked via the entry, and the last tick processed
+
+	private FileEntry[] m_wheel;
+	private long m_wheelTick;
 
 	// File expiry thread
 
@@ -59,6 +86,7 @@ public class NetworkFileCache {
 
 	private long m_fileIOTmo = DefaultFileTimeout;
 	private long m_fileCloseTmo = ClosedFileTimeout;
+	private long m_attrTmo = DefaultAttributeTimeout;
 
 	// NFS authenticator
 
@@ -73,10 +101,14 @@ public class NetworkFileCache {
 	 */
 	protected class FileEntry {
 
+		// File id
+
+		private int m_fileId;
+
 		// Network file and closed flag
 
 		private NetworkFile m_file;
-		private boolean m_closed;
+		private volatile boolean m_closed;
 
 		// Disk share connection
 
@@ -84,12 +116,25 @@ public class NetworkFileCache {
 
 		// File timeout
 
-		private long m_timeout;
+		private volatile long m_timeout;
 
 		// Session that last accessed the file
 
 		private NFSSrvSession m_sess;
 
+		// Cached file attributes, and the attribute expiry time
+
+		private FileInfo m_attrInfo;
+		private long m_attrExpire;
+
+		// Entry has been removed from the cache
+
+		private volatile boolean m_removed;
+
+		// Next entry in the timer wheel slot
+
+		private FileEntry m_wheelNext;
+
 		/**
 		 * Class constructor
 		 *
@@ -98,6 +143,7 @@ public class NetworkFileCache {
 		 * @param sess NFSSrvSession
 		 */
 		public FileEntry(NetworkFile file, TreeConnection conn, NFSSrvSession sess) {
+			m_fileId = file.getFileId();
 			m_file = file;
 			m_conn = conn;
 			m_sess = sess;
@@ -105,6 +151,15 @@ public class NetworkFileCache {
 			updateTimeout();
 		}
 
+		/**
+		 * Return the file id
+		 *
+		 * @return int
+		 */
+		public final int getFileId() {
+			return m_fileId;
+		}
+
 		/**
 		 * Return the file timeout
 		 *
@@ -174,10 +229,26 @@ public class NetworkFileCache {
 			return m_closed;
 		}
 
+		/**
+		 * Check if the entry has been removed from the cache
+		 *
+		 * @return boolean
+		 */
+		public final boolean isRemoved() {
+			return m_removed;
+		}
+
+		/**
+		 * Mark the entry as removed from the cache
+		 */
+		protected final void markAsRemoved() {
+			m_removed = true;
+		}
+
 		/**
 		 * Close the file
 		 */
-		public final void closeFile() {
+		public final synchronized void closeFile() {
 			if (m_file != null) {
 				try {
 					m_file.closeFile();
@@ -190,8 +261,8 @@ public class NetworkFileCache {
 		/**
 		 * Open the network file
 		 */
-		public final void openFile() {
-			if (m_file != null) {
+		public final synchronized void openFile() {
+			if (m_file != null && m_closed) {
 				try {
 					m_file.openFile(false);
 					m_closed = false;
@@ -207,222 +278,433 @@ public class NetworkFileCache {
 		    if ( m_file != null)
 		        m_closed = true;
 		}
-	};
 
-	/**
-	 * File Expiry Thread Class
-	 */
-	protected class FileExpiry implements Runnable {
+		/**
+		 * Return a copy of the cached file attributes, or null if there are no cached attributes or the
+		 * attributes have expired
+		 *
+		 * @return FileInfo
+		 */
+		public final synchronized FileInfo getFileAttributes() {
 
-		// Expiry thread
+			// Check if the cached attributes are valid
 
-		private Thread m_thread;
+			if ( m_attrInfo == null)
+				return null;
 
-		// Shutdown flag
+			if ( m_attrExpire < System.currentTimeMillis()) {
+				m_attrInfo = null;
+				return null;
+			}
+
+			// Return a copy of the attributes, the caller may update the details
+
+			FileInfo finfo = new FileInfo();
+			finfo.copyFrom( m_attrInfo);
 
-		private boolean m_shutdown;
+			return finfo;
+		}
 
 		/**
-		 * Class Constructor
+		 * Set the cached file attributes
 		 *
-		 * @param name
-		 *            String
+		 * @param finfo FileInfo
 		 */
-		public FileExpiry(String name) {
-
-			// Create and start the file expiry thread
+		public final synchronized void setFileAttributes(FileInfo finfo) {
+			if ( finfo != null) {
+				m_attrInfo = new FileInfo();
+				m_attrInfo.copyFrom( finfo);
 
-			m_thread = new Thread(this);
-			m_thread.setDaemon(true);
-			m_thread.setName("NFSFileExpiry_" + name);
-			m_thread.start();
+				m_attrExpire = System.currentTimeMillis() + m_attrTmo;
+			}
+			else
+				m_attrInfo = null;
 		}
 
 		/**
-		 * Main thread method
+		 * Write any unstable writes buffered via this file to the file. If the write fails the write verifier
+		 * is changed so that the client resends the data.
 		 */
-		public void run() {
+		public final void flushWrites() {
 
-			// Loop until shutdown
+			// Check if there is any buffered data, from any session
 
-			while (m_shutdown == false) {
+			UnstableWriteCache writeCache = m_sess.getNFSServer().getUnstableWriteCache();
+			if ( writeCache == null || m_file == null)
+				return;
 
-				// Sleep for a while
+			UnstableWriteBuffer writeBuf = writeCache.findWriteBuffer( m_conn, m_fileId);
+			if ( writeBuf == null)
+				return;
 
+			synchronized ( m_file) {
 				try {
-					Thread.sleep(m_fileIOTmo / 2);
-				} catch (InterruptedException ex) {
+
+					// Write the buffered data to the file, if this file was used for the last write. Otherwise the
+					// data is written when the other open file is flushed or closed.
+
+					int wrlen = 0;
+
+					synchronized ( writeBuf) {
+						if ( writeBuf.getWriterFile() == m_file) {
+							DiskInterface disk = (DiskInterface) m_conn.getInterface();
+							wrlen = writeBuf.flush( disk, m_sess, m_conn, m_file);
+						}
+					}
+
+					// Release the write buffer if it is empty
+
+					writeCache.releaseWriteBuffer( writeBuf);
+
+					// DEBUG
+
+					if (Debug.EnableInfo && hasDebug() && wrlen > 0)
+						Debug.println("NFSFileExpiry: Flushed unstable writes file=" + m_file.getFullName() + ", len=" + wrlen);
 				}
+				catch ( Exception ex) {
 
-				// Get the current system time
+					// Change the write verifier, the client must resend any uncommitted data
 
-				long timeNow = System.currentTimeMillis();
+					m_sess.getNFSServer().changeWriteVerifier();
 
-				// Check for expired files
+					// DEBUG
 
-				synchronized (m_fileCache) {
+					if ( Debug.EnableError && hasDebug()) {
+						Debug.println("Error flushing unstable writes, file=" + m_file.getFullName() + ", ex=" + ex.getMessage());
+						Debug.println(ex);
+					}
+				}
+			}
+		}
 
-					// Enumerate the cache entries
+		/**
+		 * Return the file entry details as a string
+		 *
+		 * @return String
+		 */
+		public String toString() {
+			StringBuilder str = new StringBuilder();
+
+			str.append("[");
+			str.append(m_file != null ? m_file.getFullName() : "<null>");
+			str.append(",fid=");
+			str.append(m_fileId);
+			str.append(",tmo=");
+			str.append(m_timeout);
+			if ( m_closed)
+				str.append(",Closed");
+			str.append("]");
+
+			return str.toString();
+		}
+	};
 
-					Enumeration<Integer> enm = m_fileCache.keys();
+	/**
+	 * File Table Class
+	 *
+	 * <p>
+	 * Open addressing hash table of file entries keyed by the file id, one table is used for each cache stripe.
+	 */
+	private static final class FileTable {
 
-					while (enm.hasMoreElements()) {
+		// Initial table size, must be a power of 2
 
-						// Get the current key
+		private static final int InitialSize = 16;
 
-						Integer fileId = enm.nextElement();
+		// File ids and file entries
 
-						// Get the file entry and check if it has expired
+		private int[] m_keys;
+		private FileEntry[] m_entries;
 
-						FileEntry fentry = m_fileCache.get(fileId);
+		private int m_count;
 
-						if (fentry != null && fentry.getTimeout() < timeNow) {
+		/**
+		 * Default constructor
+		 */
+		FileTable() {
+			m_keys = new int[InitialSize];
+			m_entries = new FileEntry[InitialSize];
+		}
 
-							// Get the network file
+		/**
+		 * Return the number of entries
+		 *
+		 * @return int
+		 */
+		final synchronized int numberOfEntries() {
+			return m_count;
+		}
 
-							NetworkFile netFile = fentry.getFile();
+		/**
+		 * Find a file entry
+		 *
+		 * @param id int
+		 * @return FileEntry
+		 */
+		final synchronized FileEntry get(int id) {
+			int idx = indexOf(id);
+			return idx != -1 ? m_entries[idx] : null;
+		}
 
-							// Check if the file has an I/O request pending, if so then reset the file expiry time
-							// for the file
+		/**
+		 * Find a file entry and update the file timeout
+		 *
+		 * @param id int
+		 * @return FileEntry
+		 */
+		final synchronized FileEntry findAndUpdate(int id) {
+			int idx = indexOf(id);
+			if ( idx == -1)
+				return null;
 
-							if (netFile.hasIOPending()) {
+			FileEntry fentry = m_entries[idx];
+			fentry.updateTimeout();
 
-								// Update the expiry time for the file entry
+			return fentry;
+		}
 
-								fentry.updateTimeout();
+		/**
+		 * Add a file entry, returns the entry that was replaced, or null
+		 *
+		 * @param fentry FileEntry
+		 * @return FileEntry
+		 */
+		final synchronized FileEntry put(FileEntry fentry) {
 
-								// DEBUG
+			// Check if the file id is already in the table
 
-								if (Debug.EnableInfo && hasDebug())
-									Debug.println("NFSFileExpiry: I/O pending file="	+ fentry.getFile().getFullName() + ", fid=" + fileId);
-							}
-							else {
+			int id = fentry.getFileId();
+			int idx = indexOf(id);
 
-								// Make sure there is no active transaction
+			if ( idx != -1) {
+				FileEntry oldEntry = m_entries[idx];
+				m_entries[idx] = fentry;
+				return oldEntry;
+			}
 
-								if ( fentry.getSession().hasTransaction())
-									fentry.getSession().endTransaction();
+			// Grow the table if more than half full
 
-								// Check if the network file is closed, if not  then close the file to release the file
-								// handle but keep the file entry in the file cache for a while as the file may be re-opened
+			if (( m_count + 1) * 2 > m_keys.length)
+				resize(m_keys.length * 2);
 
-								if (fentry.isClosed() == false && netFile != null) {
+			int mask = m_keys.length - 1;
+			idx = hashFileId(id) & mask;
 
-									// We need to do the close in the context of the user that opened the file
+			while ( m_entries[idx] != null)
+				idx = (idx + 1) & mask;
 
-									try {
+			m_keys[idx] = id;
+			m_entries[idx] = fentry;
+			m_count++;
 
-										// Set the the current user context
+			return null;
+		}
 
-										m_authenticator.setCurrentUser( fentry.getSession(), fentry.getSession().getNFSClientInformation());
+		/**
+		 * Remove a file entry, returns the removed entry, or null
+		 *
+		 * @param id int
+		 * @return FileEntry
+		 */
+		final synchronized FileEntry remove(int id) {
+			int idx = indexOf(id);
+			if ( idx == -1)
+				return null;
 
-										// Check if the filesystem is transactional, in this case only mark the file as closed
+			FileEntry fentry = m_entries[idx];
+			removeAt(idx);
 
-										if ( netFile.allowsOpenCloseViaNetworkFile() == false) {
+			return fentry;
+		}
 
-										    // Mark the file as closed, wait for second stage expiry to actually close the file
+		/**
+		 * Remove a file entry if it has not been accessed since the specified expiry time
+		 *
+		 * @param fentry FileEntry
+		 * @param expireTime long
+		 * @return boolean
+		 */
+		final synchronized boolean removeIfExpired(FileEntry fentry, long expireTime) {
+			int idx = indexOf(fentry.getFileId());
 
-										    fentry.markAsClosed();
+			if ( idx == -1 || m_entries[idx] != fentry || fentry.getTimeout() >= expireTime)
+				return false;
 
-										    // DEBUG
+			removeAt(idx);
+			return true;
+		}
 
-                                            if (Debug.EnableInfo && hasDebug())
-                                                Debug.println("NFSFileExpiry: Marked as closed file=" + fentry.getFile().getFullName() + ", fid=" + fileId + " (cached)");
-										}
-										else {
+		/**
+		 * Remove all entries, returns the removed entries
+		 *
+		 * @return FileEntry[]
+		 */
+		final synchronized FileEntry[] removeAll() {
+			FileEntry[] entries = getEntries();
 
-    										// Close the network file
+			m_keys = new int[InitialSize];
+			m_entries = new FileEntry[InitialSize];
+			m_count = 0;
 
-    										fentry.closeFile();
+			return entries;
+		}
 
-    										// Update the file entry timeout to keep the file in the cache for a while
+		/**
+		 * Return the current entries
+		 *
+		 * @return FileEntry[]
+		 */
+		final synchronized FileEntry[] getEntries() {
+			FileEntry[] entries = new FileEntry[m_count];
+			int pos = 0;
 
-    										fentry.updateTimeout(System.currentTimeMillis() + m_fileCloseTmo);
+			for ( int i = 0; i < m_entries.length; i++) {
+				if ( m_entries[i] != null)
+					entries[pos++] = m_entries[i];
+			}
 
-    										// DEBUG
+			return entries;
+		}
 
-    										if (Debug.EnableInfo && hasDebug())
-    											Debug.println("NFSFileExpiry: Closed file="	+ fentry.getFile().getFullName() + ", fid="	+ fileId + " (cached)");
-										}
+		/**
+		 * Return the table index for a file id, or -1 if not found
+		 *
+		 * @param id int
+		 * @return int
+		 */
+		private final int indexOf(int id) {
+			int mask = m_keys.length - 1;
+			int idx = hashFileId(id) & mask;
+
+			while ( m_entries[idx] != null) {
+				if ( m_keys[idx] == id)
+					return idx;
+				idx = (idx + 1) & mask;
+			}
 
-										// Clear the user context, flush any active transaction
+			return -1;
+		}
 
-										if ( fentry.getSession().hasTransaction())
-											fentry.getSession().endTransaction();
+		/**
+		 * Remove the entry at the specified index, shift following entries back so that lookups do not need
+		 * deleted markers
+		 *
+		 * @param idx int
+		 */
+		private final void removeAt(int idx) {
+			int mask = m_keys.length - 1;
 
-										m_authenticator.setCurrentUser( fentry.getSession(), null);
-									}
-									catch (Exception ex) {
+			m_entries[idx] = null;
+			m_count--;
 
-										// DEBUG
+			int nextIdx = (idx + 1) & mask;
 
-										if ( Debug.EnableInfo && hasDebug()) {
-											Debug.println("Error closing file, fentry=" + fentry + ", ex=" + ex.getMessage());
-											Debug.println(ex);
-										}
-									}
-								}
-								else {
+			while ( m_entries[nextIdx] != null) {
 
-									// File entry has expired, remove it from the cache
+				// Move the entry into the empty slot if the empty slot is between its home slot and its
+				// current slot
 
-									m_fileCache.remove(fileId);
+				int homeIdx = hashFileId(m_keys[nextIdx]) & mask;
 
-									// Close the file via the disk interface
+				if ((( nextIdx - homeIdx) & mask) >= (( nextIdx - idx) & mask)) {
+					m_keys[idx] = m_keys[nextIdx];
+					m_entries[idx] = m_entries[nextIdx];
+					m_entries[nextIdx] = null;
 
-									try {
+					idx = nextIdx;
+				}
 
-										// Set the the current user context
+				nextIdx = (nextIdx + 1) & mask;
+			}
+		}
 
-										m_authenticator.setCurrentUser( fentry.getSession(), fentry.getSession().getNFSClientInformation());
+		/**
+		 * Resize the table
+		 *
+		 * @param newSize int
+		 */
+		private final void resize(int newSize) {
+			int[] oldKeys = m_keys;
+			FileEntry[] oldEntries = m_entries;
 
-										// Get the disk interface
+			m_keys = new int[newSize];
+			m_entries = new FileEntry[newSize];
 
-										DiskInterface disk = (DiskInterface) fentry.getConnection().getInterface();
+			int mask = newSize - 1;
 
-										// Close the file
+			for ( int i = 0; i < oldKeys.length; i++) {
+				if ( oldEntries[i] != null) {
+					int idx = hashFileId(oldKeys[i]) & mask;
 
-										if ( disk.fileExists( fentry.getSession(), fentry.getConnection(), netFile.getFullName()) != FileStatus.NotExist) {
+					while ( m_entries[idx] != null)
+						idx = (idx + 1) & mask;
 
-										    // Check if the file has already been closed
+					m_keys[idx] = oldKeys[i];
+					m_entries[idx] = oldEntries[i];
+				}
+			}
+		}
+	}
 
-										    if ( netFile.isClosed() == false) {
+	/**
+	 * File Expiry Thread Class
+	 */
+	protected class FileExpiry implements Runnable {
 
-										        // Close the file
+		// Expiry thread
+
+		private Thread m_thread;
 
-    											disk.closeFile(fentry.getSession(),	fentry.getConnection(),	netFile);
+		// Shutdown flag
 
-    											// DEBUG
+		private volatile boolean m_shutdown;
 
-    											if (Debug.EnableInfo && hasDebug())
-    												Debug.println("NFSFileExpiry: Closed file="	+ fentry.getFile().getFullName() + ", fid="	+ fileId + " (removed)");
-										    }
-										    else if ( Debug.EnableInfo && hasDebug())
-										        Debug.println("NFSFileExpiry: File already closed, file=" + fentry.getFile().getFullName() + ", fid=" + fileId);
-										}
-										else if ( Debug.EnableInfo && hasDebug())
-											Debug.println("NFSFileExpiry: File deleted before close, " + netFile.getFullName());
+		/**
+		 * Class Constructor
+		 *
+		 * @param name
+		 *            String
+		 */
+		public FileExpiry(String name) {
 
-										// Clear the user context, flush any active transaction
+			// Create and start the file expiry thread
 
-										if ( fentry.getSession().hasTransaction())
-											fentry.getSession().endTransaction();
+			m_thread = new Thread(this);
+			m_thread.setDaemon(true);
+			m_thread.setName("NFSFileExpiry_" + name);
+			m_thread.start();
+		}
 
-										m_authenticator.setCurrentUser( fentry.getSession(), null);
-									}
-									catch (Exception ex) {
+		/**
+		 * Main thread method
+		 */
+		public void run() {
 
-										// DEBUG
+			// Loop until shutdown
 
-										if ( Debug.EnableInfo && hasDebug()) {
-											Debug.println("Error closing file, fentry=" + fentry + ", ex=" + ex.getMessage());
-											Debug.println(ex);
-										}
-									}
-								}
-							}
-						}
-					}
+			while (m_shutdown == false) {
+
+				// Sleep until the next timer wheel tick
+
+				try {
+					Thread.sleep(WheelTick);
+				} catch (InterruptedException ex) {
+				}
+
+				// Process the timer wheel slots that are due
+
+				if ( m_shutdown == false)
+					processWheel(System.currentTimeMillis());
+			}
+
+			// Close all files in the cache
+
+			for ( int i = 0; i < m_stripes.length; i++) {
+				FileEntry[] stripeEntries = m_stripes[i].removeAll();
+
+				for ( int j = 0; j < stripeEntries.length; j++) {
+					stripeEntries[j].markAsRemoved();
+					closeAndRemove(stripeEntries[j]);
 				}
 			}
 		}
@@ -460,9 +742,20 @@ public class NetworkFileCache {
 	 */
 	public NetworkFileCache(String name) {
 
-		// Create the file cache
+		// Create the file cache stripes and file open locks
 
-		m_fileCache = new Hashtable<Integer, FileEntry>();
+		m_stripes = new FileTable[StripeCount];
+		for ( int i = 0; i < StripeCount; i++)
+			m_stripes[i] = new FileTable();
+
+		m_fileLocks = new Object[FileLockCount];
+		for ( int i = 0; i < FileLockCount; i++)
+			m_fileLocks[i] = new Object();
+
+		// Create the timer wheel
+
+		m_wheel = new FileEntry[WheelSlots];
+		m_wheelTick = System.currentTimeMillis() / WheelTick;
 
 		// Start the file expiry thread
 
@@ -485,11 +778,17 @@ public class NetworkFileCache {
 	 * @param conn TreeConnection
 	 * @param sess NFSSrvSession
 	 */
-	public synchronized final void addFile(NetworkFile file,
-			TreeConnection conn, NFSSrvSession sess) {
-		synchronized (m_fileCache) {
-			m_fileCache.put(new Integer(file.getFileId()), new FileEntry(file, conn, sess));
-		}
+	public final void addFile(NetworkFile file, TreeConnection conn, NFSSrvSession sess) {
+
+		// Add the file entry, and schedule the expiry check
+
+		FileEntry fentry = new FileEntry(file, conn, sess);
+		FileEntry oldEntry = getStripe(fentry.getFileId()).put(fentry);
+
+		if ( oldEntry != null)
+			oldEntry.markAsRemoved();
+
+		scheduleExpiry(fentry);
 	}
 
 	/**
@@ -497,15 +796,10 @@ public class NetworkFileCache {
 	 *
 	 * @param id int
 	 */
-	public synchronized final void removeFile(int id) {
-
-		// Create the search key
-
-		Integer fileId = new Integer(id);
-
-		synchronized (m_fileCache) {
-			m_fileCache.remove(fileId);
-		}
+	public final void removeFile(int id) {
+		FileEntry fentry = getStripe(id).remove(id);
+		if ( fentry != null)
+			fentry.markAsRemoved();
 	}
 
 	/**
@@ -517,25 +811,16 @@ public class NetworkFileCache {
 	 *            SrvSession
 	 * @return NetworkFile
 	 */
-	public synchronized final NetworkFile findFile(int id, SrvSession sess) {
+	public final NetworkFile findFile(int id, SrvSession sess) {
 
-		// Create the search key
+		// Find the file entry, and update the file timeout
 
-		Integer fileId = new Integer(id);
-		FileEntry fentry = null;
-
-		synchronized (m_fileCache) {
-			fentry = m_fileCache.get(fileId);
-		}
+		FileEntry fentry = getStripe(id).findAndUpdate(id);
 
 		// Return the file, or null if not found
 
 		if (fentry != null) {
 
-			// Update the file timeout
-
-			fentry.updateTimeout();
-
 			// Check if the file is open
 
 			if (fentry.isClosed())
@@ -551,13 +836,76 @@ public class NetworkFileCache {
 		return null;
 	}
 
+	/**
+	 * Return the lock used to serialize opening a file and adding it to the cache. Files with different file ids
+	 * may share a lock.
+	 *
+	 * @param id int
+	 * @return Object
+	 */
+	public final Object getFileLock(int id) {
+		return m_fileLocks[hashFileId(id) & (FileLockCount - 1)];
+	}
+
+	/**
+	 * Return the cached attributes for an open file, or null if the file is not in the cache or the
+	 * attributes have not been cached or have expired. The returned file information is a copy.
+	 *
+	 * @param id int
+	 * @return FileInfo
+	 */
+	public final FileInfo getFileAttributes(int id) {
+
+		// Check if attribute caching is enabled
+
+		if ( m_attrTmo == 0L)
+			return null;
+
+		// Find the file entry
+
+		FileEntry fentry = getStripe(id).get(id);
+
+		// Return the cached attributes
+
+		if ( fentry != null)
+			return fentry.getFileAttributes();
+		return null;
+	}
+
+	/**
+	 * Update the cached attributes for an open file, the attributes are only cached if the file is
+	 * in the cache
+	 *
+	 * @param id int
+	 * @param finfo FileInfo
+	 */
+	public final void setFileAttributes(int id, FileInfo finfo) {
+
+		// Check if attribute caching is enabled
+
+		if ( m_attrTmo == 0L)
+			return;
+
+		// Find the file entry
+
+		FileEntry fentry = getStripe(id).get(id);
+
+		// Update the cached attributes
+
+		if ( fentry != null)
+			fentry.setFileAttributes( finfo);
+	}
+
 	/**
 	 * Return the count of entries in the cache
 	 *
 	 * @return int
 	 */
 	public final int numberOfEntries() {
-		return m_fileCache.size();
+		int cnt = 0;
+		for ( int i = 0; i < m_stripes.length; i++)
+			cnt += m_stripes[i].numberOfEntries();
+		return cnt;
 	}
 
 	/**
@@ -566,25 +914,329 @@ public class NetworkFileCache {
 	 */
 	public final void closeAllFiles() {
 
-		// Enumerate the cache entries
+		// Shutdown the expiry thread, this will close the files
+
+		m_expiryThread.requestShutdown();
+	}
+
+	/**
+	 * Return the cache stripe for a file id
+	 *
+	 * @param id int
+	 * @return FileTable
+	 */
+	private final FileTable getStripe(int id) {
+		return m_stripes[(hashFileId(id) >>> 28) & (StripeCount - 1)];
+	}
+
+	/**
+	 * Add a file entry to the timer wheel slot for its timeout
+	 *
+	 * @param fentry FileEntry
+	 */
+	private final void scheduleExpiry(FileEntry fentry) {
+		synchronized ( m_wheel) {
+			long tick = Math.max(fentry.getTimeout() / WheelTick, m_wheelTick + 1);
+			int slot = (int) (tick & (WheelSlots - 1));
+
+			fentry.m_wheelNext = m_wheel[slot];
+			m_wheel[slot] = fentry;
+		}
+	}
 
-		Enumeration<Integer> keys = m_fileCache.keys();
+	/**
+	 * Process the timer wheel slots that are due
+	 *
+	 * @param timeNow long
+	 */
+	private final void processWheel(long timeNow) {
 
-		while (keys.hasMoreElements()) {
+		long nowTick = timeNow / WheelTick;
 
-			// Get the current key and lookup the matching value
+		while ( true) {
 
-			Integer key = keys.nextElement();
-			FileEntry entry = m_fileCache.get(key);
+			// Detach the file entries in the next slot that is due
 
-			// Expire the file entry
+			FileEntry fentry = null;
 
-			entry.updateTimeout(0L);
+			synchronized ( m_wheel) {
+
+				// Check if the clock has gone backwards, or jumped forward more than one turn of the wheel
+
+				if ( nowTick < m_wheelTick)
+					m_wheelTick = nowTick;
+				else if ( nowTick - m_wheelTick > WheelSlots)
+					m_wheelTick = nowTick - WheelSlots;
+
+				if ( m_wheelTick >= nowTick)
+					return;
+
+				m_wheelTick++;
+
+				int slot = (int) (m_wheelTick & (WheelSlots - 1));
+				fentry = m_wheel[slot];
+				m_wheel[slot] = null;
+			}
+
+			// Check the file entries, the cache locks are not held whilst files are flushed/closed
+
+			while ( fentry != null) {
+				FileEntry nextEntry = fentry.m_wheelNext;
+				fentry.m_wheelNext = null;
+
+				checkExpiry(fentry, timeNow);
+
+				fentry = nextEntry;
+			}
 		}
+	}
 
-		// Shutdown the expiry thread, this should close the files
+	/**
+	 * Check if a file entry has expired, close the file or remove the entry from the cache. Entries that have
+	 * not expired are rescheduled.
+	 *
+	 * @param fentry FileEntry
+	 * @param timeNow long
+	 */
+	private final void checkExpiry(FileEntry fentry, long timeNow) {
 
-		m_expiryThread.requestShutdown();
+		// Drop entries that have been removed from the cache
+
+		if ( fentry.isRemoved())
+			return;
+
+		// Check if the file has been accessed since the entry was scheduled
+
+		if ( fentry.getTimeout() >= timeNow) {
+			scheduleExpiry(fentry);
+			return;
+		}
+
+		// Get the network file
+
+		NetworkFile netFile = fentry.getFile();
+		int fileId = fentry.getFileId();
+
+		// Check if the file has an I/O request pending, if so then reset the file expiry time
+		// for the file
+
+		if (netFile.hasIOPending()) {
+
+			// Update the expiry time for the file entry
+
+			fentry.updateTimeout();
+			scheduleExpiry(fentry);
+
+			// DEBUG
+
+			if (Debug.EnableInfo && hasDebug())
+				Debug.println("NFSFileExpiry: I/O pending file="	+ fentry.getFile().getFullName() + ", fid=" + fileId);
+			return;
+		}
+
+		// Check if the network file is closed, if not  then close the file to release the file
+		// handle but keep the file entry in the file cache for a while as the file may be re-opened
+
+		if (fentry.isClosed() == false) {
+
+			// Make sure there is no active transaction
+
+			if ( fentry.getSession().hasTransaction())
+				fentry.getSession().endTransaction();
+
+			// We need to do the close in the context of the user that opened the file
+
+			try {
+
+				// Set the the current user context
+
+				m_authenticator.setCurrentUser( fentry.getSession(), fentry.getSession().getNFSClientInformation());
+
+				synchronized ( fentry) {
+
+					// Check if the file was accessed whilst the user context was being set
+
+					if ( fentry.getTimeout() >= timeNow || fentry.isRemoved()) {
+						scheduleExpiry(fentry);
+						return;
+					}
+
+					synchronized ( netFile) {
+
+						// Write any buffered unstable writes before the file is closed
+
+						fentry.flushWrites();
+
+						// Check if the filesystem is transactional, in this case only mark the file as closed
+
+						if ( netFile.allowsOpenCloseViaNetworkFile() == false) {
+
+						    // Mark the file as closed, wait for second stage expiry to actually close the file
+
+						    fentry.markAsClosed();
+						    fentry.updateTimeout(System.currentTimeMillis() + m_fileIOTmo / 2);
+
+						    // DEBUG
+
+                            if (Debug.EnableInfo && hasDebug())
+                                Debug.println("NFSFileExpiry: Marked as closed file=" + fentry.getFile().getFullName() + ", fid=" + fileId + " (cached)");
+						}
+						else {
+
+							// Close the network file
+
+							fentry.closeFile();
+
+							// Update the file entry timeout to keep the file in the cache for a while
+
+							fentry.updateTimeout(System.currentTimeMillis() + m_fileCloseTmo);
+
+							// DEBUG
+
+							if (Debug.EnableInfo && hasDebug())
+								Debug.println("NFSFileExpiry: Closed file="	+ fentry.getFile().getFullName() + ", fid="	+ fileId + " (cached)");
+						}
+					}
+				}
+			}
+			catch (Exception ex) {
+
+				// DEBUG
+
+				if ( Debug.EnableInfo && hasDebug()) {
+					Debug.println("Error closing file, fentry=" + fentry + ", ex=" + ex.getMessage());
+					Debug.println(ex);
+				}
+			}
+			finally {
+
+				// Clear the user context, flush any active transaction
+
+				clearUserContext(fentry);
+			}
+
+			// Schedule the second stage expiry
+
+			scheduleExpiry(fentry);
+		}
+		else if ( getStripe(fileId).removeIfExpired(fentry, timeNow)) {
+
+			// File entry has expired, and has been removed from the cache
+
+			fentry.markAsRemoved();
+			closeAndRemove(fentry);
+		}
+		else if ( fentry.isRemoved() == false) {
+
+			// File was accessed, reschedule
+
+			scheduleExpiry(fentry);
+		}
+	}
+
+	/**
+	 * Close the network file for an entry that has been removed from the cache
+	 *
+	 * @param fentry FileEntry
+	 */
+	private final void closeAndRemove(FileEntry fentry) {
+
+		NetworkFile netFile = fentry.getFile();
+		if ( netFile == null)
+			return;
+
+		// Close the file via the disk interface
+
+		try {
+
+			// Make sure there is no active transaction
+
+			if ( fentry.getSession().hasTransaction())
+				fentry.getSession().endTransaction();
+
+			// Set the the current user context
+
+			m_authenticator.setCurrentUser( fentry.getSession(), fentry.getSession().getNFSClientInformation());
+
+			// Write any buffered unstable writes before the file is closed
+
+			fentry.flushWrites();
+
+			// Get the disk interface
+
+			DiskInterface disk = (DiskInterface) fentry.getConnection().getInterface();
+
+			// Close the file
+
+			if ( disk.fileExists( fentry.getSession(), fentry.getConnection(), netFile.getFullName()) != FileStatus.NotExist) {
+
+			    // Check if the file has already been closed
+
+			    if ( netFile.isClosed() == false) {
+
+			        // Close the file
+
+					disk.closeFile(fentry.getSession(),	fentry.getConnection(),	netFile);
+
+					// DEBUG
+
+					if (Debug.EnableInfo && hasDebug())
+						Debug.println("NFSFileExpiry: Closed file="	+ fentry.getFile().getFullName() + ", fid="	+ fentry.getFileId() + " (removed)");
+			    }
+			    else if ( Debug.EnableInfo && hasDebug())
+			        Debug.println("NFSFileExpiry: File already closed, file=" + fentry.getFile().getFullName() + ", fid=" + fentry.getFileId());
+			}
+			else if ( Debug.EnableInfo && hasDebug())
+				Debug.println("NFSFileExpiry: File deleted before close, " + netFile.getFullName());
+		}
+		catch (Exception ex) {
+
+			// DEBUG
+
+			if ( Debug.EnableInfo && hasDebug()) {
+				Debug.println("Error closing file, fentry=" + fentry + ", ex=" + ex.getMessage());
+				Debug.println(ex);
+			}
+		}
+		finally {
+
+			// Clear the user context, flush any active transaction
+
+			clearUserContext(fentry);
+		}
+	}
+
+	/**
+	 * Flush any active transaction and clear the user context set to close a file
+	 *
+	 * @param fentry FileEntry
+	 */
+	private final void clearUserContext(FileEntry fentry) {
+
+		try {
+			if ( fentry.getSession().hasTransaction())
+				fentry.getSession().endTransaction();
+		}
+		catch (Exception ex) {
+
+			// DEBUG
+
+			if ( Debug.EnableInfo && hasDebug())
+				Debug.println("Error ending transaction, fentry=" + fentry + ", ex=" + ex.getMessage());
+		}
+
+		m_authenticator.setCurrentUser( fentry.getSession(), null);
+	}
+
+	/**
+	 * Hash a file id, file ids are often path hash codes or sequential values so spread the bits
+	 *
+	 * @param id int
+	 * @return int
+	 */
+	private static final int hashFileId(int id) {
+		int h = id * 0x9E3779B9;
+		return h ^ (h >>> 16);
 	}
 
 	/**
@@ -617,6 +1269,16 @@ public class NetworkFileCache {
 		m_fileCloseTmo = closeTimer;
 	}
 
+	/**
+	 * Set the cached file attributes timer value, zero disables attribute caching
+	 *
+	 * @param attrTimer
+	 *            long
+	 */
+	public final void setAttributeTimer(long attrTimer) {
+		m_attrTmo = attrTimer;
+	}
+
 	/**
 	 * Set the RPC authenticator
 	 *
@@ -637,18 +1299,13 @@ public class NetworkFileCache {
 
 		// Enumerate the cache entries
 
-		Enumeration<Integer> keys = m_fileCache.keys();
-
-		while (keys.hasMoreElements()) {
-
-			// Get the current key and lookup the matching value
-
-			Integer key = keys.nextElement();
-			FileEntry entry = m_fileCache.get(key);
+		for ( int i = 0; i < m_stripes.length; i++) {
+			FileEntry[] entries = m_stripes[i].getEntries();
 
 			// Dump the entry details
 
-			Debug.println("fid=" + key + ": " + entry);
+			for ( int j = 0; j < entries.length; j++)
+				Debug.println("fid=" + entries[j].getFileId() + ": " + entries[j]);
 		}
 	}
 }
@@ -63,6 +63,28 @@ public class ShareDetails {
 		m_idCache = new FileIdCache();
 	}
 
+	/**
+	 * Class constructor
+	 *
+	 * @param name String
+	 * @param fileIdSupport boolean
+	 * @param idIndex FileIdIndex
+	 */
+	public ShareDetails(String name, boolean fileIdSupport, FileIdIndex idIndex) {
+
+		//	Save the share name
+
+		m_name = name;
+
+		//	Set the file id support flag
+
+		m_fileIdLookup = fileIdSupport;
+
+		//	Create the file id cache, using the persistent file id index
+
+		m_idCache = new FileIdCache(idIndex);
+	}
+
 	/**
 	 * Return the share name
 	 *
@@ -0,0 +1,552 @@
+/*
+ * Copyright (C) 2006-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.alfresco.jlan.oncrpc.nfs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.alfresco.jlan.server.SrvSession;
+import org.alfresco.jlan.server.filesys.DiskInterface;
+import org.alfresco.jlan.server.filesys.NetworkFile;
+import org.alfresco.jlan.server.filesys.TreeConnection;
+
+/**
+ * Unstable Write Buffer Class
+ *
+ * <p>Holds the data from NFS UNSTABLE writes to a file until a COMMIT request is received, the buffer
+ * fills or the file is closed. Adjacent and overlapping writes are merged so that the data is written
+ * to the filesystem using a few large sequential writes.
+ *
+ * <p>The buffer records the session, tree connection and network file of the last writer so that the
+ * data can be flushed on behalf of other sessions that access the file.
+ *
+ * <p>Flush operations call the disk interface, the caller must be synchronized on the network file.
+ *
+ * @author gkspencer
+ */
+public class UnstableWriteBuffer {
+
+	// Default and minimum/maximum buffer size, per file
+
+	public static final int DefaultBufferSize	= 4 * 1024 * 1024;	// 4Mb
+	public static final int MinimumBufferSize	= 64 * 1024;		// 64Kb
+	public static final int MaximumBufferSize	= 64 * 1024 * 1024;	// 64Mb
+
+	// Initial allocation for a new dirty range
+
+	private static final int InitialRangeSize	= 64 * 1024;
+
+	/**
+	 * Dirty Range Class
+	 */
+	protected class DirtyRange {
+
+		// File offset and data
+
+		private long m_offset;
+		private byte[] m_data;
+		private int m_len;
+
+		/**
+		 * Class constructor
+		 *
+		 * @param offset long
+		 * @param capacity int
+		 */
+		protected DirtyRange(long offset, int capacity) {
+			m_offset = offset;
+			m_data = new byte[capacity];
+		}
+
+		/**
+		 * Return the file offset of the range
+		 *
+		 * @return long
+		 */
+		public final long getOffset() {
+			return m_offset;
+		}
+
+		/**
+		 * Return the end offset of the range
+		 *
+		 * @return long
+		 */
+		public final long getEndOffset() {
+			return m_offset + m_len;
+		}
+
+		/**
+		 * Return the range length
+		 *
+		 * @return int
+		 */
+		public final int getLength() {
+			return m_len;
+		}
+
+		/**
+		 * Copy data into the range, growing the range as required
+		 *
+		 * @param buf byte[]
+		 * @param pos int
+		 * @param len int
+		 * @param offset long
+		 */
+		protected final void putData(byte[] buf, int pos, int len, long offset) {
+
+			// Make sure the range buffer is large enough
+
+			int rangePos = (int) ( offset - m_offset);
+			int rangeEnd = rangePos + len;
+
+			if ( rangeEnd > m_data.length) {
+				int newSize = m_data.length * 2;
+				while ( newSize < rangeEnd)
+					newSize *= 2;
+
+				byte[] newData = new byte[newSize];
+				System.arraycopy( m_data, 0, newData, 0, m_len);
+				m_data = newData;
+			}
+
+			// Copy the data, update the range length
+
+			System.arraycopy( buf, pos, m_data, rangePos, len);
+
+			if ( rangeEnd > m_len)
+				m_len = rangeEnd;
+		}
+
+		/**
+		 * Return the range details as a string
+		 *
+		 * @return String
+		 */
+		public String toString() {
+			StringBuilder str = new StringBuilder();
+
+			str.append("[");
+			str.append(getOffset());
+			str.append("-");
+			str.append(getEndOffset());
+			str.append("]");
+
+			return str.toString();
+		}
+	}
+
+	// Dirty ranges, keyed by file offset. Ranges do not overlap and are not adjacent.
+
+	private TreeMap<Long, DirtyRange> m_ranges;
+
+	// Maximum and current amount of buffered data
+
+	private int m_maxSize;
+	private int m_bufferedSize;
+
+	// End of the buffered data, ie. the file size including unstable writes
+
+	private long m_endOfData;
+
+	// Session, tree connection and network file of the last writer
+
+	private SrvSession m_wrSess;
+	private TreeConnection m_wrConn;
+	private NetworkFile m_wrFile;
+
+	// Owning write cache, used to track the server wide buffered data total
+
+	private UnstableWriteCache m_cache;
+
+	// Buffer has been released from the write cache
+
+	private boolean m_released;
+
+	/**
+	 * Class constructor
+	 *
+	 * @param maxSize int
+	 */
+	public UnstableWriteBuffer(int maxSize) {
+		m_maxSize = maxSize;
+		m_ranges = new TreeMap<Long, DirtyRange>();
+	}
+
+	/**
+	 * Class constructor
+	 *
+	 * @param maxSize int
+	 * @param cache UnstableWriteCache
+	 */
+	protected UnstableWriteBuffer(int maxSize, UnstableWriteCache cache) {
+		this( maxSize);
+		m_cache = cache;
+	}
+
+	/**
+	 * Check if there is any buffered data
+	 *
+	 * @return boolean
+	 */
+	public synchronized final boolean hasDirtyData() {
+		return m_ranges.size() > 0;
+	}
+
+	/**
+	 * Return the amount of buffered data
+	 *
+	 * @return int
+	 */
+	public synchronized final int getBufferedSize() {
+		return m_bufferedSize;
+	}
+
+	/**
+	 * Return the maximum amount of buffered data
+	 *
+	 * @return int
+	 */
+	public final int getMaximumSize() {
+		return m_maxSize;
+	}
+
+	/**
+	 * Return the session of the last writer
+	 *
+	 * @return SrvSession
+	 */
+	public synchronized final SrvSession getWriterSession() {
+		return m_wrSess;
+	}
+
+	/**
+	 * Return the tree connection of the last writer
+	 *
+	 * @return TreeConnection
+	 */
+	public synchronized final TreeConnection getWriterConnection() {
+		return m_wrConn;
+	}
+
+	/**
+	 * Return the network file of the last writer
+	 *
+	 * @return NetworkFile
+	 */
+	public synchronized final NetworkFile getWriterFile() {
+		return m_wrFile;
+	}
+
+	/**
+	 * Set the session, tree connection and network file of the last writer
+	 *
+	 * @param sess SrvSession
+	 * @param conn TreeConnection
+	 * @param netFile NetworkFile
+	 */
+	public synchronized final void setWriter(SrvSession sess, TreeConnection conn, NetworkFile netFile) {
+		m_wrSess = sess;
+		m_wrConn = conn;
+		m_wrFile = netFile;
+	}
+
+	/**
+	 * Check if the buffer has been released from the write cache
+	 *
+	 * @return boolean
+	 */
+	public synchronized final boolean isReleased() {
+		return m_released;
+	}
+
+	/**
+	 * Mark the buffer as released from the write cache
+	 */
+	protected synchronized final void setReleased() {
+		m_released = true;
+	}
+
+	/**
+	 * Return the number of dirty ranges
+	 *
+	 * @return int
+	 */
+	public synchronized final int numberOfRanges() {
+		return m_ranges.size();
+	}
+
+	/**
+	 * Return the file size including the buffered data
+	 *
+	 * @param fileSize long
+	 * @return long
+	 */
+	public synchronized final long getFileSize(long fileSize) {
+		if ( m_ranges.size() > 0 && m_endOfData > fileSize)
+			return m_endOfData;
+		return fileSize;
+	}
+
+	/**
+	 * Buffer a write request. Returns true if the buffer is full and should be flushed.
+	 *
+	 * @param buf byte[]
+	 * @param pos int
+	 * @param len int
+	 * @param offset long
+	 * @return boolean
+	 */
+	public synchronized final boolean addWrite(byte[] buf, int pos, int len, long offset) {
+
+		// Ignore zero length writes
+
+		if ( len <= 0)
+			return m_bufferedSize >= m_maxSize;
+
+		long endOffset = offset + len;
+		int prevSize = m_bufferedSize;
+
+		// Find the ranges that overlap or are adjacent to the new data
+
+		Map.Entry<Long, DirtyRange> floor = m_ranges.floorEntry( offset);
+		long startKey = ( floor != null && floor.getValue().getEndOffset() >= offset) ? floor.getKey() : offset;
+
+		Map<Long, DirtyRange> merge = m_ranges.subMap( startKey, true, endOffset, true);
+		DirtyRange range = null;
+
+		if ( merge.size() == 1 && merge.keySet().iterator().next() <= offset) {
+
+			// Single range that starts at or before the new data, extend it in place
+
+			range = merge.values().iterator().next();
+			m_bufferedSize -= range.getLength();
+		}
+		else if ( merge.size() > 0) {
+
+			// Merge the ranges into a new range that covers the new data
+
+			long rangeStart = Math.min( offset, merge.keySet().iterator().next());
+			long rangeEnd = endOffset;
+
+			for ( DirtyRange cur : merge.values())
+				rangeEnd = Math.max( rangeEnd, cur.getEndOffset());
+
+			range = new DirtyRange( rangeStart, (int) ( rangeEnd - rangeStart));
+
+			for ( DirtyRange cur : merge.values()) {
+				range.putData( cur.m_data, 0, cur.getLength(), cur.getOffset());
+				m_bufferedSize -= cur.getLength();
+			}
+
+			merge.clear();
+			m_ranges.put( rangeStart, range);
+		}
+		else {
+
+			// New range
+
+			range = new DirtyRange( offset, Math.max( len, InitialRangeSize));
+			m_ranges.put( offset, range);
+		}
+
+		// Copy the new data into the range
+
+		range.putData( buf, pos, len, offset);
+		m_bufferedSize += range.getLength();
+
+		// Update the end of data offset
+
+		if ( endOffset > m_endOfData)
+			m_endOfData = endOffset;
+
+		// Update the server wide buffered data total
+
+		if ( m_cache != null)
+			m_cache.updateBufferedSize( m_bufferedSize - prevSize);
+
+		// Indicate if the buffer should be flushed
+
+		return m_bufferedSize >= m_maxSize;
+	}
+
+	/**
+	 * Flush the buffered data that overlaps the specified file range using the network file of the last writer,
+	 * a zero count indicates all data from the offset to the end of the file. The network file is locked by this
+	 * method, the caller must not hold a lock on another network file.
+	 *
+	 * @param offset long
+	 * @param count long
+	 * @return int
+	 * @exception IOException
+	 */
+	public final int flush(long offset, long count)
+		throws IOException {
+
+		while ( true) {
+
+			// Get the current writer
+
+			NetworkFile netFile = null;
+
+			synchronized ( this) {
+				if ( m_ranges.size() == 0 || m_wrFile == null)
+					return 0;
+				netFile = m_wrFile;
+			}
+
+			// Lock the network file then the buffer, check that the writer has not changed
+
+			synchronized ( netFile) {
+				synchronized ( this) {
+					if ( netFile == m_wrFile)
+						return flush((DiskInterface) m_wrConn.getInterface(), m_wrSess, m_wrConn, netFile, offset, count);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Flush all buffered data to the file
+	 *
+	 * @param disk DiskInterface
+	 * @param sess SrvSession
+	 * @param conn TreeConnection
+	 * @param netFile NetworkFile
+	 * @return int
+	 * @exception IOException
+	 */
+	public final int flush(DiskInterface disk, SrvSession sess, TreeConnection conn, NetworkFile netFile)
+		throws IOException {
+		return flush( disk, sess, conn, netFile, 0L, 0L);
+	}
+
+	/**
+	 * Flush the buffered data that overlaps the specified file range, a zero count indicates all data from
+	 * the offset to the end of the file. Returns the number of bytes written.
+	 *
+	 * <p>The flushed ranges are removed from the buffer even if the write fails, the caller should change the
+	 * write verifier so that the client resends the data.
+	 *
+	 * @param disk DiskInterface
+	 * @param sess SrvSession
+	 * @param conn TreeConnection
+	 * @param netFile NetworkFile
+	 * @param offset long
+	 * @param count long
+	 * @return int
+	 * @exception IOException
+	 */
+	public synchronized final int flush(DiskInterface disk, SrvSession sess, TreeConnection conn, NetworkFile netFile,
+			long offset, long count)
+		throws IOException {
+
+		// Check if there is any data to flush
+
+		if ( m_ranges.size() == 0)
+			return 0;
+
+		// Collect the ranges to be written
+
+		List<DirtyRange> flushList = new ArrayList<DirtyRange>();
+		long endOffset = count > 0 ? offset + count : Long.MAX_VALUE;
+
+		Iterator<DirtyRange> iter = m_ranges.values().iterator();
+
+		while ( iter.hasNext()) {
+			DirtyRange range = iter.next();
+
+			if ( range.getOffset() >= endOffset)
+				break;
+
+			if ( range.getEndOffset() > offset) {
+				flushList.add( range);
+				m_bufferedSize -= range.getLength();
+				iter.remove();
+			}
+		}
+
+		// Reset the end of data offset if the buffer is now empty
+
+		if ( m_ranges.size() == 0)
+			m_endOfData = 0L;
+
+		// Update the server wide buffered data total
+
+		int wrtotal = 0;
+
+		for ( DirtyRange range : flushList)
+			wrtotal += range.getLength();
+
+		if ( m_cache != null)
+			m_cache.updateBufferedSize( -wrtotal);
+
+		// Make sure the network file is open
+
+		if ( flushList.size() > 0 && netFile.isClosed())
+			netFile.openFile( false);
+
+		// Write the ranges in file offset order
+
+		for ( DirtyRange range : flushList)
+			disk.writeFile( sess, conn, netFile, range.m_data, 0, range.getLength(), range.getOffset());
+
+		// Return the amount of data written
+
+		return wrtotal;
+	}
+
+	/**
+	 * Discard all buffered data
+	 */
+	public synchronized final void discard() {
+		if ( m_cache != null)
+			m_cache.updateBufferedSize( -m_bufferedSize);
+
+		m_ranges.clear();
+		m_bufferedSize = 0;
+		m_endOfData = 0L;
+	}
+
+	/**
+	 * Return the buffer details as a string
+	 *
+	 * @return String
+	 */
+	public synchronized String toString() {
+		StringBuilder str = new StringBuilder();
+
+		str.append("[Ranges=");
+		str.append(m_ranges.size());
+		str.append(",buffered=");
+		str.append(m_bufferedSize);
+		str.append("/");
+		str.append(m_maxSize);
+		str.append(",");
+		str.append(m_ranges.values());
+		str.append("]");
+
+		return str.toString();
+	}
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2006-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.alfresco.jlan.oncrpc.nfs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.jlan.server.filesys.NetworkFile;
+import org.alfresco.jlan.server.filesys.TreeConnection;
+
+/**
+ * Unstable Write Cache Class
+ *
+ * <p>Server wide cache of unstable write buffers. There is a single buffer for each file, keyed by the share id
+ * and file id, that is shared by all sessions so that a READ, GETATTR or SETATTR from any client can flush the
+ * uncommitted data before accessing the file.
+ *
+ * <p>The total amount of buffered data is limited, when the limit is exceeded the server flushes buffers until
+ * the total is back within the limit. The limit is a soft limit, a buffer may be filled before it is flushed.
+ *
+ * @author gkspencer
+ */
+public class UnstableWriteCache {
+
+	//	Default/minimum/maximum memory limit
+
+	public static final long DefaultMemoryLimit	= 64L * 1024L * 1024L;
+	public static final long MinimumMemoryLimit	= 1024L * 1024L;
+	public static final long MaximumMemoryLimit	= 4096L * 1024L * 1024L;
+
+	//	Write buffers, by share id and file id
+
+	private ConcurrentHashMap<Long, UnstableWriteBuffer> m_buffers;
+
+	//	Per file buffer size
+
+	private int m_bufSize;
+
+	//	Memory limit and total amount of buffered data
+
+	private long m_memLimit;
+	private AtomicLong m_memUsed = new AtomicLong();
+
+	/**
+	 * Class constructor
+	 *
+	 * @param bufSize int
+	 * @param memLimit long
+	 */
+	public UnstableWriteCache(int bufSize, long memLimit) {
+		m_buffers = new ConcurrentHashMap<Long, UnstableWriteBuffer>();
+
+		m_bufSize = bufSize;
+		m_memLimit = memLimit;
+	}
+
+	/**
+	 * Return the per file buffer size
+	 *
+	 * @return int
+	 */
+	public final int getBufferSize() {
+		return m_bufSize;
+	}
+
+	/**
+	 * Return the memory limit
+	 *
+	 * @return long
+	 */
+	public final long getMemoryLimit() {
+		return m_memLimit;
+	}
+
+	/**
+	 * Return the total amount of buffered data
+	 *
+	 * @return long
+	 */
+	public final long getMemoryUsed() {
+		return m_memUsed.get();
+	}
+
+	/**
+	 * Check if the total amount of buffered data exceeds the memory limit
+	 *
+	 * @return boolean
+	 */
+	public final boolean isOverLimit() {
+		return m_memUsed.get() > m_memLimit;
+	}
+
+	/**
+	 * Return the number of write buffers
+	 *
+	 * @return int
+	 */
+	public final int numberOfBuffers() {
+		return m_buffers.size();
+	}
+
+	/**
+	 * Return the write buffer for a file, or null if there is no buffer for the file
+	 *
+	 * @param conn TreeConnection
+	 * @param fileId int
+	 * @return UnstableWriteBuffer
+	 */
+	public final UnstableWriteBuffer findWriteBuffer(TreeConnection conn, int fileId) {
+		return m_buffers.get( makeKey( conn, fileId));
+	}
+
+	/**
+	 * Buffer an unstable write to a file, the network file is recorded as the last writer. The caller must be
+	 * synchronized on the network file. Returns the write buffer, the caller should flush the buffer if it is
+	 * full.
+	 *
+	 * @param sess NFSSrvSession
+	 * @param conn TreeConnection
+	 * @param netFile NetworkFile
+	 * @param buf byte[]
+	 * @param pos int
+	 * @param len int
+	 * @param offset long
+	 * @return UnstableWriteBuffer
+	 */
+	public final UnstableWriteBuffer addWrite(NFSSrvSession sess, TreeConnection conn, NetworkFile netFile,
+			byte[] buf, int pos, int len, long offset) {
+
+		Long key = makeKey( conn, netFile.getFileId());
+
+		while ( true) {
+
+			//	Find or create the write buffer for the file
+
+			UnstableWriteBuffer writeBuf = m_buffers.get( key);
+
+			if ( writeBuf == null) {
+				UnstableWriteBuffer newBuf = new UnstableWriteBuffer( m_bufSize, this);
+				writeBuf = m_buffers.putIfAbsent( key, newBuf);
+				if ( writeBuf == null)
+					writeBuf = newBuf;
+			}
+
+			//	Add the data to the buffer, retry if the buffer was released whilst it was being located
+
+			synchronized ( writeBuf) {
+				if ( writeBuf.isReleased() == false) {
+					writeBuf.setWriter( sess, conn, netFile);
+					writeBuf.addWrite( buf, pos, len, offset);
+					return writeBuf;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Release the write buffer for a file if it does not contain any data
+	 *
+	 * @param conn TreeConnection
+	 * @param fileId int
+	 */
+	public final void releaseWriteBuffer(TreeConnection conn, int fileId) {
+		UnstableWriteBuffer writeBuf = m_buffers.get( makeKey( conn, fileId));
+		if ( writeBuf != null)
+			releaseWriteBuffer( writeBuf);
+	}
+
+	/**
+	 * Release a write buffer if it does not contain any data. A new buffer that has not had data added is
+	 * not released.
+	 *
+	 * @param writeBuf UnstableWriteBuffer
+	 */
+	public final void releaseWriteBuffer(UnstableWriteBuffer writeBuf) {
+		synchronized ( writeBuf) {
+			if ( writeBuf.hasDirtyData() == false && writeBuf.isReleased() == false && writeBuf.getWriterFile() != null) {
+				writeBuf.setReleased();
+				m_buffers.remove( makeKey( writeBuf.getWriterConnection(), writeBuf.getWriterFile().getFileId()), writeBuf);
+			}
+		}
+	}
+
+	/**
+	 * Return the write buffers that contain data for the specified path, on any share
+	 *
+	 * @param path String
+	 * @return List<UnstableWriteBuffer>
+	 */
+	public final List<UnstableWriteBuffer> findWriteBuffers(String path) {
+
+		List<UnstableWriteBuffer> bufList = new ArrayList<UnstableWriteBuffer>();
+
+		if ( m_buffers.isEmpty())
+			return bufList;
+
+		for ( UnstableWriteBuffer writeBuf : m_buffers.values()) {
+			NetworkFile netFile = writeBuf.getWriterFile();
+			if ( netFile != null && writeBuf.hasDirtyData() && netFile.getFullName().equalsIgnoreCase( path))
+				bufList.add( writeBuf);
+		}
+
+		return bufList;
+	}
+
+	/**
+	 * Return the write buffers that contain data
+	 *
+	 * @return List<UnstableWriteBuffer>
+	 */
+	public final List<UnstableWriteBuffer> getDirtyBuffers() {
+
+		List<UnstableWriteBuffer> bufList = new ArrayList<UnstableWriteBuffer>();
+
+		for ( UnstableWriteBuffer writeBuf : m_buffers.values()) {
+			if ( writeBuf.hasDirtyData())
+				bufList.add( writeBuf);
+		}
+
+		return bufList;
+	}
+
+	/**
+	 * Discard all buffered data
+	 */
+	public final void removeAllBuffers() {
+		for ( UnstableWriteBuffer writeBuf : m_buffers.values()) {
+			synchronized ( writeBuf) {
+				writeBuf.discard();
+				writeBuf.setReleased();
+			}
+		}
+		m_buffers.clear();
+	}
+
+	/**
+	 * Update the total amount of buffered data
+	 *
+	 * @param delta int
+	 */
+	protected final void updateBufferedSize(int delta) {
+		m_memUsed.addAndGet( delta);
+	}
+
+	/**
+	 * Build the key for a file
+	 *
+	 * @param conn TreeConnection
+	 * @param fileId int
+	 * @return Long
+	 */
+	private final Long makeKey(TreeConnection conn, int fileId) {
+		long shareId = conn.getSharedDevice().getName().hashCode();
+		return Long.valueOf(( shareId << 32) | ( fileId & 0xFFFFFFFFL));
+	}
+
+	/**
+	 * Return the cache details as a string
+	 *
+	 * @return String
+	 */
+	public String toString() {
+		StringBuilder str = new StringBuilder();
+
+		str.append("[Buffers=");
+		str.append(m_buffers.size());
+		str.append(",used=");
+		str.append(m_memUsed.get());
+		str.append("/");
+		str.append(m_memLimit);
+		str.append("]");
+
+		return str.toString();
+	}
+}
@@ -28,11 +28,14 @@ import org.alfresco.jlan.oncrpc.PortMapping;
 import org.alfresco.jlan.oncrpc.Rpc;
 import org.alfresco.jlan.oncrpc.RpcPacket;
 import org.alfresco.jlan.oncrpc.RpcProcessor;
+import org.alfresco.jlan.oncrpc.NIOTcpRpcSessionHandler;
+import org.alfresco.jlan.oncrpc.RpcRequestThreadPool;
 import org.alfresco.jlan.oncrpc.TcpRpcSessionHandler;
 import org.alfresco.jlan.oncrpc.UdpRpcDatagramHandler;
 import org.alfresco.jlan.oncrpc.nfs.NFSConfigSection;
 import org.alfresco.jlan.server.NetworkServer;
 import org.alfresco.jlan.server.ServerListener;
+import org.alfresco.jlan.server.SessionHandlerBase;
 import org.alfresco.jlan.server.Version;
 import org.alfresco.jlan.server.config.ServerConfiguration;
 
@@ -67,7 +70,7 @@ public class PortMapperServer extends NetworkServer implements RpcProcessor {
 
 	//	Incoming session handler for TCP requests
 
-	private TcpRpcSessionHandler m_tcpHandler;
+	private SessionHandlerBase m_tcpHandler;
 
 	//	Portmapper port
 
@@ -154,12 +157,23 @@ public class PortMapperServer extends NetworkServer implements RpcProcessor {
 
 	    //	Create the TCP RPC handler to accept incoming requests
 
-	    m_tcpHandler = new TcpRpcSessionHandler("PortMap", "Port", this, this, null, getPort(), MaxRequestSize);
+	    if ( getNFSConfiguration().hasDisableNIOCode() == false) {
+
+	      //	Use the NIO session handler with a small worker thread pool
+
+	      NIOTcpRpcSessionHandler nioHandler = new NIOTcpRpcSessionHandler("PortMap", "Port", this, this, null, getPort(), MaxRequestSize);
+	      nioHandler.setThreadPool(RpcRequestThreadPool.MinimumWorkerThreads);
+
+	      m_tcpHandler = nioHandler;
+	    }
+	    else
+	      m_tcpHandler = new TcpRpcSessionHandler("PortMap", "Port", this, this, null, getPort(), MaxRequestSize);
+
 	    m_tcpHandler.initializeSessionHandler(this);
 
 	    //	Start the UDP request listener is a seperate thread
 
-	    Thread tcpThread = new Thread(m_tcpHandler);
+	    Thread tcpThread = new Thread((Runnable) m_tcpHandler);
 	    tcpThread.setName("PortMap_TCP");
 	    tcpThread.start();
 
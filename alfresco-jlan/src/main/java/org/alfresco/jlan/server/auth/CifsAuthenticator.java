@@ -413,6 +413,39 @@ public abstract class CifsAuthenticator implements ICifsAuthenticator {
 		respPkt.setByteCount(pos - respPkt.getByteOffset());
 	}
 
+	/**
+	 * Return the security blob to be returned in an SMB2 negotiate response, or null if the client
+	 * should start the logon using a raw NTLMSSP token
+	 *
+	 * @return byte[]
+	 */
+	public byte[] getNegotiateSecurityBlob() {
+		return null;
+	}
+
+	/**
+	 * Process an SMB2 session setup security blob and return the response security blob. A null
+	 * response blob indicates the logon has completed, if the client has a session setup object
+	 * stored then more processing is required.
+	 *
+	 * <p>Only authenticators that support extended security can process security blobs.
+	 *
+	 * @param sess SMBSrvSession
+	 * @param client ClientInfo
+	 * @param secbuf byte[]
+	 * @param secpos int
+	 * @param seclen int
+	 * @return byte[]
+	 * @exception SMBSrvException
+	 */
+	public byte[] processSecurityBlob(SMBSrvSession sess, ClientInfo client, byte[] secbuf, int secpos, int seclen)
+		throws SMBSrvException {
+
+		// Security blobs require extended security support
+
+		throw new SMBSrvException(SMBStatus.NTNotSupported, SMBStatus.ErrSrv, SMBStatus.SRVNotSupported);
+	}
+
 	/* (non-Javadoc)
      * @see org.alfresco.jlan.server.auth.ICifsAuthenticator#processSessionSetup(org.alfresco.jlan.smb.server.SMBSrvSession, org.alfresco.jlan.smb.server.SMBSrvPacket)
      */
@@ -558,7 +558,7 @@ public class EnterpriseCifsAuthenticator extends CifsAuthenticator implements Ca
 		// Check that the received packet looks like a valid NT session setup andX request
 
 		if ( reqPkt.checkPacketIsValid(12, 0) == false)
-			throw new SMBSrvException(SMBStatus.NTInvalidParameter, SMBStatus.SRVNonSpecificError, SMBStatus.ErrSrv);
+			throw new SMBSrvException(SMBStatus.NTInvalidParameter, SMBStatus.ErrSrv, SMBStatus.SRVNonSpecificError);
 
 		// Check if the request is using security blobs or the older hashed password format
 
@@ -614,7 +614,7 @@ public class EnterpriseCifsAuthenticator extends CifsAuthenticator implements Ca
 			domain = reqPkt.unpackString(isUni);
 
 			if ( domain == null)
-				throw new SMBSrvException(SMBStatus.NTInvalidParameter, SMBStatus.SRVNonSpecificError, SMBStatus.ErrSrv);
+				throw new SMBSrvException(SMBStatus.NTInvalidParameter, SMBStatus.ErrSrv, SMBStatus.SRVNonSpecificError);
 		}
 
 		// Extract the clients native operating system
@@ -628,7 +628,7 @@ public class EnterpriseCifsAuthenticator extends CifsAuthenticator implements Ca
 			clientOS = reqPkt.unpackString(isUni);
 
 			if ( clientOS == null)
-				throw new SMBSrvException(SMBStatus.NTInvalidParameter, SMBStatus.SRVNonSpecificError, SMBStatus.ErrSrv);
+				throw new SMBSrvException(SMBStatus.NTInvalidParameter, SMBStatus.ErrSrv, SMBStatus.SRVNonSpecificError);
 		}
 
 		// DEBUG
@@ -667,50 +667,8 @@ public class EnterpriseCifsAuthenticator extends CifsAuthenticator implements Ca
 
 		// Process the security blob
 
-		byte[] respBlob = null;
-		boolean isNTLMSSP = false;
-
-		try {
-
-			// Check if the blob has the NTLMSSP signature
-
-			if ( secBlobLen >= NTLM.Signature.length) {
-
-				// Check for the NTLMSSP signature
-
-				int idx = 0;
-				while (idx < NTLM.Signature.length && buf[secBlobPos + idx] == NTLM.Signature[idx])
-					idx++;
-
-				if ( idx == NTLM.Signature.length)
-					isNTLMSSP = true;
-			}
-
-			// Process the security blob
-
-			if ( isNTLMSSP == true) {
-
-				// Process an NTLMSSP security blob
-
-				respBlob = doNtlmsspSessionSetup(sess, client, buf, secBlobPos, secBlobLen, isUni);
-			}
-			else {
-
-				// Process an SPNEGO security blob
-
-				respBlob = doSpnegoSessionSetup(sess, client, buf, secBlobPos, secBlobLen, isUni);
-			}
-		}
-		catch (SMBSrvException ex) {
-
-			// Remove the session setup object for this logon attempt
-
-			sess.removeSetupObject(client.getProcessId());
-
-			// Rethrow the exception
-
-			throw ex;
-		}
+		boolean isNTLMSSP = isNTLMSSPBlob(buf, secBlobPos, secBlobLen);
+		byte[] respBlob = processSecurityBlob(sess, client, buf, secBlobPos, secBlobLen, isUni);
 
 		// Debug
 
@@ -774,7 +732,7 @@ public class EnterpriseCifsAuthenticator extends CifsAuthenticator implements Ca
 
 					// Return a server error to the client
 
-					throw new SMBSrvException(SMBStatus.NTInvalidParameter, SMBStatus.SRVNoBuffers, SMBStatus.ErrSrv);
+					throw new SMBSrvException(SMBStatus.NTInvalidParameter, SMBStatus.ErrSrv, SMBStatus.SRVNoBuffers);
 				}
 			}
 
@@ -850,7 +808,7 @@ public class EnterpriseCifsAuthenticator extends CifsAuthenticator implements Ca
 
 				// Failed to allocate a UID
 
-				throw new SMBSrvException(SMBStatus.NTTooManySessions, SMBStatus.SRVTooManyUIDs, SMBStatus.ErrSrv);
+				throw new SMBSrvException(SMBStatus.NTTooManySessions, SMBStatus.ErrSrv, SMBStatus.SRVTooManyUIDs);
 			}
 			else if ( Debug.EnableInfo && sess.hasDebug(SMBSrvSession.DBG_NEGOTIATE)) {
 
@@ -904,6 +862,111 @@ public class EnterpriseCifsAuthenticator extends CifsAuthenticator implements Ca
 		respPkt.setParameter(1, pos - RFCNetBIOSProtocol.HEADER_LEN);
 	}
 
+	/**
+	 * Return the security blob to be returned in an SMB2 negotiate response, or null if SPNEGO is
+	 * not being used
+	 *
+	 * @return byte[]
+	 */
+	public byte[] getNegotiateSecurityBlob() {
+		return useRawNTLMSSP() ? null : m_negTokenInit;
+	}
+
+	/**
+	 * Process an SMB2 session setup security blob and return the response security blob, or null
+	 * if the logon has completed
+	 *
+	 * @param sess SMBSrvSession
+	 * @param client ClientInfo
+	 * @param secbuf byte[]
+	 * @param secpos int
+	 * @param seclen int
+	 * @return byte[]
+	 * @exception SMBSrvException
+	 */
+	public byte[] processSecurityBlob(SMBSrvSession sess, ClientInfo client, byte[] secbuf, int secpos, int seclen)
+		throws SMBSrvException {
+
+		// SMB2 always uses Unicode strings
+
+		return processSecurityBlob(sess, client, secbuf, secpos, seclen, true);
+	}
+
+	/**
+	 * Process a session setup security blob, either an NTLMSSP or SPNEGO blob
+	 *
+	 * @param sess SMBSrvSession
+	 * @param client ClientInfo
+	 * @param secbuf byte[]
+	 * @param secpos int
+	 * @param seclen int
+	 * @param unicode boolean
+	 * @return byte[]
+	 * @exception SMBSrvException
+	 */
+	private final byte[] processSecurityBlob(SMBSrvSession sess, ClientInfo client, byte[] secbuf, int secpos, int seclen,
+			boolean unicode)
+		throws SMBSrvException {
+
+		byte[] respBlob = null;
+
+		try {
+
+			// Process the security blob
+
+			if ( isNTLMSSPBlob(secbuf, secpos, seclen)) {
+
+				// Process an NTLMSSP security blob
+
+				respBlob = doNtlmsspSessionSetup(sess, client, secbuf, secpos, seclen, unicode);
+			}
+			else {
+
+				// Process an SPNEGO security blob
+
+				respBlob = doSpnegoSessionSetup(sess, client, secbuf, secpos, seclen, unicode);
+			}
+		}
+		catch (SMBSrvException ex) {
+
+			// Remove the session setup object for this logon attempt
+
+			sess.removeSetupObject(client.getProcessId());
+
+			// Rethrow the exception
+
+			throw ex;
+		}
+
+		// Return the response blob, or null
+
+		return respBlob;
+	}
+
+	/**
+	 * Check if a security blob has the NTLMSSP signature
+	 *
+	 * @param secbuf byte[]
+	 * @param secpos int
+	 * @param seclen int
+	 * @return boolean
+	 */
+	private final boolean isNTLMSSPBlob(byte[] secbuf, int secpos, int seclen) {
+
+		// Check if the blob is long enough to contain the signature
+
+		if ( seclen < NTLM.Signature.length)
+			return false;
+
+		// Check for the NTLMSSP signature
+
+		int idx = 0;
+		while (idx < NTLM.Signature.length && secbuf[secpos + idx] == NTLM.Signature[idx])
+			idx++;
+
+		return idx == NTLM.Signature.length;
+	}
+
 	/**
 	 * Process an NTLMSSP security blob
 	 *
@@ -424,7 +424,7 @@ public class PassthruAuthenticator extends CifsAuthenticator implements SessionL
 		// Check that the received packet looks like a valid NT session setup andX request
 
 		if ( reqPkt.checkPacketIsValid(12, 0) == false)
-			throw new SMBSrvException(SMBStatus.NTInvalidParameter, SMBStatus.SRVNonSpecificError, SMBStatus.ErrSrv);
+			throw new SMBSrvException(SMBStatus.NTInvalidParameter, SMBStatus.ErrSrv, SMBStatus.SRVNonSpecificError);
 
 		// Check if the request is using security blobs or the older hashed password format
 
@@ -471,7 +471,7 @@ public class PassthruAuthenticator extends CifsAuthenticator implements SessionL
 			domain = reqPkt.unpackString(isUni);
 
 			if ( domain == null)
-				throw new SMBSrvException(SMBStatus.NTInvalidParameter, SMBStatus.SRVNonSpecificError, SMBStatus.ErrSrv);
+				throw new SMBSrvException(SMBStatus.NTInvalidParameter, SMBStatus.ErrSrv, SMBStatus.SRVNonSpecificError);
 		}
 
 		// Extract the clients native operating system
@@ -485,7 +485,7 @@ public class PassthruAuthenticator extends CifsAuthenticator implements SessionL
 			clientOS = reqPkt.unpackString(isUni);
 
 			if ( clientOS == null)
-				throw new SMBSrvException(SMBStatus.NTInvalidParameter, SMBStatus.SRVNonSpecificError, SMBStatus.ErrSrv);
+				throw new SMBSrvException(SMBStatus.NTInvalidParameter, SMBStatus.ErrSrv, SMBStatus.SRVNonSpecificError);
 		}
 
 		// Store the client maximum buffer size, maximum multiplexed requests count and client
@@ -636,7 +636,7 @@ public class PassthruAuthenticator extends CifsAuthenticator implements SessionL
 
 					// Return a server error to the client
 
-					throw new SMBSrvException(SMBStatus.NTInvalidParameter, SMBStatus.SRVNoBuffers, SMBStatus.ErrSrv);
+					throw new SMBSrvException(SMBStatus.NTInvalidParameter, SMBStatus.ErrSrv, SMBStatus.SRVNoBuffers);
 				}
 			}
 
@@ -711,7 +711,7 @@ public class PassthruAuthenticator extends CifsAuthenticator implements SessionL
 
 				// Failed to allocate a UID
 
-				throw new SMBSrvException(SMBStatus.NTLogonFailure, SMBStatus.DOSAccessDenied, SMBStatus.ErrDos);
+				throw new SMBSrvException(SMBStatus.NTLogonFailure, SMBStatus.ErrDos, SMBStatus.DOSAccessDenied);
 			}
 			else if ( hasDebug() && sess.hasDebug(SMBSrvSession.DBG_NEGOTIATE)) {
 
@@ -84,6 +84,7 @@ public class ConfigId {
 	public static final int SMBMaxVirtualCircuit= GroupSMB + 29;
         public static final int SMBLoadBalancerList     = GroupSMB + 30;
         public static final int SMBTerminalServerList   = GroupSMB + 31;
+	public static final int SMBEnableSMB2		= GroupSMB + 32;
 
 	// FTP server variables
 
@@ -109,6 +110,8 @@ public class ConfigId {
 	public static final int FTPKeyProvider		= GroupFTP + 20;
 	public static final int FTPTrustProvider	= GroupFTP + 21;
         public static final int FTPSrvSessionTimeout= GroupFTP + 22;
+	public static final int FTPDisableNIO		= GroupFTP + 23;
+	public static final int FTPTransferThreads	= GroupFTP + 24;
 
 	// NFS server variables
 
@@ -126,6 +129,15 @@ public class ConfigId {
 	public static final int NFSFileCacheCloseTimer = GroupNFS + 12;
 	public static final int NFSFileCacheDebug 	= GroupNFS + 13;
 	public static final int NFSRPCRegistrationPort = GroupNFS + 14;
+	public static final int NFSUnstableWriteBuffer = GroupNFS + 15;
+	public static final int NFSFileCacheAttributeTimer = GroupNFS + 16;
+	public static final int NFSDisableNIO		= GroupNFS + 17;
+	public static final int NFSMaxSessionRequests = GroupNFS + 18;
+	public static final int NFSDirectoryCacheMemory = GroupNFS + 19;
+	public static final int NFSDirectoryCacheTimeout = GroupNFS + 20;
+	public static final int NFSEnableV4			= GroupNFS + 21;
+	public static final int NFSFileIdIndexDir	= GroupNFS + 22;
+	public static final int NFSUnstableWriteLimit = GroupNFS + 23;
 
 	// NetBIOS server variables
 
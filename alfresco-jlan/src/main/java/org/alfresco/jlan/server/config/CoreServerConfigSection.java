@@ -77,6 +77,19 @@ public class CoreServerConfigSection extends ConfigSection {
 	 */
 	public final void setThreadPool( int initSize, int maxSize)
 		throws InvalidConfigurationException {
+		setThreadPool( initSize, maxSize, ThreadRequestPool.QueueShared);
+	}
+
+	/**
+	 * Set the thread pool initial and maximum size, and the request queue type
+	 *
+	 * @param initSize int
+	 * @param maxSize int
+	 * @param queueType int
+	 * @exception InvalidConfigurationException
+	 */
+	public final void setThreadPool( int initSize, int maxSize, int queueType)
+		throws InvalidConfigurationException {
 
 		// Range check the initial and maximum thread counts
 
@@ -93,7 +106,7 @@ public class CoreServerConfigSection extends ConfigSection {
 
 		// Create the thread pool
 
-		m_threadPool = new ThreadRequestPool( "AlfJLANWorker", initSize);
+		m_threadPool = new ThreadRequestPool( "AlfJLANWorker", initSize, queueType);
 	}
 
 	/**
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2006-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.alfresco.jlan.server.filesys;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+import org.alfresco.jlan.server.SrvSession;
+
+/**
+ * Zero Copy Read Interface
+ *
+ * <p>Optional interface that a DiskInterface driver can implement to allow file data to be sent directly
+ * from a file channel to the network, without being copied into the response packet.
+ *
+ * @author gkspencer
+ */
+public interface ZeroCopyReadInterface {
+
+	/**
+	 * Return the file channel that can be used to read the file data, or null if the file cannot be read
+	 * using a file channel. A channel should only be returned if the readFile() method of the driver would
+	 * read the same data directly from the file. The channel position is not changed by the caller.
+	 *
+	 * @param sess SrvSession
+	 * @param tree TreeConnection
+	 * @param file NetworkFile
+	 * @return FileChannel
+	 * @exception IOException
+	 */
+	public FileChannel getReadChannel(SrvSession sess, TreeConnection tree, NetworkFile file)
+		throws IOException;
+}
@@ -0,0 +1,718 @@
+/*
+ * Copyright (C) 2006-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.alfresco.jlan.server.filesys.cache;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.alfresco.jlan.debug.Debug;
+import org.alfresco.jlan.server.config.InvalidConfigurationException;
+import org.alfresco.jlan.server.config.ServerConfiguration;
+import org.alfresco.jlan.server.filesys.FileStatus;
+import org.alfresco.jlan.server.locking.OpLockDetails;
+import org.springframework.extensions.config.ConfigElement;
+
+/**
+ * Concurrent File State Cache Class
+ *
+ * <p>
+ * File state cache for standalone servers with a large number of active paths. File state lookups use a
+ * concurrent hash map so they do not serialize on a single lock.
+ *
+ * <p>
+ * File states are also queued to a timer wheel, with one slot per cache check interval, using their expiry
+ * time. The expiry check only examines the slots that have become due rather than every state in the cache.
+ * As the expiry time of a file state may be updated without going through the cache a state is checked
+ * again when its slot is due, states that have not expired, are open or are permanent are requeued to a later
+ * slot. Each timer wheel entry records the state timer wheel generation, requeueing a state moves it to a new
+ * generation so that any earlier entry for the state is discarded when its slot is checked.
+ *
+ * <p>
+ * An optional maximum size may be set, when the cache grows above the maximum size idle file states are
+ * removed in expiry time order, without waiting for them to expire.
+ *
+ * @author gkspencer
+ */
+public class ConcurrentFileStateCache extends FileStateCache {
+
+	// Initial allocation size for the state cache
+
+	private static final int InitialCacheSize = 500;
+	private static final int MinimumCacheSize = 100;
+
+	// Default concurrency level, number of concurrent updaters
+
+	private static final int DefaultConcurrencyLevel = 16;
+
+	// Number of timer wheel slots, each slot covers one cache check interval
+
+	private static final int WheelSlots = 64;
+
+	// Percentage of the maximum size to reduce the cache to when idle states are removed
+
+	private static final int EvictLowWaterPercent = 90;
+
+	// Number of locks used to serialize cache and path index updates for the same path, must be a power of 2
+
+	private static final int PathLockStripes = 64;
+
+	// File state cache, keyed by file path, and count of states
+
+	private ConcurrentHashMap<String, FileState> m_stateCache;
+	private AtomicInteger m_stateCount = new AtomicInteger();
+
+	// Path index of the file states, used to find the file states below a folder
+
+	private FileStatePathIndex m_pathIndex = new FileStatePathIndex();
+
+	// Locks used to make the cache and path index updates for a path atomic, indexed by the path hash
+
+	private Object[] m_pathLocks;
+
+	// Maximum number of file states, or zero for no limit
+
+	private int m_maxStates;
+
+	// Timer wheel of file states in expiry order, the length of time each slot covers and the last slot
+	// that was checked
+
+	private List<ConcurrentLinkedQueue<WheelEntry>> m_wheel;
+	private long m_tickInterval;
+	private volatile long m_lastTick;
+
+	// Lock used by the expiry check and idle state removal
+
+	private ReentrantLock m_expiryLock = new ReentrantLock();
+
+	/**
+	 * Timer Wheel Entry Class
+	 *
+	 * <p>File state queued to a timer wheel slot, and the state timer wheel generation when it was queued.
+	 */
+	private static final class WheelEntry {
+
+		// File state and timer wheel generation
+
+		FileState m_state;
+		int m_generation;
+
+		/**
+		 * Class constructor
+		 *
+		 * @param state FileState
+		 * @param generation int
+		 */
+		WheelEntry( FileState state, int generation) {
+			m_state = state;
+			m_generation = generation;
+		}
+	}
+
+	/**
+	 * Class constructor
+	 */
+	public ConcurrentFileStateCache() {
+	}
+
+	/**
+	 * Initialize the file state cache
+	 *
+	 * @param srvConfig ServerConfiguration
+	 * @throws InvalidConfigurationException
+	 */
+	public void initializeCache( ConfigElement config, ServerConfiguration srvConfig)
+		throws InvalidConfigurationException {
+
+		// Call the base class
+
+		super.initializeCache( config, srvConfig);
+
+		// Get the initial cache size, concurrency level and maximum cache size, if specified
+
+		int initSize = getIntegerValue( config, "initialSize", InitialCacheSize);
+		if ( initSize < MinimumCacheSize)
+			throw new InvalidConfigurationException( "Initial cache size value too low, " + initSize);
+
+		int concurrency = getIntegerValue( config, "concurrencyLevel", DefaultConcurrencyLevel);
+		if ( concurrency < 1)
+			throw new InvalidConfigurationException( "Invalid concurrency level, " + concurrency);
+
+		m_maxStates = getIntegerValue( config, "maximumSize", 0);
+		if ( m_maxStates != 0 && m_maxStates < MinimumCacheSize)
+			throw new InvalidConfigurationException( "Maximum cache size value too low, " + m_maxStates);
+
+		// Allocate the state cache
+
+		m_stateCache = new ConcurrentHashMap<String, FileState>( initSize, 0.75f, concurrency);
+
+		// Allocate the timer wheel, each slot covers one cache check interval
+
+		m_wheel = new ArrayList<ConcurrentLinkedQueue<WheelEntry>>( WheelSlots);
+		for ( int i = 0; i < WheelSlots; i++)
+			m_wheel.add( new ConcurrentLinkedQueue<WheelEntry>());
+
+		// Allocate the path locks
+
+		m_pathLocks = new Object[PathLockStripes];
+		for ( int i = 0; i < m_pathLocks.length; i++)
+			m_pathLocks[i] = new Object();
+
+		m_tickInterval = getCheckInterval();
+		m_lastTick = System.currentTimeMillis() / m_tickInterval;
+	}
+
+	/**
+	 * Get an integer configuration value
+	 *
+	 * @param config ConfigElement
+	 * @param name String
+	 * @param defValue int
+	 * @return int
+	 * @exception InvalidConfigurationException
+	 */
+	private final int getIntegerValue( ConfigElement config, String name, int defValue)
+		throws InvalidConfigurationException {
+
+		ConfigElement elem = config.getChild( name);
+		if ( elem == null || elem.getValue() == null)
+			return defValue;
+
+		try {
+			return Integer.parseInt( elem.getValue());
+		}
+		catch ( NumberFormatException ex) {
+			throw new InvalidConfigurationException( "Invalid " + name + " value, " + elem.getValue());
+		}
+	}
+
+	/**
+	 * Return the number of states in the cache
+	 *
+	 * @return int
+	 */
+	public final int numberOfStates() {
+		return m_stateCount.get();
+	}
+
+	/**
+	 * Return the maximum number of states, or zero if there is no limit
+	 *
+	 * @return int
+	 */
+	public final int getMaximumStates() {
+		return m_maxStates;
+	}
+
+	/**
+	 * Find the file state for the specified path
+	 *
+	 * @param path String
+	 * @return FileState
+	 */
+	public final FileState findFileState(String path) {
+		return m_stateCache.get(FileState.normalizePath(path, isCaseSensitive()));
+	}
+
+	/**
+	 * Find the file state for the specified path, and optionally create a new file state if not
+	 * found
+	 *
+	 * @param path String
+	 * @param create boolean
+	 * @return FileState
+	 */
+	public final FileState findFileState(String path, boolean create) {
+		return findFileState( path, create, FileStatus.Unknown);
+	}
+
+    /**
+     * Find the file state for the specified path, and optionally create a new file state if not
+     * found with the specified initial status
+     *
+     * @param path String
+     * @param create boolean
+     * @param status int
+     * @return FileState
+     */
+    public final FileState findFileState(String path, boolean create, int status) {
+
+        // Find the required file state, if it exists
+
+    	FileState state = m_stateCache.get(FileState.normalizePath(path, isCaseSensitive()));
+
+        // Check if we should create a new file state
+
+        if ( state == null && create == true) {
+
+            // Create a new file state, set the file state timeout
+
+            state = new LocalFileState(path, status, isCaseSensitive());
+            state.setExpiryTime(System.currentTimeMillis() + getFileStateExpireInterval());
+
+            // Add to the cache and path index, another thread may have added a state for the same path
+
+            FileState curState = null;
+
+            synchronized ( getPathLock( state.getPath())) {
+            	curState = m_stateCache.putIfAbsent(state.getPath(), state);
+            	if ( curState == null)
+            		m_pathIndex.addState( state);
+            }
+
+            if ( curState != null)
+            	state = curState;
+            else {
+
+            	// Queue the new state to the timer wheel
+
+            	m_stateCount.incrementAndGet();
+            	scheduleState( state);
+
+            	// Check if the cache is over the maximum size, do not wait if another thread is already
+            	// removing states
+
+            	if ( m_maxStates > 0 && m_stateCount.get() > m_maxStates && m_expiryLock.tryLock()) {
+            		try {
+            			removeIdleFileStates();
+            		}
+            		finally {
+            			m_expiryLock.unlock();
+            		}
+            	}
+            }
+        }
+
+        // Return the file state
+
+        return state;
+    }
+
+	/**
+	 * Remove the file state for the specified path
+	 *
+	 * @param path String
+	 * @return FileState
+	 */
+	public final FileState removeFileState(String path) {
+
+		// Remove the file state from the cache and path index, the timer wheel entry is discarded when its
+		// slot is checked
+
+		String normPath = FileState.normalizePath(path, isCaseSensitive());
+		FileState state = null;
+
+		synchronized ( getPathLock( normPath)) {
+			state = m_stateCache.remove( normPath);
+			if ( state != null)
+				m_pathIndex.removeState( normPath, state);
+		}
+
+		if ( state != null) {
+			m_stateCount.decrementAndGet();
+
+			// Check if there is a state listener
+
+			if ( hasStateListener())
+				getStateListener().fileStateClosed(state);
+		}
+
+		// Return the removed file state
+
+		return state;
+	}
+
+	/**
+	 * Rename a file state, remove the existing entry, update the path and add the state back into
+	 * the cache using the new path.
+	 *
+	 * @param newPath String
+	 * @param state FileState
+	 * @param isDir boolean
+	 */
+	public final void renameFileState(String newPath, FileState state, boolean isDir) {
+
+		// Remove the existing file state from the cache, using the original name
+
+		String oldPath = state.getPath();
+
+		synchronized ( getPathLock( oldPath)) {
+			if ( m_stateCache.remove(oldPath, state))
+				m_stateCount.decrementAndGet();
+			m_pathIndex.removeState( oldPath, state);
+		}
+
+		// Update the file state path and add it back to the cache using the new name
+
+		state.setPath(newPath, isCaseSensitive());
+		state.setFileStatus(isDir ? FileStatus.DirectoryExists : FileStatus.FileExists);
+
+		synchronized ( getPathLock( state.getPath())) {
+			FileState oldState = m_stateCache.put(state.getPath(), state);
+			if ( oldState == null)
+				m_stateCount.incrementAndGet();
+			else if ( oldState != state)
+				m_pathIndex.removeState( state.getPath(), oldState);
+			m_pathIndex.addState( state);
+		}
+
+		// Requeue the state to the timer wheel, the existing entry may have been discarded whilst the state
+		// was not in the cache. Any existing entry becomes stale.
+
+		scheduleState( state);
+
+		// If the path is to a folder we must change the file status of all file states that are
+		// using the old path
+
+		if ( isDir == true)
+			invalidateFileStatesBelow(oldPath);
+	}
+
+	/**
+	 * Return the file states below the specified folder, not including the folder state
+	 *
+	 * @param folderPath String
+	 * @return List<FileState>
+	 */
+	public List<FileState> getFileStatesBelow(String folderPath) {
+		return m_pathIndex.getStatesBelow(folderPath);
+	}
+
+	/**
+	 * Remove all file states from the cache
+	 */
+	public final void removeAllFileStates() {
+
+		// Check if there are any items in the cache
+
+		if ( m_stateCache == null || m_stateCache.isEmpty())
+			return;
+
+		m_expiryLock.lock();
+
+		try {
+
+	        // Enumerate the file state cache and remove the file state objects
+
+	        Iterator<FileState> stateIter = m_stateCache.values().iterator();
+
+	        while ( stateIter.hasNext()) {
+
+	        	FileState state = stateIter.next();
+
+	        	synchronized ( getPathLock( state.getPath())) {
+	        		stateIter.remove();
+	        		m_pathIndex.removeState( state.getPath(), state);
+	        	}
+	        	m_stateCount.decrementAndGet();
+
+				// Check if there is a state listener
+
+				if ( hasStateListener())
+					getStateListener().fileStateClosed(state);
+
+				// DEBUG
+
+				if ( Debug.EnableInfo && hasDebug())
+					Debug.println("++ Closed: " + state.getPath());
+			}
+
+	        // Clear the timer wheel
+
+	        for ( ConcurrentLinkedQueue<WheelEntry> slot : m_wheel)
+	        	slot.clear();
+		}
+		finally {
+			m_expiryLock.unlock();
+		}
+	}
+
+	/**
+	 * Remove expired file states from the cache
+	 *
+	 * @return int
+	 */
+	public final int removeExpiredFileStates() {
+
+		// Check if there are any items in the cache
+
+		if ( m_stateCache == null)
+			return 0;
+
+		m_expiryLock.lock();
+
+		try {
+
+			// Check the timer wheel slots that have become due since the last check, if the check has not run for
+			// a full turn of the wheel then each slot only needs to be checked once
+
+			long curTime = System.currentTimeMillis();
+			long curTick = curTime / m_tickInterval;
+
+			if ( curTick - m_lastTick > WheelSlots)
+				m_lastTick = curTick - WheelSlots;
+
+			int expiredCnt = 0;
+			int openCnt = 0;
+
+			while ( m_lastTick < curTick) {
+
+				// Move to the next slot, states that are requeued go into later slots
+
+				m_lastTick++;
+				ConcurrentLinkedQueue<WheelEntry> slot = m_wheel.get((int) ( m_lastTick % WheelSlots));
+
+				WheelEntry entry = slot.poll();
+
+				while ( entry != null) {
+
+					// Check if the state is still in the cache and the entry is the current entry for the state,
+					// if not then discard the timer wheel entry
+
+					FileState state = entry.m_state;
+
+					if ( isCurrentEntry( entry)) {
+
+						// Check if the file state has expired and there are no open references to the file
+
+						if ( state.isPermanentState() == false && state.getOpenCount() == 0 && state.hasExpired( curTime) &&
+								removeIdleState( state)) {
+
+							// DEBUG
+
+							if ( hasDebugExpiredStates())
+								Debug.println("++ Expired file state: " + state);
+
+							// Update the expired count
+
+							expiredCnt++;
+						}
+						else {
+
+							// Count open files
+
+							if ( state.isPermanentState() == false && state.getOpenCount() > 0)
+								openCnt++;
+
+							// Requeue the state to be checked again later
+
+							scheduleState( state);
+						}
+					}
+
+					// Get the next entry from the slot
+
+					entry = slot.poll();
+				}
+			}
+
+			// Check if the cache is over the maximum size
+
+			if ( m_maxStates > 0 && m_stateCount.get() > m_maxStates)
+				removeIdleFileStates();
+
+			// DEBUG
+
+			if ( hasDebugExpiredStates() && openCnt > 0) {
+				Debug.println("++ Open files " + openCnt);
+				dumpCache( false);
+			}
+
+			// Return the count of expired file states that were removed
+
+			return expiredCnt;
+		}
+		finally {
+			m_expiryLock.unlock();
+		}
+	}
+
+	/**
+	 * Dump the state cache entries to the specified stream
+	 *
+	 * @param dumpAttribs boolean
+	 */
+	public final void dumpCache(boolean dumpAttribs) {
+
+        // Dump the file state cache entries to the specified stream
+
+		if ( m_stateCache.size() > 0)
+			Debug.println("++ FileStateCache Entries:");
+
+		long curTime = System.currentTimeMillis();
+
+        for (Map.Entry<String, FileState> entry : m_stateCache.entrySet()) {
+
+            FileState state = entry.getValue();
+			Debug.println("++  " + entry.getKey() + "(" + state.getSecondsToExpire(curTime) + ") : " + state.toString());
+
+			// Check if the state attributes should be output
+
+			if ( dumpAttribs == true)
+				state.DumpAttributes();
+		}
+	}
+
+	/**
+	 * Request an oplock break
+	 *
+	 * @param path String
+	 * @param oplock OpLockDetails
+	 * @exception IOException
+	 */
+	public void requestOplockBreak( String path, OpLockDetails oplock)
+		throws IOException {
+
+		// Only used for remote oplocks
+	}
+
+	/**
+	 * Queue a file state to the timer wheel slot for its expiry time. Permanent states are checked again
+	 * after the file state expiry interval.
+	 *
+	 * @param state FileState
+	 */
+	private final void scheduleState( FileState state) {
+
+		// Get the tick the state should be checked at, must be after the last checked slot and within
+		// one turn of the wheel
+
+		long lastTick = m_lastTick;
+		long tick = System.currentTimeMillis() + getFileStateExpireInterval();
+
+		if ( state.isPermanentState() == false && state.getOpenCount() == 0)
+			tick = state.getExpiryTime();
+
+		tick = ( tick / m_tickInterval) + 1;
+
+		if ( tick <= lastTick)
+			tick = lastTick + 1;
+		else if ( tick >= lastTick + WheelSlots)
+			tick = lastTick + WheelSlots - 1;
+
+		// Add the state to the timer wheel slot, using a new generation so that any existing entry becomes stale
+
+		m_wheel.get((int) ( tick % WheelSlots)).add( new WheelEntry( state, state.nextWheelGeneration()));
+	}
+
+	/**
+	 * Check if a timer wheel entry is the current entry for a file state that is in the cache
+	 *
+	 * @param entry WheelEntry
+	 * @return boolean
+	 */
+	private final boolean isCurrentEntry( WheelEntry entry) {
+		return entry.m_state.getWheelGeneration() == entry.m_generation && m_stateCache.get( entry.m_state.getPath()) == entry.m_state;
+	}
+
+	/**
+	 * Return the lock used to serialize cache and path index updates for a path
+	 *
+	 * @param path String
+	 * @return Object
+	 */
+	private final Object getPathLock( String path) {
+		return m_pathLocks[ path.hashCode() & ( PathLockStripes - 1)];
+	}
+
+	/**
+	 * Remove an idle file state from the cache, if the state listener allows it
+	 *
+	 * @param state FileState
+	 * @return boolean
+	 */
+	private final boolean removeIdleState( FileState state) {
+
+		// Check if there is a state listener, and it allows the state to be removed
+
+		if ( hasStateListener() && getStateListener().fileStateExpired(state) == true) {
+
+			// Remove the file state
+
+			String path = state.getPath();
+			boolean removed = false;
+
+			synchronized ( getPathLock( path)) {
+				removed = m_stateCache.remove( path, state);
+				if ( removed)
+					m_pathIndex.removeState( path, state);
+			}
+
+			if ( removed) {
+				m_stateCount.decrementAndGet();
+				return true;
+			}
+		}
+
+		// State not removed
+
+		return false;
+	}
+
+	/**
+	 * Remove idle file states, in expiry time order, until the cache is below the low water mark. Must be
+	 * called with the expiry lock held.
+	 */
+	private final void removeIdleFileStates() {
+
+		// Calculate the number of states to remove
+
+		int lowWater = ( m_maxStates * EvictLowWaterPercent) / 100;
+		int removeCnt = 0;
+
+		// Walk the timer wheel slots in expiry order
+
+		long tick = m_lastTick + 1;
+
+		for ( int i = 0; i < WheelSlots && m_stateCount.get() > lowWater; i++) {
+
+			Iterator<WheelEntry> slotIter = m_wheel.get((int) ( ( tick + i) % WheelSlots)).iterator();
+
+			while ( slotIter.hasNext() && m_stateCount.get() > lowWater) {
+
+				// Discard stale entries, and entries for states that are no longer in the cache
+
+				WheelEntry entry = slotIter.next();
+				FileState state = entry.m_state;
+
+				if ( isCurrentEntry( entry) == false)
+					slotIter.remove();
+
+				// Remove idle states
+
+				else if ( state.isPermanentState() == false && state.getOpenCount() == 0 && removeIdleState( state)) {
+					slotIter.remove();
+					removeCnt++;
+				}
+			}
+		}
+
+		// DEBUG
+
+		if ( Debug.EnableInfo && hasDebug())
+			Debug.println("++ Removed " + removeCnt + " idle file states, cache size " + m_stateCount.get() + "/" + m_maxStates);
+	}
+}
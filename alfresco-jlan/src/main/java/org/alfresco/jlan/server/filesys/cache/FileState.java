@@ -135,6 +135,10 @@ public abstract class FileState implements Serializable {
     private long m_fileSize = -1;
     private long m_allocSize;
 
+	// Timer wheel generation, used by the concurrent file state cache to detect stale timer wheel entries
+
+	private transient int m_wheelGen;
+
     /**
      * Default constructor
      */
@@ -386,6 +390,15 @@ public abstract class FileState implements Serializable {
 	  return false;
 	}
 
+	/**
+	 * Return the file state expiry time, or NoTimeout if the state does not expire
+	 *
+	 * @return long
+	 */
+	public final long getExpiryTime() {
+		return m_tmo;
+	}
+
 	/**
 	 * Return the number of seconds left before the file state expires
 	 *
@@ -445,6 +458,24 @@ public abstract class FileState implements Serializable {
 		m_tmo = expire;
 	}
 
+	/**
+	 * Return the current timer wheel generation
+	 *
+	 * @return int
+	 */
+	final synchronized int getWheelGeneration() {
+		return m_wheelGen;
+	}
+
+	/**
+	 * Move to the next timer wheel generation, any existing timer wheel entry for the state becomes stale
+	 *
+	 * @return int
+	 */
+	final synchronized int nextWheelGeneration() {
+		return ++m_wheelGen;
+	}
+
 	/**
 	 * Set the retention period expiry date/time
 	 *
@@ -20,6 +20,7 @@
 package org.alfresco.jlan.server.filesys.cache;
 
 import java.io.IOException;
+import java.util.List;
 
 import org.alfresco.jlan.debug.Debug;
 import org.alfresco.jlan.locking.FileLock;
@@ -357,6 +358,50 @@ public abstract class FileStateCache {
 	 */
 	public abstract void renameFileState(String newPath, FileState state, boolean isDir);
 
+	/**
+	 * Return the file states below the specified folder, not including the folder state. Caches that cannot
+	 * search by folder return null.
+	 *
+	 * @param folderPath String
+	 * @return List<FileState>
+	 */
+	public List<FileState> getFileStatesBelow(String folderPath) {
+		return null;
+	}
+
+	/**
+	 * Mark the file states below the specified folder as not existing, used when a folder has been
+	 * renamed or deleted
+	 *
+	 * @param folderPath String
+	 * @return int
+	 */
+	public int invalidateFileStatesBelow(String folderPath) {
+
+		// Get the file states below the folder
+
+		List<FileState> states = getFileStatesBelow( folderPath);
+		if ( states == null)
+			return 0;
+
+		for ( FileState state : states) {
+
+			// Mark the file state as not existing
+
+			state.setFileStatus(FileStatus.NotExist);
+			state.setFileId(FileState.UnknownFileId);
+
+			// DEBUG
+
+			if ( Debug.EnableInfo && hasDebug())
+				Debug.println("++ Invalidate " + state.getPath());
+		}
+
+		// Return the count of file states updated
+
+		return states.size();
+	}
+
 	/**
 	 * Remove all file states from the cache
 	 */
@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2006-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.alfresco.jlan.server.filesys.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.alfresco.jlan.server.filesys.FileName;
+
+/**
+ * File State Path Index Class
+ *
+ * <p>
+ * Indexes file states by path using a tree of path components so that the file states below a folder can be
+ * found in time proportional to the size of the subtree rather than the size of the file state cache.
+ *
+ * <p>
+ * File states are indexed using their normalized path. Folder names within a normalized path are always
+ * uppercased, so the subtree below a folder is found using the uppercased folder path.
+ *
+ * <p>
+ * Each node is locked when its child list or file state are updated, so updates to different parts of the tree do
+ * not block each other. Nodes that have no file state and no children are removed from the tree.
+ *
+ * @author gkspencer
+ */
+public class FileStatePathIndex {
+
+	/**
+	 * Path Index Node Inner Class
+	 */
+	private static final class Node {
+
+		// Parent node and path component name
+
+		private final Node m_parent;
+		private final String m_name;
+
+		// Child nodes, allocated when the first child is added
+
+		private volatile ConcurrentHashMap<String, Node> m_children;
+
+		// File state for this path, may be null
+
+		private volatile FileState m_state;
+
+		// Node has been removed from the tree
+
+		private boolean m_detached;
+
+		/**
+		 * Class constructor
+		 *
+		 * @param parent Node
+		 * @param name String
+		 */
+		Node( Node parent, String name) {
+			m_parent = parent;
+			m_name = name;
+		}
+
+		/**
+		 * Check if the node is not used
+		 *
+		 * @return boolean
+		 */
+		final boolean isUnused() {
+			return m_state == null && ( m_children == null || m_children.isEmpty());
+		}
+	}
+
+	// Root of the path tree
+
+	private volatile Node m_root = new Node( null, "");
+
+	/**
+	 * Class constructor
+	 */
+	public FileStatePathIndex() {
+	}
+
+	/**
+	 * Add a file state to the index
+	 *
+	 * @param state FileState
+	 */
+	public final void addState( FileState state) {
+
+		String path = state.getPath();
+
+		while ( true) {
+
+			// Walk the path, adding nodes as required
+
+			Node node = m_root;
+			int pos = 0;
+
+			while ( node != null && ( pos = nextComponent( path, pos)) != -1) {
+
+				int endPos = componentEnd( path, pos);
+				node = getChild( node, path.substring( pos, endPos), true);
+				pos = endPos;
+			}
+
+			// Set the file state, if the node was removed from the tree whilst walking the path then retry
+
+			if ( node != null) {
+				synchronized ( node) {
+					if ( node.m_detached == false) {
+						node.m_state = state;
+						return;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Remove a file state from the index
+	 *
+	 * @param path String
+	 * @param state FileState
+	 */
+	public final void removeState( String path, FileState state) {
+
+		// Find the node for the path
+
+		Node node = findNode( path);
+		if ( node == null)
+			return;
+
+		// Clear the file state, if it has not been replaced
+
+		synchronized ( node) {
+			if ( node.m_state != state)
+				return;
+			node.m_state = null;
+		}
+
+		// Remove unused nodes from the tree
+
+		pruneNodes( node);
+	}
+
+	/**
+	 * Return the file states below the specified folder, not including the folder state
+	 *
+	 * @param folderPath String
+	 * @return List<FileState>
+	 */
+	public final List<FileState> getStatesBelow( String folderPath) {
+
+		List<FileState> states = new ArrayList<FileState>();
+
+		// Find the folder node, folder names are uppercased in normalized paths. Use the same per character
+		// uppercasing as the path normalization, a locale sensitive uppercase may change the folder name.
+
+		Node folderNode = findNode( FileState.upperCaseAToZ( folderPath));
+
+		if ( folderNode != null && folderNode.m_children != null) {
+
+			// Walk the subtree collecting the file states
+
+			List<Node> pending = new ArrayList<Node>( folderNode.m_children.values());
+
+			while ( pending.isEmpty() == false) {
+
+				Node node = pending.remove( pending.size() - 1);
+
+				FileState state = node.m_state;
+				if ( state != null)
+					states.add( state);
+
+				ConcurrentHashMap<String, Node> children = node.m_children;
+				if ( children != null)
+					pending.addAll( children.values());
+			}
+		}
+
+		// Return the file states
+
+		return states;
+	}
+
+	/**
+	 * Remove all file states from the index
+	 */
+	public final void clear() {
+		m_root = new Node( null, "");
+	}
+
+	/**
+	 * Find the node for the specified path
+	 *
+	 * @param path String
+	 * @return Node, or null if there is no node for the path
+	 */
+	private final Node findNode( String path) {
+
+		Node node = m_root;
+		int pos = 0;
+
+		while ( node != null && ( pos = nextComponent( path, pos)) != -1) {
+
+			int endPos = componentEnd( path, pos);
+			node = getChild( node, path.substring( pos, endPos), false);
+			pos = endPos;
+		}
+
+		return node;
+	}
+
+	/**
+	 * Get a child node, optionally creating the child node. Returns null if the parent node has been removed from
+	 * the tree when creating a child node.
+	 *
+	 * @param parent Node
+	 * @param name String
+	 * @param create boolean
+	 * @return Node
+	 */
+	private final Node getChild( Node parent, String name, boolean create) {
+
+		// Check for an existing child node
+
+		ConcurrentHashMap<String, Node> children = parent.m_children;
+		Node child = children != null ? children.get( name) : null;
+
+		if ( child != null || create == false)
+			return child;
+
+		// Create the child node
+
+		synchronized ( parent) {
+
+			if ( parent.m_detached)
+				return null;
+
+			if ( parent.m_children == null)
+				parent.m_children = new ConcurrentHashMap<String, Node>( 4);
+
+			child = parent.m_children.get( name);
+			if ( child == null) {
+				child = new Node( parent, name);
+				parent.m_children.put( name, child);
+			}
+		}
+
+		return child;
+	}
+
+	/**
+	 * Remove unused nodes from the tree, working up from the specified node
+	 *
+	 * @param node Node
+	 */
+	private final void pruneNodes( Node node) {
+
+		while ( node.m_parent != null) {
+
+			Node parent = node.m_parent;
+
+			synchronized ( parent) {
+				synchronized ( node) {
+
+					// Stop when a node is still in use
+
+					if ( node.m_detached || node.isUnused() == false)
+						return;
+
+					// Remove the node from the tree
+
+					node.m_detached = true;
+					parent.m_children.remove( node.m_name, node);
+				}
+			}
+
+			node = parent;
+		}
+	}
+
+	/**
+	 * Return the start of the next path component, or -1 if there are no more components
+	 *
+	 * @param path String
+	 * @param pos int
+	 * @return int
+	 */
+	private static final int nextComponent( String path, int pos) {
+		while ( pos < path.length() && path.charAt( pos) == FileName.DOS_SEPERATOR)
+			pos++;
+		return pos < path.length() ? pos : -1;
+	}
+
+	/**
+	 * Return the end of the path component starting at the specified position
+	 *
+	 * @param path String
+	 * @param pos int
+	 * @return int
+	 */
+	private static final int componentEnd( String path, int pos) {
+		int endPos = path.indexOf( FileName.DOS_SEPERATOR, pos);
+		return endPos != -1 ? endPos : path.length();
+	}
+}
@@ -22,12 +22,12 @@ package org.alfresco.jlan.server.filesys.cache;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 import org.alfresco.jlan.debug.Debug;
 import org.alfresco.jlan.server.config.InvalidConfigurationException;
 import org.alfresco.jlan.server.config.ServerConfiguration;
-import org.alfresco.jlan.server.filesys.FileName;
 import org.alfresco.jlan.server.filesys.FileStatus;
 import org.alfresco.jlan.server.locking.OpLockDetails;
 import org.springframework.extensions.config.ConfigElement;
@@ -52,6 +52,10 @@ public class StandaloneFileStateCache extends FileStateCache {
 
     private Map<String, FileState> m_stateCache;
 
+    // Path index of the file states, used to find the file states below a folder
+
+    private FileStatePathIndex m_pathIndex = new FileStatePathIndex();
+
 	/**
 	 * Class constructor
 	 */
@@ -158,6 +162,7 @@ public class StandaloneFileStateCache extends FileStateCache {
 
 				state.setExpiryTime(System.currentTimeMillis() + getFileStateExpireInterval());
 				m_stateCache.put(state.getPath(), state);
+				m_pathIndex.addState(state);
 			}
 		}
 
@@ -198,6 +203,7 @@ public class StandaloneFileStateCache extends FileStateCache {
 	            state.setExpiryTime(System.currentTimeMillis() + getFileStateExpireInterval());
 	            state.setFileStatus( status);
 	            m_stateCache.put(state.getPath(), state);
+	            m_pathIndex.addState(state);
 	        }
 		}
 
@@ -221,6 +227,9 @@ public class StandaloneFileStateCache extends FileStateCache {
 			// Remove the file state from the cache
 
 			state = m_stateCache.remove(FileState.normalizePath(path, isCaseSensitive()));
+
+			if ( state != null)
+				m_pathIndex.removeState(state.getPath(), state);
 		}
 
 		// Check if there is a state listener
@@ -252,6 +261,7 @@ public class StandaloneFileStateCache extends FileStateCache {
 			// Remove the existing file state from the cache, using the original name
 
 			m_stateCache.remove(state.getPath());
+			m_pathIndex.removeState(state.getPath(), state);
 
 			// Update the file state path and add it back to the cache using the new name
 
@@ -259,40 +269,25 @@ public class StandaloneFileStateCache extends FileStateCache {
 			state.setFileStatus(isDir ? FileStatus.DirectoryExists : FileStatus.FileExists);
 
 			m_stateCache.put(state.getPath(), state);
+			m_pathIndex.addState(state);
+		}
 
-    		// If the path is to a folder we must change the file status of all file states that are
-    		// using the old path
-
-    		if ( isDir == true) {
-
-    			// Get the old path and normalize
-
-    			if ( oldPath.endsWith(FileName.DOS_SEPERATOR_STR) == false)
-    				oldPath = oldPath + FileName.DOS_SEPERATOR_STR;
-    			oldPath = oldPath.toUpperCase();
-
-    			// Enumerate the file states
-
-                for (String statePath : m_stateCache.keySet()) {
-
-    				// Check if the path is below the renamed path
-
-    				if ( statePath.length() > oldPath.length() && statePath.startsWith(oldPath)) {
-
-						// Get the associated file state, mark as not existing
-
-						FileState renState = (FileState) m_stateCache.get( statePath);
-
-						renState.setFileStatus(FileStatus.NotExist);
-						renState.setFileId(FileState.UnknownFileId);
+		// If the path is to a folder we must change the file status of all file states that are
+		// using the old path
 
-						// DEBUG
+		if ( isDir == true)
+			invalidateFileStatesBelow(oldPath);
+	}
 
-						if ( Debug.EnableInfo && hasDebug())
-							Debug.println("++ Rename update " + statePath);
-    				}
-    			}
-    		}
+	/**
+	 * Return the file states below the specified folder, not including the folder state
+	 *
+	 * @param folderPath String
+	 * @return List<FileState>
+	 */
+	public List<FileState> getFileStatesBelow(String folderPath) {
+		synchronized ( m_stateCache) {
+			return m_pathIndex.getStatesBelow(folderPath);
 		}
 	}
 
@@ -331,6 +326,7 @@ public class StandaloneFileStateCache extends FileStateCache {
 			// Remove all the file states
 
 			m_stateCache.clear();
+			m_pathIndex.clear();
 		}
 	}
 
@@ -382,6 +378,7 @@ public class StandaloneFileStateCache extends FileStateCache {
 							// Remove the expired file state
 
 	                        enm.remove();
+	                        m_pathIndex.removeState(entry.getKey(), state);
 
 							// DEBUG
 
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2006-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.alfresco.jlan.server.filesys.db;
+
+import org.alfresco.jlan.server.filesys.FileAttribute;
+import org.alfresco.jlan.server.filesys.FileInfo;
+import org.alfresco.jlan.server.filesys.SearchContext;
+import org.alfresco.jlan.util.WildCard;
+
+/**
+ * Cached List Search Context Class
+ *
+ * <p>Contains the details of a folder search using a list of file information loaded from the database, or
+ * a folder listing from the directory cache.
+ *
+ * @author gkspencer
+ */
+public class CachedListSearchContext extends SearchContext {
+
+	// File information list, and current position
+
+	private DBFileInfo[] m_list;
+	private int m_idx;
+
+	// Wildcard filter, or null if all files match
+
+	private WildCard m_filter;
+
+	// Mark files as offline, optional file size of files to be marked as offline
+
+	private boolean m_offlineFiles;
+	private long m_offlineFileSize;
+
+	/**
+	 * Class constructor
+	 *
+	 * @param list DBFileInfo[]
+	 * @param filter WildCard
+	 */
+	public CachedListSearchContext(DBFileInfo[] list, WildCard filter) {
+		super();
+
+		m_list = list;
+		m_filter = filter;
+	}
+
+	/**
+	 * Set the offline file settings
+	 *
+	 * @param offline boolean
+	 * @param fsize long
+	 */
+	public final void setMarkAsOffline(boolean offline, long fsize) {
+		m_offlineFiles = offline;
+		m_offlineFileSize = fsize;
+	}
+
+	/**
+	 * Return the resume id for the current file/directory in the search.
+	 *
+	 * @return int
+	 */
+	public int getResumeId() {
+		return m_idx;
+	}
+
+	/**
+	 * Determine if there are more files for the active search.
+	 *
+	 * @return boolean
+	 */
+	public boolean hasMoreFiles() {
+		return m_list != null && m_idx < m_list.length;
+	}
+
+	/**
+	 * Return the next file from the search, or return false if there are no more files
+	 *
+	 * @param info FileInfo
+	 * @return boolean
+	 */
+	public boolean nextFileInfo(FileInfo info) {
+
+		// Find the next matching file
+
+		DBFileInfo finfo = nextFile();
+		if ( finfo == null)
+			return false;
+
+		// Copy the file information details into the callers object
+
+		info.setFileId( finfo.getFileId());
+		info.setDirectoryId( finfo.getDirectoryId());
+		info.setFileName( finfo.getFileName());
+
+		info.setSize( finfo.getSize());
+		info.setAllocationSize( finfo.getAllocationSize());
+
+		info.setCreationDateTime( finfo.getCreationDateTime());
+		info.setAccessDateTime( finfo.getAccessDateTime());
+		info.setModifyDateTime( finfo.getModifyDateTime());
+		info.setChangeDateTime( finfo.getChangeDateTime());
+
+		info.setUid( finfo.getUid());
+		info.setGid( finfo.getGid());
+		info.setMode( finfo.getMode());
+		info.setFileType( finfo.isFileType());
+
+		// Set the file attributes, check if the file should be marked as offline
+
+		int attr = finfo.getFileAttributes();
+
+		if ( m_offlineFiles) {
+			if ( m_offlineFileSize == 0 || finfo.getSize() >= m_offlineFileSize)
+				attr |= FileAttribute.NTOffline;
+		}
+
+		info.setFileAttributes( attr);
+		return true;
+	}
+
+	/**
+	 * Return the file name of the next file in the active search. Returns
+	 * null if the search is complete.
+	 *
+	 * @return String
+	 */
+	public String nextFileName() {
+		DBFileInfo finfo = nextFile();
+		return finfo != null ? finfo.getFileName() : null;
+	}
+
+	/**
+	 * Restart a search at the specified resume point.
+	 *
+	 * @param resumeId   Resume point id.
+	 * @return           true if the search can be restarted, else false.
+	 */
+	public boolean restartAt(int resumeId) {
+
+		// Check if the resume point is valid
+
+		if ( m_list == null || resumeId < 0 || resumeId > m_list.length)
+			return false;
+
+		m_idx = resumeId;
+		return true;
+	}
+
+	/**
+	 * Restart the current search at the specified file.
+	 *
+	 * @param info   File to restart the search at.
+	 * @return       true if the search can be restarted, else false.
+	 */
+	public boolean restartAt(FileInfo info) {
+
+		// Find the file in the list
+
+		if ( m_list != null) {
+			for ( int i = 0; i < m_list.length; i++) {
+				if ( m_list[i].getFileName().equals( info.getFileName())) {
+					m_idx = i;
+					return true;
+				}
+			}
+		}
+
+		// File not found
+
+		return false;
+	}
+
+	/**
+	 * Return the total number of file entries for this search if known, else return -1
+	 *
+	 * @return int
+	 */
+	public int numberOfEntries() {
+		if ( m_list == null)
+			return 0;
+		return m_filter == null ? m_list.length : -1;
+	}
+
+	/**
+	 * Close the search
+	 */
+	public void closeSearch() {
+		m_list = null;
+
+		// Call the base class
+
+		super.closeSearch();
+	}
+
+	/**
+	 * Return the next file that matches the wildcard filter, or null if there are no more files
+	 *
+	 * @return DBFileInfo
+	 */
+	private final DBFileInfo nextFile() {
+
+		if ( m_list == null)
+			return null;
+
+		while ( m_idx < m_list.length) {
+			DBFileInfo finfo = m_list[m_idx++];
+			if ( m_filter == null || m_filter.matchesPattern( finfo.getFileName()))
+				return finfo;
+		}
+
+		return null;
+	}
+}
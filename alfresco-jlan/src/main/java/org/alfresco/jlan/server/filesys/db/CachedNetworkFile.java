@@ -28,6 +28,7 @@ import org.alfresco.jlan.server.filesys.FileInfo;
 import org.alfresco.jlan.server.filesys.FileOfflineException;
 import org.alfresco.jlan.server.filesys.cache.FileState;
 import org.alfresco.jlan.server.filesys.cache.FileStateProxy;
+import org.alfresco.jlan.server.filesys.loader.FileFragmentMap;
 import org.alfresco.jlan.server.filesys.loader.FileLoader;
 import org.alfresco.jlan.server.filesys.loader.FileRequest;
 import org.alfresco.jlan.server.filesys.loader.FileSegment;
@@ -38,7 +39,8 @@ import org.alfresco.jlan.server.filesys.loader.SingleFileRequest;
  * Cached Data Network File Class
  *
  * <p>
- * Caches the file data in the local filesystem in a temporary area.
+ * Caches the file data in the local filesystem in a temporary area. If the file data is being loaded on
+ * demand then reads only wait for the data fragments that they touch.
  *
  * @author gkspencer
  */
@@ -279,6 +281,13 @@ public class CachedNetworkFile extends DBNetworkFile {
 			return rdlen;
 		}
 
+		// Check if the file data is being loaded on demand, only wait for the fragments covering the read
+
+		FileFragmentMap fragMap = m_cacheFile.getFragmentMap();
+
+		if ( fragMap != null)
+			return readFragments(fragMap, buf, len, pos, fileOff);
+
 		// Wait for the required amount of data to be written to the temporary file
 
 		long waitTime = 0L;
@@ -362,6 +371,13 @@ public class CachedNetworkFile extends DBNetworkFile {
 				if ( m_cacheFile.hasLoadError())
 					throw new IOException("Load file error - " + getFullName());
 
+				// Check if the loader has switched to loading the file data on demand
+
+				fragMap = m_cacheFile.getFragmentMap();
+
+				if ( fragMap != null)
+					return readFragments(fragMap, buf, len, pos, fileOff);
+
 				// DEBUG
 
 				if ( DEBUG) {
@@ -419,6 +435,14 @@ public class CachedNetworkFile extends DBNetworkFile {
 		if ( getGrantedAccess() == READONLY)
 			throw new AccessDeniedException("File is read-only");
 
+		// If the file data is being loaded on demand then the remaining data must be loaded before the file
+		// is updated, the updated file is saved back as a whole
+
+		FileFragmentMap fragMap = m_cacheFile.getFragmentMap();
+
+		if ( fragMap != null && waitForFragments(fragMap, 0L, -1L) == false)
+			throw new FileOfflineException("File data not available");
+
 		// Write the file using the file segment
 
 		m_cacheFile.writeBytes(buf, len, pos, offset);
@@ -475,6 +499,13 @@ public class CachedNetworkFile extends DBNetworkFile {
 		if ( getGrantedAccess() == READONLY)
 			throw new AccessDeniedException("File is read-only");
 
+		// Make sure the file data has been loaded if the data is being loaded on demand
+
+		FileFragmentMap fragMap = m_cacheFile.getFragmentMap();
+
+		if ( fragMap != null && waitForFragments(fragMap, 0L, -1L) == false)
+			throw new FileOfflineException("File data not available");
+
 		// Truncate the file
 
 		m_cacheFile.truncate(siz);
@@ -524,6 +555,114 @@ public class CachedNetworkFile extends DBNetworkFile {
 		}
 	}
 
+	/**
+	 * Read from a file that is being loaded on demand, waiting for the fragments covering the read to be
+	 * loaded
+	 *
+	 * @param fragMap FileFragmentMap
+	 * @param buf byte[]
+	 * @param len int
+	 * @param pos int
+	 * @param fileOff long
+	 * @return int
+	 * @exception IOException
+	 */
+	protected final int readFragments(FileFragmentMap fragMap, byte[] buf, int len, int pos, long fileOff)
+		throws IOException {
+
+		// Wait for the fragments covering the read
+
+		if ( waitForFragments(fragMap, fileOff, len) == false) {
+
+			// DEBUG
+
+			if ( DEBUG) {
+				Debug.println("ReadFault fname=" + getFullName() + ", fid=" + getFileId() + ", state=" + getFileState());
+				Debug.println("  " + m_cacheFile.toString());
+			}
+
+			throw new FileOfflineException("File data not available");
+		}
+
+		// Read the data from the sparse temporary file
+
+		return m_cacheFile.readBytes(buf, len, pos, fileOff);
+	}
+
+	/**
+	 * Wait for the fragments covering the specified range of a file that is being loaded on demand. Fragments
+	 * are requested from the loader, plus any read-ahead fragments. A length of -1 requests the remaining file
+	 * data. Returns false if the data is not loaded before the wait times out, the wait is extended whilst
+	 * fragments are still being loaded.
+	 *
+	 * @param fragMap FileFragmentMap
+	 * @param fileOff long
+	 * @param len long
+	 * @return boolean
+	 * @exception IOException
+	 */
+	protected final boolean waitForFragments(FileFragmentMap fragMap, long fileOff, long len)
+		throws IOException {
+
+		// Request the fragments, if there is no active loader then queue a load request
+
+		boolean queueLoad = len == -1L ? fragMap.requestAll() : fragMap.requestRange(fileOff, len);
+
+		if ( queueLoad) {
+			synchronized (getFileState()) {
+				getLoader().queueFileRequest(createFileRequest(FileRequest.LOAD));
+			}
+		}
+
+		// Wait for the fragments to be loaded
+
+		long waitTime = 0L;
+		int loadCnt = fragMap.numberOfLoadedFragments();
+
+		while ( m_cacheFile.isDataAvailable() == false && (len == -1L ? fragMap.isLoaded() : fragMap.isRangeLoaded(fileOff, len)) == false) {
+
+			// Check if the wait has timed out, or the fragment map has been discarded
+
+			if ( waitTime >= DataLoadWaitTime || fragMap.isCancelled())
+				return false;
+
+			// Indicate that an I/O is pending on this file, and wait for more data to be loaded
+
+			setIOPending(true);
+
+			long startTime = System.currentTimeMillis();
+			m_cacheFile.waitForData(DataPollSleepTime);
+
+			setIOPending(false);
+
+			// Check for a file load error
+
+			if ( m_cacheFile.hasLoadError())
+				throw new IOException("Load file error - " + getFullName());
+
+			// Restart the wait time if fragments are still being loaded, large files may take longer than the
+			// maximum wait time to load
+
+			int curCnt = fragMap.numberOfLoadedFragments();
+
+			if ( curCnt != loadCnt) {
+				loadCnt = curCnt;
+				waitTime = 0L;
+			}
+			else
+				waitTime += System.currentTimeMillis() - startTime;
+		}
+
+		// DEBUG
+
+		if ( DEBUG)
+			Debug.println("CachedNetworkFile.waitForFragments() offset=" + fileOff + ", len=" + len + ", map=" + fragMap);
+
+		// Fragments are available
+
+		return true;
+	}
+
 	/**
 	 * Update the cached file information file size
 	 *
@@ -0,0 +1,1344 @@
+/*
+ * Copyright (C) 2006-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.alfresco.jlan.server.filesys.db;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.alfresco.jlan.debug.Debug;
+import org.alfresco.jlan.server.filesys.loader.FileSegment;
+import org.alfresco.jlan.server.filesys.loader.FileSegmentInfo;
+import org.alfresco.jlan.util.HexDump;
+
+/**
+ * Database Chunk Store Class
+ *
+ * <p>Stores file data as content addressed chunks so that data shared by many files is only stored once. File
+ * data is split into chunks by a {@link DataChunker}, each chunk is identified by the SHA-256 hash of its data and
+ * is stored once in the chunk table with a reference count. The chunk map table lists the chunks that make up each
+ * file or stream, in order.
+ *
+ * <p>When a file is saved only the chunks that are not already in the database are written, existing chunks just
+ * have their reference count incremented. Chunks that are no longer referenced are deleted when a file is saved
+ * or deleted. Reference counts are incremented before the chunk map is updated, and the references held by the
+ * previous chunk map are released in the same transaction that replaces it, so a failure part way through a save
+ * can only leave a chunk with too many references, it cannot delete data that a file still uses. Chunk map
+ * updates for the same file are serialized so that overlapping saves cannot release the same references twice.
+ * The {@link #reconcileReferences()} pass recomputes the reference counts from the chunk map and deletes the
+ * chunks that are no longer used, it is run when the database interface starts.
+ *
+ * <p>Deduplication is single node only. Chunk map updates are serialized, and the reconcile pass is excluded
+ * from running whilst saves are in progress, using locks within the JVM, so the chunk tables must not be shared
+ * by servers on multiple nodes.
+ *
+ * <p>The chunks of a file are also used as the data fragments for on demand loading, and a chunk that appears more
+ * than once in the same file is only read from the database once when the whole file is loaded.
+ *
+ * <p>The chunk store uses standard JDBC statements only, the database interface creates the tables using the
+ * column types of the database.
+ *
+ * @author gkspencer
+ */
+public class DBChunkStore {
+
+	// Chunk hash algorithm and length of the hash as a hex string
+
+	public static final String HashAlgorithm	= "SHA-256";
+	public static final int HashLength			= 64;
+
+	// Read buffer size used when copying chunk data
+
+	public static final int ReadBufferSize		= 32768;
+
+	// Number of locks used to serialize chunk map updates, indexed by the file id
+
+	private static final int FileLockStripes	= 64;
+
+	// Database interface that owns the chunk store
+
+	private JdbcDBInterface m_dbInterface;
+
+	// Data chunker
+
+	private DataChunker m_chunker;
+
+	// Locks used to serialize the chunk map updates for a file. Locks are used rather than monitors as the
+	// database I/O is done whilst the lock is held, which would pin the carrier of a virtual thread.
+
+	private ReentrantLock[] m_fileLocks;
+
+	// Lock used to exclude saves and deletes whilst the reference counts are reconciled
+
+	private ReentrantReadWriteLock m_reconcileLock = new ReentrantReadWriteLock();
+
+	// Statistics, number of chunks/bytes written, number of chunks/bytes shared with existing data, number of
+	// chunks deleted
+
+	private long m_storedChunks;
+	private long m_storedBytes;
+	private long m_sharedChunks;
+	private long m_sharedBytes;
+	private long m_deletedChunks;
+
+	/**
+	 * Class constructor
+	 *
+	 * @param dbInterface JdbcDBInterface
+	 * @param chunker DataChunker
+	 */
+	public DBChunkStore(JdbcDBInterface dbInterface, DataChunker chunker) {
+		m_dbInterface = dbInterface;
+		m_chunker = chunker;
+
+		// Allocate the file locks
+
+		m_fileLocks = new ReentrantLock[FileLockStripes];
+		for ( int i = 0; i < m_fileLocks.length; i++)
+			m_fileLocks[i] = new ReentrantLock();
+	}
+
+	/**
+	 * Return the data chunker
+	 *
+	 * @return DataChunker
+	 */
+	public final DataChunker getChunker() {
+		return m_chunker;
+	}
+
+	/**
+	 * Return the number of chunks written to the database
+	 *
+	 * @return long
+	 */
+	public final long getStoredChunks() {
+		return m_storedChunks;
+	}
+
+	/**
+	 * Return the number of bytes written to the database
+	 *
+	 * @return long
+	 */
+	public final long getStoredBytes() {
+		return m_storedBytes;
+	}
+
+	/**
+	 * Return the number of saved chunks that were already stored in the database
+	 *
+	 * @return long
+	 */
+	public final long getSharedChunks() {
+		return m_sharedChunks;
+	}
+
+	/**
+	 * Return the number of saved bytes that were already stored in the database
+	 *
+	 * @return long
+	 */
+	public final long getSharedBytes() {
+		return m_sharedBytes;
+	}
+
+	/**
+	 * Return the number of unreferenced chunks deleted from the database
+	 *
+	 * @return long
+	 */
+	public final long getDeletedChunks() {
+		return m_deletedChunks;
+	}
+
+	/**
+	 * Check if the specified file or stream has data stored as chunks
+	 *
+	 * @param fileId int
+	 * @param streamId int
+	 * @return boolean
+	 * @exception DBException
+	 */
+	public final boolean hasFileData(int fileId, int streamId)
+		throws DBException {
+
+		Connection conn = null;
+		PreparedStatement stmt = null;
+
+		boolean hasData = false;
+
+		try {
+
+			// Check for the first chunk of the file
+
+			conn = m_dbInterface.getConnection();
+			stmt = conn.prepareStatement("SELECT ChunkLen FROM " + m_dbInterface.getChunkMapTableName()
+					+ " WHERE FileId = ? AND StreamId = ? AND ChunkNo = 1");
+
+			stmt.setInt(1, fileId);
+			stmt.setInt(2, streamId);
+
+			ResultSet rs = stmt.executeQuery();
+			hasData = rs.next();
+			rs.close();
+		}
+		catch (SQLException ex) {
+
+			// DEBUG
+
+			if ( Debug.EnableError && m_dbInterface.hasDebug())
+				Debug.println(ex);
+
+			// Rethrow the exception
+
+			throw new DBException(ex.getMessage());
+		}
+		finally {
+
+			// Close the statement and release the database connection
+
+			closeStatement(stmt);
+
+			if ( conn != null)
+				m_dbInterface.releaseConnection(conn);
+		}
+
+		return hasData;
+	}
+
+	/**
+	 * Return the lengths of the chunks for the specified file or stream, in chunk order. Returns an empty list
+	 * if the file data is not stored as chunks.
+	 *
+	 * @param fileId int
+	 * @param streamId int
+	 * @return long[]
+	 * @exception DBException
+	 */
+	public final long[] getChunkLengths(int fileId, int streamId)
+		throws DBException {
+
+		Connection conn = null;
+
+		try {
+
+			// Load the chunk list for the file
+
+			conn = m_dbInterface.getConnection();
+			List<ChunkRef> chunks = loadChunkList(conn, fileId, streamId);
+
+			long[] lens = new long[chunks.size()];
+			for ( int i = 0; i < lens.length; i++)
+				lens[i] = chunks.get(i).getLength();
+
+			return lens;
+		}
+		catch (SQLException ex) {
+
+			// DEBUG
+
+			if ( Debug.EnableError && m_dbInterface.hasDebug())
+				Debug.println(ex);
+
+			// Rethrow the exception
+
+			throw new DBException(ex.getMessage());
+		}
+		finally {
+
+			// Release the database connection
+
+			if ( conn != null)
+				m_dbInterface.releaseConnection(conn);
+		}
+	}
+
+	/**
+	 * Load the file data from the chunks for the specified file or stream into the temporary file. Returns
+	 * false if the file data is not stored as chunks.
+	 *
+	 * @param fileId int
+	 * @param streamId int
+	 * @param fileSeg FileSegment
+	 * @return boolean
+	 * @exception DBException
+	 * @exception IOException
+	 */
+	public final boolean loadFileData(int fileId, int streamId, FileSegment fileSeg)
+		throws DBException, IOException {
+
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		RandomAccessFile fileOut = null;
+
+		// DEBUG
+
+		long startTime = 0L;
+
+		if ( Debug.EnableInfo && m_dbInterface.hasDebug())
+			startTime = System.currentTimeMillis();
+
+		int loadCnt = 0;
+		int copyCnt = 0;
+
+		try {
+
+			// Load the chunk list for the file, check if the file data is stored as chunks
+
+			conn = m_dbInterface.getConnection();
+			List<ChunkRef> chunks = loadChunkList(conn, fileId, streamId);
+
+			if ( chunks.size() == 0)
+				return false;
+
+			// Open the temporary file and update the segment status
+
+			fileOut = new RandomAccessFile(fileSeg.getTemporaryFile(), "rw");
+			fileOut.setLength(0L);
+
+			fileSeg.setStatus(FileSegmentInfo.Loading);
+
+			// Load the chunks, a chunk that has already been loaded is copied from the earlier position in the
+			// temporary file
+
+			stmt = conn.prepareStatement("SELECT Data FROM " + m_dbInterface.getChunkTableName() + " WHERE ChunkHash = ?");
+
+			HashMap<String, Long> loaded = new HashMap<String, Long>();
+			byte[] inbuf = new byte[ReadBufferSize];
+			long fileOff = 0L;
+
+			for ( ChunkRef chunk : chunks) {
+
+				Long prevOff = loaded.get(chunk.getHash());
+
+				if ( prevOff != null) {
+
+					// Copy the chunk data from the temporary file
+
+					copyFileData(fileOut, prevOff.longValue(), fileOff, chunk.getLength(), inbuf);
+					copyCnt++;
+				}
+				else {
+
+					// Load the chunk data from the database
+
+					loadChunkData(stmt, chunk, fileOut, fileOff, inbuf);
+					loaded.put(chunk.getHash(), Long.valueOf(fileOff));
+					loadCnt++;
+				}
+
+				fileOff += chunk.getLength();
+
+				// Signal to waiting threads that data is available
+
+				fileSeg.setReadableLength(fileOff);
+				fileSeg.signalDataAvailable();
+
+				// Renew the lease on the database connection
+
+				m_dbInterface.getConnectionPool().renewLease(conn);
+			}
+
+			// DEBUG
+
+			if ( Debug.EnableInfo && m_dbInterface.hasDebug()) {
+				long endTime = System.currentTimeMillis();
+				Debug.println("[DB] Loaded chunks fid=" + fileId + ", stream=" + streamId + ", chunks=" + chunks.size() + ", loaded="
+						+ loadCnt + ", copied=" + copyCnt + ", time=" + (endTime - startTime) + "ms");
+			}
+		}
+		catch (SQLException ex) {
+
+			// DEBUG
+
+			if ( Debug.EnableError && m_dbInterface.hasDebug())
+				Debug.println(ex);
+
+			// Rethrow the exception
+
+			throw new DBException(ex.getMessage());
+		}
+		finally {
+
+			// Close the statement and release the database connection
+
+			closeStatement(stmt);
+
+			if ( conn != null)
+				m_dbInterface.releaseConnection(conn);
+
+			// Close the output file
+
+			if ( fileOut != null) {
+				try {
+					fileOut.close();
+				}
+				catch (Exception ex) {
+					Debug.println(ex);
+				}
+			}
+		}
+
+		// Signal that the file data is available
+
+		fileSeg.signalDataAvailable();
+		return true;
+	}
+
+	/**
+	 * Load a single chunk of the specified file or stream into the temporary file at the specified offset. Chunks
+	 * are numbered from one. Returns the chunk length, or -1 if the file data is not stored as chunks.
+	 *
+	 * @param fileId int
+	 * @param streamId int
+	 * @param chunkNo int
+	 * @param fileOff long
+	 * @param fileSeg FileSegment
+	 * @return long
+	 * @exception DBException
+	 * @exception IOException
+	 */
+	public final long loadChunk(int fileId, int streamId, int chunkNo, long fileOff, FileSegment fileSeg)
+		throws DBException, IOException {
+
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		RandomAccessFile fileOut = null;
+
+		try {
+
+			// Find the chunk in the chunk map
+
+			conn = m_dbInterface.getConnection();
+			stmt = conn.prepareStatement("SELECT ChunkHash, ChunkLen FROM " + m_dbInterface.getChunkMapTableName()
+					+ " WHERE FileId = ? AND StreamId = ? AND ChunkNo = ?");
+
+			stmt.setInt(1, fileId);
+			stmt.setInt(2, streamId);
+			stmt.setInt(3, chunkNo);
+
+			ResultSet rs = stmt.executeQuery();
+
+			if ( rs.next() == false) {
+				rs.close();
+				return -1L;
+			}
+
+			ChunkRef chunk = new ChunkRef(rs.getString(1), rs.getInt(2));
+			rs.close();
+			stmt.close();
+
+			// Load the chunk data into the temporary file
+
+			stmt = conn.prepareStatement("SELECT Data FROM " + m_dbInterface.getChunkTableName() + " WHERE ChunkHash = ?");
+			fileOut = new RandomAccessFile(fileSeg.getTemporaryFile(), "rw");
+
+			loadChunkData(stmt, chunk, fileOut, fileOff, new byte[ReadBufferSize]);
+
+			return chunk.getLength();
+		}
+		catch (SQLException ex) {
+
+			// DEBUG
+
+			if ( Debug.EnableError && m_dbInterface.hasDebug())
+				Debug.println(ex);
+
+			// Rethrow the exception
+
+			throw new DBException(ex.getMessage());
+		}
+		finally {
+
+			// Close the statement and release the database connection
+
+			closeStatement(stmt);
+
+			if ( conn != null)
+				m_dbInterface.releaseConnection(conn);
+
+			// Close the output file
+
+			if ( fileOut != null) {
+				try {
+					fileOut.close();
+				}
+				catch (Exception ex) {
+					Debug.println(ex);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Save the file data from the temporary file as chunks, only chunks that are not already stored are written
+	 * to the database. Any data records that were stored for the file before deduplication was enabled are deleted.
+	 * Returns the number of chunks used to store the file data.
+	 *
+	 * @param fileId int
+	 * @param streamId int
+	 * @param fileSeg FileSegment
+	 * @return int
+	 * @exception DBException
+	 * @exception IOException
+	 */
+	public final int saveFileData(int fileId, int streamId, FileSegment fileSeg)
+		throws DBException, IOException {
+
+		// Allocate the chunking buffer, it must hold at least the maximum chunk size of data
+
+		int maxSize = m_chunker.getMaximumSize();
+		byte[] buf = new byte[maxSize * 2];
+
+		MessageDigest digest = createDigest();
+
+		Connection conn = null;
+		PreparedStatement updStmt = null;
+		PreparedStatement insStmt = null;
+		PreparedStatement mapStmt = null;
+
+		FileInputStream inFile = null;
+		boolean autoCommit = true;
+
+		ArrayList<ChunkRef> chunks = new ArrayList<ChunkRef>();
+		List<ChunkRef> oldChunks = null;
+		int newCnt = 0;
+		int delCnt = 0;
+
+		// DEBUG
+
+		long startTime = 0L;
+
+		if ( Debug.EnableInfo && m_dbInterface.hasDebug())
+			startTime = System.currentTimeMillis();
+
+		// Exclude the reconcile pass until the chunk map has been updated, so it cannot see references that have
+		// been added but are not yet in the chunk map
+
+		m_reconcileLock.readLock().lock();
+
+		try {
+
+			// Open the temporary file
+
+			inFile = new FileInputStream(fileSeg.getTemporaryFile());
+
+			// Get a connection to the database
+
+			conn = m_dbInterface.getConnection();
+
+			// Split the file data into chunks, add a reference to each chunk
+
+			updStmt = conn.prepareStatement("UPDATE " + m_dbInterface.getChunkTableName()
+					+ " SET RefCount = RefCount + 1 WHERE ChunkHash = ?");
+			insStmt = conn.prepareStatement("INSERT INTO " + m_dbInterface.getChunkTableName()
+					+ " (ChunkHash,ChunkLen,RefCount,Data) VALUES (?,?,1,?)");
+
+			int pos = 0;
+			int avail = 0;
+			boolean eof = false;
+
+			while ( true) {
+
+				// Refill the buffer when there is less than a full chunk of data left
+
+				if ( eof == false && avail < maxSize) {
+
+					if ( avail > 0 && pos > 0)
+						System.arraycopy(buf, pos, buf, 0, avail);
+					pos = 0;
+
+					while ( eof == false && avail < buf.length) {
+						int rdLen = inFile.read(buf, avail, buf.length - avail);
+						if ( rdLen == -1)
+							eof = true;
+						else
+							avail += rdLen;
+					}
+				}
+
+				if ( avail == 0)
+					break;
+
+				// Find the next chunk and hash the chunk data
+
+				int chunkLen = m_chunker.nextChunk(buf, pos, avail);
+
+				digest.update(buf, pos, chunkLen);
+				ChunkRef chunk = new ChunkRef(HexDump.hexString(digest.digest()), chunkLen);
+
+				// Add a reference to the chunk, write the chunk data if the chunk is new
+
+				if ( addChunkReference(updStmt, insStmt, chunk, buf, pos))
+					newCnt++;
+
+				chunks.add(chunk);
+
+				pos += chunkLen;
+				avail -= chunkLen;
+
+				// Renew the lease on the database connection so that it does not expire
+
+				m_dbInterface.getConnectionPool().renewLease(conn);
+			}
+
+			// Replace the chunk map for the file, delete any data records stored before deduplication was enabled,
+			// and release the references held by the previous version of the file, in a single transaction. The
+			// previous chunk list is loaded within the file lock so that overlapping saves of the same file cannot
+			// release the same references.
+
+			mapStmt = conn.prepareStatement("INSERT INTO " + m_dbInterface.getChunkMapTableName()
+					+ " (FileId,StreamId,ChunkNo,ChunkLen,ChunkHash) VALUES (?,?,?,?,?)");
+
+			ReentrantLock fileLock = getFileLock(fileId);
+			fileLock.lock();
+
+			try {
+				autoCommit = conn.getAutoCommit();
+				conn.setAutoCommit(false);
+
+				oldChunks = loadChunkList(conn, fileId, streamId);
+				deleteChunkMap(conn, fileId, streamId, false);
+
+				int chunkNo = 1;
+
+				for ( ChunkRef chunk : chunks) {
+					mapStmt.setInt(1, fileId);
+					mapStmt.setInt(2, streamId);
+					mapStmt.setInt(3, chunkNo++);
+					mapStmt.setInt(4, chunk.getLength());
+					mapStmt.setString(5, chunk.getHash());
+					mapStmt.addBatch();
+				}
+
+				if ( chunks.size() > 0)
+					mapStmt.executeBatch();
+
+				m_dbInterface.deleteDataRecords(conn, fileId, streamId);
+				delCnt = releaseChunks(conn, oldChunks);
+
+				conn.commit();
+				conn.setAutoCommit(autoCommit);
+			}
+			catch (SQLException ex) {
+
+				// Rollback the chunk map update before another save of the file can start
+
+				rollback(conn);
+				throw ex;
+			}
+			finally {
+				fileLock.unlock();
+			}
+
+			// DEBUG
+
+			if ( Debug.EnableInfo && m_dbInterface.hasDebug()) {
+				long endTime = System.currentTimeMillis();
+				Debug.println("[DB] Saved chunks fid=" + fileId + ", stream=" + streamId + ", chunks=" + chunks.size() + ", new="
+						+ newCnt + ", released=" + oldChunks.size() + ", deleted=" + delCnt + ", time=" + (endTime - startTime) + "ms");
+			}
+		}
+		catch (SQLException ex) {
+
+			// Rollback any partial chunk map update
+
+			rollback(conn);
+
+			// DEBUG
+
+			if ( Debug.EnableError && m_dbInterface.hasDebug())
+				Debug.println(ex);
+
+			// Rethrow the exception
+
+			throw new DBException(ex.getMessage());
+		}
+		finally {
+
+			// Close the statements
+
+			closeStatement(updStmt);
+			closeStatement(insStmt);
+			closeStatement(mapStmt);
+
+			// Restore the auto-commit setting and release the database connection
+
+			if ( conn != null) {
+				try {
+					conn.setAutoCommit(autoCommit);
+				}
+				catch (Exception ex) {
+				}
+
+				m_dbInterface.releaseConnection(conn);
+			}
+
+			// Close the input file
+
+			if ( inFile != null) {
+				try {
+					inFile.close();
+				}
+				catch (Exception ex) {
+				}
+			}
+
+			// Allow the reconcile pass to run
+
+			m_reconcileLock.readLock().unlock();
+		}
+
+		// Return the number of chunks used to save the file data
+
+		return chunks.size();
+	}
+
+	/**
+	 * Delete the chunk map for the specified file or stream, and release the chunk references. If all streams is
+	 * set then the chunks for all streams of the file are released.
+	 *
+	 * @param fileId int
+	 * @param streamId int
+	 * @param allStreams boolean
+	 * @exception DBException
+	 */
+	public final void deleteFileData(int fileId, int streamId, boolean allStreams)
+		throws DBException {
+
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		boolean autoCommit = true;
+
+		m_reconcileLock.readLock().lock();
+
+		try {
+
+			// Get a connection to the database
+
+			conn = m_dbInterface.getConnection();
+
+			// Load the chunk hashes for the file or all streams of the file, delete the chunk map and release the
+			// chunk references in a single transaction, serialized with any save of the file
+
+			ReentrantLock fileLock = getFileLock(fileId);
+			fileLock.lock();
+
+			try {
+				autoCommit = conn.getAutoCommit();
+				conn.setAutoCommit(false);
+
+				if ( allStreams) {
+					stmt = conn.prepareStatement("SELECT ChunkHash, ChunkLen FROM " + m_dbInterface.getChunkMapTableName() + " WHERE FileId = ?");
+					stmt.setInt(1, fileId);
+				}
+				else {
+					stmt = conn.prepareStatement("SELECT ChunkHash, ChunkLen FROM " + m_dbInterface.getChunkMapTableName()
+							+ " WHERE FileId = ? AND StreamId = ?");
+					stmt.setInt(1, fileId);
+					stmt.setInt(2, streamId);
+				}
+
+				ArrayList<ChunkRef> chunks = new ArrayList<ChunkRef>();
+				ResultSet rs = stmt.executeQuery();
+
+				while ( rs.next())
+					chunks.add(new ChunkRef(rs.getString(1), rs.getInt(2)));
+				rs.close();
+
+				int delCnt = 0;
+
+				if ( chunks.size() > 0) {
+
+					// Delete the chunk map, then release the chunk references
+
+					deleteChunkMap(conn, fileId, streamId, allStreams);
+					delCnt = releaseChunks(conn, chunks);
+				}
+
+				conn.commit();
+				conn.setAutoCommit(autoCommit);
+
+				// DEBUG
+
+				if ( chunks.size() > 0 && Debug.EnableInfo && m_dbInterface.hasDebug())
+					Debug.println("[DB] Deleted chunks fid=" + fileId + ", stream=" + (allStreams ? "all" : "" + streamId) + ", released="
+							+ chunks.size() + ", deleted=" + delCnt);
+			}
+			catch (SQLException ex) {
+
+				// Rollback the chunk map update before another save of the file can start
+
+				rollback(conn);
+				throw ex;
+			}
+			finally {
+				fileLock.unlock();
+			}
+		}
+		catch (SQLException ex) {
+
+			// DEBUG
+
+			if ( Debug.EnableError && m_dbInterface.hasDebug())
+				Debug.println(ex);
+
+			// Rethrow the exception
+
+			throw new DBException(ex.getMessage());
+		}
+		finally {
+
+			// Close the statement
+
+			closeStatement(stmt);
+
+			// Restore the auto-commit setting and release the database connection
+
+			if ( conn != null) {
+				try {
+					conn.setAutoCommit(autoCommit);
+				}
+				catch (Exception ex) {
+				}
+
+				m_dbInterface.releaseConnection(conn);
+			}
+
+			m_reconcileLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Recompute the chunk reference counts from the chunk map, and delete chunks that are not used by any file.
+	 * Corrects the reference counts left too high by saves that failed after adding the chunk references. Saves
+	 * and deletes by this chunk store are blocked whilst the reference counts are reconciled. Returns the number
+	 * of chunks that had their reference count corrected.
+	 *
+	 * @return int
+	 * @exception DBException
+	 */
+	public final int reconcileReferences()
+		throws DBException {
+
+		Connection conn = null;
+		PreparedStatement updStmt = null;
+		PreparedStatement delStmt = null;
+		boolean autoCommit = true;
+
+		// DEBUG
+
+		long startTime = 0L;
+
+		if ( Debug.EnableInfo && m_dbInterface.hasDebug())
+			startTime = System.currentTimeMillis();
+
+		m_reconcileLock.writeLock().lock();
+
+		try {
+
+			// Get a connection to the database
+
+			conn = m_dbInterface.getConnection();
+
+			autoCommit = conn.getAutoCommit();
+			conn.setAutoCommit(false);
+
+			// Set the reference count of each chunk to the number of chunk map records that use the chunk, then
+			// delete the unused chunks
+
+			String chunkTable = m_dbInterface.getChunkTableName();
+			String mapTable = m_dbInterface.getChunkMapTableName();
+			String refCount = "(SELECT COUNT(*) FROM " + mapTable + " WHERE " + mapTable + ".ChunkHash = " + chunkTable + ".ChunkHash)";
+
+			updStmt = conn.prepareStatement("UPDATE " + chunkTable + " SET RefCount = " + refCount + " WHERE RefCount <> " + refCount);
+			int fixCnt = updStmt.executeUpdate();
+
+			delStmt = conn.prepareStatement("DELETE FROM " + chunkTable + " WHERE RefCount <= 0");
+			int delCnt = delStmt.executeUpdate();
+
+			conn.commit();
+
+			// Update the statistics
+
+			synchronized ( this) {
+				m_deletedChunks += delCnt;
+			}
+
+			// DEBUG
+
+			if ( Debug.EnableInfo && m_dbInterface.hasDebug()) {
+				long endTime = System.currentTimeMillis();
+				Debug.println("[DB] Reconciled chunk references, corrected=" + fixCnt + ", deleted=" + delCnt + ", time=" + (endTime - startTime) + "ms");
+			}
+
+			return fixCnt;
+		}
+		catch (SQLException ex) {
+
+			// Rollback the reference count updates
+
+			rollback(conn);
+
+			// DEBUG
+
+			if ( Debug.EnableError && m_dbInterface.hasDebug())
+				Debug.println(ex);
+
+			// Rethrow the exception
+
+			throw new DBException(ex.getMessage());
+		}
+		finally {
+
+			// Close the statements
+
+			closeStatement(updStmt);
+			closeStatement(delStmt);
+
+			// Restore the auto-commit setting and release the database connection
+
+			if ( conn != null) {
+				try {
+					conn.setAutoCommit(autoCommit);
+				}
+				catch (Exception ex) {
+				}
+
+				m_dbInterface.releaseConnection(conn);
+			}
+
+			m_reconcileLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Load the chunk list for a file or stream, in chunk order
+	 *
+	 * @param conn Connection
+	 * @param fileId int
+	 * @param streamId int
+	 * @return List<ChunkRef>
+	 * @exception SQLException
+	 */
+	private final List<ChunkRef> loadChunkList(Connection conn, int fileId, int streamId)
+		throws SQLException {
+
+		PreparedStatement stmt = null;
+		ArrayList<ChunkRef> chunks = new ArrayList<ChunkRef>();
+
+		try {
+			stmt = conn.prepareStatement("SELECT ChunkHash, ChunkLen FROM " + m_dbInterface.getChunkMapTableName()
+					+ " WHERE FileId = ? AND StreamId = ? ORDER BY ChunkNo");
+
+			stmt.setInt(1, fileId);
+			stmt.setInt(2, streamId);
+
+			ResultSet rs = stmt.executeQuery();
+
+			while ( rs.next())
+				chunks.add(new ChunkRef(rs.getString(1), rs.getInt(2)));
+			rs.close();
+		}
+		finally {
+			closeStatement(stmt);
+		}
+
+		return chunks;
+	}
+
+	/**
+	 * Delete the chunk map records for a file or stream
+	 *
+	 * @param conn Connection
+	 * @param fileId int
+	 * @param streamId int
+	 * @param allStreams boolean
+	 * @exception SQLException
+	 */
+	private final void deleteChunkMap(Connection conn, int fileId, int streamId, boolean allStreams)
+		throws SQLException {
+
+		PreparedStatement stmt = null;
+
+		try {
+			if ( allStreams) {
+				stmt = conn.prepareStatement("DELETE FROM " + m_dbInterface.getChunkMapTableName() + " WHERE FileId = ?");
+				stmt.setInt(1, fileId);
+			}
+			else {
+				stmt = conn.prepareStatement("DELETE FROM " + m_dbInterface.getChunkMapTableName() + " WHERE FileId = ? AND StreamId = ?");
+				stmt.setInt(1, fileId);
+				stmt.setInt(2, streamId);
+			}
+
+			stmt.executeUpdate();
+		}
+		finally {
+			closeStatement(stmt);
+		}
+	}
+
+	/**
+	 * Add a reference to a chunk, the chunk data is only written if the chunk is not already stored. Returns
+	 * true if the chunk data was written.
+	 *
+	 * @param updStmt PreparedStatement
+	 * @param insStmt PreparedStatement
+	 * @param chunk ChunkRef
+	 * @param buf byte[]
+	 * @param pos int
+	 * @return boolean
+	 * @exception SQLException
+	 */
+	private final boolean addChunkReference(PreparedStatement updStmt, PreparedStatement insStmt, ChunkRef chunk, byte[] buf, int pos)
+		throws SQLException {
+
+		// Try and add a reference to an existing chunk
+
+		updStmt.setString(1, chunk.getHash());
+
+		if ( updStmt.executeUpdate() > 0) {
+			updateStatistics(false, chunk.getLength());
+			return false;
+		}
+
+		// Write the new chunk
+
+		try {
+			insStmt.setString(1, chunk.getHash());
+			insStmt.setInt(2, chunk.getLength());
+			insStmt.setBinaryStream(3, new ByteArrayInputStream(buf, pos, chunk.getLength()), chunk.getLength());
+
+			insStmt.executeUpdate();
+		}
+		catch (SQLException ex) {
+
+			// Another save may have written the same chunk since the update, add a reference to the new chunk
+
+			if ( updStmt.executeUpdate() == 0)
+				throw ex;
+
+			updateStatistics(false, chunk.getLength());
+			return false;
+		}
+
+		// Chunk data was written
+
+		updateStatistics(true, chunk.getLength());
+		return true;
+	}
+
+	/**
+	 * Release references to a list of chunks, chunks that are no longer referenced are deleted. Returns the
+	 * number of chunks deleted.
+	 *
+	 * @param conn Connection
+	 * @param chunks List<ChunkRef>
+	 * @return int
+	 * @exception SQLException
+	 */
+	private final int releaseChunks(Connection conn, List<ChunkRef> chunks)
+		throws SQLException {
+
+		if ( chunks.size() == 0)
+			return 0;
+
+		// Count the references to each chunk, the same chunk may be used more than once. The chunks are released
+		// in hash order so that concurrent releases lock the chunk records in the same order.
+
+		TreeMap<String, Integer> refs = new TreeMap<String, Integer>();
+
+		for ( ChunkRef chunk : chunks) {
+			Integer cnt = refs.get(chunk.getHash());
+			refs.put(chunk.getHash(), Integer.valueOf(cnt != null ? cnt.intValue() + 1 : 1));
+		}
+
+		// Release the references, then delete any chunks that are no longer referenced. A chunk that has been
+		// referenced again between the two statements is not deleted.
+
+		PreparedStatement decStmt = null;
+		PreparedStatement delStmt = null;
+
+		int delCnt = 0;
+
+		try {
+			decStmt = conn.prepareStatement("UPDATE " + m_dbInterface.getChunkTableName() + " SET RefCount = RefCount - ? WHERE ChunkHash = ?");
+			delStmt = conn.prepareStatement("DELETE FROM " + m_dbInterface.getChunkTableName() + " WHERE ChunkHash = ? AND RefCount <= 0");
+
+			Iterator<Map.Entry<String, Integer>> iter = refs.entrySet().iterator();
+
+			while ( iter.hasNext()) {
+				Map.Entry<String, Integer> ref = iter.next();
+
+				decStmt.setInt(1, ref.getValue().intValue());
+				decStmt.setString(2, ref.getKey());
+				decStmt.executeUpdate();
+
+				delStmt.setString(1, ref.getKey());
+				delCnt += delStmt.executeUpdate();
+			}
+		}
+		finally {
+			closeStatement(decStmt);
+			closeStatement(delStmt);
+		}
+
+		// Update the statistics
+
+		synchronized ( this) {
+			m_deletedChunks += delCnt;
+		}
+
+		return delCnt;
+	}
+
+	/**
+	 * Load the data for a chunk and write it to the file at the specified offset
+	 *
+	 * @param stmt PreparedStatement
+	 * @param chunk ChunkRef
+	 * @param fileOut RandomAccessFile
+	 * @param fileOff long
+	 * @param inbuf byte[]
+	 * @exception SQLException
+	 * @exception IOException
+	 * @exception DBException
+	 */
+	private final void loadChunkData(PreparedStatement stmt, ChunkRef chunk, RandomAccessFile fileOut, long fileOff, byte[] inbuf)
+		throws SQLException, IOException, DBException {
+
+		stmt.setString(1, chunk.getHash());
+		ResultSet rs = stmt.executeQuery();
+
+		try {
+			if ( rs.next() == false)
+				throw new DBException("Data chunk not found " + chunk.getHash());
+
+			// Read the chunk data and write to the file
+
+			InputStream dataChunk = rs.getBinaryStream(1);
+			fileOut.seek(fileOff);
+
+			long totLen = 0L;
+			int rdLen = dataChunk.read(inbuf);
+
+			while ( rdLen > 0) {
+				fileOut.write(inbuf, 0, rdLen);
+				totLen += rdLen;
+
+				rdLen = dataChunk.read(inbuf);
+			}
+
+			// Check that the chunk is the expected length
+
+			if ( totLen != chunk.getLength())
+				throw new DBException("Data chunk length mismatch " + chunk.getHash() + ", expected=" + chunk.getLength() + ", actual=" + totLen);
+		}
+		finally {
+			rs.close();
+		}
+	}
+
+	/**
+	 * Copy data that has already been loaded to another position in the file
+	 *
+	 * @param file RandomAccessFile
+	 * @param fromOff long
+	 * @param toOff long
+	 * @param len int
+	 * @param buf byte[]
+	 * @exception IOException
+	 */
+	private final void copyFileData(RandomAccessFile file, long fromOff, long toOff, int len, byte[] buf)
+		throws IOException {
+
+		while ( len > 0) {
+			int cpyLen = Math.min(len, buf.length);
+
+			file.seek(fromOff);
+			file.readFully(buf, 0, cpyLen);
+
+			file.seek(toOff);
+			file.write(buf, 0, cpyLen);
+
+			fromOff += cpyLen;
+			toOff += cpyLen;
+			len -= cpyLen;
+		}
+	}
+
+	/**
+	 * Update the save statistics
+	 *
+	 * @param stored boolean
+	 * @param len int
+	 */
+	private synchronized final void updateStatistics(boolean stored, int len) {
+		if ( stored) {
+			m_storedChunks++;
+			m_storedBytes += len;
+		}
+		else {
+			m_sharedChunks++;
+			m_sharedBytes += len;
+		}
+	}
+
+	/**
+	 * Create the chunk hash message digest
+	 *
+	 * @return MessageDigest
+	 * @exception DBException
+	 */
+	private final MessageDigest createDigest()
+		throws DBException {
+		try {
+			return MessageDigest.getInstance(HashAlgorithm);
+		}
+		catch (NoSuchAlgorithmException ex) {
+			throw new DBException("Chunk hash algorithm not available, " + HashAlgorithm);
+		}
+	}
+
+	/**
+	 * Return the lock used to serialize the chunk map updates for a file
+	 *
+	 * @param fileId int
+	 * @return ReentrantLock
+	 */
+	private final ReentrantLock getFileLock(int fileId) {
+		return m_fileLocks[fileId & ( FileLockStripes - 1)];
+	}
+
+	/**
+	 * Rollback the current transaction, if auto-commit is off
+	 *
+	 * @param conn Connection
+	 */
+	private final void rollback(Connection conn) {
+		try {
+			if ( conn != null && conn.getAutoCommit() == false)
+				conn.rollback();
+		}
+		catch (SQLException ex) {
+		}
+	}
+
+	/**
+	 * Close a statement, ignoring errors
+	 *
+	 * @param stmt PreparedStatement
+	 */
+	private final void closeStatement(PreparedStatement stmt) {
+		if ( stmt != null) {
+			try {
+				stmt.close();
+			}
+			catch (SQLException ex) {
+			}
+		}
+	}
+
+	/**
+	 * Return the chunk store details as a string
+	 *
+	 * @return String
+	 */
+	public String toString() {
+		StringBuilder str = new StringBuilder();
+
+		str.append("[ChunkStore ");
+		str.append(m_chunker);
+		str.append(",stored=");
+		str.append(m_storedChunks);
+		str.append("/");
+		str.append(m_storedBytes);
+		str.append(",shared=");
+		str.append(m_sharedChunks);
+		str.append("/");
+		str.append(m_sharedBytes);
+		str.append(",deleted=");
+		str.append(m_deletedChunks);
+		str.append("]");
+
+		return str.toString();
+	}
+
+	/**
+	 * Chunk Reference Class
+	 *
+	 * <p>Contains the hash and length of a chunk within a file.
+	 */
+	protected static class ChunkRef {
+
+		// Chunk hash and length
+
+		private String m_hash;
+		private int m_len;
+
+		/**
+		 * Class constructor
+		 *
+		 * @param hash String
+		 * @param len int
+		 */
+		protected ChunkRef(String hash, int len) {
+			m_hash = hash;
+			m_len = len;
+		}
+
+		/**
+		 * Return the chunk hash
+		 *
+		 * @return String
+		 */
+		public final String getHash() {
+			return m_hash;
+		}
+
+		/**
+		 * Return the chunk length
+		 *
+		 * @return int
+		 */
+		public final int getLength() {
+			return m_len;
+		}
+	}
+}
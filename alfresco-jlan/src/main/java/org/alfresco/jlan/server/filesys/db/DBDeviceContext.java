@@ -116,6 +116,10 @@ public class DBDeviceContext extends DiskDeviceContext implements FileStateCache
 
 	private boolean m_oplocksEnabled = true;
 
+	// Directory listing cache, optional
+
+	private DBDirectoryCache m_dirCache;
+
 	// Debug enable
 
 	private boolean m_debug;
@@ -299,6 +303,12 @@ public class DBDeviceContext extends DiskDeviceContext implements FileStateCache
 			}
 		}
 
+		// Check if the directory listing cache should be enabled
+
+		ConfigElement dirCache = args.getChild("DirectoryCache");
+		if ( dirCache != null)
+			m_dirCache = parseDirectoryCache( dirCache);
+
 		// Check if quota management should be enabled for this filesystem
 
 		if ( args.getChild("QuotaManagement") != null) {
@@ -522,6 +532,78 @@ public class DBDeviceContext extends DiskDeviceContext implements FileStateCache
 		return m_loaderConfig;
 	}
 
+	/**
+	 * Parse the directory listing cache configuration and create the cache
+	 *
+	 * @param cacheConfig ConfigElement
+	 * @return DBDirectoryCache
+	 * @exception DeviceContextException
+	 */
+	private final DBDirectoryCache parseDirectoryCache(ConfigElement cacheConfig)
+		throws DeviceContextException {
+
+		long memSize = DBDirectoryCache.DefaultMemorySize;
+		int maxListing = DBDirectoryCache.DefaultMaximumListing;
+		long expiry = DBDirectoryCache.DefaultExpiryInterval;
+
+		// Check if the cache memory size has been specified
+
+		ConfigElement nameVal = cacheConfig.getChild("Size");
+		if ( nameVal != null) {
+			try {
+				memSize = MemorySize.getByteValue(nameVal.getValue());
+
+				// Range check the cache memory size
+
+				if ( memSize < DBDirectoryCache.MinimumMemorySize || memSize > DBDirectoryCache.MaximumMemorySize)
+					throw new DeviceContextException("Directory cache size out of valid range (" + DBDirectoryCache.MinimumMemorySize / MemorySize.KILOBYTE +
+							"K - " + DBDirectoryCache.MaximumMemorySize / MemorySize.MEGABYTE + "M)");
+			}
+			catch (NumberFormatException ex) {
+				throw new DeviceContextException("Invalid directory cache size, " + nameVal.getValue());
+			}
+		}
+
+		// Check if the maximum folder listing size has been specified
+
+		nameVal = cacheConfig.getChild("MaxListing");
+		if ( nameVal != null) {
+			try {
+				maxListing = Integer.parseInt(nameVal.getValue());
+
+				// Range check the maximum listing size
+
+				if ( maxListing < 1 || maxListing > DBDirectoryCache.MaximumListingLimit)
+					throw new DeviceContextException("Directory cache MaxListing out of valid range (1 - " + DBDirectoryCache.MaximumListingLimit + ")");
+			}
+			catch (NumberFormatException ex) {
+				throw new DeviceContextException("Invalid directory cache MaxListing value, " + nameVal.getValue());
+			}
+		}
+
+		// Check if the expiry interval has been specified, in seconds
+
+		nameVal = cacheConfig.getChild("Expire");
+		if ( nameVal != null) {
+			try {
+				expiry = Long.parseLong(nameVal.getValue()) * 1000L;
+
+				// Range check the expiry interval
+
+				if ( expiry < DBDirectoryCache.MinimumExpiryInterval || expiry > DBDirectoryCache.MaximumExpiryInterval)
+					throw new DeviceContextException("Directory cache Expire out of valid range (" + DBDirectoryCache.MinimumExpiryInterval / 1000L +
+							" - " + DBDirectoryCache.MaximumExpiryInterval / 1000L + ")");
+			}
+			catch (NumberFormatException ex) {
+				throw new DeviceContextException("Invalid directory cache Expire value, " + nameVal.getValue());
+			}
+		}
+
+		// Create the directory cache
+
+		return new DBDirectoryCache( memSize, maxListing, expiry);
+	}
+
 	/**
 	 * Determine if debug output is enabled
 	 *
@@ -531,6 +613,24 @@ public class DBDeviceContext extends DiskDeviceContext implements FileStateCache
 		return m_debug;
 	}
 
+	/**
+	 * Determine if the directory listing cache is enabled
+	 *
+	 * @return boolean
+	 */
+	public final boolean hasDirectoryCache() {
+		return m_dirCache != null;
+	}
+
+	/**
+	 * Return the directory listing cache, or null if not enabled
+	 *
+	 * @return DBDirectoryCache
+	 */
+	public final DBDirectoryCache getDirectoryCache() {
+		return m_dirCache;
+	}
+
 	/**
 	 * Check if files should be marked as offline
 	 *
@@ -806,6 +906,11 @@ public class DBDeviceContext extends DiskDeviceContext implements FileStateCache
 		if ( hasStateCache())
 			getStateCache().removeAllFileStates();
 
+		// Clear the directory listing cache
+
+		if ( m_dirCache != null)
+			m_dirCache.removeAll();
+
 		// Call the base class
 
 		super.CloseContext();
@@ -0,0 +1,691 @@
+/*
+ * Copyright (C) 2006-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.alfresco.jlan.server.filesys.db;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.alfresco.jlan.util.MemorySize;
+
+/**
+ * Database Directory Cache Class
+ *
+ * <p>Caches folder listings and file name to file id lookups for a database filesystem, so that repeated
+ * searches of the same folder and repeated checks for files that do not exist do not need to query the database.
+ *
+ * <p>Each folder entry holds either a complete folder listing, which can answer any lookup in the folder, or
+ * a bounded set of individual name lookups including negative entries for names that do not exist. Folder
+ * entries are evicted in least recently used order when the estimated memory used by the cache exceeds the
+ * configured limit, and expire after a fixed interval so that changes made outside of the filesystem driver
+ * are picked up.
+ *
+ * <p>Names are cached using the uppercased name, as the filesystem is case insensitive, so a lookup or an
+ * invalidation using any case variant of a name uses the same cache entry.
+ *
+ * <p>Loads from the database are given a sequence number, via the beginLoad() method, so that a load that
+ * overlaps with a change to the same folder does not add stale details to the cache.
+ *
+ * @author gkspencer
+ */
+public class DBDirectoryCache {
+
+	// Lookup status when the cache does not have details for a name
+
+	public static final int Unknown					= -2;
+
+	// Default/minimum/maximum memory size
+
+	public static final long DefaultMemorySize		= 4 * MemorySize.MEGABYTE;
+	public static final long MinimumMemorySize		= 64 * MemorySize.KILOBYTE;
+	public static final long MaximumMemorySize		= 256 * MemorySize.MEGABYTE;
+
+	// Default/maximum number of entries in a cached folder listing, larger folders are not cached
+
+	public static final int DefaultMaximumListing	= 4096;
+	public static final int MaximumListingLimit		= 65536;
+
+	// Default/minimum/maximum expiry interval, in milliseconds
+
+	public static final long DefaultExpiryInterval	= 30000L;	// 30 seconds
+	public static final long MinimumExpiryInterval	= 1000L;
+	public static final long MaximumExpiryInterval	= 3600000L;	// 1 hour
+
+	// Maximum number of individual name lookups cached per folder
+
+	public static final int MaximumNamesPerFolder	= 256;
+
+	// Estimated memory overheads for a folder entry, file information object and name lookup
+
+	private static final int FolderOverhead		= 128;
+	private static final int FileInfoOverhead	= 192;
+	private static final int NameOverhead		= 80;
+
+	// Number of invalidation sequence slots, must be a power of 2
+
+	private static final int SequenceSlots		= 256;
+
+	// Folder entries, in least recently used order
+
+	private LinkedHashMap<Integer, FolderEntry> m_folders;
+
+	// Estimated memory used and maximum memory size
+
+	private long m_memUsed;
+	private long m_maxMemory;
+
+	// Maximum folder listing size and expiry interval
+
+	private int m_maxListing;
+	private long m_expiry;
+
+	// Load sequence number, and the sequence number of the last invalidation of each slot of folder ids
+
+	private long m_sequence;
+	private long[] m_invalidated = new long[SequenceSlots];
+
+	// Statistics
+
+	private long m_hits;
+	private long m_negativeHits;
+	private long m_misses;
+	private long m_evictions;
+
+	/**
+	 * Folder Entry Inner Class
+	 */
+	protected class FolderEntry {
+
+		// Folder id and expiry time
+
+		private int m_dirId;
+		private long m_expiresAt;
+
+		// Complete folder listing, and indexes by upper case file name and by upper case directory name
+
+		private DBFileInfo[] m_listing;
+		private HashMap<String, DBFileInfo> m_listNames;
+		private HashMap<String, DBFileInfo> m_listDirs;
+
+		// Individual name lookups by upper case name, file id or -1 if the name does not exist
+
+		private LinkedHashMap<String, Integer> m_names;
+
+		// Estimated memory size of the entry
+
+		private long m_size;
+
+		/**
+		 * Class constructor
+		 *
+		 * @param dirId int
+		 */
+		protected FolderEntry(int dirId) {
+			m_dirId = dirId;
+			m_expiresAt = System.currentTimeMillis() + m_expiry;
+			m_size = FolderOverhead;
+		}
+
+		/**
+		 * Check if the entry has expired
+		 *
+		 * @param timeNow long
+		 * @return boolean
+		 */
+		protected final boolean hasExpired(long timeNow) {
+			return timeNow >= m_expiresAt;
+		}
+
+		/**
+		 * Check if the entry has a complete folder listing
+		 *
+		 * @return boolean
+		 */
+		protected final boolean hasListing() {
+			return m_listing != null;
+		}
+
+		/**
+		 * Set the folder listing, replaces any individual name lookups
+		 *
+		 * @param listing DBFileInfo[]
+		 */
+		protected final void setListing(DBFileInfo[] listing) {
+
+			m_listing = listing;
+			m_listNames = new HashMap<String, DBFileInfo>( listing.length * 2);
+			m_listDirs = new HashMap<String, DBFileInfo>();
+			m_names = null;
+
+			long size = FolderOverhead;
+
+			for ( DBFileInfo finfo : listing) {
+				String upperName = foldName( finfo.getFileName());
+
+				if ( m_listNames.containsKey( upperName) == false)
+					m_listNames.put( upperName, finfo);
+				if ( finfo.isDirectory() && m_listDirs.containsKey( upperName) == false)
+					m_listDirs.put( upperName, finfo);
+
+				size += FileInfoOverhead + finfo.getFileName().length() * 2;
+			}
+
+			m_expiresAt = System.currentTimeMillis() + m_expiry;
+			m_size = size;
+		}
+
+		/**
+		 * Clear the folder listing
+		 */
+		protected final void clearListing() {
+			m_listing = null;
+			m_listNames = null;
+			m_listDirs = null;
+
+			recalculateSize();
+		}
+
+		/**
+		 * Add an individual name lookup
+		 *
+		 * @param name String
+		 * @param fid int
+		 */
+		protected final void addName(String name, int fid) {
+
+			if ( m_names == null) {
+				m_names = new LinkedHashMap<String, Integer>( 16, 0.75f, true) {
+					private static final long serialVersionUID = 1L;
+
+					protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+						return size() > MaximumNamesPerFolder;
+					}
+				};
+			}
+
+			m_names.put( foldName( name), Integer.valueOf( fid));
+			recalculateSize();
+		}
+
+		/**
+		 * Remove an individual name lookup
+		 *
+		 * @param name String
+		 */
+		protected final void removeName(String name) {
+			if ( m_names != null && m_names.remove( foldName( name)) != null)
+				recalculateSize();
+		}
+
+		/**
+		 * Recalculate the estimated memory size of the entry
+		 */
+		private final void recalculateSize() {
+			long size = FolderOverhead;
+
+			if ( m_listing != null) {
+				for ( DBFileInfo finfo : m_listing)
+					size += FileInfoOverhead + finfo.getFileName().length() * 2;
+			}
+
+			if ( m_names != null) {
+				for ( String name : m_names.keySet())
+					size += NameOverhead + name.length() * 2;
+			}
+
+			m_size = size;
+		}
+	}
+
+	/**
+	 * Default constructor
+	 */
+	public DBDirectoryCache() {
+		this( DefaultMemorySize, DefaultMaximumListing, DefaultExpiryInterval);
+	}
+
+	/**
+	 * Class constructor
+	 *
+	 * @param maxMemory long
+	 * @param maxListing int
+	 * @param expiry long
+	 */
+	public DBDirectoryCache(long maxMemory, int maxListing, long expiry) {
+		m_maxMemory = maxMemory;
+		m_maxListing = maxListing;
+		m_expiry = expiry;
+
+		m_folders = new LinkedHashMap<Integer, FolderEntry>( 64, 0.75f, true);
+	}
+
+	/**
+	 * Return the maximum memory size
+	 *
+	 * @return long
+	 */
+	public final long getMaximumMemorySize() {
+		return m_maxMemory;
+	}
+
+	/**
+	 * Return the estimated memory used
+	 *
+	 * @return long
+	 */
+	public synchronized final long getMemoryUsed() {
+		return m_memUsed;
+	}
+
+	/**
+	 * Return the maximum number of entries in a cached folder listing
+	 *
+	 * @return int
+	 */
+	public final int getMaximumListingSize() {
+		return m_maxListing;
+	}
+
+	/**
+	 * Return the expiry interval, in milliseconds
+	 *
+	 * @return long
+	 */
+	public final long getExpiryInterval() {
+		return m_expiry;
+	}
+
+	/**
+	 * Return the number of cached folders
+	 *
+	 * @return int
+	 */
+	public synchronized final int numberOfFolders() {
+		return m_folders.size();
+	}
+
+	/**
+	 * Return the current load sequence number, to be passed to addFileId() or addListing() when the
+	 * database lookup completes
+	 *
+	 * @return long
+	 */
+	public synchronized final long beginLoad() {
+		return m_sequence;
+	}
+
+	/**
+	 * Find the file id for a name in a folder, using a case insensitive search. Returns the file id, -1 if the name is known not to exist,
+	 * or Unknown if the cache does not have details for the name.
+	 *
+	 * @param dirId int
+	 * @param name String
+	 * @return int
+	 */
+	public synchronized final int findFileId(int dirId, String name) {
+
+		// Find the folder entry
+
+		FolderEntry entry = getFolder( dirId);
+		int fid = Unknown;
+
+		if ( entry != null) {
+
+			// Check the folder listing, any name not in the listing does not exist
+
+			if ( entry.hasListing()) {
+				DBFileInfo finfo = entry.m_listNames.get( foldName( name));
+				fid = finfo != null ? finfo.getFileId() : -1;
+			}
+			else if ( entry.m_names != null) {
+				Integer id = entry.m_names.get( foldName( name));
+				if ( id != null)
+					fid = id.intValue();
+			}
+		}
+
+		// Update the statistics
+
+		updateStatistics( fid);
+		return fid;
+	}
+
+	/**
+	 * Find the file id for a directory in a folder, using a case insensitive search. Returns the directory id,
+	 * -1 if the directory is known not to exist, or Unknown if the folder listing is not cached.
+	 *
+	 * @param dirId int
+	 * @param name String
+	 * @return int
+	 */
+	public synchronized final int findDirectoryId(int dirId, String name) {
+
+		// Find the folder entry, directory lookups are only answered using a complete folder listing
+
+		FolderEntry entry = getFolder( dirId);
+		int fid = Unknown;
+
+		if ( entry != null && entry.hasListing()) {
+			DBFileInfo finfo = entry.m_listDirs.get( foldName( name));
+			fid = finfo != null ? finfo.getFileId() : -1;
+		}
+
+		// Update the statistics
+
+		updateStatistics( fid);
+		return fid;
+	}
+
+	/**
+	 * Add the result of a name lookup to the cache, the file id is -1 if the name does not exist
+	 *
+	 * @param dirId int
+	 * @param name String
+	 * @param fid int
+	 * @param loadSeq long
+	 */
+	public synchronized final void addFileId(int dirId, String name, int fid, long loadSeq) {
+
+		// Ignore the lookup if the folder has changed since the lookup started
+
+		if ( isStale( dirId, loadSeq))
+			return;
+
+		// Find, or create, the folder entry
+
+		FolderEntry entry = getFolder( dirId);
+
+		if ( entry == null) {
+			entry = new FolderEntry( dirId);
+			m_folders.put( Integer.valueOf( dirId), entry);
+			m_memUsed += entry.m_size;
+		}
+		else if ( entry.hasListing())
+			return;
+
+		// Add the name lookup
+
+		long oldSize = entry.m_size;
+		entry.addName( name, fid);
+		m_memUsed += entry.m_size - oldSize;
+
+		// Check if any folders should be evicted
+
+		checkMemoryUsed();
+	}
+
+	/**
+	 * Return the cached listing for a folder, or null if the folder listing is not cached
+	 *
+	 * @param dirId int
+	 * @return DBFileInfo[]
+	 */
+	public synchronized final DBFileInfo[] findListing(int dirId) {
+
+		// Find the folder entry
+
+		FolderEntry entry = getFolder( dirId);
+		DBFileInfo[] listing = entry != null ? entry.m_listing : null;
+
+		// Update the statistics
+
+		if ( listing != null)
+			m_hits++;
+		else
+			m_misses++;
+
+		return listing;
+	}
+
+	/**
+	 * Add a complete folder listing to the cache. The listing is not cached if it is larger than the maximum
+	 * listing size, or the folder has changed since the listing was loaded.
+	 *
+	 * @param dirId int
+	 * @param listing DBFileInfo[]
+	 * @param loadSeq long
+	 * @return boolean
+	 */
+	public synchronized final boolean addListing(int dirId, DBFileInfo[] listing, long loadSeq) {
+
+		// Check if the listing can be cached
+
+		if ( listing.length > m_maxListing || isStale( dirId, loadSeq))
+			return false;
+
+		// Find, or create, the folder entry
+
+		FolderEntry entry = getFolder( dirId);
+
+		if ( entry == null) {
+			entry = new FolderEntry( dirId);
+			m_folders.put( Integer.valueOf( dirId), entry);
+			m_memUsed += entry.m_size;
+		}
+
+		// Set the folder listing
+
+		long oldSize = entry.m_size;
+		entry.setListing( listing);
+		m_memUsed += entry.m_size - oldSize;
+
+		// Check if any folders should be evicted
+
+		checkMemoryUsed();
+		return true;
+	}
+
+	/**
+	 * Invalidate the cached details for a name in a folder, after a file or folder has been created, deleted
+	 * or renamed
+	 *
+	 * @param dirId int
+	 * @param name String
+	 */
+	public synchronized final void invalidateName(int dirId, String name) {
+
+		// Mark the folder as changed
+
+		markChanged( dirId);
+
+		// Clear the folder listing and the name lookup
+
+		FolderEntry entry = m_folders.get( Integer.valueOf( dirId));
+
+		if ( entry != null) {
+			long oldSize = entry.m_size;
+
+			if ( entry.hasListing())
+				entry.clearListing();
+			entry.removeName( name);
+
+			m_memUsed += entry.m_size - oldSize;
+		}
+	}
+
+	/**
+	 * Invalidate the cached listing for a folder, after the details of a file in the folder have been changed.
+	 * Name lookups for the folder are not affected.
+	 *
+	 * @param dirId int
+	 */
+	public synchronized final void invalidateListing(int dirId) {
+
+		// Mark the folder as changed
+
+		markChanged( dirId);
+
+		// Clear the folder listing
+
+		FolderEntry entry = m_folders.get( Integer.valueOf( dirId));
+
+		if ( entry != null && entry.hasListing()) {
+			long oldSize = entry.m_size;
+			entry.clearListing();
+			m_memUsed += entry.m_size - oldSize;
+		}
+	}
+
+	/**
+	 * Remove all cached details for a folder, after the folder has been deleted
+	 *
+	 * @param dirId int
+	 */
+	public synchronized final void removeFolder(int dirId) {
+
+		// Mark the folder as changed
+
+		markChanged( dirId);
+
+		// Remove the folder entry
+
+		FolderEntry entry = m_folders.remove( Integer.valueOf( dirId));
+		if ( entry != null)
+			m_memUsed -= entry.m_size;
+	}
+
+	/**
+	 * Remove all cached details
+	 */
+	public synchronized final void removeAll() {
+
+		// Mark all folders as changed
+
+		m_sequence++;
+		for ( int i = 0; i < SequenceSlots; i++)
+			m_invalidated[i] = m_sequence;
+
+		// Clear the cache
+
+		m_folders.clear();
+		m_memUsed = 0L;
+	}
+
+	/**
+	 * Find a folder entry, remove the entry if it has expired. Must be called with the cache locked.
+	 *
+	 * @param dirId int
+	 * @return FolderEntry
+	 */
+	private final FolderEntry getFolder(int dirId) {
+
+		Integer key = Integer.valueOf( dirId);
+		FolderEntry entry = m_folders.get( key);
+
+		if ( entry != null && entry.hasExpired( System.currentTimeMillis())) {
+			m_folders.remove( key);
+			m_memUsed -= entry.m_size;
+			entry = null;
+		}
+
+		return entry;
+	}
+
+	/**
+	 * Mark a folder as changed so that in progress loads for the folder are not cached. Must be called
+	 * with the cache locked.
+	 *
+	 * @param dirId int
+	 */
+	private final void markChanged(int dirId) {
+		m_sequence++;
+		m_invalidated[dirId & ( SequenceSlots - 1)] = m_sequence;
+	}
+
+	/**
+	 * Check if a folder has changed since a load started. Must be called with the cache locked.
+	 *
+	 * @param dirId int
+	 * @param loadSeq long
+	 * @return boolean
+	 */
+	private final boolean isStale(int dirId, long loadSeq) {
+		return m_invalidated[dirId & ( SequenceSlots - 1)] > loadSeq;
+	}
+
+	/**
+	 * Evict least recently used folders until the memory used is within the limit. Must be called with the
+	 * cache locked.
+	 */
+	private final void checkMemoryUsed() {
+
+		Iterator<FolderEntry> iter = m_folders.values().iterator();
+
+		while ( m_memUsed > m_maxMemory && iter.hasNext()) {
+			FolderEntry entry = iter.next();
+			iter.remove();
+
+			m_memUsed -= entry.m_size;
+			m_evictions++;
+		}
+	}
+
+	/**
+	 * Return the name used as the cache key, names are not case sensitive
+	 *
+	 * @param name String
+	 * @return String
+	 */
+	private static final String foldName(String name) {
+		return name.toUpperCase();
+	}
+
+	/**
+	 * Update the lookup statistics. Must be called with the cache locked.
+	 *
+	 * @param fid int
+	 */
+	private final void updateStatistics(int fid) {
+		if ( fid == Unknown)
+			m_misses++;
+		else if ( fid == -1)
+			m_negativeHits++;
+		else
+			m_hits++;
+	}
+
+	/**
+	 * Return the directory cache details as a string
+	 *
+	 * @return String
+	 */
+	public synchronized String toString() {
+		StringBuilder str = new StringBuilder();
+
+		str.append("[DirCache folders=");
+		str.append( m_folders.size());
+		str.append(",mem=");
+		str.append( m_memUsed / MemorySize.KILOBYTE);
+		str.append("K/");
+		str.append( m_maxMemory / MemorySize.KILOBYTE);
+		str.append("K,hits=");
+		str.append( m_hits);
+		str.append(",negHits=");
+		str.append( m_negativeHits);
+		str.append(",misses=");
+		str.append( m_misses);
+		str.append(",evictions=");
+		str.append( m_evictions);
+		str.append("]");
+
+		return str.toString();
+	}
+}
@@ -321,6 +321,11 @@ public class DBDiskDriver implements DiskInterface, DiskSizeInterface, DiskVolum
         //  Call the database interface
 
         dbCtx.getDBInterface().setFileInformation(file.getDirectoryId(), file.getFileId(), finfo);
+
+        //  Invalidate the cached folder listing
+
+        if ( dbCtx.hasDirectoryCache())
+          dbCtx.getDirectoryCache().invalidateListing( file.getDirectoryId());
       }
       catch (DBException ex) {
       }
@@ -423,6 +428,11 @@ public class DBDiskDriver implements DiskInterface, DiskSizeInterface, DiskVolum
 
       fid = dbCtx.getDBInterface().createFileRecord(dname, dirId, params, retain);
 
+      //  Invalidate the cached folder details
+
+      if ( dbCtx.hasDirectoryCache())
+        dbCtx.getDirectoryCache().invalidateName( dirId, dname);
+
       //  Indicate that the path exists
 
       fstate.setFileStatus( FileStatus.DirectoryExists, FileState.ReasonFolderCreated);
@@ -576,6 +586,11 @@ public class DBDiskDriver implements DiskInterface, DiskSizeInterface, DiskVolum
 
       int fid = dbCtx.getDBInterface().createFileRecord(fname, dirId, params, retain);
 
+      //  Invalidate the cached folder details
+
+      if ( dbCtx.hasDirectoryCache())
+        dbCtx.getDirectoryCache().invalidateName( dirId, fname);
+
       //  Indicate that the file exists
 
       fstate.setFileStatus( FileStatus.FileExists, FileState.ReasonFileCreated);
@@ -708,6 +723,15 @@ public class DBDiskDriver implements DiskInterface, DiskSizeInterface, DiskVolum
 
       dbCtx.getDBInterface().deleteFileRecord(dinfo.getDirectoryId(), dinfo.getFileId(), dbCtx.isTrashCanEnabled());
 
+      //  Invalidate the cached details for the parent folder, and remove the cached details for the deleted folder
+
+      if ( dbCtx.hasDirectoryCache()) {
+        DBDirectoryCache dirCache = dbCtx.getDirectoryCache();
+
+        dirCache.invalidateName( dinfo.getDirectoryId(), FileName.splitPath( dir)[1]);
+        dirCache.removeFolder( dinfo.getFileId());
+      }
+
       //  Indicate that the path does not exist
 
       fstate.setFileStatus( FileStatus.NotExist, FileState.ReasonFolderDeleted);
@@ -840,6 +864,11 @@ public class DBDiskDriver implements DiskInterface, DiskSizeInterface, DiskVolum
 
       dbCtx.getDBInterface().deleteFileRecord(dbInfo.getDirectoryId(), fstate.getFileId(), dbCtx.isTrashCanEnabled());
 
+      //  Invalidate the cached folder details
+
+      if ( dbCtx.hasDirectoryCache())
+        dbCtx.getDirectoryCache().invalidateName( dbInfo.getDirectoryId(), FileName.splitPath( name)[1]);
+
       //  Indicate that the path does not exist
 
       fstate.setFileStatus( FileStatus.NotExist, FileState.ReasonFileDeleted);
@@ -1454,6 +1483,15 @@ public class DBDiskDriver implements DiskInterface, DiskSizeInterface, DiskVolum
 
       dbCtx.getDBInterface().renameFileRecord(dirId, fid, newFname, newDirId);
 
+      //  Invalidate the cached details for the old and new folders
+
+      if ( dbCtx.hasDirectoryCache()) {
+        DBDirectoryCache dirCache = dbCtx.getDirectoryCache();
+
+        dirCache.invalidateName( dirId, FileName.splitPath( oldName)[1]);
+        dirCache.invalidateName( newDirId, newFname);
+      }
+
       //  Update the file state with the new file name/path
 
       dbCtx.getStateCache().renameFileState(newName, fstate, curInfo.isDirectory());
@@ -1603,9 +1641,15 @@ public class DBDiskDriver implements DiskInterface, DiskSizeInterface, DiskVolum
 
       //  Update the file information
 
-      if ( dbFlags != 0)
+      if ( dbFlags != 0) {
     	  dbCtx.getDBInterface().setFileInformation(dbInfo.getDirectoryId(), dbInfo.getFileId(), info);
 
+    	  //  Invalidate the cached folder listing
+
+    	  if ( dbCtx.hasDirectoryCache())
+    		  dbCtx.getDirectoryCache().invalidateListing( dbInfo.getDirectoryId());
+      }
+
       //  Use the original information flags when updating the cached file information details
 
       info.setFileInformationFlags(origFlags);
@@ -1718,6 +1762,11 @@ public class DBDiskDriver implements DiskInterface, DiskSizeInterface, DiskVolum
         }
       }
 
+      //  Check if the search can use the directory cache
+
+      if ( search == null && dbCtx.hasDirectoryCache())
+        search = startCachedSearch( dbCtx, dirId, searchPath, attrib);
+
       //  Start the search via the database interface, if the search is not valid
 
       if ( search == null) {
@@ -1743,6 +1792,116 @@ public class DBDiskDriver implements DiskInterface, DiskSizeInterface, DiskVolum
     return search;
   }
 
+  /**
+   * Start a search using the directory cache. Full wildcard searches and single file searches are loaded from
+   * the database and added to the cache, other wildcard searches only use the cache if the folder listing
+   * is already cached. Returns null if the search cannot use the directory cache.
+   *
+   * @param dbCtx DBDeviceContext
+   * @param dirId int
+   * @param searchPath String
+   * @param attrib int
+   * @return SearchContext
+   * @exception DBException
+   */
+  private final SearchContext startCachedSearch(DBDeviceContext dbCtx, int dirId, String searchPath, int attrib)
+    throws DBException {
+
+    //  Split the search path, check for a wildcard search
+
+    DBDirectoryCache dirCache = dbCtx.getDirectoryCache();
+    String[] paths = FileName.splitPath(searchPath);
+
+    boolean wildcard = WildCard.containsWildcards(searchPath);
+    boolean wildcardAll = wildcard && WildCard.isWildcardAll(searchPath);
+
+    //  Check for a cached folder listing
+
+    DBFileInfo[] listing = dirCache.findListing(dirId);
+    DBFileInfo[] results = null;
+    WildCard filter = null;
+
+    if ( listing != null) {
+
+      //  Use the cached listing, filter the listing for a partial wildcard search
+
+      if ( wildcard) {
+        results = listing;
+        if ( wildcardAll == false)
+          filter = new WildCard(paths[1], false);
+      }
+      else {
+
+        //  Find the file in the listing, using a case insensitive search as the directory cache does. Files
+        //  that are not in the listing do not exist.
+
+        results = new DBFileInfo[0];
+
+        for ( int idx = 0; idx < listing.length; idx++) {
+          if ( listing[idx].getFileName().equalsIgnoreCase( paths[1])) {
+            results = new DBFileInfo[] { listing[idx] };
+            break;
+          }
+        }
+      }
+    }
+    else if ( wildcard == false && dirCache.findFileId(dirId, paths[1]) == -1) {
+
+      //  Cached negative lookup, the file does not exist
+
+      results = new DBFileInfo[0];
+    }
+    else if ( wildcard == false || wildcardAll == true) {
+
+      //  Load the search results from the database
+
+      long loadSeq = dirCache.beginLoad();
+      DBSearchContext dbSearch = dbCtx.getDBInterface().startSearch(dirId, searchPath, attrib, DBInterface.FileAll, -1);
+
+      ArrayList<DBFileInfo> fileList = new ArrayList<DBFileInfo>();
+
+      try {
+        DBFileInfo finfo = new DBFileInfo();
+
+        while ( dbSearch.nextFileInfo(finfo)) {
+          finfo.setDirectoryId(dirId);
+          fileList.add(finfo);
+
+          finfo = new DBFileInfo();
+        }
+      }
+      finally {
+        dbSearch.closeSearch();
+      }
+
+      results = fileList.toArray(new DBFileInfo[fileList.size()]);
+
+      //  Add the folder listing, or the file lookup, to the directory cache
+
+      if ( wildcardAll)
+        dirCache.addListing(dirId, results, loadSeq);
+      else
+        dirCache.addFileId(dirId, paths[1], results.length > 0 ? results[0].getFileId() : -1, loadSeq);
+    }
+
+    //  Check if the search cannot use the directory cache
+
+    if ( results == null)
+      return null;
+
+    //  DEBUG
+
+    if ( Debug.EnableInfo && hasDebug())
+      Debug.println("DB StartSearch using directory cache, path=" + searchPath + ", files=" + results.length + ", cached=" + ( listing != null));
+
+    //  Create the search context
+
+    CachedListSearchContext search = new CachedListSearchContext(results, filter);
+    search.setMarkAsOffline(dbCtx.hasOfflineFiles(), dbCtx.getOfflineFileSize());
+
+    return search;
+  }
+
   /**
    * Truncate a file to the specified size
    *
@@ -1871,6 +2030,11 @@ public class DBDiskDriver implements DiskInterface, DiskSizeInterface, DiskVolum
 
         dbCtx.getDBInterface().setFileInformation(jfile.getDirectoryId(), jfile.getFileId(), finfo);
 
+        //  Invalidate the cached folder listing
+
+        if ( dbCtx.hasDirectoryCache())
+          dbCtx.getDirectoryCache().invalidateListing( jfile.getDirectoryId());
+
         //  Update the cached file information
 
         dbInfo.setChangeDateTime(finfo.getChangeDateTime());
@@ -2210,6 +2374,37 @@ public class DBDiskDriver implements DiskInterface, DiskSizeInterface, DiskVolum
       }
     }
 
+    //  Check the directory cache, may return a cached negative lookup
+
+    DBDirectoryCache dirCache = dbCtx.getDirectoryCache();
+    long loadSeq = 0L;
+
+    if ( dirCache != null) {
+
+      //  Check for a cached file id
+
+      int cachedId = dirCache.findFileId(dirId, name);
+
+      if ( cachedId != DBDirectoryCache.Unknown) {
+
+        //  Debug
+
+        if ( Debug.EnableInfo && hasDebug())
+          Debug.println("@@ Directory cache hit - getFileId() name=" + name + ", fid=" + cachedId);
+
+        //  Update the cache entry, if available
+
+        if ( state != null)
+          state.setFileId(cachedId);
+
+        return cachedId;
+      }
+
+      //  Get the load sequence before the database lookup
+
+      loadSeq = dirCache.beginLoad();
+    }
+
     //  Get the file id from the database
 
     int fileId = -1;
@@ -2219,6 +2414,11 @@ public class DBDiskDriver implements DiskInterface, DiskSizeInterface, DiskVolum
       //  Get the file id
 
       fileId = dbCtx.getDBInterface().getFileId(dirId, name, false, false);
+
+      //  Add the file id, or negative lookup, to the directory cache
+
+      if ( dirCache != null)
+        dirCache.addFileId(dirId, name, fileId, loadSeq);
     }
     catch (DBException ex) {
     }
@@ -2419,7 +2619,17 @@ public class DBDiskDriver implements DiskInterface, DiskSizeInterface, DiskVolum
           //  Search for the current directory in the database
 
           parentId = dirId;
-          dirId = ctx.getDBInterface().getFileId(dirId, curPath, true, true);
+
+          //  Check the directory cache for a cached folder listing
+
+          int cachedId = DBDirectoryCache.Unknown;
+          if ( ctx.hasDirectoryCache())
+            cachedId = ctx.getDirectoryCache().findDirectoryId(dirId, curPath);
+
+          if ( cachedId != DBDirectoryCache.Unknown)
+            dirId = cachedId;
+          else
+            dirId = ctx.getDBInterface().getFileId(dirId, curPath, true, true);
 
           if ( dirId != -1) {
 
@@ -24,6 +24,7 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.io.InputStream;
 import java.util.List;
 import java.util.jar.JarEntry;
@@ -34,6 +35,7 @@ import org.alfresco.jlan.debug.Debug;
 import org.alfresco.jlan.server.SrvSession;
 import org.alfresco.jlan.server.core.DeviceContext;
 import org.alfresco.jlan.server.filesys.DiskDeviceContext;
+import org.alfresco.jlan.server.filesys.FileInfo;
 import org.alfresco.jlan.server.filesys.FileName;
 import org.alfresco.jlan.server.filesys.FileOpenParams;
 import org.alfresco.jlan.server.filesys.FileStatus;
@@ -44,6 +46,7 @@ import org.alfresco.jlan.server.filesys.cache.FileStateListener;
 import org.alfresco.jlan.server.filesys.cache.FileStateProxy;
 import org.alfresco.jlan.server.filesys.loader.BackgroundFileLoader;
 import org.alfresco.jlan.server.filesys.loader.CachedFileInfo;
+import org.alfresco.jlan.server.filesys.loader.FileFragmentMap;
 import org.alfresco.jlan.server.filesys.loader.FileLoader;
 import org.alfresco.jlan.server.filesys.loader.FileLoaderException;
 import org.alfresco.jlan.server.filesys.loader.FileProcessor;
@@ -51,6 +54,7 @@ import org.alfresco.jlan.server.filesys.loader.FileProcessorList;
 import org.alfresco.jlan.server.filesys.loader.FileRequest;
 import org.alfresco.jlan.server.filesys.loader.FileRequestQueue;
 import org.alfresco.jlan.server.filesys.loader.FileSegment;
+import org.alfresco.jlan.server.filesys.loader.FileSegmentCache;
 import org.alfresco.jlan.server.filesys.loader.FileSegmentInfo;
 import org.alfresco.jlan.server.filesys.loader.MultipleFileRequest;
 import org.alfresco.jlan.server.filesys.loader.SingleFileRequest;
@@ -66,7 +70,9 @@ import org.springframework.extensions.config.ConfigElement;
  * main database disk driver.
  *
  * <p>
- * The file data may be split up into several BLOB fields.
+ * The file data may be split up into several BLOB fields. If the database interface supports loading
+ * individual fragments then large files are loaded on demand, only the fragments touched by reads, plus
+ * a number of read-ahead fragments, are loaded into a sparse temporary file.
  *
  * <p>
  * This class relies on a seperate DBDataInterface implementation to provide the methods to load and
@@ -136,6 +142,11 @@ public class DBFileLoader implements FileLoader, BackgroundFileLoader, FileState
 
 	public final static long MAX_MEMORYBUFFER = 512L * 1024L; // 1/2Mb
 
+	// Number of fragments to load ahead of a read when loading file data on demand
+
+	public static final int DefaultReadAheadFragments = 2;
+	public static final int MaximumReadAheadFragments = 64;
+
 	// Prefix for Jar files when added to the file state cache. The files must not be accessible
 	// from the client so we use invalid file name characters to prefix the name.
 
@@ -198,6 +209,11 @@ public class DBFileLoader implements FileLoader, BackgroundFileLoader, FileState
 
 	private long m_fragSize = DEFAULT_FRAGSIZE;
 
+	// Load file data fragments on demand, and the number of fragments to read ahead
+
+	private boolean m_lazyLoad = true;
+	private int m_readAheadFrags = DefaultReadAheadFragments;
+
 	// Keep Jar files created for multiple file transaction requests
 
 	private boolean m_keepJars;
@@ -227,6 +243,10 @@ public class DBFileLoader implements FileLoader, BackgroundFileLoader, FileState
 	private int m_tempCount;
 	private int m_tempMax;
 
+	// Local cache of clean file segments that are kept after the file state expires
+
+	private FileSegmentCache m_segmentCache;
+
 	// Current transaction id, cumulative file size, file count and time last file was added to the
 	// current transaction.
 	// Transaction lock used to synchronize access to the values.
@@ -435,6 +455,24 @@ public class DBFileLoader implements FileLoader, BackgroundFileLoader, FileState
 		return m_curTempDir;
 	}
 
+	/**
+	 * Check if file data fragments are loaded on demand
+	 *
+	 * @return boolean
+	 */
+	public final boolean hasLazyLoad() {
+		return m_lazyLoad && m_dbDataInterface instanceof DBFragmentDataInterface;
+	}
+
+	/**
+	 * Return the number of fragments to load ahead of a read when loading file data on demand
+	 *
+	 * @return int
+	 */
+	public final int getReadAheadFragments() {
+		return m_readAheadFrags;
+	}
+
 	/**
 	 * Check if Jars files should be kept in the temporary area
 	 *
@@ -571,6 +609,37 @@ public class DBFileLoader implements FileLoader, BackgroundFileLoader, FileState
 		return m_tempFilePrefix;
 	}
 
+	/**
+	 * Return the temporary file name for the specified file/stream
+	 *
+	 * @param fid int
+	 * @param stid int
+	 * @return String
+	 */
+	protected final String getTempFileName(int fid, int stid) {
+		StringBuffer tempName = new StringBuffer();
+
+		tempName.append(getTempFilePrefix());
+		tempName.append(fid);
+
+		if ( stid > 0) {
+			tempName.append("_");
+			tempName.append(stid);
+		}
+
+		tempName.append(".tmp");
+		return tempName.toString();
+	}
+
+	/**
+	 * Return the local file segment cache, or null if the cache is not enabled
+	 *
+	 * @return FileSegmentCache
+	 */
+	public final FileSegmentCache getSegmentCache() {
+		return m_segmentCache;
+	}
+
 	/**
 	 * Set the worker thread name prefix
 	 *
@@ -627,6 +696,7 @@ public class DBFileLoader implements FileLoader, BackgroundFileLoader, FileState
 				// is being overwritten
 				// so there is no data to load.
 
+				fileSeg.getInfo().setFragmentMap(null);
 				fileSeg.setStatus(FileSegmentInfo.Available);
 			}
 			else if ( params.isSequentialAccessOnly() && fileSeg.isDataLoading() == false) {
@@ -785,6 +855,11 @@ public class DBFileLoader implements FileLoader, BackgroundFileLoader, FileState
 
 			FileState fstate = m_stateCache.findFileState(fname, false);
 
+			// Remove any cached copy of the file data
+
+			if ( m_segmentCache != null)
+				m_segmentCache.removeSegment(getTempFileName(fid, stid));
+
 			if ( fstate != null) {
 
 				// Get the file segment details
@@ -883,6 +958,13 @@ public class DBFileLoader implements FileLoader, BackgroundFileLoader, FileState
 
 			fileSeg.setStatus(FileSegmentInfo.Loading);
 
+			// Check if the file data is being loaded on demand, if so then load the requested fragments
+
+			FileFragmentMap fragMap = fileSeg.getFragmentMap();
+
+			if ( fragMap != null)
+				return loadFileFragments(loadReq, fileSeg, fragMap, startTime);
+
 			// Get the file data details
 
 			DBDataDetails dataDetails = getDBDataInterface().getFileDataDetails(loadReq.getFileId(), loadReq.getStreamId());
@@ -905,6 +987,15 @@ public class DBFileLoader implements FileLoader, BackgroundFileLoader, FileState
 				fileSeg.setStatus(FileSegmentInfo.Available, false);
 				fileSeg.signalDataAvailable();
 			}
+			else if ( hasLazyLoad() && (fragMap = createFragmentMap(loadReq, tempFile)) != null) {
+
+				// Load the fragments needed by the initial reads, further fragments are loaded as they are requested
+
+				fileSeg.getInfo().setFragmentMap(fragMap);
+				fragMap.requestRange(0L, 1L);
+
+				return loadFileFragments(loadReq, fileSeg, fragMap, startTime);
+			}
 			else {
 
 				// Load the file data from the main file record(s)
@@ -969,6 +1060,158 @@ public class DBFileLoader implements FileLoader, BackgroundFileLoader, FileState
 		return loadSts;
 	}
 
+	/**
+	 * Create a fragment map to load the file data on demand, the temporary file is extended to the full
+	 * file size as a sparse file. Returns null if the file data is held in a single fragment and should be
+	 * loaded as a whole.
+	 *
+	 * @param loadReq SingleFileRequest
+	 * @param tempFile File
+	 * @return FileFragmentMap
+	 * @exception DBException
+	 * @exception IOException
+	 */
+	protected final FileFragmentMap createFragmentMap(SingleFileRequest loadReq, File tempFile)
+		throws DBException, IOException {
+
+		// Get the data fragment lengths for the file
+
+		DBFragmentDataInterface fragInterface = (DBFragmentDataInterface) getDBDataInterface();
+		long[] fragLens = fragInterface.getFileDataFragments(loadReq.getFileId(), loadReq.getStreamId());
+
+		if ( fragLens.length < 2)
+			return null;
+
+		// Create the fragment map, and size the temporary file
+
+		FileFragmentMap fragMap = new FileFragmentMap(fragLens, getReadAheadFragments());
+
+		RandomAccessFile sparseFile = new RandomAccessFile(tempFile, "rw");
+
+		try {
+			sparseFile.setLength(fragMap.getFileLength());
+		}
+		finally {
+			sparseFile.close();
+		}
+
+		// DEBUG
+
+		if ( Debug.EnableInfo && hasDebug())
+			Debug.println("## DBFileLoader on demand load fid=" + loadReq.getFileId() + ", stream=" + loadReq.getStreamId()
+					+ ", map=" + fragMap);
+
+		// Return the fragment map
+
+		return fragMap;
+	}
+
+	/**
+	 * Load the outstanding requested fragments of a file that is being loaded on demand. When all fragments
+	 * have been loaded the file data is marked as available.
+	 *
+	 * @param loadReq SingleFileRequest
+	 * @param fileSeg FileSegment
+	 * @param fragMap FileFragmentMap
+	 * @param startTime long
+	 * @return int
+	 */
+	protected final int loadFileFragments(SingleFileRequest loadReq, FileSegment fileSeg, FileFragmentMap fragMap, long startTime) {
+
+		// Load the requested fragments, fragments needed by reads are loaded before read-ahead fragments
+
+		DBFragmentDataInterface fragInterface = (DBFragmentDataInterface) getDBDataInterface();
+		int fragCnt = 0;
+
+		try {
+
+			int fragIdx = fragMap.nextFragment();
+
+			while ( fragIdx != -1) {
+
+				// Load the fragment into the sparse temporary file, fragments are numbered from one
+
+				long fragLen = fragInterface.loadFileDataFragment(loadReq.getFileId(), loadReq.getStreamId(), fragIdx + 1,
+						fragMap.getFragmentOffset(fragIdx), fileSeg);
+
+				if ( fragLen != fragMap.getFragmentLength(fragIdx))
+					throw new IOException("Data fragment length mismatch, fid=" + loadReq.getFileId() + ", frag=" + (fragIdx + 1)
+							+ ", len=" + fragLen);
+
+				// Mark the fragment as loaded and wakeup any waiting readers
+
+				fragMap.setFragmentLoaded(fragIdx);
+				fileSeg.signalDataAvailable();
+
+				fragCnt++;
+
+				// Get the next fragment to load
+
+				fragIdx = fragMap.nextFragment();
+			}
+		}
+		catch (DBException ex) {
+
+			// DEBUG
+
+			if ( Debug.EnableError && hasDebug())
+				Debug.println(ex);
+
+			// Indicate the file load failed
+
+			fileSeg.setStatus(FileSegmentInfo.Error, false);
+			return StsError;
+		}
+		catch (IOException ex) {
+
+			// DEBUG
+
+			if ( Debug.EnableError && hasDebug())
+				Debug.println(ex);
+
+			// Indicate the file load failed
+
+			fileSeg.setStatus(FileSegmentInfo.Error, false);
+			return StsError;
+		}
+
+		// DEBUG
+
+		if ( Debug.EnableInfo && hasDebug()) {
+			long endTime = System.currentTimeMillis();
+			Debug.println("## DBFileLoader loaded fid=" + loadReq.getFileId() + ", stream=" + loadReq.getStreamId() + ", frags="
+					+ fragCnt + ", map=" + fragMap + ", time=" + (endTime - startTime) + "ms");
+		}
+
+		// Check if all of the file data has now been loaded, the fragment map is no longer required
+
+		if ( fragMap.isLoaded() && fragMap.isCancelled() == false) {
+
+			// Update the file status, and clear the queued flag
+
+			fileSeg.setReadableLength(fragMap.getFileLength());
+
+			fileSeg.signalDataAvailable();
+			fileSeg.setStatus(FileSegmentInfo.Available, false);
+
+			fileSeg.getInfo().setFragmentMap(null);
+
+			// Run the file load processors
+
+			runFileLoadedProcessors(getContext(), loadReq.getFileState(), fileSeg);
+		}
+		else {
+
+			// Clear the queued flag, the file remains in the loading state until further fragments are requested
+
+			fileSeg.getInfo().setQueued(false);
+		}
+
+		// Return the load file status
+
+		return StsSuccess;
+	}
+
 	/**
 	 * Load the requested file from a Jar file. The Jar file must first be loaded
 	 * from the database, then the file data is unpacked to the temporary file. The Jar file is
@@ -1793,6 +2036,29 @@ public class DBFileLoader implements FileLoader, BackgroundFileLoader, FileState
 		else
 			m_tempMax = MaximumFilesPerSubDir;
 
+		// Check if the local segment cache size has been specified, clean file data is kept in the temporary
+		// area after the file state expires, up to the specified number of bytes
+
+		ConfigElement cacheSize = params.getChild("SegmentCacheSize");
+		if ( cacheSize != null) {
+			try {
+				long maxSize = MemorySize.getByteValue(cacheSize.getValue());
+
+				// Range check the cache size
+
+				if ( maxSize <= 0L)
+					throw new FileLoaderException("FileLoader SegmentCacheSize invalid, " + cacheSize.getValue());
+
+				// Create the segment cache
+
+				m_segmentCache = new FileSegmentCache(maxSize);
+				m_segmentCache.setDebug(hasDebug());
+			}
+			catch (NumberFormatException ex) {
+				throw new FileLoaderException("FileLoader SegmentCacheSize invalid, " + cacheSize.getValue());
+			}
+		}
+
 		// Check if transaction support should be enabled. If enabled small files are bundled
 		// together into a single
 		// file request for special processing by the file loader storeFile() method.
@@ -1953,6 +2219,32 @@ public class DBFileLoader implements FileLoader, BackgroundFileLoader, FileState
 				throw new FileLoaderException("FragmentSize is out of valid range (64K - 20Mb");
 		}
 
+		// Check if loading of file data on demand has been disabled
+
+		if ( params.getChild("DisableLazyLoad") != null)
+			m_lazyLoad = false;
+
+		// Check if the number of read-ahead fragments has been specified
+
+		nv = params.getChild("ReadAheadFragments");
+
+		if ( nv != null) {
+			try {
+
+				// Convert the read-ahead fragment count
+
+				m_readAheadFrags = Integer.parseInt(nv.getValue());
+
+				// Range check the value
+
+				if ( m_readAheadFrags < 0 || m_readAheadFrags > MaximumReadAheadFragments)
+					throw new FileLoaderException("ReadAheadFragments is out of valid range (0 - " + MaximumReadAheadFragments + ")");
+			}
+			catch (NumberFormatException ex) {
+				throw new FileLoaderException("Invalid ReadAheadFragments value, " + nv.getValue());
+			}
+		}
+
 		// Check if transaction request Jar files should be kept in the temporary area
 
 		nv = params.getChild("KeepJars");
@@ -2121,6 +2413,11 @@ public class DBFileLoader implements FileLoader, BackgroundFileLoader, FileState
 		if ( m_backgroundLoader != null)
 			m_backgroundLoader.shutdownThreads();
 
+		// Delete the temporary files held by the local segment cache
+
+		if ( m_segmentCache != null)
+			m_segmentCache.removeAllSegments();
+
 		// Shutdown the transaction timer thread, if active
 
 		if ( m_transTimer != null)
@@ -2379,29 +2676,48 @@ public class DBFileLoader implements FileLoader, BackgroundFileLoader, FileState
 
 					if ( segInfo.hasStatus() != FileSegmentInfo.Initial) {
 
-						// Delete the temporary file
+						// Keep the temporary file in the local segment cache if the file data is clean, else delete
+						// the temporary file. The segment is removed from the file state whilst holding the state lock
+						// so that it cannot be opened whilst owned by the cache.
+
+						boolean cached = false;
 
-						try {
-							segInfo.deleteTemporaryFile();
+						synchronized (state) {
+
+							FileInfo finfo = (FileInfo) state.findAttribute(FileState.FileInformation);
+							if ( m_segmentCache != null && finfo != null)
+								cached = m_segmentCache.addSegment(segInfo, finfo.getSize(), finfo.getModifyDateTime());
+
+							// Remove the file segment from the file state
+
+							state.removeAttribute(DBFileSegmentInfo);
 						}
-						catch (IOException ex) {
 
-							// DEBUG
+						if ( cached == false) {
+
+							// Delete the temporary file
 
-							if ( Debug.EnableError) {
-								Debug.println("Delete temp file error: " + ex.toString());
-								File tempFile = new File(segInfo.getTemporaryFile());
-								Debug.println("  TempFile file=" + tempFile.getAbsolutePath() + ", exists=" + tempFile.exists());
-								Debug.println("  FileState state=" + state);
-								Debug.println("  FileSegmentInfo segInfo=" + segInfo);
-								Debug.println("  StateCache size=" + m_stateCache.numberOfStates());
+							try {
+								segInfo.deleteTemporaryFile();
+							}
+							catch (IOException ex) {
+
+								// DEBUG
+
+								if ( Debug.EnableError) {
+									Debug.println("Delete temp file error: " + ex.toString());
+									File tempFile = new File(segInfo.getTemporaryFile());
+									Debug.println("  TempFile file=" + tempFile.getAbsolutePath() + ", exists=" + tempFile.exists());
+									Debug.println("  FileState state=" + state);
+									Debug.println("  FileSegmentInfo segInfo=" + segInfo);
+									Debug.println("  StateCache size=" + m_stateCache.numberOfStates());
+								}
 							}
-						}
 
-						// Remove the file segment, reset the file segment back to the initial state
+							// Reset the file segment back to the initial state
 
-						state.removeAttribute(DBFileSegmentInfo);
-						segInfo.setStatus(FileSegmentInfo.Initial);
+							segInfo.setStatus(FileSegmentInfo.Initial);
+						}
 
 						// Reset the file state to indicate file data load required
 
@@ -2428,7 +2744,8 @@ public class DBFileLoader implements FileLoader, BackgroundFileLoader, FileState
 						// Debug
 
 						if ( Debug.EnableInfo && hasDebug())
-							Debug.println("$$ Deleted temporary file " + segInfo.getTemporaryFile() + " [EXPIRED] $$");
+							Debug.println("$$ " + (cached ? "Cached" : "Deleted") + " temporary file " + segInfo.getTemporaryFile()
+									+ " [EXPIRED] $$");
 					}
 
 					// If the file state is not to be deleted reset the file state expiration timer
@@ -2531,45 +2848,51 @@ public class DBFileLoader implements FileLoader, BackgroundFileLoader, FileState
 			FileSegmentInfo fileSegInfo = (FileSegmentInfo) state.findAttribute(DBFileSegmentInfo);
 			if ( fileSegInfo == null) {
 
-				// Check if we need to create a new temporary sub-drectory
+				// Check if the file data is held in the local segment cache
+
+				String tempName = getTempFileName(fid, stid);
+				DBFileInfo finfo = (DBFileInfo) state.findAttribute(FileState.FileInformation);
 
-				if ( m_tempCount++ >= m_tempMax)
-					createNewTempDirectory();
+				if ( m_segmentCache != null) {
+					if ( finfo != null)
+						fileSegInfo = m_segmentCache.findSegment(tempName, finfo.getSize(), finfo.getModifyDateTime());
+					else
+						m_segmentCache.removeSegment(tempName);
+				}
 
-				// Create a unique temporary file name
+				if ( fileSegInfo != null) {
 
-				StringBuffer tempName = new StringBuffer();
-				tempName.append(getTempFilePrefix());
-				tempName.append(fid);
+					// Reuse the cached file segment, the file data is already available
 
-				if ( stid > 0) {
-					tempName.append("_");
-					tempName.append(stid);
+					fileSeg = new FileSegment(fileSegInfo, params.isReadOnlyAccess() == false);
 
 					// DEBUG
 
-					if ( Debug.EnableInfo)
-						Debug.println("## Temp file for stream ##");
+					if ( Debug.EnableInfo && hasDebug())
+						Debug.println("## DBFileLoader reused cached segment " + fileSegInfo.getTemporaryFile() + ", " + m_segmentCache);
 				}
+				else {
 
-				tempName.append(".tmp");
+					// Check if we need to create a new temporary sub-drectory
 
-				// Create a new file segment
+					if ( m_tempCount++ >= m_tempMax)
+						createNewTempDirectory();
 
-				fileSegInfo = new FileSegmentInfo();
-				fileSeg = FileSegment.createSegment(fileSegInfo, tempName.toString(), m_curTempDir,
-						params.isReadOnlyAccess() == false);
+					// Create a new file segment
 
-				// Add the segment to the file state cache
+					fileSegInfo = new FileSegmentInfo();
+					fileSeg = FileSegment.createSegment(fileSegInfo, tempName, m_curTempDir, params.isReadOnlyAccess() == false);
 
-				state.addAttribute(DBFileSegmentInfo, fileSegInfo);
+					// Check if the file is zero length, if so then set the file segment state to indicate it is
+					// available
 
-				// Check if the file is zero length, if so then set the file segment state to
-				// indicate it is available
+					if ( finfo != null && finfo.getSize() == 0)
+						fileSeg.setStatus(FileSegmentInfo.Available);
+				}
 
-				DBFileInfo finfo = (DBFileInfo) state.findAttribute(FileState.FileInformation);
-				if ( finfo != null && finfo.getSize() == 0)
-					fileSeg.setStatus(FileSegmentInfo.Available);
+				// Add the segment to the file state cache
+
+				state.addAttribute(DBFileSegmentInfo, fileSegInfo);
 			}
 			else {
 
@@ -2588,6 +2911,7 @@ public class DBFileLoader implements FileLoader, BackgroundFileLoader, FileState
 
 					// Reset the file segment state to indicate a file load is required
 
+					fileSeg.getInfo().setFragmentMap(null);
 					fileSeg.setStatus(FileSegmentInfo.Initial);
 				}
 			}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2006-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.alfresco.jlan.server.filesys.db;
+
+import java.io.IOException;
+
+import org.alfresco.jlan.server.filesys.loader.FileSegment;
+
+
+/**
+ * Database Fragment Data Interface
+ *
+ * <p>Optional extension of the database data interface that allows the fragments of a file to be loaded
+ * individually, so that file data can be loaded on demand into a sparse temporary file.
+ *
+ * @author gkspencer
+ */
+public interface DBFragmentDataInterface extends DBDataInterface {
+
+  /**
+   * Return the lengths of the data fragments for the specified file or stream, in fragment order.
+   *
+   * @param fileId int
+   * @param streamId int
+   * @return long[]
+   * @throws DBException
+   */
+  public long[] getFileDataFragments(int fileId, int streamId)
+  	throws DBException;
+
+  /**
+   * Load a single file data fragment from the database into the temporary/local file at the specified
+   * file offset. Fragments are numbered from one. Returns the number of bytes loaded.
+   *
+   * @param fileId int
+   * @param streamId int
+   * @param fragNo int
+   * @param fileOff long
+   * @param fileSeg FileSegment
+   * @return long
+   * @throws DBException
+   * @throws IOException
+   */
+  public long loadFileDataFragment(int fileId, int streamId, int fragNo, long fileOff, FileSegment fileSeg)
+  	throws DBException, IOException;
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2006-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.alfresco.jlan.server.filesys.db;
+
+import java.util.Random;
+
+/**
+ * Data Chunker Class
+ *
+ * <p>Splits file data into chunks for deduplicated storage. Chunk boundaries are either at fixed offsets or are
+ * content defined, using a gear rolling hash over the data so that an insert or delete within a file only changes
+ * the chunks around the edit, and identical runs of data in different files produce identical chunks.
+ *
+ * <p>Content defined chunks are between a quarter of and four times the average chunk size. A stricter boundary
+ * mask is used below the average size and a looser mask above it, which keeps most chunks close to the average.
+ *
+ * @author gkspencer
+ */
+public class DataChunker {
+
+	// Default, minimum and maximum average chunk size
+
+	public static final int DefaultChunkSize	= 64 * 1024;
+	public static final int MinimumChunkSize	= 4 * 1024;
+	public static final int MaximumChunkSize	= 256 * 1024;
+
+	// Seed used to generate the gear hash table. The table must not change once chunks have been stored,
+	// otherwise the same data will be split at different boundaries and will no longer deduplicate.
+
+	private static final long GearSeed			= 0x4A4C414E43444331L;
+
+	// Gear hash table, one random value per byte value
+
+	private static final long[] _gearTable = new long[256];
+
+	static {
+		Random rand = new Random( GearSeed);
+		for ( int i = 0; i < _gearTable.length; i++)
+			_gearTable[i] = rand.nextLong();
+	}
+
+	// Average, minimum and maximum chunk size
+
+	private int m_avgSize;
+	private int m_minSize;
+	private int m_maxSize;
+
+	// Fixed size chunks
+
+	private boolean m_fixed;
+
+	// Boundary masks used below and above the average chunk size
+
+	private long m_smallMask;
+	private long m_largeMask;
+
+	/**
+	 * Class constructor
+	 *
+	 * @param avgSize int
+	 * @param fixed boolean
+	 */
+	public DataChunker(int avgSize, boolean fixed) {
+
+		// Round the average size up to a power of two, within the valid range
+
+		int bits = 0;
+		while (( 1 << bits) < avgSize)
+			bits++;
+
+		m_avgSize = Math.min( Math.max( 1 << bits, MinimumChunkSize), MaximumChunkSize);
+		m_fixed = fixed;
+
+		if ( m_fixed) {
+			m_minSize = m_avgSize;
+			m_maxSize = m_avgSize;
+		}
+		else {
+			m_minSize = m_avgSize / 4;
+			m_maxSize = m_avgSize * 4;
+		}
+
+		// Build the boundary masks from the high bits of the hash, so the boundary test covers the
+		// last 64 bytes of data
+
+		bits = Integer.numberOfTrailingZeros( m_avgSize);
+
+		m_smallMask = maskBits( bits + 1);
+		m_largeMask = maskBits( bits - 1);
+	}
+
+	/**
+	 * Return the average chunk size
+	 *
+	 * @return int
+	 */
+	public final int getAverageSize() {
+		return m_avgSize;
+	}
+
+	/**
+	 * Return the minimum chunk size
+	 *
+	 * @return int
+	 */
+	public final int getMinimumSize() {
+		return m_minSize;
+	}
+
+	/**
+	 * Return the maximum chunk size
+	 *
+	 * @return int
+	 */
+	public final int getMaximumSize() {
+		return m_maxSize;
+	}
+
+	/**
+	 * Check if fixed size chunks are used
+	 *
+	 * @return boolean
+	 */
+	public final boolean isFixedSize() {
+		return m_fixed;
+	}
+
+	/**
+	 * Find the length of the next chunk in the buffer. The buffer must contain at least the maximum chunk
+	 * size of data, unless the data is the end of the file.
+	 *
+	 * @param buf byte[]
+	 * @param off int
+	 * @param len int
+	 * @return int
+	 */
+	public final int nextChunk(byte[] buf, int off, int len) {
+
+		// Check if the remaining data is too short to split
+
+		if ( len <= m_minSize)
+			return len;
+
+		// Fixed size chunks are split at the chunk size
+
+		if ( m_fixed)
+			return m_avgSize;
+
+		// Roll the hash over the data, skipping the minimum chunk size
+
+		int end = Math.min( len, m_maxSize);
+		int norm = Math.min( end, m_avgSize);
+
+		long hash = 0L;
+		int pos = m_minSize;
+
+		while ( pos < norm) {
+			hash = ( hash << 1) + _gearTable[ buf[off + pos] & 0xFF];
+			pos++;
+
+			if (( hash & m_smallMask) == 0)
+				return pos;
+		}
+
+		while ( pos < end) {
+			hash = ( hash << 1) + _gearTable[ buf[off + pos] & 0xFF];
+			pos++;
+
+			if (( hash & m_largeMask) == 0)
+				return pos;
+		}
+
+		// No boundary found, split at the maximum chunk size or the end of the data
+
+		return end;
+	}
+
+	/**
+	 * Return a mask with the specified number of high bits set
+	 *
+	 * @param bits int
+	 * @return long
+	 */
+	private static final long maskBits(int bits) {
+		return -1L << ( 64 - bits);
+	}
+
+	/**
+	 * Return the chunker details as a string
+	 *
+	 * @return String
+	 */
+	public String toString() {
+		StringBuilder str = new StringBuilder();
+
+		str.append("[");
+		str.append( m_fixed ? "Fixed" : "ContentDefined");
+		str.append(",avg=");
+		str.append( m_avgSize);
+		str.append(",min=");
+		str.append( m_minSize);
+		str.append(",max=");
+		str.append( m_maxSize);
+		str.append("]");
+
+		return str.toString();
+	}
+}
@@ -0,0 +1,755 @@
+/*
+ * Copyright (C) 2006-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.alfresco.jlan.server.filesys.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.alfresco.jlan.debug.Debug;
+import org.alfresco.jlan.server.filesys.FileInfo;
+
+/**
+ * File Information Update Queue Class
+ *
+ * <p>Queues file information updates so that multiple updates to the same file are merged into a single update,
+ * and updates are written to the database using JDBC batches with prepared statements that are cached for each
+ * pooled database connection.
+ *
+ * <p>Queued updates are written to the database, and committed, when the queue reaches the batch size, when the
+ * flush interval expires, before the file information for a queued file or folder is read back from the database,
+ * when a queued file is deleted or renamed and when the database interface is shutdown.
+ *
+ * @author gkspencer
+ */
+public class FileInfoUpdateQueue {
+
+	// Default and maximum batch size, default flush interval
+
+	public static final int DefaultBatchSize		= 100;
+	public static final int MaximumBatchSize		= 10000;
+
+	public static final long DefaultFlushInterval	= 1000L;	// 1 second
+	public static final long MinimumFlushInterval	= 100L;
+	public static final long MaximumFlushInterval	= 60000L;	// 1 minute
+
+	// File information fields that can be queued
+
+	public static final int QueuedFlags	= FileInfo.SetAttributes + FileInfo.SetFileSize + FileInfo.SetGid + FileInfo.SetUid +
+										  FileInfo.SetMode + FileInfo.SetAccessDate + FileInfo.SetModifyDate + FileInfo.SetChangeDate;
+
+	// Column name indexes
+
+	public static final int ColReadOnly		= 0;
+	public static final int ColArchived		= 1;
+	public static final int ColSystem		= 2;
+	public static final int ColHidden		= 3;
+	public static final int ColFileSize		= 4;
+	public static final int ColGid			= 5;
+	public static final int ColUid			= 6;
+	public static final int ColMode			= 7;
+	public static final int ColAccessDate	= 8;
+	public static final int ColModifyDate	= 9;
+	public static final int ColChangeDate	= 10;
+
+	public static final int NumColumns		= 11;
+
+	// Database interface that owns the queue
+
+	private JdbcDBInterface m_dbInterface;
+
+	// Queued updates, keyed by file id, and count of queued updates
+
+	private LinkedHashMap<Integer, QueuedUpdate> m_queue = new LinkedHashMap<Integer, QueuedUpdate>();
+	private volatile int m_queueCount;
+
+	// Batch size and flush interval, in milliseconds
+
+	private int m_batchSize;
+	private long m_flushInterval;
+
+	// Flush lock, only one flush runs at a time, and flush in progress flag
+
+	private Object m_flushLock = new Object();
+	private volatile boolean m_flushing;
+
+	// Prepared statements for each set of updated fields, cached for each pooled connection
+
+	private WeakHashMap<Connection, Map<Integer, PreparedStatement>> m_stmtCache = new WeakHashMap<Connection, Map<Integer, PreparedStatement>>();
+
+	// Background flush thread
+
+	private FlushThread m_flushThread;
+
+	// Statistics, number of updates queued/written and number of batches written
+
+	private long m_queuedCnt;
+	private long m_writtenCnt;
+	private long m_batchCnt;
+
+	/**
+	 * Queued Update Inner Class
+	 */
+	protected class QueuedUpdate {
+
+		// Directory id, file id and merged file information
+
+		private int m_dirId;
+		private int m_fid;
+		private FileInfo m_info;
+
+		/**
+		 * Class constructor
+		 *
+		 * @param dirId int
+		 * @param fid int
+		 */
+		protected QueuedUpdate(int dirId, int fid) {
+			m_dirId = dirId;
+			m_fid = fid;
+			m_info = new FileInfo();
+			m_info.setFileInformationFlags( 0);
+		}
+
+		/**
+		 * Merge file information updates, later values replace earlier values
+		 *
+		 * @param finfo FileInfo
+		 */
+		protected final void merge(FileInfo finfo) {
+
+			int setFlags = finfo.getSetFileInformationFlags() & QueuedFlags;
+
+			if (( setFlags & FileInfo.SetAttributes) != 0)
+				m_info.setFileAttributes( finfo.getFileAttributes());
+
+			if (( setFlags & FileInfo.SetFileSize) != 0)
+				m_info.setFileSize( finfo.getSize());
+
+			if (( setFlags & FileInfo.SetGid) != 0)
+				m_info.setGid( finfo.getGid());
+
+			if (( setFlags & FileInfo.SetUid) != 0)
+				m_info.setUid( finfo.getUid());
+
+			if (( setFlags & FileInfo.SetMode) != 0)
+				m_info.setMode( finfo.getMode());
+
+			if (( setFlags & FileInfo.SetAccessDate) != 0)
+				m_info.setAccessDateTime( finfo.getAccessDateTime());
+
+			if (( setFlags & FileInfo.SetModifyDate) != 0)
+				m_info.setModifyDateTime( finfo.getModifyDateTime());
+
+			if (( setFlags & FileInfo.SetChangeDate) != 0)
+				m_info.setChangeDateTime( finfo.getChangeDateTime());
+
+			m_info.setFileInformationFlags( m_info.getSetFileInformationFlags() | setFlags);
+		}
+	}
+
+	/**
+	 * Flush Thread Inner Class
+	 */
+	protected class FlushThread implements Runnable {
+
+		// Flush thread and shutdown flag
+
+		private Thread m_thread;
+		private volatile boolean m_shutdown;
+
+		/**
+		 * Class constructor
+		 */
+		protected FlushThread() {
+			m_thread = new Thread( this);
+			m_thread.setName( "DBFileInfoFlush");
+			m_thread.setDaemon( true);
+			m_thread.start();
+		}
+
+		/**
+		 * Request the flush thread to shutdown
+		 */
+		protected final void shutdownRequest() {
+			m_shutdown = true;
+			m_thread.interrupt();
+		}
+
+		/**
+		 * Flush queued updates at the flush interval
+		 */
+		public void run() {
+
+			while ( m_shutdown == false) {
+
+				try {
+					Thread.sleep( m_flushInterval);
+				}
+				catch ( InterruptedException ex) {
+				}
+
+				// Flush any queued updates
+
+				if ( m_shutdown == false && m_queueCount > 0) {
+					try {
+						flush();
+					}
+					catch ( DBException ex) {
+
+						// DEBUG
+
+						if ( Debug.EnableError && m_dbInterface.hasDebug())
+							Debug.println("[DB] File information flush error, " + ex.getMessage());
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Class constructor
+	 *
+	 * @param dbInterface JdbcDBInterface
+	 * @param batchSize int
+	 * @param flushInterval long
+	 */
+	public FileInfoUpdateQueue(JdbcDBInterface dbInterface, int batchSize, long flushInterval) {
+		m_dbInterface = dbInterface;
+		m_batchSize = batchSize;
+		m_flushInterval = flushInterval;
+
+		// Start the background flush thread
+
+		m_flushThread = new FlushThread();
+	}
+
+	/**
+	 * Return the number of queued updates
+	 *
+	 * @return int
+	 */
+	public final int getQueuedCount() {
+		return m_queueCount;
+	}
+
+	/**
+	 * Return the batch size
+	 *
+	 * @return int
+	 */
+	public final int getBatchSize() {
+		return m_batchSize;
+	}
+
+	/**
+	 * Return the flush interval, in milliseconds
+	 *
+	 * @return long
+	 */
+	public final long getFlushInterval() {
+		return m_flushInterval;
+	}
+
+	/**
+	 * Queue a file information update
+	 *
+	 * @param dirId int
+	 * @param fid int
+	 * @param finfo FileInfo
+	 * @exception DBException
+	 */
+	public final void queueUpdate(int dirId, int fid, FileInfo finfo)
+		throws DBException {
+
+		// Check if there is anything to update
+
+		if (( finfo.getSetFileInformationFlags() & QueuedFlags) == 0)
+			return;
+
+		boolean flushNow = false;
+
+		synchronized ( m_queue) {
+
+			// Merge with an existing queued update for the file, or queue a new update
+
+			Integer key = Integer.valueOf( fid);
+			QueuedUpdate update = m_queue.get( key);
+
+			if ( update == null) {
+				update = new QueuedUpdate( dirId, fid);
+				m_queue.put( key, update);
+				m_queueCount = m_queue.size();
+			}
+
+			update.merge( finfo);
+			m_queuedCnt++;
+
+			flushNow = m_queueCount >= m_batchSize;
+		}
+
+		// Write the queued updates if the batch is full
+
+		if ( flushNow)
+			flush();
+	}
+
+	/**
+	 * Flush the queued updates if there is a queued update for the specified file, or wait for an in progress flush
+	 * to complete
+	 *
+	 * @param fid int
+	 * @exception DBException
+	 */
+	public final void flushFile(int fid)
+		throws DBException {
+
+		// Quick check if there are no queued updates, or flush in progress
+
+		if ( m_queueCount == 0 && m_flushing == false)
+			return;
+
+		synchronized ( m_flushLock) {
+
+			boolean queued = false;
+
+			synchronized ( m_queue) {
+				queued = m_queue.containsKey( Integer.valueOf( fid));
+			}
+
+			if ( queued)
+				flushQueue();
+		}
+	}
+
+	/**
+	 * Flush the queued updates if there is a queued update for a file in the specified folder, or wait for an in
+	 * progress flush to complete
+	 *
+	 * @param dirId int
+	 * @exception DBException
+	 */
+	public final void flushDirectory(int dirId)
+		throws DBException {
+
+		// Quick check if there are no queued updates, or flush in progress
+
+		if ( m_queueCount == 0 && m_flushing == false)
+			return;
+
+		synchronized ( m_flushLock) {
+
+			boolean queued = false;
+
+			synchronized ( m_queue) {
+				Iterator<QueuedUpdate> iter = m_queue.values().iterator();
+				while ( queued == false && iter.hasNext()) {
+					QueuedUpdate update = iter.next();
+					if ( update.m_dirId == dirId || update.m_fid == dirId)
+						queued = true;
+				}
+			}
+
+			if ( queued)
+				flushQueue();
+		}
+	}
+
+	/**
+	 * Write all queued updates to the database
+	 *
+	 * @exception DBException
+	 */
+	public final void flush()
+		throws DBException {
+
+		synchronized ( m_flushLock) {
+			flushQueue();
+		}
+	}
+
+	/**
+	 * Flush the queued updates and stop the background flush thread
+	 *
+	 * @exception DBException
+	 */
+	public final void shutdownQueue()
+		throws DBException {
+
+		// Stop the flush thread
+
+		if ( m_flushThread != null) {
+			m_flushThread.shutdownRequest();
+			m_flushThread = null;
+		}
+
+		// Flush the queued updates and close the cached statements
+
+		synchronized ( m_flushLock) {
+			try {
+				flushQueue();
+			}
+			finally {
+				Iterator<Map<Integer, PreparedStatement>> iter = m_stmtCache.values().iterator();
+				while ( iter.hasNext())
+					closeStatements( iter.next());
+				m_stmtCache.clear();
+			}
+		}
+	}
+
+	/**
+	 * Write the queued updates to the database using JDBC batches, must be called with the flush lock held
+	 *
+	 * @exception DBException
+	 */
+	private final void flushQueue()
+		throws DBException {
+
+		// Take the current queued updates, mark the flush as in progress before the queue is emptied so that
+		// readers wait for the updates to be written
+
+		List<QueuedUpdate> updates = null;
+		m_flushing = true;
+
+		try {
+
+			synchronized ( m_queue) {
+				if ( m_queue.isEmpty())
+					return;
+
+				updates = new ArrayList<QueuedUpdate>( m_queue.values());
+				m_queue.clear();
+				m_queueCount = 0;
+			}
+
+			// Write the updates
+
+			writeUpdates( updates);
+		}
+		finally {
+			m_flushing = false;
+		}
+	}
+
+	/**
+	 * Write a list of updates to the database, in a single transaction
+	 *
+	 * @param updates List<QueuedUpdate>
+	 * @exception DBException
+	 */
+	private final void writeUpdates(List<QueuedUpdate> updates)
+		throws DBException {
+
+		Connection conn = null;
+		boolean autoCommit = true;
+
+		try {
+
+			// Get a connection, and the cached statements for the connection
+
+			conn = m_dbInterface.getConnection();
+			autoCommit = conn.getAutoCommit();
+
+			Map<Integer, PreparedStatement> stmtMap = m_stmtCache.get( conn);
+			if ( stmtMap == null) {
+				stmtMap = new HashMap<Integer, PreparedStatement>();
+				m_stmtCache.put( conn, stmtMap);
+			}
+
+			// Run the updates in a single transaction
+
+			if ( autoCommit)
+				conn.setAutoCommit( false);
+
+			// Add each update to the batch for the set of fields being updated
+
+			LinkedHashMap<Integer, PreparedStatement> batches = new LinkedHashMap<Integer, PreparedStatement>();
+
+			for ( QueuedUpdate update : updates) {
+
+				// Get the prepared statement for the updated fields
+
+				Integer setFlags = Integer.valueOf( update.m_info.getSetFileInformationFlags());
+				PreparedStatement stmt = stmtMap.get( setFlags);
+
+				if ( stmt == null) {
+
+					// Build the SQL and prepare the statement
+
+					String sql = buildUpdateSQL( setFlags.intValue());
+
+					// DEBUG
+
+					if ( Debug.EnableInfo && m_dbInterface.hasSQLDebug())
+						Debug.println("[DB] Prepare file info batch SQL: " + sql);
+
+					stmt = conn.prepareStatement( sql);
+					stmtMap.put( setFlags, stmt);
+				}
+
+				// Set the statement parameters and add to the batch
+
+				setUpdateParameters( stmt, update);
+				stmt.addBatch();
+
+				batches.put( setFlags, stmt);
+			}
+
+			// Execute the batches and commit
+
+			for ( PreparedStatement stmt : batches.values()) {
+				stmt.executeBatch();
+				m_batchCnt++;
+			}
+
+			conn.commit();
+			m_writtenCnt += updates.size();
+
+			// DEBUG
+
+			if ( Debug.EnableInfo && m_dbInterface.hasDebug())
+				Debug.println("[DB] Wrote " + updates.size() + " file info updates in " + batches.size() + " batches");
+		}
+		catch ( SQLException ex) {
+
+			// Rollback the transaction, and discard the cached statements for the connection
+
+			if ( conn != null) {
+				try {
+					conn.rollback();
+				}
+				catch ( SQLException ex2) {
+				}
+
+				Map<Integer, PreparedStatement> stmtMap = m_stmtCache.remove( conn);
+				if ( stmtMap != null)
+					closeStatements( stmtMap);
+			}
+
+			// Requeue the updates, later updates for the same file take precedence
+
+			requeueUpdates( updates);
+
+			// DEBUG
+
+			if ( Debug.EnableError && m_dbInterface.hasDebug())
+				Debug.println("[DB] File information batch error " + ex.getMessage());
+
+			// Rethrow the exception
+
+			throw new DBException( ex.toString());
+		}
+		finally {
+
+			// Restore the auto commit setting and release the connection
+
+			if ( conn != null) {
+				try {
+					if ( autoCommit)
+						conn.setAutoCommit( true);
+				}
+				catch ( SQLException ex) {
+				}
+
+				m_dbInterface.releaseConnection( conn);
+			}
+		}
+	}
+
+	/**
+	 * Requeue updates that failed to be written
+	 *
+	 * @param updates List<QueuedUpdate>
+	 */
+	private final void requeueUpdates(List<QueuedUpdate> updates) {
+
+		synchronized ( m_queue) {
+
+			// Merge any updates queued since the flush started into the failed updates
+
+			for ( QueuedUpdate update : updates) {
+				Integer key = Integer.valueOf( update.m_fid);
+				QueuedUpdate newer = m_queue.get( key);
+
+				if ( newer != null) {
+					update.merge( newer.m_info);
+					update.m_dirId = newer.m_dirId;
+				}
+				m_queue.put( key, update);
+			}
+
+			m_queueCount = m_queue.size();
+		}
+	}
+
+	/**
+	 * Build the update SQL for the specified set of fields
+	 *
+	 * @param setFlags int
+	 * @return String
+	 */
+	private final String buildUpdateSQL(int setFlags) {
+
+		String[] cols = m_dbInterface.getFileInfoColumnNames();
+
+		StringBuilder sql = new StringBuilder(256);
+		sql.append("UPDATE ");
+		sql.append( m_dbInterface.getFileSysTableName());
+		sql.append(" SET ");
+
+		if (( setFlags & FileInfo.SetAttributes) != 0) {
+			appendColumn( sql, cols[ColReadOnly]);
+			appendColumn( sql, cols[ColArchived]);
+			appendColumn( sql, cols[ColSystem]);
+			appendColumn( sql, cols[ColHidden]);
+		}
+
+		if (( setFlags & FileInfo.SetFileSize) != 0)
+			appendColumn( sql, cols[ColFileSize]);
+
+		if (( setFlags & FileInfo.SetGid) != 0)
+			appendColumn( sql, cols[ColGid]);
+
+		if (( setFlags & FileInfo.SetUid) != 0)
+			appendColumn( sql, cols[ColUid]);
+
+		if (( setFlags & FileInfo.SetMode) != 0)
+			appendColumn( sql, cols[ColMode]);
+
+		if (( setFlags & FileInfo.SetAccessDate) != 0)
+			appendColumn( sql, cols[ColAccessDate]);
+
+		if (( setFlags & FileInfo.SetModifyDate) != 0)
+			appendColumn( sql, cols[ColModifyDate]);
+
+		if (( setFlags & FileInfo.SetChangeDate) != 0)
+			appendColumn( sql, cols[ColChangeDate]);
+
+		// Remove the trailing comma, add the file id condition
+
+		sql.setLength( sql.length() - 1);
+		sql.append(" WHERE FileId = ?");
+
+		return sql.toString();
+	}
+
+	/**
+	 * Append a column to the update SQL
+	 *
+	 * @param sql StringBuilder
+	 * @param col String
+	 */
+	private static final void appendColumn(StringBuilder sql, String col) {
+		sql.append( col);
+		sql.append(" = ?,");
+	}
+
+	/**
+	 * Set the update statement parameters, in the same order as the columns in the update SQL
+	 *
+	 * @param stmt PreparedStatement
+	 * @param update QueuedUpdate
+	 * @exception SQLException
+	 */
+	private final void setUpdateParameters(PreparedStatement stmt, QueuedUpdate update)
+		throws SQLException {
+
+		FileInfo finfo = update.m_info;
+		int idx = 1;
+
+		if ( finfo.hasSetFlag( FileInfo.SetAttributes)) {
+			m_dbInterface.setFileInfoFlag( stmt, idx++, finfo.isReadOnly());
+			m_dbInterface.setFileInfoFlag( stmt, idx++, finfo.isArchived());
+			m_dbInterface.setFileInfoFlag( stmt, idx++, finfo.isSystem());
+			m_dbInterface.setFileInfoFlag( stmt, idx++, finfo.isHidden());
+		}
+
+		if ( finfo.hasSetFlag( FileInfo.SetFileSize))
+			stmt.setLong( idx++, finfo.getSize());
+
+		if ( finfo.hasSetFlag( FileInfo.SetGid))
+			stmt.setInt( idx++, finfo.getGid());
+
+		if ( finfo.hasSetFlag( FileInfo.SetUid))
+			stmt.setInt( idx++, finfo.getUid());
+
+		if ( finfo.hasSetFlag( FileInfo.SetMode))
+			stmt.setInt( idx++, finfo.getMode());
+
+		if ( finfo.hasSetFlag( FileInfo.SetAccessDate))
+			m_dbInterface.setFileInfoDateTime( stmt, idx++, finfo.getAccessDateTime());
+
+		if ( finfo.hasSetFlag( FileInfo.SetModifyDate))
+			m_dbInterface.setFileInfoDateTime( stmt, idx++, finfo.getModifyDateTime());
+
+		if ( finfo.hasSetFlag( FileInfo.SetChangeDate))
+			m_dbInterface.setFileInfoDateTime( stmt, idx++, finfo.getChangeDateTime());
+
+		stmt.setInt( idx, update.m_fid);
+	}
+
+	/**
+	 * Close a set of cached statements
+	 *
+	 * @param stmtMap Map<Integer, PreparedStatement>
+	 */
+	private static final void closeStatements(Map<Integer, PreparedStatement> stmtMap) {
+		for ( PreparedStatement stmt : stmtMap.values()) {
+			try {
+				stmt.close();
+			}
+			catch ( SQLException ex) {
+			}
+		}
+	}
+
+	/**
+	 * Return the queue details as a string
+	 *
+	 * @return String
+	 */
+	public String toString() {
+		StringBuilder str = new StringBuilder();
+
+		str.append("[FileInfoQueue queued=");
+		str.append( m_queueCount);
+		str.append(",batch=");
+		str.append( m_batchSize);
+		str.append(",interval=");
+		str.append( m_flushInterval);
+		str.append("ms,updates=");
+		str.append( m_queuedCnt);
+		str.append("/");
+		str.append( m_writtenCnt);
+		str.append(",batches=");
+		str.append( m_batchCnt);
+		str.append("]");
+
+		return str.toString();
+	}
+}
@@ -21,6 +21,7 @@ package org.alfresco.jlan.server.filesys.db;
 
 import java.io.File;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
 
 import org.alfresco.jlan.debug.Debug;
@@ -59,6 +60,8 @@ public abstract class JdbcDBInterface implements DBInterface, DBConnectionPoolLi
 	public final static String JarDataTable			= "JLANJarData";
 	public final static String ObjectIdTable		= "JLANObjectIds";
 	public final static String SymLinkTable       	= "JLANSymLinks";
+	public final static String ChunkTable			= "JLANChunks";
+	public final static String ChunkMapTable		= "JLANChunkMap";
 
 	//	Number of connections to allocate in the connection pool
 
@@ -144,6 +147,27 @@ public abstract class JdbcDBInterface implements DBInterface, DBConnectionPoolLi
 
 	private boolean m_crashRecovery;
 
+	// Batched file information updates enabled, batch size and flush interval, and the update queue
+
+	private boolean m_batchUpdates;
+	private int m_batchSize = FileInfoUpdateQueue.DefaultBatchSize;
+	private long m_batchFlushInterval = FileInfoUpdateQueue.DefaultFlushInterval;
+
+	private FileInfoUpdateQueue m_updateQueue;
+
+	// Deduplicated file data enabled, average chunk size, fixed size chunks, chunk and chunk map table names,
+	// chunk tables exist, and the chunk store
+
+	private boolean m_dedup;
+	private int m_dedupChunkSize = DataChunker.DefaultChunkSize;
+	private boolean m_dedupFixed;
+
+	private String m_chunkTable;
+	private String m_chunkMapTable;
+
+	private boolean m_chunkTables;
+	private DBChunkStore m_chunkStore;
+
   /**
    * Default constructor
    */
@@ -457,6 +481,114 @@ public abstract class JdbcDBInterface implements DBInterface, DBConnectionPoolLi
 
     if ( params.getChild("useCrashRecovery") != null)
       m_crashRecovery = true;
+
+    //  Parse the batched file information update settings
+
+    parseBatchUpdateSettings( params);
+
+    //  Parse the deduplicated file data settings
+
+    parseDeduplicationSettings( params, ChunkTable, ChunkMapTable);
+  }
+
+  /**
+   * Parse the batched file information update settings
+   *
+   * @param params ConfigElement
+   * @exception InvalidConfigurationException
+   */
+  protected final void parseBatchUpdateSettings(ConfigElement params)
+    throws InvalidConfigurationException {
+
+    //  Check if batched file information updates are enabled
+
+    if ( params.getChild("BatchUpdates") == null)
+      return;
+
+    m_batchUpdates = true;
+
+    //  Check if the batch size has been specified
+
+    ConfigElement nameVal = params.getChild("BatchSize");
+    if ( nameVal != null) {
+      try {
+        m_batchSize = Integer.parseInt( nameVal.getValue());
+        if ( m_batchSize < 1 || m_batchSize > FileInfoUpdateQueue.MaximumBatchSize)
+          throw new InvalidConfigurationException( "Database batch size out of valid range (1-" + FileInfoUpdateQueue.MaximumBatchSize + ")");
+      }
+      catch ( NumberFormatException ex) {
+        throw new InvalidConfigurationException("Database batch size value invalid, " + nameVal.getValue());
+      }
+    }
+
+    //  Check if the batch flush interval has been specified, in milliseconds
+
+    nameVal = params.getChild("BatchFlushInterval");
+    if ( nameVal != null) {
+      try {
+        m_batchFlushInterval = Long.parseLong( nameVal.getValue());
+        if ( m_batchFlushInterval < FileInfoUpdateQueue.MinimumFlushInterval || m_batchFlushInterval > FileInfoUpdateQueue.MaximumFlushInterval)
+          throw new InvalidConfigurationException( "Database batch flush interval out of valid range (" + FileInfoUpdateQueue.MinimumFlushInterval +
+              "-" + FileInfoUpdateQueue.MaximumFlushInterval + ")");
+      }
+      catch ( NumberFormatException ex) {
+        throw new InvalidConfigurationException("Database batch flush interval value invalid, " + nameVal.getValue());
+      }
+    }
+  }
+
+  /**
+   * Parse the deduplicated file data settings
+   *
+   * @param params ConfigElement
+   * @param chunkTable String
+   * @param chunkMapTable String
+   * @exception InvalidConfigurationException
+   */
+  protected final void parseDeduplicationSettings(ConfigElement params, String chunkTable, String chunkMapTable)
+    throws InvalidConfigurationException {
+
+    //  Set the chunk and chunk map table names
+
+    ConfigElement nameVal = params.getChild("ChunkTable");
+    if ( nameVal != null)
+      m_chunkTable = nameVal.getValue();
+    else
+      m_chunkTable = chunkTable;
+
+    nameVal = params.getChild("ChunkMapTable");
+    if ( nameVal != null)
+      m_chunkMapTable = nameVal.getValue();
+    else
+      m_chunkMapTable = chunkMapTable;
+
+    //  Check if deduplicated file data is enabled
+
+    if ( params.getChild("Deduplication") == null)
+      return;
+
+    m_dedup = true;
+
+    //  Check if the average chunk size has been specified
+
+    nameVal = params.getChild("DedupChunkSize");
+    if ( nameVal != null) {
+      try {
+        long chunkSize = MemorySize.getByteValue( nameVal.getValue());
+        if ( chunkSize < DataChunker.MinimumChunkSize || chunkSize > DataChunker.MaximumChunkSize)
+          throw new InvalidConfigurationException( "Deduplication chunk size out of valid range (" + DataChunker.MinimumChunkSize +
+              "-" + DataChunker.MaximumChunkSize + ")");
+        m_dedupChunkSize = (int) chunkSize;
+      }
+      catch ( NumberFormatException ex) {
+        throw new InvalidConfigurationException("Deduplication chunk size value invalid, " + nameVal.getValue());
+      }
+    }
+
+    //  Check if fixed size chunks should be used, the default is content defined chunks
+
+    if ( params.getChild("DedupFixedChunks") != null)
+      m_dedupFixed = true;
   }
 
   /**
@@ -498,6 +630,22 @@ public abstract class JdbcDBInterface implements DBInterface, DBConnectionPoolLi
    */
   public void shutdownDatabase(DBDeviceContext context) {
 
+    //  Write any queued file information updates
+
+    if ( m_updateQueue != null) {
+      try {
+        m_updateQueue.shutdownQueue();
+      }
+      catch ( DBException ex) {
+
+        //  DEBUG
+
+        if ( Debug.EnableError && hasDebug())
+          Debug.println("[DB] Error writing queued file information updates, " + ex.getMessage());
+      }
+      m_updateQueue = null;
+    }
+
     //	Close the database connection pool
 
     if ( m_connPool != null)
@@ -893,8 +1041,234 @@ public abstract class JdbcDBInterface implements DBInterface, DBConnectionPoolLi
     // Add the database interface as a connection pool event listener
 
     m_connPool.addConnectionPoolListener( this);
+
+    // Create the file information update queue, if batched updates are enabled
+
+    if ( m_batchUpdates && m_updateQueue == null)
+      m_updateQueue = new FileInfoUpdateQueue( this, m_batchSize, m_batchFlushInterval);
+
+    // Create the chunk store, it is also used to load and delete file data stored as chunks when deduplication
+    // is not enabled
+
+    if ( m_chunkStore == null) {
+      m_chunkStore = new DBChunkStore( this, new DataChunker( m_dedupChunkSize, m_dedupFixed));
+
+      // DEBUG
+
+      if ( m_dedup && Debug.EnableInfo && hasDebug())
+        Debug.println("[DB] Deduplicated file data enabled, chunker=" + m_chunkStore.getChunker());
+    }
 }
 
+  /**
+   * Check if new file data is saved as deduplicated chunks
+   *
+   * @return boolean
+   */
+  protected final boolean isDeduplicationEnabled() {
+    return m_dedup;
+  }
+
+  /**
+   * Check if the chunk store is available, file data may be stored as deduplicated chunks. The chunk store is
+   * available if the chunk tables exist, even if deduplication is no longer enabled.
+   *
+   * @return boolean
+   */
+  protected final boolean hasChunkStore() {
+    return m_chunkStore != null && m_chunkTables;
+  }
+
+  /**
+   * Set the chunk tables available status, called by the database interface when the tables are checked. If the
+   * chunk tables are available the chunk reference counts are reconciled with the chunk map, to release chunks
+   * left referenced by saves that failed part way through.
+   *
+   * @param avail boolean
+   */
+  protected final void setChunkTablesAvailable(boolean avail) {
+    m_chunkTables = avail;
+
+    if ( hasChunkStore()) {
+      try {
+        m_chunkStore.reconcileReferences();
+      }
+      catch ( DBException ex) {
+
+        // DEBUG
+
+        if ( Debug.EnableError && hasDebug())
+          Debug.println("[DB] Error reconciling chunk references, " + ex.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Return the chunk store used for deduplicated file data
+   *
+   * @return DBChunkStore
+   */
+  protected final DBChunkStore getChunkStore() {
+    return m_chunkStore;
+  }
+
+  /**
+   * Return the chunk table name
+   *
+   * @return String
+   */
+  protected final String getChunkTableName() {
+    return m_chunkTable;
+  }
+
+  /**
+   * Return the chunk map table name
+   *
+   * @return String
+   */
+  protected final String getChunkMapTableName() {
+    return m_chunkMapTable;
+  }
+
+  /**
+   * Delete the file data records for a file or stream that were stored before deduplication was enabled,
+   * called by the chunk store within the transaction that saves the new chunk map.
+   *
+   * @param conn Connection
+   * @param fileId int
+   * @param streamId int
+   * @exception SQLException
+   */
+  protected void deleteDataRecords(Connection conn, int fileId, int streamId)
+    throws SQLException {
+
+    PreparedStatement stmt = conn.prepareStatement("DELETE FROM " + getDataTableName() + " WHERE FileId = ? AND StreamId = ?");
+
+    try {
+      stmt.setInt( 1, fileId);
+      stmt.setInt( 2, streamId);
+
+      stmt.executeUpdate();
+    }
+    finally {
+      stmt.close();
+    }
+  }
+
+  /**
+   * Check if file information updates are queued and written in batches
+   *
+   * @return boolean
+   */
+  protected final boolean hasBatchedUpdates() {
+    return m_updateQueue != null;
+  }
+
+  /**
+   * Queue a file information update to be written as part of a batch. Returns false if the update contains
+   * fields that cannot be queued, in which case any queued updates for the file are written and the update
+   * must be written directly.
+   *
+   * @param dirId int
+   * @param fid int
+   * @param finfo FileInfo
+   * @return boolean
+   * @exception DBException
+   */
+  protected final boolean queueFileInformation(int dirId, int fid, FileInfo finfo)
+    throws DBException {
+
+    //  Check if the update can be queued
+
+    if ( m_updateQueue == null)
+      return false;
+
+    if (( finfo.getSetFileInformationFlags() & ~FileInfoUpdateQueue.QueuedFlags) != 0) {
+
+      //  Write any queued updates for the file so they do not overwrite the direct update
+
+      m_updateQueue.flushFile( fid);
+      return false;
+    }
+
+    //  Queue the update
+
+    m_updateQueue.queueUpdate( dirId, fid, finfo);
+    return true;
+  }
+
+  /**
+   * Write any queued updates for the specified file before it is read, deleted or renamed
+   *
+   * @param fid int
+   * @exception DBException
+   */
+  protected final void flushFileInformation(int fid)
+    throws DBException {
+    if ( m_updateQueue != null)
+      m_updateQueue.flushFile( fid);
+  }
+
+  /**
+   * Write any queued updates for files in the specified folder before the folder is searched
+   *
+   * @param dirId int
+   * @exception DBException
+   */
+  protected final void flushDirectoryInformation(int dirId)
+    throws DBException {
+    if ( m_updateQueue != null)
+      m_updateQueue.flushDirectory( dirId);
+  }
+
+  /**
+   * Write all queued file information updates
+   *
+   * @exception DBException
+   */
+  public final void flushBatchedUpdates()
+    throws DBException {
+    if ( m_updateQueue != null)
+      m_updateQueue.flush();
+  }
+
+  /**
+   * Return the file system table column names used by batched file information updates, in the order
+   * read-only, archived, system, hidden, file size, gid, uid, mode, access date, modify date and change date.
+   *
+   * @return String[]
+   */
+  protected String[] getFileInfoColumnNames() {
+    return new String[] { "ReadOnly", "Archived", "SystemFile", "Hidden", "FileSize", "Gid", "Uid", "Mode",
+        "AccessDate", "ModifyDate", "ChangeDate" };
+  }
+
+  /**
+   * Set a file attribute flag parameter for a batched file information update
+   *
+   * @param stmt PreparedStatement
+   * @param idx int
+   * @param flag boolean
+   * @exception SQLException
+   */
+  protected void setFileInfoFlag(PreparedStatement stmt, int idx, boolean flag)
+    throws SQLException {
+    stmt.setBoolean( idx, flag);
+  }
+
+  /**
+   * Set a date/time parameter for a batched file information update
+   *
+   * @param stmt PreparedStatement
+   * @param idx int
+   * @param dateTime long
+   * @exception SQLException
+   */
+  protected void setFileInfoDateTime(PreparedStatement stmt, int idx, long dateTime)
+    throws SQLException {
+    stmt.setLong( idx, dateTime);
+  }
+
   /**
    * Default implementation of the delete file request, throws an exception indicating that the
    * feature is not implemented.
@@ -29,6 +29,7 @@ import org.alfresco.jlan.server.SrvSession;
 import org.alfresco.jlan.server.auth.ClientInfo;
 import org.alfresco.jlan.server.core.DeviceContext;
 import org.alfresco.jlan.server.filesys.DiskDeviceContext;
+import org.alfresco.jlan.server.filesys.FileInfo;
 import org.alfresco.jlan.server.filesys.FileName;
 import org.alfresco.jlan.server.filesys.FileOfflineException;
 import org.alfresco.jlan.server.filesys.FileOpenParams;
@@ -46,8 +47,10 @@ import org.alfresco.jlan.server.filesys.loader.FileProcessorList;
 import org.alfresco.jlan.server.filesys.loader.FileRequest;
 import org.alfresco.jlan.server.filesys.loader.FileRequestQueue;
 import org.alfresco.jlan.server.filesys.loader.FileSegment;
+import org.alfresco.jlan.server.filesys.loader.FileSegmentCache;
 import org.alfresco.jlan.server.filesys.loader.FileSegmentInfo;
 import org.alfresco.jlan.server.filesys.loader.SingleFileRequest;
+import org.alfresco.jlan.util.MemorySize;
 import org.alfresco.jlan.util.NameValue;
 import org.alfresco.jlan.util.NameValueList;
 import org.alfresco.jlan.util.StringList;
@@ -165,6 +168,10 @@ public abstract class ObjectIdFileLoader implements FileLoader, BackgroundFileLo
 	private int m_tempCount;
 	private int m_tempMax;
 
+	// Local cache of clean file segments that are kept after the file state expires
+
+	private FileSegmentCache m_segmentCache;
+
 	// List of file processors that process cached files before storing and after loading.
 
 	private FileProcessorList m_fileProcessors;
@@ -338,6 +345,37 @@ public abstract class ObjectIdFileLoader implements FileLoader, BackgroundFileLo
 		return m_tempFilePrefix;
 	}
 
+	/**
+	 * Return the temporary file name for the specified file/stream
+	 *
+	 * @param fid int
+	 * @param stid int
+	 * @return String
+	 */
+	protected final String getTempFileName(int fid, int stid) {
+		StringBuffer tempName = new StringBuffer();
+
+		tempName.append(getTempFilePrefix());
+		tempName.append(fid);
+
+		if ( stid > 0) {
+			tempName.append("_");
+			tempName.append(stid);
+		}
+
+		tempName.append(".tmp");
+		return tempName.toString();
+	}
+
+	/**
+	 * Return the local file segment cache, or null if the cache is not enabled
+	 *
+	 * @return FileSegmentCache
+	 */
+	public final FileSegmentCache getSegmentCache() {
+		return m_segmentCache;
+	}
+
 	/**
 	 * Set the worker thread name prefix
 	 *
@@ -602,6 +640,11 @@ public abstract class ObjectIdFileLoader implements FileLoader, BackgroundFileLo
 
 			FileState fstate = m_stateCache.findFileState(fname, false);
 
+			// Remove any cached copy of the file data
+
+			if ( m_segmentCache != null)
+				m_segmentCache.removeSegment(getTempFileName(fid, stid));
+
 			if ( fstate != null) {
 
 				// Get the file segment details
@@ -1070,6 +1113,29 @@ public abstract class ObjectIdFileLoader implements FileLoader, BackgroundFileLo
 		else
 			m_tempMax = MaximumFilesPerSubDir;
 
+		// Check if the local segment cache size has been specified, clean file data is kept in the temporary
+		// area after the file state expires, up to the specified number of bytes
+
+		ConfigElement cacheSize = params.getChild("SegmentCacheSize");
+		if ( cacheSize != null) {
+			try {
+				long maxSize = MemorySize.getByteValue(cacheSize.getValue());
+
+				// Range check the cache size
+
+				if ( maxSize <= 0L)
+					throw new FileLoaderException("FileLoader SegmentCacheSize invalid, " + cacheSize.getValue());
+
+				// Create the segment cache
+
+				m_segmentCache = new FileSegmentCache(maxSize);
+				m_segmentCache.setDebug(hasDebug());
+			}
+			catch (NumberFormatException ex) {
+				throw new FileLoaderException("FileLoader SegmentCacheSize invalid, " + cacheSize.getValue());
+			}
+		}
+
 		// Check if there are any file processors configured
 
 		ConfigElement fileProcs = params.getChild("FileProcessors");
@@ -1245,6 +1311,11 @@ public abstract class ObjectIdFileLoader implements FileLoader, BackgroundFileLo
 
 		if ( m_backgroundLoader != null)
 			m_backgroundLoader.shutdownThreads();
+
+		// Delete the temporary files held by the local segment cache
+
+		if ( m_segmentCache != null)
+			m_segmentCache.removeAllSegments();
 	}
 
 	/**
@@ -1489,29 +1560,48 @@ public abstract class ObjectIdFileLoader implements FileLoader, BackgroundFileLo
 
 					if ( segInfo.hasStatus() != FileSegmentInfo.Initial) {
 
-						// Delete the temporary file
+						// Keep the temporary file in the local segment cache if the file data is clean, else delete
+						// the temporary file. The segment is removed from the file state whilst holding the state lock
+						// so that it cannot be opened whilst owned by the cache.
+
+						boolean cached = false;
+
+						synchronized (state) {
+
+							FileInfo finfo = (FileInfo) state.findAttribute(FileState.FileInformation);
+							if ( m_segmentCache != null && finfo != null)
+								cached = m_segmentCache.addSegment(segInfo, finfo.getSize(), finfo.getModifyDateTime());
+
+							// Remove the file segment from the file state
 
-						try {
-							segInfo.deleteTemporaryFile();
+							state.removeAttribute(DBFileSegmentInfo);
 						}
-						catch (IOException ex) {
 
-							// DEBUG
+						if ( cached == false) {
 
-							if ( Debug.EnableError) {
-								Debug.println("Delete temp file error: " + ex.toString());
-								File tempFile = new File(segInfo.getTemporaryFile());
-								Debug.println("  TempFile file=" + tempFile.getAbsolutePath() + ", exists=" + tempFile.exists());
-								Debug.println("  FileState state=" + state);
-								Debug.println("  FileSegmentInfo segInfo=" + segInfo);
-								Debug.println("  StateCache size=" + m_stateCache.numberOfStates());
+							// Delete the temporary file
+
+							try {
+								segInfo.deleteTemporaryFile();
 							}
-						}
+							catch (IOException ex) {
 
-						// Remove the file segment, reset the file segment back to the initial state
+								// DEBUG
 
-						state.removeAttribute(DBFileSegmentInfo);
-						segInfo.setStatus(FileSegmentInfo.Initial);
+								if ( Debug.EnableError) {
+									Debug.println("Delete temp file error: " + ex.toString());
+									File tempFile = new File(segInfo.getTemporaryFile());
+									Debug.println("  TempFile file=" + tempFile.getAbsolutePath() + ", exists=" + tempFile.exists());
+									Debug.println("  FileState state=" + state);
+									Debug.println("  FileSegmentInfo segInfo=" + segInfo);
+									Debug.println("  StateCache size=" + m_stateCache.numberOfStates());
+								}
+							}
+
+							// Reset the file segment back to the initial state
+
+							segInfo.setStatus(FileSegmentInfo.Initial);
+						}
 
 						// Reset the file state to indicate file data load required
 
@@ -1548,7 +1638,8 @@ public abstract class ObjectIdFileLoader implements FileLoader, BackgroundFileLo
 						// Debug
 
 						if ( Debug.EnableInfo && hasDebug())
-							Debug.println("$$ Deleted temporary file " + segInfo.getTemporaryFile() + " [EXPIRED] $$");
+							Debug.println("$$ " + (cached ? "Cached" : "Deleted") + " temporary file " + segInfo.getTemporaryFile()
+									+ " [EXPIRED] $$");
 					}
 
 					// If the file state is not to be deleted reset the file state expiration timer
@@ -1663,44 +1754,51 @@ public abstract class ObjectIdFileLoader implements FileLoader, BackgroundFileLo
 			FileSegmentInfo fileSegInfo = (FileSegmentInfo) state.findAttribute(DBFileSegmentInfo);
 			if ( fileSegInfo == null) {
 
-				// Check if we need to create a new temporary sub-drectory
+				// Check if the file data is held in the local segment cache
 
-				if ( m_tempCount++ >= m_tempMax)
-					createNewTempDirectory();
+				String tempName = getTempFileName(fid, stid);
+				DBFileInfo finfo = (DBFileInfo) state.findAttribute(FileState.FileInformation);
+
+				if ( m_segmentCache != null) {
+					if ( finfo != null)
+						fileSegInfo = m_segmentCache.findSegment(tempName, finfo.getSize(), finfo.getModifyDateTime());
+					else
+						m_segmentCache.removeSegment(tempName);
+				}
 
-				// Create a unique temporary file name
+				if ( fileSegInfo != null) {
 
-				StringBuffer tempName = new StringBuffer();
-				tempName.append(getTempFilePrefix());
-				tempName.append(fid);
+					// Reuse the cached file segment, the file data is already available
 
-				if ( stid > 0) {
-					tempName.append("_");
-					tempName.append(stid);
+					fileSeg = new FileSegment(fileSegInfo, params.isReadOnlyAccess() == false);
 
 					// DEBUG
 
 					if ( Debug.EnableInfo && hasDebug())
-						Debug.println("## Temp file for stream ##");
+						Debug.println("## ObjIdLoader reused cached segment " + fileSegInfo.getTemporaryFile() + ", " + m_segmentCache);
 				}
+				else {
 
-				tempName.append(".tmp");
+					// Check if we need to create a new temporary sub-drectory
 
-				// Create a new file segment
+					if ( m_tempCount++ >= m_tempMax)
+						createNewTempDirectory();
 
-				fileSegInfo = new FileSegmentInfo();
-				fileSeg = FileSegment.createSegment(fileSegInfo, tempName.toString(), m_curTempDir,
-						params.isReadOnlyAccess() == false);
+					// Create a new file segment
 
-				// Add the segment to the file state cache
+					fileSegInfo = new FileSegmentInfo();
+					fileSeg = FileSegment.createSegment(fileSegInfo, tempName, m_curTempDir, params.isReadOnlyAccess() == false);
 
-				state.addAttribute(DBFileSegmentInfo, fileSegInfo);
+					// Check if the file is zero length, if so then set the file segment state to indicate it is
+					// available
 
-				// Check if the file is zero length, if so then set the file segment state to indicate it is available
+					if ( finfo != null && finfo.getSize() == 0)
+						fileSeg.setStatus(FileSegmentInfo.Available);
+				}
 
-				DBFileInfo finfo = (DBFileInfo) state.findAttribute(FileState.FileInformation);
-				if ( finfo != null && finfo.getSize() == 0)
-					fileSeg.setStatus(FileSegmentInfo.Available);
+				// Add the segment to the file state cache
+
+				state.addAttribute(DBFileSegmentInfo, fileSegInfo);
 			}
 			else {
 
@@ -26,6 +26,7 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.sql.Blob;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
@@ -36,6 +37,7 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Timestamp;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 
 import org.alfresco.jlan.debug.Debug;
 import org.alfresco.jlan.server.config.InvalidConfigurationException;
@@ -49,10 +51,10 @@ import org.alfresco.jlan.server.filesys.FileType;
 import org.alfresco.jlan.server.filesys.cache.FileState;
 import org.alfresco.jlan.server.filesys.db.DBDataDetails;
 import org.alfresco.jlan.server.filesys.db.DBDataDetailsList;
-import org.alfresco.jlan.server.filesys.db.DBDataInterface;
 import org.alfresco.jlan.server.filesys.db.DBDeviceContext;
 import org.alfresco.jlan.server.filesys.db.DBException;
 import org.alfresco.jlan.server.filesys.db.DBFileInfo;
+import org.alfresco.jlan.server.filesys.db.DBFragmentDataInterface;
 import org.alfresco.jlan.server.filesys.db.DBInterface;
 import org.alfresco.jlan.server.filesys.db.DBObjectIdInterface;
 import org.alfresco.jlan.server.filesys.db.DBQueueInterface;
@@ -84,7 +86,7 @@ import org.springframework.extensions.config.ConfigElement;
  *
  * @author gkspencer
  */
-public class MySQLDBInterface extends JdbcDBInterface implements DBQueueInterface, DBDataInterface, DBObjectIdInterface {
+public class MySQLDBInterface extends JdbcDBInterface implements DBQueueInterface, DBFragmentDataInterface, DBObjectIdInterface {
 
 	// Memory buffer maximum size
 
@@ -193,6 +195,8 @@ public class MySQLDBInterface extends JdbcDBInterface implements DBQueueInterfac
 			boolean foundJarData = false;
 			boolean foundObjId = false;
 			boolean foundSymLink = false;
+			boolean foundChunks = false;
+			boolean foundChunkMap = false;
 
 			while (rs.next()) {
 
@@ -220,6 +224,10 @@ public class MySQLDBInterface extends JdbcDBInterface implements DBQueueInterfac
 					foundObjId = true;
 				else if ( hasSymLinksTableName() && tblName.equalsIgnoreCase(getSymLinksTableName()))
 					foundSymLink = true;
+				else if ( tblName.equalsIgnoreCase(getChunkTableName()))
+					foundChunks = true;
+				else if ( tblName.equalsIgnoreCase(getChunkMapTableName()))
+					foundChunkMap = true;
 			}
 
 			// Check if the file system structure table should be created
@@ -424,6 +432,51 @@ public class MySQLDBInterface extends JdbcDBInterface implements DBQueueInterfac
 				if ( Debug.EnableInfo && hasDebug())
 					Debug.println("[mySQL] Created table " + getSymLinksTableName());
 			}
+
+			// Check if the deduplicated data chunks table should be created
+
+			if ( isDeduplicationEnabled() && isDataEnabled() && foundChunks == false) {
+
+				// Create the deduplicated data chunks table
+
+				Statement stmt = conn.createStatement();
+
+				stmt.execute("CREATE TABLE " + getChunkTableName() + " (ChunkHash CHAR(64) NOT NULL, ChunkLen INTEGER, RefCount INTEGER, Data LONGBLOB, PRIMARY KEY (ChunkHash));");
+
+				stmt.close();
+
+				// DEBUG
+
+				if ( Debug.EnableInfo && hasDebug())
+					Debug.println("[mySQL] Created table " + getChunkTableName());
+
+				foundChunks = true;
+			}
+
+			// Check if the deduplicated data chunk map table should be created
+
+			if ( isDeduplicationEnabled() && isDataEnabled() && foundChunkMap == false) {
+
+				// Create the deduplicated data chunk map table
+
+				Statement stmt = conn.createStatement();
+
+				stmt.execute("CREATE TABLE " + getChunkMapTableName() + " (FileId INTEGER NOT NULL, StreamId INTEGER NOT NULL, ChunkNo INTEGER NOT NULL, ChunkLen INTEGER, ChunkHash CHAR(64), PRIMARY KEY (FileId,StreamId,ChunkNo));");
+
+				stmt.close();
+
+				// DEBUG
+
+				if ( Debug.EnableInfo && hasDebug())
+					Debug.println("[mySQL] Created table " + getChunkMapTableName());
+
+				foundChunkMap = true;
+			}
+
+			// Use the chunk tables to load and delete file data if they exist, file data may be stored as chunks
+			// even when deduplication is not enabled
+
+			setChunkTablesAvailable( isDataEnabled() && foundChunks && foundChunkMap);
 		}
 		catch (Exception ex) {
 			Debug.println("Error: " + ex.toString());
@@ -853,6 +906,10 @@ public class MySQLDBInterface extends JdbcDBInterface implements DBQueueInterfac
 	public void deleteFileRecord(int dirId, int fid, boolean markOnly)
 		throws DBException {
 
+		// Write any queued updates for the file
+
+		flushFileInformation( fid);
+
 		// Delete a file record from the database, or mark the file record as deleted
 
 		Connection conn = null;
@@ -1015,6 +1072,11 @@ public class MySQLDBInterface extends JdbcDBInterface implements DBQueueInterfac
 	public void setFileInformation(int dirId, int fid, FileInfo finfo)
 		throws DBException {
 
+		// Queue the update if batched updates are enabled
+
+		if ( hasBatchedUpdates() && queueFileInformation( dirId, fid, finfo))
+			return;
+
 		// Set file information fields
 
 		Connection conn = null;
@@ -1424,6 +1486,10 @@ public class MySQLDBInterface extends JdbcDBInterface implements DBQueueInterfac
 	public DBFileInfo getFileInformation(int dirId, int fid, int infoLevel)
 		throws DBException {
 
+		// Write any queued updates for the file
+
+		flushFileInformation( fid);
+
 		// Create a SQL select for the required file information
 
 		StringBuffer sql = new StringBuffer(128);
@@ -1902,6 +1968,10 @@ public class MySQLDBInterface extends JdbcDBInterface implements DBQueueInterfac
 	public void renameFileRecord(int dirId, int fid, String newName, int newDir)
 		throws DBException, FileNotFoundException {
 
+		// Write any queued updates for the file
+
+		flushFileInformation( fid);
+
 		// Rename a file/folder
 
 		Connection conn = null;
@@ -2062,6 +2132,10 @@ public class MySQLDBInterface extends JdbcDBInterface implements DBQueueInterfac
 	public DBSearchContext startSearch(int dirId, String searchPath, int attrib, int infoLevel, int maxRecords)
 		throws DBException {
 
+		// Write any queued updates for files in the folder
+
+		flushDirectoryInformation( dirId);
+
 		// Search for files/folders in the specified folder
 
 		StringBuffer sql = new StringBuffer(128);
@@ -3308,6 +3382,11 @@ public class MySQLDBInterface extends JdbcDBInterface implements DBQueueInterfac
 	public DBDataDetails getFileDataDetails(int fileId, int streamId)
 		throws DBException {
 
+		// Check if the file data is stored as deduplicated chunks
+
+		if ( hasChunkStore() && getChunkStore().hasFileData(fileId, streamId))
+			return new DBDataDetails(fileId, streamId);
+
 		// Load the file details from the data table
 
 		Connection conn = null;
@@ -3404,6 +3483,11 @@ public class MySQLDBInterface extends JdbcDBInterface implements DBQueueInterfac
 	public void loadFileData(int fileId, int streamId, FileSegment fileSeg)
 		throws DBException, IOException {
 
+		// Load the file data from the deduplicated chunks, if the file data is stored as chunks
+
+		if ( hasChunkStore() && getChunkStore().loadFileData(fileId, streamId, fileSeg))
+			return;
+
 		// Open the temporary file
 
 		FileOutputStream fileOut = new FileOutputStream(fileSeg.getTemporaryFile());
@@ -3552,6 +3636,223 @@ public class MySQLDBInterface extends JdbcDBInterface implements DBQueueInterfac
 		fileSeg.signalDataAvailable();
 	}
 
+	/**
+	 * Return the lengths of the data fragments for the specified file or stream, in fragment order.
+	 *
+	 * @param fileId int
+	 * @param streamId int
+	 * @return long[]
+	 * @throws DBException
+	 */
+	public long[] getFileDataFragments(int fileId, int streamId)
+		throws DBException {
+
+		// Use the chunks as the data fragments if the file data is stored as deduplicated chunks
+
+		if ( hasChunkStore()) {
+			long[] chunkLens = getChunkStore().getChunkLengths(fileId, streamId);
+			if ( chunkLens.length > 0)
+				return chunkLens;
+		}
+
+		// Load the fragment lengths from the data table
+
+		Connection conn = null;
+		Statement stmt = null;
+
+		ArrayList<Long> fragLens = new ArrayList<Long>();
+
+		try {
+
+			// Get a connection to the database
+
+			conn = getConnection();
+			stmt = conn.createStatement();
+
+			String sql = "SELECT FragLen FROM " + getDataTableName() + " WHERE FileId = " + fileId + " AND StreamId = " + streamId
+					+ " ORDER BY FragNo";
+
+			// DEBUG
+
+			if ( Debug.EnableInfo && hasSQLDebug())
+				Debug.println("[mySQL] Get file data fragments SQL: " + sql);
+
+			// Load the fragment lengths
+
+			ResultSet rs = stmt.executeQuery(sql);
+
+			while (rs.next())
+				fragLens.add(Long.valueOf(rs.getLong("FragLen")));
+
+			rs.close();
+		}
+		catch (SQLException ex) {
+
+			// DEBUG
+
+			if ( Debug.EnableError && hasDebug())
+				Debug.println(ex);
+
+			// Rethrow the exception
+
+			throw new DBException(ex.getMessage());
+		}
+		finally {
+
+			// Close the statement
+
+			if ( stmt != null) {
+				try {
+					stmt.close();
+				}
+				catch (SQLException ex) {
+				}
+			}
+
+			// Release the database connection
+
+			if ( conn != null)
+				releaseConnection(conn);
+		}
+
+		// Return the fragment lengths
+
+		long[] lens = new long[fragLens.size()];
+		for (int i = 0; i < lens.length; i++)
+			lens[i] = fragLens.get(i).longValue();
+
+		return lens;
+	}
+
+	/**
+	 * Load a single file data fragment from the database into the temporary/local file at the specified
+	 * file offset. Fragments are numbered from one.
+	 *
+	 * @param fileId int
+	 * @param streamId int
+	 * @param fragNo int
+	 * @param fileOff long
+	 * @param fileSeg FileSegment
+	 * @return long
+	 * @throws DBException
+	 * @throws IOException
+	 */
+	public long loadFileDataFragment(int fileId, int streamId, int fragNo, long fileOff, FileSegment fileSeg)
+		throws DBException, IOException {
+
+		// Load the fragment from the deduplicated chunks, if the file data is stored as chunks
+
+		if ( hasChunkStore()) {
+			long chunkLen = getChunkStore().loadChunk(fileId, streamId, fragNo, fileOff, fileSeg);
+			if ( chunkLen != -1L)
+				return chunkLen;
+		}
+
+		// Open the temporary file, the fragment is written at its offset within the sparse file
+
+		RandomAccessFile fileOut = new RandomAccessFile(fileSeg.getTemporaryFile(), "rw");
+
+		// Load the file data fragment
+
+		Connection conn = null;
+		Statement stmt = null;
+
+		long totLen = 0L;
+
+		try {
+
+			// Get a connection to the database, create a statement
+
+			conn = getConnection();
+			stmt = conn.createStatement();
+
+			String sql = "SELECT Data FROM " + getDataTableName() + " WHERE FileId = " + fileId + " AND StreamId = " + streamId
+					+ " AND FragNo = " + fragNo;
+
+			// DEBUG
+
+			if ( Debug.EnableInfo && hasSQLDebug())
+				Debug.println("[mySQL] Load file data fragment SQL: " + sql);
+
+			// Find the data fragment
+
+			ResultSet rs = stmt.executeQuery(sql);
+
+			if ( rs.next() == false)
+				throw new DBException("Data fragment not found " + fileId + ":" + streamId + ", frag=" + fragNo);
+
+			// Access the file data
+
+			Blob dataBlob = rs.getBlob("Data");
+			InputStream dataFrag = dataBlob.getBinaryStream();
+
+			byte[] inbuf = new byte[(int) Math.min(dataBlob.length(), MaxMemoryBuffer)];
+
+			// Read the data from the database record and write to the output file
+
+			fileOut.seek(fileOff);
+
+			int rdLen = dataFrag.read(inbuf, 0, inbuf.length);
+
+			while (rdLen > 0) {
+
+				// Write a block of data to the temporary file at the fragment position
+
+				fileOut.write(inbuf, 0, rdLen);
+				totLen += rdLen;
+
+				// Read another block of data
+
+				rdLen = dataFrag.read(inbuf, 0, inbuf.length);
+			}
+
+			// Close the resultset
+
+			rs.close();
+		}
+		catch (SQLException ex) {
+
+			// DEBUG
+
+			if ( Debug.EnableError && hasDebug())
+				Debug.println(ex);
+
+			// Rethrow the exception
+
+			throw new DBException(ex.getMessage());
+		}
+		finally {
+
+			// Check if a statement was allocated
+
+			if ( stmt != null) {
+				try {
+					stmt.close();
+				}
+				catch (Exception ex) {
+				}
+			}
+
+			// Release the database connection
+
+			if ( conn != null)
+				releaseConnection(conn);
+
+			// Close the output file
+
+			try {
+				fileOut.close();
+			}
+			catch (Exception ex) {
+				Debug.println(ex);
+			}
+		}
+
+		// Return the length of data loaded
+
+		return totLen;
+	}
+
 	/**
 	 * Load Jar file data from the database into a temporary file
 	 *
@@ -3683,6 +3984,11 @@ public class MySQLDBInterface extends JdbcDBInterface implements DBQueueInterfac
 	public int saveFileData(int fileId, int streamId, FileSegment fileSeg)
 		throws DBException, IOException {
 
+		// Save the file data as deduplicated chunks, if enabled
+
+		if ( isDeduplicationEnabled() && hasChunkStore())
+			return getChunkStore().saveFileData(fileId, streamId, fileSeg);
+
 		// Determine if we can use an in memory buffer to copy the file fragments
 
 		boolean useMem = false;
@@ -3847,6 +4153,11 @@ public class MySQLDBInterface extends JdbcDBInterface implements DBQueueInterfac
 			}
 		}
 
+		// Release any deduplicated chunks stored for the file, the data records now hold the file data
+
+		if ( hasChunkStore())
+			getChunkStore().deleteFileData(fileId, streamId, false);
+
 		// Return the number of data fragments used to save the file data
 
 		return fragNo;
@@ -3921,6 +4232,11 @@ public class MySQLDBInterface extends JdbcDBInterface implements DBQueueInterfac
 						+ " AND StreamId = " + dbDetails.getStreamId());
 				stmt.executeUpdate("INSERT INTO " + getDataTableName() + " (FileId,StreamId,FragNo,JarId,JarFile) VALUES ("
 						+ dbDetails.getFileId() + "," + dbDetails.getStreamId() + ", 1," + jarId + ",1);");
+
+				// Release any deduplicated chunks stored for the file
+
+				if ( hasChunkStore())
+					getChunkStore().deleteFileData(dbDetails.getFileId(), dbDetails.getStreamId(), false);
 			}
 		}
 		catch (SQLException ex) {
@@ -3978,6 +4294,11 @@ public class MySQLDBInterface extends JdbcDBInterface implements DBQueueInterfac
 	public void deleteFileData(int fileId, int streamId)
 		throws DBException, IOException {
 
+		// Release any deduplicated chunks for the file or stream, deleting the main stream deletes all streams
+
+		if ( hasChunkStore())
+			getChunkStore().deleteFileData(fileId, streamId, streamId == 0);
+
 		// Delete the file data records for the file or stream
 
 		Connection conn = null;
@@ -26,6 +26,7 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.sql.Blob;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
@@ -36,6 +37,7 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Timestamp;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 
 import org.alfresco.jlan.debug.Debug;
 import org.alfresco.jlan.server.config.InvalidConfigurationException;
@@ -49,10 +51,10 @@ import org.alfresco.jlan.server.filesys.FileType;
 import org.alfresco.jlan.server.filesys.cache.FileState;
 import org.alfresco.jlan.server.filesys.db.DBDataDetails;
 import org.alfresco.jlan.server.filesys.db.DBDataDetailsList;
-import org.alfresco.jlan.server.filesys.db.DBDataInterface;
 import org.alfresco.jlan.server.filesys.db.DBDeviceContext;
 import org.alfresco.jlan.server.filesys.db.DBException;
 import org.alfresco.jlan.server.filesys.db.DBFileInfo;
+import org.alfresco.jlan.server.filesys.db.DBFragmentDataInterface;
 import org.alfresco.jlan.server.filesys.db.DBInterface;
 import org.alfresco.jlan.server.filesys.db.DBObjectIdInterface;
 import org.alfresco.jlan.server.filesys.db.DBQueueInterface;
@@ -87,7 +89,7 @@ import org.springframework.extensions.config.ConfigElement;
  *
  * @author gkspencer
  */
-public class PostgreSQLDBInterface extends JdbcDBInterface implements DBQueueInterface, DBDataInterface, DBObjectIdInterface {
+public class PostgreSQLDBInterface extends JdbcDBInterface implements DBQueueInterface, DBFragmentDataInterface, DBObjectIdInterface {
 
 	// Memory buffer maximum size
 
@@ -207,6 +209,8 @@ public class PostgreSQLDBInterface extends JdbcDBInterface implements DBQueueInt
 			boolean foundJarData = false;
 			boolean foundObjId = false;
 			boolean foundSymLink = false;
+			boolean foundChunks = false;
+			boolean foundChunkMap = false;
 
 			while (rs.next()) {
 
@@ -234,6 +238,10 @@ public class PostgreSQLDBInterface extends JdbcDBInterface implements DBQueueInt
 					foundObjId = true;
 				else if ( hasSymLinksTableName() && tblName.equalsIgnoreCase(getSymLinksTableName()))
 					foundSymLink = true;
+				else if ( tblName.equalsIgnoreCase(getChunkTableName()))
+					foundChunks = true;
+				else if ( tblName.equalsIgnoreCase(getChunkMapTableName()))
+					foundChunkMap = true;
 			}
 
 			// Check if the file system structure table should be created
@@ -436,6 +444,51 @@ public class PostgreSQLDBInterface extends JdbcDBInterface implements DBQueueInt
 				if ( Debug.EnableInfo && hasDebug())
 					Debug.println("[PostgreSQL] Created table " + getSymLinksTableName());
 			}
+
+			// Check if the deduplicated data chunks table should be created
+
+			if ( isDeduplicationEnabled() && isDataEnabled() && foundChunks == false) {
+
+				// Create the deduplicated data chunks table
+
+				Statement stmt = conn.createStatement();
+
+				stmt.execute("CREATE TABLE " + getChunkTableName() + " (ChunkHash CHAR(64) NOT NULL, ChunkLen INTEGER, RefCount INTEGER, Data BYTEA, PRIMARY KEY (ChunkHash));");
+
+				stmt.close();
+
+				// DEBUG
+
+				if ( Debug.EnableInfo && hasDebug())
+					Debug.println("[PostgreSQL] Created table " + getChunkTableName());
+
+				foundChunks = true;
+			}
+
+			// Check if the deduplicated data chunk map table should be created
+
+			if ( isDeduplicationEnabled() && isDataEnabled() && foundChunkMap == false) {
+
+				// Create the deduplicated data chunk map table
+
+				Statement stmt = conn.createStatement();
+
+				stmt.execute("CREATE TABLE " + getChunkMapTableName() + " (FileId INTEGER NOT NULL, StreamId INTEGER NOT NULL, ChunkNo INTEGER NOT NULL, ChunkLen INTEGER, ChunkHash CHAR(64), PRIMARY KEY (FileId,StreamId,ChunkNo));");
+
+				stmt.close();
+
+				// DEBUG
+
+				if ( Debug.EnableInfo && hasDebug())
+					Debug.println("[PostgreSQL] Created table " + getChunkMapTableName());
+
+				foundChunkMap = true;
+			}
+
+			// Use the chunk tables to load and delete file data if they exist, file data may be stored as chunks
+			// even when deduplication is not enabled
+
+			setChunkTablesAvailable( isDataEnabled() && foundChunks && foundChunkMap);
 		}
 		catch (Exception ex) {
 			Debug.println("Error: " + ex.toString());
@@ -870,6 +923,10 @@ public class PostgreSQLDBInterface extends JdbcDBInterface implements DBQueueInt
 	public void deleteFileRecord(int dirId, int fid, boolean markOnly)
 		throws DBException {
 
+		// Write any queued updates for the file
+
+		flushFileInformation( fid);
+
 		// Delete a file record from the database, or mark the file record as
 		// deleted
 
@@ -1033,6 +1090,11 @@ public class PostgreSQLDBInterface extends JdbcDBInterface implements DBQueueInt
 	public void setFileInformation(int dirId, int fid, FileInfo finfo)
 		throws DBException {
 
+		// Queue the update if batched updates are enabled
+
+		if ( hasBatchedUpdates() && queueFileInformation( dirId, fid, finfo))
+			return;
+
 		// Set file information fields
 
 		Connection conn = null;
@@ -1444,6 +1506,10 @@ public class PostgreSQLDBInterface extends JdbcDBInterface implements DBQueueInt
 	public DBFileInfo getFileInformation(int dirId, int fid, int infoLevel)
 		throws DBException {
 
+		// Write any queued updates for the file
+
+		flushFileInformation( fid);
+
 		// Create a SQL select for the required file information
 
 		StringBuffer sql = new StringBuffer(128);
@@ -1922,6 +1988,10 @@ public class PostgreSQLDBInterface extends JdbcDBInterface implements DBQueueInt
 	public void renameFileRecord(int dirId, int fid, String newName, int newDir)
 		throws DBException, FileNotFoundException {
 
+		// Write any queued updates for the file
+
+		flushFileInformation( fid);
+
 		// Rename a file/folder
 
 		Connection conn = null;
@@ -2082,6 +2152,10 @@ public class PostgreSQLDBInterface extends JdbcDBInterface implements DBQueueInt
 	public DBSearchContext startSearch(int dirId, String searchPath, int attrib, int infoLevel, int maxRecords)
 		throws DBException {
 
+		// Write any queued updates for files in the folder
+
+		flushDirectoryInformation( dirId);
+
 		// Search for files/folders in the specified folder
 
 		StringBuffer sql = new StringBuffer(128);
@@ -3442,6 +3516,11 @@ public class PostgreSQLDBInterface extends JdbcDBInterface implements DBQueueInt
 	public DBDataDetails getFileDataDetails(int fileId, int streamId)
 		throws DBException {
 
+		// Check if the file data is stored as deduplicated chunks
+
+		if ( hasChunkStore() && getChunkStore().hasFileData(fileId, streamId))
+			return new DBDataDetails(fileId, streamId);
+
 		// Load the file details from the data table
 
 		Connection conn = null;
@@ -3538,6 +3617,11 @@ public class PostgreSQLDBInterface extends JdbcDBInterface implements DBQueueInt
 	public void loadFileData(int fileId, int streamId, FileSegment fileSeg)
 		throws DBException, IOException {
 
+		// Load the file data from the deduplicated chunks, if the file data is stored as chunks
+
+		if ( hasChunkStore() && getChunkStore().loadFileData(fileId, streamId, fileSeg))
+			return;
+
 		// Open the temporary file
 
 		FileOutputStream fileOut = new FileOutputStream(fileSeg.getTemporaryFile());
@@ -3742,6 +3826,277 @@ public class PostgreSQLDBInterface extends JdbcDBInterface implements DBQueueInt
 		fileSeg.signalDataAvailable();
 	}
 
+	/**
+	 * Return the lengths of the data fragments for the specified file or stream, in fragment order.
+	 *
+	 * @param fileId int
+	 * @param streamId int
+	 * @return long[]
+	 * @throws DBException
+	 */
+	public long[] getFileDataFragments(int fileId, int streamId)
+		throws DBException {
+
+		// Use the chunks as the data fragments if the file data is stored as deduplicated chunks
+
+		if ( hasChunkStore()) {
+			long[] chunkLens = getChunkStore().getChunkLengths(fileId, streamId);
+			if ( chunkLens.length > 0)
+				return chunkLens;
+		}
+
+		// Load the fragment lengths from the data table
+
+		Connection conn = null;
+		Statement stmt = null;
+
+		ArrayList<Long> fragLens = new ArrayList<Long>();
+
+		try {
+
+			// Get a connection to the database
+
+			conn = getConnection();
+			stmt = conn.createStatement();
+
+			String sql = "SELECT FragLen FROM " + getDataTableName() + " WHERE FileId = " + fileId + " AND StreamId = " + streamId
+					+ " ORDER BY FragNo";
+
+			// DEBUG
+
+			if ( Debug.EnableInfo && hasSQLDebug())
+				Debug.println("[PostgreSQL] Get file data fragments SQL: " + sql);
+
+			// Load the fragment lengths
+
+			ResultSet rs = stmt.executeQuery(sql);
+
+			while (rs.next())
+				fragLens.add(Long.valueOf(rs.getLong("FragLen")));
+
+			rs.close();
+		}
+		catch (SQLException ex) {
+
+			// DEBUG
+
+			if ( Debug.EnableError && hasDebug())
+				Debug.println(ex);
+
+			// Rethrow the exception
+
+			throw new DBException(ex.getMessage());
+		}
+		finally {
+
+			// Close the statement
+
+			if ( stmt != null) {
+				try {
+					stmt.close();
+				}
+				catch (SQLException ex) {
+				}
+			}
+
+			// Release the database connection
+
+			if ( conn != null)
+				releaseConnection(conn);
+		}
+
+		// Return the fragment lengths
+
+		long[] lens = new long[fragLens.size()];
+		for (int i = 0; i < lens.length; i++)
+			lens[i] = fragLens.get(i).longValue();
+
+		return lens;
+	}
+
+	/**
+	 * Load a single file data fragment from the database into the temporary/local file at the specified
+	 * file offset. Fragments are numbered from one.
+	 *
+	 * @param fileId int
+	 * @param streamId int
+	 * @param fragNo int
+	 * @param fileOff long
+	 * @param fileSeg FileSegment
+	 * @return long
+	 * @throws DBException
+	 * @throws IOException
+	 */
+	public long loadFileDataFragment(int fileId, int streamId, int fragNo, long fileOff, FileSegment fileSeg)
+		throws DBException, IOException {
+
+		// Load the fragment from the deduplicated chunks, if the file data is stored as chunks
+
+		if ( hasChunkStore()) {
+			long chunkLen = getChunkStore().loadChunk(fileId, streamId, fragNo, fileOff, fileSeg);
+			if ( chunkLen != -1L)
+				return chunkLen;
+		}
+
+		// Open the temporary file, the fragment is written at its offset within the sparse file
+
+		RandomAccessFile fileOut = new RandomAccessFile(fileSeg.getTemporaryFile(), "rw");
+
+		// Load the file data fragment
+
+		Connection conn = null;
+		Statement stmt = null;
+		LargeObjectManager lrgObjMgr = null;
+		LargeObject lObj = null;
+
+		boolean autoCommit = true;
+
+		long totLen = 0L;
+
+		try {
+
+			// Make sure we have a Postgres connection
+
+			conn = getConnection();
+
+			if ( conn instanceof PGConnection) {
+
+				// Access the large object manager
+
+				lrgObjMgr = ((PGConnection) conn).getLargeObjectAPI();
+			}
+			else {
+
+				// Wrong connection type
+
+				throw new DBException( "Wrong connection type, require PGConnection");
+			}
+
+			// Switch off auto-commit whilst working with large objects
+
+			autoCommit = conn.getAutoCommit();
+			conn.setAutoCommit( false);
+
+			// Create a statement
+
+			stmt = conn.createStatement();
+
+			String sql = "SELECT Data FROM " + getDataTableName() + " WHERE FileId = " + fileId + " AND StreamId = " + streamId
+					+ " AND FragNo = " + fragNo;
+
+			// DEBUG
+
+			if ( Debug.EnableInfo && hasSQLDebug())
+				Debug.println("[PostgreSQL] Load file data fragment SQL: " + sql);
+
+			// Find the data fragment
+
+			ResultSet rs = stmt.executeQuery(sql);
+
+			if ( rs.next() == false)
+				throw new DBException("Data fragment not found " + fileId + ":" + streamId + ", frag=" + fragNo);
+
+			// Access the large object file
+
+			lObj = lrgObjMgr.open( rs.getLong("Data"), LargeObjectManager.READ);
+			byte[] inbuf = new byte[OIDBufferSize];
+
+			// Read the data from the oid file and write to the output file
+
+			fileOut.seek(fileOff);
+
+			int rdLen = lObj.read(inbuf, 0, inbuf.length);
+
+			while (rdLen > 0) {
+
+				// Write a block of data to the temporary file at the fragment position
+
+				fileOut.write(inbuf, 0, rdLen);
+				totLen += rdLen;
+
+				// Read another block of data
+
+				rdLen = lObj.read(inbuf, 0, inbuf.length);
+			}
+
+			// Close the oid file
+
+			lObj.close();
+			lObj = null;
+
+			// Close the resultset
+
+			rs.close();
+
+			// Commit any updates
+
+			conn.commit();
+		}
+		catch (SQLException ex) {
+
+			// DEBUG
+
+			if ( Debug.EnableError && hasDebug())
+				Debug.println(ex);
+
+			// Rethrow the exception
+
+			throw new DBException(ex.getMessage());
+		}
+		finally {
+
+			// Check if a statement was allocated
+
+			if ( stmt != null) {
+				try {
+					stmt.close();
+				}
+				catch (Exception ex) {
+				}
+			}
+
+			// Make sure the oid file is closed
+
+			if ( lrgObjMgr != null && lObj != null) {
+				try {
+					lObj.close();
+				}
+				catch ( Exception ex) {
+				}
+			}
+
+			// Release the database connection
+
+			if ( conn != null) {
+
+				// Reset the auto-commit state
+
+				try {
+					conn.setAutoCommit(autoCommit);
+				}
+				catch ( SQLException ex) {
+				}
+
+				// Release back to the pool
+
+				releaseConnection(conn);
+			}
+
+			// Close the output file
+
+			try {
+				fileOut.close();
+			}
+			catch (Exception ex) {
+				Debug.println(ex);
+			}
+		}
+
+		// Return the length of data loaded
+
+		return totLen;
+	}
+
 	/**
 	 * Load Jar file data from the database into a temporary file
 	 *
@@ -3930,6 +4285,11 @@ public class PostgreSQLDBInterface extends JdbcDBInterface implements DBQueueInt
 	public int saveFileData(int fileId, int streamId, FileSegment fileSeg)
 		throws DBException, IOException {
 
+		// Save the file data as deduplicated chunks, if enabled
+
+		if ( isDeduplicationEnabled() && hasChunkStore())
+			return getChunkStore().saveFileData(fileId, streamId, fileSeg);
+
 		// Get the temporary file size
 
 		File tempFile = new File(fileSeg.getTemporaryFile());
@@ -4178,6 +4538,11 @@ public class PostgreSQLDBInterface extends JdbcDBInterface implements DBQueueInt
 			}
 		}
 
+		// Release any deduplicated chunks stored for the file, the data records now hold the file data
+
+		if ( hasChunkStore())
+			getChunkStore().deleteFileData(fileId, streamId, false);
+
 		// Return the number of data fragments used to save the file data
 
 		return fragNo;
@@ -4304,6 +4669,11 @@ public class PostgreSQLDBInterface extends JdbcDBInterface implements DBQueueInt
 						+ " AND StreamId = " + dbDetails.getStreamId());
 				stmt.executeUpdate("INSERT INTO " + getDataTableName() + " (FileId,StreamId,FragNo,JarId,JarFile) VALUES ("
 						+ dbDetails.getFileId() + "," + dbDetails.getStreamId() + ", 1," + jarId + ",TRUE);");
+
+				// Release any deduplicated chunks stored for the file
+
+				if ( hasChunkStore())
+					getChunkStore().deleteFileData(dbDetails.getFileId(), dbDetails.getStreamId(), false);
 			}
 
 			// Commit the updates
@@ -4377,6 +4747,11 @@ public class PostgreSQLDBInterface extends JdbcDBInterface implements DBQueueInt
 	public void deleteFileData(int fileId, int streamId)
 		throws DBException, IOException {
 
+		// Release any deduplicated chunks for the file or stream, deleting the main stream deletes all streams
+
+		if ( hasChunkStore())
+			getChunkStore().deleteFileData(fileId, streamId, streamId == 0);
+
 		// Delete the file data records for the file or stream
 
 		Connection conn = null;
@@ -4508,6 +4883,46 @@ public class PostgreSQLDBInterface extends JdbcDBInterface implements DBQueueInt
 		}
 	}
 
+	/**
+	 * Delete the file data records for a file or stream that were stored before deduplication was enabled,
+	 * the large objects that hold the data are deleted with the records.
+	 *
+	 * @param conn Connection
+	 * @param fileId int
+	 * @param streamId int
+	 * @exception SQLException
+	 */
+	protected void deleteDataRecords(Connection conn, int fileId, int streamId)
+		throws SQLException {
+
+		// Access the large object manager
+
+		if ( conn instanceof PGConnection == false)
+			throw new SQLException( "Wrong connection type, require PGConnection");
+
+		LargeObjectManager lrgObjMgr = ((PGConnection) conn).getLargeObjectAPI();
+		Statement delStmt = conn.createStatement();
+
+		try {
+
+			// Delete the large objects for the file data records, Jar file records do not own the data
+
+			ResultSet rs = delStmt.executeQuery( "SELECT Data FROM " + getDataTableName() + " WHERE FileId = " + fileId + " AND StreamId = "
+					+ streamId + " AND JarFile IS NOT TRUE");
+
+			while ( rs.next())
+				lrgObjMgr.delete( rs.getLong( 1));
+			rs.close();
+
+			// Delete the file data records
+
+			delStmt.executeUpdate( "DELETE FROM " + getDataTableName() + " WHERE FileId = " + fileId + " AND StreamId = " + streamId);
+		}
+		finally {
+			delStmt.close();
+		}
+	}
+
 	/**
 	 * Delete the file data for the specified Jar file
 	 *
@@ -0,0 +1,354 @@
+/*
+ * Copyright (C) 2006-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.alfresco.jlan.server.filesys.loader;
+
+import java.util.BitSet;
+
+/**
+ * File Fragment Map Class
+ *
+ * <p>Tracks which fragments of a file have been loaded into a sparse temporary file, so that reads can
+ * proceed as soon as the fragments they touch are present rather than waiting for the whole file to load.
+ * Readers request the fragments they need, plus a number of read-ahead fragments, and a single loader
+ * thread at a time works through the outstanding fragments, demanded fragments first.
+ *
+ * @author gkspencer
+ */
+public class FileFragmentMap {
+
+	//	Fragment start offsets, the extra last entry is the total file length
+
+	private long[] m_offsets;
+
+	//	Loaded fragments, fragments needed by a reader and read-ahead fragments
+
+	private BitSet m_loaded;
+	private BitSet m_demand;
+	private BitSet m_readAhead;
+
+	private int m_loadCount;
+
+	//	Number of fragments to read ahead of a request
+
+	private int m_readAheadCnt;
+
+	//	Indicate a loader is processing the outstanding fragments
+
+	private boolean m_loaderActive;
+
+	//	Fragment loading has been cancelled, the file data has been replaced
+
+	private boolean m_cancelled;
+
+	/**
+	 * Class constructor
+	 *
+	 * <p>The map is created by the loader thread, which remains active to load the fragments that are
+	 * requested.
+	 *
+	 * @param fragLens long[]
+	 * @param readAhead int
+	 */
+	public FileFragmentMap(long[] fragLens, int readAhead) {
+
+		//	Build the fragment offset table
+
+		m_offsets = new long[fragLens.length + 1];
+
+		for ( int i = 0; i < fragLens.length; i++)
+			m_offsets[i + 1] = m_offsets[i] + fragLens[i];
+
+		m_loaded    = new BitSet(fragLens.length);
+		m_demand    = new BitSet(fragLens.length);
+		m_readAhead = new BitSet(fragLens.length);
+
+		m_readAheadCnt = readAhead;
+		m_loaderActive = true;
+	}
+
+	/**
+	 * Return the number of fragments
+	 *
+	 * @return int
+	 */
+	public final int numberOfFragments() {
+		return m_offsets.length - 1;
+	}
+
+	/**
+	 * Return the total file length
+	 *
+	 * @return long
+	 */
+	public final long getFileLength() {
+		return m_offsets[m_offsets.length - 1];
+	}
+
+	/**
+	 * Return the file offset of the specified fragment
+	 *
+	 * @param idx int
+	 * @return long
+	 */
+	public final long getFragmentOffset(int idx) {
+		return m_offsets[idx];
+	}
+
+	/**
+	 * Return the length of the specified fragment
+	 *
+	 * @param idx int
+	 * @return long
+	 */
+	public final long getFragmentLength(int idx) {
+		return m_offsets[idx + 1] - m_offsets[idx];
+	}
+
+	/**
+	 * Return the number of fragments that have been loaded
+	 *
+	 * @return int
+	 */
+	public final synchronized int numberOfLoadedFragments() {
+		return m_loadCount;
+	}
+
+	/**
+	 * Check if all fragments have been loaded
+	 *
+	 * @return boolean
+	 */
+	public final synchronized boolean isLoaded() {
+		return m_loadCount == numberOfFragments();
+	}
+
+	/**
+	 * Check if fragment loading has been cancelled
+	 *
+	 * @return boolean
+	 */
+	public final synchronized boolean isCancelled() {
+		return m_cancelled;
+	}
+
+	/**
+	 * Find the fragment that contains the specified file offset
+	 *
+	 * @param off long
+	 * @return int
+	 */
+	public final int findFragment(long off) {
+
+		//	Check for an offset at, or beyond, the end of file
+
+		int lastIdx = numberOfFragments() - 1;
+		if ( off >= getFileLength())
+			return lastIdx;
+
+		//	Binary search the fragment offsets
+
+		int low = 0;
+		int high = lastIdx;
+
+		while ( low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if ( m_offsets[mid] <= off)
+				low = mid;
+			else
+				high = mid - 1;
+		}
+
+		return low;
+	}
+
+	/**
+	 * Check if the specified file range has been loaded. The part of the range beyond the end of file is ignored.
+	 *
+	 * @param off long
+	 * @param len long
+	 * @return boolean
+	 */
+	public final synchronized boolean isRangeLoaded(long off, long len) {
+
+		//	Nothing to load for a range that is beyond the end of file
+
+		if ( off >= getFileLength() || len <= 0)
+			return true;
+
+		int firstIdx = findFragment(off);
+		int lastIdx = findFragment(Math.min(off + len, getFileLength()) - 1);
+
+		return m_loaded.nextClearBit(firstIdx) > lastIdx;
+	}
+
+	/**
+	 * Request that the fragments covering the specified file range are loaded, plus the read-ahead fragments
+	 * that follow the range. Returns true if fragments need loading and there is no active loader, in which
+	 * case the caller must queue a load request to load the fragments.
+	 *
+	 * @param off long
+	 * @param len long
+	 * @return boolean
+	 */
+	public final synchronized boolean requestRange(long off, long len) {
+
+		//	Check if loading has been cancelled or the range is beyond the end of file
+
+		if ( m_cancelled || off >= getFileLength() || isLoaded())
+			return false;
+
+		//	Mark the fragments needed for the request, and the read-ahead fragments, that are not loaded
+
+		int firstIdx = findFragment(off);
+		int lastIdx = findFragment(Math.min(off + Math.max(len, 1L), getFileLength()) - 1);
+		int aheadIdx = Math.min(lastIdx + 1 + m_readAheadCnt, numberOfFragments());
+
+		boolean newReq = false;
+
+		for ( int idx = firstIdx; idx < aheadIdx; idx++) {
+			if ( m_loaded.get(idx) == false) {
+				if ( idx <= lastIdx)
+					m_demand.set(idx);
+				else
+					m_readAhead.set(idx);
+				newReq = true;
+			}
+		}
+
+		return newReq ? activateLoader() : false;
+	}
+
+	/**
+	 * Request that all remaining fragments are loaded. Returns true if the caller must queue a load request.
+	 *
+	 * @return boolean
+	 */
+	public final synchronized boolean requestAll() {
+
+		//	Check if loading has been cancelled or all data is loaded
+
+		if ( m_cancelled || isLoaded())
+			return false;
+
+		m_demand.set(0, numberOfFragments());
+		m_demand.andNot(m_loaded);
+
+		return activateLoader();
+	}
+
+	/**
+	 * Return the next fragment to be loaded, demanded fragments are returned before read-ahead fragments.
+	 * If there are no outstanding fragments then the loader is marked as inactive and -1 is returned.
+	 *
+	 * @return int
+	 */
+	public final synchronized int nextFragment() {
+
+		//	Find a demanded fragment, then a read-ahead fragment, that has not been loaded
+
+		int idx = -1;
+
+		if ( m_cancelled == false) {
+			idx = nextUnloaded(m_demand);
+			if ( idx == -1)
+				idx = nextUnloaded(m_readAhead);
+		}
+
+		//	Mark the loader as inactive if there are no more fragments to load
+
+		if ( idx == -1)
+			m_loaderActive = false;
+		return idx;
+	}
+
+	/**
+	 * Mark a fragment as loaded
+	 *
+	 * @param idx int
+	 */
+	public final synchronized void setFragmentLoaded(int idx) {
+		if ( m_loaded.get(idx) == false) {
+			m_loaded.set(idx);
+			m_loadCount++;
+		}
+
+		m_demand.clear(idx);
+		m_readAhead.clear(idx);
+	}
+
+	/**
+	 * Cancel loading of the outstanding fragments, the file data has been replaced
+	 */
+	public final synchronized void cancel() {
+		m_cancelled = true;
+	}
+
+	/**
+	 * Return the first requested fragment that has not been loaded
+	 *
+	 * @param reqSet BitSet
+	 * @return int
+	 */
+	private final int nextUnloaded(BitSet reqSet) {
+		int idx = reqSet.nextSetBit(0);
+		while ( idx != -1 && m_loaded.get(idx)) {
+			reqSet.clear(idx);
+			idx = reqSet.nextSetBit(idx + 1);
+		}
+		return idx;
+	}
+
+	/**
+	 * Mark the loader as active, return true if there was no active loader
+	 *
+	 * @return boolean
+	 */
+	private final boolean activateLoader() {
+		if ( m_loaderActive)
+			return false;
+		m_loaderActive = true;
+		return true;
+	}
+
+	/**
+	 * Return the fragment map details as a string
+	 *
+	 * @return String
+	 */
+	public synchronized String toString() {
+		StringBuffer str = new StringBuffer();
+
+		str.append("[Frags=");
+		str.append(m_loadCount);
+		str.append("/");
+		str.append(numberOfFragments());
+		str.append(",Len=");
+		str.append(getFileLength());
+
+		if ( m_loaderActive)
+			str.append(",Loading");
+		if ( m_cancelled)
+			str.append(",Cancelled");
+
+		str.append("]");
+
+		return str.toString();
+	}
+}
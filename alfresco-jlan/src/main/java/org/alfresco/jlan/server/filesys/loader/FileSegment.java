@@ -142,6 +142,15 @@ public class FileSegment {
 		return m_info.hasStatus() == FileSegmentInfo.Error;
 	}
 
+	/**
+	 * Return the fragment map, or null if the file data is loaded as a whole
+	 *
+	 * @return FileFragmentMap
+	 */
+	public final FileFragmentMap getFragmentMap() {
+		return m_info.getFragmentMap();
+	}
+
   /**
    * Set the readable data length for the file, used during data loading to allow the file to be read before
    * the file load completes.
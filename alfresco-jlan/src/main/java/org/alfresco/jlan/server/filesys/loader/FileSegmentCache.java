@@ -0,0 +1,376 @@
+/*
+ * Copyright (C) 2006-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.alfresco.jlan.server.filesys.loader;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.alfresco.jlan.debug.Debug;
+
+/**
+ * File Segment Cache Class
+ *
+ * <p>Keeps the temporary files of clean, fully loaded file segments in the local cache area after the
+ * associated file state has expired, so that frequently accessed files do not need to be loaded again.
+ * The cache has a byte budget, when the budget is exceeded the least recently used segments are evicted
+ * and their temporary files deleted.
+ *
+ * <p>Only segments that are no longer attached to a file state are held by the cache. Segments that are
+ * open, queued for a load/save or have been updated stay attached to their file state and are never evicted.
+ *
+ * <p>Cached segments are keyed by the temporary file name, which is generated from the file id and stream id.
+ * A cached segment is only reused if the file size and modification date/time still match.
+ *
+ * @author gkspencer
+ */
+public class FileSegmentCache {
+
+	//	Cached segment details
+
+	protected class CachedSegment {
+
+		//	File segment details, file length and file modification date/time
+
+		private FileSegmentInfo m_info;
+		private long m_size;
+		private long m_modifyDate;
+
+		//	Number of times the segment has been reused
+
+		private int m_hits;
+
+		/**
+		 * Class constructor
+		 *
+		 * @param info FileSegmentInfo
+		 * @param size long
+		 * @param modifyDate long
+		 */
+		protected CachedSegment(FileSegmentInfo info, long size, long modifyDate) {
+			m_info       = info;
+			m_size       = size;
+			m_modifyDate = modifyDate;
+		}
+	}
+
+	//	Cached segments in least recently used order
+
+	private LinkedHashMap<String, CachedSegment> m_segments;
+
+	//	Cache byte budget, and current cached bytes
+
+	private long m_maxSize;
+	private long m_cachedSize;
+
+	//	Cache statistics
+
+	private long m_hits;
+	private long m_misses;
+	private long m_evictions;
+
+	//	Debug enable flag
+
+	private boolean m_debug;
+
+	/**
+	 * Class constructor
+	 *
+	 * @param maxSize long
+	 */
+	public FileSegmentCache(long maxSize) {
+		m_maxSize  = maxSize;
+		m_segments = new LinkedHashMap<String, CachedSegment>(64, 0.75f, true);
+	}
+
+	/**
+	 * Return the cache byte budget
+	 *
+	 * @return long
+	 */
+	public final long getMaximumSize() {
+		return m_maxSize;
+	}
+
+	/**
+	 * Return the number of bytes held in cached segments
+	 *
+	 * @return long
+	 */
+	public synchronized final long getCachedSize() {
+		return m_cachedSize;
+	}
+
+	/**
+	 * Return the number of cached segments
+	 *
+	 * @return int
+	 */
+	public synchronized final int numberOfSegments() {
+		return m_segments.size();
+	}
+
+	/**
+	 * Return the number of cache hits
+	 *
+	 * @return long
+	 */
+	public synchronized final long getHitCount() {
+		return m_hits;
+	}
+
+	/**
+	 * Return the number of cache misses
+	 *
+	 * @return long
+	 */
+	public synchronized final long getMissCount() {
+		return m_misses;
+	}
+
+	/**
+	 * Return the number of segments evicted from the cache
+	 *
+	 * @return long
+	 */
+	public synchronized final long getEvictionCount() {
+		return m_evictions;
+	}
+
+	/**
+	 * Check if debug output is enabled
+	 *
+	 * @return boolean
+	 */
+	public final boolean hasDebug() {
+		return m_debug;
+	}
+
+	/**
+	 * Enable/disable debug output
+	 *
+	 * @param dbg boolean
+	 */
+	public final void setDebug(boolean dbg) {
+		m_debug = dbg;
+	}
+
+	/**
+	 * Check if a file segment can be held by the cache, the segment must be fully loaded and must not
+	 * have been updated or have a request queued
+	 *
+	 * @param segInfo FileSegmentInfo
+	 * @return boolean
+	 */
+	public static final boolean isCacheable(FileSegmentInfo segInfo) {
+		int sts = segInfo.hasStatus();
+		return (sts == FileSegmentInfo.Available || sts == FileSegmentInfo.Saved) && segInfo.isUpdated() == false
+				&& segInfo.isQueued() == false && segInfo.hasFragmentMap() == false;
+	}
+
+	/**
+	 * Add a file segment to the cache, least recently used segments are evicted to keep within the byte budget.
+	 * Returns false if the segment cannot be cached, in which case the caller should delete the temporary file.
+	 *
+	 * @param segInfo FileSegmentInfo
+	 * @param size long
+	 * @param modifyDate long
+	 * @return boolean
+	 */
+	public synchronized final boolean addSegment(FileSegmentInfo segInfo, long size, long modifyDate) {
+
+		//	Check if the segment is cacheable, and that the temporary file matches the expected file size
+
+		File tempFile = new File(segInfo.getTemporaryFile());
+
+		if ( isCacheable(segInfo) == false || size > m_maxSize || tempFile.length() != size)
+			return false;
+
+		//	Replace any existing segment for the same file
+
+		String key = tempFile.getName();
+		CachedSegment curSeg = m_segments.remove(key);
+
+		if ( curSeg != null) {
+			m_cachedSize -= curSeg.m_size;
+			if ( curSeg.m_info.getTemporaryFile().equals(segInfo.getTemporaryFile()) == false)
+				deleteSegment(curSeg);
+		}
+
+		//	Evict least recently used segments until the new segment fits
+
+		Iterator<CachedSegment> iter = m_segments.values().iterator();
+
+		while ( m_cachedSize + size > m_maxSize && iter.hasNext()) {
+
+			//	Evict the segment
+
+			CachedSegment evictSeg = iter.next();
+			iter.remove();
+
+			m_cachedSize -= evictSeg.m_size;
+			m_evictions++;
+
+			deleteSegment(evictSeg);
+
+			//	DEBUG
+
+			if ( Debug.EnableInfo && hasDebug())
+				Debug.println("$$ Segment cache evicted " + evictSeg.m_info.getTemporaryFile() + ", hits=" + evictSeg.m_hits + " $$");
+		}
+
+		//	Add the segment to the cache
+
+		m_segments.put(key, new CachedSegment(segInfo, size, modifyDate));
+		m_cachedSize += size;
+
+		return true;
+	}
+
+	/**
+	 * Find a cached segment for the specified temporary file name, and remove it from the cache. The segment
+	 * is only returned if the file size and modification date/time match, otherwise the stale segment is
+	 * deleted.
+	 *
+	 * @param tempName String
+	 * @param size long
+	 * @param modifyDate long
+	 * @return FileSegmentInfo
+	 */
+	public synchronized final FileSegmentInfo findSegment(String tempName, long size, long modifyDate) {
+
+		//	Check if the segment is cached
+
+		CachedSegment cachedSeg = m_segments.remove(tempName);
+
+		if ( cachedSeg != null) {
+
+			//	Update the cached size, the segment is now owned by the caller or deleted
+
+			m_cachedSize -= cachedSeg.m_size;
+
+			//	Check that the cached data is still valid
+
+			File tempFile = new File(cachedSeg.m_info.getTemporaryFile());
+
+			if ( cachedSeg.m_size == size && cachedSeg.m_modifyDate == modifyDate && tempFile.length() == size) {
+
+				//	Cache hit
+
+				m_hits++;
+				cachedSeg.m_hits++;
+
+				return cachedSeg.m_info;
+			}
+
+			//	Stale segment, delete the temporary file
+
+			deleteSegment(cachedSeg);
+
+			//	DEBUG
+
+			if ( Debug.EnableInfo && hasDebug())
+				Debug.println("$$ Segment cache stale " + cachedSeg.m_info.getTemporaryFile() + " $$");
+		}
+
+		//	Cache miss
+
+		m_misses++;
+		return null;
+	}
+
+	/**
+	 * Remove a cached segment, and delete the temporary file. Used when the file data has been deleted.
+	 *
+	 * @param tempName String
+	 */
+	public synchronized final void removeSegment(String tempName) {
+
+		//	Remove the segment, if cached
+
+		CachedSegment cachedSeg = m_segments.remove(tempName);
+
+		if ( cachedSeg != null) {
+			m_cachedSize -= cachedSeg.m_size;
+			deleteSegment(cachedSeg);
+		}
+	}
+
+	/**
+	 * Remove all cached segments, and delete the temporary files
+	 */
+	public synchronized final void removeAllSegments() {
+
+		//	Delete the temporary files
+
+		for ( CachedSegment cachedSeg : m_segments.values())
+			deleteSegment(cachedSeg);
+
+		m_segments.clear();
+		m_cachedSize = 0L;
+	}
+
+	/**
+	 * Delete the temporary file for a cached segment
+	 *
+	 * @param cachedSeg CachedSegment
+	 */
+	private final void deleteSegment(CachedSegment cachedSeg) {
+
+		//	Reset the segment status and delete the temporary file
+
+		try {
+			cachedSeg.m_info.setStatus(FileSegmentInfo.Initial);
+			cachedSeg.m_info.deleteTemporaryFile();
+		}
+		catch (Exception ex) {
+
+			//	DEBUG
+
+			if ( Debug.EnableError && hasDebug())
+				Debug.println("$$ Segment cache failed to delete " + cachedSeg.m_info.getTemporaryFile() + ", " + ex.toString());
+		}
+	}
+
+	/**
+	 * Return the cache details as a string
+	 *
+	 * @return String
+	 */
+	public synchronized String toString() {
+		StringBuffer str = new StringBuffer();
+
+		str.append("[SegmentCache segs=");
+		str.append(m_segments.size());
+		str.append(",size=");
+		str.append(m_cachedSize);
+		str.append("/");
+		str.append(m_maxSize);
+		str.append(",hits=");
+		str.append(m_hits);
+		str.append(",misses=");
+		str.append(m_misses);
+		str.append(",evictions=");
+		str.append(m_evictions);
+		str.append("]");
+
+		return str.toString();
+	}
+}
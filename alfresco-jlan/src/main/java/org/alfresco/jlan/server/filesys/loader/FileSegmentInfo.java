@@ -72,6 +72,10 @@ public class FileSegmentInfo {
 
 	private long m_readable;
 
+	//	Fragment map for a file that is being loaded on demand, null if the file is loaded as a whole
+
+	private FileFragmentMap m_fragMap;
+
 	/**
 	 * Default constructor
 	 */
@@ -205,6 +209,36 @@ public class FileSegmentInfo {
     m_readable = readable;
   }
 
+	/**
+	 * Check if the file data is being loaded on demand using a fragment map
+	 *
+	 * @return boolean
+	 */
+	public final boolean hasFragmentMap() {
+		return m_fragMap != null;
+	}
+
+	/**
+	 * Return the fragment map, or null if the file data is loaded as a whole
+	 *
+	 * @return FileFragmentMap
+	 */
+	public final FileFragmentMap getFragmentMap() {
+		return m_fragMap;
+	}
+
+	/**
+	 * Set the fragment map used to load the file data on demand, or null to clear the map. Any outstanding
+	 * fragment loads for a previous map are cancelled.
+	 *
+	 * @param fragMap FileFragmentMap
+	 */
+	public synchronized final void setFragmentMap(FileFragmentMap fragMap) {
+		if ( m_fragMap != null && m_fragMap != fragMap)
+			m_fragMap.cancel();
+		m_fragMap = fragMap;
+	}
+
 	/**
 	 * Set the segment load/update status
 	 *
@@ -318,6 +352,10 @@ public class FileSegmentInfo {
 			str.append(",Updated");
 		if ( isQueued())
 			str.append(",Queued");
+		if ( hasFragmentMap()) {
+			str.append(",");
+			str.append(getFragmentMap());
+		}
 
 		str.append("]");
 
@@ -19,7 +19,13 @@
 
 package org.alfresco.jlan.server.memory;
 
-import java.util.Vector;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Byte Buffer List Class
@@ -27,10 +33,23 @@ import java.util.Vector;
  * <p>Contains a list of byte buffers of the same size. The list has an initial and maximum
  * size.
  *
+ * <p>The available buffers are held in a lock-free queue, and the count of buffers allocated out is
+ * updated using compare-and-set so that the allocate/release path does not take a lock. A lock is
+ * only used when the maximum allocation has been reached and a caller waits for a buffer to be released.
+ *
+ * <p>Buffers held in per-thread caches are counted as available, and the number of cached buffers is
+ * limited so that the caches cannot hold an unbounded number of buffers.
+ *
  * @author gkspencer
  */
 public class ByteBufferList {
 
+	// Number of stripes used for the hit counter, must be a power of 2, and the padding between
+	// stripes to keep each counter on a separate cache line
+
+	private static final int HitStripes		= 16;
+	private static final int StripePadding	= 8;
+
 	// Buffer size, initial allocation and maximum allocation
 
 	private int m_bufSize;
@@ -38,19 +57,33 @@ public class ByteBufferList {
 	private int m_initAlloc;
 	private int m_maxAlloc;
 
-	// Byte buffers
+	// Available byte buffers, and count of available buffers
 
-	private Vector<byte[]> m_bufList;
+	private ConcurrentLinkedQueue<byte[]> m_bufList;
+	private AtomicInteger m_availCount = new AtomicInteger();
 
 	// Count of buffers currently allocated out
 
-	private int m_allocCount;
+	private AtomicInteger m_allocCount = new AtomicInteger();
+
+	// Count of buffers held in per-thread caches, and the maximum number of cached buffers
+
+	private AtomicInteger m_cachedCount = new AtomicInteger();
+	private int m_cacheLimit;
+
+	// Lock and condition used by threads waiting for a buffer to be released, and count of waiting threads. A lock
+	// is used rather than a monitor so that a waiting virtual thread does not pin its carrier thread.
+
+	private ReentrantLock m_waitLock = new ReentrantLock();
+	private Condition m_bufReleased = m_waitLock.newCondition();
+	private volatile int m_waiters;
 
-	// Statistics
+	// Statistics, allocations that used an existing buffer are counted using striped counters
 
-	private long m_statAllocs;
-	private long m_statWaits;
-	private long m_statWaitExpired;
+	private AtomicLongArray m_statHits = new AtomicLongArray( HitStripes * StripePadding);
+	private AtomicLong m_statMisses = new AtomicLong();
+	private AtomicLong m_statWaits = new AtomicLong();
+	private AtomicLong m_statWaitExpired = new AtomicLong();
 
 	/**
 	 * Class constructor
@@ -103,12 +136,21 @@ public class ByteBufferList {
 	}
 
 	/**
-	 * Return the count of available buffers
+	 * Return the count of available buffers, including buffers held in per-thread caches
 	 *
 	 * @return int
 	 */
 	public final int getAvailableCount() {
-		return m_bufList.size();
+		return m_availCount.get() + m_cachedCount.get();
+	}
+
+	/**
+	 * Return the count of buffers held in per-thread caches
+	 *
+	 * @return int
+	 */
+	public final int getCachedCount() {
+		return m_cachedCount.get();
 	}
 
 	/**
@@ -117,7 +159,7 @@ public class ByteBufferList {
 	 * @return int
 	 */
 	public final int getAllocatedCount() {
-		return m_allocCount;
+		return m_allocCount.get();
 	}
 
 	/**
@@ -126,7 +168,28 @@ public class ByteBufferList {
 	 * @return long
 	 */
 	public final long getStatAllocationCounter() {
-		return m_statAllocs;
+		return getStatHits() + getStatMisses();
+	}
+
+	/**
+	 * Return the count of allocations that used an existing buffer
+	 *
+	 * @return long
+	 */
+	public final long getStatHits() {
+		long hits = 0L;
+		for ( int i = 0; i < HitStripes; i++)
+			hits += m_statHits.get( i * StripePadding);
+		return hits;
+	}
+
+	/**
+	 * Return the count of allocations that required a new buffer
+	 *
+	 * @return long
+	 */
+	public final long getStatMisses() {
+		return m_statMisses.get();
 	}
 
 	/**
@@ -135,7 +198,7 @@ public class ByteBufferList {
 	 * @return long
 	 */
 	public final long getStatAllocationWaits() {
-		return m_statWaits;
+		return m_statWaits.get();
 	}
 
 	/**
@@ -144,7 +207,7 @@ public class ByteBufferList {
 	 * @return long
 	 */
 	public final long getStatAllocationWaitsExpired() {
-		return m_statWaitExpired;
+		return m_statWaitExpired.get();
 	}
 
 	/**
@@ -155,129 +218,239 @@ public class ByteBufferList {
 	 */
 	public final byte[] allocateBuffer( long waitTime) {
 
-		// Use the buffer list as the lock
+		// Check if a buffer can be allocated without waiting
 
-		byte[] buf = null;
+		if ( reserveBuffer())
+			return takeBuffer();
 
-		synchronized (m_bufList) {
+		// Check if the caller will wait for a buffer to be released
 
-			// Check if there is a buffer available
+		if ( waitTime <= 0)
+			return null;
 
-			if ( m_bufList.size() > 0) {
+		// Wait for a buffer to be released
 
-				// Remove a buffer from the available list
+		m_statWaits.incrementAndGet();
 
-				buf = m_bufList.remove( 0);
-				m_allocCount++;
+		m_waitLock.lock();
+		m_waiters++;
 
-				// Update the stats
+		try {
 
-				m_statAllocs++;
-			}
-			else if ( m_allocCount < m_maxAlloc) {
+			long remaining = TimeUnit.MILLISECONDS.toNanos( waitTime);
+
+			while ( true) {
+
+				// Check if there is a buffer, a buffer may have been released before the waiter count was updated
 
-				// Allocate a new buffer for this request
+				if ( reserveBuffer())
+					return takeBuffer();
 
-				buf = new byte[ m_bufSize];
-				m_allocCount++;
+				if ( remaining <= 0)
+					break;
 
-				// Update the stats
+				// Wait for a buffer to be released
 
-				m_statAllocs++;
+				remaining = m_bufReleased.awaitNanos( remaining);
 			}
-			else if ( waitTime > 0) {
+		}
+		catch ( InterruptedException ex) {
+		}
+		finally {
+			m_waiters--;
+			m_waitLock.unlock();
+		}
 
-				try {
+		// Update the stats
 
-					// Update the stats
+		m_statWaitExpired.incrementAndGet();
 
-					m_statWaits++;
+		// No buffers available
 
-					// Wait for a buffer to be released
+		return null;
+	}
 
-					m_bufList.wait( waitTime);
+	/**
+	 * Release a buffer back to the pool
+	 *
+	 * @param buf byte[]
+	 */
+	public final void releaseBuffer( byte[] buf) {
 
-					// Check if there is a buffer
+		// Make sure it is one of our buffers
 
-					if ( m_bufList.size() > 0) {
+		if ( buf == null || buf.length != m_bufSize)
+			return;
 
-						buf = m_bufList.remove( 0);
-						m_allocCount++;
-					}
-					else {
+		// Release the buffer back to the available list
 
-						// Update the stats
+		m_bufList.offer( buf);
+		m_availCount.incrementAndGet();
 
-						m_statWaitExpired++;
-					}
-				}
-				catch ( InterruptedException ex) {
-				}
-			}
+		// Update the allocated count, and wakeup any waiting threads
+
+		releaseReservation();
+	}
+
+	/**
+	 * Shrink the buffer list back to the initial allocation size
+	 *
+	 * @return Count of buffers released
+	 */
+	public final int shrinkList() {
+
+		// Remove buffers from the available buffer list
+
+		int removedCnt = 0;
+
+		while ( m_availCount.get() + m_cachedCount.get() > m_initAlloc && m_bufList.poll() != null) {
+			m_availCount.decrementAndGet();
+			removedCnt++;
 		}
 
-		// Return the allocated buffer, or null if there are no buffers available
+		// Return the count of buffers removed from the list
 
-		return buf;
+		return removedCnt;
 	}
 
 	/**
-	 * Release a buffer back to the pool
+	 * Set the maximum number of buffers that may be held in per-thread caches
 	 *
-	 * @param buf byte[]
+	 * @param limit int
 	 */
-	public final void releaseBuffer( byte[] buf) {
+	final void setCacheLimit( int limit) {
+		m_cacheLimit = limit;
+	}
 
-		// Make sure it is one of our buffers
+	/**
+	 * Reserve a buffer for a caller that already has a cached buffer, returns false if the maximum
+	 * allocation has been reached
+	 *
+	 * @return boolean
+	 */
+	final boolean reserveCachedBuffer() {
 
-		if ( buf == null || buf.length != m_bufSize)
-			return;
+		if ( reserveBuffer() == false)
+			return false;
 
-		// Use the buffer list as the lock
+		// Update the cached buffer count and stats
 
-		synchronized (m_bufList) {
+		m_cachedCount.decrementAndGet();
+		incrementHits();
+		return true;
+	}
 
-			// If the list is empty then signal that a buffer is available
+	/**
+	 * Release the reservation for a buffer that is being kept in a cache, rather than being returned
+	 * to the available list. Returns false if the cache limit has been reached, the buffer must then be
+	 * released to the available list.
+	 *
+	 * @return boolean
+	 */
+	final boolean cacheBuffer() {
 
-			if ( m_bufList.size() == 0)
-				m_bufList.notify();
+		// Check if the cache limit has been reached
 
-			// Release the buffer back to the available list
+		int cnt = m_cachedCount.get();
 
-			m_bufList.add( buf);
-			m_allocCount--;
+		while ( cnt < m_cacheLimit) {
+			if ( m_cachedCount.compareAndSet( cnt, cnt + 1)) {
+				releaseReservation();
+				return true;
+			}
+			cnt = m_cachedCount.get();
 		}
+
+		return false;
 	}
 
 	/**
-	 * Shrink the buffer list back to the initial allocation size
+	 * Return a buffer that was held in a per-thread cache to the available list
 	 *
-	 * @return Count of buffers released
+	 * @param buf byte[]
 	 */
-	public final int shrinkList() {
+	final void returnCachedBuffer( byte[] buf) {
+		m_bufList.offer( buf);
+		m_availCount.incrementAndGet();
+		m_cachedCount.decrementAndGet();
+	}
 
-		// Check if the buffer list has more than the initial allocation of buffers
+	/**
+	 * Check if there are threads waiting for a buffer to be released
+	 *
+	 * @return boolean
+	 */
+	final boolean hasWaiters() {
+		return m_waiters > 0;
+	}
 
-		int removedCnt = 0;
+	/**
+	 * Increment the allocated count, if the maximum allocation has not been reached
+	 *
+	 * @return boolean
+	 */
+	private final boolean reserveBuffer() {
 
-		if ( m_bufList.size() > m_initAlloc) {
+		int cnt = m_allocCount.get();
 
-			// Use the buffer list as the lock
+		while ( cnt < m_maxAlloc) {
+			if ( m_allocCount.compareAndSet( cnt, cnt + 1))
+				return true;
+			cnt = m_allocCount.get();
+		}
 
-			synchronized ( m_bufList) {
+		return false;
+	}
+
+	/**
+	 * Decrement the allocated count, and signal any threads waiting for a buffer
+	 */
+	private final void releaseReservation() {
 
-				// Remove buffers from the available buffer list
+		m_allocCount.decrementAndGet();
 
-				while ( m_bufList.size() > m_initAlloc) {
-					m_bufList.remove( 0);
-					removedCnt++;
-				}
+		if ( m_waiters > 0) {
+			m_waitLock.lock();
+			try {
+				m_bufReleased.signal();
+			}
+			finally {
+				m_waitLock.unlock();
 			}
 		}
+	}
 
-		// Return the count of buffers removed from the list
+	/**
+	 * Take a buffer from the available list, or allocate a new buffer. The caller must have reserved
+	 * the buffer.
+	 *
+	 * @return byte[]
+	 */
+	private final byte[] takeBuffer() {
 
-		return removedCnt;
+		byte[] buf = m_bufList.poll();
+
+		if ( buf != null) {
+			m_availCount.decrementAndGet();
+			incrementHits();
+		}
+		else {
+
+			// Allocate a new buffer for this request
+
+			buf = new byte[ m_bufSize];
+			m_statMisses.incrementAndGet();
+		}
+
+		return buf;
+	}
+
+	/**
+	 * Increment the hit counter stripe for the current thread
+	 */
+	private final void incrementHits() {
+		int stripe = (int) Thread.currentThread().getId() & ( HitStripes - 1);
+		m_statHits.incrementAndGet( stripe * StripePadding);
 	}
 
 	/**
@@ -287,16 +460,14 @@ public class ByteBufferList {
 
 		// Allocate the buffer list
 
-		if ( getInitialAllocation() > 0)
-			m_bufList = new Vector<byte[]>( getInitialAllocation());
-		else
-			m_bufList = new Vector<byte[]>();
+		m_bufList = new ConcurrentLinkedQueue<byte[]>();
 
 		// Allocte the byte buffers
 
 		if ( getInitialAllocation() > 0) {
 			for ( int i = 0; i < getInitialAllocation(); i++)
 				m_bufList.add( new byte[ getBufferSize()]);
+			m_availCount.set( getInitialAllocation());
 		}
 	}
 
@@ -316,10 +487,14 @@ public class ByteBufferList {
 		str.append( getMaximumAllocation());
 		str.append(",Avail=");
 		str.append( getAvailableCount());
+		str.append(",Cached=");
+		str.append( getCachedCount());
 		str.append(",Alloc=");
 		str.append( getAllocatedCount());
 		str.append(",Stats=");
-		str.append( getStatAllocationCounter());
+		str.append( getStatHits());
+		str.append("/");
+		str.append( getStatMisses());
 		str.append("/");
 		str.append( getStatAllocationWaits());
 		str.append("/");
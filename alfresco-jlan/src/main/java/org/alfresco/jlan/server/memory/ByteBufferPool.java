@@ -19,15 +19,59 @@
 
 package org.alfresco.jlan.server.memory;
 
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
 /**
  * Byte buffer Pool Class
  *
  * <p>Memory pool of different sized byte buffers.
  *
+ * <p>Each buffer size has a lock-free buffer list. Threads also keep a small per-thread cache of released
+ * buffers for each buffer size, so that a thread that allocates and releases buffers repeatedly does
+ * not touch the shared buffer lists. Per-thread caches are only used for buffer sizes with a maximum
+ * allocation large enough that cached buffers cannot starve other threads, and the total number of
+ * buffers held in the caches of a buffer size is limited to a percentage of the maximum allocation.
+ *
+ * <p>Buffers cached by threads that have exited are returned to the shared buffer lists when the lists
+ * are shrunk, or when the cache limit is reached. Virtual threads do not use the per-thread caches, a
+ * virtual thread usually only runs a single request so its cache would be discarded when the request
+ * completes.
+ *
  * @author gkspencer
  */
 public class ByteBufferPool {
 
+	// Number of buffers of each size that a thread may cache
+
+	public static final int ThreadCacheSize			= 4;
+
+	// Minimum maximum allocation for a buffer size to use the per-thread caches
+
+	public static final int ThreadCacheMinAlloc		= 64;
+
+	// Maximum percentage of the maximum allocation for a buffer size that may be held in per-thread caches
+
+	public static final int ThreadCacheMaxPercent	= 25;
+
+	// Minimum interval between checks for caches owned by threads that have exited
+
+	private static final long ReclaimInterval		= 5000L;
+
+	// Thread.isVirtual() method, available on JDK 21 or later
+
+	private static Method _isVirtualMethod;
+
+	static {
+		try {
+			_isVirtualMethod = Thread.class.getMethod( "isVirtual");
+		}
+		catch ( NoSuchMethodException ex) {
+		}
+	}
+
 	// List of byte buffer pools
 
 	private ByteBufferList[] m_bufferLists;
@@ -38,6 +82,65 @@ public class ByteBufferPool {
 	private int[] m_initAlloc;
 	private int[] m_maxAlloc;
 
+	// Buffer sizes that use the per-thread caches
+
+	private boolean[] m_useCache;
+
+	// Per-thread buffer caches, the cache is null for virtual threads
+
+	private ThreadLocal<ThreadCache> m_threadCache = new ThreadLocal<ThreadCache>() {
+		protected ThreadCache initialValue() {
+
+			// Virtual threads do not use a cache
+
+			if ( isVirtualThread())
+				return null;
+
+			// Remove the caches of threads that have exited before adding the new cache
+
+			if ( System.currentTimeMillis() - m_lastReclaim >= ReclaimInterval)
+				reclaimThreadCaches();
+
+			ThreadCache cache = new ThreadCache( m_bufSizes.length);
+			m_threadCaches.add( cache);
+			return cache;
+		}
+	};
+
+	// List of all per-thread caches, used to reclaim buffers from the caches of threads that have exited,
+	// and the time of the last check
+
+	private ConcurrentLinkedQueue<ThreadCache> m_threadCaches = new ConcurrentLinkedQueue<ThreadCache>();
+	private volatile long m_lastReclaim;
+
+	/**
+	 * Per-thread Buffer Cache Class
+	 *
+	 * <p>Small stack of released buffers for each buffer size, only accessed by the owning thread.
+	 */
+	private static class ThreadCache {
+
+		// Thread that owns the cache
+
+		Thread m_owner;
+
+		// Cached buffers, and count of buffers, for each buffer size
+
+		byte[][][] m_buffers;
+		int[] m_counts;
+
+		/**
+		 * Class constructor
+		 *
+		 * @param sizes int
+		 */
+		ThreadCache( int sizes) {
+			m_owner = Thread.currentThread();
+			m_buffers = new byte[ sizes][ ThreadCacheSize][];
+			m_counts = new int[ sizes];
+		}
+	}
+
 	/**
 	 * Class constuctor
 	 *
@@ -52,6 +155,13 @@ public class ByteBufferPool {
 		if (( bufSizes.length != initAlloc.length) && (bufSizes.length != maxAlloc.length))
 			throw new RuntimeException("Invalid ByteBufferPool parameters");
 
+		// Buffer sizes must be in ascending order, the size lookup uses a binary search
+
+		for ( int i = 1; i < bufSizes.length; i++) {
+			if ( bufSizes[ i] < bufSizes[ i - 1])
+				throw new RuntimeException("Invalid ByteBufferPool parameters, buffer sizes not in ascending order");
+		}
+
 		// Save the buffer details
 
 		m_bufSizes  = bufSizes;
@@ -61,6 +171,7 @@ public class ByteBufferPool {
 		// Allocate the buffer list
 
 		m_bufferLists = new ByteBufferList[ m_bufSizes.length];
+		m_useCache = new boolean[ m_bufSizes.length];
 
 		// Allocate the byte buffer lists
 
@@ -70,6 +181,13 @@ public class ByteBufferPool {
 
 			ByteBufferList bufList = new ByteBufferList( m_bufSizes[ i], m_initAlloc[ i], m_maxAlloc[ i]);
 			m_bufferLists[ i] = bufList;
+
+			// Check if the per-thread caches should be used for this buffer size
+
+			m_useCache[ i] = m_maxAlloc[ i] >= ThreadCacheMinAlloc;
+
+			if ( m_useCache[ i])
+				bufList.setCacheLimit(( m_maxAlloc[ i] * ThreadCacheMaxPercent) / 100);
 		}
 	}
 
@@ -95,19 +213,41 @@ public class ByteBufferPool {
 	 */
 	public final byte[] allocateBuffer( int siz, long waitTime) {
 
-		// Allocate the buffer from the appropriate list
-
-		int idx = 0;
+		// Find the smallest buffer size that can hold the requested size
 
-		while ( idx < m_bufSizes.length && siz > m_bufSizes[ idx])
-			idx++;
+		int idx = Arrays.binarySearch( m_bufSizes, siz);
+		if ( idx < 0)
+			idx = -( idx + 1);
 
 		if ( idx == m_bufSizes.length)
 			throw new RuntimeException("Requested allocation size too long for pool, " + siz);
 
+		// Check the per-thread cache for a buffer
+
+		ByteBufferList bufList = m_bufferLists[ idx];
+
+		if ( m_useCache[ idx]) {
+
+			ThreadCache cache = m_threadCache.get();
+			int cnt = cache != null ? cache.m_counts[ idx] : 0;
+
+			if ( cnt > 0 && bufList.reserveCachedBuffer()) {
+
+				// Use the cached buffer
+
+				cnt--;
+				byte[] buf = cache.m_buffers[ idx][ cnt];
+
+				cache.m_buffers[ idx][ cnt] = null;
+				cache.m_counts[ idx] = cnt;
+
+				return buf;
+			}
+		}
+
 		// Allocate a buffer
 
-		return m_bufferLists[ idx].allocateBuffer( waitTime);
+		return bufList.allocateBuffer( waitTime);
 	}
 
 	/**
@@ -119,27 +259,103 @@ public class ByteBufferPool {
 
 		// Find the buffer list the buffer was allocated from
 
-		int idx = 0;
+		int idx = Arrays.binarySearch( m_bufSizes, buf.length);
 
-		while ( idx < m_bufSizes.length && buf.length != m_bufSizes[ idx])
-			idx++;
-
-		if ( idx == m_bufSizes.length)
+		if ( idx < 0)
 			throw new RuntimeException("Released buffer does not match any buffer sizes, " + buf.length);
 
+		// Keep the buffer in the per-thread cache, unless there are threads waiting for a buffer
+
+		ByteBufferList bufList = m_bufferLists[ idx];
+
+		if ( m_useCache[ idx] && bufList.hasWaiters() == false) {
+
+			ThreadCache cache = m_threadCache.get();
+			int cnt = cache != null ? cache.m_counts[ idx] : ThreadCacheSize;
+
+			if ( cnt < ThreadCacheSize) {
+
+				// Add the buffer to the cache, if the cache limit has not been reached
+
+				if ( bufList.cacheBuffer()) {
+					cache.m_buffers[ idx][ cnt] = buf;
+					cache.m_counts[ idx] = cnt + 1;
+					return;
+				}
+
+				// Cache limit reached, check for buffers held by threads that have exited
+
+				if ( System.currentTimeMillis() - m_lastReclaim >= ReclaimInterval)
+					reclaimThreadCaches();
+			}
+		}
+
 		// Release the buffer
 
-		m_bufferLists[ idx].releaseBuffer( buf);
+		bufList.releaseBuffer( buf);
 	}
 
 	/**
 	 * Shrink the buffer lists back to their initial allocation sizes
 	 */
 	public final void shrinkLists() {
+
+		// Return buffers held by threads that have exited to the buffer lists
+
+		reclaimThreadCaches();
+
+		// Shrink the buffer lists
+
 		for ( int i = 0; i < m_bufferLists.length; i++)
 			m_bufferLists[ i].shrinkList();
 	}
 
+	/**
+	 * Check if the current thread is a virtual thread
+	 *
+	 * @return boolean
+	 */
+	private static final boolean isVirtualThread() {
+
+		if ( _isVirtualMethod == null)
+			return false;
+
+		try {
+			return ((Boolean) _isVirtualMethod.invoke( Thread.currentThread())).booleanValue();
+		}
+		catch ( Exception ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * Return the buffers held in the caches of threads that have exited to the buffer lists
+	 */
+	private final void reclaimThreadCaches() {
+
+		m_lastReclaim = System.currentTimeMillis();
+
+		Iterator<ThreadCache> iter = m_threadCaches.iterator();
+
+		while ( iter.hasNext()) {
+
+			// Check if the cache owner has exited, only one thread can remove the cache from the list
+
+			ThreadCache cache = iter.next();
+
+			if ( cache.m_owner.isAlive() == false && m_threadCaches.remove( cache)) {
+
+				// Return the cached buffers to the buffer lists
+
+				for ( int idx = 0; idx < cache.m_counts.length; idx++) {
+					for ( int i = 0; i < cache.m_counts[ idx]; i++)
+						m_bufferLists[ idx].returnCachedBuffer( cache.m_buffers[ idx][ i]);
+					cache.m_counts[ idx] = 0;
+				}
+			}
+		}
+	}
+
 	/**
 	 * Return the length of the smallest packet size available
 	 *
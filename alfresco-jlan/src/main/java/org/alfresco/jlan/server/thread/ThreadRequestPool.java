@@ -19,8 +19,18 @@
 
 package org.alfresco.jlan.server.thread;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import org.alfresco.jlan.debug.Debug;
 
@@ -30,6 +40,31 @@ import org.alfresco.jlan.debug.Debug;
  * <p>
  * Thread pool that processes a queue of thread requests.
  *
+ * <p>
+ * The pool can use one of the following queue types :-
+ * <ul>
+ * <li>Shared - a single request queue serviced by a fixed set of worker threads</li>
+ * <li>Work stealing - a request queue per worker thread. Requests queued by the same thread, such as a
+ * request handler thread, are placed on the same worker queue so a handlers requests are processed by the
+ * same worker whilst it keeps up. Requests queued by a worker thread go to its own queue. Idle workers
+ * steal requests that are queued to a worker that is busy processing a request</li>
+ * <li>Virtual thread - runs each request on a new virtual thread so requests that block, such as database
+ * I/O, do not tie up a small fixed pool of worker threads. Requires JDK 21 or later, falls back to a
+ * work stealing pool on older JVMs</li>
+ * </ul>
+ *
+ * <p>
+ * The virtual thread queue type is optional, and is not the default. On JDK 21 a virtual thread that blocks
+ * inside a synchronized method or block, or in native code, pins its carrier thread for the duration of the
+ * call. The session send path, buffer pool waits, database connection pool and chunk store use locks rather
+ * than monitors, but filesystem drivers, JDBC drivers and other code that block whilst holding a monitor will
+ * still pin a carrier thread, and the number of carrier threads defaults to the number of processors. Use
+ * the shared or work stealing queue types for drivers that block whilst synchronized.
+ *
+ * <p>
+ * The pool keeps statistics of the number of queued requests and the time requests wait before being
+ * processed.
+ *
  * @author gkspencer
  */
 public class ThreadRequestPool {
@@ -44,14 +79,48 @@ public class ThreadRequestPool {
 
 	public static final int TimedQueueInitialSize  = 20;
 
+	// Request queue types
+
+	public static final int QueueShared			= 0;
+	public static final int QueueWorkStealing	= 1;
+	public static final int QueueVirtualThread	= 2;
+
+	private static final String[] _queueTypes = { "Shared", "WorkStealing", "VirtualThread" };
+
+	// Interval between statistics reports when debug output is enabled
+
+	public static final long StatisticsReportInterval	= 5 * 60;	// 5 minutes, in seconds
+
     // Interval to sleep when waiting for a request to be queued
 
     private static long WaitForRequestSleep = 24 * 60 * 60000L; //  1 day
 
-	// Queue of requests
+	// Queue type
+
+	private int m_queueType;
+
+	// Queue of requests, for the shared queue type
 
 	private ThreadRequestQueue m_queue;
 
+	// Executor for the virtual thread queue type
+
+	private ExecutorService m_executor;
+
+	// Per worker request queues and worker threads, for the work stealing queue type
+
+	private StealingWorker[] m_stealWorkers;
+
+	// Work stealing worker index assigned to each thread that queues requests, and the next index to assign
+
+	private ThreadLocal<Integer> m_affinity;
+	private AtomicInteger m_nextAffinity = new AtomicInteger();
+
+	// Count of idle work stealing workers, and the number of requests that have been stolen
+
+	private AtomicInteger m_idleWorkers = new AtomicInteger();
+	private AtomicLong m_stealCount = new AtomicLong();
+
 	// Queue of timed requests, in time order, and timed request processing thread
 
 	private PriorityBlockingQueue<TimedThreadRequest> m_timedQueue;
@@ -64,6 +133,113 @@ public class ThreadRequestPool {
 
 	private ThreadWorker[] m_workers;
 
+	// Request statistics, current and maximum number of queued requests, total requests processed and
+	// total/maximum time that requests waited on the queue, in nanoseconds
+
+	private AtomicInteger m_queueDepth = new AtomicInteger();
+	private AtomicInteger m_maxQueueDepth = new AtomicInteger();
+	private AtomicLong m_reqCount = new AtomicLong();
+	private AtomicLong m_totWaitTime = new AtomicLong();
+	private AtomicLong m_maxWaitTime = new AtomicLong();
+
+	// Statistics report timed request, queued when debug output is enabled
+
+	private TimedThreadRequest m_statsReport;
+
+	/**
+	 * Queued Request Inner Class
+	 *
+	 * <p>Wraps a request that has been queued to the thread pool to track the queue statistics.
+	 */
+	protected class QueuedRequest implements ThreadRequest, Runnable {
+
+		// Request to be processed, and the time it was queued, in nanoseconds
+
+		private ThreadRequest mi_req;
+		private long mi_queuedAt;
+
+		/**
+		 * Class constructor
+		 *
+		 * @param req ThreadRequest
+		 */
+		public QueuedRequest( ThreadRequest req) {
+			mi_req = req;
+			mi_queuedAt = System.nanoTime();
+		}
+
+		/**
+		 * Run the request
+		 */
+		public void runRequest() {
+
+			// Update the queue statistics
+
+			requestStarted( System.nanoTime() - mi_queuedAt);
+
+			// DEBUG
+
+			if ( hasDebug())
+				Debug.println("Worker " + Thread.currentThread().getName() + ": Req=" + mi_req);
+
+			// Process the request
+
+			mi_req.runRequest();
+		}
+
+		/**
+		 * Run the request from an executor thread
+		 */
+		public void run() {
+
+			try {
+
+				// Process the request
+
+				runRequest();
+			}
+			catch (Throwable ex) {
+
+				// Do not display errors if shutting down
+
+				if ( m_executor.isShutdown() == false) {
+					Debug.println("Worker " + Thread.currentThread().getName() + ":");
+					Debug.println(ex);
+				}
+			}
+		}
+
+		/**
+		 * Return the request as a string
+		 *
+		 * @return String
+		 */
+		public String toString() {
+			return mi_req.toString();
+		}
+	}
+
+	/**
+	 * Statistics Report Timed Request Inner Class
+	 */
+	protected class StatisticsReportTimedRequest extends TimedThreadRequest {
+
+		/**
+		 * Class constructor
+		 */
+		public StatisticsReportTimedRequest() {
+			super( "ThreadPoolStatistics", -StatisticsReportInterval, StatisticsReportInterval);
+		}
+
+		/**
+		 * Report the thread pool statistics
+		 */
+		protected void runTimedRequest() {
+			if ( hasDebug())
+				Debug.println("Thread pool " + ThreadRequestPool.this.toString());
+		}
+	}
+
 	// Debug enable flag
 
 	protected boolean m_debug;
@@ -141,10 +317,213 @@ public class ThreadRequestPool {
 
 				if ( threadReq != null) {
 
-					// DEBUG
+					try {
+
+						// Process the request
+
+						threadReq.runRequest();
+					}
+					catch (Throwable ex) {
 
-					if ( hasDebug())
-						Debug.println("Worker " + Thread.currentThread().getName() + ": Req=" + threadReq);
+						// Do not display errors if shutting down
+
+						if ( mi_shutdown == false) {
+							Debug.println("Worker " + Thread.currentThread().getName() + ":");
+							Debug.println(ex);
+						}
+					}
+				}
+			}
+		}
+	};
+
+	/**
+	 * Work Stealing Worker Inner Class
+	 *
+	 * <p>Worker thread with its own request queue. When the queue is empty the worker steals requests from
+	 * the other worker queues, and parks when there are no requests to process.
+	 */
+	protected class StealingWorker implements Runnable {
+
+		// Index of this worker
+
+		private int mi_index;
+
+		// Requests queued to this worker, and the count of queued requests
+
+		private ConcurrentLinkedDeque<ThreadRequest> mi_queue = new ConcurrentLinkedDeque<ThreadRequest>();
+		private AtomicInteger mi_queued = new AtomicInteger();
+
+		// Worker thread
+
+		private Thread mi_thread;
+
+		// Idle, busy processing a request and shutdown flags
+
+		private volatile boolean mi_idle;
+		private volatile boolean mi_busy;
+		private volatile boolean mi_shutdown;
+
+		/**
+		 * Class constructor
+		 *
+		 * @param name String
+		 * @param idx int
+		 */
+		public StealingWorker(String name, int idx) {
+
+			mi_index = idx;
+
+			// Create the worker thread
+
+			mi_thread = new Thread(this);
+			mi_thread.setName(name);
+			mi_thread.setDaemon(true);
+		}
+
+		/**
+		 * Start the worker thread
+		 */
+		public final void startWorker() {
+			mi_thread.start();
+		}
+
+		/**
+		 * Add a request to the worker queue
+		 *
+		 * @param req ThreadRequest
+		 */
+		public final void addRequest(ThreadRequest req) {
+			mi_queue.offer(req);
+			mi_queued.incrementAndGet();
+		}
+
+		/**
+		 * Remove the oldest request from the worker queue
+		 *
+		 * @return ThreadRequest, or null if the queue is empty
+		 */
+		private final ThreadRequest pollRequest() {
+			ThreadRequest req = mi_queue.poll();
+			if ( req != null)
+				mi_queued.decrementAndGet();
+			return req;
+		}
+
+		/**
+		 * Check if requests can be stolen from this worker, the worker is busy processing a request or has more
+		 * than one request queued. An idle worker is woken when a request is queued to it.
+		 *
+		 * @return boolean
+		 */
+		private final boolean canSteal() {
+			return mi_busy || mi_queued.get() > 1;
+		}
+
+		/**
+		 * Check if the worker is idle
+		 *
+		 * @return boolean
+		 */
+		public final boolean isIdle() {
+			return mi_idle;
+		}
+
+		/**
+		 * Check if the worker is processing a request
+		 *
+		 * @return boolean
+		 */
+		public final boolean isBusy() {
+			return mi_busy;
+		}
+
+		/**
+		 * Wakeup the worker thread
+		 */
+		public final void wakeupWorker() {
+			LockSupport.unpark(mi_thread);
+		}
+
+		/**
+		 * Request the worker thread to shutdown
+		 */
+		public final void shutdownRequest() {
+			mi_shutdown = true;
+			LockSupport.unpark(mi_thread);
+		}
+
+		/**
+		 * Get the next request, from this workers queue or stolen from another worker
+		 *
+		 * @return ThreadRequest, or null if there are no requests queued
+		 */
+		private final ThreadRequest nextRequest() {
+
+			// Check this workers queue
+
+			ThreadRequest req = pollRequest();
+			if ( req != null)
+				return req;
+
+			// Steal the oldest request from the queue of a worker that cannot process it immediately
+
+			for (int i = 1; i < m_stealWorkers.length; i++) {
+				StealingWorker worker = m_stealWorkers[( mi_index + i) % m_stealWorkers.length];
+				if ( worker.canSteal() == false)
+					continue;
+
+				req = worker.pollRequest();
+
+				if ( req != null) {
+					m_stealCount.incrementAndGet();
+					return req;
+				}
+			}
+
+			// No requests queued
+
+			return null;
+		}
+
+		/**
+		 * Run the thread
+		 */
+		public void run() {
+
+			// Loop until shutdown
+
+			while (mi_shutdown == false) {
+
+				ThreadRequest threadReq = nextRequest();
+
+				if ( threadReq == null) {
+
+					// Mark the worker as idle then check the queues again, a request may have been queued before
+					// the idle flag was set
+
+					mi_idle = true;
+					m_idleWorkers.incrementAndGet();
+
+					threadReq = nextRequest();
+
+					if ( threadReq == null && mi_shutdown == false)
+						LockSupport.park(this);
+
+					mi_idle = false;
+					m_idleWorkers.decrementAndGet();
+				}
+
+				// If the request is valid process it
+
+				if ( threadReq != null) {
+
+					mi_busy = true;
+
+					// Wakeup an idle worker to steal any requests that are queued behind this request
+
+					if ( mi_queued.get() > 0 && m_idleWorkers.get() > 0)
+						wakeupWorkers( this, 0);
 
 					try {
 
@@ -161,6 +540,9 @@ public class ThreadRequestPool {
 							Debug.println(ex);
 						}
 					}
+					finally {
+						mi_busy = false;
+					}
 				}
 			}
 		}
@@ -322,10 +704,17 @@ public class ThreadRequestPool {
 	 * @param poolSize int
 	 */
 	public ThreadRequestPool(String threadName, int poolSize) {
+		this(threadName, poolSize, QueueShared);
+	}
 
-		// Create the request queue
-
-		m_queue = new ThreadRequestQueue();
+	/**
+	 * Class constructor
+	 *
+	 * @param threadName String
+	 * @param poolSize int
+	 * @param queueType int
+	 */
+	public ThreadRequestPool(String threadName, int poolSize, int queueType) {
 
 		// Create the timed request queue
 
@@ -336,18 +725,113 @@ public class ThreadRequestPool {
 		if ( poolSize < MinimumWorkerThreads)
 			poolSize = MinimumWorkerThreads;
 
-		// Create the worker threads
+		// Create a virtual thread per request executor, if the JVM supports virtual threads
 
-		m_workers = new ThreadWorker[poolSize];
+		if ( queueType == QueueVirtualThread) {
+			m_executor = createVirtualThreadExecutor( threadName);
 
-		for (int i = 0; i < m_workers.length; i++)
-			m_workers[i] = new ThreadWorker(threadName + (i + 1));
+			if ( m_executor == null) {
+				Debug.println("Virtual threads not available, using work stealing thread pool");
+				queueType = QueueWorkStealing;
+			}
+		}
+
+		// Create the work stealing worker threads and queues
+
+		if ( queueType == QueueWorkStealing) {
+
+			m_affinity = new ThreadLocal<Integer>();
+			m_stealWorkers = new StealingWorker[poolSize];
+
+			for (int i = 0; i < m_stealWorkers.length; i++)
+				m_stealWorkers[i] = new StealingWorker(threadName + (i + 1), i);
+
+			for (int i = 0; i < m_stealWorkers.length; i++)
+				m_stealWorkers[i].startWorker();
+		}
+
+		// Create the shared request queue and worker threads
+
+		else if ( queueType != QueueVirtualThread) {
+
+			queueType = QueueShared;
+			m_queue = new ThreadRequestQueue();
+
+			m_workers = new ThreadWorker[poolSize];
+
+			for (int i = 0; i < m_workers.length; i++)
+				m_workers[i] = new ThreadWorker(threadName + (i + 1));
+		}
+
+		m_queueType = queueType;
 
 		// Create the timed request processor
 
 		m_timedProcessor = new TimedRequestProcessor();
 	}
 
+	/**
+	 * Create a virtual thread per request executor. Uses reflection as virtual threads are only available on JDK 21
+	 * or later.
+	 *
+	 * @param threadName String
+	 * @return ExecutorService, or null if virtual threads are not available
+	 */
+	private static ExecutorService createVirtualThreadExecutor(String threadName) {
+
+		try {
+
+			// Build a virtual thread factory that names the threads, and create a thread per task executor
+
+			Class<?> builderClass = Class.forName( "java.lang.Thread$Builder");
+
+			Object builder = Thread.class.getMethod( "ofVirtual").invoke( null);
+			builder = builderClass.getMethod( "name", String.class, long.class).invoke( builder, threadName, Long.valueOf( 1L));
+
+			ThreadFactory factory = (ThreadFactory) builderClass.getMethod( "factory").invoke( builder);
+
+			return (ExecutorService) Executors.class.getMethod( "newThreadPerTaskExecutor", ThreadFactory.class).invoke( null, factory);
+		}
+		catch ( Exception ex) {
+		}
+
+		// Virtual threads not available
+
+		return null;
+	}
+
+	/**
+	 * Return the request queue type
+	 *
+	 * @return int
+	 */
+	public final int getQueueType() {
+		return m_queueType;
+	}
+
+	/**
+	 * Return the request queue type as a string
+	 *
+	 * @return String
+	 */
+	public final String getQueueTypeString() {
+		return _queueTypes[ m_queueType];
+	}
+
+	/**
+	 * Convert a queue type name to a queue type
+	 *
+	 * @param name String
+	 * @return int, or -1 if the name is not valid
+	 */
+	public static final int getQueueTypeForName(String name) {
+		for ( int i = 0; i < _queueTypes.length; i++) {
+			if ( _queueTypes[i].equalsIgnoreCase( name))
+				return i;
+		}
+		return -1;
+	}
+
 	/**
 	 * Check if debug output is enabled
 	 *
@@ -372,7 +856,89 @@ public class ThreadRequestPool {
 	 * @return int
 	 */
 	public final int getNumberOfRequests() {
-		return m_queue.numberOfRequests();
+		return m_queueDepth.get();
+	}
+
+	/**
+	 * Return the maximum number of requests that have been queued
+	 *
+	 * @return int
+	 */
+	public final int getMaximumNumberOfRequests() {
+		return m_maxQueueDepth.get();
+	}
+
+	/**
+	 * Return the number of requests that have been processed
+	 *
+	 * @return long
+	 */
+	public final long getRequestCount() {
+		return m_reqCount.get();
+	}
+
+	/**
+	 * Return the average time requests wait on the queue, in microseconds
+	 *
+	 * @return long
+	 */
+	public final long getAverageWaitTime() {
+		long reqCnt = m_reqCount.get();
+		return reqCnt > 0 ? ( m_totWaitTime.get() / reqCnt) / 1000L : 0L;
+	}
+
+	/**
+	 * Return the maximum time a request has waited on the queue, in microseconds
+	 *
+	 * @return long
+	 */
+	public final long getMaximumWaitTime() {
+		return m_maxWaitTime.get() / 1000L;
+	}
+
+	/**
+	 * Reset the request statistics
+	 */
+	public final void resetStatistics() {
+		m_maxQueueDepth.set( m_queueDepth.get());
+		m_reqCount.set( 0L);
+		m_totWaitTime.set( 0L);
+		m_maxWaitTime.set( 0L);
+	}
+
+	/**
+	 * Update the statistics when a request is queued
+	 *
+	 * @param cnt int
+	 */
+	private final void requestsQueued(int cnt) {
+
+		// Update the queue depth, and the maximum queue depth
+
+		int depth = m_queueDepth.addAndGet( cnt);
+		int maxDepth = m_maxQueueDepth.get();
+
+		while ( depth > maxDepth && m_maxQueueDepth.compareAndSet( maxDepth, depth) == false)
+			maxDepth = m_maxQueueDepth.get();
+	}
+
+	/**
+	 * Update the statistics when a request is removed from the queue for processing
+	 *
+	 * @param waitTime long
+	 */
+	protected final void requestStarted(long waitTime) {
+
+		// Update the queue depth and wait time statistics
+
+		m_queueDepth.decrementAndGet();
+		m_reqCount.incrementAndGet();
+		m_totWaitTime.addAndGet( waitTime);
+
+		long maxWait = m_maxWaitTime.get();
+
+		while ( waitTime > maxWait && m_maxWaitTime.compareAndSet( maxWait, waitTime) == false)
+			maxWait = m_maxWaitTime.get();
 	}
 
 	/**
@@ -381,7 +947,21 @@ public class ThreadRequestPool {
 	 * @param req ThreadRequest
 	 */
 	public final void queueRequest(ThreadRequest req) {
-		m_queue.addRequest( req);
+
+		// Wrap the request to track the queue statistics
+
+		QueuedRequest queuedReq = new QueuedRequest( req);
+		requestsQueued( 1);
+
+		if ( m_stealWorkers != null) {
+			StealingWorker worker = getAffinityWorker();
+			worker.addRequest( queuedReq);
+			wakeupWorkers( worker, 1);
+		}
+		else if ( m_executor != null)
+			executeRequest( queuedReq);
+		else
+			m_queue.addRequest( queuedReq);
 	}
 
 	/**
@@ -390,7 +970,122 @@ public class ThreadRequestPool {
 	 * @param reqList Vector<ThreadRequest>
 	 */
 	public final void queueRequests( Vector<ThreadRequest> reqList) {
-		m_queue.addRequests( reqList);
+
+		// Wrap the requests to track the queue statistics
+
+		requestsQueued( reqList.size());
+
+		if ( m_stealWorkers != null) {
+			StealingWorker worker = getAffinityWorker();
+
+			for ( int i = 0; i < reqList.size(); i++)
+				worker.addRequest( new QueuedRequest( reqList.get( i)));
+
+			wakeupWorkers( worker, reqList.size());
+		}
+		else if ( m_executor != null) {
+			for ( int i = 0; i < reqList.size(); i++)
+				executeRequest( new QueuedRequest( reqList.get( i)));
+		}
+		else {
+			List<ThreadRequest> queuedList = new ArrayList<ThreadRequest>( reqList.size());
+
+			for ( int i = 0; i < reqList.size(); i++)
+				queuedList.add( new QueuedRequest( reqList.get( i)));
+
+			m_queue.addRequests( queuedList);
+		}
+	}
+
+	/**
+	 * Return the work stealing worker that requests queued by the current thread should be added to. A worker
+	 * thread uses its own queue, other threads are assigned a worker on their first request.
+	 *
+	 * @return StealingWorker
+	 */
+	private final StealingWorker getAffinityWorker() {
+
+		Integer idx = m_affinity.get();
+
+		if ( idx == null) {
+
+			// Check if the current thread is one of the workers
+
+			Thread curThread = Thread.currentThread();
+
+			for (int i = 0; i < m_stealWorkers.length && idx == null; i++) {
+				if ( m_stealWorkers[i].mi_thread == curThread)
+					idx = Integer.valueOf( i);
+			}
+
+			// Assign the next worker to the thread
+
+			if ( idx == null)
+				idx = Integer.valueOf(( m_nextAffinity.getAndIncrement() & Integer.MAX_VALUE) % m_stealWorkers.length);
+
+			m_affinity.set( idx);
+		}
+
+		return m_stealWorkers[ idx.intValue()];
+	}
+
+	/**
+	 * Wakeup workers to process newly queued requests. The worker the requests were queued to takes the first
+	 * request unless it is busy processing a request, idle workers are woken to steal the remaining requests.
+	 *
+	 * @param worker StealingWorker
+	 * @param cnt int
+	 */
+	private final void wakeupWorkers( StealingWorker worker, int cnt) {
+
+		// Wakeup the worker that the requests were queued to, if it is not idle or busy it is about to check
+		// its queue
+
+		if ( worker.isIdle()) {
+			worker.wakeupWorker();
+			cnt--;
+		}
+		else if ( worker.isBusy() == false)
+			cnt--;
+
+		// Always wakeup one worker to steal if the worker has requests queued and is busy
+
+		if ( cnt <= 0 && worker.isBusy() && worker.mi_queued.get() > 0)
+			cnt = 1;
+
+		// Wakeup other idle workers to steal the remaining requests
+
+		for (int i = 1; i < m_stealWorkers.length && cnt > 0 && m_idleWorkers.get() > 0; i++) {
+			StealingWorker idleWorker = m_stealWorkers[( worker.mi_index + i) % m_stealWorkers.length];
+
+			if ( idleWorker.isIdle()) {
+				idleWorker.wakeupWorker();
+				cnt--;
+			}
+		}
+	}
+
+	/**
+	 * Pass a request to the executor
+	 *
+	 * @param queuedReq QueuedRequest
+	 */
+	private final void executeRequest( QueuedRequest queuedReq) {
+
+		try {
+			m_executor.execute( queuedReq);
+		}
+		catch ( RejectedExecutionException ex) {
+
+			// Pool has been shutdown, request will not be processed
+
+			m_queueDepth.decrementAndGet();
+
+			// DEBUG
+
+			if ( hasDebug())
+				Debug.println("Request rejected, thread pool shutdown, req=" + queuedReq);
+		}
 	}
 
 	/**
@@ -486,6 +1181,16 @@ public class ThreadRequestPool {
 				m_workers[i].shutdownRequest();
 		}
 
+		if ( m_stealWorkers != null) {
+			for (int i = 0; i < m_stealWorkers.length; i++)
+				m_stealWorkers[i].shutdownRequest();
+		}
+
+		// Shutdown the executor
+
+		if ( m_executor != null)
+			m_executor.shutdownNow();
+
 		// Shutdown the timed request handler
 
 		if ( m_timedProcessor != null)
@@ -499,6 +1204,13 @@ public class ThreadRequestPool {
 	 */
 	public final void setDebug( boolean ena) {
 		m_debug = ena;
+
+		// Queue the statistics report timed request when debug output is enabled
+
+		if ( ena == true && m_statsReport == null) {
+			m_statsReport = new StatisticsReportTimedRequest();
+			queueTimedRequest( m_statsReport);
+		}
 	}
 
 	/**
@@ -509,4 +1221,41 @@ public class ThreadRequestPool {
 	public final void setTimedDebug( boolean ena) {
 	    m_timedDebug = ena;
 	}
+
+	/**
+	 * Return the thread pool details as a string
+	 *
+	 * @return String
+	 */
+	public String toString() {
+		StringBuilder str = new StringBuilder();
+
+		str.append("[");
+		str.append( getQueueTypeString());
+
+		if ( m_workers != null) {
+			str.append(",workers=");
+			str.append( m_workers.length);
+		}
+		else if ( m_stealWorkers != null) {
+			str.append(",workers=");
+			str.append( m_stealWorkers.length);
+			str.append(",steals=");
+			str.append( m_stealCount.get());
+		}
+
+		str.append(",queued=");
+		str.append( getNumberOfRequests());
+		str.append("/");
+		str.append( getMaximumNumberOfRequests());
+		str.append(",requests=");
+		str.append( getRequestCount());
+		str.append(",avgWait=");
+		str.append( getAverageWaitTime());
+		str.append("us,maxWait=");
+		str.append( getMaximumWaitTime());
+		str.append("us]");
+
+		return str.toString();
+	}
 }
@@ -73,6 +73,17 @@ public final class Dialect {
 
   public static final int Unknown 		= -1;
 
+  // SMB2 dialect strings, offered by clients in an SMB1 multi-protocol negotiate request
+
+  public static final String SMB2_002	= "SMB 2.002";
+  public static final String SMB2_Any	= "SMB 2.???";
+
+  // SMB2 dialect revision codes
+
+  public static final int SMB2_0_2		= 0x0202;
+  public static final int SMB2_1		= 0x0210;
+  public static final int SMB2_Wildcard	= 0x02FF;
+
   // SMB dialect type to string conversion array
 
   private static final int[] protIdx =
@@ -404,4 +415,23 @@ public final class Dialect {
   public static int NumberOfDialects() {
     return protList.length;
   }
+
+  /**
+   * Return the SMB2 dialect revision as a string.
+   *
+   * @param rev    SMB2 dialect revision code.
+   * @return       SMB2 dialect revision string.
+   */
+
+  public static String SMB2DialectString(int rev) {
+    switch ( rev) {
+      case SMB2_0_2:
+        return "SMB 2.0.2";
+      case SMB2_1:
+        return "SMB 2.1";
+      case SMB2_Wildcard:
+        return "SMB 2.???";
+    }
+    return "SMB2 0x" + Integer.toHexString(rev);
+  }
 }
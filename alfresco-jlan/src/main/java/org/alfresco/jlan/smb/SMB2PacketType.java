@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2006-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.alfresco.jlan.smb;
+
+/**
+ *  SMB2 packet type class
+ *
+ *  <p>Contains definitions of the SMB2 command codes, plus a static method for converting an SMB2
+ *  command code to a name.
+ *
+ * @author gkspencer
+ */
+public class SMB2PacketType {
+
+  // SMB2 command codes
+
+  public static final int Negotiate			= 0x0000;
+  public static final int SessionSetup		= 0x0001;
+  public static final int Logoff			= 0x0002;
+  public static final int TreeConnect		= 0x0003;
+  public static final int TreeDisconnect	= 0x0004;
+  public static final int Create			= 0x0005;
+  public static final int Close				= 0x0006;
+  public static final int Flush				= 0x0007;
+  public static final int Read				= 0x0008;
+  public static final int Write				= 0x0009;
+  public static final int Lock				= 0x000A;
+  public static final int IOCtl				= 0x000B;
+  public static final int Cancel			= 0x000C;
+  public static final int Echo				= 0x000D;
+  public static final int QueryDirectory	= 0x000E;
+  public static final int ChangeNotify		= 0x000F;
+  public static final int QueryInfo			= 0x0010;
+  public static final int SetInfo			= 0x0011;
+  public static final int OplockBreak		= 0x0012;
+
+  // SMB2 command names
+
+  private static final String[] _cmdNames = { "Negotiate", "SessionSetup", "Logoff", "TreeConnect", "TreeDisconnect",
+      "Create", "Close", "Flush", "Read", "Write", "Lock", "IOCtl", "Cancel", "Echo", "QueryDirectory", "ChangeNotify",
+      "QueryInfo", "SetInfo", "OplockBreak" };
+
+  /**
+   * Return an SMB2 command as a string
+   *
+   * @param cmd int
+   * @return String
+   */
+  public static final String getCommandName(int cmd) {
+
+    //	Get the command name
+
+    if ( cmd >= 0 && cmd < _cmdNames.length)
+      return _cmdNames[cmd];
+    return "0x" + Integer.toHexString(cmd);
+  }
+}
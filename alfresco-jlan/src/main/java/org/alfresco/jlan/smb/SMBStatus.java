@@ -225,9 +225,12 @@ public final class SMBStatus {
 
 	public static final int NTNotImplemented 		= 0xC0000002;
 	public static final int NTInvalidInfoClass 		= 0xC0000003;
+	public static final int NTInfoLengthMismatch 	= 0xC0000004;
+	public static final int NTInvalidHandle 		= 0xC0000008;
 	public static final int NTInvalidParameter 		= 0xC000000D;
 	public static final int NTNoSuchFile 			= 0xC000000F;
 	public static final int NTInvalidDeviceRequest 	= 0xC0000010;
+	public static final int NTEndOfFile 			= 0xC0000011;
 	public static final int NTMoreProcessingRequired = 0xC0000016;
 	public static final int NTAccessDenied 			= 0xC0000022;
 	public static final int NTBufferTooSmall 		= 0xC0000023;
@@ -246,10 +249,12 @@ public final class SMBStatus {
 	public static final int NTInvalidSecDescriptor 	= 0xC0000079;
 	public static final int NTRangeNotLocked 		= 0xC000007E;
 	public static final int NTDiskFull 				= 0xC000007F;
+	public static final int NTInsufficientResources = 0xC000009A;
 	public static final int NTPipeBusy 				= 0xC00000AE;
 	public static final int NTPipeDisconnected    	= 0xC00000B0;
 	public static final int NTFileIsADirectory 		= 0xC00000BA;
 	public static final int NTNotSupported 			= 0xC00000BB;
+	public static final int NTNetworkNameDeleted	= 0xC00000C9;
 	public static final int NTNetworkAccessDenied	= 0xC00000CA;
 	public static final int NTBadDeviceType 		= 0xC00000CB;
 	public static final int NTBadNetName 			= 0xC00000CC;
@@ -260,8 +265,10 @@ public final class SMBStatus {
 	public static final int NTDirectoryNotEmpty		= 0xC0000101;
 	public static final int NTTooManyOpenFiles 		= 0xC000011F;
 	public static final int NTCancelled 			= 0xC0000120;
+	public static final int NTFileClosed 			= 0xC0000128;
 	public static final int NTInvalidLevel 			= 0xC0000148;
 	public static final int NTPipeBroken          	= 0xC000014B;
+	public static final int NTUserSessionDeleted 	= 0xC0000203;
 	public static final int NTPasswordChangeReq 	= 0xC0000224;
 	public static final int NTAccountLocked			= 0xC0000234;
 	public static final int NTFileOffline 			= 0xC0000267;
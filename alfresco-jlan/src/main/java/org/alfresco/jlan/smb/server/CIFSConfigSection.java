@@ -148,6 +148,10 @@ public class CIFSConfigSection extends ConfigSection {
 
   private boolean m_disableNIO;
 
+  // Enable the SMB2 protocol, negotiated in addition to the enabled SMB1 dialects
+
+  private boolean m_smb2Enable;
+
   // Client session socket timeout, in milliseconds
 
   private int m_clientSocketTimeout = DefSessionTimeout;
@@ -327,6 +331,15 @@ public class CIFSConfigSection extends ConfigSection {
     return m_dialects;
   }
 
+  /**
+   * Determine if the SMB2 protocol is enabled
+   *
+   * @return boolean
+   */
+  public final boolean isSMB2Enabled() {
+    return m_smb2Enable;
+  }
+
   /**
    * Return the name server port to listen on.
    *
@@ -850,6 +863,26 @@ public class CIFSConfigSection extends ConfigSection {
     return sts;
   }
 
+  /**
+   * Enable/disable the SMB2 protocol
+   *
+   * @param ena boolean
+   * @return int
+   * @exception InvalidConfigurationException
+   */
+  public final int setSMB2Enabled(boolean ena)
+    throws InvalidConfigurationException {
+
+    //  Inform listeners, validate the configuration change
+
+    int sts = fireConfigurationChange(ConfigId.SMBEnableSMB2, Boolean.valueOf(ena));
+    m_smb2Enable = ena;
+
+    //  Return the change status
+
+    return sts;
+  }
+
   /**
    * Enable/disable the host announcer.
    *
@@ -388,6 +388,15 @@ public class CIFSPacketPool {
 		return m_maxOverSize;
 	}
 
+	/**
+	 * Set the maximum size of over sized packet that is allowed
+	 *
+	 * @param maxSize int
+	 */
+	public final void setMaximumOverSizedAllocation( int maxSize) {
+		m_maxOverSize = maxSize;
+	}
+
 	/**
 	 * Enable/disable debug output
 	 *
@@ -21,6 +21,7 @@ package org.alfresco.jlan.smb.server;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.sql.Time;
 
 import org.alfresco.jlan.debug.Debug;
@@ -72,6 +73,7 @@ import org.alfresco.jlan.server.filesys.TooManyFilesException;
 import org.alfresco.jlan.server.filesys.TreeConnection;
 import org.alfresco.jlan.server.filesys.UnsupportedInfoLevelException;
 import org.alfresco.jlan.server.filesys.VolumeInfo;
+import org.alfresco.jlan.server.filesys.ZeroCopyReadInterface;
 import org.alfresco.jlan.server.locking.FileLockingInterface;
 import org.alfresco.jlan.server.locking.LocalOpLockDetails;
 import org.alfresco.jlan.server.locking.LockManager;
@@ -144,6 +146,10 @@ public class NTProtocolHandler extends CoreProtocolHandler {
 
 	public static final int NTFSStreamsInfoBufsize	= 4096;	// 4K buffer
 
+	// Minimum read size to send file data directly from the file channel to the network
+
+	public static final int ZeroCopyReadThreshold	= 16384;	// 16K
+
 	// Security descriptor to allow Everyone access, returned by the QuerySecurityDescrptor NT
 	// transaction when NTFS streams are enabled for a virtual filesystem.
 
@@ -2666,6 +2672,17 @@ public class NTProtocolHandler extends CoreProtocolHandler {
 		if ( Debug.EnableInfo && m_sess.hasDebug(SMBSrvSession.DBG_FILEIO))
 			m_sess.debugPrintln("File Read AndX [" + netFile.getFileId() + "] : Size=" + maxCount + " ,Pos=" + offset);
 
+		// Check if the data can be sent directly from the file to the network
+
+		if ( maxCount >= ZeroCopyReadThreshold && smbPkt.hasAndXCommand() == false && m_sess.supportsFileTransfer() &&
+				( Debug.EnableInfo && m_sess.hasDebug(SMBSrvSession.DBG_DUMPDATA)) == false) {
+
+			// Send the read response using the file channel, if the filesystem supports zero copy reads
+
+			if ( procZeroCopyReadAndX( smbPkt, conn, netFile, offset, maxCount) == true)
+				return;
+		}
+
 		// Read data from the file
 
 		SMBSrvPacket respPkt = smbPkt;
@@ -2818,6 +2835,85 @@ public class NTProtocolHandler extends CoreProtocolHandler {
 		}
 	}
 
+	/**
+	 * Send a read andX response with the file data transferred directly from the file channel to the
+	 * network. Returns false if the filesystem does not support zero copy reads for the file, in which
+	 * case the normal read processing is used.
+	 *
+	 * @param smbPkt SMBSrvPacket
+	 * @param conn TreeConnection
+	 * @param netFile NetworkFile
+	 * @param offset long
+	 * @param maxCount int
+	 * @return boolean
+	 * @exception IOException
+	 */
+	private final boolean procZeroCopyReadAndX(SMBSrvPacket smbPkt, TreeConnection conn, NetworkFile netFile, long offset, int maxCount)
+		throws IOException {
+
+		// Get the file channel from the filesystem driver, any errors are reported by the normal read processing
+
+		FileChannel fileChan = null;
+		int rdlen = 0;
+
+		try {
+
+			// Check if the filesystem driver supports zero copy reads
+
+			if (( conn.getInterface() instanceof ZeroCopyReadInterface) == false)
+				return false;
+
+			ZeroCopyReadInterface zeroCopy = (ZeroCopyReadInterface) conn.getInterface();
+			fileChan = zeroCopy.getReadChannel( m_sess, conn, netFile);
+
+			if ( fileChan == null)
+				return false;
+
+			// Calculate the amount of data that will be returned
+
+			long avail = fileChan.size() - offset;
+			if ( avail <= 0L)
+				return false;
+
+			rdlen = avail < maxCount ? (int) avail : maxCount;
+		}
+		catch ( IOException ex) {
+			return false;
+		}
+
+		// Debug
+
+		if ( Debug.EnableInfo && m_sess.hasDebug(SMBSrvSession.DBG_FILEIO))
+			m_sess.debugPrintln("File Read AndX [" + netFile.getFileId() + "] : Zero copy Size=" + rdlen + " ,Pos=" + offset);
+
+		// Build the response header, the data follows the header
+
+		smbPkt.setParameterCount(12);
+		int dataPos = DataPacker.wordAlign( smbPkt.getByteOffset());
+
+		smbPkt.setAndXCommand(0xFF); // no chained command
+		smbPkt.setParameter(1, 0);
+		smbPkt.setParameter(2, 0); // bytes remaining, for pipes only
+		smbPkt.setParameter(3, 0); // data compaction mode
+		smbPkt.setParameter(4, 0); // reserved
+		smbPkt.setParameter(5, rdlen); // data length
+		smbPkt.setParameter(6, dataPos - RFCNetBIOSProtocol.HEADER_LEN); // offset to data
+
+		// Clear the reserved parameters
+
+		for (int i = 7; i < 12; i++)
+			smbPkt.setParameter(i, 0);
+
+		// Set the byte count, including the alignment padding
+
+		smbPkt.setByteCount(( dataPos + rdlen) - smbPkt.getByteOffset());
+
+		// Send the response header and file data
+
+		m_sess.sendResponseSMB( smbPkt, dataPos - RFCNetBIOSProtocol.HEADER_LEN, fileChan, offset, rdlen);
+		return true;
+	}
+
 	/**
 	 * Rename a file.
 	 *
@@ -7825,7 +7921,7 @@ public class NTProtocolHandler extends CoreProtocolHandler {
 	 * @exception DeferredPacketException	If an oplock break has been started
 	 * @exception AccessDeniedException 	If the oplock break send fails
 	 */
-	private final void checkOpLock(SMBSrvSession sess, SMBSrvPacket pkt, DiskInterface disk, FileOpenParams params, TreeConnection tree)
+	protected final void checkOpLock(SMBSrvSession sess, SMBSrvPacket pkt, DiskInterface disk, FileOpenParams params, TreeConnection tree)
 		throws DeferredPacketException, AccessDeniedException {
 
 		// Check if the filesystem supports oplocks
@@ -20,6 +20,7 @@
 package org.alfresco.jlan.smb.server;
 
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.net.InetAddress;
 
 import org.alfresco.jlan.debug.Debug;
@@ -204,6 +205,31 @@ public abstract class PacketHandler {
 	public abstract void writePacket(SMBSrvPacket pkt, int len, boolean writeRaw)
 		throws IOException;
 
+	/**
+	 * Check if the packet handler can send file data directly from a file channel
+	 *
+	 * @return boolean
+	 */
+	public boolean supportsFileTransfer() {
+		return false;
+	}
+
+	/**
+	 * Send an SMB response packet followed by data transferred directly from a file channel. The
+	 * packet length does not include the file data length.
+	 *
+	 * @param pkt SMBSrvPacket
+	 * @param len int
+	 * @param fileChan FileChannel
+	 * @param filePos long
+	 * @param fileLen int
+	 * @exception IOException If a network error occurs.
+	 */
+	public void writePacket(SMBSrvPacket pkt, int len, FileChannel fileChan, long filePos, int fileLen)
+		throws IOException {
+		throw new IOException("File transfer not supported by " + getShortName());
+	}
+
 	/**
 	 * Send an SMB response packet
 	 *
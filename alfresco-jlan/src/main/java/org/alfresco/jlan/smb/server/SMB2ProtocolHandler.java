@@ -0,0 +1,3338 @@
+/*
+ * Copyright (C) 2006-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.alfresco.jlan.smb.server;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.List;
+
+import org.alfresco.jlan.debug.Debug;
+import org.alfresco.jlan.locking.FileLock;
+import org.alfresco.jlan.locking.LockConflictException;
+import org.alfresco.jlan.locking.NotLockedException;
+import org.alfresco.jlan.netbios.RFCNetBIOSProtocol;
+import org.alfresco.jlan.server.auth.ClientInfo;
+import org.alfresco.jlan.server.auth.CifsAuthenticator;
+import org.alfresco.jlan.server.auth.ICifsAuthenticator;
+import org.alfresco.jlan.server.auth.InvalidUserException;
+import org.alfresco.jlan.server.auth.acl.AccessControl;
+import org.alfresco.jlan.server.auth.acl.AccessControlManager;
+import org.alfresco.jlan.server.core.InvalidDeviceInterfaceException;
+import org.alfresco.jlan.server.core.ShareType;
+import org.alfresco.jlan.server.core.SharedDevice;
+import org.alfresco.jlan.server.filesys.AccessDeniedException;
+import org.alfresco.jlan.server.filesys.AccessMode;
+import org.alfresco.jlan.server.filesys.DeferredPacketException;
+import org.alfresco.jlan.server.filesys.DirectoryNotEmptyException;
+import org.alfresco.jlan.server.filesys.DiskDeviceContext;
+import org.alfresco.jlan.server.filesys.DiskFullException;
+import org.alfresco.jlan.server.filesys.DiskInterface;
+import org.alfresco.jlan.server.filesys.DiskOfflineException;
+import org.alfresco.jlan.server.filesys.FileAccess;
+import org.alfresco.jlan.server.filesys.FileAction;
+import org.alfresco.jlan.server.filesys.FileAttribute;
+import org.alfresco.jlan.server.filesys.FileExistsException;
+import org.alfresco.jlan.server.filesys.FileInfo;
+import org.alfresco.jlan.server.filesys.FileName;
+import org.alfresco.jlan.server.filesys.FileNameException;
+import org.alfresco.jlan.server.filesys.FileOfflineException;
+import org.alfresco.jlan.server.filesys.FileOpenParams;
+import org.alfresco.jlan.server.filesys.FileSharingException;
+import org.alfresco.jlan.server.filesys.FileStatus;
+import org.alfresco.jlan.server.filesys.NetworkFile;
+import org.alfresco.jlan.server.filesys.NotifyChange;
+import org.alfresco.jlan.server.filesys.PathNotFoundException;
+import org.alfresco.jlan.server.filesys.PermissionDeniedException;
+import org.alfresco.jlan.server.filesys.SearchContext;
+import org.alfresco.jlan.server.filesys.TooManyConnectionsException;
+import org.alfresco.jlan.server.filesys.TooManyFilesException;
+import org.alfresco.jlan.server.filesys.TreeConnection;
+import org.alfresco.jlan.server.filesys.UnsupportedInfoLevelException;
+import org.alfresco.jlan.server.locking.FileLockingInterface;
+import org.alfresco.jlan.server.locking.LockManager;
+import org.alfresco.jlan.server.locking.OpLockDetails;
+import org.alfresco.jlan.server.locking.OpLockInterface;
+import org.alfresco.jlan.server.locking.OpLockManager;
+import org.alfresco.jlan.server.core.NoPooledMemoryException;
+import org.alfresco.jlan.smb.Dialect;
+import org.alfresco.jlan.smb.FileInfoLevel;
+import org.alfresco.jlan.smb.InvalidUNCPathException;
+import org.alfresco.jlan.smb.NTTime;
+import org.alfresco.jlan.smb.OpLock;
+import org.alfresco.jlan.smb.PCShare;
+import org.alfresco.jlan.smb.SMB2PacketType;
+import org.alfresco.jlan.smb.SMBStatus;
+import org.alfresco.jlan.smb.WinNT;
+import org.alfresco.jlan.smb.nt.NTIOCtl;
+import org.alfresco.jlan.smb.server.notify.NotifyChangeHandler;
+import org.alfresco.jlan.smb.server.ntfs.NTFSStreamsInterface;
+import org.alfresco.jlan.util.DataBuffer;
+import org.alfresco.jlan.util.DataPacker;
+import org.alfresco.jlan.util.WildCard;
+
+/**
+ * SMB2 Protocol Handler Class
+ *
+ * <p>Implements the SMB 2.0.2 and SMB 2.1 dialects. Requests are processed using the same filesystem
+ * driver interfaces as the NT dialect handler. A received packet may contain a chain of compounded
+ * requests, the responses are built into a single response packet and sent as one compounded response.
+ *
+ * <p>The SMB2 session id maps to a virtual circuit UID, the persistent part of a file id is the file
+ * id within the tree connection and the volatile part is the tree id.
+ *
+ * @author gkspencer
+ */
+class SMB2ProtocolHandler extends NTProtocolHandler {
+
+	// Maximum read/write size for the SMB 2.0.2 dialect, and the size of one credit for SMB 2.1 multi-credit requests
+
+	public static final int CreditSize			= 65536;
+
+	// Maximum read/write size when the large MTU capability is negotiated
+
+	public static final int LargeMTUSize		= 1024 * 1024;	// 1Mb
+
+	// Packet overhead on top of the read/write data, NetBIOS header, SMB2 header and read/write structures
+
+	public static final int PacketOverhead		= 256;
+
+	// Packet size required to hold a large MTU read/write request or response
+
+	public static final int LargeMTUPacketSize	= LargeMTUSize + PacketOverhead;
+
+	// Maximum transact buffer size for query directory/query info requests
+
+	public static final int MaxTransactSize		= 65536;
+
+	// Maximum number of credits that may be outstanding for a client
+
+	public static final int MaxCredits			= 128;
+
+	// Response size allowances for the session setup security blob, negotiate security blob and fixed size responses
+
+	private static final int SessionSetupRespSize	= 4096;
+	private static final int NegotiateRespSize		= 1024;
+	private static final int FixedRespSize			= 96;
+
+	// Negotiate security mode and capability flags. Message signing is not supported so the signing enabled
+	// flag is not set.
+
+	private static final int SecModeNone			= 0x0000;
+	private static final int CapLargeMTU			= 0x00000004;
+
+	// IOCTL request flags, and the validate negotiate information FSCTL code and response length
+
+	private static final int IOCtlFlagIsFsCtl		= 0x00000001;
+	private static final int FsCtlValidateNegotiate	= 0x00140204;
+	private static final int ValidateNegotiateLen	= 24;
+
+	// Session setup response flags
+
+	private static final int SessionFlagGuest		= 0x0001;
+	private static final int SessionFlagNull		= 0x0002;
+
+	// Tree connect share types
+
+	private static final int ShareTypeDisk			= 0x01;
+	private static final int ShareTypePipe			= 0x02;
+	private static final int ShareTypePrint			= 0x03;
+
+	// Create response actions
+
+	private static final int CreateActionOpened		= 1;
+	private static final int CreateActionCreated	= 2;
+	private static final int CreateActionOverwritten= 3;
+
+	// Close request flags
+
+	private static final int ClosePostQueryAttrib	= 0x0001;
+
+	// Lock element flags
+
+	private static final int LockFlagShared			= 0x0001;
+	private static final int LockFlagExclusive		= 0x0002;
+	private static final int LockFlagUnlock			= 0x0004;
+
+	// Query directory flags
+
+	private static final int QueryDirRestartScans	= 0x01;
+	private static final int QueryDirSingleEntry	= 0x02;
+	private static final int QueryDirReopen			= 0x10;
+
+	// Query/set info types
+
+	private static final int InfoTypeFile			= 1;
+	private static final int InfoTypeFileSystem		= 2;
+
+	// File information classes
+
+	private static final int FileDirectoryInfo		= 1;
+	private static final int FileFullDirectoryInfo	= 2;
+	private static final int FileBothDirectoryInfo	= 3;
+	private static final int FileBasicInfo			= 4;
+	private static final int FileStandardInfo		= 5;
+	private static final int FileInternalInfo		= 6;
+	private static final int FileEAInfo				= 7;
+	private static final int FileAccessInfo			= 8;
+	private static final int FileNameInfo			= 9;
+	private static final int FileRenameInfo			= 10;
+	private static final int FileNamesInfo			= 12;
+	private static final int FileDispositionInfo	= 13;
+	private static final int FilePositionInfo		= 14;
+	private static final int FileModeInfo			= 16;
+	private static final int FileAlignmentInfo		= 17;
+	private static final int FileAllInfo			= 18;
+	private static final int FileAllocationInfo		= 19;
+	private static final int FileEndOfFileInfo		= 20;
+	private static final int FileAltNameInfo		= 21;
+	private static final int FileStreamInfo			= 22;
+	private static final int FileCompressionInfo	= 28;
+	private static final int FileNetworkOpenInfo	= 34;
+	private static final int FileAttributeTagInfo	= 35;
+	private static final int FileIdBothDirectoryInfo= 37;
+
+	// Filesystem information classes
+
+	private static final int FsVolumeInfo			= 1;
+	private static final int FsSizeInfo				= 3;
+	private static final int FsDeviceInfo			= 4;
+	private static final int FsAttributeInfo		= 5;
+	private static final int FsFullSizeInfo			= 7;
+
+	// Negotiated SMB2 dialect, or zero if not negotiated
+
+	private int m_smb2Dialect;
+
+	// Client security mode, capabilities, GUID and dialects from the SMB2 negotiate request, used to validate
+	// the negotiate. Not set if the dialect was negotiated using an SMB1 negotiate request.
+
+	private int m_clientSecMode;
+	private int m_clientCaps;
+	private byte[] m_clientGUID;
+	private int[] m_clientDialects;
+
+	// Number of credits currently granted to the client, the client has one credit for the initial negotiate
+
+	private int m_credits = 1;
+
+	// Active directory searches, keyed by session id, tree id and file id
+
+	private Hashtable<Long, SearchContext> m_searches = new Hashtable<Long, SearchContext>();
+
+	/**
+	 * Class constructor
+	 *
+	 * @param sess SMBSrvSession
+	 */
+	protected SMB2ProtocolHandler(SMBSrvSession sess) {
+		super(sess);
+	}
+
+	/**
+	 * Return the protocol name
+	 *
+	 * @return String
+	 */
+	public String getName() {
+		return "SMB2";
+	}
+
+	/**
+	 * Return the negotiated SMB2 dialect revision
+	 *
+	 * @return int
+	 */
+	public final int getSMB2Dialect() {
+		return m_smb2Dialect;
+	}
+
+	/**
+	 * Run the SMB2 protocol handler to process the received request chain
+	 *
+	 * @param smbPkt SMBSrvPacket
+	 * @return boolean true if the packet was processed, else false
+	 * @exception IOException
+	 * @exception SMBSrvException
+	 */
+	public boolean runProtocol( SMBSrvPacket smbPkt)
+		throws IOException, SMBSrvException {
+
+		// SMB1 requests are not valid once SMB2 has been negotiated
+
+		if ( smbPkt.isSMB2() == false) {
+
+			// Debug
+
+			if ( Debug.EnableInfo && m_sess.hasDebug(SMBSrvSession.DBG_PKTTYPE))
+				m_sess.debugPrintln("SMB1 request received on SMB2 session, closing session");
+
+			m_sess.hangupSession("SMB1 request on SMB2 session");
+			return true;
+		}
+
+		// Process the request, or compounded requests
+
+		processRequestChain( smbPkt);
+
+		// Run any request post processors
+
+		runRequestPostProcessors( m_sess);
+		return true;
+	}
+
+	/**
+	 * Send an SMB2 negotiate response to an SMB1 multi-protocol negotiate request that offered an SMB2 dialect
+	 *
+	 * @param smbPkt SMBSrvPacket
+	 * @param wildcard boolean
+	 * @exception IOException
+	 */
+	protected final void procMultiProtocolNegotiate( SMBSrvPacket smbPkt, boolean wildcard)
+		throws IOException {
+
+		// Select the dialect, if the client offered the wildcard dialect it will send an SMB2 negotiate next
+
+		int dialect = wildcard ? Dialect.SMB2_Wildcard : Dialect.SMB2_0_2;
+
+		// Allocate the response packet
+
+		int respLen = RFCNetBIOSProtocol.HEADER_LEN + SMB2SrvPacket.HeaderLength + NegotiateRespSize;
+		SMBSrvPacket respPkt = smbPkt;
+
+		if ( respLen > smbPkt.getBuffer().length)
+			respPkt = m_sess.getPacketPool().allocatePacket( respLen, smbPkt, 0);
+
+		// Build the SMB2 negotiate response header
+
+		SMB2SrvPacket resp = new SMB2SrvPacket( respPkt.getBuffer(), RFCNetBIOSProtocol.HEADER_LEN);
+		resp.initHeader( SMB2PacketType.Negotiate);
+		resp.setCredits( 1);
+
+		// Pack the negotiate response
+
+		int bodyLen = packNegotiateResponse( respPkt.getBuffer(), resp.getBodyOffset(), dialect);
+		m_smb2Dialect = dialect;
+
+		// Debug
+
+		if ( Debug.EnableInfo && m_sess.hasDebug(SMBSrvSession.DBG_NEGOTIATE))
+			m_sess.debugPrintln("Negotiated SMB2 dialect (multi-protocol) - " + Dialect.SMB2DialectString(dialect));
+
+		// Send the negotiate response
+
+		m_sess.sendResponseSMB( respPkt, SMB2SrvPacket.HeaderLength + bodyLen);
+	}
+
+	/**
+	 * Map a DOS, server or hardware error code to the equivalent NT status code, SMB2 only returns
+	 * NT status codes
+	 *
+	 * @param errCode int
+	 * @param errClass int
+	 * @return int
+	 */
+	protected static final int mapToNTStatus( int errCode, int errClass) {
+
+		// Check for an NT status code, no mapping required
+
+		if ( errClass == SMBStatus.NTErr)
+			return errCode;
+
+		// Map the error code using the error class
+
+		int ntStatus = SMBStatus.NTAccessDenied;
+
+		switch ( errClass) {
+
+			// DOS error codes
+
+			case SMBStatus.ErrDos:
+				switch ( errCode) {
+					case SMBStatus.DOSInvalidFunc:			ntStatus = SMBStatus.NTNotImplemented;		break;
+					case SMBStatus.DOSFileNotFound:			ntStatus = SMBStatus.NTObjectNotFound;		break;
+					case SMBStatus.DOSDirectoryInvalid:		ntStatus = SMBStatus.NTObjectPathNotFound;	break;
+					case SMBStatus.DOSTooManyOpenFiles:		ntStatus = SMBStatus.NTTooManyOpenFiles;	break;
+					case SMBStatus.DOSInvalidHandle:		ntStatus = SMBStatus.NTInvalidHandle;		break;
+					case SMBStatus.DOSInsufficientMem:		ntStatus = SMBStatus.NTInsufficientResources;	break;
+					case SMBStatus.DOSInvalidData:			ntStatus = SMBStatus.NTInvalidParameter;	break;
+					case SMBStatus.DOSInvalidDrive:			ntStatus = SMBStatus.NTBadDeviceType;		break;
+					case SMBStatus.DOSNoMoreFiles:			ntStatus = SMBStatus.NTNoMoreFiles;			break;
+					case SMBStatus.DOSFileSharingConflict:	ntStatus = SMBStatus.NTSharingViolation;	break;
+					case SMBStatus.DOSLockConflict:			ntStatus = SMBStatus.NTLockConflict;		break;
+					case SMBStatus.DOSFileAlreadyExists:	ntStatus = SMBStatus.NTObjectNameCollision;	break;
+					case SMBStatus.DOSUnknownInfoLevel:		ntStatus = SMBStatus.NTInvalidLevel;		break;
+					case SMBStatus.DOSDirectoryNotEmpty:	ntStatus = SMBStatus.NTDirectoryNotEmpty;	break;
+					case SMBStatus.DOSNotLocked:			ntStatus = SMBStatus.NTRangeNotLocked;		break;
+				}
+				break;
+
+			// Server error codes
+
+			case SMBStatus.ErrSrv:
+				switch ( errCode) {
+					case SMBStatus.SRVBadPassword:			ntStatus = SMBStatus.NTLogonFailure;		break;
+					case SMBStatus.SRVInvalidTID:			ntStatus = SMBStatus.NTNetworkNameDeleted;	break;
+					case SMBStatus.SRVInvalidNetworkName:	ntStatus = SMBStatus.NTBadNetName;			break;
+					case SMBStatus.SRVInvalidDevice:		ntStatus = SMBStatus.NTBadDeviceType;		break;
+					case SMBStatus.SRVUnrecognizedCommand:	ntStatus = SMBStatus.NTNotImplemented;		break;
+					case SMBStatus.SRVInternalServerError:	ntStatus = SMBStatus.NTInsufficientResources;	break;
+					case SMBStatus.SRVNoBuffers:			ntStatus = SMBStatus.NTInsufficientResources;	break;
+					case SMBStatus.SRVNoResourcesAvailable:	ntStatus = SMBStatus.NTInsufficientResources;	break;
+					case SMBStatus.SRVTooManyUIDs:			ntStatus = SMBStatus.NTTooManySessions;		break;
+					case SMBStatus.SRVInvalidUID:			ntStatus = SMBStatus.NTUserSessionDeleted;	break;
+					case SMBStatus.SRVNotSupported:			ntStatus = SMBStatus.NTNotSupported;		break;
+					case SMBStatus.SRVNonSpecificError:		ntStatus = SMBStatus.NTInvalidParameter;	break;
+				}
+				break;
+
+			// Hardware error codes
+
+			case SMBStatus.ErrHrd:
+				switch ( errCode) {
+					case SMBStatus.HRDDriveNotReady:		ntStatus = SMBStatus.NTObjectPathNotFound;	break;
+					case SMBStatus.HRDOpenConflict:			ntStatus = SMBStatus.NTSharingViolation;	break;
+					case SMBStatus.HRDLockConflict:			ntStatus = SMBStatus.NTLockConflict;		break;
+				}
+				break;
+		}
+
+		// Return the NT status code
+
+		return ntStatus;
+	}
+
+	/**
+	 * Send an asynchronous error response for a deferred SMB2 request. The response is built in the
+	 * request buffer and sent immediately.
+	 *
+	 * @param smbPkt SMBSrvPacket
+	 * @param status int
+	 * @return boolean
+	 * @exception IOException
+	 */
+	protected final boolean sendAsyncErrorResponse( SMBSrvPacket smbPkt, int status)
+		throws IOException {
+
+		// Build the error response over the request
+
+		SMB2SrvPacket req = new SMB2SrvPacket( smbPkt.getBuffer(), RFCNetBIOSProtocol.HEADER_LEN);
+		int credits = updateCredits( req.getCreditCharge(), req.getCredits());
+
+		req.initResponse( req);
+		req.setStatus( status);
+		req.setCredits( credits);
+
+		int bodyLen = packErrorResponse( smbPkt.getBuffer(), req.getBodyOffset());
+
+		// Debug
+
+		if ( Debug.EnableInfo && m_sess.hasDebug(SMBSrvSession.DBG_ERROR))
+			m_sess.debugPrintln("Async Error : " + req + " - 0x" + Integer.toHexString( status));
+
+		// Send the error response
+
+		m_sess.sendResponseSMB( smbPkt, SMB2SrvPacket.HeaderLength + bodyLen);
+		return true;
+	}
+
+	/**
+	 * Process a received SMB2 request, or chain of compounded requests, and send the response
+	 *
+	 * @param smbPkt SMBSrvPacket
+	 * @exception IOException
+	 * @exception SMBSrvException
+	 */
+	private final void processRequestChain( SMBSrvPacket smbPkt)
+		throws IOException, SMBSrvException {
+
+		// Validate the request chain and calculate the buffer size required for the responses
+
+		byte[] buf = smbPkt.getBuffer();
+		int rxLen = smbPkt.getReceivedLength();
+
+		int reqPos = RFCNetBIOSProtocol.HEADER_LEN;
+		int reqCnt = 0;
+		int respLen = 0;
+
+		while ( reqPos != -1) {
+
+			// Check that the request header is valid
+
+			SMB2SrvPacket req = new SMB2SrvPacket( buf, reqPos);
+
+			if ( reqPos + SMB2SrvPacket.HeaderLength > rxLen || req.isValidHeader() == false) {
+				m_sess.hangupSession("Invalid SMB2 header");
+				return;
+			}
+
+			// Check the offset to the next request, must be aligned and within the received data
+
+			int nextCmd = req.getNextCommand();
+			int reqLen = nextCmd != 0 ? nextCmd : rxLen - reqPos;
+
+			if ( nextCmd != 0 && (( nextCmd % SMB2SrvPacket.CompoundAlign) != 0 || nextCmd < SMB2SrvPacket.HeaderLength ||
+					reqPos + nextCmd >= rxLen)) {
+				m_sess.hangupSession("Invalid SMB2 compound request");
+				return;
+			}
+
+			// Add the response length, each compounded response is aligned
+
+			respLen = alignOffset( respLen, SMB2SrvPacket.CompoundAlign) + SMB2SrvPacket.HeaderLength +
+					calcResponseLength( req, reqLen);
+
+			// Move to the next request
+
+			reqCnt++;
+			reqPos = nextCmd != 0 ? reqPos + nextCmd : -1;
+		}
+
+		// Allocate the response packet, the response is attached to the request packet and released with it
+
+		SMBSrvPacket respPkt = null;
+		boolean noResources = false;
+
+		try {
+			respPkt = m_sess.getPacketPool().allocatePacket( RFCNetBIOSProtocol.HEADER_LEN + respLen, smbPkt, 0);
+		}
+		catch ( NoPooledMemoryException ex) {
+
+			// Allocate a packet large enough to return an error status for each request
+
+			respPkt = m_sess.getPacketPool().allocatePacket( RFCNetBIOSProtocol.HEADER_LEN + reqCnt * FixedRespSize, smbPkt, 0);
+			noResources = true;
+		}
+
+		// Process the requests
+
+		byte[] respBuf = respPkt.getBuffer();
+
+		reqPos = RFCNetBIOSProtocol.HEADER_LEN;
+		int respPos = RFCNetBIOSProtocol.HEADER_LEN;
+		int respEnd = respPos;
+
+		SMB2SrvPacket prevResp = null;
+
+		// Related request details, from the previous request in the chain
+
+		long relSessId = -1L;
+		int relTreeId = -1;
+		byte[] relFileId = null;
+		int relStatus = SMBStatus.NTSuccess;
+
+		try {
+
+			while ( reqPos != -1) {
+
+				SMB2SrvPacket req = new SMB2SrvPacket( buf, reqPos);
+				int nextCmd = req.getNextCommand();
+				int reqLen = nextCmd != 0 ? nextCmd : rxLen - reqPos;
+
+				// Cancel requests do not get a response
+
+				if ( req.getCommand() == SMB2PacketType.Cancel) {
+
+					// Debug
+
+					if ( Debug.EnableInfo && m_sess.hasDebug(SMBSrvSession.DBG_PKTTYPE))
+						m_sess.debugPrintln("SMB2 cancel " + req + ", ignored");
+
+					reqPos = nextCmd != 0 ? reqPos + nextCmd : -1;
+					continue;
+				}
+
+				// Link the previous response to this response
+
+				if ( prevResp != null) {
+					respPos = alignOffset( respEnd - RFCNetBIOSProtocol.HEADER_LEN, SMB2SrvPacket.CompoundAlign) +
+							RFCNetBIOSProtocol.HEADER_LEN;
+					DataPacker.putZeros( respBuf, respEnd, respPos - respEnd);
+					prevResp.setNextCommand( respPos - prevResp.getHeaderOffset());
+				}
+
+				SMB2SrvPacket resp = new SMB2SrvPacket( respBuf, respPos);
+				int status = SMBStatus.NTSuccess;
+
+				// Use the session, tree and file ids from the previous request for a related request
+
+				if ( req.isRelated()) {
+					if ( prevResp == null)
+						status = SMBStatus.NTInvalidParameter;
+					else if ( relStatus != SMBStatus.NTSuccess)
+						status = relStatus;
+					else {
+						req.setSessionId( relSessId);
+						req.setTreeId( relTreeId);
+
+						int fileIdPos = getFileIdOffset( req.getCommand());
+						if ( fileIdPos != -1 && relFileId != null && req.getBodyOffset() + fileIdPos + 16 <= reqPos + reqLen &&
+								DataPacker.getIntelLong( buf, req.getBodyOffset() + fileIdPos) == -1L)
+							System.arraycopy( relFileId, 0, buf, req.getBodyOffset() + fileIdPos, 16);
+					}
+				}
+
+				// Debug
+
+				if ( Debug.EnableInfo && m_sess.hasDebug(SMBSrvSession.DBG_PKTTYPE))
+					m_sess.debugPrintln("Rx SMB2 " + req);
+
+				// Initialize the response header, and process the request
+
+				resp.initResponse( req);
+				int bodyLen = 0;
+
+				if ( noResources == true)
+					status = SMBStatus.NTInsufficientResources;
+
+				if ( status == SMBStatus.NTSuccess) {
+					try {
+
+						// Process the request
+
+						bodyLen = processRequest( smbPkt, req, reqLen, resp, respBuf.length - resp.getBodyOffset(), reqCnt == 1);
+					}
+					catch ( SMBSrvException ex) {
+
+						// Convert the exception to an NT status code
+
+						status = ex.hasNTErrorCode() ? ex.getNTErrorCode() : mapToNTStatus( ex.getErrorCode(), ex.getErrorClass());
+					}
+				}
+
+				// Build an error response if the request failed
+
+				if ( status != SMBStatus.NTSuccess) {
+					resp.setStatus( status);
+					bodyLen = packErrorResponse( respBuf, resp.getBodyOffset());
+
+					// Debug
+
+					if ( Debug.EnableInfo && m_sess.hasDebug(SMBSrvSession.DBG_ERROR))
+						m_sess.debugPrintln("SMB2 Error : " + req + " - 0x" + Integer.toHexString( status));
+				}
+
+				// Grant credits to the client
+
+				resp.setCredits( updateCredits( req.getCreditCharge(), req.getCredits()));
+
+				// Save the related request details
+
+				relSessId = resp.getSessionId();
+				relTreeId = resp.getTreeId();
+				relStatus = resp.getStatus() < 0 ? resp.getStatus() : SMBStatus.NTSuccess;
+
+				if ( req.getCommand() == SMB2PacketType.Create && status == SMBStatus.NTSuccess) {
+					relFileId = new byte[16];
+					System.arraycopy( respBuf, resp.getBodyOffset() + 64, relFileId, 0, 16);
+				}
+				else if ( getFileIdOffset( req.getCommand()) != -1 && req.getBodyOffset() + getFileIdOffset( req.getCommand()) + 16 <= reqPos + reqLen) {
+					relFileId = new byte[16];
+					System.arraycopy( buf, req.getBodyOffset() + getFileIdOffset( req.getCommand()), relFileId, 0, 16);
+				}
+
+				// Update the response position, move to the next request
+
+				respEnd = resp.getBodyOffset() + bodyLen;
+				prevResp = resp;
+
+				reqPos = nextCmd != 0 ? reqPos + nextCmd : -1;
+			}
+		}
+		catch ( DeferredPacketException ex) {
+
+			// Request has been deferred, release the response packet, the request will be processed again
+
+			smbPkt.setAssociatedPacket( null);
+			m_sess.getPacketPool().releasePacket( respPkt);
+
+			throw ex;
+		}
+
+		// Send the response, if there is one
+
+		if ( prevResp != null)
+			m_sess.sendResponseSMB( respPkt, respEnd - RFCNetBIOSProtocol.HEADER_LEN);
+	}
+
+	/**
+	 * Process a single SMB2 request, return the response body length
+	 *
+	 * @param smbPkt SMBSrvPacket
+	 * @param req SMB2SrvPacket
+	 * @param reqLen int
+	 * @param resp SMB2SrvPacket
+	 * @param maxLen int
+	 * @param canDefer boolean
+	 * @return int
+	 * @exception IOException
+	 * @exception SMBSrvException
+	 */
+	private final int processRequest( SMBSrvPacket smbPkt, SMB2SrvPacket req, int reqLen, SMB2SrvPacket resp, int maxLen, boolean canDefer)
+		throws IOException, SMBSrvException {
+
+		// Only the negotiate request is valid until a dialect has been negotiated
+
+		int cmd = req.getCommand();
+
+		if ( cmd != SMB2PacketType.Negotiate && ( m_smb2Dialect == 0 || m_smb2Dialect == Dialect.SMB2_Wildcard))
+			throw new SMBSrvException( SMBStatus.NTInvalidParameter, SMBStatus.ErrSrv, SMBStatus.SRVNonSpecificError);
+
+		// Check that the request contains the fixed part of the request structure
+
+		if ( reqLen < SMB2SrvPacket.HeaderLength + 2)
+			throw new SMBSrvException( SMBStatus.NTInvalidParameter, SMBStatus.ErrSrv, SMBStatus.SRVNonSpecificError);
+
+		// Set the process id, used for lock ownership checks
+
+		m_sess.setProcessId( req.getProcessId());
+
+		// Process the request
+
+		int bodyLen = 0;
+
+		switch ( cmd) {
+
+			// Negotiate
+
+			case SMB2PacketType.Negotiate:
+				bodyLen = procNegotiate( req, reqLen, resp);
+				break;
+
+			// Session setup
+
+			case SMB2PacketType.SessionSetup:
+				bodyLen = procSessionSetup( req, reqLen, resp, maxLen);
+				break;
+
+			// Logoff
+
+			case SMB2PacketType.Logoff:
+				bodyLen = procLogoff( req, resp);
+				break;
+
+			// Tree connect
+
+			case SMB2PacketType.TreeConnect:
+				bodyLen = procTreeConnect( req, reqLen, resp);
+				break;
+
+			// Tree disconnect
+
+			case SMB2PacketType.TreeDisconnect:
+				bodyLen = procTreeDisconnect( req, resp);
+				break;
+
+			// Create/open file
+
+			case SMB2PacketType.Create:
+				bodyLen = procCreate( smbPkt, req, reqLen, resp, canDefer);
+				break;
+
+			// Close file
+
+			case SMB2PacketType.Close:
+				bodyLen = procClose( req, reqLen, resp);
+				break;
+
+			// Flush file
+
+			case SMB2PacketType.Flush:
+				bodyLen = procFlush( req, reqLen, resp);
+				break;
+
+			// Read file
+
+			case SMB2PacketType.Read:
+				bodyLen = procRead( req, reqLen, resp, maxLen);
+				break;
+
+			// Write file
+
+			case SMB2PacketType.Write:
+				bodyLen = procWrite( req, reqLen, resp);
+				break;
+
+			// Echo
+
+			case SMB2PacketType.Echo:
+				bodyLen = packSimpleResponse( resp);
+				break;
+
+			// Query directory
+
+			case SMB2PacketType.QueryDirectory:
+				bodyLen = procQueryDirectory( req, reqLen, resp, maxLen);
+				break;
+
+			// Query information
+
+			case SMB2PacketType.QueryInfo:
+				bodyLen = procQueryInfo( req, reqLen, resp, maxLen);
+				break;
+
+			// Set information
+
+			case SMB2PacketType.SetInfo:
+				bodyLen = procSetInfo( req, reqLen, resp);
+				break;
+
+			// Byte range lock/unlock
+
+			case SMB2PacketType.Lock:
+				bodyLen = procLock( req, reqLen, resp);
+				break;
+
+			// IOCTL/FSCTL
+
+			case SMB2PacketType.IOCtl:
+				bodyLen = procIOCtl( req, reqLen, resp);
+				break;
+
+			// Change notifications and oplock breaks are not supported
+
+			default:
+				throw new SMBSrvException( SMBStatus.NTNotSupported, SMBStatus.ErrSrv, SMBStatus.SRVNotSupported);
+		}
+
+		// Return the response body length
+
+		return bodyLen;
+	}
+
+	/**
+	 * Process an SMB2 negotiate request
+	 *
+	 * @param req SMB2SrvPacket
+	 * @param reqLen int
+	 * @param resp SMB2SrvPacket
+	 * @return int
+	 * @exception SMBSrvException
+	 */
+	private final int procNegotiate( SMB2SrvPacket req, int reqLen, SMB2SrvPacket resp)
+		throws SMBSrvException {
+
+		// The dialect cannot be changed once negotiated
+
+		if ( m_smb2Dialect != 0 && m_smb2Dialect != Dialect.SMB2_Wildcard) {
+			m_sess.hangupSession("Repeated SMB2 negotiate");
+			throw new SMBSrvException( SMBStatus.NTInvalidParameter, SMBStatus.ErrSrv, SMBStatus.SRVNonSpecificError);
+		}
+
+		// Find the highest dialect supported by the client and server
+
+		byte[] buf = req.getBuffer();
+		int pos = req.getBodyOffset();
+
+		int diaCnt = DataPacker.getIntelShort( buf, pos + 2);
+		int diaPos = pos + 36;
+
+		if ( diaCnt == 0 || diaPos + diaCnt * 2 > req.getHeaderOffset() + reqLen)
+			throw new SMBSrvException( SMBStatus.NTInvalidParameter, SMBStatus.ErrSrv, SMBStatus.SRVNonSpecificError);
+
+		int[] dialects = new int[diaCnt];
+
+		for ( int i = 0; i < diaCnt; i++)
+			dialects[i] = DataPacker.getIntelShort( buf, diaPos + i * 2);
+
+		int dialect = selectDialect( dialects);
+
+		// Save the client details, used to validate the negotiate
+
+		m_clientSecMode = DataPacker.getIntelShort( buf, pos + 4);
+		m_clientCaps = DataPacker.getIntelInt( buf, pos + 8);
+		m_clientGUID = new byte[16];
+		System.arraycopy( buf, pos + 12, m_clientGUID, 0, 16);
+		m_clientDialects = dialects;
+
+		// Debug
+
+		if ( Debug.EnableInfo && m_sess.hasDebug(SMBSrvSession.DBG_NEGOTIATE)) {
+			if ( dialect == 0)
+				m_sess.debugPrintln("Failed to negotiate SMB2 dialect");
+			else
+				m_sess.debugPrintln("Negotiated SMB2 dialect - " + Dialect.SMB2DialectString( dialect));
+		}
+
+		// Check if a dialect was selected
+
+		if ( dialect == 0)
+			throw new SMBSrvException( SMBStatus.NTNotSupported, SMBStatus.ErrSrv, SMBStatus.SRVNotSupported);
+
+		m_smb2Dialect = dialect;
+
+		// Pack the negotiate response
+
+		return packNegotiateResponse( resp.getBuffer(), resp.getBodyOffset(), dialect);
+	}
+
+	/**
+	 * Select the highest dialect supported by the client and server, or zero if there is no common dialect
+	 *
+	 * @param dialects int[]
+	 * @return int
+	 */
+	private static final int selectDialect( int[] dialects) {
+		int dialect = 0;
+
+		for ( int i = 0; i < dialects.length; i++) {
+			int diaRev = dialects[i];
+			if (( diaRev == Dialect.SMB2_0_2 || diaRev == Dialect.SMB2_1) && diaRev > dialect)
+				dialect = diaRev;
+		}
+
+		return dialect;
+	}
+
+	/**
+	 * Process an SMB2 session setup request
+	 *
+	 * @param req SMB2SrvPacket
+	 * @param reqLen int
+	 * @param resp SMB2SrvPacket
+	 * @param maxLen int
+	 * @return int
+	 * @exception SMBSrvException
+	 */
+	private final int procSessionSetup( SMB2SrvPacket req, int reqLen, SMB2SrvPacket resp, int maxLen)
+		throws SMBSrvException {
+
+		// Get the security blob
+
+		byte[] buf = req.getBuffer();
+		int pos = req.getBodyOffset();
+
+		int secPos = req.getHeaderOffset() + DataPacker.getIntelShort( buf, pos + 12);
+		int secLen = DataPacker.getIntelShort( buf, pos + 14);
+
+		checkRequestData( req, reqLen, secPos, secLen);
+
+		// Find the existing session, or create a new session for the first session setup request
+
+		VirtualCircuit vc = null;
+		long sessId = req.getSessionId();
+
+		if ( sessId != 0L) {
+
+			// Find the existing session
+
+			vc = m_sess.findVirtualCircuit(( int) sessId);
+			if ( vc == null || vc.getUID() != sessId)
+				throw new SMBSrvException( SMBStatus.NTUserSessionDeleted, SMBStatus.ErrSrv, SMBStatus.SRVInvalidUID);
+		}
+		else {
+
+			// Create the client information for the new session
+
+			ClientInfo client = ClientInfo.createInfo(null, null);
+			client.setLogonType( ClientInfo.LogonNormal);
+
+			if ( m_sess.hasRemoteAddress())
+				client.setClientAddress( m_sess.getRemoteAddress().getHostAddress());
+
+			// Allocate a virtual circuit for the session, the UID is used as the session id
+
+			vc = new VirtualCircuit( 0, client);
+			int uid = m_sess.addVirtualCircuit( vc);
+
+			if ( uid == VirtualCircuit.InvalidUID)
+				throw new SMBSrvException( SMBStatus.NTTooManySessions, SMBStatus.ErrSrv, SMBStatus.SRVTooManyUIDs);
+
+			// Use the session id as the process id, multi-stage logon state is stored by process id
+
+			client.setProcessId( uid);
+			resp.setSessionId( uid);
+
+			// Debug
+
+			if ( Debug.EnableInfo && m_sess.hasDebug(SMBSrvSession.DBG_NEGOTIATE))
+				m_sess.debugPrintln("Allocated SMB2 session id " + uid + " for " + vc);
+		}
+
+		// Process the security blob
+
+		ClientInfo client = vc.getClientInformation();
+		CifsAuthenticator auth = (CifsAuthenticator) m_sess.getSMBServer().getCifsAuthenticator();
+		byte[] respBlob = null;
+
+		try {
+			respBlob = auth.processSecurityBlob( m_sess, client, buf, secPos, secLen);
+		}
+		catch ( SMBSrvException ex) {
+
+			// Remove the session if the logon failed
+
+			if ( vc.isLoggedOn() == false)
+				m_sess.removeVirtualCircuit( vc.getUID());
+
+			// Debug
+
+			if ( Debug.EnableInfo && m_sess.hasDebug(SMBSrvSession.DBG_NEGOTIATE))
+				m_sess.debugPrintln("SMB2 session setup failed, " + ex.getMessage());
+
+			throw ex;
+		}
+
+		// Check if the logon has completed, multi-stage logons store a setup object in the session
+
+		int respBlobLen = respBlob != null ? respBlob.length : 0;
+
+		if ( respBlobLen + 8 > maxLen)
+			throw new SMBSrvException( SMBStatus.NTInsufficientResources, SMBStatus.ErrSrv, SMBStatus.SRVNoBuffers);
+
+		if ( m_sess.hasSetupObject( client.getProcessId()))
+			resp.setStatus( SMBStatus.NTMoreProcessingRequired);
+		else {
+
+			// Indicate that the session is logged on
+
+			vc.setLoggedOn( true);
+			m_sess.setClientInformation( client);
+
+			// Debug
+
+			if ( Debug.EnableInfo && m_sess.hasDebug(SMBSrvSession.DBG_NEGOTIATE))
+				m_sess.debugPrintln("SMB2 session " + vc.getUID() + " logged on, user=" + client.getUserName() + ", type=" + client.getLogonTypeString());
+		}
+
+		// Build the session setup response
+
+		byte[] respBuf = resp.getBuffer();
+		pos = resp.getBodyOffset();
+
+		int flags = 0;
+		if ( client.isNullSession())
+			flags = SessionFlagNull;
+		else if ( client.isGuest())
+			flags = SessionFlagGuest;
+
+		DataPacker.putIntelShort( 9, respBuf, pos);
+		DataPacker.putIntelShort( resp.getStatus() == SMBStatus.NTSuccess ? flags : 0, respBuf, pos + 2);
+		DataPacker.putIntelShort( SMB2SrvPacket.HeaderLength + 8, respBuf, pos + 4);
+		DataPacker.putIntelShort( respBlobLen, respBuf, pos + 6);
+
+		if ( respBlobLen > 0)
+			System.arraycopy( respBlob, 0, respBuf, pos + 8, respBlobLen);
+		else
+			respBuf[pos + 8] = 0;
+
+		return respBlobLen > 0 ? 8 + respBlobLen : 9;
+	}
+
+	/**
+	 * Process an SMB2 logoff request
+	 *
+	 * @param req SMB2SrvPacket
+	 * @param resp SMB2SrvPacket
+	 * @return int
+	 * @exception SMBSrvException
+	 */
+	private final int procLogoff( SMB2SrvPacket req, SMB2SrvPacket resp)
+		throws SMBSrvException {
+
+		// Get the session
+
+		VirtualCircuit vc = getVirtualCircuit( req);
+
+		// Debug
+
+		if ( Debug.EnableInfo && m_sess.hasDebug(SMBSrvSession.DBG_NEGOTIATE))
+			m_sess.debugPrintln("SMB2 logoff session " + vc.getUID());
+
+		// Close any active searches for the session, then close the session
+
+		closeSearches( vc.getUID(), -1);
+
+		vc.setLoggedOn( false);
+		m_sess.removeVirtualCircuit( vc.getUID());
+
+		return packSimpleResponse( resp);
+	}
+
+	/**
+	 * Process an SMB2 tree connect request
+	 *
+	 * @param req SMB2SrvPacket
+	 * @param reqLen int
+	 * @param resp SMB2SrvPacket
+	 * @return int
+	 * @exception SMBSrvException
+	 */
+	private final int procTreeConnect( SMB2SrvPacket req, int reqLen, SMB2SrvPacket resp)
+		throws SMBSrvException {
+
+		// Get the session
+
+		VirtualCircuit vc = getVirtualCircuit( req);
+
+		// Get the share path
+
+		byte[] buf = req.getBuffer();
+		int pos = req.getBodyOffset();
+
+		int pathPos = req.getHeaderOffset() + DataPacker.getIntelShort( buf, pos + 4);
+		int pathLen = DataPacker.getIntelShort( buf, pos + 6);
+
+		checkRequestData( req, reqLen, pathPos, pathLen);
+
+		String uncPath = DataPacker.getUnicodeString( buf, pathPos, pathLen / 2);
+
+		// Debug
+
+		if ( Debug.EnableInfo && m_sess.hasDebug(SMBSrvSession.DBG_TREE))
+			m_sess.debugPrintln("SMB2 Tree Connect - " + uncPath);
+
+		// Parse the requested share name
+
+		String shareName = null;
+		String hostName = null;
+
+		try {
+			PCShare share = new PCShare( uncPath);
+			shareName = share.getShareName();
+			hostName = share.getNodeName();
+			m_sess.setShareHostName( hostName);
+		}
+		catch ( InvalidUNCPathException ex) {
+			throw new SMBSrvException( SMBStatus.NTBadNetName, SMBStatus.ErrSrv, SMBStatus.SRVInvalidNetworkName);
+		}
+
+		// Map the IPC$ share to the admin pipe type
+
+		int servType = ShareType.UNKNOWN;
+		if ( shareName.compareTo("IPC$") == 0)
+			servType = ShareType.ADMINPIPE;
+
+		// Check if the session is a null session, only allow access to the IPC$ named pipe share
+
+		ClientInfo client = vc.getClientInformation();
+
+		if ( client.isNullSession() && servType != ShareType.ADMINPIPE)
+			throw new SMBSrvException( SMBStatus.NTAccessDenied, SMBStatus.ErrDos, SMBStatus.DOSAccessDenied);
+
+		// Find the requested shared device
+
+		SharedDevice shareDev = null;
+
+		try {
+			shareDev = m_sess.getSMBServer().findShare( hostName, shareName, servType, m_sess, true);
+		}
+		catch ( InvalidUserException ex) {
+			throw new SMBSrvException( SMBStatus.NTLogonFailure, SMBStatus.ErrDos, SMBStatus.DOSAccessDenied);
+		}
+		catch ( Exception ex) {
+			throw new SMBSrvException( SMBStatus.NTBadNetName, SMBStatus.ErrSrv, SMBStatus.SRVInvalidNetworkName);
+		}
+
+		if ( shareDev == null || ( servType != ShareType.UNKNOWN && shareDev.getType() != servType))
+			throw new SMBSrvException( SMBStatus.NTBadNetName, SMBStatus.ErrSrv, SMBStatus.SRVInvalidNetworkName);
+
+		// Authenticate the share connection
+
+		ICifsAuthenticator auth = m_sess.getSMBServer().getCifsAuthenticator();
+		int sharePerm = FileAccess.Writeable;
+
+		if ( auth != null) {
+			sharePerm = auth.authenticateShareConnect( client, shareDev, null, m_sess);
+			if ( sharePerm < 0)
+				throw new SMBSrvException( SMBStatus.NTAccessDenied, SMBStatus.ErrDos, SMBStatus.DOSAccessDenied);
+		}
+
+		// Run any access controls on the share
+
+		if ( m_sess.getServer().hasAccessControlManager() && shareDev.hasAccessControls()) {
+
+			AccessControlManager aclMgr = m_sess.getServer().getAccessControlManager();
+			int aclPerm = aclMgr.checkAccessControl( m_sess, shareDev);
+
+			if ( aclPerm == FileAccess.NoAccess)
+				throw new SMBSrvException( SMBStatus.NTAccessDenied, SMBStatus.ErrDos, SMBStatus.DOSAccessDenied);
+
+			if ( aclPerm != AccessControl.Default)
+				sharePerm = aclPerm;
+		}
+
+		// Allocate a tree id for the new connection
+
+		int treeId = -1;
+
+		try {
+			treeId = vc.addConnection( shareDev);
+		}
+		catch ( TooManyConnectionsException ex) {
+			throw new SMBSrvException( SMBStatus.NTInsufficientResources, SMBStatus.ErrSrv, SMBStatus.SRVNoResourcesAvailable);
+		}
+
+		TreeConnection tree = vc.findConnection( treeId);
+		tree.setPermission( sharePerm);
+
+		resp.setTreeId( treeId);
+
+		// Debug
+
+		if ( Debug.EnableInfo && m_sess.hasDebug(SMBSrvSession.DBG_TREE))
+			m_sess.debugPrintln("SMB2 Tree Connect - Allocated Tree Id = " + treeId + ", Permission = " + FileAccess.asString( sharePerm));
+
+		// Build the tree connect response
+
+		byte[] respBuf = resp.getBuffer();
+		pos = resp.getBodyOffset();
+
+		int shareType = ShareTypeDisk;
+		if ( shareDev.getType() == ShareType.ADMINPIPE)
+			shareType = ShareTypePipe;
+		else if ( shareDev.getType() == ShareType.PRINTER)
+			shareType = ShareTypePrint;
+
+		DataPacker.putIntelShort( 16, respBuf, pos);
+		respBuf[pos + 2] = (byte) shareType;
+		respBuf[pos + 3] = 0;
+		DataPacker.putIntelInt( 0, respBuf, pos + 4);		// share flags, manual caching
+		DataPacker.putIntelInt( 0, respBuf, pos + 8);		// capabilities
+		DataPacker.putIntelInt( sharePerm == FileAccess.Writeable ? AccessMode.NTFileGenericAll : AccessMode.NTFileGenericRead, respBuf, pos + 12);
+
+		return 16;
+	}
+
+	/**
+	 * Process an SMB2 tree disconnect request
+	 *
+	 * @param req SMB2SrvPacket
+	 * @param resp SMB2SrvPacket
+	 * @return int
+	 * @exception SMBSrvException
+	 */
+	private final int procTreeDisconnect( SMB2SrvPacket req, SMB2SrvPacket resp)
+		throws SMBSrvException {
+
+		// Get the session and tree connection
+
+		VirtualCircuit vc = getVirtualCircuit( req);
+		TreeConnection conn = getTreeConnection( vc, req);
+
+		// Debug
+
+		if ( Debug.EnableInfo && m_sess.hasDebug(SMBSrvSession.DBG_TREE))
+			m_sess.debugPrintln("SMB2 Tree Disconnect - " + req.getTreeId() + ", " + conn.toString());
+
+		// Close any active searches on the tree connection, then close the tree connection
+
+		closeSearches( vc.getUID(), req.getTreeId());
+		vc.removeConnection( req.getTreeId(), m_sess);
+
+		return packSimpleResponse( resp);
+	}
+
+	/**
+	 * Process an SMB2 create request
+	 *
+	 * @param smbPkt SMBSrvPacket
+	 * @param req SMB2SrvPacket
+	 * @param reqLen int
+	 * @param resp SMB2SrvPacket
+	 * @param canDefer boolean
+	 * @return int
+	 * @exception SMBSrvException
+	 * @exception DeferredPacketException
+	 */
+	private final int procCreate( SMBSrvPacket smbPkt, SMB2SrvPacket req, int reqLen, SMB2SrvPacket resp, boolean canDefer)
+		throws SMBSrvException, DeferredPacketException {
+
+		// Get the session and tree connection
+
+		VirtualCircuit vc = getVirtualCircuit( req);
+		TreeConnection conn = getTreeConnection( vc, req);
+
+		if ( conn.hasReadAccess() == false)
+			throw new SMBSrvException( SMBStatus.NTAccessDenied, SMBStatus.ErrDos, SMBStatus.DOSAccessDenied);
+
+		DiskInterface disk = getDiskInterface( conn);
+
+		// Unpack the create request
+
+		byte[] buf = req.getBuffer();
+		int pos = req.getBodyOffset();
+
+		int secFlags = buf[pos + 2] & 0xFF;
+		int impersonLev = DataPacker.getIntelInt( buf, pos + 4);
+		int accessMask = DataPacker.getIntelInt( buf, pos + 24);
+		int attrib = DataPacker.getIntelInt( buf, pos + 28);
+		int shrAccess = DataPacker.getIntelInt( buf, pos + 32);
+		int createDisp = DataPacker.getIntelInt( buf, pos + 36);
+		int createOptn = DataPacker.getIntelInt( buf, pos + 40);
+
+		int namePos = req.getHeaderOffset() + DataPacker.getIntelShort( buf, pos + 44);
+		int nameLen = DataPacker.getIntelShort( buf, pos + 46);
+
+		String fileName = FileName.DOS_SEPERATOR_STR;
+
+		if ( nameLen > 0) {
+			checkRequestData( req, reqLen, namePos, nameLen);
+			fileName = DataPacker.getUnicodeString( buf, namePos, nameLen / 2);
+			if ( fileName == null)
+				throw new SMBSrvException( SMBStatus.NTInvalidParameter, SMBStatus.ErrSrv, SMBStatus.SRVNonSpecificError);
+
+			if ( fileName.startsWith( FileName.DOS_SEPERATOR_STR) == false)
+				fileName = FileName.DOS_SEPERATOR_STR + fileName;
+		}
+
+		// Check for a stream name, the filesystem must support NTFS streams
+
+		if ( fileName.indexOf( FileOpenParams.StreamSeparator) != -1) {
+
+			boolean streams = false;
+
+			if ( disk instanceof NTFSStreamsInterface) {
+				NTFSStreamsInterface ntfsStreams = (NTFSStreamsInterface) disk;
+				streams = ntfsStreams.hasStreamsEnabled( m_sess, conn);
+			}
+
+			if ( streams == false)
+				throw new SMBSrvException( SMBStatus.NTObjectNameInvalid, SMBStatus.ErrDos, SMBStatus.DOSFileNotFound);
+		}
+
+		// Create the file open parameters
+
+		FileOpenParams params = new FileOpenParams( fileName, createDisp, accessMask, attrib, shrAccess, 0L, createOptn,
+				0, impersonLev, secFlags, req.getProcessId());
+
+		params.setTreeId( req.getTreeId());
+		params.setSession( m_sess);
+
+		// Debug
+
+		if ( Debug.EnableInfo && m_sess.hasDebug(SMBSrvSession.DBG_FILE))
+			m_sess.debugPrintln("SMB2 Create [" + req.getTreeId() + "] params=" + params);
+
+		// Check if the file name is valid
+
+		if ( isValidPath( params.getPath()) == false)
+			throw new SMBSrvException( SMBStatus.NTObjectNameInvalid, SMBStatus.ErrDos, SMBStatus.DOSInvalidData);
+
+		// Open or create the file
+
+		NetworkFile netFile = null;
+		int respAction = CreateActionOpened;
+		int fid = -1;
+
+		try {
+
+			// Check if the requested file already exists
+
+			int fileSts = disk.fileExists( m_sess, conn, params.getFullPath());
+
+			if ( params.isDirectory() == false && fileSts == FileStatus.DirectoryExists)
+				params.setCreateOption( WinNT.CreateDirectory);
+
+			if ( fileSts == FileStatus.NotExist) {
+
+				// Check if the file should be created
+
+				if ( createDisp != FileAction.NTCreate && createDisp != FileAction.NTOpenIf &&
+						createDisp != FileAction.NTOverwriteIf && createDisp != FileAction.NTSupersede)
+					throw new SMBSrvException( SMBStatus.NTObjectNotFound, SMBStatus.ErrDos, SMBStatus.DOSFileNotFound);
+
+				if ( conn.hasWriteAccess() == false)
+					throw new SMBSrvException( SMBStatus.NTAccessDenied, SMBStatus.ErrDos, SMBStatus.DOSAccessDenied);
+
+				// Create a new file or directory
+
+				if ( ( createOptn & WinNT.CreateDirectory) == 0)
+					netFile = disk.createFile( m_sess, conn, params);
+				else {
+					disk.createDirectory( m_sess, conn, params);
+					netFile = disk.openFile( m_sess, conn, params);
+				}
+
+				respAction = CreateActionCreated;
+			}
+			else if ( createDisp == FileAction.NTCreate) {
+
+				// File or directory already exists
+
+				throw new SMBSrvException( SMBStatus.NTObjectNameCollision, SMBStatus.ErrDos, SMBStatus.DOSFileAlreadyExists);
+			}
+			else {
+
+				// Check if the open should be a file, not a directory
+
+				if (( createOptn & WinNT.CreateNonDirectory) != 0 && fileSts == FileStatus.DirectoryExists)
+					throw new SMBSrvException( SMBStatus.NTFileIsADirectory, SMBStatus.ErrDos, SMBStatus.DOSAccessDenied);
+
+				// Check for an oplock on the file, the request can only be deferred if it is not part of a compound request
+
+				if ( canDefer)
+					checkOpLock( m_sess, smbPkt, disk, params, conn);
+				else if ( hasExclusiveOpLock( disk, conn, params))
+					throw new SMBSrvException( SMBStatus.NTSharingViolation, SMBStatus.ErrDos, SMBStatus.DOSFileSharingConflict);
+
+				// Open the file/directory
+
+				netFile = disk.openFile( m_sess, conn, params);
+
+				// Check if the file should be truncated
+
+				if ( createDisp == FileAction.NTSupersede || createDisp == FileAction.NTOverwriteIf || createDisp == FileAction.NTOverwrite) {
+					disk.truncateFile( m_sess, conn, netFile, 0L);
+					respAction = CreateActionOverwritten;
+				}
+			}
+
+			// Check if the delete on close option is set
+
+			if ( netFile != null && ( createOptn & WinNT.CreateDeleteOnClose) != 0)
+				netFile.setDeleteOnClose( true);
+
+			// Add the file to the list of open files for this tree connection
+
+			fid = conn.addFile( netFile, m_sess);
+		}
+		catch ( TooManyFilesException ex) {
+			throw new SMBSrvException( SMBStatus.NTTooManyOpenFiles, SMBStatus.ErrDos, SMBStatus.DOSTooManyOpenFiles);
+		}
+		catch ( AccessDeniedException ex) {
+			throw new SMBSrvException( SMBStatus.NTAccessDenied, SMBStatus.ErrDos, SMBStatus.DOSAccessDenied);
+		}
+		catch ( FileExistsException ex) {
+			throw new SMBSrvException( SMBStatus.NTObjectNameCollision, SMBStatus.ErrDos, SMBStatus.DOSFileAlreadyExists);
+		}
+		catch ( FileSharingException ex) {
+			throw new SMBSrvException( SMBStatus.NTSharingViolation, SMBStatus.ErrDos, SMBStatus.DOSFileSharingConflict);
+		}
+		catch ( FileOfflineException ex) {
+			throw new SMBSrvException( SMBStatus.NTFileOffline, SMBStatus.ErrHrd, SMBStatus.HRDDriveNotReady);
+		}
+		catch ( FileNameException ex) {
+			throw new SMBSrvException( SMBStatus.NTObjectNameInvalid, SMBStatus.ErrDos, SMBStatus.DOSInvalidFormat);
+		}
+		catch ( DiskOfflineException ex) {
+			throw new SMBSrvException( SMBStatus.NTObjectPathNotFound, SMBStatus.ErrHrd, SMBStatus.HRDDriveNotReady);
+		}
+		catch ( DiskFullException ex) {
+			throw new SMBSrvException( SMBStatus.NTDiskFull, SMBStatus.ErrHrd, SMBStatus.HRDWriteFault);
+		}
+		catch ( DeferredPacketException ex) {
+
+			// Oplock break in progress, rethrow the exception
+
+			throw ex;
+		}
+		catch ( PathNotFoundException ex) {
+			throw new SMBSrvException( SMBStatus.NTObjectPathNotFound, SMBStatus.ErrDos, SMBStatus.DOSDirectoryInvalid);
+		}
+		catch ( IOException ex) {
+			throw new SMBSrvException( SMBStatus.NTObjectNotFound, SMBStatus.ErrDos, SMBStatus.DOSFileNotFound);
+		}
+
+		// Debug
+
+		if ( Debug.EnableInfo && m_sess.hasDebug(SMBSrvSession.DBG_FILE))
+			m_sess.debugPrintln("  [" + req.getTreeId() + "] name=" + fileName + " fid=" + fid + ", fileId=" + netFile.getFileId() + ", action=" + respAction);
+
+		// Build the create response, oplocks/leases are not granted to SMB2 clients
+
+		byte[] respBuf = resp.getBuffer();
+		pos = resp.getBodyOffset();
+
+		DataPacker.putIntelShort( 89, respBuf, pos);
+		respBuf[pos + 2] = (byte) OpLock.TypeNone;
+		respBuf[pos + 3] = 0;
+		DataPacker.putIntelInt( respAction, respBuf, pos + 4);
+
+		packFileTimesAndSizes( netFile, respBuf, pos + 8);
+		DataPacker.putIntelInt( netFile.getFileAttributes(), respBuf, pos + 56);
+		DataPacker.putIntelInt( 0, respBuf, pos + 60);
+
+		packFileId( respBuf, pos + 64, fid, req.getTreeId());
+
+		DataPacker.putIntelInt( 0, respBuf, pos + 80);	// create contexts offset
+		DataPacker.putIntelInt( 0, respBuf, pos + 84);	// create contexts length
+		respBuf[pos + 88] = 0;
+
+		// Check if there are any file/directory change notify requests active
+
+		DiskDeviceContext diskCtx = (DiskDeviceContext) conn.getContext();
+		if ( diskCtx.hasFileServerNotifications() && respAction == CreateActionCreated) {
+			if ( netFile.isDirectory())
+				diskCtx.getChangeHandler().notifyDirectoryChanged( NotifyChange.ActionAdded, params.getPath());
+			else
+				diskCtx.getChangeHandler().notifyFileChanged( NotifyChange.ActionAdded, params.getPath());
+		}
+
+		return 89;
+	}
+
+	/**
+	 * Process an SMB2 close request
+	 *
+	 * @param req SMB2SrvPacket
+	 * @param reqLen int
+	 * @param resp SMB2SrvPacket
+	 * @return int
+	 * @exception SMBSrvException
+	 */
+	private final int procClose( SMB2SrvPacket req, int reqLen, SMB2SrvPacket resp)
+		throws SMBSrvException {
+
+		// Get the session, tree connection and file
+
+		VirtualCircuit vc = getVirtualCircuit( req);
+		TreeConnection conn = getTreeConnection( vc, req);
+
+		checkRequestData( req, reqLen, req.getBodyOffset(), 24);
+
+		int flags = DataPacker.getIntelShort( req.getBuffer(), req.getBodyOffset() + 2);
+		NetworkFile netFile = getNetworkFile( conn, req, req.getBodyOffset() + 8);
+		int fid = getFileId( req.getBuffer(), req.getBodyOffset() + 8);
+
+		// Debug
+
+		if ( Debug.EnableInfo && m_sess.hasDebug(SMBSrvSession.DBG_FILE))
+			m_sess.debugPrintln("SMB2 Close [" + req.getTreeId() + "] fid=" + fid + ", fileId=" + netFile.getFileId());
+
+		// Close any active search using the file
+
+		SearchContext ctx = m_searches.remove( getSearchKey( vc.getUID(), req.getTreeId(), fid));
+		if ( ctx != null)
+			ctx.closeSearch();
+
+		// Close the file
+
+		boolean delayedClose = false;
+
+		try {
+
+			DiskInterface disk = (DiskInterface) conn.getSharedDevice().getInterface();
+
+			if ( disk != null) {
+
+				// Close the file
+
+				disk.closeFile( m_sess, conn, netFile);
+
+				// Release any byte range locks that are on the file
+
+				if ( netFile.hasLocks() && disk instanceof FileLockingInterface) {
+					FileLockingInterface flIface = (FileLockingInterface) disk;
+					LockManager lockMgr = flIface.getLockManager( m_sess, conn);
+					lockMgr.releaseLocksForFile( m_sess, conn, netFile);
+				}
+
+				// Check if the file close has been delayed by the filesystem driver
+
+				if ( netFile.hasDelayedClose()) {
+					delayedClose = true;
+					netFile.setDelayedClose( false);
+				}
+			}
+
+			// Indicate that the file has been closed
+
+			if ( delayedClose == false)
+				netFile.setClosed( true);
+		}
+		catch ( InvalidDeviceInterfaceException ex) {
+			throw new SMBSrvException( SMBStatus.NTInvalidParameter, SMBStatus.ErrDos, SMBStatus.DOSInvalidData);
+		}
+		catch ( AccessDeniedException ex) {
+			throw new SMBSrvException( SMBStatus.NTAccessDenied, SMBStatus.ErrDos, SMBStatus.DOSAccessDenied);
+		}
+		catch ( Throwable t) {
+		}
+
+		// Remove the file from the connections list of open files
+
+		if ( delayedClose == false)
+			conn.removeFile( fid, m_sess);
+
+		// Build the close response, return the file attributes if requested
+
+		byte[] respBuf = resp.getBuffer();
+		int pos = resp.getBodyOffset();
+
+		DataPacker.putIntelShort( 60, respBuf, pos);
+
+		if (( flags & ClosePostQueryAttrib) != 0) {
+			DataPacker.putIntelShort( ClosePostQueryAttrib, respBuf, pos + 2);
+			DataPacker.putIntelInt( 0, respBuf, pos + 4);
+			packFileTimesAndSizes( netFile, respBuf, pos + 8);
+			DataPacker.putIntelInt( netFile.getFileAttributes(), respBuf, pos + 56);
+		}
+		else
+			DataPacker.putZeros( respBuf, pos + 2, 58);
+
+		// Check if there are any file/directory change notify requests active
+
+		DiskDeviceContext diskCtx = (DiskDeviceContext) conn.getContext();
+		if ( netFile.getWriteCount() > 0 && diskCtx.hasFileServerNotifications())
+			diskCtx.getChangeHandler().notifyFileSizeChanged( netFile.getFullName());
+
+		if ( netFile.hasDeleteOnClose() && diskCtx.hasFileServerNotifications())
+			diskCtx.getChangeHandler().notifyFileChanged( NotifyChange.ActionRemoved, netFile.getFullName());
+
+		return 60;
+	}
+
+	/**
+	 * Process an SMB2 flush request
+	 *
+	 * @param req SMB2SrvPacket
+	 * @param reqLen int
+	 * @param resp SMB2SrvPacket
+	 * @return int
+	 * @exception SMBSrvException
+	 */
+	private final int procFlush( SMB2SrvPacket req, int reqLen, SMB2SrvPacket resp)
+		throws SMBSrvException {
+
+		// Get the session, tree connection and file
+
+		VirtualCircuit vc = getVirtualCircuit( req);
+		TreeConnection conn = getTreeConnection( vc, req);
+
+		checkRequestData( req, reqLen, req.getBodyOffset(), 24);
+		NetworkFile netFile = getNetworkFile( conn, req, req.getBodyOffset() + 8);
+
+		// Flush the file
+
+		try {
+			DiskInterface disk = getDiskInterface( conn);
+			disk.flushFile( m_sess, conn, netFile);
+		}
+		catch ( DiskFullException ex) {
+			throw new SMBSrvException( SMBStatus.NTDiskFull, SMBStatus.ErrHrd, SMBStatus.HRDWriteFault);
+		}
+		catch ( IOException ex) {
+			throw new SMBSrvException( SMBStatus.NTAccessDenied, SMBStatus.ErrHrd, SMBStatus.HRDWriteFault);
+		}
+
+		return packSimpleResponse( resp);
+	}
+
+	/**
+	 * Process an SMB2 IOCTL request, only the validate negotiate information FSCTL is supported
+	 *
+	 * @param req SMB2SrvPacket
+	 * @param reqLen int
+	 * @param resp SMB2SrvPacket
+	 * @return int
+	 * @exception SMBSrvException
+	 */
+	private final int procIOCtl( SMB2SrvPacket req, int reqLen, SMB2SrvPacket resp)
+		throws SMBSrvException {
+
+		// Check for a logged on session
+
+		getVirtualCircuit( req);
+
+		byte[] buf = req.getBuffer();
+		int pos = req.getBodyOffset();
+
+		checkRequestData( req, reqLen, pos, 56);
+
+		int ctlCode = DataPacker.getIntelInt( buf, pos + 4);
+		int inOff = DataPacker.getIntelInt( buf, pos + 24);
+		int inLen = DataPacker.getIntelInt( buf, pos + 28);
+		int maxOut = DataPacker.getIntelInt( buf, pos + 44);
+		int flags = DataPacker.getIntelInt( buf, pos + 48);
+
+		// DEBUG
+
+		if ( Debug.EnableInfo && m_sess.hasDebug(SMBSrvSession.DBG_TRAN))
+			m_sess.debugPrintln("SMB2 IOCtl code=0x" + Integer.toHexString( ctlCode) + ", flags=0x" + Integer.toHexString( flags) +
+					", in=" + inLen + ", maxOut=" + maxOut);
+
+		// Only the validate negotiate information FSCTL is supported
+
+		if ( ctlCode != FsCtlValidateNegotiate || ( flags & IOCtlFlagIsFsCtl) == 0)
+			throw new SMBSrvException( SMBStatus.NTNotSupported, SMBStatus.ErrSrv, SMBStatus.SRVNotSupported);
+
+		// Check the input data, and the output buffer length
+
+		int inPos = req.getHeaderOffset() + inOff;
+
+		if ( inLen < 24 || maxOut < ValidateNegotiateLen)
+			throw new SMBSrvException( SMBStatus.NTInvalidParameter, SMBStatus.ErrSrv, SMBStatus.SRVNonSpecificError);
+
+		checkRequestData( req, reqLen, inPos, inLen);
+
+		int diaCnt = DataPacker.getIntelShort( buf, inPos + 22);
+
+		if ( diaCnt == 0 || 24 + diaCnt * 2 > inLen)
+			throw new SMBSrvException( SMBStatus.NTInvalidParameter, SMBStatus.ErrSrv, SMBStatus.SRVNonSpecificError);
+
+		// Check the dialect selected from the client dialects matches the negotiated dialect, and the client
+		// capabilities, GUID and security mode match the negotiate request. The client details are not available
+		// if the dialect was negotiated using an SMB1 negotiate.
+
+		int[] dialects = new int[diaCnt];
+
+		for ( int i = 0; i < diaCnt; i++)
+			dialects[i] = DataPacker.getIntelShort( buf, inPos + 24 + i * 2);
+
+		boolean valid = selectDialect( dialects) == m_smb2Dialect;
+
+		if ( valid && m_clientGUID != null) {
+			if ( DataPacker.getIntelInt( buf, inPos) != m_clientCaps ||
+					DataPacker.getIntelShort( buf, inPos + 20) != m_clientSecMode ||
+					selectDialect( m_clientDialects) != m_smb2Dialect)
+				valid = false;
+
+			for ( int i = 0; valid && i < 16; i++) {
+				if ( buf[inPos + 4 + i] != m_clientGUID[i])
+					valid = false;
+			}
+		}
+
+		// The negotiate has been altered, disconnect the client
+
+		if ( valid == false) {
+
+			// DEBUG
+
+			if ( Debug.EnableInfo && m_sess.hasDebug(SMBSrvSession.DBG_NEGOTIATE))
+				m_sess.debugPrintln("SMB2 validate negotiate failed");
+
+			m_sess.hangupSession("SMB2 validate negotiate failed");
+			throw new SMBSrvException( SMBStatus.NTAccessDenied, SMBStatus.ErrSrv, SMBStatus.SRVNoAccessRights);
+		}
+
+		// Build the response, return the server capabilities, GUID, security mode and dialect
+
+		byte[] respBuf = resp.getBuffer();
+		int respPos = resp.getBodyOffset();
+		int outPos = respPos + 48;
+
+		DataPacker.putIntelShort( 49, respBuf, respPos);
+		DataPacker.putIntelShort( 0, respBuf, respPos + 2);
+		DataPacker.putIntelInt( ctlCode, respBuf, respPos + 4);
+		System.arraycopy( buf, pos + 8, respBuf, respPos + 8, 16);
+
+		DataPacker.putIntelInt( resp.relativeOffset( outPos), respBuf, respPos + 24);
+		DataPacker.putIntelInt( 0, respBuf, respPos + 28);
+		DataPacker.putIntelInt( resp.relativeOffset( outPos), respBuf, respPos + 32);
+		DataPacker.putIntelInt( ValidateNegotiateLen, respBuf, respPos + 36);
+		DataPacker.putIntelInt( 0, respBuf, respPos + 40);
+		DataPacker.putIntelInt( 0, respBuf, respPos + 44);
+
+		DataPacker.putIntelInt( m_smb2Dialect == Dialect.SMB2_1 ? CapLargeMTU : 0, respBuf, outPos);
+		System.arraycopy( m_sess.getSMBServer().getServerGUID().getBytes(), 0, respBuf, outPos + 4, 16);
+		DataPacker.putIntelShort( SecModeNone, respBuf, outPos + 20);
+		DataPacker.putIntelShort( m_smb2Dialect, respBuf, outPos + 22);
+
+		return 48 + ValidateNegotiateLen;
+	}
+
+	/**
+	 * Process an SMB2 byte range lock/unlock request
+	 *
+	 * @param req SMB2SrvPacket
+	 * @param reqLen int
+	 * @param resp SMB2SrvPacket
+	 * @return int
+	 * @exception SMBSrvException
+	 */
+	private final int procLock( SMB2SrvPacket req, int reqLen, SMB2SrvPacket resp)
+		throws SMBSrvException {
+
+		// Get the session, tree connection and file
+
+		VirtualCircuit vc = getVirtualCircuit( req);
+		TreeConnection conn = getTreeConnection( vc, req);
+
+		if ( conn.hasReadAccess() == false)
+			throw new SMBSrvException( SMBStatus.NTAccessDenied, SMBStatus.ErrDos, SMBStatus.DOSAccessDenied);
+
+		checkRequestData( req, reqLen, req.getBodyOffset(), 48);
+
+		byte[] buf = req.getBuffer();
+		int pos = req.getBodyOffset();
+
+		int lockCnt = DataPacker.getIntelShort( buf, pos + 2);
+		NetworkFile netFile = getNetworkFile( conn, req, pos + 8);
+
+		if ( lockCnt == 0)
+			throw new SMBSrvException( SMBStatus.NTInvalidParameter, SMBStatus.ErrSrv, SMBStatus.SRVNonSpecificError);
+
+		checkRequestData( req, reqLen, pos + 24, lockCnt * 24);
+
+		// Debug
+
+		if ( Debug.EnableInfo && m_sess.hasDebug(SMBSrvSession.DBG_LOCK))
+			m_sess.debugPrintln("SMB2 Lock [" + netFile.getFileId() + "] : locks=" + lockCnt);
+
+		// Check if the filesystem supports byte range locking
+
+		DiskInterface disk = getDiskInterface( conn);
+
+		if ( disk instanceof FileLockingInterface == false) {
+
+			// Return a 'not locked' status if there are unlocks in the request else return a success status
+
+			for ( int i = 0; i < lockCnt; i++) {
+				if (( DataPacker.getIntelInt( buf, pos + 24 + ( i * 24) + 16) & LockFlagUnlock) != 0)
+					throw new SMBSrvException( SMBStatus.NTRangeNotLocked, SMBStatus.ErrDos, SMBStatus.DOSNotLocked);
+			}
+
+			return packSimpleResponse( resp);
+		}
+
+		// Get the lock manager
+
+		FileLockingInterface lockInterface = (FileLockingInterface) disk;
+		LockManager lockMgr = lockInterface.getLockManager( m_sess, conn);
+
+		// Process the lock/unlock elements, the lock manager only supports exclusive locks so shared
+		// lock requests are granted as exclusive locks
+
+		int elemPos = pos + 24;
+
+		for ( int i = 0; i < lockCnt; i++) {
+
+			long offset = DataPacker.getIntelLong( buf, elemPos);
+			long length = DataPacker.getIntelLong( buf, elemPos + 8);
+			int flags = DataPacker.getIntelInt( buf, elemPos + 16);
+
+			elemPos += 24;
+
+			// Create the lock/unlock details
+
+			FileLock fLock = lockMgr.createLockObject( m_sess, conn, netFile, offset, length, req.getProcessId());
+			boolean isLock = ( flags & LockFlagUnlock) == 0;
+
+			// A lock must be shared or exclusive, an unlock must not specify a lock type. Lock requests are
+			// never queued by the lock manager so all locks behave as fail immediately locks.
+
+			if ( isLock == ( ( flags & ( LockFlagShared + LockFlagExclusive)) == 0))
+				throw new SMBSrvException( SMBStatus.NTInvalidParameter, SMBStatus.ErrSrv, SMBStatus.SRVNonSpecificError);
+
+			// Debug
+
+			if ( Debug.EnableInfo && m_sess.hasDebug(SMBSrvSession.DBG_LOCK))
+				m_sess.debugPrintln("  " + (isLock ? "Lock" : "UnLock") + " lock=" + fLock + ", flags=0x" + Integer.toHexString( flags));
+
+			// Perform the lock/unlock request
+
+			try {
+				if ( isLock == false)
+					lockMgr.unlockFile( m_sess, conn, netFile, fLock);
+				else
+					lockMgr.lockFile( m_sess, conn, netFile, fLock);
+			}
+			catch ( NotLockedException ex) {
+				throw new SMBSrvException( SMBStatus.NTRangeNotLocked, SMBStatus.ErrDos, SMBStatus.DOSNotLocked);
+			}
+			catch ( LockConflictException ex) {
+				throw new SMBSrvException( SMBStatus.NTLockNotGranted, SMBStatus.ErrDos, SMBStatus.DOSLockConflict);
+			}
+			catch ( IOException ex) {
+				throw new SMBSrvException( SMBStatus.NTAccessDenied, SMBStatus.ErrSrv, SMBStatus.SRVInternalServerError);
+			}
+		}
+
+		// Return the lock response
+
+		return packSimpleResponse( resp);
+	}
+
+	/**
+	 * Process an SMB2 read request
+	 *
+	 * @param req SMB2SrvPacket
+	 * @param reqLen int
+	 * @param resp SMB2SrvPacket
+	 * @param maxLen int
+	 * @return int
+	 * @exception SMBSrvException
+	 */
+	private final int procRead( SMB2SrvPacket req, int reqLen, SMB2SrvPacket resp, int maxLen)
+		throws SMBSrvException {
+
+		// Get the session, tree connection and file
+
+		VirtualCircuit vc = getVirtualCircuit( req);
+		TreeConnection conn = getTreeConnection( vc, req);
+
+		checkRequestData( req, reqLen, req.getBodyOffset(), 48);
+
+		byte[] buf = req.getBuffer();
+		int pos = req.getBodyOffset();
+
+		int readLen = DataPacker.getIntelInt( buf, pos + 4);
+		long offset = DataPacker.getIntelLong( buf, pos + 8);
+		int minCount = DataPacker.getIntelInt( buf, pos + 32);
+
+		NetworkFile netFile = getNetworkFile( conn, req, pos + 16);
+
+		// Check the read length against the negotiated maximum, and the credits charged for the request
+
+		checkPayloadSize( req, readLen);
+
+		if ( readLen + 16 > maxLen)
+			throw new SMBSrvException( SMBStatus.NTInsufficientResources, SMBStatus.ErrSrv, SMBStatus.SRVNoBuffers);
+
+		// Debug
+
+		if ( Debug.EnableInfo && m_sess.hasDebug(SMBSrvSession.DBG_FILEIO))
+			m_sess.debugPrintln("SMB2 Read [" + netFile.getFileId() + "] : Size=" + readLen + " ,Pos=" + offset);
+
+		// Read the data into the response buffer
+
+		byte[] respBuf = resp.getBuffer();
+		int dataPos = resp.getBodyOffset() + 16;
+		int rdlen = 0;
+
+		try {
+			DiskInterface disk = getDiskInterface( conn);
+			rdlen = disk.readFile( m_sess, conn, netFile, respBuf, dataPos, readLen, offset);
+		}
+		catch ( FileOfflineException ex) {
+			throw new SMBSrvException( SMBStatus.NTFileOffline, SMBStatus.ErrHrd, SMBStatus.HRDReadFault);
+		}
+		catch ( LockConflictException ex) {
+			throw new SMBSrvException( SMBStatus.NTLockConflict, SMBStatus.ErrDos, SMBStatus.DOSLockConflict);
+		}
+		catch ( AccessDeniedException ex) {
+			throw new SMBSrvException( SMBStatus.NTAccessDenied, SMBStatus.ErrDos, SMBStatus.DOSAccessDenied);
+		}
+		catch ( DiskOfflineException ex) {
+			throw new SMBSrvException( SMBStatus.NTObjectPathNotFound, SMBStatus.ErrHrd, SMBStatus.HRDDriveNotReady);
+		}
+		catch ( IOException ex) {
+
+			// Debug
+
+			if ( Debug.EnableError && m_sess.hasDebug(SMBSrvSession.DBG_FILEIO))
+				m_sess.debugPrintln("SMB2 Read Error [" + netFile.getFileId() + "] : " + ex.toString());
+
+			throw new SMBSrvException( SMBStatus.NTFileOffline, SMBStatus.ErrHrd, SMBStatus.HRDReadFault);
+		}
+
+		// Check for end of file, or a short read
+
+		if ( rdlen <= 0 && readLen > 0)
+			throw new SMBSrvException( SMBStatus.NTEndOfFile, SMBStatus.ErrHrd, SMBStatus.HRDReadFault);
+		else if ( rdlen < minCount)
+			throw new SMBSrvException( SMBStatus.NTEndOfFile, SMBStatus.ErrHrd, SMBStatus.HRDReadFault);
+
+		// Build the read response
+
+		pos = resp.getBodyOffset();
+
+		DataPacker.putIntelShort( 17, respBuf, pos);
+		respBuf[pos + 2] = (byte) resp.relativeOffset( dataPos);
+		respBuf[pos + 3] = 0;
+		DataPacker.putIntelInt( rdlen, respBuf, pos + 4);
+		DataPacker.putIntelInt( 0, respBuf, pos + 8);		// data remaining
+		DataPacker.putIntelInt( 0, respBuf, pos + 12);
+
+		if ( rdlen == 0) {
+			respBuf[dataPos] = 0;
+			return 17;
+		}
+
+		return 16 + rdlen;
+	}
+
+	/**
+	 * Process an SMB2 write request
+	 *
+	 * @param req SMB2SrvPacket
+	 * @param reqLen int
+	 * @param resp SMB2SrvPacket
+	 * @return int
+	 * @exception SMBSrvException
+	 */
+	private final int procWrite( SMB2SrvPacket req, int reqLen, SMB2SrvPacket resp)
+		throws SMBSrvException {
+
+		// Get the session, tree connection and file
+
+		VirtualCircuit vc = getVirtualCircuit( req);
+		TreeConnection conn = getTreeConnection( vc, req);
+
+		if ( conn.hasWriteAccess() == false)
+			throw new SMBSrvException( SMBStatus.NTAccessDenied, SMBStatus.ErrDos, SMBStatus.DOSAccessDenied);
+
+		checkRequestData( req, reqLen, req.getBodyOffset(), 48);
+
+		byte[] buf = req.getBuffer();
+		int pos = req.getBodyOffset();
+
+		int dataPos = req.getHeaderOffset() + DataPacker.getIntelShort( buf, pos + 2);
+		int dataLen = DataPacker.getIntelInt( buf, pos + 4);
+		long offset = DataPacker.getIntelLong( buf, pos + 8);
+
+		NetworkFile netFile = getNetworkFile( conn, req, pos + 16);
+
+		// Check the write length against the negotiated maximum, and the credits charged for the request
+
+		checkPayloadSize( req, dataLen);
+		checkRequestData( req, reqLen, dataPos, dataLen);
+
+		// Debug
+
+		if ( Debug.EnableInfo && m_sess.hasDebug(SMBSrvSession.DBG_FILEIO))
+			m_sess.debugPrintln("SMB2 Write [" + netFile.getFileId() + "] : Size=" + dataLen + " ,Pos=" + offset);
+
+		// Write the data to the file
+
+		int wrtlen = 0;
+
+		try {
+			DiskInterface disk = getDiskInterface( conn);
+
+			// Synchronize writes using the network file
+
+			synchronized ( netFile) {
+				wrtlen = disk.writeFile( m_sess, conn, netFile, buf, dataPos, dataLen, offset);
+			}
+		}
+		catch ( AccessDeniedException ex) {
+			throw new SMBSrvException( SMBStatus.NTAccessDenied, SMBStatus.ErrDos, SMBStatus.DOSAccessDenied);
+		}
+		catch ( LockConflictException ex) {
+			throw new SMBSrvException( SMBStatus.NTLockConflict, SMBStatus.ErrDos, SMBStatus.DOSAccessDenied);
+		}
+		catch ( DiskFullException ex) {
+			throw new SMBSrvException( SMBStatus.NTDiskFull, SMBStatus.ErrHrd, SMBStatus.HRDWriteFault);
+		}
+		catch ( DiskOfflineException ex) {
+			throw new SMBSrvException( SMBStatus.NTObjectPathNotFound, SMBStatus.ErrHrd, SMBStatus.HRDDriveNotReady);
+		}
+		catch ( IOException ex) {
+
+			// Debug
+
+			if ( Debug.EnableError && m_sess.hasDebug(SMBSrvSession.DBG_FILEIO))
+				m_sess.debugPrintln("SMB2 Write Error [" + netFile.getFileId() + "] : " + ex.toString());
+
+			throw new SMBSrvException( SMBStatus.NTAccessDenied, SMBStatus.ErrHrd, SMBStatus.HRDWriteFault);
+		}
+
+		// Build the write response
+
+		byte[] respBuf = resp.getBuffer();
+		pos = resp.getBodyOffset();
+
+		DataPacker.putIntelShort( 17, respBuf, pos);
+		DataPacker.putIntelShort( 0, respBuf, pos + 2);
+		DataPacker.putIntelInt( wrtlen, respBuf, pos + 4);
+		DataPacker.putIntelInt( 0, respBuf, pos + 8);		// remaining
+		DataPacker.putIntelInt( 0, respBuf, pos + 12);		// channel info
+		respBuf[pos + 16] = 0;
+
+		// Report file size change notifications every so often
+
+		DiskDeviceContext diskCtx = (DiskDeviceContext) conn.getContext();
+		if ( netFile.getWriteCount() % FileSizeChangeRate == 0 && diskCtx.hasFileServerNotifications() && netFile.getFullName() != null)
+			diskCtx.getChangeHandler().notifyFileSizeChanged( netFile.getFullName());
+
+		return 17;
+	}
+
+	/**
+	 * Process an SMB2 query directory request
+	 *
+	 * @param req SMB2SrvPacket
+	 * @param reqLen int
+	 * @param resp SMB2SrvPacket
+	 * @param maxLen int
+	 * @return int
+	 * @exception SMBSrvException
+	 */
+	private final int procQueryDirectory( SMB2SrvPacket req, int reqLen, SMB2SrvPacket resp, int maxLen)
+		throws SMBSrvException {
+
+		// Get the session, tree connection and directory
+
+		VirtualCircuit vc = getVirtualCircuit( req);
+		TreeConnection conn = getTreeConnection( vc, req);
+
+		if ( conn.hasReadAccess() == false)
+			throw new SMBSrvException( SMBStatus.NTAccessDenied, SMBStatus.ErrDos, SMBStatus.DOSAccessDenied);
+
+		checkRequestData( req, reqLen, req.getBodyOffset(), 32);
+
+		byte[] buf = req.getBuffer();
+		int pos = req.getBodyOffset();
+
+		int infoClass = buf[pos + 2] & 0xFF;
+		int flags = buf[pos + 3] & 0xFF;
+		int fid = getFileId( buf, pos + 8);
+		int namePos = req.getHeaderOffset() + DataPacker.getIntelShort( buf, pos + 24);
+		int nameLen = DataPacker.getIntelShort( buf, pos + 26);
+		int outLen = DataPacker.getIntelInt( buf, pos + 28);
+
+		NetworkFile netFile = getNetworkFile( conn, req, pos + 8);
+
+		if ( netFile.isDirectory() == false)
+			throw new SMBSrvException( SMBStatus.NTInvalidParameter, SMBStatus.ErrSrv, SMBStatus.SRVNonSpecificError);
+
+		// Map the information class to the equivalent find information level
+
+		int infoLevel = getFindInfoLevel( infoClass);
+		if ( infoLevel == -1)
+			throw new SMBSrvException( SMBStatus.NTInvalidInfoClass, SMBStatus.ErrSrv, SMBStatus.SRVNotSupported);
+
+		// Get the search pattern
+
+		String pattern = null;
+
+		if ( nameLen > 0) {
+			checkRequestData( req, reqLen, namePos, nameLen);
+			pattern = DataPacker.getUnicodeString( buf, namePos, nameLen / 2);
+
+			if ( pattern != null && WildCard.containsUnicodeWildcard( pattern))
+				pattern = WildCard.convertUnicodeWildcardToDOS( pattern);
+		}
+
+		// Find the active search, or start a new search
+
+		DiskInterface disk = getDiskInterface( conn);
+		long searchKey = getSearchKey( vc.getUID(), req.getTreeId(), fid);
+		SearchContext ctx = m_searches.get( searchKey);
+
+		boolean firstQuery = false;
+		String srchPath = null;
+
+		if ( ctx == null || ( flags & ( QueryDirRestartScans + QueryDirReopen)) != 0) {
+
+			// Close the existing search
+
+			if ( ctx != null) {
+				m_searches.remove( searchKey);
+				ctx.closeSearch();
+			}
+
+			// Build the search path
+
+			if ( pattern == null || pattern.length() == 0)
+				pattern = "*";
+
+			String dirPath = netFile.getFullName();
+			if ( dirPath == null || dirPath.length() == 0)
+				dirPath = FileName.DOS_SEPERATOR_STR;
+
+			if ( dirPath.endsWith( FileName.DOS_SEPERATOR_STR))
+				srchPath = dirPath + pattern;
+			else
+				srchPath = dirPath + FileName.DOS_SEPERATOR_STR + pattern;
+
+			if ( isValidSearchPath( srchPath) == false)
+				throw new SMBSrvException( SMBStatus.NTObjectNameInvalid, SMBStatus.ErrDos, SMBStatus.DOSInvalidData);
+
+			// Start the search
+
+			try {
+				ctx = disk.startSearch( m_sess, conn, srchPath, FileAttribute.Directory + FileAttribute.Hidden + FileAttribute.System);
+			}
+			catch ( FileNotFoundException ex) {
+				throw new SMBSrvException( SMBStatus.NTNoSuchFile, SMBStatus.ErrDos, SMBStatus.DOSFileNotFound);
+			}
+
+			if ( ctx == null)
+				throw new SMBSrvException( SMBStatus.NTNoSuchFile, SMBStatus.ErrDos, SMBStatus.DOSFileNotFound);
+
+			ctx.setTreeId( req.getTreeId());
+			m_searches.put( searchKey, ctx);
+
+			firstQuery = true;
+		}
+
+		// Debug
+
+		if ( Debug.EnableInfo && m_sess.hasDebug(SMBSrvSession.DBG_SEARCH))
+			m_sess.debugPrintln("SMB2 Query Directory [" + fid + "] class=" + infoClass + ", flags=0x" + Integer.toHexString( flags) +
+					", pattern=" + pattern + ", outLen=" + outLen + ", first=" + firstQuery);
+
+		// Pack the directory entries into the response
+
+		byte[] respBuf = resp.getBuffer();
+		int outPos = resp.getBodyOffset() + 8;
+		int bufLen = Math.min( outLen, maxLen - 8);
+
+		if ( bufLen < 0)
+			bufLen = 0;
+
+		DataBuffer dataBuf = new DataBuffer( respBuf, outPos, bufLen);
+
+		boolean singleEntry = ( flags & QueryDirSingleEntry) != 0;
+		int fileCnt = 0;
+		int lastEntryPos = -1;
+		boolean noSpace = false;
+
+		try {
+
+			// Add the '.' and '..' entries for a wildcard search
+
+			if ( firstQuery && singleEntry == false && ReturnDotFiles == true && WildCard.isWildcardAll( srchPath)) {
+
+				FileInfo dotInfo = new FileInfo(".", 0, FileAttribute.Directory);
+				dotInfo.setFileId( dotInfo.getFileName().hashCode());
+
+				if ( ctx.hasDotFiles())
+					ctx.getDotInfo( dotInfo);
+
+				if ( FindInfoPacker.calcInfoSize( dotInfo, infoLevel, false, true) * 2 + 16 <= bufLen) {
+					lastEntryPos = packDirectoryEntry( dotInfo, dataBuf, infoLevel, outPos);
+					fileCnt++;
+
+					if ( ctx.hasDotFiles())
+						ctx.getDotDotInfo( dotInfo);
+					else {
+						dotInfo.setFileName("..");
+						dotInfo.setFileId( dotInfo.getFileName().hashCode());
+						dotInfo.setCreationDateTime( DotFileDateTime);
+						dotInfo.setModifyDateTime( DotFileDateTime);
+						dotInfo.setAccessDateTime( DotFileDateTime);
+					}
+
+					lastEntryPos = packDirectoryEntry( dotInfo, dataBuf, infoLevel, outPos);
+					fileCnt++;
+				}
+			}
+
+			// Pack entries until the buffer is full or the search is complete
+
+			FileInfo info = new FileInfo();
+
+			while ( noSpace == false && ( singleEntry == false || fileCnt == 0) && ctx.nextFileInfo( info)) {
+
+				// Check if the entry will fit into the response, allow for alignment
+
+				int remaining = bufLen - ( dataBuf.getPosition() - outPos);
+
+				if ( FindInfoPacker.calcInfoSize( info, infoLevel, false, true) + SMB2SrvPacket.CompoundAlign <= remaining) {
+					lastEntryPos = packDirectoryEntry( info, dataBuf, infoLevel, outPos);
+					fileCnt++;
+				}
+				else {
+
+					// Restart the search at the current file on the next request
+
+					ctx.restartAt( info);
+					noSpace = true;
+				}
+			}
+		}
+		catch ( UnsupportedInfoLevelException ex) {
+			throw new SMBSrvException( SMBStatus.NTInvalidInfoClass, SMBStatus.ErrSrv, SMBStatus.SRVNotSupported);
+		}
+
+		// Check if any entries were returned
+
+		if ( fileCnt == 0) {
+			if ( noSpace)
+				throw new SMBSrvException( SMBStatus.NTInfoLengthMismatch, SMBStatus.ErrSrv, SMBStatus.SRVNonSpecificError);
+			else if ( firstQuery)
+				throw new SMBSrvException( SMBStatus.NTNoSuchFile, SMBStatus.ErrDos, SMBStatus.DOSFileNotFound);
+			throw new SMBSrvException( SMBStatus.NTNoMoreFiles, SMBStatus.ErrDos, SMBStatus.DOSNoMoreFiles);
+		}
+
+		// Clear the next entry offset of the last entry
+
+		DataPacker.putIntelInt( 0, respBuf, lastEntryPos);
+		int dataLen = dataBuf.getPosition() - outPos;
+
+		// Debug
+
+		if ( Debug.EnableInfo && m_sess.hasDebug(SMBSrvSession.DBG_SEARCH))
+			m_sess.debugPrintln("SMB2 Query Directory [" + fid + "] returned " + fileCnt + " files, dataLen=" + dataLen + ", moreFiles=" + ctx.hasMoreFiles());
+
+		// Build the query directory response
+
+		int pos2 = resp.getBodyOffset();
+
+		DataPacker.putIntelShort( 9, respBuf, pos2);
+		DataPacker.putIntelShort( resp.relativeOffset( outPos), respBuf, pos2 + 2);
+		DataPacker.putIntelInt( dataLen, respBuf, pos2 + 4);
+
+		return 8 + dataLen;
+	}
+
+	/**
+	 * Process an SMB2 query information request
+	 *
+	 * @param req SMB2SrvPacket
+	 * @param reqLen int
+	 * @param resp SMB2SrvPacket
+	 * @param maxLen int
+	 * @return int
+	 * @exception SMBSrvException
+	 */
+	private final int procQueryInfo( SMB2SrvPacket req, int reqLen, SMB2SrvPacket resp, int maxLen)
+		throws SMBSrvException {
+
+		// Get the session, tree connection and file
+
+		VirtualCircuit vc = getVirtualCircuit( req);
+		TreeConnection conn = getTreeConnection( vc, req);
+
+		if ( conn.hasReadAccess() == false)
+			throw new SMBSrvException( SMBStatus.NTAccessDenied, SMBStatus.ErrDos, SMBStatus.DOSAccessDenied);
+
+		checkRequestData( req, reqLen, req.getBodyOffset(), 40);
+
+		byte[] buf = req.getBuffer();
+		int pos = req.getBodyOffset();
+
+		int infoType = buf[pos + 2] & 0xFF;
+		int infoClass = buf[pos + 3] & 0xFF;
+		int outLen = DataPacker.getIntelInt( buf, pos + 4);
+
+		NetworkFile netFile = getNetworkFile( conn, req, pos + 24);
+		DiskInterface disk = getDiskInterface( conn);
+
+		// Debug
+
+		if ( Debug.EnableInfo && m_sess.hasDebug(SMBSrvSession.DBG_INFO))
+			m_sess.debugPrintln("SMB2 Query Info [" + netFile.getFileId() + "] type=" + infoType + ", class=" + infoClass + ", outLen=" + outLen);
+
+		// Pack the information into a temporary buffer
+
+		DataBuffer infoBuf = new DataBuffer();
+		boolean varLen = false;
+
+		try {
+
+			if ( infoType == InfoTypeFile) {
+
+				// Get the file information
+
+				FileInfo finfo = disk.getFileInformation( m_sess, conn, netFile.getFullNameStream());
+				if ( finfo == null)
+					throw new SMBSrvException( SMBStatus.NTObjectNotFound, SMBStatus.ErrDos, SMBStatus.DOSFileNotFound);
+
+				varLen = packFileInformation( finfo, netFile, infoClass, infoBuf);
+			}
+			else if ( infoType == InfoTypeFileSystem) {
+
+				// Pack the filesystem information
+
+				varLen = packFileSystemInformation( disk, conn, infoClass, infoBuf);
+			}
+			else {
+
+				// Security and quota information is not supported
+
+				throw new SMBSrvException( SMBStatus.NTNotSupported, SMBStatus.ErrSrv, SMBStatus.SRVNotSupported);
+			}
+		}
+		catch ( AccessDeniedException ex) {
+			throw new SMBSrvException( SMBStatus.NTAccessDenied, SMBStatus.ErrDos, SMBStatus.DOSAccessDenied);
+		}
+		catch ( FileNotFoundException ex) {
+			throw new SMBSrvException( SMBStatus.NTObjectNotFound, SMBStatus.ErrDos, SMBStatus.DOSFileNotFound);
+		}
+		catch ( DiskOfflineException ex) {
+			throw new SMBSrvException( SMBStatus.NTObjectPathNotFound, SMBStatus.ErrHrd, SMBStatus.HRDDriveNotReady);
+		}
+		catch ( UnsupportedInfoLevelException ex) {
+			throw new SMBSrvException( SMBStatus.NTInvalidInfoClass, SMBStatus.ErrSrv, SMBStatus.SRVNotSupported);
+		}
+		catch ( IOException ex) {
+			throw new SMBSrvException( SMBStatus.NTObjectNotFound, SMBStatus.ErrDos, SMBStatus.DOSFileNotFound);
+		}
+
+		// Check if the information fits into the client buffer, variable length information is truncated
+
+		int infoLen = infoBuf.getLength();
+		int bufLen = Math.min( outLen, maxLen - 8);
+
+		if ( infoLen > bufLen) {
+			if ( varLen == false)
+				throw new SMBSrvException( SMBStatus.NTInfoLengthMismatch, SMBStatus.ErrSrv, SMBStatus.SRVNonSpecificError);
+
+			infoLen = bufLen;
+			resp.setStatus( SMBStatus.NTBufferOverflow);
+		}
+
+		// Build the query information response
+
+		byte[] respBuf = resp.getBuffer();
+		pos = resp.getBodyOffset();
+
+		DataPacker.putIntelShort( 9, respBuf, pos);
+		DataPacker.putIntelShort( SMB2SrvPacket.HeaderLength + 8, respBuf, pos + 2);
+		DataPacker.putIntelInt( infoLen, respBuf, pos + 4);
+
+		if ( infoLen == 0) {
+			respBuf[pos + 8] = 0;
+			return 9;
+		}
+
+		System.arraycopy( infoBuf.getBuffer(), infoBuf.getOffset(), respBuf, pos + 8, infoLen);
+		return 8 + infoLen;
+	}
+
+	/**
+	 * Process an SMB2 set information request
+	 *
+	 * @param req SMB2SrvPacket
+	 * @param reqLen int
+	 * @param resp SMB2SrvPacket
+	 * @return int
+	 * @exception SMBSrvException
+	 */
+	private final int procSetInfo( SMB2SrvPacket req, int reqLen, SMB2SrvPacket resp)
+		throws SMBSrvException {
+
+		// Get the session, tree connection and file
+
+		VirtualCircuit vc = getVirtualCircuit( req);
+		TreeConnection conn = getTreeConnection( vc, req);
+
+		if ( conn.hasWriteAccess() == false)
+			throw new SMBSrvException( SMBStatus.NTAccessDenied, SMBStatus.ErrDos, SMBStatus.DOSAccessDenied);
+
+		checkRequestData( req, reqLen, req.getBodyOffset(), 32);
+
+		byte[] buf = req.getBuffer();
+		int pos = req.getBodyOffset();
+
+		int infoType = buf[pos + 2] & 0xFF;
+		int infoClass = buf[pos + 3] & 0xFF;
+		int dataLen = DataPacker.getIntelInt( buf, pos + 4);
+		int dataPos = req.getHeaderOffset() + DataPacker.getIntelShort( buf, pos + 8);
+
+		NetworkFile netFile = getNetworkFile( conn, req, pos + 16);
+		DiskInterface disk = getDiskInterface( conn);
+
+		checkRequestData( req, reqLen, dataPos, dataLen);
+
+		// Only file information can be set
+
+		if ( infoType != InfoTypeFile)
+			throw new SMBSrvException( SMBStatus.NTNotSupported, SMBStatus.ErrSrv, SMBStatus.SRVNotSupported);
+
+		// Debug
+
+		if ( Debug.EnableInfo && m_sess.hasDebug(SMBSrvSession.DBG_INFO))
+			m_sess.debugPrintln("SMB2 Set Info [" + netFile.getFileId() + "] class=" + infoClass + ", len=" + dataLen);
+
+		DataBuffer dataBuf = new DataBuffer( buf, dataPos, dataLen);
+		FileInfo finfo = null;
+		String oldName = null;
+
+		try {
+
+			switch ( infoClass) {
+
+				// Set basic file information (dates/attributes)
+
+				case FileBasicInfo:
+
+					if ( dataLen < 36)
+						throw new SMBSrvException( SMBStatus.NTInfoLengthMismatch, SMBStatus.ErrSrv, SMBStatus.SRVNonSpecificError);
+
+					finfo = unpackBasicInfo( netFile, dataBuf);
+					disk.setFileInformation( m_sess, conn, netFile.getFullName(), finfo);
+					break;
+
+				// Rename the file or directory
+
+				case FileRenameInfo:
+
+					if ( dataLen < 20)
+						throw new SMBSrvException( SMBStatus.NTInfoLengthMismatch, SMBStatus.ErrSrv, SMBStatus.SRVNonSpecificError);
+
+					boolean replace = dataBuf.getByte() != 0;
+					dataBuf.skipBytes( 15);
+					int nameLen = dataBuf.getInt();
+
+					checkRequestData( req, reqLen, dataBuf.getPosition(), nameLen);
+					String newName = DataPacker.getUnicodeString( buf, dataBuf.getPosition(), nameLen / 2);
+
+					if ( newName == null || newName.length() == 0)
+						throw new SMBSrvException( SMBStatus.NTObjectNameInvalid, SMBStatus.ErrDos, SMBStatus.DOSInvalidData);
+
+					if ( newName.startsWith( FileName.DOS_SEPERATOR_STR) == false)
+						newName = FileName.DOS_SEPERATOR_STR + newName;
+
+					if ( isValidPath( newName) == false)
+						throw new SMBSrvException( SMBStatus.NTObjectNameInvalid, SMBStatus.ErrDos, SMBStatus.DOSInvalidData);
+
+					// Check if the target exists
+
+					int fileSts = disk.fileExists( m_sess, conn, newName);
+
+					if ( fileSts != FileStatus.NotExist && newName.equalsIgnoreCase( netFile.getFullName()) == false) {
+
+						// Fail the rename if overwrite is not allowed, or the target is a folder
+
+						if ( replace == false)
+							throw new SMBSrvException( SMBStatus.NTObjectNameCollision, SMBStatus.ErrDos, SMBStatus.DOSFileAlreadyExists);
+						else if ( fileSts == FileStatus.DirectoryExists)
+							throw new SMBSrvException( SMBStatus.NTAccessDenied, SMBStatus.ErrDos, SMBStatus.DOSAccessDenied);
+
+						// Delete the existing target file
+
+						disk.deleteFile( m_sess, conn, newName);
+					}
+
+					// Debug
+
+					if ( Debug.EnableInfo && m_sess.hasDebug(SMBSrvSession.DBG_FILE))
+						m_sess.debugPrintln("SMB2 Rename from=" + netFile.getFullName() + " to=" + newName + ", replace=" + replace);
+
+					// Rename the file, update the open file path
+
+					oldName = netFile.getFullName();
+					disk.renameFile( m_sess, conn, oldName, newName);
+					netFile.setFullName( newName);
+					break;
+
+				// Mark or unmark a file/directory for delete
+
+				case FileDispositionInfo:
+
+					if ( dataLen < 1)
+						throw new SMBSrvException( SMBStatus.NTInfoLengthMismatch, SMBStatus.ErrSrv, SMBStatus.SRVNonSpecificError);
+
+					boolean delFlag = dataBuf.getByte() != 0;
+
+					FileInfo delInfo = new FileInfo();
+					delInfo.setDeleteOnClose( delFlag);
+					delInfo.setFileInformationFlags( FileInfo.SetDeleteOnClose);
+					disk.setFileInformation( m_sess, conn, netFile.getFullName(), delInfo);
+
+					netFile.setDeleteOnClose( delFlag);
+					break;
+
+				// Set the allocation size or end of file position
+
+				case FileAllocationInfo:
+				case FileEndOfFileInfo:
+
+					if ( dataLen < 8)
+						throw new SMBSrvException( SMBStatus.NTInfoLengthMismatch, SMBStatus.ErrSrv, SMBStatus.SRVNonSpecificError);
+
+					disk.truncateFile( m_sess, conn, netFile, dataBuf.getLong());
+					break;
+
+				// File position is maintained by the client
+
+				case FilePositionInfo:
+					break;
+
+				// Unsupported information class
+
+				default:
+					throw new SMBSrvException( SMBStatus.NTInvalidInfoClass, SMBStatus.ErrSrv, SMBStatus.SRVNotSupported);
+			}
+		}
+		catch ( FileNotFoundException ex) {
+			throw new SMBSrvException( SMBStatus.NTObjectNotFound, SMBStatus.ErrDos, SMBStatus.DOSFileNotFound);
+		}
+		catch ( PermissionDeniedException ex) {
+			throw new SMBSrvException( SMBStatus.NTNetworkAccessDenied, SMBStatus.ErrDos, SMBStatus.DOSAccessDenied);
+		}
+		catch ( AccessDeniedException ex) {
+			throw new SMBSrvException( SMBStatus.NTAccessDenied, SMBStatus.ErrDos, SMBStatus.DOSAccessDenied);
+		}
+		catch ( DiskFullException ex) {
+			throw new SMBSrvException( SMBStatus.NTDiskFull, SMBStatus.ErrHrd, SMBStatus.HRDWriteFault);
+		}
+		catch ( DiskOfflineException ex) {
+			throw new SMBSrvException( SMBStatus.NTObjectPathNotFound, SMBStatus.ErrHrd, SMBStatus.HRDDriveNotReady);
+		}
+		catch ( DirectoryNotEmptyException ex) {
+			throw new SMBSrvException( SMBStatus.NTDirectoryNotEmpty, SMBStatus.ErrDos, SMBStatus.DOSDirectoryNotEmpty);
+		}
+		catch ( FileSharingException ex) {
+			throw new SMBSrvException( SMBStatus.NTSharingViolation, SMBStatus.ErrDos, SMBStatus.DOSFileSharingConflict);
+		}
+		catch ( IOException ex) {
+			throw new SMBSrvException( SMBStatus.NTInvalidParameter, SMBStatus.ErrSrv, SMBStatus.SRVNonSpecificError);
+		}
+
+		// Check if there are any file/directory change notify requests active
+
+		DiskDeviceContext diskCtx = (DiskDeviceContext) conn.getContext();
+		if ( diskCtx.hasFileServerNotifications() && netFile.getFullName() != null) {
+
+			NotifyChangeHandler changeHandler = diskCtx.getChangeHandler();
+
+			if ( oldName != null)
+				changeHandler.notifyRename( oldName, netFile.getFullName());
+			else if ( finfo != null) {
+				if ( finfo.hasSetFlag( FileInfo.SetAttributes))
+					changeHandler.notifyAttributesChanged( netFile.getFullName(), netFile.isDirectory());
+				if ( finfo.hasSetFlag( FileInfo.SetModifyDate))
+					changeHandler.notifyLastWriteTimeChanged( netFile.getFullName(), netFile.isDirectory());
+			}
+			else if ( infoClass == FileAllocationInfo || infoClass == FileEndOfFileInfo)
+				changeHandler.notifyFileSizeChanged( netFile.getFullName());
+		}
+
+		// Build the set information response
+
+		DataPacker.putIntelShort( 2, resp.getBuffer(), resp.getBodyOffset());
+		return 2;
+	}
+
+	/**
+	 * Unpack basic file information from a set information request
+	 *
+	 * @param netFile NetworkFile
+	 * @param dataBuf DataBuffer
+	 * @return FileInfo
+	 */
+	private final FileInfo unpackBasicInfo( NetworkFile netFile, DataBuffer dataBuf) {
+
+		// Create the file information template, a zero date/time value means leave unchanged
+
+		FileInfo finfo = new FileInfo( netFile.getFullName(), 0, -1);
+		int setFlags = 0;
+
+		long nttim = dataBuf.getLong();
+		if ( nttim != 0L && nttim != -1L) {
+			finfo.setCreationDateTime( NTTime.toJavaDate( nttim));
+			setFlags += FileInfo.SetCreationDate;
+		}
+
+		nttim = dataBuf.getLong();
+		if ( nttim != 0L && nttim != -1L) {
+			finfo.setAccessDateTime( NTTime.toJavaDate( nttim));
+			setFlags += FileInfo.SetAccessDate;
+		}
+
+		nttim = dataBuf.getLong();
+		if ( nttim != 0L && nttim != -1L) {
+			finfo.setModifyDateTime( NTTime.toJavaDate( nttim));
+			setFlags += FileInfo.SetModifyDate;
+		}
+
+		nttim = dataBuf.getLong();
+		if ( nttim != 0L && nttim != -1L) {
+			finfo.setChangeDateTime( NTTime.toJavaDate( nttim));
+			setFlags += FileInfo.SetChangeDate;
+		}
+
+		// Zero attributes means leave unchanged
+
+		int attr = dataBuf.getInt();
+		if ( attr != 0) {
+			finfo.setFileAttributes( attr);
+			setFlags += FileInfo.SetAttributes;
+		}
+
+		finfo.setNetworkFile( netFile);
+		finfo.setFileInformationFlags( setFlags);
+
+		return finfo;
+	}
+
+	/**
+	 * Pack file information for the specified SMB2 information class, return true if the information
+	 * is variable length and may be truncated
+	 *
+	 * @param finfo FileInfo
+	 * @param netFile NetworkFile
+	 * @param infoClass int
+	 * @param buf DataBuffer
+	 * @return boolean
+	 * @exception UnsupportedInfoLevelException
+	 */
+	private final boolean packFileInformation( FileInfo finfo, NetworkFile netFile, int infoClass, DataBuffer buf)
+		throws UnsupportedInfoLevelException {
+
+		boolean varLen = false;
+
+		switch ( infoClass) {
+
+			// Information that maps directly to the NT information levels
+
+			case FileBasicInfo:
+			case FileInternalInfo:
+			case FileEAInfo:
+			case FilePositionInfo:
+			case FileCompressionInfo:
+			case FileNetworkOpenInfo:
+			case FileAttributeTagInfo:
+				QueryInfoPacker.packInfo( finfo, buf, FileInfoLevel.NTFileBasicInfo - FileBasicInfo + infoClass, true);
+				break;
+
+			// Standard information, padded to the SMB2 structure size
+
+			case FileStandardInfo:
+				QueryInfoPacker.packInfo( finfo, buf, FileInfoLevel.NTFileStandardInfo, true);
+				buf.putZeros( 2);
+				break;
+
+			// Variable length name/stream information
+
+			case FileNameInfo:
+			case FileAltNameInfo:
+			case FileStreamInfo:
+				QueryInfoPacker.packInfo( finfo, buf, FileInfoLevel.NTFileBasicInfo - FileBasicInfo + infoClass, true);
+				varLen = true;
+				break;
+
+			// Access information
+
+			case FileAccessInfo:
+				buf.putInt( getMaximalAccess( netFile));
+				break;
+
+			// Mode and alignment information
+
+			case FileModeInfo:
+			case FileAlignmentInfo:
+				buf.putInt( 0);
+				break;
+
+			// All information
+
+			case FileAllInfo:
+				QueryInfoPacker.packInfo( finfo, buf, FileInfoLevel.NTFileBasicInfo, true);
+				QueryInfoPacker.packInfo( finfo, buf, FileInfoLevel.NTFileStandardInfo, true);
+				buf.putZeros( 2);
+				QueryInfoPacker.packInfo( finfo, buf, FileInfoLevel.NTFileInternalInfo, true);
+				QueryInfoPacker.packInfo( finfo, buf, FileInfoLevel.NTFileEAInfo, true);
+				buf.putInt( getMaximalAccess( netFile));
+				buf.putLong( 0L);		// position
+				buf.putInt( 0);			// mode
+				buf.putInt( 0);			// alignment
+				QueryInfoPacker.packInfo( finfo, buf, FileInfoLevel.NTFileNameInfo, true);
+				varLen = true;
+				break;
+
+			// Unsupported information class
+
+			default:
+				throw new UnsupportedInfoLevelException();
+		}
+
+		// Check if any data was packed
+
+		if ( buf.getLength() == 0)
+			throw new UnsupportedInfoLevelException();
+
+		return varLen;
+	}
+
+	/**
+	 * Pack filesystem information for the specified SMB2 information class, return true if the information
+	 * is variable length and may be truncated
+	 *
+	 * @param disk DiskInterface
+	 * @param conn TreeConnection
+	 * @param infoClass int
+	 * @param buf DataBuffer
+	 * @return boolean
+	 * @exception IOException
+	 * @exception UnsupportedInfoLevelException
+	 */
+	private final boolean packFileSystemInformation( DiskInterface disk, TreeConnection conn, int infoClass, DataBuffer buf)
+		throws IOException, UnsupportedInfoLevelException {
+
+		DiskDeviceContext diskCtx = (DiskDeviceContext) conn.getContext();
+		boolean varLen = false;
+
+		switch ( infoClass) {
+
+			// Volume information
+
+			case FsVolumeInfo:
+				DiskInfoPacker.packFsVolumeInformation( getVolumeInformation( disk, diskCtx), buf, true);
+				varLen = true;
+				break;
+
+			// Filesystem size information
+
+			case FsSizeInfo:
+				DiskInfoPacker.packFsSizeInformation( getDiskInformation( disk, diskCtx), buf);
+				break;
+
+			// Device information
+
+			case FsDeviceInfo:
+				DiskInfoPacker.packFsDevice( NTIOCtl.DeviceDisk, diskCtx.getDeviceAttributes(), buf);
+				break;
+
+			// Filesystem attribute information
+
+			case FsAttributeInfo:
+				String fsType = diskCtx.getFilesystemType();
+
+				if ( disk instanceof NTFSStreamsInterface) {
+					NTFSStreamsInterface ntfsStreams = (NTFSStreamsInterface) disk;
+					if ( ntfsStreams.hasStreamsEnabled( m_sess, conn))
+						fsType = "NTFS";
+				}
+
+				DiskInfoPacker.packFsAttribute( diskCtx.getFilesystemAttributes(), MaxPathLength, fsType, true, buf);
+				varLen = true;
+				break;
+
+			// Full filesystem size information, including any per user quota
+
+			case FsFullSizeInfo:
+				long userLimit = -1L;
+				long userTotalSpace = -1L;
+
+				if ( diskCtx.hasQuotaManager()) {
+					userTotalSpace = diskCtx.getQuotaManager().getUserTotalSpace( m_sess, conn);
+					userLimit = diskCtx.getQuotaManager().getUserFreeSpace( m_sess, conn);
+				}
+
+				DiskInfoPacker.packFullFsSizeInformation( userTotalSpace, userLimit, getDiskInformation( disk, diskCtx), buf);
+				break;
+
+			// Unsupported information class
+
+			default:
+				throw new UnsupportedInfoLevelException();
+		}
+
+		return varLen;
+	}
+
+	/**
+	 * Pack a directory entry, aligning the entry to an 8 byte boundary relative to the start of the
+	 * output buffer. Return the position of the entry.
+	 *
+	 * @param info FileInfo
+	 * @param dataBuf DataBuffer
+	 * @param infoLevel int
+	 * @param outPos int
+	 * @return int
+	 * @exception UnsupportedInfoLevelException
+	 */
+	private final int packDirectoryEntry( FileInfo info, DataBuffer dataBuf, int infoLevel, int outPos)
+		throws UnsupportedInfoLevelException {
+
+		// Pack the entry
+
+		int entryPos = dataBuf.getPosition();
+		FindInfoPacker.packInfo( info, dataBuf, infoLevel, true);
+
+		// Align the next entry, and update the next entry offset
+
+		int endPos = alignOffset( dataBuf.getPosition() - outPos, SMB2SrvPacket.CompoundAlign) + outPos;
+		dataBuf.putZeros( endPos - dataBuf.getPosition());
+
+		DataPacker.putIntelInt( endPos - entryPos, dataBuf.getBuffer(), entryPos);
+
+		return entryPos;
+	}
+
+	/**
+	 * Pack the negotiate response body, return the body length
+	 *
+	 * @param buf byte[]
+	 * @param pos int
+	 * @param dialect int
+	 * @return int
+	 */
+	private final int packNegotiateResponse( byte[] buf, int pos, int dialect) {
+
+		// Get the security blob from the authenticator
+
+		CifsAuthenticator auth = (CifsAuthenticator) m_sess.getSMBServer().getCifsAuthenticator();
+		byte[] secBlob = auth.getNegotiateSecurityBlob();
+		int secLen = secBlob != null ? secBlob.length : 0;
+
+		int maxIO = getMaximumIOSize( dialect);
+
+		DataPacker.putIntelShort( 65, buf, pos);
+		DataPacker.putIntelShort( SecModeNone, buf, pos + 2);
+		DataPacker.putIntelShort( dialect, buf, pos + 4);
+		DataPacker.putIntelShort( 0, buf, pos + 6);
+
+		System.arraycopy( m_sess.getSMBServer().getServerGUID().getBytes(), 0, buf, pos + 8, 16);
+
+		DataPacker.putIntelInt( dialect == Dialect.SMB2_1 ? CapLargeMTU : 0, buf, pos + 24);
+		DataPacker.putIntelInt( MaxTransactSize, buf, pos + 28);
+		DataPacker.putIntelInt( maxIO, buf, pos + 32);
+		DataPacker.putIntelInt( maxIO, buf, pos + 36);
+		DataPacker.putIntelLong( NTTime.toNTTime( System.currentTimeMillis()), buf, pos + 40);
+		DataPacker.putIntelLong( 0L, buf, pos + 48);		// server start time
+
+		DataPacker.putIntelShort( SMB2SrvPacket.HeaderLength + 64, buf, pos + 56);
+		DataPacker.putIntelShort( secLen, buf, pos + 58);
+		DataPacker.putIntelInt( 0, buf, pos + 60);
+
+		if ( secLen == 0) {
+			buf[pos + 64] = 0;
+			return 65;
+		}
+
+		System.arraycopy( secBlob, 0, buf, pos + 64, secLen);
+		return 64 + secLen;
+	}
+
+	/**
+	 * Pack an error response body, return the body length
+	 *
+	 * @param buf byte[]
+	 * @param pos int
+	 * @return int
+	 */
+	private final int packErrorResponse( byte[] buf, int pos) {
+		DataPacker.putIntelShort( 9, buf, pos);
+		DataPacker.putZeros( buf, pos + 2, 7);
+		return 9;
+	}
+
+	/**
+	 * Pack a response that only has the structure size, return the body length
+	 *
+	 * @param resp SMB2SrvPacket
+	 * @return int
+	 */
+	private final int packSimpleResponse( SMB2SrvPacket resp) {
+		DataPacker.putIntelShort( 4, resp.getBuffer(), resp.getBodyOffset());
+		DataPacker.putIntelShort( 0, resp.getBuffer(), resp.getBodyOffset() + 2);
+		return 4;
+	}
+
+	/**
+	 * Pack the file date/times, allocation size and end of file for a create or close response
+	 *
+	 * @param netFile NetworkFile
+	 * @param buf byte[]
+	 * @param pos int
+	 */
+	private final void packFileTimesAndSizes( NetworkFile netFile, byte[] buf, int pos) {
+
+		// Creation, access, write and change date/times
+
+		DataPacker.putIntelLong( netFile.hasCreationDate() ? NTTime.toNTTime( netFile.getCreationDate()) : 0L, buf, pos);
+
+		if ( netFile.hasAccessDate())
+			DataPacker.putIntelLong( NTTime.toNTTime( netFile.getAccessDate()), buf, pos + 8);
+		else
+			DataPacker.putIntelLong( netFile.hasModifyDate() ? NTTime.toNTTime( netFile.getModifyDate()) : 0L, buf, pos + 8);
+
+		long modDate = netFile.hasModifyDate() ? NTTime.toNTTime( netFile.getModifyDate()) : 0L;
+		DataPacker.putIntelLong( modDate, buf, pos + 16);
+		DataPacker.putIntelLong( modDate, buf, pos + 24);
+
+		// Allocation size and end of file
+
+		long fileSize = netFile.getFileSize();
+		long allocSize = fileSize > 0L ? ( fileSize + 512L) & 0xFFFFFFFFFFFFFE00L : 0L;
+
+		DataPacker.putIntelLong( allocSize, buf, pos + 32);
+		DataPacker.putIntelLong( fileSize, buf, pos + 40);
+	}
+
+	/**
+	 * Pack a file id, the persistent part is the file id and the volatile part is the tree id
+	 *
+	 * @param buf byte[]
+	 * @param pos int
+	 * @param fid int
+	 * @param treeId int
+	 */
+	private final void packFileId( byte[] buf, int pos, int fid, int treeId) {
+		DataPacker.putIntelLong(( long) fid, buf, pos);
+		DataPacker.putIntelLong(( long) treeId, buf, pos + 8);
+	}
+
+	/**
+	 * Align an offset to the specified boundary
+	 *
+	 * @param off int
+	 * @param align int
+	 * @return int
+	 */
+	private static final int alignOffset( int off, int align) {
+		return ( off + align - 1) & ~( align - 1);
+	}
+
+	/**
+	 * Return the file id from the persistent part of an SMB2 file id
+	 *
+	 * @param buf byte[]
+	 * @param pos int
+	 * @return int
+	 */
+	private final int getFileId( byte[] buf, int pos) {
+		long persistent = DataPacker.getIntelLong( buf, pos);
+		if ( persistent < 0L || persistent > Integer.MAX_VALUE)
+			return -1;
+		return (int) persistent;
+	}
+
+	/**
+	 * Return the offset of the file id within the request body for the specified command, or -1 if the
+	 * command does not have a file id
+	 *
+	 * @param cmd int
+	 * @return int
+	 */
+	private static final int getFileIdOffset( int cmd) {
+		switch ( cmd) {
+			case SMB2PacketType.Close:
+			case SMB2PacketType.Flush:
+			case SMB2PacketType.Lock:
+			case SMB2PacketType.IOCtl:
+			case SMB2PacketType.QueryDirectory:
+			case SMB2PacketType.ChangeNotify:
+				return 8;
+			case SMB2PacketType.Read:
+			case SMB2PacketType.Write:
+			case SMB2PacketType.SetInfo:
+				return 16;
+			case SMB2PacketType.QueryInfo:
+				return 24;
+		}
+		return -1;
+	}
+
+	/**
+	 * Map an SMB2 directory information class to a find information level, or -1 if not supported
+	 *
+	 * @param infoClass int
+	 * @return int
+	 */
+	private static final int getFindInfoLevel( int infoClass) {
+		switch ( infoClass) {
+			case FileDirectoryInfo:
+				return FindInfoPacker.InfoDirectory;
+			case FileFullDirectoryInfo:
+				return FindInfoPacker.InfoFullDirectory;
+			case FileBothDirectoryInfo:
+				return FindInfoPacker.InfoDirectoryBoth;
+			case FileNamesInfo:
+				return FindInfoPacker.InfoNames;
+			case FileIdBothDirectoryInfo:
+				return FindInfoPacker.InfoDirectoryBothId;
+		}
+		return -1;
+	}
+
+	/**
+	 * Return the maximal access mask for an open file
+	 *
+	 * @param netFile NetworkFile
+	 * @return int
+	 */
+	private static final int getMaximalAccess( NetworkFile netFile) {
+		if ( netFile.isDirectory() || netFile.getAllowedAccess() == NetworkFile.READWRITE)
+			return AccessMode.NTFileGenericAll;
+		return AccessMode.NTFileGenericRead;
+	}
+
+	/**
+	 * Return the search key for a directory search
+	 *
+	 * @param uid int
+	 * @param treeId int
+	 * @param fid int
+	 * @return long
+	 */
+	private static final long getSearchKey( int uid, int treeId, int fid) {
+		return (( long) ( uid & 0xFFFF) << 48) + (( long) ( treeId & 0xFFFF) << 32) + ( fid & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Close active searches for a session, or a tree connection within a session if the tree id is not -1
+	 *
+	 * @param uid int
+	 * @param treeId int
+	 */
+	private final void closeSearches( int uid, int treeId) {
+
+		// Find the matching searches
+
+		List<Long> keys = new ArrayList<Long>();
+		Enumeration<Long> enm = m_searches.keys();
+
+		while ( enm.hasMoreElements()) {
+			long key = enm.nextElement().longValue();
+			if (( key >>> 48) == ( uid & 0xFFFF) && ( treeId == -1 || (( key >>> 32) & 0xFFFF) == ( treeId & 0xFFFF)))
+				keys.add( key);
+		}
+
+		// Close the searches
+
+		for ( Long key : keys) {
+			SearchContext ctx = m_searches.remove( key);
+			if ( ctx != null)
+				ctx.closeSearch();
+		}
+	}
+
+	/**
+	 * Calculate the response length required for a request
+	 *
+	 * @param req SMB2SrvPacket
+	 * @param reqLen int
+	 * @return int
+	 */
+	private final int calcResponseLength( SMB2SrvPacket req, int reqLen) {
+
+		byte[] buf = req.getBuffer();
+		int pos = req.getBodyOffset();
+		int respLen = FixedRespSize;
+
+		switch ( req.getCommand()) {
+
+			// Negotiate and session setup include a security blob
+
+			case SMB2PacketType.Negotiate:
+				respLen = NegotiateRespSize;
+				break;
+
+			case SMB2PacketType.SessionSetup:
+				respLen = SessionSetupRespSize;
+				break;
+
+			// Read response includes the data
+
+			case SMB2PacketType.Read:
+				if ( reqLen >= SMB2SrvPacket.HeaderLength + 8)
+					respLen = 16 + Math.min( Math.max( DataPacker.getIntelInt( buf, pos + 4), 0), getMaximumIOSize( m_smb2Dialect));
+				break;
+
+			// Query directory and query information responses are limited by the output buffer length
+
+			case SMB2PacketType.QueryDirectory:
+				if ( reqLen >= SMB2SrvPacket.HeaderLength + 32)
+					respLen = 8 + Math.min( Math.max( DataPacker.getIntelInt( buf, pos + 28), 0), MaxTransactSize);
+				break;
+
+			case SMB2PacketType.QueryInfo:
+				if ( reqLen >= SMB2SrvPacket.HeaderLength + 8)
+					respLen = 8 + Math.min( Math.max( DataPacker.getIntelInt( buf, pos + 4), 0), MaxTransactSize);
+				break;
+		}
+
+		return Math.max( respLen, FixedRespSize);
+	}
+
+	/**
+	 * Return the maximum read/write size for the specified dialect
+	 *
+	 * @param dialect int
+	 * @return int
+	 */
+	private final int getMaximumIOSize( int dialect) {
+
+		// SMB 2.0.2 is limited to a single credit
+
+		if ( dialect != Dialect.SMB2_1)
+			return CreditSize;
+
+		// Large MTU is limited by the largest packet that can be allocated
+
+		CIFSPacketPool pktPool = m_sess.getPacketPool();
+		int maxPkt = pktPool.getLargestSize();
+
+		if ( pktPool.allowsOverSizedAllocations() && pktPool.getMaximumOverSizedAllocation() > maxPkt)
+			maxPkt = pktPool.getMaximumOverSizedAllocation();
+
+		int maxIO = ( maxPkt - PacketOverhead) & ~( CreditSize - 1);
+
+		if ( maxIO > LargeMTUSize)
+			maxIO = LargeMTUSize;
+		else if ( maxIO < CreditSize)
+			maxIO = CreditSize;
+
+		return maxIO;
+	}
+
+	/**
+	 * Check that a read/write payload is within the negotiated maximum and is covered by the credit
+	 * charge of the request
+	 *
+	 * @param req SMB2SrvPacket
+	 * @param len int
+	 * @exception SMBSrvException
+	 */
+	private final void checkPayloadSize( SMB2SrvPacket req, int len)
+		throws SMBSrvException {
+
+		if ( len < 0 || len > getMaximumIOSize( m_smb2Dialect))
+			throw new SMBSrvException( SMBStatus.NTInvalidParameter, SMBStatus.ErrSrv, SMBStatus.SRVNonSpecificError);
+
+		// Multi-credit requests must be charged one credit per 64K
+
+		if ( m_smb2Dialect == Dialect.SMB2_1 && len > CreditSize) {
+			int reqCharge = ( len + CreditSize - 1) / CreditSize;
+			if ( req.getCreditCharge() < reqCharge)
+				throw new SMBSrvException( SMBStatus.NTInvalidParameter, SMBStatus.ErrSrv, SMBStatus.SRVNonSpecificError);
+		}
+	}
+
+	/**
+	 * Update the credits for a request, return the number of credits granted in the response
+	 *
+	 * @param charge int
+	 * @param requested int
+	 * @return int
+	 */
+	private final synchronized int updateCredits( int charge, int requested) {
+
+		// Consume the credits used by the request, a zero charge is one credit
+
+		m_credits -= Math.max( charge, 1);
+		if ( m_credits < 0)
+			m_credits = 0;
+
+		// Grant the requested credits up to the maximum, the client must always have at least one credit
+
+		int grant = Math.min( Math.max( requested, 1), MaxCredits - m_credits);
+
+		if ( grant < 0)
+			grant = 0;
+		if ( grant == 0 && m_credits == 0)
+			grant = 1;
+
+		m_credits += grant;
+		return grant;
+	}
+
+	/**
+	 * Check if there is an exclusive or batch oplock on a file
+	 *
+	 * @param disk DiskInterface
+	 * @param conn TreeConnection
+	 * @param params FileOpenParams
+	 * @return boolean
+	 */
+	private final boolean hasExclusiveOpLock( DiskInterface disk, TreeConnection conn, FileOpenParams params) {
+
+		if ( disk instanceof OpLockInterface) {
+
+			OpLockInterface oplockIface = (OpLockInterface) disk;
+			if ( oplockIface.isOpLocksEnabled( m_sess, conn) == false)
+				return false;
+
+			OpLockManager oplockMgr = oplockIface.getOpLockManager( m_sess, conn);
+			if ( oplockMgr != null) {
+				OpLockDetails oplock = oplockMgr.getOpLockDetails( params.getFullPath());
+				return oplock != null && oplock.getLockType() != OpLock.TypeLevelII;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Check that variable length request data is within the received request
+	 *
+	 * @param req SMB2SrvPacket
+	 * @param reqLen int
+	 * @param pos int
+	 * @param len int
+	 * @exception SMBSrvException
+	 */
+	private final void checkRequestData( SMB2SrvPacket req, int reqLen, int pos, int len)
+		throws SMBSrvException {
+
+		if ( len < 0 || pos < req.getHeaderOffset() || pos + len > req.getHeaderOffset() + reqLen)
+			throw new SMBSrvException( SMBStatus.NTInvalidParameter, SMBStatus.ErrSrv, SMBStatus.SRVNonSpecificError);
+	}
+
+	/**
+	 * Return the logged on session for a request
+	 *
+	 * @param req SMB2SrvPacket
+	 * @return VirtualCircuit
+	 * @exception SMBSrvException
+	 */
+	private final VirtualCircuit getVirtualCircuit( SMB2SrvPacket req)
+		throws SMBSrvException {
+
+		long sessId = req.getSessionId();
+		VirtualCircuit vc = m_sess.findVirtualCircuit(( int) sessId);
+
+		if ( vc == null || vc.getUID() != sessId || vc.isLoggedOn() == false)
+			throw new SMBSrvException( SMBStatus.NTUserSessionDeleted, SMBStatus.ErrSrv, SMBStatus.SRVInvalidUID);
+
+		return vc;
+	}
+
+	/**
+	 * Return the tree connection for a request
+	 *
+	 * @param vc VirtualCircuit
+	 * @param req SMB2SrvPacket
+	 * @return TreeConnection
+	 * @exception SMBSrvException
+	 */
+	private final TreeConnection getTreeConnection( VirtualCircuit vc, SMB2SrvPacket req)
+		throws SMBSrvException {
+
+		TreeConnection conn = vc.findConnection( req.getTreeId());
+		if ( conn == null)
+			throw new SMBSrvException( SMBStatus.NTNetworkNameDeleted, SMBStatus.ErrSrv, SMBStatus.SRVInvalidTID);
+
+		return conn;
+	}
+
+	/**
+	 * Return the disk interface for a tree connection
+	 *
+	 * @param conn TreeConnection
+	 * @return DiskInterface
+	 * @exception SMBSrvException
+	 */
+	private final DiskInterface getDiskInterface( TreeConnection conn)
+		throws SMBSrvException {
+
+		// Named pipes are not supported over SMB2
+
+		if ( conn.getSharedDevice().getType() != ShareType.DISK)
+			throw new SMBSrvException( SMBStatus.NTNotSupported, SMBStatus.ErrSrv, SMBStatus.SRVNotSupported);
+
+		try {
+			return (DiskInterface) conn.getSharedDevice().getInterface();
+		}
+		catch ( InvalidDeviceInterfaceException ex) {
+			throw new SMBSrvException( SMBStatus.NTInvalidParameter, SMBStatus.ErrDos, SMBStatus.DOSInvalidData);
+		}
+	}
+
+	/**
+	 * Return the open file for the file id at the specified request position
+	 *
+	 * @param conn TreeConnection
+	 * @param req SMB2SrvPacket
+	 * @param pos int
+	 * @return NetworkFile
+	 * @exception SMBSrvException
+	 */
+	private final NetworkFile getNetworkFile( TreeConnection conn, SMB2SrvPacket req, int pos)
+		throws SMBSrvException {
+
+		// The volatile part of the file id must match the tree id
+
+		byte[] buf = req.getBuffer();
+		int fid = getFileId( buf, pos);
+		NetworkFile netFile = null;
+
+		if ( fid != -1 && DataPacker.getIntelLong( buf, pos + 8) == req.getTreeId())
+			netFile = conn.findFile( fid);
+
+		if ( netFile == null)
+			throw new SMBSrvException( SMBStatus.NTFileClosed, SMBStatus.ErrDos, SMBStatus.DOSInvalidHandle);
+
+		return netFile;
+	}
+}
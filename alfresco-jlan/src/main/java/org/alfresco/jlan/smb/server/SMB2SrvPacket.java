@@ -0,0 +1,360 @@
+/*
+ * Copyright (C) 2006-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.alfresco.jlan.smb.server;
+
+import org.alfresco.jlan.smb.SMB2PacketType;
+import org.alfresco.jlan.util.DataPacker;
+
+/**
+ * SMB2 Server Packet Class
+ *
+ * <p>Provides access to an SMB2 header and the command body that follows it. The header may be at
+ * any offset within the buffer, so the same class is used to walk the requests and build the responses
+ * of a compounded SMB2 request chain.
+ *
+ * @author gkspencer
+ */
+class SMB2SrvPacket {
+
+	// SMB2 header length and offsets, relative to the start of the header
+
+	public static final int HeaderLength	= 64;
+
+	public static final int PROTOCOLID		= 0;
+	public static final int STRUCTSIZE		= 4;
+	public static final int CREDITCHARGE	= 6;
+	public static final int STATUS			= 8;
+	public static final int COMMAND			= 12;
+	public static final int CREDITS			= 14;
+	public static final int FLAGS			= 16;
+	public static final int NEXTCOMMAND		= 20;
+	public static final int MESSAGEID		= 24;
+	public static final int PROCESSID		= 32;
+	public static final int TREEID			= 36;
+	public static final int SESSIONID		= 40;
+	public static final int SIGNATURE		= 48;
+
+	// Header flags
+
+	public static final int FlagResponse	= 0x00000001;
+	public static final int FlagAsync		= 0x00000002;
+	public static final int FlagRelated		= 0x00000004;
+	public static final int FlagSigned		= 0x00000008;
+	public static final int FlagDFS			= 0x10000000;
+
+	// Compounded requests/responses are aligned to an 8 byte boundary
+
+	public static final int CompoundAlign	= 8;
+
+	// Packet buffer and offset to the SMB2 header
+
+	private byte[] m_buf;
+	private int m_offset;
+
+	/**
+	 * Class constructor
+	 *
+	 * @param buf byte[]
+	 * @param off int
+	 */
+	public SMB2SrvPacket(byte[] buf, int off) {
+		m_buf = buf;
+		m_offset = off;
+	}
+
+	/**
+	 * Return the packet buffer
+	 *
+	 * @return byte[]
+	 */
+	public final byte[] getBuffer() {
+		return m_buf;
+	}
+
+	/**
+	 * Return the offset to the SMB2 header
+	 *
+	 * @return int
+	 */
+	public final int getHeaderOffset() {
+		return m_offset;
+	}
+
+	/**
+	 * Return the offset to the command body
+	 *
+	 * @return int
+	 */
+	public final int getBodyOffset() {
+		return m_offset + HeaderLength;
+	}
+
+	/**
+	 * Check if the header has a valid SMB2 signature and structure size
+	 *
+	 * @return boolean
+	 */
+	public final boolean isValidHeader() {
+		return m_buf[m_offset] == (byte) 0xFE && m_buf[m_offset + 1] == 'S' && m_buf[m_offset + 2] == 'M'
+				&& m_buf[m_offset + 3] == 'B' && DataPacker.getIntelShort(m_buf, m_offset + STRUCTSIZE) == HeaderLength;
+	}
+
+	/**
+	 * Return the command code
+	 *
+	 * @return int
+	 */
+	public final int getCommand() {
+		return DataPacker.getIntelShort(m_buf, m_offset + COMMAND);
+	}
+
+	/**
+	 * Return the credit charge
+	 *
+	 * @return int
+	 */
+	public final int getCreditCharge() {
+		return DataPacker.getIntelShort(m_buf, m_offset + CREDITCHARGE);
+	}
+
+	/**
+	 * Return the requested/granted credits
+	 *
+	 * @return int
+	 */
+	public final int getCredits() {
+		return DataPacker.getIntelShort(m_buf, m_offset + CREDITS);
+	}
+
+	/**
+	 * Return the status code
+	 *
+	 * @return int
+	 */
+	public final int getStatus() {
+		return DataPacker.getIntelInt(m_buf, m_offset + STATUS);
+	}
+
+	/**
+	 * Return the header flags
+	 *
+	 * @return int
+	 */
+	public final int getFlags() {
+		return DataPacker.getIntelInt(m_buf, m_offset + FLAGS);
+	}
+
+	/**
+	 * Check if this is a related compound request
+	 *
+	 * @return boolean
+	 */
+	public final boolean isRelated() {
+		return (getFlags() & FlagRelated) != 0;
+	}
+
+	/**
+	 * Return the offset to the next command in a compound chain, or zero if this is the last command
+	 *
+	 * @return int
+	 */
+	public final int getNextCommand() {
+		return DataPacker.getIntelInt(m_buf, m_offset + NEXTCOMMAND);
+	}
+
+	/**
+	 * Return the message id
+	 *
+	 * @return long
+	 */
+	public final long getMessageId() {
+		return DataPacker.getIntelLong(m_buf, m_offset + MESSAGEID);
+	}
+
+	/**
+	 * Return the process id
+	 *
+	 * @return int
+	 */
+	public final int getProcessId() {
+		return DataPacker.getIntelInt(m_buf, m_offset + PROCESSID);
+	}
+
+	/**
+	 * Return the tree id
+	 *
+	 * @return int
+	 */
+	public final int getTreeId() {
+		return DataPacker.getIntelInt(m_buf, m_offset + TREEID);
+	}
+
+	/**
+	 * Return the session id
+	 *
+	 * @return long
+	 */
+	public final long getSessionId() {
+		return DataPacker.getIntelLong(m_buf, m_offset + SESSIONID);
+	}
+
+	/**
+	 * Set the credit charge
+	 *
+	 * @param charge int
+	 */
+	public final void setCreditCharge(int charge) {
+		DataPacker.putIntelShort(charge, m_buf, m_offset + CREDITCHARGE);
+	}
+
+	/**
+	 * Set the granted credits
+	 *
+	 * @param credits int
+	 */
+	public final void setCredits(int credits) {
+		DataPacker.putIntelShort(credits, m_buf, m_offset + CREDITS);
+	}
+
+	/**
+	 * Set the status code
+	 *
+	 * @param sts int
+	 */
+	public final void setStatus(int sts) {
+		DataPacker.putIntelInt(sts, m_buf, m_offset + STATUS);
+	}
+
+	/**
+	 * Set the header flags
+	 *
+	 * @param flags int
+	 */
+	public final void setFlags(int flags) {
+		DataPacker.putIntelInt(flags, m_buf, m_offset + FLAGS);
+	}
+
+	/**
+	 * Set the offset to the next command in a compound chain
+	 *
+	 * @param next int
+	 */
+	public final void setNextCommand(int next) {
+		DataPacker.putIntelInt(next, m_buf, m_offset + NEXTCOMMAND);
+	}
+
+	/**
+	 * Set the tree id
+	 *
+	 * @param treeId int
+	 */
+	public final void setTreeId(int treeId) {
+		DataPacker.putIntelInt(treeId, m_buf, m_offset + TREEID);
+	}
+
+	/**
+	 * Set the session id
+	 *
+	 * @param sessId long
+	 */
+	public final void setSessionId(long sessId) {
+		DataPacker.putIntelLong(sessId, m_buf, m_offset + SESSIONID);
+	}
+
+	/**
+	 * Initialize a response header using the request header details
+	 *
+	 * @param req SMB2SrvPacket
+	 */
+	public final void initResponse(SMB2SrvPacket req) {
+
+		// Copy the request header, clear the status, next command and signature fields
+
+		System.arraycopy(req.getBuffer(), req.getHeaderOffset(), m_buf, m_offset, HeaderLength);
+
+		setStatus(0);
+		setNextCommand(0);
+		DataPacker.putZeros(m_buf, m_offset + SIGNATURE, 16);
+
+		// Mark the header as a response, keep the related flag for compounded responses
+
+		setFlags((req.getFlags() & FlagRelated) + FlagResponse);
+	}
+
+	/**
+	 * Initialize a new response header for the specified command
+	 *
+	 * @param cmd int
+	 */
+	public final void initHeader(int cmd) {
+
+		// Clear the header, set the protocol id, structure size and command
+
+		DataPacker.putZeros(m_buf, m_offset, HeaderLength);
+
+		m_buf[m_offset] = (byte) 0xFE;
+		m_buf[m_offset + 1] = 'S';
+		m_buf[m_offset + 2] = 'M';
+		m_buf[m_offset + 3] = 'B';
+
+		DataPacker.putIntelShort(HeaderLength, m_buf, m_offset + STRUCTSIZE);
+		DataPacker.putIntelShort(cmd, m_buf, m_offset + COMMAND);
+
+		setFlags(FlagResponse);
+	}
+
+	/**
+	 * Return the body offset as a value relative to the start of the SMB2 header
+	 *
+	 * @param pos int
+	 * @return int
+	 */
+	public final int relativeOffset(int pos) {
+		return pos - m_offset;
+	}
+
+	/**
+	 * Return the SMB2 header details as a string
+	 *
+	 * @return String
+	 */
+	public String toString() {
+		StringBuilder str = new StringBuilder();
+
+		str.append("[SMB2 ");
+		str.append(SMB2PacketType.getCommandName(getCommand()));
+		str.append(",MID=");
+		str.append(getMessageId());
+		str.append(",SID=0x");
+		str.append(Long.toHexString(getSessionId()));
+		str.append(",TID=");
+		str.append(getTreeId());
+		str.append(",Credits=");
+		str.append(getCreditCharge());
+		str.append("/");
+		str.append(getCredits());
+		str.append(",Next=");
+		str.append(getNextCommand());
+		str.append(isRelated() ? ",Related" : "");
+		str.append("]");
+
+		return str.toString();
+	}
+}
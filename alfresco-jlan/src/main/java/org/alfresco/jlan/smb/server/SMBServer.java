@@ -240,6 +240,11 @@ public class SMBServer extends NetworkFileServer implements Runnable, Configurat
 
 				if (( m_cifsConfig.getSessionDebugFlags() & SMBSrvSession.DBG_PKTALLOC) != 0)
 					m_packetPool.setAllocateDebug( true);
+
+				// If SMB2 is enabled allow over sized packets large enough for large MTU reads/writes
+
+				if ( m_cifsConfig.isSMB2Enabled() && m_packetPool.getMaximumOverSizedAllocation() < SMB2ProtocolHandler.LargeMTUPacketSize)
+					m_packetPool.setMaximumOverSizedAllocation( SMB2ProtocolHandler.LargeMTUPacketSize);
 			}
 		}
 		else
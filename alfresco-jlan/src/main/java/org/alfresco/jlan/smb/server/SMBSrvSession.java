@@ -23,11 +23,13 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.channels.FileChannel;
 import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.alfresco.jlan.debug.Debug;
 import org.alfresco.jlan.netbios.NetBIOSException;
@@ -37,6 +39,7 @@ import org.alfresco.jlan.netbios.RFCNetBIOSProtocol;
 import org.alfresco.jlan.server.SrvSession;
 import org.alfresco.jlan.server.SrvSessionList;
 import org.alfresco.jlan.server.auth.AuthenticatorException;
+import org.alfresco.jlan.server.auth.CifsAuthenticator;
 import org.alfresco.jlan.server.auth.ICifsAuthenticator;
 import org.alfresco.jlan.server.filesys.DeferredPacketException;
 import org.alfresco.jlan.server.filesys.DiskDeviceContext;
@@ -165,6 +168,11 @@ public class SMBSrvSession extends SrvSession implements Runnable {
 
 	private Queue<SMBSrvPacket> m_asynchQueue;
 
+	// Lock used when sending responses and accessing the asynchronous response queue. A lock is used rather
+	// than a monitor so a virtual thread that blocks writing to the socket does not pin its carrier thread.
+
+	private final ReentrantLock m_sendLock = new ReentrantLock();
+
 	// Maximum client buffer size and multiplex count
 
 	private int m_maxBufSize;
@@ -925,6 +933,47 @@ public class SMBSrvSession extends SrvSession implements Runnable {
 		m_pktHandler.writePacket( smbPkt, 4, true);
 	}
 
+	/**
+	 * Check if SMB2 can be negotiated with clients, SMB2 must be enabled and the authenticator must
+	 * support extended security
+	 *
+	 * @return boolean
+	 */
+	private final boolean canNegotiateSMB2() {
+		ICifsAuthenticator auth = getSMBServer().getCifsAuthenticator();
+		return getSMBServer().getCIFSConfiguration().isSMB2Enabled() && auth instanceof CifsAuthenticator && auth.hasExtendedSecurity();
+	}
+
+	/**
+	 * Switch the session to the SMB2 protocol handler, if not already active
+	 *
+	 * @return SMB2ProtocolHandler
+	 */
+	private final SMB2ProtocolHandler startSMB2Protocol() {
+
+		// Check if the SMB2 protocol handler is already active
+
+		if ( m_handler instanceof SMB2ProtocolHandler)
+			return (SMB2ProtocolHandler) m_handler;
+
+		// Allocate the SMB2 protocol handler
+
+		m_handler = new SMB2ProtocolHandler( this);
+		m_dialect = Dialect.NT;
+
+		// Debug
+
+		if ( Debug.EnableInfo && hasDebug(DBG_NEGOTIATE))
+			debugPrintln("Assigned protocol handler - " + m_handler.getClass().getName());
+
+		// Session setup is handled by the SMB2 protocol handler, inform the server that the session has been opened
+
+		setState(SMBSrvSessionState.SMBSESSION);
+		getSMBServer().sessionOpened(this);
+
+		return (SMB2ProtocolHandler) m_handler;
+	}
+
 	/**
 	 * Process an SMB dialect negotiate request.
 	 *
@@ -938,6 +987,13 @@ public class SMBSrvSession extends SrvSession implements Runnable {
 		byte[] buf = smbPkt.getBuffer();
 		buf[0] = (byte) RFCNetBIOSProtocol.SESSION_MESSAGE;
 
+		// Check for an SMB2 negotiate request, switch to the SMB2 protocol handler
+
+		if ( smbPkt.isSMB2()) {
+			startSMB2Protocol().runProtocol( smbPkt);
+			return;
+		}
+
 		// Check if the received packet looks like a valid SMB
 
 		if ( smbPkt.getCommand() != PacketType.Negotiate || smbPkt.checkPacketIsValid(0, 2) == false) {
@@ -979,6 +1035,13 @@ public class SMBSrvSession extends SrvSession implements Runnable {
 			dataLen -= diaStr.length() + 2;
 		}
 
+		// Check if the client supports SMB2, if so respond with an SMB2 negotiate response
+
+		if ( canNegotiateSMB2() && ( dialects.containsString( Dialect.SMB2_Any) || dialects.containsString( Dialect.SMB2_002))) {
+			startSMB2Protocol().procMultiProtocolNegotiate( smbPkt, dialects.containsString( Dialect.SMB2_Any));
+			return;
+		}
+
 		// Find the highest level SMB dialect that the server and client both support
 
 		DialectSelector dia = getSMBServer().getCIFSConfiguration().getEnabledDialects();
@@ -1323,17 +1386,22 @@ public class SMBSrvSession extends SrvSession implements Runnable {
 
 					if ( smbPkt.isSMB2()) {
 
-						// Debug
+						// Ignore SMB2 requests unless SMB2 is enabled
 
-						if ( Debug.EnableInfo && hasDebug(DBG_PKTTYPE))
-							debugPrintln("SMB2 request received, ignoring");
+						if ( canNegotiateSMB2() == false) {
 
-						continue;
+							// Debug
+
+							if ( Debug.EnableInfo && hasDebug(DBG_PKTTYPE))
+								debugPrintln("SMB2 request received, ignoring");
+
+							continue;
+						}
 					}
 
 					// Check the packet signature
 
-					if ( smbPkt.checkPacketSignature() == false) {
+					else if ( smbPkt.checkPacketSignature() == false) {
 
 						// Debug
 
@@ -1420,9 +1488,13 @@ public class SMBSrvSession extends SrvSession implements Runnable {
 			if ( Debug.EnableInfo && hasDebug(DBG_NOTIFY)) {
 				debugPrintln("Sent queued asynch response type=" + asynchPkt.getPacketTypeString() + ", mid="
 						+ asynchPkt.getMultiplexId() + ", pid=" + asynchPkt.getProcessId());
-				synchronized (this) {
+				m_sendLock.lock();
+				try {
 				    debugPrintln("  Async queue len=" + m_asynchQueue.size());
 				}
+				finally {
+					m_sendLock.unlock();
+				}
 			}
 		}
 	}
@@ -1611,9 +1683,89 @@ public class SMBSrvSession extends SrvSession implements Runnable {
 	 * @param len int
 	 * @exception IOException
 	 */
-	public synchronized final void sendResponseSMB(SMBSrvPacket pkt, int len)
+	public final void sendResponseSMB(SMBSrvPacket pkt, int len)
+		throws IOException {
+
+		m_sendLock.lock();
+
+		try {
+
+			// Prepare the response for sending
+
+			prepareResponseSMB(pkt);
+
+			// Send the response packet
+
+			m_pktHandler.writePacket(pkt, len);
+			m_pktHandler.flushPacket();
+
+			// Debug
+
+			if ( Debug.EnableInfo && hasDebug(DBG_TXDATA)) {
+				debugPrintln("Tx Data len=" + len);
+				HexDump.Dump(pkt.getBuffer(), 64, 0, Debug.getDebugInterface());
+			}
+		}
+		finally {
+			m_sendLock.unlock();
+		}
+	}
+
+	/**
+	 * Check if response data can be sent directly from a file channel
+	 *
+	 * @return boolean
+	 */
+	public final boolean supportsFileTransfer() {
+		return m_pktHandler.supportsFileTransfer();
+	}
+
+	/**
+	 * Send an SMB response followed by data transferred directly from a file channel. The packet length
+	 * does not include the file data length.
+	 *
+	 * @param pkt SMBSrvPacket
+	 * @param len int
+	 * @param fileChan FileChannel
+	 * @param filePos long
+	 * @param fileLen int
+	 * @exception IOException
+	 */
+	public final void sendResponseSMB(SMBSrvPacket pkt, int len, FileChannel fileChan, long filePos, int fileLen)
 		throws IOException {
 
+		m_sendLock.lock();
+
+		try {
+
+			// Prepare the response for sending
+
+			prepareResponseSMB(pkt);
+
+			// Send the response packet and file data
+
+			m_pktHandler.writePacket(pkt, len, fileChan, filePos, fileLen);
+			m_pktHandler.flushPacket();
+
+			// Debug
+
+			if ( Debug.EnableInfo && hasDebug(DBG_TXDATA)) {
+				debugPrintln("Tx Data len=" + len + ", file data len=" + fileLen);
+				HexDump.Dump(pkt.getBuffer(), 64, 0, Debug.getDebugInterface());
+			}
+		}
+		finally {
+			m_sendLock.unlock();
+		}
+	}
+
+	/**
+	 * Prepare an SMB response for sending, end any active transaction and set the response flags
+	 *
+	 * @param pkt SMBSrvPacket
+	 */
+	private final void prepareResponseSMB(SMBSrvPacket pkt) {
+
 		// Commit/rollback any active transactions before sending the response
 
 		if ( hasTransaction()) {
@@ -1638,32 +1790,25 @@ public class SMBSrvSession extends SrvSession implements Runnable {
 			}
 		}
 
-		// Make sure the response flag is set
+		// SMB2 responses are built by the SMB2 protocol handler
 
-		if ( pkt.isRequestPacket() == false && pkt.isResponse() == false)
-			pkt.setFlags(pkt.getFlags() + SMBSrvPacket.FLG_RESPONSE);
+		if ( pkt.isSMB2() == false) {
 
-		// Add default flags/flags2 values
+			// Make sure the response flag is set
 
-		pkt.setFlags(pkt.getFlags() | getDefaultFlags());
+			if ( pkt.isRequestPacket() == false && pkt.isResponse() == false)
+				pkt.setFlags(pkt.getFlags() + SMBSrvPacket.FLG_RESPONSE);
 
-		// Mask out certain flags that the client may have sent
+			// Add default flags/flags2 values
 
-		int flags2 = pkt.getFlags2() | getDefaultFlags2();
-		flags2 &= ~(SMBSrvPacket.FLG2_EXTENDEDATTRIB + SMBSrvPacket.FLG2_DFSRESOLVE + SMBSrvPacket.FLG2_SECURITYSIGS);
+			pkt.setFlags(pkt.getFlags() | getDefaultFlags());
 
-		pkt.setFlags2(flags2);
+			// Mask out certain flags that the client may have sent
 
-		// Send the response packet
+			int flags2 = pkt.getFlags2() | getDefaultFlags2();
+			flags2 &= ~(SMBSrvPacket.FLG2_EXTENDEDATTRIB + SMBSrvPacket.FLG2_DFSRESOLVE + SMBSrvPacket.FLG2_SECURITYSIGS);
 
-		m_pktHandler.writePacket(pkt, len);
-		m_pktHandler.flushPacket();
-
-		// Debug
-
-		if ( Debug.EnableInfo && hasDebug(DBG_TXDATA)) {
-			debugPrintln("Tx Data len=" + len);
-			HexDump.Dump(pkt.getBuffer(), 64, 0, Debug.getDebugInterface());
+			pkt.setFlags2(flags2);
 		}
 	}
 
@@ -1720,9 +1865,9 @@ public class SMBSrvSession extends SrvSession implements Runnable {
 	public final void sendErrorResponseSMB( SMBSrvPacket smbPkt, int ntCode, int stdCode, int stdClass)
 		throws java.io.IOException {
 
-		// Check if long error codes are required by the client
+		// Check if long error codes are required by the client, SMB2 always uses NT status codes
 
-		if ( smbPkt.isLongErrorCode()) {
+		if ( smbPkt.isLongErrorCode() || smbPkt.isSMB2()) {
 
 			// Return the long/NT status code
 
@@ -1757,6 +1902,14 @@ public class SMBSrvSession extends SrvSession implements Runnable {
 	public final void sendErrorResponseSMB( SMBSrvPacket smbPkt, int errCode, int errClass)
 		throws java.io.IOException {
 
+		// SMB2 error responses are built and sent by the SMB2 protocol handler
+
+		if ( smbPkt.isSMB2() && m_handler instanceof SMB2ProtocolHandler) {
+			SMB2ProtocolHandler smb2Handler = (SMB2ProtocolHandler) m_handler;
+			smb2Handler.sendAsyncErrorResponse( smbPkt, SMB2ProtocolHandler.mapToNTStatus( errCode, errClass));
+			return;
+		}
+
 		// Make sure the response flag is set
 
 		if ( smbPkt.isResponse() == false)
@@ -1819,6 +1972,13 @@ public class SMBSrvSession extends SrvSession implements Runnable {
 	public final boolean sendAsyncErrorResponseSMB( SMBSrvPacket smbPkt, int errCode, int errClass)
 		throws java.io.IOException {
 
+		// SMB2 error responses are built and sent by the SMB2 protocol handler
+
+		if ( smbPkt.isSMB2() && m_handler instanceof SMB2ProtocolHandler) {
+			SMB2ProtocolHandler smb2Handler = (SMB2ProtocolHandler) m_handler;
+			return smb2Handler.sendAsyncErrorResponse( smbPkt, SMB2ProtocolHandler.mapToNTStatus( errCode, errClass));
+		}
+
 		// Make sure the response flag is set
 
 		if ( smbPkt.isResponse() == false)
@@ -1917,20 +2077,28 @@ public class SMBSrvSession extends SrvSession implements Runnable {
 	 *
 	 * @param pkt SMBSrvPacket
 	 */
-	protected final synchronized void queueAsynchResponseSMB(SMBSrvPacket pkt) {
+	protected final void queueAsynchResponseSMB(SMBSrvPacket pkt) {
 
-		// Check if the asynchronous response queue has been allocated
+		m_sendLock.lock();
 
-		if ( m_asynchQueue == null) {
+		try {
 
-			// Allocate the asynchronous response queue
+			// Check if the asynchronous response queue has been allocated
 
-			m_asynchQueue = new LinkedList<SMBSrvPacket>();
-		}
+			if ( m_asynchQueue == null) {
+
+				// Allocate the asynchronous response queue
+
+				m_asynchQueue = new LinkedList<SMBSrvPacket>();
+			}
 
-		// Add the SMB response packet to the queue
+			// Add the SMB response packet to the queue
 
-		m_asynchQueue.add(pkt);
+			m_asynchQueue.add(pkt);
+		}
+		finally {
+			m_sendLock.unlock();
+		}
 	}
 
 	/**
@@ -1938,17 +2106,25 @@ public class SMBSrvSession extends SrvSession implements Runnable {
 	 *
 	 * @return SMBSrvPacket
 	 */
-	protected final synchronized SMBSrvPacket removeFirstAsynchResponse() {
+	protected final SMBSrvPacket removeFirstAsynchResponse() {
 
-		// Check if there are asynchronous response packets queued
+		m_sendLock.lock();
 
-		if ( m_asynchQueue == null || m_asynchQueue.size() == 0)
-			return null;
+		try {
 
-		// Return the SMB packet from the head of the queue
+			// Check if there are asynchronous response packets queued
 
-		SMBSrvPacket pkt = (SMBSrvPacket) m_asynchQueue.poll();
-		return pkt;
+			if ( m_asynchQueue == null || m_asynchQueue.size() == 0)
+				return null;
+
+			// Return the SMB packet from the head of the queue
+
+			SMBSrvPacket pkt = (SMBSrvPacket) m_asynchQueue.poll();
+			return pkt;
+		}
+		finally {
+			m_sendLock.unlock();
+		}
 	}
 
 	/**
@@ -1956,10 +2132,16 @@ public class SMBSrvSession extends SrvSession implements Runnable {
 	 *
 	 * @return boolean
 	 */
-	public final synchronized boolean hasAsyncResponseQueued() {
-		if ( m_asynchQueue == null || m_asynchQueue.size() == 0)
-			return false;
-		return true;
+	public final boolean hasAsyncResponseQueued() {
+		m_sendLock.lock();
+		try {
+			if ( m_asynchQueue == null || m_asynchQueue.size() == 0)
+				return false;
+			return true;
+		}
+		finally {
+			m_sendLock.unlock();
+		}
 	}
 
 	/**
@@ -1967,46 +2149,54 @@ public class SMBSrvSession extends SrvSession implements Runnable {
 	 *
 	 * @return int
 	 */
-	public final synchronized int sendQueuedAsyncResponses() {
+	public final int sendQueuedAsyncResponses() {
 
-        // Check if there are any pending asynchronous response packets
+		m_sendLock.lock();
 
-		int asyncCnt = 0;
-        SMBSrvPacket asynchPkt;
+		try {
 
-		while ((asynchPkt = removeFirstAsynchResponse()) != null) {
+			// Check if there are any pending asynchronous response packets
 
-			try {
+			int asyncCnt = 0;
+			SMBSrvPacket asynchPkt;
 
-				// Update the asynchronous pacekt count
+			while ((asynchPkt = removeFirstAsynchResponse()) != null) {
 
-				asyncCnt++;
+				try {
 
-				// Send the current asynchronous response to the client
+					// Update the asynchronous pacekt count
 
-				sendResponseSMB(asynchPkt, asynchPkt.getLength());
+					asyncCnt++;
 
-				// DEBUG
+					// Send the current asynchronous response to the client
 
-				if ( Debug.EnableInfo && (hasDebug(DBG_NOTIFY) || hasDebug(DBG_OPLOCK))) {
-					debugPrintln("Sent queued asynch response type=" + asynchPkt.getPacketTypeString() + ", mid="
-							+ asynchPkt.getMultiplexId() + ", pid=" + asynchPkt.getProcessId());
-					    debugPrintln("  Async queue len=" + m_asynchQueue.size());
+					sendResponseSMB(asynchPkt, asynchPkt.getLength());
+
+					// DEBUG
+
+					if ( Debug.EnableInfo && (hasDebug(DBG_NOTIFY) || hasDebug(DBG_OPLOCK))) {
+						debugPrintln("Sent queued asynch response type=" + asynchPkt.getPacketTypeString() + ", mid="
+								+ asynchPkt.getMultiplexId() + ", pid=" + asynchPkt.getProcessId());
+						debugPrintln("  Async queue len=" + m_asynchQueue.size());
+					}
 				}
-			}
-			catch (Exception ex) {
+				catch (Exception ex) {
 
-				// DEBUG
+					// DEBUG
 
-				if ( Debug.EnableError && (hasDebug(DBG_NOTIFY) || hasDebug(DBG_OPLOCK)))
-					debugPrintln("Failed to send queued asynch response type=" + asynchPkt.getPacketTypeString() + ", mid="
-							+ asynchPkt.getMultiplexId() + ", pid=" + asynchPkt.getProcessId() + ", ex=" + ex);
+					if ( Debug.EnableError && (hasDebug(DBG_NOTIFY) || hasDebug(DBG_OPLOCK)))
+						debugPrintln("Failed to send queued asynch response type=" + asynchPkt.getPacketTypeString() + ", mid="
+								+ asynchPkt.getMultiplexId() + ", pid=" + asynchPkt.getProcessId() + ", ex=" + ex);
+				}
 			}
-		}
 
-		// Return the count of asynchrnous packets processed
+			// Return the count of asynchrnous packets processed
 
-		return asyncCnt;
+			return asyncCnt;
+		}
+		finally {
+			m_sendLock.unlock();
+		}
 	}
 
 	/**
@@ -0,0 +1,512 @@
+/*
+ * Copyright (C) 2006-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.alfresco.jlan.smb.server.disk;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.StringTokenizer;
+
+import org.alfresco.jlan.server.filesys.PathNotFoundException;
+
+/**
+ * Case Insensitive Path Cache Class
+ *
+ * <p>Caches the directory listings used to map a case insensitive path to the real path on a case sensitive
+ * filesystem. Each cached directory maps the case folded file names to the real on-disk names, so mapping a path
+ * component is a hash lookup rather than a directory listing and a search of the file names.
+ *
+ * <p>A cached directory is validated against the directory modification date/time on each lookup. Listings of
+ * directories that were modified within the last few seconds are not cached, as a further change within the same
+ * modification time granularity would not be detected. The driver also invalidates directories that it changes.
+ * The cache is limited to a maximum number of file names, the least recently used directories are discarded.
+ *
+ * @author gkspencer
+ */
+public class CaseInsensitivePathCache {
+
+	// Default maximum number of file names to cache
+
+	public static final int DefaultMaximumNames	= 65536;
+
+	// Directories modified within this interval of the listing are not cached, in milliseconds
+
+	private static final long RacyInterval		= 2000L;
+
+	// DOS path seperator
+
+	private static final String DOS_SEPERATOR	= "\\";
+
+	// Cached directories, in least recently used order
+
+	private LinkedHashMap<String, CachedDirectory> m_dirs;
+
+	// Maximum number of file names to cache, and current number of cached file names
+
+	private int m_maxNames;
+	private int m_nameCount;
+
+	/**
+	 * Cached Directory Class
+	 *
+	 * <p>Contains the case folded file names of a directory mapped to the real file names. The details are
+	 * not changed once the cached directory has been created.
+	 */
+	private static class CachedDirectory {
+
+		// Directory modification date/time when the directory was listed
+
+		private long m_modifyTime;
+
+		// Case folded file name to real file name map, and the real names of files whose names differ only
+		// by case
+
+		private HashMap<String, String> m_names;
+		private HashSet<String> m_ambiguous;
+
+		/**
+		 * Class constructor
+		 *
+		 * @param modifyTime long
+		 * @param fileList String[]
+		 */
+		public CachedDirectory(long modifyTime, String[] fileList) {
+			m_modifyTime = modifyTime;
+
+			// Build the case folded name map
+
+			m_names = new HashMap<String, String>(( fileList.length * 4) / 3 + 1);
+
+			for ( String fname : fileList) {
+				String prevName = m_names.put(foldName(fname), fname);
+
+				if ( prevName != null) {
+
+					// Multiple names that only differ by case, keep the first name and record the names so an
+					// exact match can be used
+
+					m_names.put(foldName(fname), prevName);
+
+					if ( m_ambiguous == null)
+						m_ambiguous = new HashSet<String>();
+					m_ambiguous.add(prevName);
+					m_ambiguous.add(fname);
+				}
+			}
+		}
+
+		/**
+		 * Return the directory modification date/time when the directory was listed
+		 *
+		 * @return long
+		 */
+		public final long getModifyTime() {
+			return m_modifyTime;
+		}
+
+		/**
+		 * Return the number of file names
+		 *
+		 * @return int
+		 */
+		public final int numberOfNames() {
+			return m_names.size();
+		}
+
+		/**
+		 * Find the real file name that matches the specified name, an exact match is used in preference to
+		 * a case insensitive match. Returns null if there is no matching file.
+		 *
+		 * @param name String
+		 * @return String
+		 */
+		public final String findName(String name) {
+
+			// Find the real name using the case folded name
+
+			String realName = m_names.get(foldName(name));
+
+			if ( realName == null || m_ambiguous == null || realName.equals(name))
+				return realName;
+
+			// Check for an exact match with a name that differs only by case
+
+			return m_ambiguous.contains(name) ? name : realName;
+		}
+	}
+
+	/**
+	 * Default constructor
+	 */
+	public CaseInsensitivePathCache() {
+		this(DefaultMaximumNames);
+	}
+
+	/**
+	 * Class constructor
+	 *
+	 * @param maxNames int
+	 */
+	public CaseInsensitivePathCache(int maxNames) {
+		m_maxNames = maxNames;
+		m_dirs = new LinkedHashMap<String, CachedDirectory>(64, 0.75f, true);
+	}
+
+	/**
+	 * Return the number of cached directories
+	 *
+	 * @return int
+	 */
+	public final synchronized int numberOfDirectories() {
+		return m_dirs.size();
+	}
+
+	/**
+	 * Return the number of cached file names
+	 *
+	 * @return int
+	 */
+	public final synchronized int numberOfNames() {
+		return m_nameCount;
+	}
+
+	/**
+	 * Find the real name of a file or directory within the specified directory, using a case insensitive
+	 * search. An exact match is used in preference to a case insensitive match. Returns null if there is no
+	 * matching file.
+	 *
+	 * @param dir File
+	 * @param name String
+	 * @return String
+	 * @exception FileNotFoundException The directory cannot be listed
+	 */
+	public final String findName(File dir, String name)
+		throws FileNotFoundException {
+
+		// Get the current modification date/time of the directory, zero indicates the directory does not exist
+
+		long modifyTime = dir.lastModified();
+		if ( modifyTime == 0L)
+			throw new FileNotFoundException(dir.getPath());
+
+		// Check for a valid cached listing of the directory
+
+		String dirPath = dir.getPath();
+		CachedDirectory cachedDir = null;
+
+		synchronized ( this) {
+			cachedDir = m_dirs.get(dirPath);
+
+			if ( cachedDir != null && cachedDir.getModifyTime() != modifyTime) {
+
+				// Directory has changed since it was listed, remove the cached listing
+
+				removeDirectory(dirPath);
+				cachedDir = null;
+			}
+		}
+
+		if ( cachedDir != null)
+			return cachedDir.findName(name);
+
+		// List the directory
+
+		String[] fileList = dir.list();
+		if ( fileList == null)
+			throw new FileNotFoundException(dirPath);
+
+		cachedDir = new CachedDirectory(modifyTime, fileList);
+
+		// Cache the directory listing, unless the directory was modified recently or is too large to cache
+
+		if ( System.currentTimeMillis() - modifyTime >= RacyInterval && cachedDir.numberOfNames() <= m_maxNames / 4) {
+
+			synchronized ( this) {
+
+				// Add the directory to the cache, replace any existing listing
+
+				removeDirectory(dirPath);
+
+				m_dirs.put(dirPath, cachedDir);
+				m_nameCount += cachedDir.numberOfNames();
+
+				// Discard the least recently used directories if the cache is full
+
+				Iterator<CachedDirectory> iter = m_dirs.values().iterator();
+
+				while ( m_nameCount > m_maxNames && iter.hasNext()) {
+					CachedDirectory lruDir = iter.next();
+					iter.remove();
+
+					m_nameCount -= lruDir.numberOfNames();
+				}
+			}
+		}
+
+		// Return the matching name, if found
+
+		return cachedDir.findName(name);
+	}
+
+	/**
+	 * Map a share relative path to a real path, this may require changing the case of various parts of the
+	 * path. Each path component is checked using the exact name first, the cached directory listings are only
+	 * used when the exact name does not exist. The base path is not checked, it is assumed to exist.
+	 *
+	 * @param base String
+	 * @param path String
+	 * @return String
+	 * @exception FileNotFoundException The path could not be mapped to a real path.
+	 * @exception PathNotFoundException Part of the path is not valid
+	 */
+	public final String mapPath(String base, String path)
+		throws FileNotFoundException, PathNotFoundException {
+
+		// Split the path string into seperate directory components
+
+		String pathCopy = path;
+		if ( pathCopy.length() > 0 && pathCopy.startsWith(DOS_SEPERATOR))
+			pathCopy = pathCopy.substring(1);
+
+		StringTokenizer token = new StringTokenizer(pathCopy, "\\/");
+		int tokCnt = token.countTokens();
+
+		if ( tokCnt == 0)
+			return null;
+
+		// Get the directory names
+
+		String[] dirs = new String[tokCnt];
+
+		int idx = 0;
+		while ( token.hasMoreTokens())
+			dirs[idx++] = token.nextToken();
+
+		// Check if the path ends with a directory or file name, ie. has a trailing '\' or not
+
+		boolean hasFileName = path.endsWith(DOS_SEPERATOR) == false;
+		int maxDir = hasFileName ? dirs.length - 1 : dirs.length;
+
+		// Build up the path string and validate that the path exists at each stage
+
+		StringBuilder pathStr = new StringBuilder(base);
+		if ( base.endsWith(File.separator) == false)
+			pathStr.append(File.separator);
+
+		int lastPos = pathStr.length();
+		File lastDir = null;
+		if ( base.length() > 0)
+			lastDir = new File(base);
+
+		for ( idx = 0; idx < maxDir; idx++) {
+
+			// Append the current directory to the path, and check if the path exists
+
+			pathStr.append(dirs[idx]);
+			pathStr.append(File.separator);
+
+			File curDir = new File(pathStr.toString());
+
+			if ( curDir.exists() == false) {
+
+				// Check if there is a previous directory to search
+
+				if ( lastDir == null)
+					throw new PathNotFoundException();
+
+				// Find the directory name using the cached listing, the case may be different
+
+				String dirName = null;
+
+				try {
+					dirName = findName(lastDir, dirs[idx]);
+				}
+				catch ( FileNotFoundException ex) {
+				}
+
+				if ( dirName == null)
+					throw new PathNotFoundException();
+
+				// Use the real directory name
+
+				pathStr.setLength(lastPos);
+				pathStr.append(dirName);
+				pathStr.append(File.separator);
+
+				curDir = new File(pathStr.toString());
+			}
+
+			// Set the last valid directory, and the end of the valid path
+
+			lastDir = curDir;
+			lastPos = pathStr.length();
+		}
+
+		// Check if there is a file name to be added to the mapped path
+
+		if ( hasFileName) {
+
+			// Use the file name as is if it exists, else map the file name using the cached listing. If there
+			// is no matching file then use the name as is
+
+			String fileName = dirs[dirs.length - 1];
+			pathStr.append(fileName);
+
+			if ( lastDir != null && new File(pathStr.toString()).exists() == false) {
+				String realName = null;
+
+				try {
+					realName = findName(lastDir, fileName);
+				}
+				catch ( FileNotFoundException ex) {
+
+					// The directory could not be listed, the path is not valid
+
+					throw new FileNotFoundException(path);
+				}
+
+				if ( realName != null) {
+					pathStr.setLength(lastPos);
+					pathStr.append(realName);
+				}
+			}
+		}
+
+		// Return the mapped path
+
+		return pathStr.toString();
+	}
+
+	/**
+	 * Invalidate the cached listing for a directory
+	 *
+	 * @param dir File
+	 */
+	public final synchronized void invalidate(File dir) {
+		if ( dir != null)
+			removeDirectory(dir.getPath());
+	}
+
+	/**
+	 * Invalidate the cached listings for a directory and all directories below it, used when a directory is
+	 * renamed or deleted
+	 *
+	 * @param dir File
+	 */
+	public final synchronized void invalidateTree(File dir) {
+
+		// Remove the directory
+
+		String dirPath = dir.getPath();
+		removeDirectory(dirPath);
+
+		// Remove any directories below the directory
+
+		String prefix = dirPath.endsWith(File.separator) ? dirPath : dirPath + File.separator;
+		Iterator<Map.Entry<String, CachedDirectory>> iter = m_dirs.entrySet().iterator();
+
+		while ( iter.hasNext()) {
+			Map.Entry<String, CachedDirectory> entry = iter.next();
+
+			if ( entry.getKey().startsWith(prefix)) {
+				iter.remove();
+				m_nameCount -= entry.getValue().numberOfNames();
+			}
+		}
+	}
+
+	/**
+	 * Remove all cached directories
+	 */
+	public final synchronized void removeAll() {
+		m_dirs.clear();
+		m_nameCount = 0;
+	}
+
+	/**
+	 * Remove a cached directory, the caller must hold the cache lock
+	 *
+	 * @param dirPath String
+	 */
+	private final void removeDirectory(String dirPath) {
+		CachedDirectory cachedDir = m_dirs.remove(dirPath);
+		if ( cachedDir != null)
+			m_nameCount -= cachedDir.numberOfNames();
+	}
+
+	/**
+	 * Fold the case of a file name so that names that are equal using a case insensitive comparison have
+	 * the same folded name
+	 *
+	 * @param name String
+	 * @return String
+	 */
+	protected static final String foldName(String name) {
+
+		// Check if the name needs to be folded, most names will not change
+
+		int len = name.length();
+		int idx = 0;
+
+		while ( idx < len) {
+			char ch = name.charAt(idx);
+			if ( Character.toLowerCase(Character.toUpperCase(ch)) != ch)
+				break;
+			idx++;
+		}
+
+		if ( idx == len)
+			return name;
+
+		// Fold the remaining characters, using the same rules as String.equalsIgnoreCase()
+
+		char[] chars = name.toCharArray();
+
+		while ( idx < len) {
+			chars[idx] = Character.toLowerCase(Character.toUpperCase(chars[idx]));
+			idx++;
+		}
+
+		return new String(chars);
+	}
+
+	/**
+	 * Return the path cache details as a string
+	 *
+	 * @return String
+	 */
+	public synchronized String toString() {
+		StringBuilder str = new StringBuilder();
+
+		str.append("[Dirs=");
+		str.append(m_dirs.size());
+		str.append(",Names=");
+		str.append(m_nameCount);
+		str.append("/");
+		str.append(m_maxNames);
+		str.append("]");
+
+		return str.toString();
+	}
+}
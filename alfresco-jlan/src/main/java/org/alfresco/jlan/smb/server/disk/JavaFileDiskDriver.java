@@ -23,7 +23,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.util.StringTokenizer;
+import java.nio.channels.FileChannel;
 
 import org.alfresco.jlan.debug.Debug;
 import org.alfresco.jlan.server.SrvSession;
@@ -43,6 +43,8 @@ import org.alfresco.jlan.server.filesys.NetworkFile;
 import org.alfresco.jlan.server.filesys.PathNotFoundException;
 import org.alfresco.jlan.server.filesys.SearchContext;
 import org.alfresco.jlan.server.filesys.TreeConnection;
+import org.alfresco.jlan.server.filesys.ZeroCopyReadInterface;
+import org.alfresco.jlan.server.filesys.ZeroCopyWriteInterface;
 import org.alfresco.jlan.smb.server.SMBSrvSession;
 import org.springframework.extensions.config.ConfigElement;
 
@@ -52,7 +54,7 @@ import org.springframework.extensions.config.ConfigElement;
  *
  * @author gkspencer
  */
-public class JavaFileDiskDriver implements DiskInterface {
+public class JavaFileDiskDriver implements DiskInterface, ZeroCopyReadInterface, ZeroCopyWriteInterface {
 
   //	DOS file seperator character
 
@@ -62,11 +64,26 @@ public class JavaFileDiskDriver implements DiskInterface {
 
 	protected static long _globalCreateDate = System.currentTimeMillis();
 
+	//	Cache of directory listings used to map case insensitive paths to the real path
+
+	private CaseInsensitivePathCache m_pathCache = new CaseInsensitivePathCache();
+
+	//	Indicate if the readFile()/writeFile() methods are the ones in this class, file channels are only
+	//	returned if a subclass has not overridden the file I/O
+
+	private boolean m_directRead;
+	private boolean m_directWrite;
+
   /**
    * Class constructor
    */
   public JavaFileDiskDriver() {
     super();
+
+    //	Check if the file I/O methods have been overridden
+
+    m_directRead  = isDriverMethod("readFile");
+    m_directWrite = isDriverMethod("writeFile");
   }
 
   /**
@@ -226,6 +243,10 @@ public class JavaFileDiskDriver implements DiskInterface {
     File newDir = new File(dirname);
     if ( newDir.mkdir() == false)
       throw new IOException("Failed to create directory " + dirname);
+
+    //  Invalidate the cached listing of the parent directory
+
+    m_pathCache.invalidate(newDir.getParentFile());
   }
 
   /**
@@ -256,6 +277,10 @@ public class JavaFileDiskDriver implements DiskInterface {
     FileWriter newFile = new FileWriter(fname, false);
     newFile.close();
 
+    //  Invalidate the cached listing of the parent directory
+
+    m_pathCache.invalidate(file.getParentFile());
+
     //  Create a Java network file
 
 		file = new File(fname);
@@ -326,6 +351,11 @@ public class JavaFileDiskDriver implements DiskInterface {
         }
       }
     }
+
+    //  Invalidate the cached listings of the directory, and the parent directory
+
+    m_pathCache.invalidateTree(delDir);
+    m_pathCache.invalidate(delDir.getParentFile());
   }
 
   /**
@@ -366,6 +396,10 @@ public class JavaFileDiskDriver implements DiskInterface {
           delFile.delete();
       }
     }
+
+    //  Invalidate the cached listing of the parent directory
+
+    m_pathCache.invalidate(delFile.getParentFile());
   }
 
   /**
@@ -565,185 +599,14 @@ public class JavaFileDiskDriver implements DiskInterface {
   protected final String mapPath(String base, String path)
   	throws java.io.FileNotFoundException, PathNotFoundException {
 
-    //  Split the path string into seperate directory components
-
-    String pathCopy = path;
-    if (pathCopy.length() > 0 && pathCopy.startsWith(DOS_SEPERATOR))
-      pathCopy = pathCopy.substring(1);
-
-    StringTokenizer token = new StringTokenizer(pathCopy, "\\/");
-    int tokCnt = token.countTokens();
-
-    //  The mapped path string, if it can be mapped
-
-    String mappedPath = null;
-
-    if (tokCnt > 0) {
-
-      //  Allocate an array to hold the directory names
-
-      String[] dirs = new String[token.countTokens()];
-
-      //  Get the directory names
-
-      int idx = 0;
-      while (token.hasMoreTokens())
-        dirs[idx++] = token.nextToken();
-
-      //  Check if the path ends with a directory or file name, ie. has a trailing '\' or not
-
-      int maxDir = dirs.length;
-
-      if (path.endsWith(DOS_SEPERATOR) == false) {
-
-        //  Ignore the last token as it is a file name
-
-        maxDir--;
-      }
-
-      //  Build up the path string and validate that the path exists at each stage.
-
-      StringBuffer pathStr = new StringBuffer(base);
-      if (base.endsWith(java.io.File.separator) == false)
-        pathStr.append(java.io.File.separator);
-
-      int lastPos = pathStr.length();
-      idx = 0;
-      File lastDir = null;
-      if (base != null && base.length() > 0)
-        lastDir = new File(base);
-      File curDir = null;
-
-      while (idx < maxDir) {
-
-        //  Append the current directory to the path
-
-        pathStr.append(dirs[idx]);
-        pathStr.append(java.io.File.separator);
-
-        //  Check if the current path exists
-
-        curDir = new File(pathStr.toString());
-
-        if (curDir.exists() == false) {
-
-          //  Check if there is a previous directory to search
-
-          if (lastDir == null)
-            throw new PathNotFoundException();
-
-          //  Search the current path for a matching directory, the case may be different
-
-          String[] fileList = lastDir.list();
-          if (fileList == null || fileList.length == 0)
-            throw new PathNotFoundException();
-
-          int fidx = 0;
-          boolean foundPath = false;
-
-          while (fidx < fileList.length && foundPath == false) {
-
-            //  Check if the current file name matches the required directory name
-
-            if (fileList[fidx].equalsIgnoreCase(dirs[idx])) {
-
-              //  Use the current directory name
-
-              pathStr.setLength(lastPos);
-              pathStr.append(fileList[fidx]);
-              pathStr.append(java.io.File.separator);
-
-              //  Check if the path is valid
-
-              curDir = new File(pathStr.toString());
-              if (curDir.exists()) {
-                foundPath = true;
-                break;
-              }
-            }
-
-            //  Update the file name index
-
-            fidx++;
-          }
-
-          //  Check if we found the required directory
-
-          if (foundPath == false)
-            throw new PathNotFoundException();
-        }
-
-        //  Set the last valid directory file
-
-        lastDir = curDir;
-
-        //  Update the end of valid path location
-
-        lastPos = pathStr.length();
-
-        //  Update the current directory index
-
-        idx++;
-      }
-
-      //  Check if there is a file name to be added to the mapped path
-
-      if (path.endsWith(DOS_SEPERATOR) == false) {
-
-        //  Map the file name
+    //  Map the path using the exact names, or the cached directory listings if the case is different
 
-        String[] fileList = lastDir.list();
-        String fileName = dirs[dirs.length - 1];
+    String mappedPath = m_pathCache.mapPath(base, path);
 
-        //	Check if the file list is valid, if not then the path is not valid
+    // Check for a Netware style path and remove the leading slash
 
-        if (fileList == null)
-          throw new FileNotFoundException(path);
-
-        //	Search for the required file
-
-        idx = 0;
-        boolean foundFile = false;
-
-        while (idx < fileList.length && foundFile == false) {
-          if (fileList[idx].compareTo(fileName) == 0)
-            foundFile = true;
-          else
-            idx++;
-        }
-
-        //  Check if we found the file name, if not then do a case insensitive search
-
-        if (foundFile == false) {
-
-          //  Search again using a case insensitive search
-
-          idx = 0;
-
-          while (idx < fileList.length && foundFile == false) {
-            if (fileList[idx].equalsIgnoreCase(fileName)) {
-              foundFile = true;
-              fileName = fileList[idx];
-            }
-            else
-              idx++;
-          }
-        }
-
-        //  Append the file name
-
-        pathStr.append(fileName);
-      }
-
-      //  Set the new path string
-
-      mappedPath = pathStr.toString();
-
-      // Check for a Netware style path and remove the leading slash
-
-      if (File.separator.equals(DOS_SEPERATOR) && mappedPath.startsWith(DOS_SEPERATOR) && mappedPath.indexOf(':') > 1)
-        mappedPath = mappedPath.substring(1);
-    }
+    if (mappedPath != null && File.separator.equals(DOS_SEPERATOR) && mappedPath.startsWith(DOS_SEPERATOR) && mappedPath.indexOf(':') > 1)
+      mappedPath = mappedPath.substring(1);
 
     //  Return the mapped path string, if successful.
 
@@ -843,6 +706,75 @@ public class JavaFileDiskDriver implements DiskInterface {
     return rdlen;
   }
 
+  /**
+   * Return the file channel for a file, used to send file data directly to the network
+   *
+   * @param sess	Session details
+   * @param tree	Tree connection
+   * @param file	Network file details
+   * @return FileChannel
+   * @exception IOException
+   */
+  public FileChannel getReadChannel(SrvSession sess, TreeConnection tree, NetworkFile file)
+    throws java.io.IOException {
+
+	  //	Check if the file is a directory
+
+		if ( file.isDirectory())
+			throw new AccessDeniedException();
+
+		//	Only files opened by this driver have a file channel, and the channel can only be used if reading
+		//	the file would read the local file directly
+
+		if ( m_directRead && file.getClass() == JavaNetworkFile.class)
+			return ((JavaNetworkFile) file).getFileChannel();
+		return null;
+  }
+
+  /**
+   * Return the file channel for a file, used to receive file data directly from the network
+   *
+   * @param sess	Session details
+   * @param tree	Tree connection
+   * @param file	Network file details
+   * @return FileChannel
+   * @exception IOException
+   */
+  public FileChannel getWriteChannel(SrvSession sess, TreeConnection tree, NetworkFile file)
+    throws java.io.IOException {
+
+	  //	Check if the file is a directory
+
+		if ( file.isDirectory())
+			throw new AccessDeniedException();
+
+		//	Only files opened by this driver for read/write access have a writeable file channel, and the channel
+		//	can only be used if writing the file would write the local file directly
+
+		if ( m_directWrite && file.getClass() == JavaNetworkFile.class && file.getGrantedAccess() == NetworkFile.READWRITE)
+			return ((JavaNetworkFile) file).getFileChannel();
+		return null;
+  }
+
+  /**
+   * Check if the specified file I/O method is implemented by this class, and has not been overridden
+   * by a subclass
+   *
+   * @param name String
+   * @return boolean
+   */
+  private final boolean isDriverMethod(String name) {
+
+    try {
+      Class<?> declClass = getClass().getMethod(name, SrvSession.class, TreeConnection.class, NetworkFile.class, byte[].class,
+          int.class, int.class, long.class).getDeclaringClass();
+      return declClass == JavaFileDiskDriver.class;
+    }
+    catch (NoSuchMethodException ex) {
+      return false;
+    }
+  }
+
   /**
    * Rename a file
    *
@@ -878,6 +810,14 @@ public class JavaFileDiskDriver implements DiskInterface {
 
     if ( oldFile.renameTo(newFile) == false)
     	throw new IOException ("Rename " + oldPath + " to " + newPath + " failed");
+
+    //  Invalidate the cached listings of the old and new parent directories, and of a renamed directory
+
+    m_pathCache.invalidate(oldFile.getParentFile());
+    m_pathCache.invalidate(newFile.getParentFile());
+
+    if ( newFile.isDirectory())
+      m_pathCache.invalidateTree(oldFile);
   }
 
   /**
@@ -940,9 +880,9 @@ public class JavaFileDiskDriver implements DiskInterface {
   public SearchContext startSearch(SrvSession sess, TreeConnection tree, String searchPath, int attrib)
     throws java.io.FileNotFoundException {
 
-    //  Create a context for the new search
+    //  Create a context for the new search, the directory entries are streamed as the search progresses
 
-    JavaFileSearchContext srch = new JavaFileSearchContext();
+    NIOJavaFileSearchContext srch = new NIOJavaFileSearchContext();
 
     //  Create the full search path string
 
@@ -950,9 +890,12 @@ public class JavaFileDiskDriver implements DiskInterface {
 
     try {
 
-			//	Map the path, this may require changing the case on some or all path components
+			//	Map the path relative to the share root, this may require changing the case on some or all path
+			//	components
 
-			path = mapPath(path);
+			String mappedPath = mapPath(tree.getContext().getDeviceName(), searchPath);
+			if ( mappedPath != null)
+				path = mappedPath;
 
       // Split the search path to get the share relative path
 
@@ -23,6 +23,7 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
 
 import org.alfresco.jlan.server.filesys.AccessMode;
 import org.alfresco.jlan.server.filesys.DiskFullException;
@@ -234,6 +235,23 @@ public class JavaNetworkFile extends NetworkFile {
     }
   }
 
+  /**
+   * Return the file channel for the open file, opening the file if required
+   *
+   * @return FileChannel
+   * @exception IOException
+   */
+  public FileChannel getFileChannel()
+    throws IOException {
+
+    //  Open the file, if not already open
+
+    if (m_io == null)
+      openFile(false);
+
+    return m_io.getChannel();
+  }
+
   /**
    * Return the current file position.
    *
@@ -0,0 +1,698 @@
+/*
+ * Copyright (C) 2006-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.alfresco.jlan.smb.server.disk;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.DosFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Iterator;
+
+import org.alfresco.jlan.server.filesys.FileAttribute;
+import org.alfresco.jlan.server.filesys.FileInfo;
+import org.alfresco.jlan.server.filesys.FileName;
+import org.alfresco.jlan.server.filesys.SearchContext;
+import org.alfresco.jlan.util.WildCard;
+
+/**
+ * NIO Java File Search Context Class
+ *
+ * <p>Streams the directory entries from a directory stream, rather than loading the full directory listing,
+ * and reads the attributes of each entry using a single call. The most recently returned entries are kept so
+ * that the search can be restarted at a recent entry without listing the directory again.
+ *
+ * @author gkspencer
+ */
+public class NIOJavaFileSearchContext extends SearchContext {
+
+	// Number of recently returned entries kept to restart the search
+
+	public static final int HistorySize	= 256;
+
+	// Directory, or file/directory for a single file search
+
+	private Path m_root;
+
+	// Directory stream and iterator for a wildcard search
+
+	private DirectoryStream<Path> m_stream;
+	private Iterator<Path> m_iter;
+
+	// Index of the next entry to return, and number of entries read from the directory stream
+
+	private int m_idx;
+	private int m_streamPos;
+
+	// Recently read entry names and attributes, indexed by the entry index modulo the history size. Attributes
+	// are read when required, and the no attributes flag is set if the attributes could not be read.
+
+	private String[] m_histNames;
+	private BasicFileAttributes[] m_histAttrs;
+	private boolean[] m_histNoAttrs;
+
+	// File attributes class to read, DOS or POSIX attributes if supported by the filesystem
+
+	private Class<? extends BasicFileAttributes> m_attrClass;
+
+	// Search attributes
+
+	private int m_attr;
+
+	// Single file/directory search flag
+
+	private boolean m_single;
+
+	// Wildcard checker
+
+	private WildCard m_wildcard;
+
+	// Relative path to folder being searched
+
+	private String m_relPath;
+
+	/**
+	 * Class constructor
+	 */
+	protected NIOJavaFileSearchContext() {
+	}
+
+	/**
+	 * Return the resume id for the current file/directory. We return the index of the next file,
+	 * this is the file/directory that will be returned if the search is restarted.
+	 *
+	 * @return int
+	 */
+	public int getResumeId() {
+		return m_idx;
+	}
+
+	/**
+	 * Determine if there are more files to return for this search
+	 *
+	 * @return boolean
+	 */
+	public boolean hasMoreFiles() {
+
+		// Determine if there are any more files to be returned
+
+		if ( m_single == true)
+			return m_idx == 0;
+		else if ( m_idx < m_streamPos)
+			return true;
+		else if ( m_iter == null)
+			return false;
+
+		// Check if there are more entries in the directory stream
+
+		try {
+			if ( m_iter.hasNext())
+				return true;
+		}
+		catch (DirectoryIteratorException ex) {
+		}
+
+		// End of the directory, release the directory stream
+
+		closeStream();
+		return false;
+	}
+
+	/**
+	 * Start a directory search.
+	 *
+	 * @param path String
+	 * @param attr int
+	 * @exception FileNotFoundException
+	 */
+	public final void initSearch(String path, int attr)
+		throws FileNotFoundException {
+
+		// Store the search attributes
+
+		m_attr = attr;
+
+		// Split the path, check if there is a filename
+
+		String[] pathStr = FileName.splitPath(path, java.io.File.separatorChar);
+
+		// Set the search string for the context
+
+		if ( pathStr[1] != null)
+			setSearchString(pathStr[1]);
+
+		// Create the root path
+
+		try {
+
+			if ( pathStr[1] != null && WildCard.containsWildcards(pathStr[1]) == false) {
+
+				// Indicate that the search is for a single file/directory
+
+				setSingleFileSearch(true);
+
+				// Path may be a file or directory
+
+				m_root = Paths.get(pathStr[0], pathStr[1]);
+				if ( Files.exists(m_root) == false)
+					throw new FileNotFoundException(path);
+			}
+			else {
+
+				// Wildcard search of a directory
+
+				String root = pathStr[0];
+				if ( root.endsWith(":"))
+					root = root + java.io.File.separator;
+
+				m_root = Paths.get(root);
+
+				if ( Files.isDirectory(m_root)) {
+
+					// Check if there is a file spec, if not then the search is for the directory only
+
+					if ( pathStr[1] == null) {
+
+						// Single file directory search
+
+						setSingleFileSearch(true);
+					}
+					else {
+
+						// Multi file search, open the directory stream
+
+						setSingleFileSearch(false);
+
+						m_histNames = new String[HistorySize];
+						m_histAttrs = new BasicFileAttributes[HistorySize];
+						m_histNoAttrs = new boolean[HistorySize];
+
+						openStream();
+
+						// Create the wildcard checker
+
+						m_wildcard = new WildCard(pathStr[1], false);
+					}
+				}
+			}
+		}
+		catch (IOException ex) {
+			throw new FileNotFoundException(path);
+		}
+		catch (RuntimeException ex) {
+
+			// Invalid path
+
+			throw new FileNotFoundException(path);
+		}
+
+		// Use the POSIX or DOS attributes, if supported, to get the read-only status with the other attributes. The
+		// POSIX attributes are checked first as the DOS attributes are stored as extended attributes on Unix.
+
+		if ( m_root.getFileSystem().supportedFileAttributeViews().contains("posix"))
+			m_attrClass = PosixFileAttributes.class;
+		else if ( m_root.getFileSystem().supportedFileAttributeViews().contains("dos"))
+			m_attrClass = DosFileAttributes.class;
+		else
+			m_attrClass = BasicFileAttributes.class;
+
+		// Clear the current file index
+
+		m_idx = 0;
+	}
+
+	/**
+	 * Determine if this is a wildcard or single file/directory type search.
+	 *
+	 * @return boolean
+	 */
+	protected final boolean isSingleFileSearch() {
+		return m_single;
+	}
+
+	/**
+	 * Determine if the search is valid. The directory may not exist or the file may not exist for a
+	 * single file search.
+	 *
+	 * @return boolean
+	 */
+	public final boolean isValidSearch() {
+		return m_root != null ? true : false;
+	}
+
+	/**
+	 * Return the next file information for this search
+	 *
+	 * @param info FileInfo
+	 * @return boolean
+	 */
+	public boolean nextFileInfo(FileInfo info) {
+
+		// Check for a single file/directory search
+
+		if ( isSingleFileSearch()) {
+
+			// Check if we have already returned the root file details
+
+			if ( m_idx != 0)
+				return false;
+
+			// Update the file index, indicates that we have returned the single file/directory details
+
+			m_idx++;
+
+			// Get the file/directory attributes
+
+			BasicFileAttributes attrs = readAttributes(m_root);
+			if ( attrs == null)
+				return false;
+
+			// Return the file information
+
+			int fattr = 0;
+			long flen = 0L;
+
+			if ( attrs.isDirectory())
+				fattr = FileAttribute.Directory;
+			else
+				flen = attrs.size();
+
+			// Check if the file/folder is read-only
+
+			if ( isReadOnly(m_root, attrs))
+				fattr += FileAttribute.ReadOnly;
+
+			Path fname = m_root.getFileName();
+
+			info.setFileName(fname != null ? fname.toString() : m_root.toString());
+			info.setSize(flen);
+			info.setFileAttributes(fattr);
+			info.setFileId(m_root.toAbsolutePath().toString().hashCode());
+
+			setFileDates(info, attrs);
+			return true;
+		}
+
+		// Find a file/directory that matches the search pattern and attributes
+
+		int slot = -1;
+		BasicFileAttributes attrs = null;
+
+		while (( slot = nextEntry()) != -1) {
+
+			// Check if the file name matches the search pattern
+
+			if ( m_wildcard.matchesPattern(m_histNames[slot]) == false)
+				continue;
+
+			// Get the file attributes, and check if the file matches the search attributes
+
+			attrs = getEntryAttributes(slot);
+
+			if ( attrs != null) {
+				if ( attrs.isDirectory() && FileAttribute.hasAttribute(m_attr, FileAttribute.Directory))
+					break;
+				else if ( attrs.isRegularFile())
+					break;
+			}
+		}
+
+		// Check if there is a file to return
+
+		if ( slot == -1)
+			return false;
+
+		// Create a file information object for the file
+
+		String fname = m_histNames[slot];
+		int fattr = 0;
+		long flen = 0L;
+
+		if ( attrs.isDirectory()) {
+
+			// Set the directory attribute
+
+			fattr = FileAttribute.Directory;
+
+			// Check if the diretory should be hidden
+
+			if ( fname.startsWith("."))
+				fattr += FileAttribute.Hidden;
+		}
+		else {
+
+			// Set the file length
+
+			flen = attrs.size();
+
+			// Check if the file is read-only
+
+			if ( isReadOnly(m_root.resolve(fname), attrs))
+				fattr += FileAttribute.ReadOnly;
+
+			// Check for common hidden files
+
+			if ( fname.equalsIgnoreCase("Desktop.ini") ||
+					 fname.equalsIgnoreCase("Thumbs.db")   ||
+					 fname.startsWith("."))
+				fattr += FileAttribute.Hidden;
+		}
+
+		// Create the file information object
+
+		info.setFileName(fname);
+		info.setSize(flen);
+		info.setFileAttributes(fattr);
+
+		// Build the share relative file path to generate the file id
+
+		StringBuilder relPath = new StringBuilder();
+		relPath.append(m_relPath);
+		relPath.append(fname);
+
+		info.setFileId(relPath.toString().hashCode());
+
+		// Set the file timestamps
+
+		setFileDates(info, attrs);
+		return true;
+	}
+
+	/**
+	 * Return the next file name for this search
+	 *
+	 * @return String
+	 */
+	public String nextFileName() {
+
+		// Check for a single file/directory search
+
+		if ( isSingleFileSearch()) {
+
+			// Check if we have already returned the root file name
+
+			if ( m_idx != 0)
+				return null;
+
+			m_idx++;
+
+			Path fname = m_root.getFileName();
+			return fname != null ? fname.toString() : m_root.toString();
+		}
+
+		// Find the next matching file name, the file attributes are not required
+
+		int slot = -1;
+
+		while (( slot = nextEntry()) != -1) {
+			if ( m_wildcard.matchesPattern(m_histNames[slot]))
+				return m_histNames[slot];
+		}
+
+		// No more file names
+
+		return null;
+	}
+
+	/**
+	 * Restart the search at the specified resume point.
+	 *
+	 * @param resumeId Resume point.
+	 * @return true if the search can be restarted, else false.
+	 */
+	public boolean restartAt(int resumeId) {
+
+		// Check if the resume point is valid
+
+		if ( isSingleFileSearch() || m_histNames == null || resumeId < 0)
+			return false;
+
+		// Check if the resume point is a recently returned entry
+
+		if ( resumeId <= m_streamPos && m_streamPos - resumeId <= HistorySize) {
+			m_idx = resumeId;
+			return true;
+		}
+
+		// Check if the resume point is before the recent entries, the directory must be listed again
+
+		if ( resumeId < m_streamPos) {
+			try {
+				openStream();
+			}
+			catch (IOException ex) {
+				return false;
+			}
+		}
+
+		// Skip entries up to the resume point
+
+		m_idx = m_streamPos;
+
+		while ( m_idx < resumeId) {
+			if ( nextEntry() == -1)
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Restart the file search at the specified file
+	 *
+	 * @param info FileInfo
+	 * @return boolean
+	 */
+	public boolean restartAt(FileInfo info) {
+
+		// Check if the search is valid
+
+		if ( m_histNames == null)
+			return false;
+
+		// Step backwards through the recent entries until we find the required restart file
+
+		int minIdx = Math.max(0, m_streamPos - HistorySize);
+		int idx = m_idx - 1;
+
+		while ( idx >= minIdx) {
+
+			// Check if we found the restart file
+
+			if ( m_histNames[idx % HistorySize].equals(info.getFileName())) {
+				m_idx = idx;
+				return true;
+			}
+
+			idx--;
+		}
+
+		// Restart file not found
+
+		return false;
+	}
+
+	/**
+	 * Close the search, release the directory stream
+	 */
+	public void closeSearch() {
+		closeStream();
+		super.closeSearch();
+	}
+
+	/**
+	 * Set the wildcard/single file search flag.
+	 *
+	 * @param single boolean
+	 */
+	protected final void setSingleFileSearch(boolean single) {
+		m_single = single;
+	}
+
+	/**
+	 * Set the share relative path to the search folder
+	 *
+	 * @param relPath String
+	 */
+	public final void setRelativePath(String relPath) {
+		m_relPath = relPath;
+
+		if ( m_relPath != null && m_relPath.endsWith( FileName.DOS_SEPERATOR_STR) == false)
+			m_relPath = m_relPath + FileName.DOS_SEPERATOR_STR;
+	}
+
+	/**
+	 * Open, or re-open, the directory stream and reset the search to the first entry
+	 *
+	 * @exception IOException
+	 */
+	private final void openStream()
+		throws IOException {
+
+		// Close the existing stream
+
+		closeStream();
+
+		// Open the directory stream
+
+		m_stream = Files.newDirectoryStream(m_root);
+		m_iter = m_stream.iterator();
+
+		m_streamPos = 0;
+		m_idx = 0;
+	}
+
+	/**
+	 * Close the directory stream
+	 */
+	private final void closeStream() {
+
+		if ( m_stream != null) {
+			try {
+				m_stream.close();
+			}
+			catch (IOException ex) {
+			}
+
+			m_stream = null;
+			m_iter = null;
+		}
+	}
+
+	/**
+	 * Return the history slot of the next entry, and advance the current index. The entry is read from the
+	 * directory stream if it has not been read already. Returns -1 if there are no more entries.
+	 *
+	 * @return int
+	 */
+	private final int nextEntry() {
+
+		// Check if the entry has already been read, after a restart
+
+		if ( m_idx < m_streamPos)
+			return m_idx++ % HistorySize;
+
+		// Read the next entry from the directory stream
+
+		if ( hasMoreFiles() == false)
+			return -1;
+
+		Path entry = null;
+
+		try {
+			entry = m_iter.next();
+		}
+		catch (DirectoryIteratorException ex) {
+			closeStream();
+			return -1;
+		}
+
+		// Add the entry to the history, the attributes are read when required
+
+		int slot = m_streamPos % HistorySize;
+
+		m_histNames[slot] = entry.getFileName().toString();
+		m_histAttrs[slot] = null;
+		m_histNoAttrs[slot] = false;
+
+		m_streamPos++;
+		m_idx++;
+
+		return slot;
+	}
+
+	/**
+	 * Return the attributes for an entry, reading them if not already read. Returns null if the attributes
+	 * cannot be read.
+	 *
+	 * @param slot int
+	 * @return BasicFileAttributes
+	 */
+	private final BasicFileAttributes getEntryAttributes(int slot) {
+
+		if ( m_histAttrs[slot] == null && m_histNoAttrs[slot] == false) {
+			m_histAttrs[slot] = readAttributes(m_root.resolve(m_histNames[slot]));
+			m_histNoAttrs[slot] = m_histAttrs[slot] == null;
+		}
+
+		return m_histAttrs[slot];
+	}
+
+	/**
+	 * Read the attributes for a file/directory, returns null if the attributes cannot be read
+	 *
+	 * @param path Path
+	 * @return BasicFileAttributes
+	 */
+	private final BasicFileAttributes readAttributes(Path path) {
+
+		try {
+			return Files.readAttributes(path, m_attrClass);
+		}
+		catch (IOException ex) {
+		}
+		catch (UnsupportedOperationException ex) {
+		}
+
+		return null;
+	}
+
+	/**
+	 * Check if a file/directory is read-only. The owner write permission of the POSIX attributes is used if
+	 * available, else the DOS read-only attribute, else the file is checked for write access.
+	 *
+	 * @param path Path
+	 * @param attrs BasicFileAttributes
+	 * @return boolean
+	 */
+	private final boolean isReadOnly(Path path, BasicFileAttributes attrs) {
+
+		if ( attrs instanceof PosixFileAttributes)
+			return ((PosixFileAttributes) attrs).permissions().contains(PosixFilePermission.OWNER_WRITE) == false;
+		else if ( attrs instanceof DosFileAttributes)
+			return ((DosFileAttributes) attrs).isReadOnly();
+		return Files.isWritable(path) == false;
+	}
+
+	/**
+	 * Set the file timestamps using the file attributes
+	 *
+	 * @param info FileInfo
+	 * @param attrs BasicFileAttributes
+	 */
+	private final void setFileDates(FileInfo info, BasicFileAttributes attrs) {
+
+		long modifyDate = attrs.lastModifiedTime().toMillis();
+		info.setModifyDateTime(modifyDate);
+		info.setChangeDateTime(modifyDate);
+
+		long dummyCreate = JavaFileDiskDriver.getGlobalCreateDateTime();
+
+		if ( dummyCreate > modifyDate)
+			dummyCreate = modifyDate;
+		info.setCreationDateTime(dummyCreate);
+	}
+}
@@ -245,6 +245,23 @@ public class NIOJavaNetworkFile extends NetworkFile {
     }
   }
 
+  /**
+   * Return the file channel for the open file, opening the file if required
+   *
+   * @return FileChannel
+   * @exception IOException
+   */
+  public FileChannel getFileChannel()
+    throws IOException {
+
+    //  Open the file, if not already open
+
+    if (m_channel == null)
+      openFile(false);
+
+    return m_channel;
+  }
+
   /**
    * Return the current file position.
    *
@@ -20,11 +20,17 @@
 package org.alfresco.jlan.smb.server.nio;
 
 import java.io.IOException;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 
+import org.alfresco.jlan.netbios.RFCNetBIOSProtocol;
 import org.alfresco.jlan.smb.server.CIFSPacketPool;
 import org.alfresco.jlan.smb.server.PacketHandler;
+import org.alfresco.jlan.smb.server.SMBSrvPacket;
 
 /**
  * Channel Packet Handler Class
@@ -32,10 +38,20 @@ import org.alfresco.jlan.smb.server.PacketHandler;
  * <p>
  * Provides the base class for Java SocketChannel based packet handler implementations.
  *
+ * <p>
+ * Packets are read and written by wrapping the packet byte array. The protocol handlers build and parse
+ * packets in place in the byte array, so reading into a direct buffer would only replace the copy that the JDK
+ * makes via its temporary direct buffer with an explicit copy. File data can be sent without copying it into the
+ * packet using a file channel transfer.
+ *
  * @author gkspencer
  */
 public abstract class ChannelPacketHandler extends PacketHandler {
 
+	// Timeout waiting for the socket channel to become writeable, in milliseconds
+
+	public static final long WriteTimeout	= 60000L;
+
 	// Socket channel that this session is using.
 
 	private SocketChannel m_sockChannel;
@@ -120,14 +136,145 @@ public abstract class ChannelPacketHandler extends PacketHandler {
 	protected void writeBytes(byte[] pkt, int off, int len)
 		throws IOException {
 
-		// Wrap the buffer and output to the socket channel
+		// Wrap the buffer and output to the socket channel, wait for the channel to become writeable if
+		// the socket send buffer is full
 
 		ByteBuffer buf = ByteBuffer.wrap( pkt, off, len);
+		Selector selector = null;
+
+		try {
+			while ( buf.hasRemaining()) {
+				if ( m_sockChannel.write( buf) == 0)
+					selector = waitForWrite( selector);
+			}
+		}
+		finally {
+
+			// Close the temporary selector
 
-		while ( buf.hasRemaining())
-			m_sockChannel.write( buf);
+			if ( selector != null)
+				selector.close();
+		}
+	}
+
+	/**
+	 * Check if the packet handler can send file data directly from a file channel
+	 *
+	 * @return boolean
+	 */
+	public boolean supportsFileTransfer() {
+		return true;
 	}
 
+	/**
+	 * Send an SMB response packet followed by data transferred directly from a file channel. The
+	 * packet length does not include the file data length. If the file is truncated whilst the data is
+	 * being sent an I/O error is thrown, as the response length has already been sent.
+	 *
+	 * @param pkt SMBSrvPacket
+	 * @param len int
+	 * @param fileChan FileChannel
+	 * @param filePos long
+	 * @param fileLen int
+	 * @exception IOException If a network error occurs.
+	 */
+	public void writePacket(SMBSrvPacket pkt, int len, FileChannel fileChan, long filePos, int fileLen)
+		throws IOException {
+
+		// Set the session header using the total length, then output the packet
+
+		byte[] buf = pkt.getBuffer();
+		setSessionHeader( buf, len + fileLen);
+
+		writeBytes( buf, 0, len + RFCNetBIOSProtocol.HEADER_LEN);
+
+		// Transfer the file data directly to the socket channel
+
+		long pos = filePos;
+		long endPos = filePos + fileLen;
+
+		Selector selector = null;
+		boolean writeReady = false;
+
+		try {
+			while ( pos < endPos) {
+
+				long cnt = fileChan.transferTo( pos, endPos - pos, m_sockChannel);
+
+				if ( cnt > 0) {
+					pos += cnt;
+					writeReady = false;
+				}
+				else if ( writeReady && pos >= fileChan.size()) {
+
+					// Nothing was sent with the socket writeable so the file has been truncated. The response
+					// length has already been sent, drop the connection rather than return data that is not in the file
+
+					closeHandler();
+					throw new IOException("File truncated during transfer, pos=" + pos + ", end=" + endPos);
+				}
+				else {
+
+					// Socket send buffer is full, wait for the channel to become writeable
+
+					selector = waitForWrite( selector);
+					writeReady = true;
+				}
+			}
+		}
+		finally {
+
+			// Close the temporary selector
+
+			if ( selector != null)
+				selector.close();
+		}
+	}
+
+	/**
+	 * Wait for the non-blocking socket channel to become writeable, using a temporary selector. The
+	 * selector is opened on the first call and must be closed by the caller.
+	 *
+	 * @param selector Selector, or null
+	 * @return Selector
+	 * @exception IOException If a network error occurs, or the wait times out
+	 */
+	private final Selector waitForWrite(Selector selector)
+		throws IOException {
+
+		// A blocking channel only returns a zero length write at the end of the data
+
+		if ( m_sockChannel.isBlocking())
+			return selector;
+
+		// Register the channel with a temporary selector for write events
+
+		if ( selector == null) {
+			selector = Selector.open();
+			m_sockChannel.register( selector, SelectionKey.OP_WRITE);
+		}
+
+		// Wait for the channel to become writeable, a select may return early due to a wakeup
+
+		long startTime = System.currentTimeMillis();
+
+		while ( selector.select( WriteTimeout) == 0) {
+			if ( System.currentTimeMillis() - startTime >= WriteTimeout)
+				throw new SocketTimeoutException("Socket write timed out");
+		}
+
+		selector.selectedKeys().clear();
+		return selector;
+	}
+
+	/**
+	 * Set the session header at the start of the packet buffer for the specified SMB length
+	 *
+	 * @param buf byte[]
+	 * @param len int
+	 */
+	protected abstract void setSessionHeader(byte[] buf, int len);
+
 	/**
 	 * Flush the output socket
 	 *
@@ -162,33 +162,44 @@ public class NetBIOSSMBChannelHandler extends ChannelPacketHandler {
 
 			// Fill in the NetBIOS message header, this is already allocated as part of the users buffer.
 
-			buf[0] = (byte) RFCNetBIOSProtocol.SESSION_MESSAGE;
-			buf[1] = (byte) 0;
+			setSessionHeader(buf, len);
 
-			if ( len > 0xFFFF) {
+			// Update the length to include the NetBIOS header
 
-				// Set the >64K flag
+			len += RFCNetBIOSProtocol.HEADER_LEN;
+		}
 
-				buf[1] = (byte) 0x01;
+		// Output the data packet
 
-				// Set the low word of the data length
+		writeBytes(buf, 0, len);
+	}
 
-				DataPacker.putShort((short) (len & 0xFFFF), buf, 2);
-			}
-			else {
+	/**
+	 * Set the NetBIOS session message header for the specified SMB length
+	 *
+	 * @param buf byte[]
+	 * @param len int
+	 */
+	protected void setSessionHeader(byte[] buf, int len) {
 
-				// Set the data length
+		buf[0] = (byte) RFCNetBIOSProtocol.SESSION_MESSAGE;
+		buf[1] = (byte) 0;
 
-				DataPacker.putShort((short) len, buf, 2);
-			}
+		if ( len > 0xFFFF) {
 
-			// Update the length to include the NetBIOS header
+			// Set the >64K flag
 
-			len += RFCNetBIOSProtocol.HEADER_LEN;
+			buf[1] = (byte) 0x01;
+
+			// Set the low word of the data length
+
+			DataPacker.putShort((short) (len & 0xFFFF), buf, 2);
 		}
+		else {
 
-		// Output the data packet
+			// Set the data length
 
-		writeBytes(buf, 0, len);
+			DataPacker.putShort((short) len, buf, 2);
+		}
 	}
 }
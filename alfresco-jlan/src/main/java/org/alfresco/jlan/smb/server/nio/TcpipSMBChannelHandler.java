@@ -153,11 +153,21 @@ public class TcpipSMBChannelHandler extends ChannelPacketHandler {
 		// part of the users buffer.
 
 		byte[] buf = pkt.getBuffer();
-		DataPacker.putInt(len, buf, 0);
+		setSessionHeader(buf, len);
 
 		// Output the data packet
 
 		int bufSiz = len + RFCNetBIOSProtocol.HEADER_LEN;
 		writeBytes(buf, 0, bufSiz);
 	}
+
+	/**
+	 * Set the TCP SMB message header for the specified SMB length
+	 *
+	 * @param buf byte[]
+	 * @param len int
+	 */
+	protected void setSessionHeader(byte[] buf, int len) {
+		DataPacker.putInt(len, buf, 0);
+	}
 }
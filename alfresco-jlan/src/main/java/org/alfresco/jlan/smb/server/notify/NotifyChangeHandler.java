@@ -64,6 +64,10 @@ public class NotifyChangeHandler implements Runnable {
 
 	private boolean m_shutdown;
 
+	//	Change listener, receives all change events
+
+	private NotifyChangeListener m_changeListener;
+
 	/**
 	 * Class constructor
 	 *
@@ -276,6 +280,10 @@ public class NotifyChangeHandler implements Runnable {
 	 */
 	public final void notifyFileChanged(int action, String path) {
 
+		//	Inform the change listener
+
+		fireChangeListener(NotifyChange.FileName, action, path, false);
+
 		//	Check if file change notifications are enabled
 
 		if ( getGlobalNotifyMask() == 0 || hasFileNameChange() == false)
@@ -294,6 +302,11 @@ public class NotifyChangeHandler implements Runnable {
 	 */
 	public final void notifyRename(String oldName, String newName) {
 
+		//	Inform the change listener
+
+		fireChangeListener(NotifyChange.FileName, NotifyChange.ActionRenamedOldName, oldName, false);
+		fireChangeListener(NotifyChange.FileName, NotifyChange.ActionRenamedNewName, newName, false);
+
 		//	Check if file change notifications are enabled
 
 		if ( getGlobalNotifyMask() == 0 || (hasFileNameChange() == false && hasDirectoryNameChange() == false))
@@ -312,6 +325,10 @@ public class NotifyChangeHandler implements Runnable {
 	 */
 	public final void notifyDirectoryChanged(int action, String path) {
 
+		//	Inform the change listener
+
+		fireChangeListener(NotifyChange.DirectoryName, action, path, true);
+
 		//	Check if file change notifications are enabled
 
 		if ( getGlobalNotifyMask() == 0 || hasDirectoryNameChange() == false)
@@ -330,6 +347,10 @@ public class NotifyChangeHandler implements Runnable {
 	 */
 	public final void notifyAttributesChanged(String path, boolean isdir) {
 
+		//	Inform the change listener
+
+		fireChangeListener(NotifyChange.Attributes, NotifyChange.ActionModified, path, isdir);
+
 		//	Check if file change notifications are enabled
 
 		if ( getGlobalNotifyMask() == 0 || hasAttributeChange() == false)
@@ -347,6 +368,10 @@ public class NotifyChangeHandler implements Runnable {
 	 */
 	public final void notifyFileSizeChanged(String path) {
 
+		//	Inform the change listener
+
+		fireChangeListener(NotifyChange.Size, NotifyChange.ActionModified, path, false);
+
 		//	Check if file change notifications are enabled
 
 		if ( getGlobalNotifyMask() == 0 || hasFileSizeChange() == false)
@@ -365,6 +390,10 @@ public class NotifyChangeHandler implements Runnable {
 	 */
 	public final void notifyLastWriteTimeChanged(String path, boolean isdir) {
 
+		//	Inform the change listener
+
+		fireChangeListener(NotifyChange.LastWrite, NotifyChange.ActionModified, path, isdir);
+
 		//	Check if file change notifications are enabled
 
 		if ( getGlobalNotifyMask() == 0 || hasFileWriteTimeChange() == false)
@@ -383,6 +412,10 @@ public class NotifyChangeHandler implements Runnable {
 	 */
 	public final void notifyLastAccessTimeChanged(String path, boolean isdir) {
 
+		//	Inform the change listener
+
+		fireChangeListener(NotifyChange.LastAccess, NotifyChange.ActionModified, path, isdir);
+
 		//	Check if file change notifications are enabled
 
 		if ( getGlobalNotifyMask() == 0 || hasFileAccessTimeChange() == false)
@@ -401,6 +434,10 @@ public class NotifyChangeHandler implements Runnable {
 	 */
 	public final void notifyCreationTimeChanged(String path, boolean isdir) {
 
+		//	Inform the change listener
+
+		fireChangeListener(NotifyChange.Creation, NotifyChange.ActionModified, path, isdir);
+
 		//	Check if file change notifications are enabled
 
 		if ( getGlobalNotifyMask() == 0 || hasFileCreateTimeChange() == false)
@@ -419,6 +456,10 @@ public class NotifyChangeHandler implements Runnable {
 	 */
 	public final void notifySecurityDescriptorChanged(String path, boolean isdir) {
 
+		//	Inform the change listener
+
+		fireChangeListener(NotifyChange.Security, NotifyChange.ActionModified, path, isdir);
+
 		//	Check if file change notifications are enabled
 
 		if ( getGlobalNotifyMask() == 0 || hasSecurityDescriptorChange() == false)
@@ -429,6 +470,48 @@ public class NotifyChangeHandler implements Runnable {
 		queueNotification(new NotifyChangeEvent(NotifyChange.Security, NotifyChange.ActionModified, path, isdir));
 	}
 
+	/**
+	 * Add a change listener
+	 *
+	 * @param l NotifyChangeListener
+	 */
+	public final void addChangeListener(NotifyChangeListener l) {
+		m_changeListener = l;
+	}
+
+	/**
+	 * Remove a change listener
+	 *
+	 * @param l NotifyChangeListener
+	 */
+	public final void removeChangeListener(NotifyChangeListener l) {
+		if ( m_changeListener == l)
+			m_changeListener = null;
+	}
+
+	/**
+	 * Check if the change listener has been set
+	 *
+	 * @return boolean
+	 */
+	public final boolean hasChangeListener() {
+		return m_changeListener != null ? true : false;
+	}
+
+	/**
+	 * Inform the change listener of a change
+	 *
+	 * @param filter int
+	 * @param action int
+	 * @param path String
+	 * @param isdir boolean
+	 */
+	private final void fireChangeListener(int filter, int action, String path, boolean isdir) {
+		NotifyChangeListener l = m_changeListener;
+		if ( l != null)
+			l.pathChanged(filter, action, path, isdir);
+	}
+
 	/**
 	 * Enable debug output
 	 *
@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2006-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.alfresco.jlan.smb.server.notify;
+
+/**
+ * Notify Change Listener Interface
+ *
+ * <p>Receives the file/directory change events for a filesystem, whether or not any sessions have change
+ * notifications enabled.
+ *
+ * @author gkspencer
+ */
+public interface NotifyChangeListener {
+
+	/**
+	 * File/directory changed
+	 *
+	 * @param filter int
+	 * @param action int
+	 * @param path String
+	 * @param isdir boolean
+	 */
+	public void pathChanged(int filter, int action, String path, boolean isdir);
+}
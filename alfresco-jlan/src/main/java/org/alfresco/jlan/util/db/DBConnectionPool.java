@@ -25,6 +25,7 @@ import java.sql.SQLException;
 import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.Vector;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.alfresco.jlan.debug.Debug;
 
@@ -80,6 +81,12 @@ public class DBConnectionPool {
 	private Vector<Connection> m_freePool;
 	private Hashtable<Connection, Long> m_allocPool;
 
+	//	Locks for the free/in use connection pools. Locks are used rather than monitors as connections are
+	//	created and checked whilst the lock is held, which would pin the carrier of a virtual thread.
+
+	private ReentrantLock m_freeLock  = new ReentrantLock();
+	private ReentrantLock m_allocLock = new ReentrantLock();
+
 	//	Connection reaper thread
 
 	private DBConnectionReaper m_reaper;
@@ -146,7 +153,8 @@ public class DBConnectionPool {
 
 			//	Load the initial free connection pool
 
-			synchronized ( m_freePool) {
+			m_freeLock.lock();
+			try {
 
 				try {
 
@@ -166,6 +174,9 @@ public class DBConnectionPool {
 				catch (SQLException ex) {
 				}
 			}
+			finally {
+				m_freeLock.unlock();
+			}
 
 			//	Loop forever, or until shutdown
 
@@ -192,7 +203,8 @@ public class DBConnectionPool {
 
 				//	Check for expired connection leases
 
-				synchronized ( m_allocPool) {
+				m_allocLock.lock();
+				try {
 
 					//	DEBUG
 
@@ -262,10 +274,14 @@ public class DBConnectionPool {
 						}
 					}
 				}
+				finally {
+					m_allocLock.unlock();
+				}
 
 				//	Check if the free pool has grown too far
 
-				synchronized ( m_freePool) {
+				m_freeLock.lock();
+				try {
 
 					//	Release connections from the free pool until below the maximum connection limit
 
@@ -288,12 +304,16 @@ public class DBConnectionPool {
 						}
 					}
 				}
+				finally {
+					m_freeLock.unlock();
+				}
 
         // Check the connections in the free pool to see if they have been timed out by the server
 
         if ( loopCnt % m_onlineCheckInterval == 0 || isOnline() == false) {
 
-          synchronized ( m_freePool) {
+          m_freeLock.lock();
+          try {
 
             // DEBUG
 
@@ -381,6 +401,9 @@ public class DBConnectionPool {
 
 //            Debug.println( "DBConnectionReaper Free pool check done.");
           }
+          finally {
+            m_freeLock.unlock();
+          }
         }
 			}
 		}
@@ -582,7 +605,8 @@ public class DBConnectionPool {
 
 		Connection conn = null;
 
-		synchronized ( m_freePool) {
+		m_freeLock.lock();
+		try {
 
 			//	Check if the free pool has a connection
 
@@ -615,6 +639,9 @@ public class DBConnectionPool {
         }
       }
 		}
+		finally {
+			m_freeLock.unlock();
+		}
 
     //  Check if the database server is back online
 
@@ -629,7 +656,8 @@ public class DBConnectionPool {
 
 		//	Allocate a new connection if there are spare slots available
 
-		synchronized ( m_allocPool) {
+		m_allocLock.lock();
+		try {
 
 			//	If the connection is valid add it to the allocated pool
 
@@ -659,6 +687,9 @@ public class DBConnectionPool {
 				}
 			}
 		}
+		finally {
+			m_allocLock.unlock();
+		}
 
 		//	Return the connection
 
@@ -674,15 +705,20 @@ public class DBConnectionPool {
 
 		//	Remove the connection from the in use pool and put it back in the free list
 
-		synchronized ( m_allocPool) {
+		m_allocLock.lock();
+		try {
 			Object curConn = m_allocPool.remove(conn);
 			if ( curConn == null)
 				return;
 		}
+		finally {
+			m_allocLock.unlock();
+		}
 
 		//	Add the connection to the free pool
 
-		synchronized ( m_freePool) {
+		m_freeLock.lock();
+		try {
 
 			//	Add the connection back to the free pool, if not closed
 
@@ -696,6 +732,9 @@ public class DBConnectionPool {
 			catch (Exception ex) {
 			}
 		}
+		finally {
+			m_freeLock.unlock();
+		}
 	}
 
 	/**
@@ -715,7 +754,8 @@ public class DBConnectionPool {
 	 */
 	public final void renewLease(Connection conn, long expireTime) {
 
-		synchronized ( m_allocPool) {
+		m_allocLock.lock();
+		try {
 
 			//	Check that the connection is in the allocated pool
 
@@ -726,6 +766,9 @@ public class DBConnectionPool {
 
 			m_allocPool.put(conn, new Long(expireTime));
 		}
+		finally {
+			m_allocLock.unlock();
+		}
 	}
 
 	/**
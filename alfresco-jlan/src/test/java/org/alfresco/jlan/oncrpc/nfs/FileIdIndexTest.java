@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2006-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.alfresco.jlan.oncrpc.nfs;
+
+import static org.testng.Assert.*;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * File Id Index Test Class
+ *
+ * <p>Checks that the file id to path mappings survive closing and reopening the index, including when the end
+ * of the log has been truncated or partially written.
+ *
+ * @author gkspencer
+ */
+public class FileIdIndexTest {
+
+    // Index file, and a copy used for the truncated log tests
+
+    private File m_file;
+    private File m_copyFile;
+
+    // Index being tested
+
+    private FileIdIndex m_index;
+
+    /**
+     * Copy the start of the index file to the copy file
+     *
+     * @param len int
+     * @throws IOException
+     */
+    private void copyIndex(int len) throws IOException {
+
+        InputStream in = new FileInputStream(m_file);
+        OutputStream out = new FileOutputStream(m_copyFile);
+
+        try {
+            byte[] buf = new byte[8192];
+            int remaining = len;
+
+            while (remaining > 0) {
+                int rdlen = in.read(buf, 0, Math.min(buf.length, remaining));
+                if (rdlen <= 0)
+                    break;
+                out.write(buf, 0, rdlen);
+                remaining -= rdlen;
+            }
+        }
+        finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    /**
+     * Close and reopen the index
+     *
+     * @throws IOException
+     */
+    private void reopenIndex() throws IOException {
+        m_index.closeIndex();
+        m_index = new FileIdIndex(m_file);
+    }
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        m_file = File.createTempFile("fileIdIndex", FileIdIndex.FileExtension);
+        m_copyFile = new File(m_file.getPath() + ".copy");
+        m_index = new FileIdIndex(m_file);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        if (m_index != null)
+            m_index.closeIndex();
+
+        m_file.delete();
+        m_copyFile.delete();
+        new File(m_file.getPath() + ".tmp").delete();
+    }
+
+    @Test
+    public void testAddFindDelete() throws IOException {
+
+        m_index.addPath(1, "\\dir\\file1.txt");
+        m_index.addPath(-2, "\\dir\\file2.txt");
+        m_index.addPath(0, "\\");
+
+        assertEquals(m_index.numberOfEntries(), 3);
+        assertEquals(m_index.findPath(1), "\\dir\\file1.txt");
+        assertEquals(m_index.findPath(-2), "\\dir\\file2.txt");
+        assertEquals(m_index.findPath(0), "\\");
+        assertNull(m_index.findPath(3));
+
+        m_index.deletePath(1);
+        m_index.deletePath(99);
+
+        assertEquals(m_index.numberOfEntries(), 2);
+        assertNull(m_index.findPath(1));
+    }
+
+    @Test
+    public void testSamePathNotLogged() throws IOException {
+
+        m_index.addPath(1, "\\dir\\file1.txt");
+        int logLen = m_index.getLogLength();
+
+        // Adding the same path again does not append to the log, a changed path does
+
+        m_index.addPath(1, "\\dir\\file1.txt");
+        assertEquals(m_index.getLogLength(), logLen);
+
+        m_index.addPath(1, "\\dir\\renamed.txt");
+        assertTrue(m_index.getLogLength() > logLen);
+        assertEquals(m_index.findPath(1), "\\dir\\renamed.txt");
+        assertEquals(m_index.numberOfEntries(), 1);
+    }
+
+    @Test
+    public void testReopen() throws IOException {
+
+        for (int i = 0; i < 5000; i++)
+            m_index.addPath(i * 7919, "\\dir" + (i % 10) + "\\file" + i + ".txt");
+
+        m_index.addPath(5 * 7919, "\\renamed\\five.txt");
+        m_index.deletePath(6 * 7919);
+        m_index.addPath(-1, "\\caf\u00e9\\na\u00efve.txt");
+
+        int logLen = m_index.getLogLength();
+        reopenIndex();
+
+        // Paths, updates and deletes are replayed from the log
+
+        assertEquals(m_index.numberOfEntries(), 5000);
+        assertEquals(m_index.getLogLength(), logLen);
+
+        assertEquals(m_index.findPath(5 * 7919), "\\renamed\\five.txt");
+        assertNull(m_index.findPath(6 * 7919));
+        assertEquals(m_index.findPath(-1), "\\caf\u00e9\\na\u00efve.txt");
+
+        for (int i = 0; i < 5000; i++) {
+            if (i != 5 && i != 6)
+                assertEquals(m_index.findPath(i * 7919), "\\dir" + (i % 10) + "\\file" + i + ".txt");
+        }
+
+        // New records are appended after the existing log
+
+        m_index.addPath(123, "\\new.txt");
+        reopenIndex();
+
+        assertEquals(m_index.findPath(123), "\\new.txt");
+        assertEquals(m_index.numberOfEntries(), 5001);
+    }
+
+    @Test
+    public void testRenamePaths() throws IOException {
+
+        m_index.addPath(1, "\\Old\\a.txt");
+        m_index.addPath(2, "\\Old\\Sub\\b.txt");
+        m_index.addPath(3, "\\Older\\c.txt");
+        m_index.addPath(4, "\\Old");
+
+        // Only paths below the directory are renamed, not a directory that shares the name prefix
+
+        assertEquals(m_index.renamePaths("\\Old", "\\New"), 2);
+        reopenIndex();
+
+        assertEquals(m_index.findPath(1), "\\New\\a.txt");
+        assertEquals(m_index.findPath(2), "\\New\\Sub\\b.txt");
+        assertEquals(m_index.findPath(3), "\\Older\\c.txt");
+        assertEquals(m_index.findPath(4), "\\Old");
+    }
+
+    @Test
+    public void testTruncatedLog() throws IOException {
+
+        m_index.addPath(1, "\\dir\\file1.txt");
+        m_index.addPath(2, "\\dir\\file2.txt");
+        int goodLen = m_index.getLogLength();
+
+        m_index.addPath(3, "\\dir\\file3.txt");
+        m_index.closeIndex();
+        m_index = null;
+
+        // Cut the log part way through the last record, as if the server stopped whilst the log was being written
+
+        copyIndex(goodLen + 6);
+
+        FileIdIndex copyIndex = new FileIdIndex(m_copyFile);
+
+        try {
+            assertEquals(copyIndex.numberOfEntries(), 2);
+            assertEquals(copyIndex.getLogLength(), goodLen);
+            assertEquals(copyIndex.findPath(1), "\\dir\\file1.txt");
+            assertEquals(copyIndex.findPath(2), "\\dir\\file2.txt");
+            assertNull(copyIndex.findPath(3));
+
+            // New records replace the partial record
+
+            copyIndex.addPath(4, "\\dir\\file4.txt");
+            copyIndex.closeIndex();
+
+            copyIndex = new FileIdIndex(m_copyFile);
+
+            assertEquals(copyIndex.numberOfEntries(), 3);
+            assertEquals(copyIndex.findPath(4), "\\dir\\file4.txt");
+            assertNull(copyIndex.findPath(3));
+        }
+        finally {
+            copyIndex.closeIndex();
+        }
+    }
+
+    @Test
+    public void testPartiallyWrittenRecord() throws IOException {
+
+        m_index.addPath(1, "\\dir\\file1.txt");
+        int goodLen = m_index.getLogLength();
+
+        m_index.addPath(2, "\\dir\\file2.txt");
+        m_index.closeIndex();
+
+        // Clear the end of the last record, the record length was written but the path data was not
+
+        RandomAccessFile raf = new RandomAccessFile(m_file, "rw");
+
+        try {
+            raf.seek(goodLen + 14);
+            raf.write(new byte[4]);
+        }
+        finally {
+            raf.close();
+        }
+
+        m_index = new FileIdIndex(m_file);
+
+        assertEquals(m_index.numberOfEntries(), 1);
+        assertEquals(m_index.getLogLength(), goodLen);
+        assertEquals(m_index.findPath(1), "\\dir\\file1.txt");
+        assertNull(m_index.findPath(2));
+    }
+
+    @Test
+    public void testCompaction() throws IOException {
+
+        // Update and delete paths until the log is mostly old records
+
+        for (int i = 0; i < 20000; i++)
+            m_index.addPath(i, "\\folder" + (i % 50) + "\\document" + i + ".txt");
+
+        int fullLen = m_index.getLogLength();
+
+        for (int i = 0; i < 20000; i++) {
+            if (i % 10 != 0)
+                m_index.deletePath(i);
+        }
+
+        for (int i = 0; i < 20000; i += 10)
+            m_index.addPath(i, "\\moved\\document" + i + ".txt");
+
+        assertTrue(m_index.getLogLength() < fullLen, "Log not compacted, length " + m_index.getLogLength());
+        assertEquals(m_index.numberOfEntries(), 2000);
+
+        reopenIndex();
+
+        assertEquals(m_index.numberOfEntries(), 2000);
+        assertEquals(m_index.findPath(10), "\\moved\\document10.txt");
+        assertNull(m_index.findPath(11));
+        assertFalse(new File(m_file.getPath() + ".tmp").exists(), "Temporary log file not replaced");
+    }
+
+    @Test
+    public void testInvalidIndexFile() throws IOException {
+
+        m_index.closeIndex();
+        m_index = null;
+
+        OutputStream out = new FileOutputStream(m_copyFile);
+
+        try {
+            out.write("Not a file id index".getBytes());
+        }
+        finally {
+            out.close();
+        }
+
+        try {
+            new FileIdIndex(m_copyFile);
+            fail("Invalid index file opened");
+        }
+        catch (IOException ex) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testClosedIndex() throws IOException {
+
+        m_index.addPath(1, "\\dir\\file1.txt");
+        m_index.closeIndex();
+
+        assertNull(m_index.findPath(1));
+
+        try {
+            m_index.addPath(2, "\\dir\\file2.txt");
+            fail("Path added to closed index");
+        }
+        catch (IOException ex) {
+            // Expected
+        }
+
+        m_index = null;
+    }
+}
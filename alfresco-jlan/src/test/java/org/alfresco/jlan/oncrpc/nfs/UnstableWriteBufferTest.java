@@ -0,0 +1,458 @@
+/*
+ * Copyright (C) 2006-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.alfresco.jlan.oncrpc.nfs;
+
+import static org.testng.Assert.*;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.alfresco.jlan.server.config.ServerConfiguration;
+import org.alfresco.jlan.server.filesys.DiskInterface;
+import org.alfresco.jlan.server.filesys.DiskSharedDevice;
+import org.alfresco.jlan.server.filesys.NetworkFile;
+import org.alfresco.jlan.server.filesys.TreeConnection;
+
+/**
+ * Unstable Write Buffer Test Class
+ *
+ * <p>Checks the merging and flushing of buffered unstable writes, the server wide write cache accounting, and
+ * that the write verifier changes when buffered data is lost.
+ *
+ * @author gkspencer
+ */
+public class UnstableWriteBufferTest {
+
+    // File contents written by the disk interface, and the offsets of the writes
+
+    private byte[] m_disk;
+    private List<Long> m_writeOffsets;
+
+    // Fail writes to the disk
+
+    private boolean m_failWrites;
+
+    // Disk interface and tree connection
+
+    private DiskInterface m_diskIface;
+    private TreeConnection m_conn;
+
+    /**
+     * Network file that does not access any storage, writes are done via the disk interface
+     */
+    private static class TestNetworkFile extends NetworkFile {
+
+        public TestNetworkFile(String path, int fileId) {
+            super(path);
+            setFullName(path);
+            setFileId(fileId);
+        }
+
+        public void openFile(boolean createFlag) {
+        }
+
+        public int readFile(byte[] buf, int len, int pos, long fileOff) {
+            return 0;
+        }
+
+        public void writeFile(byte[] buf, int len, int pos, long fileOff) {
+        }
+
+        public long seekFile(long pos, int typ) {
+            return 0L;
+        }
+
+        public void flushFile() {
+        }
+
+        public void truncateFile(long siz) {
+        }
+
+        public void closeFile() {
+        }
+    }
+
+    /**
+     * Build a block of test data
+     *
+     * @param len int
+     * @param seed int
+     * @return byte[]
+     */
+    private static byte[] testData(int len, int seed) {
+        byte[] data = new byte[len];
+        for (int i = 0; i < len; i++)
+            data[i] = (byte) (i * 7 + seed);
+        return data;
+    }
+
+    /**
+     * Check that the disk contains the expected data
+     *
+     * @param data byte[]
+     * @param offset int
+     */
+    private void assertDiskData(byte[] data, int offset) {
+        for (int i = 0; i < data.length; i++)
+            assertEquals(m_disk[offset + i], data[i], "Disk data at offset " + (offset + i));
+    }
+
+    @BeforeMethod
+    public void setUp() {
+        m_disk = new byte[1024 * 1024];
+        m_writeOffsets = new ArrayList<Long>();
+        m_failWrites = false;
+
+        // Disk interface that writes to the in memory file, other methods are not used
+
+        m_diskIface = (DiskInterface) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { DiskInterface.class },
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getName().equals("writeFile")) {
+                            if (m_failWrites)
+                                throw new IOException("Write failed");
+
+                            byte[] buf = (byte[]) args[3];
+                            int bufoff = ((Integer) args[4]).intValue();
+                            int siz = ((Integer) args[5]).intValue();
+                            long fileoff = ((Long) args[6]).longValue();
+
+                            System.arraycopy(buf, bufoff, m_disk, (int) fileoff, siz);
+                            m_writeOffsets.add(Long.valueOf(fileoff));
+                            return Integer.valueOf(siz);
+                        }
+                        return null;
+                    }
+                });
+
+        m_conn = new TreeConnection(new DiskSharedDevice("TEST", m_diskIface, null));
+    }
+
+    @Test
+    public void testMergeRanges() {
+
+        UnstableWriteBuffer writeBuf = new UnstableWriteBuffer(UnstableWriteBuffer.DefaultBufferSize);
+        byte[] data = testData(400, 1);
+
+        // Separate ranges
+
+        writeBuf.addWrite(data, 0, 100, 0L);
+        writeBuf.addWrite(data, 200, 100, 200L);
+        writeBuf.addWrite(data, 350, 50, 350L);
+
+        assertEquals(writeBuf.numberOfRanges(), 3);
+        assertEquals(writeBuf.getBufferedSize(), 250);
+
+        // Adjacent write extends the first range
+
+        writeBuf.addWrite(data, 100, 50, 100L);
+        assertEquals(writeBuf.numberOfRanges(), 3);
+        assertEquals(writeBuf.getBufferedSize(), 300);
+
+        // Write that bridges the gaps merges all of the ranges
+
+        writeBuf.addWrite(data, 140, 220, 140L);
+        assertEquals(writeBuf.numberOfRanges(), 1);
+        assertEquals(writeBuf.getBufferedSize(), 400);
+
+        // Overwrite within the range does not change the buffered size
+
+        writeBuf.addWrite(data, 10, 20, 10L);
+        assertEquals(writeBuf.numberOfRanges(), 1);
+        assertEquals(writeBuf.getBufferedSize(), 400);
+
+        // Zero length writes are ignored
+
+        writeBuf.addWrite(data, 0, 0, 1000L);
+        assertEquals(writeBuf.numberOfRanges(), 1);
+    }
+
+    @Test
+    public void testMergeKeepsLatestData() throws Exception {
+
+        UnstableWriteBuffer writeBuf = new UnstableWriteBuffer(UnstableWriteBuffer.DefaultBufferSize);
+        NetworkFile netFile = new TestNetworkFile("\\file.txt", 1);
+
+        byte[] oldData = testData(300, 1);
+        byte[] newData = testData(100, 99);
+
+        writeBuf.addWrite(oldData, 0, 100, 0L);
+        writeBuf.addWrite(oldData, 200, 100, 200L);
+
+        // New data overlaps the end of the first range, then a write fills the gap to the second range
+
+        writeBuf.addWrite(newData, 0, 100, 50L);
+        writeBuf.addWrite(oldData, 150, 50, 150L);
+
+        assertEquals(writeBuf.flush(m_diskIface, null, m_conn, netFile), 300);
+
+        byte[] expected = oldData.clone();
+        System.arraycopy(newData, 0, expected, 50, 100);
+
+        assertDiskData(expected, 0);
+    }
+
+    @Test
+    public void testBufferFull() {
+
+        UnstableWriteBuffer writeBuf = new UnstableWriteBuffer(UnstableWriteBuffer.MinimumBufferSize);
+        byte[] data = testData(UnstableWriteBuffer.MinimumBufferSize / 2, 1);
+
+        assertFalse(writeBuf.addWrite(data, 0, data.length, 0L), "Buffer full after first write");
+
+        // Overwriting buffered data does not fill the buffer
+
+        assertFalse(writeBuf.addWrite(data, 0, data.length, 0L), "Buffer full after overwrite");
+        assertTrue(writeBuf.addWrite(data, 0, data.length, data.length), "Buffer not full");
+    }
+
+    @Test
+    public void testFileSize() throws Exception {
+
+        UnstableWriteBuffer writeBuf = new UnstableWriteBuffer(UnstableWriteBuffer.DefaultBufferSize);
+        byte[] data = testData(100, 1);
+
+        assertEquals(writeBuf.getFileSize(50L), 50L);
+
+        writeBuf.addWrite(data, 0, 100, 1000L);
+        assertEquals(writeBuf.getFileSize(50L), 1100L);
+        assertEquals(writeBuf.getFileSize(2000L), 2000L);
+
+        // File size is not extended once the data has been flushed
+
+        writeBuf.flush(m_diskIface, null, m_conn, new TestNetworkFile("\\file.txt", 1));
+        assertEquals(writeBuf.getFileSize(50L), 50L);
+    }
+
+    @Test
+    public void testFlushInOffsetOrder() throws Exception {
+
+        UnstableWriteBuffer writeBuf = new UnstableWriteBuffer(UnstableWriteBuffer.DefaultBufferSize);
+        NetworkFile netFile = new TestNetworkFile("\\file.txt", 1);
+        byte[] data = testData(1000, 3);
+
+        writeBuf.addWrite(data, 800, 100, 800L);
+        writeBuf.addWrite(data, 0, 100, 0L);
+        writeBuf.addWrite(data, 400, 100, 400L);
+
+        assertEquals(writeBuf.flush(m_diskIface, null, m_conn, netFile), 300);
+        assertFalse(writeBuf.hasDirtyData());
+        assertEquals(writeBuf.getBufferedSize(), 0);
+
+        assertEquals(m_writeOffsets.size(), 3);
+        assertEquals(m_writeOffsets.get(0).longValue(), 0L);
+        assertEquals(m_writeOffsets.get(1).longValue(), 400L);
+        assertEquals(m_writeOffsets.get(2).longValue(), 800L);
+
+        for (int i = 0; i < 1000; i++) {
+            if ((i / 100) % 4 == 0)
+                assertEquals(m_disk[i], data[i], "Disk data at offset " + i);
+        }
+
+        // Flushing an empty buffer does not write anything
+
+        assertEquals(writeBuf.flush(m_diskIface, null, m_conn, netFile), 0);
+        assertEquals(m_writeOffsets.size(), 3);
+    }
+
+    @Test
+    public void testPartialFlush() throws Exception {
+
+        UnstableWriteBuffer writeBuf = new UnstableWriteBuffer(UnstableWriteBuffer.DefaultBufferSize);
+        NetworkFile netFile = new TestNetworkFile("\\file.txt", 1);
+        byte[] data = testData(1000, 5);
+
+        writeBuf.addWrite(data, 0, 100, 0L);
+        writeBuf.addWrite(data, 400, 100, 400L);
+        writeBuf.addWrite(data, 800, 100, 800L);
+
+        // Only the range that overlaps the requested area is written, as it would be for a COMMIT of part of the file
+
+        assertEquals(writeBuf.flush(m_diskIface, null, m_conn, netFile, 450L, 10L), 100);
+        assertEquals(m_writeOffsets.size(), 1);
+        assertEquals(m_writeOffsets.get(0).longValue(), 400L);
+
+        assertEquals(writeBuf.numberOfRanges(), 2);
+        assertEquals(writeBuf.getBufferedSize(), 200);
+        assertEquals(writeBuf.getFileSize(0L), 900L);
+
+        // A zero count flushes from the offset to the end of the file
+
+        assertEquals(writeBuf.flush(m_diskIface, null, m_conn, netFile, 50L, 0L), 200);
+        assertFalse(writeBuf.hasDirtyData());
+    }
+
+    @Test
+    public void testDiscard() {
+
+        UnstableWriteBuffer writeBuf = new UnstableWriteBuffer(UnstableWriteBuffer.DefaultBufferSize);
+        byte[] data = testData(100, 1);
+
+        writeBuf.addWrite(data, 0, 100, 0L);
+        writeBuf.discard();
+
+        assertFalse(writeBuf.hasDirtyData());
+        assertEquals(writeBuf.getBufferedSize(), 0);
+        assertEquals(writeBuf.getFileSize(0L), 0L);
+    }
+
+    @Test
+    public void testWriteCacheSharedBuffer() throws Exception {
+
+        UnstableWriteCache cache = new UnstableWriteCache(UnstableWriteBuffer.DefaultBufferSize, 150L);
+        NetworkFile fileA = new TestNetworkFile("\\Dir\\file.txt", 10);
+        NetworkFile fileB = new TestNetworkFile("\\Dir\\file.txt", 10);
+        byte[] data = testData(200, 7);
+
+        // Writes to the same file via different network files share the buffer, the last writer is recorded
+
+        UnstableWriteBuffer writeBuf = null;
+
+        synchronized (fileA) {
+            writeBuf = cache.addWrite(null, m_conn, fileA, data, 0, 100, 0L);
+        }
+        assertSame(writeBuf.getWriterFile(), fileA);
+        assertFalse(cache.isOverLimit());
+
+        synchronized (fileB) {
+            assertSame(cache.addWrite(null, m_conn, fileB, data, 100, 100, 100L), writeBuf);
+        }
+        assertSame(writeBuf.getWriterFile(), fileB);
+        assertSame(writeBuf.getWriterConnection(), m_conn);
+
+        assertEquals(cache.numberOfBuffers(), 1);
+        assertEquals(cache.getMemoryUsed(), 200L);
+        assertTrue(cache.isOverLimit());
+
+        assertSame(cache.findWriteBuffer(m_conn, 10), writeBuf);
+        assertNull(cache.findWriteBuffer(m_conn, 11));
+        assertEquals(cache.findWriteBuffers("\\DIR\\FILE.TXT").size(), 1);
+        assertEquals(cache.getDirtyBuffers().size(), 1);
+
+        // A buffer with data is not released
+
+        cache.releaseWriteBuffer(writeBuf);
+        assertFalse(writeBuf.isReleased());
+
+        // Flush via the last writer, then release the empty buffer
+
+        assertEquals(writeBuf.flush(0L, 0L), 200);
+        assertDiskData(data, 0);
+        assertEquals(cache.getMemoryUsed(), 0L);
+        assertTrue(cache.findWriteBuffers("\\Dir\\file.txt").isEmpty());
+
+        cache.releaseWriteBuffer(m_conn, 10);
+        assertTrue(writeBuf.isReleased());
+        assertEquals(cache.numberOfBuffers(), 0);
+
+        // A new write allocates a new buffer
+
+        synchronized (fileA) {
+            assertNotSame(cache.addWrite(null, m_conn, fileA, data, 0, 10, 0L), writeBuf);
+        }
+        assertEquals(cache.getMemoryUsed(), 10L);
+
+        cache.removeAllBuffers();
+        assertEquals(cache.numberOfBuffers(), 0);
+        assertEquals(cache.getMemoryUsed(), 0L);
+    }
+
+    @Test
+    public void testWriteCacheSeparateShares() {
+
+        UnstableWriteCache cache = new UnstableWriteCache(UnstableWriteBuffer.DefaultBufferSize, UnstableWriteCache.DefaultMemoryLimit);
+        TreeConnection conn2 = new TreeConnection(new DiskSharedDevice("OTHER", m_diskIface, null));
+        NetworkFile fileA = new TestNetworkFile("\\file.txt", 10);
+        NetworkFile fileB = new TestNetworkFile("\\file.txt", 10);
+        byte[] data = testData(100, 1);
+
+        // The same file id on different shares uses different buffers
+
+        UnstableWriteBuffer bufA = null;
+        UnstableWriteBuffer bufB = null;
+
+        synchronized (fileA) {
+            bufA = cache.addWrite(null, m_conn, fileA, data, 0, 100, 0L);
+        }
+        synchronized (fileB) {
+            bufB = cache.addWrite(null, conn2, fileB, data, 0, 50, 0L);
+        }
+
+        assertNotSame(bufA, bufB);
+        assertEquals(cache.numberOfBuffers(), 2);
+        assertEquals(cache.getMemoryUsed(), 150L);
+        assertEquals(cache.findWriteBuffers("\\file.txt").size(), 2);
+    }
+
+    @Test
+    public void testWriteVerifierChanges() throws Exception {
+
+        NFSServer server = new NFSServer(new ServerConfiguration("test"));
+
+        // The write verifier always increases, even when changed twice within the same millisecond
+
+        long verifier = server.getWriteVerifier();
+
+        for (int i = 0; i < 10; i++) {
+            server.changeWriteVerifier();
+            assertTrue(server.getWriteVerifier() > verifier, "Write verifier did not increase");
+            verifier = server.getWriteVerifier();
+        }
+    }
+
+    @Test
+    public void testFailedFlushChangesVerifier() throws Exception {
+
+        NFSServer server = new NFSServer(new ServerConfiguration("test"));
+        UnstableWriteCache cache = new UnstableWriteCache(UnstableWriteBuffer.DefaultBufferSize, UnstableWriteCache.DefaultMemoryLimit);
+        NetworkFile netFile = new TestNetworkFile("\\file.txt", 1);
+        byte[] data = testData(100, 1);
+
+        UnstableWriteBuffer writeBuf = null;
+
+        synchronized (netFile) {
+            writeBuf = cache.addWrite(null, m_conn, netFile, data, 0, 100, 0L);
+        }
+
+        // The buffered data is lost if the flush fails, the verifier must change so that clients resend
+        // uncommitted data
+
+        long verifier = server.getWriteVerifier();
+        m_failWrites = true;
+
+        try {
+            server.flushWriteBuffer(null, writeBuf, 0L, 0L);
+            fail("Flush did not fail");
+        }
+        catch (IOException ex) {
+            // Expected
+        }
+
+        assertTrue(server.getWriteVerifier() > verifier, "Write verifier not changed");
+        assertFalse(writeBuf.hasDirtyData());
+        assertEquals(cache.getMemoryUsed(), 0L);
+    }
+}
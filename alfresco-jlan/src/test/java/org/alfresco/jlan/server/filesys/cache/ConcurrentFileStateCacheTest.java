@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2006-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.alfresco.jlan.server.filesys.cache;
+
+import static org.testng.Assert.*;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.alfresco.jlan.server.filesys.FileStatus;
+import org.springframework.extensions.config.ConfigElement;
+import org.springframework.extensions.config.element.GenericConfigElement;
+
+/**
+ * Concurrent File State Cache Test Class
+ *
+ * <p>Checks the timer wheel based expiry of file states. The cache check interval, which is also the timer
+ * wheel tick, and the file state expiry interval are set to a few milliseconds, below the minimum values allowed
+ * by the configuration, so that the tests do not have to wait for real expiry times.
+ *
+ * @author gkspencer
+ */
+public class ConcurrentFileStateCacheTest {
+
+    // Timer wheel tick and file state expiry interval, in milliseconds
+
+    private static final long TickInterval = 20L;
+    private static final long ExpireInterval = 60L;
+
+    // Cache being tested, and the state listener
+
+    private ConcurrentFileStateCache m_cache;
+    private TestStateListener m_listener;
+
+    /**
+     * File state listener that counts the expired and closed notifications
+     */
+    private static class TestStateListener implements FileStateListener {
+
+        // Allow expired states to be removed
+
+        private boolean m_allowExpire = true;
+
+        // Notification counts
+
+        private int m_expiredCnt;
+        private int m_closedCnt;
+
+        public boolean fileStateExpired(FileState state) {
+            m_expiredCnt++;
+            return m_allowExpire;
+        }
+
+        public void fileStateClosed(FileState state) {
+            m_closedCnt++;
+        }
+    }
+
+    /**
+     * Create a cache with a short tick and expiry interval
+     *
+     * @param maxStates int
+     * @return ConcurrentFileStateCache
+     * @throws Exception
+     */
+    private ConcurrentFileStateCache createCache(int maxStates) throws Exception {
+
+        ConcurrentFileStateCache cache = new ConcurrentFileStateCache();
+        cache.setCheckInterval(TickInterval);
+        cache.setFileStateExpireInterval(ExpireInterval);
+
+        GenericConfigElement config = new GenericConfigElement("stateCache");
+        if (maxStates > 0)
+            config.addChild(new ConfigElement("maximumSize", Integer.toString(maxStates)));
+
+        cache.initializeCache(config, null);
+        cache.addStateListener(m_listener);
+
+        return cache;
+    }
+
+    /**
+     * Wait until states created now have expired and their timer wheel slots are due
+     */
+    private void waitForExpiry() throws InterruptedException {
+        Thread.sleep(ExpireInterval + 4 * TickInterval);
+    }
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        m_listener = new TestStateListener();
+        m_cache = createCache(0);
+    }
+
+    @Test
+    public void testExpiredStatesRemoved() throws Exception {
+
+        for (int i = 0; i < 10; i++)
+            m_cache.findFileState("\\folder\\file" + i + ".txt", true, FileStatus.FileExists);
+
+        assertEquals(m_cache.numberOfStates(), 10);
+        assertEquals(m_cache.removeExpiredFileStates(), 0, "States removed before expiry");
+
+        waitForExpiry();
+
+        assertEquals(m_cache.removeExpiredFileStates(), 10, "Expired states removed");
+        assertEquals(m_cache.numberOfStates(), 0);
+        assertNull(m_cache.findFileState("\\folder\\file0.txt"));
+    }
+
+    @Test
+    public void testOpenStateRequeued() throws Exception {
+
+        FileState state = m_cache.findFileState("\\open.txt", true, FileStatus.FileExists);
+        state.incrementOpenCount();
+
+        waitForExpiry();
+
+        // Open file state is kept, and requeued to be checked again
+
+        assertEquals(m_cache.removeExpiredFileStates(), 0, "Open state removed");
+        assertSame(m_cache.findFileState("\\open.txt"), state);
+
+        // Once the file is closed the state expires when its requeued entry is due
+
+        state.decrementOpenCount();
+        waitForExpiry();
+
+        assertEquals(m_cache.removeExpiredFileStates(), 1, "Closed state not removed");
+        assertNull(m_cache.findFileState("\\open.txt"));
+    }
+
+    @Test
+    public void testExtendedExpiryRequeued() throws Exception {
+
+        FileState state = m_cache.findFileState("\\extended.txt", true, FileStatus.FileExists);
+        state.setExpiryTime(System.currentTimeMillis() + 60000L);
+
+        waitForExpiry();
+
+        assertEquals(m_cache.removeExpiredFileStates(), 0, "State removed before extended expiry");
+        assertSame(m_cache.findFileState("\\extended.txt"), state);
+    }
+
+    @Test
+    public void testPermanentStateNotRemoved() throws Exception {
+
+        FileState state = m_cache.findFileState("\\permanent.txt", true, FileStatus.FileExists);
+        state.setExpiryTime(FileState.NoTimeout);
+
+        waitForExpiry();
+        assertEquals(m_cache.removeExpiredFileStates(), 0);
+
+        waitForExpiry();
+        assertEquals(m_cache.removeExpiredFileStates(), 0);
+
+        assertSame(m_cache.findFileState("\\permanent.txt"), state);
+        assertEquals(m_listener.m_expiredCnt, 0, "Listener called for permanent state");
+    }
+
+    @Test
+    public void testListenerVetoesExpiry() throws Exception {
+
+        m_listener.m_allowExpire = false;
+        FileState state = m_cache.findFileState("\\veto.txt", true, FileStatus.FileExists);
+
+        waitForExpiry();
+
+        assertEquals(m_cache.removeExpiredFileStates(), 0, "Vetoed state removed");
+        assertSame(m_cache.findFileState("\\veto.txt"), state);
+        assertTrue(m_listener.m_expiredCnt > 0, "Listener not called");
+
+        // State is requeued to the next slot, and checked again
+
+        m_listener.m_allowExpire = true;
+        waitForExpiry();
+
+        assertEquals(m_cache.removeExpiredFileStates(), 1);
+        assertEquals(m_cache.numberOfStates(), 0);
+    }
+
+    @Test
+    public void testStaleWheelEntriesDiscarded() throws Exception {
+
+        // Remove and recreate a state, the timer wheel entry for the removed state becomes stale
+
+        FileState oldState = m_cache.findFileState("\\stale.txt", true, FileStatus.FileExists);
+        assertSame(m_cache.removeFileState("\\stale.txt"), oldState);
+        assertEquals(m_listener.m_closedCnt, 1);
+
+        FileState newState = m_cache.findFileState("\\stale.txt", true, FileStatus.FileExists);
+        assertNotSame(newState, oldState);
+
+        // Renaming a state requeues it, the original entry becomes stale
+
+        FileState renState = m_cache.findFileState("\\before.txt", true, FileStatus.FileExists);
+        m_cache.renameFileState("\\after.txt", renState, false);
+
+        assertEquals(m_cache.numberOfStates(), 2);
+
+        waitForExpiry();
+
+        // Each state is expired once, stale entries are not passed to the listener
+
+        assertEquals(m_cache.removeExpiredFileStates(), 2);
+        assertEquals(m_listener.m_expiredCnt, 2, "Stale wheel entries checked");
+        assertEquals(m_cache.numberOfStates(), 0);
+    }
+
+    @Test
+    public void testMissedTicksCheckedOnce() throws Exception {
+
+        for (int i = 0; i < 5; i++)
+            m_cache.findFileState("\\late" + i + ".txt", true, FileStatus.FileExists);
+
+        // Do not run the check until more than a full turn of the timer wheel has passed
+
+        Thread.sleep(ExpireInterval + 70 * TickInterval);
+
+        assertEquals(m_cache.removeExpiredFileStates(), 5);
+        assertEquals(m_listener.m_expiredCnt, 5);
+        assertEquals(m_cache.numberOfStates(), 0);
+    }
+
+    @Test
+    public void testMaximumSizeEvictsIdleStates() throws Exception {
+
+        m_cache = createCache(100);
+        m_cache.setFileStateExpireInterval(60000L);
+
+        FileState openState = m_cache.findFileState("\\open.txt", true, FileStatus.FileExists);
+        openState.incrementOpenCount();
+
+        for (int i = 0; i < 100; i++)
+            m_cache.findFileState("\\evict" + i + ".txt", true, FileStatus.FileExists);
+
+        // Adding the state that takes the cache over the maximum size removes idle states, open states are kept
+
+        assertTrue(m_cache.numberOfStates() <= 90, "Cache size " + m_cache.numberOfStates());
+        assertSame(m_cache.findFileState("\\open.txt"), openState);
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2006-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.alfresco.jlan.server.filesys.cache;
+
+import static org.testng.Assert.*;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.alfresco.jlan.server.filesys.FileStatus;
+
+/**
+ * File State Path Index Test Class
+ *
+ * @author gkspencer
+ */
+public class FileStatePathIndexTest {
+
+    // Path index being tested
+
+    private FileStatePathIndex m_index;
+
+    /**
+     * Create a file state and add it to the index
+     *
+     * @param path String
+     * @return FileState
+     */
+    private FileState addState(String path) {
+        FileState state = new LocalFileState(path, FileStatus.FileExists, true);
+        m_index.addState(state);
+        return state;
+    }
+
+    /**
+     * Return the paths of the file states below a folder
+     *
+     * @param folderPath String
+     * @return Set<String>
+     */
+    private Set<String> pathsBelow(String folderPath) {
+        Set<String> paths = new HashSet<String>();
+        for (FileState state : m_index.getStatesBelow(folderPath))
+            paths.add(state.getPath());
+        return paths;
+    }
+
+    /**
+     * Build a set of paths
+     *
+     * @param paths String...
+     * @return Set<String>
+     */
+    private static Set<String> setOf(String... paths) {
+        Set<String> pathSet = new HashSet<String>();
+        for (String path : paths)
+            pathSet.add(path);
+        return pathSet;
+    }
+
+    @BeforeMethod
+    public void setUp() {
+        m_index = new FileStatePathIndex();
+    }
+
+    @Test
+    public void testStatesBelowFolder() {
+
+        addState("\\Proj\\Src");
+        addState("\\Proj\\Src\\a.txt");
+        addState("\\Proj\\Src\\Sub\\b.txt");
+        addState("\\Proj\\Src2\\c.txt");
+        addState("\\Proj\\other.txt");
+
+        // Folder state is not included, and a sibling with the same name prefix is not below the folder
+
+        assertEquals(pathsBelow("\\PROJ\\SRC"), setOf("\\PROJ\\SRC\\a.txt", "\\PROJ\\SRC\\SUB\\b.txt"));
+        assertEquals(pathsBelow("\\PROJ").size(), 5);
+        assertEquals(pathsBelow("\\").size(), 5);
+    }
+
+    @Test
+    public void testFolderPathCaseInsensitive() {
+
+        addState("\\Proj\\Src\\a.txt");
+
+        assertEquals(pathsBelow("\\proj\\src"), setOf("\\PROJ\\SRC\\a.txt"));
+        assertEquals(pathsBelow("\\Proj\\Src\\"), setOf("\\PROJ\\SRC\\a.txt"));
+        assertTrue(pathsBelow("\\proj\\src\\a.txt").isEmpty(), "States below a file");
+        assertTrue(pathsBelow("\\missing").isEmpty());
+    }
+
+    @Test
+    public void testNonAsciiFolderNames() {
+
+        // Folder names are uppercased per character, a locale sensitive uppercase would change the length
+        // of the folder name
+
+        addState("\\Stra\u00dfe\\a.txt");
+        addState("\\\u00c9t\u00e9\\Dossier\\b.txt");
+
+        assertEquals(pathsBelow("\\stra\u00dfe"), setOf("\\STRA\u00dfE\\a.txt"));
+        assertEquals(pathsBelow("\\\u00e9t\u00e9"), setOf("\\\u00c9T\u00c9\\DOSSIER\\b.txt"));
+        assertEquals(pathsBelow("\\\u00c9T\u00c9\\dossier"), setOf("\\\u00c9T\u00c9\\DOSSIER\\b.txt"));
+    }
+
+    @Test
+    public void testRemoveState() {
+
+        FileState folder = addState("\\Proj");
+        FileState fileA = addState("\\Proj\\Src\\Deep\\a.txt");
+        FileState fileB = addState("\\Proj\\Src\\b.txt");
+
+        m_index.removeState(fileA.getPath(), fileA);
+        assertEquals(pathsBelow("\\PROJ"), setOf("\\PROJ\\SRC\\b.txt"));
+
+        // Removing a path that is not in the index is ignored
+
+        m_index.removeState("\\PROJ\\SRC\\Deep\\a.txt", fileA);
+        m_index.removeState("\\PROJ\\MISSING\\x.txt", fileA);
+
+        // Removing the last state below a folder leaves the folder state, the last path component keeps its case
+
+        m_index.removeState(fileB.getPath(), fileB);
+        assertTrue(pathsBelow("\\PROJ").isEmpty());
+        assertEquals(pathsBelow("\\"), setOf("\\Proj"));
+
+        m_index.removeState(folder.getPath(), folder);
+        assertTrue(pathsBelow("\\").isEmpty());
+
+        // Pruned folders can be added back
+
+        addState("\\Proj\\Src\\Deep\\a.txt");
+        assertEquals(pathsBelow("\\PROJ\\SRC"), setOf("\\PROJ\\SRC\\DEEP\\a.txt"));
+    }
+
+    @Test
+    public void testRemoveReplacedState() {
+
+        FileState oldState = addState("\\Proj\\a.txt");
+        FileState newState = addState("\\Proj\\a.txt");
+
+        // Removing the replaced state does not remove the current state for the path
+
+        m_index.removeState(oldState.getPath(), oldState);
+
+        List<FileState> states = m_index.getStatesBelow("\\PROJ");
+        assertEquals(states.size(), 1);
+        assertSame(states.get(0), newState);
+
+        m_index.removeState(newState.getPath(), newState);
+        assertTrue(m_index.getStatesBelow("\\PROJ").isEmpty());
+    }
+
+    @Test
+    public void testClear() {
+
+        addState("\\Proj\\a.txt");
+        addState("\\Other\\b.txt");
+
+        m_index.clear();
+
+        assertTrue(pathsBelow("\\").isEmpty());
+    }
+
+    @Test
+    public void testConcurrentAddRemove() throws Exception {
+
+        // Each thread adds and removes states in shared folders, keeping every tenth state. Every fortieth state
+        // is kept in the first folder.
+
+        final int threadCnt = 4;
+        final int stateCnt = 2000;
+
+        List<Thread> threads = new ArrayList<Thread>();
+        final List<Throwable> errors = new ArrayList<Throwable>();
+
+        for (int t = 0; t < threadCnt; t++) {
+            final int threadId = t;
+            Thread thread = new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < stateCnt; i++) {
+                            String path = "\\Dir" + (i % 8) + "\\Sub" + (i % 3) + "\\t" + threadId + "_" + i + ".txt";
+                            FileState state = new LocalFileState(path, FileStatus.FileExists, true);
+                            m_index.addState(state);
+                            if (i % 10 != 0)
+                                m_index.removeState(state.getPath(), state);
+                        }
+                    }
+                    catch (Throwable ex) {
+                        synchronized (errors) {
+                            errors.add(ex);
+                        }
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+
+        for (Thread thread : threads)
+            thread.join();
+
+        assertTrue(errors.isEmpty(), "Errors " + errors);
+        assertEquals(pathsBelow("\\").size(), threadCnt * stateCnt / 10);
+        assertEquals(pathsBelow("\\dir0").size(), threadCnt * stateCnt / 40);
+    }
+}
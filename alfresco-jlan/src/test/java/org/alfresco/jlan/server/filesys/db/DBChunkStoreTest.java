@@ -0,0 +1,507 @@
+/*
+ * Copyright (C) 2006-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.alfresco.jlan.server.filesys.db;
+
+import static org.testng.Assert.*;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Random;
+
+import org.alfresco.jlan.server.filesys.db.derby.DerbyDBInterface;
+import org.alfresco.jlan.server.filesys.loader.FileSegment;
+import org.alfresco.jlan.server.filesys.loader.FileSegmentInfo;
+import org.alfresco.jlan.server.filesys.loader.SimpleFileLoader;
+import org.springframework.extensions.config.ConfigElement;
+import org.springframework.extensions.config.element.GenericConfigElement;
+
+/**
+ * Database Chunk Store Test Class
+ *
+ * <p>Checks the chunk reference counts as files are saved, resaved and deleted, using an in memory Derby
+ * database.
+ *
+ * @author gkspencer
+ */
+public class DBChunkStoreTest {
+
+    // Average chunk size
+
+    private static final int ChunkSize = 4096;
+
+    // Database counter, each test uses a new in memory database
+
+    private static int _dbCount;
+
+    // Database DSN, database interface and chunk store
+
+    private String m_dsn;
+    private DBDeviceContext m_dbCtx;
+    private DerbyDBInterface m_dbInterface;
+    private DBChunkStore m_chunkStore;
+
+    // Temporary file used to save and load file data
+
+    private File m_tempFile;
+
+    /**
+     * Add a child element to a configuration element
+     *
+     * @param parent ConfigElement
+     * @param name String
+     * @param value String
+     */
+    private static void addChild(ConfigElement parent, String name, String value) {
+        parent.addChild(new ConfigElement(name, value));
+    }
+
+    /**
+     * Build a block of random test data
+     *
+     * @param len int
+     * @param seed long
+     * @return byte[]
+     */
+    private static byte[] randomData(int len, long seed) {
+        byte[] data = new byte[len];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * Save file data via the chunk store
+     *
+     * @param fileId int
+     * @param data byte[]
+     * @return int
+     * @throws Exception
+     */
+    private int saveFile(int fileId, byte[] data) throws Exception {
+
+        FileOutputStream out = new FileOutputStream(m_tempFile);
+
+        try {
+            out.write(data);
+        }
+        finally {
+            out.close();
+        }
+
+        return m_chunkStore.saveFileData(fileId, 0, new FileSegment(new FileSegmentInfo(m_tempFile.getPath()), false));
+    }
+
+    /**
+     * Load file data via the chunk store, returns null if the file data is not stored as chunks
+     *
+     * @param fileId int
+     * @return byte[]
+     * @throws Exception
+     */
+    private byte[] loadFile(int fileId) throws Exception {
+
+        m_tempFile.delete();
+
+        if (m_chunkStore.loadFileData(fileId, 0, new FileSegment(new FileSegmentInfo(m_tempFile.getPath()), true)) == false)
+            return null;
+
+        RandomAccessFile raf = new RandomAccessFile(m_tempFile, "r");
+
+        try {
+            byte[] data = new byte[(int) raf.length()];
+            raf.readFully(data);
+            return data;
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Run a query that returns a single integer value
+     *
+     * @param sql String
+     * @return int
+     * @throws SQLException
+     */
+    private int queryInt(String sql) throws SQLException {
+
+        Connection conn = m_dbInterface.getConnection();
+        Statement stmt = conn.createStatement();
+
+        try {
+            ResultSet rs = stmt.executeQuery(sql);
+            rs.next();
+            return rs.getInt(1);
+        }
+        finally {
+            stmt.close();
+            m_dbInterface.releaseConnection(conn);
+        }
+    }
+
+    /**
+     * Run an update statement
+     *
+     * @param sql String
+     * @return int
+     * @throws SQLException
+     */
+    private int update(String sql) throws SQLException {
+
+        Connection conn = m_dbInterface.getConnection();
+        Statement stmt = conn.createStatement();
+
+        try {
+            return stmt.executeUpdate(sql);
+        }
+        finally {
+            stmt.close();
+            m_dbInterface.releaseConnection(conn);
+        }
+    }
+
+    /**
+     * Return the number of chunks stored
+     *
+     * @return int
+     * @throws SQLException
+     */
+    private int chunkCount() throws SQLException {
+        return queryInt("SELECT COUNT(*) FROM " + m_dbInterface.getChunkTableName());
+    }
+
+    /**
+     * Return the total of the chunk reference counts
+     *
+     * @return int
+     * @throws SQLException
+     */
+    private int referenceTotal() throws SQLException {
+        return queryInt("SELECT COALESCE(SUM(RefCount),0) FROM " + m_dbInterface.getChunkTableName());
+    }
+
+    /**
+     * Return the number of chunk map entries
+     *
+     * @return int
+     * @throws SQLException
+     */
+    private int chunkMapCount() throws SQLException {
+        return queryInt("SELECT COUNT(*) FROM " + m_dbInterface.getChunkMapTableName());
+    }
+
+    /**
+     * Return the number of chunks with a reference count that does not match the chunk map
+     *
+     * @return int
+     * @throws SQLException
+     */
+    private int mismatchedReferences() throws SQLException {
+        String chunkTable = m_dbInterface.getChunkTableName();
+        String mapTable = m_dbInterface.getChunkMapTableName();
+
+        return queryInt("SELECT COUNT(*) FROM " + chunkTable + " WHERE RefCount <> (SELECT COUNT(*) FROM " + mapTable
+                + " WHERE " + mapTable + ".ChunkHash = " + chunkTable + ".ChunkHash)");
+    }
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+
+        m_dsn = "jdbc:derby:memory:chunkStoreTest" + (++_dbCount);
+        m_tempFile = File.createTempFile("chunkStore", ".dat");
+
+        // Build the filesystem configuration, with deduplicated file data enabled
+
+        GenericConfigElement dbConfig = new GenericConfigElement("DatabaseInterface");
+
+        addChild(dbConfig, "class", DerbyDBInterface.class.getName());
+        addChild(dbConfig, "DSN", m_dsn + ";create=true");
+        addChild(dbConfig, "FileSystemTable", "JLANFiles");
+        addChild(dbConfig, "DataTable", "JLANData");
+        addChild(dbConfig, "Deduplication", null);
+        addChild(dbConfig, "DedupChunkSize", Integer.toString(ChunkSize));
+
+        GenericConfigElement loaderConfig = new GenericConfigElement("FileLoader");
+
+        addChild(loaderConfig, "class", SimpleFileLoader.class.getName());
+        addChild(loaderConfig, "RootPath", m_tempFile.getParent());
+
+        GenericConfigElement config = new GenericConfigElement("filesystem");
+        config.addChild(dbConfig);
+        config.addChild(loaderConfig);
+
+        // Create the database interface. The simple file loader does not use the data tables, so reopen the
+        // database with the data feature enabled to create the chunk tables
+
+        m_dbCtx = new DBDeviceContext("TEST", config);
+
+        m_dbInterface = (DerbyDBInterface) m_dbCtx.getDBInterface();
+        m_dbInterface.shutdownDatabase(m_dbCtx);
+
+        m_dbInterface.requestFeatures(DBInterface.FeatureData);
+        m_dbInterface.initializeDatabase(m_dbCtx, dbConfig);
+
+        m_chunkStore = m_dbInterface.getChunkStore();
+        assertNotNull(m_chunkStore, "Chunk store not created");
+        assertTrue(m_dbInterface.hasChunkStore(), "Chunk tables not available");
+    }
+
+    @AfterMethod
+    public void tearDown() {
+
+        if (m_dbInterface != null)
+            m_dbInterface.shutdownDatabase(m_dbCtx);
+
+        // Drop the in memory database, Derby reports the drop as an exception
+
+        try {
+            DriverManager.getConnection(m_dsn + ";drop=true");
+        }
+        catch (SQLException ex) {
+            // Expected
+        }
+
+        m_tempFile.delete();
+    }
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+
+        byte[] data = randomData(200000, 1L);
+
+        int chunkCnt = saveFile(1, data);
+
+        assertTrue(chunkCnt > 1, "File data not split into chunks");
+        assertEquals(chunkCount(), chunkCnt);
+        assertEquals(referenceTotal(), chunkCnt);
+        assertEquals(chunkMapCount(), chunkCnt);
+
+        assertEquals(loadFile(1), data);
+        assertNull(loadFile(2), "Data loaded for a file that has not been saved");
+
+        long[] chunkLens = m_chunkStore.getChunkLengths(1, 0);
+        long total = 0L;
+
+        for (long chunkLen : chunkLens)
+            total += chunkLen;
+
+        assertEquals(chunkLens.length, chunkCnt);
+        assertEquals(total, (long) data.length);
+    }
+
+    @Test
+    public void testSharedChunks() throws Exception {
+
+        byte[] data = randomData(200000, 2L);
+
+        int chunkCnt = saveFile(1, data);
+        assertEquals(saveFile(2, data), chunkCnt);
+
+        // The second file only adds references to the existing chunks
+
+        assertEquals(chunkCount(), chunkCnt);
+        assertEquals(referenceTotal(), chunkCnt * 2);
+        assertEquals(m_chunkStore.getSharedChunks(), (long) chunkCnt);
+        assertEquals(m_chunkStore.getSharedBytes(), (long) data.length);
+
+        assertEquals(loadFile(2), data);
+    }
+
+    @Test
+    public void testRepeatedChunksInFile() throws Exception {
+
+        // File contains the same block of data several times
+
+        byte[] block = randomData(ChunkSize * 8, 3L);
+        byte[] data = new byte[block.length * 6];
+
+        for (int i = 0; i < 6; i++)
+            System.arraycopy(block, 0, data, i * block.length, block.length);
+
+        int chunkCnt = saveFile(1, data);
+
+        assertTrue(chunkCount() < chunkCnt, "Repeated data stored more than once");
+        assertEquals(referenceTotal(), chunkCnt);
+        assertEquals(loadFile(1), data);
+    }
+
+    @Test
+    public void testResaveSameData() throws Exception {
+
+        byte[] data = randomData(100000, 4L);
+
+        int chunkCnt = saveFile(1, data);
+
+        // References for the new version are added before the old references are released, saving the same data
+        // again must not delete the chunks
+
+        assertEquals(saveFile(1, data), chunkCnt);
+
+        assertEquals(chunkCount(), chunkCnt);
+        assertEquals(referenceTotal(), chunkCnt);
+        assertEquals(m_chunkStore.getDeletedChunks(), 0L);
+        assertEquals(loadFile(1), data);
+    }
+
+    @Test
+    public void testResaveEditedData() throws Exception {
+
+        byte[] data = randomData(300000, 5L);
+        saveFile(1, data);
+
+        // Insert data part way through the file, only the chunks around the edit are new
+
+        byte[] edited = new byte[data.length + 100];
+
+        System.arraycopy(data, 0, edited, 0, 150000);
+        System.arraycopy(randomData(100, 6L), 0, edited, 150000, 100);
+        System.arraycopy(data, 150000, edited, 150100, data.length - 150000);
+
+        long storedBefore = m_chunkStore.getStoredChunks();
+        int chunkCnt = saveFile(1, edited);
+
+        assertTrue(m_chunkStore.getStoredChunks() - storedBefore <= 2, "New chunks stored " + (m_chunkStore.getStoredChunks() - storedBefore));
+
+        // Chunks only used by the old version are deleted
+
+        assertTrue(m_chunkStore.getDeletedChunks() > 0, "Old chunks not deleted");
+        assertEquals(chunkCount(), chunkCnt);
+        assertEquals(referenceTotal(), chunkCnt);
+        assertEquals(mismatchedReferences(), 0);
+
+        assertEquals(loadFile(1), edited);
+    }
+
+    @Test
+    public void testDeleteReleasesChunks() throws Exception {
+
+        byte[] data = randomData(100000, 7L);
+
+        int chunkCnt = saveFile(1, data);
+        saveFile(2, data);
+
+        // Deleting one file keeps the chunks used by the other file
+
+        m_chunkStore.deleteFileData(1, 0, true);
+
+        assertNull(loadFile(1));
+        assertEquals(chunkCount(), chunkCnt);
+        assertEquals(referenceTotal(), chunkCnt);
+        assertEquals(loadFile(2), data);
+
+        // Deleting the last file deletes the chunks
+
+        m_chunkStore.deleteFileData(2, 0, true);
+
+        assertEquals(chunkCount(), 0);
+        assertEquals(chunkMapCount(), 0);
+        assertEquals(m_chunkStore.getDeletedChunks(), (long) chunkCnt);
+    }
+
+    @Test
+    public void testReconcileReferences() throws Exception {
+
+        byte[] data = randomData(100000, 8L);
+        int chunkCnt = saveFile(1, data);
+
+        assertEquals(m_chunkStore.reconcileReferences(), 0, "Correct reference counts changed");
+
+        // Simulate a save that failed after adding references, and a chunk that is no longer in any chunk map
+
+        String chunkTable = m_dbInterface.getChunkTableName();
+
+        update("UPDATE " + chunkTable + " SET RefCount = RefCount + 1");
+        update("INSERT INTO " + chunkTable + " (ChunkHash,ChunkLen,RefCount,Data) VALUES ('"
+                + "0000000000000000000000000000000000000000000000000000000000000000', 1, 1, NULL)");
+
+        assertEquals(m_chunkStore.reconcileReferences(), chunkCnt + 1);
+
+        assertEquals(chunkCount(), chunkCnt);
+        assertEquals(referenceTotal(), chunkCnt);
+        assertEquals(mismatchedReferences(), 0);
+        assertEquals(loadFile(1), data);
+    }
+
+    @Test
+    public void testConcurrentSaves() throws Exception {
+
+        // Several threads save files that share data, then delete them
+
+        final byte[] data = randomData(60000, 9L);
+        final Exception[] errors = new Exception[4];
+        Thread[] threads = new Thread[errors.length];
+
+        for (int t = 0; t < threads.length; t++) {
+            final int threadId = t;
+
+            threads[t] = new Thread() {
+                public void run() {
+                    File tempFile = null;
+
+                    try {
+                        tempFile = File.createTempFile("chunkStore", ".dat");
+
+                        FileOutputStream out = new FileOutputStream(tempFile);
+                        out.write(data);
+                        out.close();
+
+                        for (int i = 0; i < 5; i++) {
+                            int fileId = 100 + threadId * 10 + i;
+
+                            m_chunkStore.saveFileData(fileId, 0, new FileSegment(new FileSegmentInfo(tempFile.getPath()), false));
+                            m_chunkStore.saveFileData(threadId, 0, new FileSegment(new FileSegmentInfo(tempFile.getPath()), false));
+
+                            if (i % 2 == 0)
+                                m_chunkStore.deleteFileData(fileId, 0, true);
+                        }
+                    }
+                    catch (Exception ex) {
+                        errors[threadId] = ex;
+                    }
+                    finally {
+                        if (tempFile != null)
+                            tempFile.delete();
+                    }
+                }
+            };
+
+            threads[t].start();
+        }
+
+        for (Thread thread : threads)
+            thread.join();
+
+        for (Exception ex : errors)
+            assertNull(ex, "Save failed");
+
+        assertEquals(mismatchedReferences(), 0);
+        assertEquals(referenceTotal(), chunkMapCount());
+        assertEquals(loadFile(0), data);
+    }
+}
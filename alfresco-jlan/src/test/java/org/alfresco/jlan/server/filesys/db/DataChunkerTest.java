@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2006-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.alfresco.jlan.server.filesys.db;
+
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Data Chunker Test Class
+ *
+ * @author gkspencer
+ */
+public class DataChunkerTest {
+
+    /**
+     * Build a block of random test data
+     *
+     * @param len int
+     * @param seed long
+     * @return byte[]
+     */
+    private static byte[] randomData(int len, long seed) {
+        byte[] data = new byte[len];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * Split the data into chunks, return the chunk lengths
+     *
+     * @param chunker DataChunker
+     * @param data byte[]
+     * @return List<Integer>
+     */
+    private static List<Integer> chunkLengths(DataChunker chunker, byte[] data) {
+        List<Integer> lengths = new ArrayList<Integer>();
+        int pos = 0;
+
+        while (pos < data.length) {
+            int chunkLen = chunker.nextChunk(data, pos, data.length - pos);
+            assertTrue(chunkLen > 0, "Zero length chunk at offset " + pos);
+
+            lengths.add(Integer.valueOf(chunkLen));
+            pos += chunkLen;
+        }
+
+        return lengths;
+    }
+
+    /**
+     * Return the chunk contents, buffers compare by content so chunks from different data can be compared
+     *
+     * @param chunker DataChunker
+     * @param data byte[]
+     * @return Set<ByteBuffer>
+     */
+    private static Set<ByteBuffer> chunkContents(DataChunker chunker, byte[] data) {
+        Set<ByteBuffer> chunks = new HashSet<ByteBuffer>();
+        int pos = 0;
+
+        for (Integer chunkLen : chunkLengths(chunker, data)) {
+            chunks.add(ByteBuffer.wrap(data, pos, chunkLen.intValue()).slice());
+            pos += chunkLen.intValue();
+        }
+
+        return chunks;
+    }
+
+    @Test
+    public void testChunkSizes() {
+
+        // Average size is rounded up to a power of two, within the valid range
+
+        DataChunker chunker = new DataChunker(5000, false);
+
+        assertEquals(chunker.getAverageSize(), 8192);
+        assertEquals(chunker.getMinimumSize(), 2048);
+        assertEquals(chunker.getMaximumSize(), 32768);
+        assertFalse(chunker.isFixedSize());
+
+        assertEquals(new DataChunker(100, false).getAverageSize(), DataChunker.MinimumChunkSize);
+        assertEquals(new DataChunker(10 * 1024 * 1024, false).getAverageSize(), DataChunker.MaximumChunkSize);
+
+        DataChunker fixed = new DataChunker(DataChunker.DefaultChunkSize, true);
+
+        assertTrue(fixed.isFixedSize());
+        assertEquals(fixed.getMinimumSize(), DataChunker.DefaultChunkSize);
+        assertEquals(fixed.getMaximumSize(), DataChunker.DefaultChunkSize);
+    }
+
+    @Test
+    public void testFixedChunks() {
+
+        DataChunker chunker = new DataChunker(8192, true);
+        List<Integer> lengths = chunkLengths(chunker, randomData(8192 * 5 + 100, 1L));
+
+        assertEquals(lengths.size(), 6);
+        for (int i = 0; i < 5; i++)
+            assertEquals(lengths.get(i).intValue(), 8192);
+        assertEquals(lengths.get(5).intValue(), 100);
+    }
+
+    @Test
+    public void testContentDefinedChunkLimits() {
+
+        DataChunker chunker = new DataChunker(8192, false);
+        byte[] data = randomData(2 * 1024 * 1024, 2L);
+
+        List<Integer> lengths = chunkLengths(chunker, data);
+
+        // All chunks except the last are within the minimum and maximum size, most are close to the average
+
+        long total = 0L;
+
+        for (int i = 0; i < lengths.size(); i++) {
+            int chunkLen = lengths.get(i).intValue();
+            total += chunkLen;
+
+            if (i < lengths.size() - 1) {
+                assertTrue(chunkLen >= chunker.getMinimumSize(), "Chunk " + i + " too short, " + chunkLen);
+                assertTrue(chunkLen <= chunker.getMaximumSize(), "Chunk " + i + " too long, " + chunkLen);
+            }
+        }
+
+        assertEquals(total, (long) data.length);
+
+        long avgLen = total / lengths.size();
+        assertTrue(avgLen > chunker.getAverageSize() / 2 && avgLen < chunker.getAverageSize() * 2, "Average chunk length " + avgLen);
+
+        // Data that does not contain a boundary is split at the maximum chunk size
+
+        List<Integer> zeroLengths = chunkLengths(chunker, new byte[100000]);
+        assertEquals(zeroLengths.get(0).intValue(), chunker.getMaximumSize());
+
+        // Data shorter than the minimum chunk size is a single chunk
+
+        assertEquals(chunker.nextChunk(data, 0, 1000), 1000);
+    }
+
+    @Test
+    public void testBoundariesAreDeterministic() {
+
+        byte[] data = randomData(512 * 1024, 3L);
+
+        assertEquals(chunkLengths(new DataChunker(8192, false), data), chunkLengths(new DataChunker(8192, false), data));
+
+        // Boundaries depend only on the data, not on the offset of the data within the buffer
+
+        byte[] shifted = new byte[data.length + 100];
+        System.arraycopy(data, 0, shifted, 100, data.length);
+
+        DataChunker chunker = new DataChunker(8192, false);
+        assertEquals(chunker.nextChunk(shifted, 100, data.length), chunker.nextChunk(data, 0, data.length));
+    }
+
+    @Test
+    public void testBoundariesStableAfterInsert() {
+
+        DataChunker chunker = new DataChunker(8192, false);
+        byte[] data = randomData(1024 * 1024, 4L);
+
+        // Insert data part way through the file
+
+        byte[] insert = randomData(100, 5L);
+        byte[] edited = new byte[data.length + insert.length];
+
+        System.arraycopy(data, 0, edited, 0, 300000);
+        System.arraycopy(insert, 0, edited, 300000, insert.length);
+        System.arraycopy(data, 300000, edited, 300000 + insert.length, data.length - 300000);
+
+        // Only the chunks around the edit change, the boundaries resynchronize after the inserted data
+
+        Set<ByteBuffer> oldChunks = chunkContents(chunker, data);
+        Set<ByteBuffer> newChunks = chunkContents(chunker, edited);
+
+        Set<ByteBuffer> changed = new HashSet<ByteBuffer>(newChunks);
+        changed.removeAll(oldChunks);
+
+        assertTrue(changed.size() <= 2, "Changed chunks " + changed.size() + " of " + newChunks.size());
+
+        // With fixed size chunks every chunk after the edit changes
+
+        DataChunker fixed = new DataChunker(8192, true);
+
+        Set<ByteBuffer> fixedChanged = chunkContents(fixed, edited);
+        fixedChanged.removeAll(chunkContents(fixed, data));
+
+        assertTrue(fixedChanged.size() > newChunks.size() / 2, "Fixed chunks changed " + fixedChanged.size());
+    }
+}